@@ -19,32 +19,52 @@ under the License.
 package com.heliosapm.streams.collector.cache;
 
 import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanNotificationInfo;
 import javax.management.Notification;
 import javax.management.NotificationBroadcasterSupport;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.utils.jmx.JMXHelper;
-import com.heliosapm.utils.jmx.JMXManagedScheduler;
 import com.heliosapm.utils.jmx.SharedNotificationExecutor;
 
 import groovy.lang.Closure;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
 import jsr166e.LongAdder;
 
 
 /**
  * <p>Title: GlobalCacheService</p>
- * <p>Description: Namespaced cache service for scripts to store/lookup arbitrary values</p> 
+ * <p>Description: Namespaced cache service for scripts to store/lookup arbitrary values.
+ * Values created on a miss are loaded once per key: concurrent callers for the same key wait on the one load
+ * while lookups of other keys proceed, and a load that would wait, directly or through other loads, on itself fails fast.
+ * Expiries and refresh-aheads are driven by the cache's own timing wheel, and the cache can be bounded,
+ * in which case the least recently accessed values are evicted.</p> 
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.streams.collector.cache.GlobalCacheService</code></p>
  */
@@ -63,8 +83,60 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 		new MBeanNotificationInfo(new String[]{NOTIF_EXPIRE_EVENT}, Notification.class.getName(), "Cache item expired notification")
 	};
 	
-	/** The cache event scheduler */
-	private JMXManagedScheduler scheduler = new JMXManagedScheduler(schedulerObjectName, "CacheEventScheduler", true); 
+	/** The config key for the maximum number of cached values */
+	public static final String CONFIG_MAX_SIZE = "collector.cache.maxsize";
+	/** The default maximum number of cached values, where less than 1 is unbounded */
+	public static final int DEFAULT_MAX_SIZE = 0;
+	/** The config key for the fraction of an expiring value's period before its expiry when it is reloaded */
+	public static final String CONFIG_REFRESH_AHEAD = "collector.cache.refreshahead";
+	/** The default refresh ahead fraction, where 0 disables refresh ahead */
+	public static final float DEFAULT_REFRESH_AHEAD = 0f;
+	/** The config key for the maximum time in ms. a lookup waits on another caller's load of the same key */
+	public static final String CONFIG_LOAD_TIMEOUT = "collector.cache.load.timeout";
+	/** The default maximum time in ms. a lookup waits on another caller's load of the same key */
+	public static final long DEFAULT_LOAD_TIMEOUT = 30000L;
+	/** The tick duration in ms. of the expiry timing wheel */
+	private static final long TICK_DURATION = 100L;
+	/** The ticks per wheel of the expiry timing wheel */
+	private static final int TICK_COUNT = 512;
+	
+	/** Instance logger */
+	private final Logger log = LogManager.getLogger(getClass());
+	/** The timing wheel driving expiries and refreshes, separate from the TimeoutService so cache timers do not skew its metrics */
+	private final HashedWheelTimer timer = new HashedWheelTimer(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread t = new Thread(r, "CacheExpiryTimer");
+			t.setDaemon(true);
+			return t;
+		}
+	}, TICK_DURATION, TimeUnit.MILLISECONDS, TICK_COUNT);
+	/** The maximum time in ms. a lookup waits on another caller's load of the same key */
+	private final long loadTimeout;
+	/** The maximum number of cached values, where less than 1 is unbounded */
+	private final int maxSize;
+	/** The fraction of an expiring value's period before its expiry when it is reloaded */
+	private final float refreshAhead;
+	/** Runs refreshes, and the closing and remove callbacks of expired and evicted values off the timer thread */
+	private final ExecutorService maintenanceExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		final AtomicInteger serial = new AtomicInteger();
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread t = new Thread(r, "CacheMaintenance#" + serial.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	/** The in-flight loads keyed by the key being loaded */
+	private final Map<String, CompletableFuture<CacheValue<Object>>> loadsByKey = new ConcurrentHashMap<String, CompletableFuture<CacheValue<Object>>>();
+	/** The threads running the in-flight loads keyed by the key being loaded */
+	private final Map<String, Thread> loadersByKey = new ConcurrentHashMap<String, Thread>();
+	/** The keys whose in-flight loads threads are waiting on, keyed by the waiting thread */
+	private final Map<Thread, String> waitsByThread = new ConcurrentHashMap<Thread, String>();
+	/** Indicates if an eviction pass is running */
+	private final AtomicBoolean evicting = new AtomicBoolean(false);
+	/** The bound values in access order, least recently accessed first, maintained when the cache is bounded. Guarded by itself */
+	private final LinkedHashMap<String, CacheValue<Object>> accessOrder = new LinkedHashMap<String, CacheValue<Object>>(256, 0.75f, true);
 	
 	/** A map of cache event listeners keyed by the interest key */
 	private final Map<String, Set<CacheEventListener>> listenersByKey = new ConcurrentHashMap<String, Set<CacheEventListener>>();
@@ -80,6 +152,16 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 	private final LongAdder hitCount = new LongAdder();
 	/** The count of cache misses */
 	private final LongAdder missCount = new LongAdder();
+	/** The count of evictions */
+	private final LongAdder evictionCount = new LongAdder();
+	/** The count of loads */
+	private final LongAdder loadCount = new LongAdder();
+	/** The count of lookups that waited on another caller's load */
+	private final LongAdder coalescedLoadCount = new LongAdder();
+	/** The count of refreshes */
+	private final LongAdder refreshCount = new LongAdder();
+	/** The count of failed refreshes */
+	private final LongAdder refreshFailureCount = new LongAdder();
 	/** The JMX notification serial */
 	private final AtomicLong notifSerial = new AtomicLong();
 	
@@ -291,30 +373,19 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 	@SuppressWarnings("unchecked")
 	public <T> T get(final String key, final Closure<T> createIfNotFound) {
 		if(key==null || key.trim().isEmpty()) throw new IllegalArgumentException("The passed listener was null or empty");
-		CacheValue<T> cv = (CacheValue<T>) cacheValuesByKey.get(key.trim());
+		final String _key = key.trim();
+		CacheValue<T> cv = (CacheValue<T>) cacheValuesByKey.get(_key);
 		if(cv==null && createIfNotFound!=null) {
-			synchronized(cacheValuesByKey) {
-				cv = (CacheValue<T>) cacheValuesByKey.get(key.trim());
-				if(cv==null) {
-					final PutBuilder<T> pb = new PutBuilder<T>(key.trim());
-					cv = (CacheValue<T>) cacheValuesByKey.get(key.trim());
-					try {
-						final T t = createIfNotFound.call(pb);
-						pb.value(t).put();
-						cv = new CacheValue<T>(key.trim(), t);
-					} catch (Exception ex) {
-						ex.printStackTrace(System.err);
-					}
+			cv = load(_key, false, new Callable<CacheValue<T>>() {
+				@Override
+				public CacheValue<T> call() {
+					final PutBuilder<T> pb = new PutBuilder<T>(_key);
+					final T t = createIfNotFound.call(pb);
+					return pb.value(t).putForValue();
 				}
-			}
-		}
-		
-		if(cv==null) {
-			missCount.increment();
-			return null;
+			});
 		}
-		hitCount.increment();
-		return cv.value;
+		return accessed(cv);
 	}
 	
 	/**
@@ -329,26 +400,229 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 	@SuppressWarnings("unchecked")
 	public <T> T get(final String key, final long expiryPeriod , final TimeUnit unit, final Closure<T> createIfNotFound) {
 		if(key==null || key.trim().isEmpty()) throw new IllegalArgumentException("The passed listener was null or empty");		
-		CacheValue<T> cv = (CacheValue<T>) cacheValuesByKey.get(key.trim());
+		final String _key = key.trim();
+		CacheValue<T> cv = (CacheValue<T>) cacheValuesByKey.get(_key);
 		if(cv==null && createIfNotFound!=null) {
-			synchronized(cacheValuesByKey) {
-				cv = (CacheValue<T>) cacheValuesByKey.get(key.trim());
-				if(cv==null) {
-					
-					cv = new PutBuilder<T>(key.trim())
+			cv = load(_key, false, new Callable<CacheValue<T>>() {
+				@Override
+				public CacheValue<T> call() {
+					return new PutBuilder<T>(_key)
 						.value(createIfNotFound.call())
 						.expireIn(expiryPeriod, unit)
+						.refreshWith(createIfNotFound)
 						.putForValue();
 				}
+			});
+		}
+		return accessed(cv);
+	}
+	
+	/**
+	 * Loads and binds the value for the passed key, once per key. A caller finding a load of the same key
+	 * in flight waits for it instead of running its own, while loads and lookups of other keys are unaffected.
+	 * A loader failure is rethrown to the loading caller and to every waiter. A load that would wait on itself, 
+	 * either recursively or through a chain of other threads' loads (A loads B while B loads A), fails fast,
+	 * and a wait on another caller's load is bounded by the load timeout.
+	 * @param key The key to load the value for
+	 * @param force true to load even if a value is bound (a refresh), false to return a bound value
+	 * @param loader Creates and binds the value
+	 * @return the bound value or null if the loader did not bind one
+	 * @param <T> The expected type of the value
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> CacheValue<T> load(final String key, final boolean force, final Callable<CacheValue<T>> loader) {
+		final CompletableFuture<CacheValue<Object>> future = new CompletableFuture<CacheValue<Object>>();
+		final CompletableFuture<CacheValue<Object>> inflight = loadsByKey.putIfAbsent(key, future);
+		if(inflight!=null) {
+			final Thread current = Thread.currentThread();
+			// register the wait before checking, so that of two threads closing a cycle at least one sees it
+			waitsByThread.put(current, key);
+			try {
+				checkCircularLoad(key, current);
+				coalescedLoadCount.increment();
+				return (CacheValue<T>)inflight.get(loadTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException iex) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (TimeoutException tex) {
+				throw new IllegalStateException("Timed out after [" + loadTimeout + "] ms waiting on the load of cache key [" + key + "]");
+			} catch (ExecutionException eex) {
+				throw rethrow(key, eex.getCause());
+			} finally {
+				waitsByThread.remove(current);
 			}
 		}
-		
+		loadersByKey.put(key, Thread.currentThread());
+		try {
+			CacheValue<T> cv = force ? null : (CacheValue<T>) cacheValuesByKey.get(key);
+			if(cv==null) {
+				loadCount.increment();
+				cv = loader.call();
+			}
+			future.complete((CacheValue<Object>)cv);
+			return cv;
+		} catch (Throwable t) {
+			future.completeExceptionally(t);
+			throw rethrow(key, t);
+		} finally {
+			loadersByKey.remove(key);
+			loadsByKey.remove(key, future);
+		}
+	}
+	
+	/**
+	 * Follows the chain of loads the passed thread would wait on and fails if it leads back to that thread
+	 * @param key The key whose load the thread is about to wait on
+	 * @param current The waiting thread
+	 */
+	private void checkCircularLoad(final String key, final Thread current) {
+		String waitKey = key;
+		for(int i = 0, max = loadersByKey.size() + 1; i < max && waitKey!=null; i++) {
+			final Thread loader = loadersByKey.get(waitKey);
+			if(loader==null) return;
+			if(loader==current) {
+				throw new IllegalStateException(waitKey.equals(key) 
+					? "Recursive load of cache key [" + key + "]" 
+					: "Circular load of cache key [" + key + "] through the load of [" + waitKey + "]");
+			}
+			waitKey = waitsByThread.get(loader);
+		}
+	}
+	
+	private static RuntimeException rethrow(final String key, final Throwable t) {
+		if(t instanceof RuntimeException) return (RuntimeException)t;
+		if(t instanceof Error) throw (Error)t;
+		return new RuntimeException("Failed to load cache value for key [" + key + "]", t);
+	}
+	
+	/**
+	 * Records a lookup of the passed cache value
+	 * @param cv The cache value, null for a miss
+	 * @return the value or null for a miss
+	 * @param <T> The expected type of the value
+	 */
+	private <T> T accessed(final CacheValue<T> cv) {
 		if(cv==null) {
 			missCount.increment();
 			return null;
 		}
 		hitCount.increment();
-		return cv.value;		
+		if(maxSize > 0) {
+			synchronized(accessOrder) {
+				accessOrder.get(cv.key);
+			}
+		}
+		return cv.value;
+	}
+	
+	/**
+	 * Records a newly bound value in the access order if the cache is bounded
+	 * @param cv The bound cache value
+	 */
+	@SuppressWarnings("unchecked")
+	private void bound(final CacheValue<?> cv) {
+		if(maxSize > 0) {
+			synchronized(accessOrder) {
+				accessOrder.put(cv.key, (CacheValue<Object>)cv);
+			}
+		}
+	}
+	
+	/**
+	 * Removes an unbound value from the access order if the cache is bounded
+	 * @param cv The unbound cache value
+	 */
+	private void unbound(final CacheValue<?> cv) {
+		if(maxSize > 0) {
+			synchronized(accessOrder) {
+				accessOrder.remove(cv.key, cv);
+			}
+		}
+	}
+	
+	/**
+	 * Evicts the least recently accessed values if the cache is bounded and over its maximum size.
+	 * Only one caller runs a pass at a time, the others skip it.
+	 */
+	private void evictIfNeeded() {
+		if(maxSize < 1 || cacheValuesByKey.size() <= maxSize) return;
+		if(!evicting.compareAndSet(false, true)) return;
+		try {
+			final int excess = cacheValuesByKey.size() - maxSize;
+			if(excess < 1) return;
+			final List<CacheValue<Object>> oldest = new ArrayList<CacheValue<Object>>(excess);
+			synchronized(accessOrder) {
+				final Iterator<CacheValue<Object>> iter = accessOrder.values().iterator();
+				while(oldest.size() < excess && iter.hasNext()) {
+					oldest.add(iter.next());
+					iter.remove();
+				}
+			}
+			for(final CacheValue<Object> cv: oldest) {
+				if(cacheValuesByKey.remove(cv.key, cv)) {
+					evictionCount.increment();
+					maintenanceExecutor.execute(new Runnable(){
+						@Override
+						public void run() {
+							cv.close();
+							fireValueRemoved(cv.key, cv.value);
+						}
+					});
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+	
+	/**
+	 * Removes the passed cache value if it is still bound when its expiry fires
+	 * @param cv The expired cache value
+	 */
+	private void expire(final CacheValue<?> cv) {
+		maintenanceExecutor.execute(new Runnable(){
+			@Override
+			public void run() {
+				if(cacheValuesByKey.remove(cv.key, cv)) {
+					unbound(cv);
+					expiryCount.increment();
+					cv.close();
+					sendNotif(NOTIF_EXPIRE_EVENT, "Cache Item Expired [" + cv.key + "]");
+					fireValueRemoved(cv.key, cv.value);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Reloads the passed cache value ahead of its expiry if it is still bound. Lookups keep returning
+	 * the current value until the reloaded one replaces it. If the reload fails, the current value expires as scheduled.
+	 * @param cv The cache value to refresh
+	 */
+	private <T> void refresh(final CacheValue<T> cv) {
+		maintenanceExecutor.execute(new Runnable(){
+			@Override
+			public void run() {
+				if(cacheValuesByKey.get(cv.key)!=cv) return;
+				try {
+					load(cv.key, true, new Callable<CacheValue<T>>() {
+						@Override
+						public CacheValue<T> call() {
+							return new PutBuilder<T>(cv.key)
+								.value(cv.loader.call())
+								.expireIn(cv.expireIn, cv.unit)
+								.onRemove(cv.onRemove)
+								.refreshWith(cv.loader)
+								.putForValue();
+						}
+					});
+					refreshCount.increment();
+				} catch (Exception ex) {
+					refreshFailureCount.increment();
+					log.warn("Failed to refresh cache value [{}]. It will expire as scheduled.", cv.key, ex);
+				}
+			}
+		});
 	}
 	
 	/**
@@ -385,12 +659,7 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 		if(key==null || key.trim().isEmpty()) throw new IllegalArgumentException("The passed listener was null or empty");
 		@SuppressWarnings("unchecked")
 		CacheValue<T> cv = (CacheValue<T>) cacheValuesByKey.get(key.trim());
-		if(cv==null) {
-			missCount.increment();
-			return null;
-		}
-		hitCount.increment();
-		return cv.value;
+		return accessed(cv);
 	}
 	
 	
@@ -420,15 +689,17 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 	public <T> T put(final String key, final T value, final long expiryPeriod, final TimeUnit unit, final Closure<Void> onRemove) {
 		if(key==null || key.trim().isEmpty()) throw new IllegalArgumentException("The passed key was null or empty");
 		if(value==null) throw new IllegalArgumentException("The passed value with key [" + key + "] was null");
-		final CacheValue<T> cv = new CacheValue<T>(key,value, expiryPeriod, unit, onRemove);		
+		final CacheValue<T> cv = new CacheValue<T>(key.trim(), value, expiryPeriod, unit, onRemove, null);		
 		final CacheValue<T> oldValue = (CacheValue<T>) cacheValuesByKey.put(key.trim(), (CacheValue<Object>) cv);
 		cv.boundTime = System.currentTimeMillis();
+		bound(cv);
 		if(oldValue!=null) {
 			oldValue.close();
 			fireValueReplaced(key.trim(), oldValue.value, value);
 			return oldValue.value;
 		}
 		fireValueAdded(key.trim(), value);
+		evictIfNeeded();
 		return null;
 		
 	}
@@ -508,6 +779,7 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 		private long expiryPeriod = -1L;
 		private TimeUnit unit = TimeUnit.MILLISECONDS; 
 		private Closure<Void> onRemove = null;
+		private Closure<T> loader = null;
 		
 		private PutBuilder(final String key, final T value) {
 			this.key = key;
@@ -535,6 +807,16 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 			return this;
 		}
 		
+		/**
+		 * Sets the closure that reloads an expiring value ahead of its expiry when refresh ahead is enabled
+		 * @param loader The closure returning the new value
+		 * @return this builder
+		 */
+		public PutBuilder<T> refreshWith(final Closure<T> loader) {
+			this.loader = loader;
+			return this;
+		}
+		
 		private PutBuilder<T> value(final T v) {
 			value = v;
 			return this;
@@ -545,15 +827,17 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 			if(value==null) {
 				throw new RuntimeException("No value set on PutBuilder with key [" + key + "]. Programmer error");
 			}
-			final CacheValue<T> cv = new CacheValue<T>(key, value, expiryPeriod, unit, onRemove);
+			final CacheValue<T> cv = new CacheValue<T>(key, value, expiryPeriod, unit, onRemove, loader);
 			final CacheValue<Object> prior = cacheValuesByKey.put(key, (CacheValue<Object>) cv);
 			cv.boundTime = System.currentTimeMillis();
+			bound(cv);
 			if(prior!=null) {
 				prior.close();
 				fireValueReplaced(key.trim(), prior.value, value);
 				return (CacheValue<T>)prior;
 			}
 			fireValueAdded(key.trim(), value);
+			evictIfNeeded();
 			return null;
 		}
 
@@ -562,14 +846,16 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 			if(value==null) {
 				throw new RuntimeException("No value set on PutBuilder with key [" + key + "]. Programmer error");
 			}
-			final CacheValue<T> cv = new CacheValue<T>(key, value, expiryPeriod, unit, onRemove);
+			final CacheValue<T> cv = new CacheValue<T>(key, value, expiryPeriod, unit, onRemove, loader);
 			final CacheValue<Object> prior = cacheValuesByKey.put(key, (CacheValue<Object>) cv);
 			cv.boundTime = System.currentTimeMillis();
+			bound(cv);
 			if(prior!=null) {
 				prior.close();
 				fireValueReplaced(key.trim(), prior.value, value);				
 			} else {
 				fireValueAdded(key.trim(), value);
+				evictIfNeeded();
 			}
 			return cv;
 		}
@@ -608,6 +894,7 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 		@SuppressWarnings("unchecked")
 		final CacheValue<T> oldValue = (CacheValue<T>) cacheValuesByKey.remove(key.trim());		
 		if(oldValue==null) return null;
+		unbound(oldValue);
 		oldValue.close();
 		fireValueRemoved(key.trim(), oldValue.value);		
 		return oldValue.value;		
@@ -615,6 +902,10 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 	
 	private GlobalCacheService() {		
 		super(SharedNotificationExecutor.getInstance(), NOTIF_INFOS);
+		maxSize = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_SIZE, DEFAULT_MAX_SIZE);
+		refreshAhead = Math.max(0f, Math.min(1f, ConfigurationHelper.getFloatSystemThenEnvProperty(CONFIG_REFRESH_AHEAD, DEFAULT_REFRESH_AHEAD)));
+		loadTimeout = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_LOAD_TIMEOUT, DEFAULT_LOAD_TIMEOUT);
+		timer.start();
 		JMXHelper.registerMBean(this, objectName);
 	}
 	
@@ -637,8 +928,98 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 		return expiryCount.longValue();
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.cache.GlobalCacheServiceMBean#getMaxSize()
+	 */
+	@Override
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.cache.GlobalCacheServiceMBean#getRefreshAhead()
+	 */
+	@Override
+	public float getRefreshAhead() {
+		return refreshAhead;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.cache.GlobalCacheServiceMBean#getHitCount()
+	 */
+	@Override
+	public long getHitCount() {
+		return hitCount.longValue();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.cache.GlobalCacheServiceMBean#getMissCount()
+	 */
+	@Override
+	public long getMissCount() {
+		return missCount.longValue();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.cache.GlobalCacheServiceMBean#getEvictionCount()
+	 */
+	@Override
+	public long getEvictionCount() {
+		return evictionCount.longValue();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.cache.GlobalCacheServiceMBean#getLoadCount()
+	 */
+	@Override
+	public long getLoadCount() {
+		return loadCount.longValue();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.cache.GlobalCacheServiceMBean#getCoalescedLoadCount()
+	 */
+	@Override
+	public long getCoalescedLoadCount() {
+		return coalescedLoadCount.longValue();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.cache.GlobalCacheServiceMBean#getPendingLoads()
+	 */
+	@Override
+	public int getPendingLoads() {
+		return loadsByKey.size();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.cache.GlobalCacheServiceMBean#getRefreshCount()
+	 */
+	@Override
+	public long getRefreshCount() {
+		return refreshCount.longValue();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.cache.GlobalCacheServiceMBean#getRefreshFailureCount()
+	 */
+	@Override
+	public long getRefreshFailureCount() {
+		return refreshFailureCount.longValue();
+	}
+	
 	public <T> CacheValue<T> newCV(final String k, final T v) {
-		return new CacheValue<T>(k, v, -1, null, null);
+		return new CacheValue<T>(k, v, -1, null, null, null);
 	}
 
 	/**
@@ -654,10 +1035,14 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 		/** The cached value */
 		T value;
 		/** The expiration handle */
-		ScheduledFuture<?> expiryHandle = null;
+		Timeout expiryHandle = null;
+		/** The refresh ahead handle */
+		Timeout refreshHandle = null;
 		final long expireIn;
 		final TimeUnit unit;
 		final Closure<Void> onRemove;
+		/** The closure reloading the value ahead of expiry, or null */
+		final Closure<T> loader;
 		final String key;
 		
 		/**
@@ -669,7 +1054,7 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 		 */
 		@SuppressWarnings("unused")
 		CacheValue(final String k, final T v, final long expireIn, final TimeUnit unit) {
-			this(k, v, expireIn, unit, null);
+			this(k, v, expireIn, unit, null, null);
 		}
 		
 		/**
@@ -680,7 +1065,7 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 		 */
 		@SuppressWarnings("unused")
 		CacheValue(final String k, final T v, final Closure<Void> onRemove) {
-			this(k, v, -1L, null, onRemove);
+			this(k, v, -1L, null, onRemove, null);
 		}
 		
 		/**
@@ -690,24 +1075,34 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 		 */
 		@SuppressWarnings("unused")
 		CacheValue(final String k, final T v) {
-			this(k, v, -1L, null, null);
+			this(k, v, -1L, null, null, null);
 		}
 		
 		
-		CacheValue(final String k, final T v, final long expireIn, final TimeUnit unit, final Closure<Void> onRemove) {
+		/**
+		 * Creates a new CacheValue
+		 * @param k The key
+		 * @param v The value
+		 * @param expireIn The time to expire this entry in
+		 * @param unit The expire time unit
+		 * @param onRemove A closure to call when this value is removed
+		 * @param loader A closure to reload the value ahead of expiry if refresh ahead is enabled
+		 */
+		CacheValue(final String k, final T v, final long expireIn, final TimeUnit unit, final Closure<Void> onRemove, final Closure<T> loader) {
 			this.value = v;
 			this.key = k;
 			boundTime = System.currentTimeMillis();	
 			this.expireIn = expireIn;
 			this.unit = unit==null ? TimeUnit.MILLISECONDS : unit;			
 			this.onRemove = onRemove;
+			this.loader = loader;
 			if(this.expireIn>0) {
-				expiryHandle = scheduler.schedule(new Runnable(){
-					@Override
-					public void run() {
-						remove(key);						
-					}					
-				}, this.expireIn, this.unit);				
+				final long expireMs = this.unit.toMillis(this.expireIn);
+				expiryHandle = timer.newTimeout(t -> expire(CacheValue.this), expireMs, TimeUnit.MILLISECONDS);
+				final long refreshMs = (long)(expireMs * (1f - refreshAhead));
+				if(loader!=null && refreshAhead > 0f && refreshMs > 0L) {
+					refreshHandle = timer.newTimeout(t -> refresh(CacheValue.this), refreshMs, TimeUnit.MILLISECONDS);
+				}
 			}
 		}
 		
@@ -715,12 +1110,19 @@ public class GlobalCacheService extends NotificationBroadcasterSupport implement
 		@Override
 		public void close() {
 			if(expiryHandle!=null) try { 
-				expiryHandle.cancel(true); 
+				expiryHandle.cancel(); 
 			} catch (Exception x) {
 				/* No Op */
 			} finally {
 				expiryHandle = null;
 			}
+			if(refreshHandle!=null) try { 
+				refreshHandle.cancel(); 
+			} catch (Exception x) {
+				/* No Op */
+			} finally {
+				refreshHandle = null;
+			}
 			if(onRemove!=null) {
 				onRemove.call(value);
 			}
@@ -68,5 +68,65 @@ public interface GlobalCacheServiceMBean {
 	 */
 	public int getListenerCount();
 	
+	/**
+	 * Returns the maximum number of cached values
+	 * @return the maximum number of cached values, less than 1 if unbounded
+	 */
+	public int getMaxSize();
+	
+	/**
+	 * Returns the fraction of an expiring value's period before its expiry when it is reloaded
+	 * @return the refresh ahead fraction, 0 if refresh ahead is disabled
+	 */
+	public float getRefreshAhead();
+	
+	/**
+	 * Returns the number of cache hits
+	 * @return the number of cache hits
+	 */
+	public long getHitCount();
+	
+	/**
+	 * Returns the number of cache misses
+	 * @return the number of cache misses
+	 */
+	public long getMissCount();
+	
+	/**
+	 * Returns the number of values evicted to keep the cache within its maximum size
+	 * @return the number of evictions
+	 */
+	public long getEvictionCount();
+	
+	/**
+	 * Returns the number of values created by loads
+	 * @return the number of loads
+	 */
+	public long getLoadCount();
+	
+	/**
+	 * Returns the number of lookups that waited on a load of the same key instead of loading
+	 * @return the number of coalesced loads
+	 */
+	public long getCoalescedLoadCount();
+	
+	/**
+	 * Returns the number of loads in flight
+	 * @return the number of loads in flight
+	 */
+	public int getPendingLoads();
+	
+	/**
+	 * Returns the number of values reloaded ahead of their expiry
+	 * @return the number of refreshes
+	 */
+	public long getRefreshCount();
+	
+	/**
+	 * Returns the number of failed refreshes
+	 * @return the number of failed refreshes
+	 */
+	public long getRefreshFailureCount();
+	
 	
 }
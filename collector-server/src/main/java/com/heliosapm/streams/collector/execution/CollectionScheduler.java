@@ -0,0 +1,506 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.collector.execution;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.codahale.metrics.Histogram;
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+
+/**
+ * <p>Title: CollectionScheduler</p>
+ * <p>Description: Central scheduler for periodic collections. Each schedule fires at a fixed phase within its period,
+ * derived from a hash of the schedule key, so that scripts sharing a period are spread deterministically across it
+ * and each script collects at the same offset from the period boundary on every run. Firings are admitted against the
+ * target host's adaptive concurrency limit ({@link TargetLimiter}) and handed to the {@link CollectorExecutionService}.
+ * A firing is skipped, never queued, if the script is still running, its host is at its limit or the pool rejects it,
+ * so collections of fast hosts never wait behind those of slow ones, and slots missed because the scheduler fell
+ * behind are skipped rather than run late.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.collector.execution.CollectionScheduler</code></p>
+ */
+
+public class CollectionScheduler implements CollectionSchedulerMBean {
+	/** The singleton instance */
+	private static volatile CollectionScheduler instance;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+	/** The scheduler JMX ObjectName */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.streams.collector:service=CollectionScheduler");
+	
+	/** The config key for the scheduler tick duration in ms. */
+	public static final String CONFIG_TICK_DURATION = "collector.scheduler.tick.duration";
+	/** The default scheduler tick duration in ms. */
+	public static final long DEFAULT_TICK_DURATION = 100;
+	/** The config key for the scheduler ticks per wheel */
+	public static final String CONFIG_TICK_COUNT = "collector.scheduler.tick.count";
+	/** The default scheduler ticks per wheel */
+	public static final int DEFAULT_TICK_COUNT = 1024;
+	
+	/**
+	 * Acquires and returns the CollectionScheduler singleton instance
+	 * @return the CollectionScheduler singleton instance
+	 */
+	public static CollectionScheduler getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new CollectionScheduler();
+				}
+			}
+		}
+		return instance;
+	}
+	
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+	/** The timing wheel */
+	private final HashedWheelTimer timer;
+	/** The tick duration in ms. */
+	private final long tickDuration;
+	/** The collection execution service */
+	private final CollectorExecutionService executionService;
+	/** The number of active schedules */
+	private final AtomicInteger scheduleCount = new AtomicInteger(0);
+	/** The number of active schedules per target host */
+	private final Map<String, Integer> hostSchedules = new ConcurrentHashMap<String, Integer>();
+	/** The number of submitted collections */
+	private final LongAdder submitted = new LongAdder();
+	/** The number of missed slots */
+	private final LongAdder missedSlots = new LongAdder();
+	/** The number of runs skipped because the previous run was still executing */
+	private final LongAdder busySkips = new LongAdder();
+	/** The number of runs skipped because the host was at its concurrency limit */
+	private final LongAdder budgetSkips = new LongAdder();
+	/** The number of runs rejected by the collection thread pool */
+	private final LongAdder rejections = new LongAdder();
+	/** The most recent schedule lag in ms. */
+	private volatile long lastLag = 0L;
+	/** The schedule lag histogram */
+	private final Histogram lag = SharedMetricsRegistry.getInstance().histogram("collector.scheduler.lag");
+	/** The slot occupancy histogram */
+	private final Histogram occupancy = SharedMetricsRegistry.getInstance().histogram("collector.scheduler.occupancy");
+	/** The maximum slot occupancy */
+	private volatile long maxOccupancy = 0L;
+	/** The tick the current occupancy count is for. Only accessed on the timer thread */
+	private long occupancyTick = -1L;
+	/** The number of firings in the current occupancy tick. Only accessed on the timer thread */
+	private int occupancyCount = 0;
+	
+	private CollectionScheduler() {
+		tickDuration = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_TICK_DURATION, DEFAULT_TICK_DURATION);
+		final int tickCount = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_TICK_COUNT, DEFAULT_TICK_COUNT);
+		executionService = CollectorExecutionService.getInstance();
+		timer = new HashedWheelTimer(r -> {
+			final Thread t = new Thread(r, "CollectionScheduler");
+			t.setDaemon(true);
+			t.setPriority(Thread.MAX_PRIORITY);
+			return t;
+		}, tickDuration, TimeUnit.MILLISECONDS, tickCount);
+		timer.start();
+		JMXHelper.registerMBean(this, OBJECT_NAME);
+		log.info("CollectionScheduler started. Tick: {} ms", tickDuration);
+	}
+	
+	/**
+	 * Schedules a periodic collection
+	 * @param key The schedule key which determines the phase of the schedule within its period. Should be stable across redeployments.
+	 * @param host The target host the collection's concurrency is limited against
+	 * @param period The collection period
+	 * @param unit The collection period unit
+	 * @param task The collection task
+	 * @return the schedule handle
+	 */
+	public Schedule schedule(final String key, final String host, final long period, final TimeUnit unit, final Callable<?> task) {
+		if(key==null) throw new IllegalArgumentException("The passed key was null");
+		if(task==null) throw new IllegalArgumentException("The passed task was null");
+		if(unit==null) throw new IllegalArgumentException("The passed unit was null");
+		final long periodMs = Math.max(tickDuration, unit.toMillis(period));
+		final Schedule schedule = new Schedule(key, host==null ? key : host, periodMs, phase(key, periodMs, tickDuration), task);
+		scheduleCount.incrementAndGet();
+		hostSchedules.merge(schedule.host, 1, Integer::sum);
+		schedule.arm(System.currentTimeMillis());
+		log.debug("Scheduled [{}] every {} ms at phase {} ms", key, periodMs, schedule.phaseMs);
+		return schedule;
+	}
+	
+	/**
+	 * Computes the deterministic phase of a schedule within its period, rounded down to a tick
+	 * @param key The schedule key
+	 * @param periodMs The period in ms.
+	 * @param tickDuration The tick duration in ms.
+	 * @return the phase in ms.
+	 */
+	public static long phase(final String key, final long periodMs, final long tickDuration) {
+		// murmur3 finalizer so that similar keys do not cluster
+		int h = key.hashCode();
+		h ^= h >>> 16; h *= 0x85ebca6b; h ^= h >>> 13; h *= 0xc2b2ae35; h ^= h >>> 16;
+		final long slots = Math.max(1L, periodMs / tickDuration);
+		return ((h & 0x7fffffffL) % slots) * tickDuration;
+	}
+	
+	/**
+	 * Computes the first slot of a schedule after the passed time
+	 * @param after The time in ms. the slot must follow
+	 * @param periodMs The period in ms.
+	 * @param phaseMs The phase in ms.
+	 * @return the slot time in ms.
+	 */
+	public static long nextSlot(final long after, final long periodMs, final long phaseMs) {
+		return ((after - phaseMs) / periodMs + 1) * periodMs + phaseMs;
+	}
+	
+	/**
+	 * Records the firing of a schedule in the slot occupancy. Called on the timer thread.
+	 * @param slotTime The slot time that fired
+	 */
+	private void recordOccupancy(final long slotTime) {
+		final long tick = slotTime / tickDuration;
+		if(tick!=occupancyTick) {
+			if(occupancyCount > 0) occupancy.update(occupancyCount);
+			occupancyTick = tick;
+			occupancyCount = 0;
+		}
+		occupancyCount++;
+		if(occupancyCount > maxOccupancy) maxOccupancy = occupancyCount;
+	}
+	
+	/**
+	 * <p>Title: Schedule</p>
+	 * <p>Description: The handle to a periodic collection schedule</p> 
+	 * <p><code>com.heliosapm.streams.collector.execution.CollectionScheduler.Schedule</code></p>
+	 */
+	public class Schedule {
+		/** The schedule key */
+		final String key;
+		/** The target host */
+		final String host;
+		/** The period in ms. */
+		final long periodMs;
+		/** The phase in ms. */
+		final long phaseMs;
+		/** The collection task */
+		final Callable<?> task;
+		/** Indicates if the task is running */
+		final AtomicBoolean running = new AtomicBoolean(false);
+		/** The pending timeout */
+		private volatile Timeout timeout = null;
+		/** The next slot time */
+		private volatile long nextSlot = -1L;
+		/** Indicates if this schedule has been cancelled */
+		private volatile boolean cancelled = false;
+		
+		/**
+		 * Creates a new Schedule
+		 * @param key The schedule key
+		 * @param host The target host
+		 * @param periodMs The period in ms.
+		 * @param phaseMs The phase in ms.
+		 * @param task The collection task
+		 */
+		Schedule(final String key, final String host, final long periodMs, final long phaseMs, final Callable<?> task) {
+			this.key = key;
+			this.host = host;
+			this.periodMs = periodMs;
+			this.phaseMs = phaseMs;
+			this.task = task;
+		}
+		
+		/**
+		 * Arms the timeout for the first slot after the passed time
+		 * @param after The time the slot must follow, which is never before the current time
+		 */
+		private void arm(final long after) {
+			if(cancelled) return;
+			nextSlot = nextSlot(after, periodMs, phaseMs);
+			timeout = timer.newTimeout(t -> fire(), Math.max(0L, nextSlot - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		
+		/**
+		 * Fires this schedule's slot, re-arming for the next slot first
+		 */
+		private void fire() {
+			if(cancelled) return;
+			final long slot = nextSlot;
+			final long now = System.currentTimeMillis();
+			final long late = now - slot;
+			lastLag = late;
+			lag.update(late);
+			if(late >= periodMs) missedSlots.add(late / periodMs);
+			// the wheel can fire a little before the slot, so re-arm past it or the same slot fires twice
+			arm(Math.max(now, slot + 1));
+			recordOccupancy(slot);
+			if(late >= periodMs) return;
+			if(!running.compareAndSet(false, true)) {
+				busySkips.increment();
+				return;
+			}
+			final TargetLimiter limiter = executionService.limiter(host);
+			if(!limiter.tryAcquire()) {
+				running.set(false);
+				budgetSkips.increment();
+				return;
+			}
+			submitted.increment();
+			executionService.execute(new AdmittedRun(this, limiter));
+		}
+		
+		/**
+		 * Cancels this schedule, removing its host's limiter if this was the host's last schedule
+		 */
+		public void cancel() {
+			if(!cancelled) {
+				cancelled = true;
+				scheduleCount.decrementAndGet();
+				hostSchedules.computeIfPresent(host, (h, n) -> {
+					if(n > 1) return n - 1;
+					executionService.removeLimiter(h);
+					return null;
+				});
+				final Timeout t = timeout;
+				if(t!=null) t.cancel();
+			}
+		}
+		
+		/**
+		 * Indicates if this schedule has been cancelled
+		 * @return true if cancelled, false otherwise
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+		
+		/**
+		 * Returns the delay until the next slot
+		 * @param unit The unit to return the delay in
+		 * @return the delay
+		 */
+		public long getDelay(final TimeUnit unit) {
+			return unit.convert(Math.max(0L, nextSlot - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		
+		/**
+		 * Returns the phase of this schedule within its period in ms.
+		 * @return the phase in ms.
+		 */
+		public long getPhase() {
+			return phaseMs;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "Schedule [key=" + key + ", host=" + host + ", period=" + periodMs + ", phase=" + phaseMs + "]";
+		}
+	}
+	
+	/**
+	 * <p>Title: AdmittedRun</p>
+	 * <p>Description: An admitted collection run which releases its host limiter slot when it completes or is rejected</p> 
+	 * <p><code>com.heliosapm.streams.collector.execution.CollectionScheduler.AdmittedRun</code></p>
+	 */
+	private class AdmittedRun implements Runnable, CollectorExecutionService.RejectionAware {
+		/** The schedule being run */
+		private final Schedule schedule;
+		/** The host limiter to release */
+		private final TargetLimiter limiter;
+		
+		/**
+		 * Creates a new AdmittedRun
+		 * @param schedule The schedule being run
+		 * @param limiter The host limiter to release
+		 */
+		AdmittedRun(final Schedule schedule, final TargetLimiter limiter) {
+			this.schedule = schedule;
+			this.limiter = limiter;
+		}
+		
+		@Override
+		public void run() {
+			limiter.started();
+			final long start = System.nanoTime();
+			boolean success = false;
+			try {
+				schedule.task.call();
+				success = true;
+			} catch (Exception ex) {
+				log.error("Collection failed for [{}]", schedule.key, ex);
+			} finally {
+				limiter.release(System.nanoTime() - start, success);
+				schedule.running.set(false);
+			}
+		}
+		
+		@Override
+		public void onRejected() {
+			rejections.increment();
+			limiter.cancel();
+			schedule.running.set(false);
+		}
+		
+		@Override
+		public String toString() {
+			return "CollectionRun [" + schedule.key + "]";
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getTickDuration()
+	 */
+	@Override
+	public long getTickDuration() {
+		return tickDuration;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getTargetLimits()
+	 */
+	@Override
+	public Map<String, String> getTargetLimits() {
+		final Map<String, TargetLimiter> limiters = executionService.getLimiters();
+		final Map<String, String> map = new HashMap<String, String>(limiters.size());
+		for(TargetLimiter limiter: limiters.values()) {
+			map.put(limiter.getTarget(), "limit=" + limiter.getLimit() + ", inFlight=" + limiter.getInFlight() 
+				+ ", queued=" + limiter.getQueued() + ", rejections=" + limiter.getRejections() + ", meanLatency=" + limiter.getMeanLatency());
+		}
+		return map;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getScheduleCount()
+	 */
+	@Override
+	public int getScheduleCount() {
+		return scheduleCount.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getSubmittedCount()
+	 */
+	@Override
+	public long getSubmittedCount() {
+		return submitted.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getMissedSlots()
+	 */
+	@Override
+	public long getMissedSlots() {
+		return missedSlots.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getBusySkips()
+	 */
+	@Override
+	public long getBusySkips() {
+		return busySkips.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getBudgetSkips()
+	 */
+	@Override
+	public long getBudgetSkips() {
+		return budgetSkips.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getRejectedRuns()
+	 */
+	@Override
+	public long getRejectedRuns() {
+		return rejections.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getLastLag()
+	 */
+	@Override
+	public long getLastLag() {
+		return lastLag;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getMeanLag()
+	 */
+	@Override
+	public double getMeanLag() {
+		return lag.getSnapshot().getMean();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getP99Lag()
+	 */
+	@Override
+	public double getP99Lag() {
+		return lag.getSnapshot().get99thPercentile();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getMaxSlotOccupancy()
+	 */
+	@Override
+	public long getMaxSlotOccupancy() {
+		return maxOccupancy;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.execution.CollectionSchedulerMBean#getMeanSlotOccupancy()
+	 */
+	@Override
+	public double getMeanSlotOccupancy() {
+		return occupancy.getSnapshot().getMean();
+	}
+}
@@ -0,0 +1,109 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.collector.execution;
+
+import java.util.Map;
+
+/**
+ * <p>Title: CollectionSchedulerMBean</p>
+ * <p>Description: JMX MBean interface for the {@link CollectionScheduler}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.collector.execution.CollectionSchedulerMBean</code></p>
+ */
+
+public interface CollectionSchedulerMBean {
+	/**
+	 * Returns the scheduler tick duration in ms.
+	 * @return the tick duration in ms.
+	 */
+	public long getTickDuration();
+	
+	/**
+	 * Returns the adaptive concurrency limit, in flight count, rejections and mean latency of each target host
+	 * @return the target limiter states keyed by target host
+	 */
+	public Map<String, String> getTargetLimits();
+	
+	/**
+	 * Returns the number of active schedules
+	 * @return the number of active schedules
+	 */
+	public int getScheduleCount();
+	
+	/**
+	 * Returns the number of collections submitted for execution
+	 * @return the number of submitted collections
+	 */
+	public long getSubmittedCount();
+	
+	/**
+	 * Returns the number of slots skipped because the scheduler fired more than a period late
+	 * @return the number of missed slots
+	 */
+	public long getMissedSlots();
+	
+	/**
+	 * Returns the number of runs skipped because the script's previous run had not completed
+	 * @return the number of busy skips
+	 */
+	public long getBusySkips();
+	
+	/**
+	 * Returns the number of runs skipped because the target host was at its concurrency limit
+	 * @return the number of budget skips
+	 */
+	public long getBudgetSkips();
+	
+	/**
+	 * Returns the number of runs skipped because the collection thread pool rejected them
+	 * @return the number of rejected runs
+	 */
+	public long getRejectedRuns();
+	
+	/**
+	 * Returns the delay between the most recent slot time and the actual firing in ms.
+	 * @return the most recent schedule lag in ms.
+	 */
+	public long getLastLag();
+	
+	/**
+	 * Returns the mean schedule lag in ms.
+	 * @return the mean schedule lag in ms.
+	 */
+	public double getMeanLag();
+	
+	/**
+	 * Returns the 99th percentile schedule lag in ms.
+	 * @return the 99th percentile schedule lag in ms.
+	 */
+	public double getP99Lag();
+	
+	/**
+	 * Returns the maximum number of scripts fired in one tick
+	 * @return the maximum slot occupancy
+	 */
+	public long getMaxSlotOccupancy();
+	
+	/**
+	 * Returns the mean number of scripts fired per occupied tick
+	 * @return the mean slot occupancy
+	 */
+	public double getMeanSlotOccupancy();
+}
@@ -20,8 +20,11 @@ package com.heliosapm.streams.collector.execution;
 
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionHandler;
@@ -34,13 +37,16 @@ import javax.management.ObjectName;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.utils.jmx.JMXHelper;
 import com.heliosapm.utils.jmx.JMXManagedThreadPool;
 
 
 /**
  * <p>Title: CollectorExecutionService</p>
- * <p>Description: A fork join pool for collection executions</p> 
+ * <p>Description: A fork join pool for collection executions, with an adaptive concurrency limit per collection
+ * target ({@link TargetLimiter}) so that a slow or hung target cannot occupy more than its share of the pool's threads
+ * or of its queue. A target's limiter is removed with the last schedule against the target.</p> 
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.streams.collector.execution.CollectorExecutionService</code></p>
  */
@@ -52,6 +58,33 @@ public class CollectorExecutionService implements UncaughtExceptionHandler, Reje
 	private static final Object lock = new Object();
 	/** The fork join pool JMX ObjectName */
 	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.streams.collector:service=CollectionThreadPool");
+	
+	/** The config key for the initial concurrency limit of a target */
+	public static final String CONFIG_TARGET_INITIAL_LIMIT = "collector.target.limit.initial";
+	/** The default initial concurrency limit of a target */
+	public static final int DEFAULT_TARGET_INITIAL_LIMIT = 4;
+	/** The config key for the minimum concurrency limit of a target */
+	public static final String CONFIG_TARGET_MIN_LIMIT = "collector.target.limit.min";
+	/** The default minimum concurrency limit of a target */
+	public static final int DEFAULT_TARGET_MIN_LIMIT = 1;
+	/** The config key for the fraction of the pool's maximum threads a single target may occupy */
+	public static final String CONFIG_TARGET_POOL_SHARE = "collector.target.poolshare";
+	/** The default fraction of the pool's maximum threads a single target may occupy */
+	public static final float DEFAULT_TARGET_POOL_SHARE = 0.25f;
+	/** The config key for the ratio of smoothed to baseline latency above which a target's limit is decreased */
+	public static final String CONFIG_TARGET_TOLERANCE = "collector.target.latency.tolerance";
+	/** The default ratio of smoothed to baseline latency above which a target's limit is decreased */
+	public static final double DEFAULT_TARGET_TOLERANCE = 2.0d;
+	/** The config key for the factor a target's limit is multiplied by on a decrease */
+	public static final String CONFIG_TARGET_BACKOFF = "collector.target.backoff";
+	/** The default factor a target's limit is multiplied by on a decrease */
+	public static final double DEFAULT_TARGET_BACKOFF = 0.75d;
+	/** The config key for the fraction of the pool's queue a single target's waiting runs may occupy */
+	public static final String CONFIG_TARGET_QUEUE_SHARE = "collector.target.queueshare";
+	/** The default fraction of the pool's queue a single target's waiting runs may occupy */
+	public static final float DEFAULT_TARGET_QUEUE_SHARE = 0.125f;
+	/** The collection pool's queue size */
+	public static final int QUEUE_SIZE = 128;
 
 	/**
 	 * Acquires and returns the CollectorExecutionService singleton instance
@@ -73,19 +106,40 @@ public class CollectorExecutionService implements UncaughtExceptionHandler, Reje
 	protected final Logger log = LogManager.getLogger(getClass());
 	/** The execution pool */
 	private final JMXManagedThreadPool threadPool;
+	/** The target limiters keyed by target */
+	private final Map<String, TargetLimiter> limiters = new ConcurrentHashMap<String, TargetLimiter>();
+	/** The initial concurrency limit of a target */
+	private final int targetInitialLimit;
+	/** The minimum concurrency limit of a target */
+	private final int targetMinLimit;
+	/** The maximum concurrency limit of a target */
+	private final int targetMaxLimit;
+	/** The ratio of smoothed to baseline latency above which a target's limit is decreased */
+	private final double targetTolerance;
+	/** The factor a target's limit is multiplied by on a decrease */
+	private final double targetBackoff;
+	/** The maximum number of a target's runs waiting for a pool thread */
+	private final int targetMaxQueued;
 
 	
 	
 	private CollectorExecutionService() {
+		final int maxPoolSize = Runtime.getRuntime().availableProcessors() * 6;
+		targetInitialLimit = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_TARGET_INITIAL_LIMIT, DEFAULT_TARGET_INITIAL_LIMIT);
+		targetMinLimit = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_TARGET_MIN_LIMIT, DEFAULT_TARGET_MIN_LIMIT);
+		targetMaxLimit = Math.max(1, (int)(maxPoolSize * ConfigurationHelper.getFloatSystemThenEnvProperty(CONFIG_TARGET_POOL_SHARE, DEFAULT_TARGET_POOL_SHARE)));
+		targetTolerance = ConfigurationHelper.getDoubleSystemThenEnvProperty(CONFIG_TARGET_TOLERANCE, DEFAULT_TARGET_TOLERANCE);
+		targetBackoff = ConfigurationHelper.getDoubleSystemThenEnvProperty(CONFIG_TARGET_BACKOFF, DEFAULT_TARGET_BACKOFF);
+		targetMaxQueued = Math.max(1, (int)(QUEUE_SIZE * ConfigurationHelper.getFloatSystemThenEnvProperty(CONFIG_TARGET_QUEUE_SHARE, DEFAULT_TARGET_QUEUE_SHARE)));
 		threadPool =  JMXManagedThreadPool.builder()
 			.corePoolSize(Runtime.getRuntime().availableProcessors() * 3)
-			.maxPoolSize(Runtime.getRuntime().availableProcessors() * 6)
+			.maxPoolSize(maxPoolSize)
 			.keepAliveTimeMs(60000)
 			.objectName(OBJECT_NAME)
 			.poolName(getClass().getSimpleName())
 			.prestart(Runtime.getRuntime().availableProcessors() * 3)
 			.publishJMX(true)
-			.queueSize(128)
+			.queueSize(QUEUE_SIZE)
 			//.rejectionHandler(new ThreadPoolExecutor.CallerRunsPolicy())
 			.rejectionHandler(this)
 			.uncaughtHandler(this)
@@ -99,6 +153,32 @@ public class CollectorExecutionService implements UncaughtExceptionHandler, Reje
 	public void execute(final Runnable task) {
 		threadPool.execute(task);
 	}
+	
+	/**
+	 * Returns the concurrency limiter for the passed collection target, creating it if necessary
+	 * @param target The target, typically a host or endpoint name
+	 * @return the target's limiter
+	 */
+	public TargetLimiter limiter(final String target) {
+		return limiters.computeIfAbsent(target, t -> new TargetLimiter(t, targetInitialLimit, targetMinLimit, targetMaxLimit, targetTolerance, targetBackoff, targetMaxQueued));
+	}
+	
+	/**
+	 * Removes the concurrency limiter of a collection target that has gone away, along with its metrics
+	 * @param target The target, typically a host or endpoint name
+	 */
+	public void removeLimiter(final String target) {
+		final TargetLimiter limiter = limiters.remove(target);
+		if(limiter!=null) limiter.close();
+	}
+	
+	/**
+	 * Returns the target limiters keyed by target
+	 * @return the target limiters
+	 */
+	public Map<String, TargetLimiter> getLimiters() {
+		return Collections.unmodifiableMap(limiters);
+	}
 
 	public <T> Future<T> submit(final Callable<T> task) {
 		return threadPool.submit(task);
@@ -145,6 +225,21 @@ public class CollectorExecutionService implements UncaughtExceptionHandler, Reje
 	public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
 		log.error("\t !!! ---> CollectionThreadPool Task Rejected [{}]\n\tActive Count: [{}], Pool Size: [{}], Q Capacity: [{}]", 
 				r, executor.getActiveCount(), executor.getPoolSize(), executor.getQueue().remainingCapacity());
+		if(r instanceof RejectionAware) {
+			((RejectionAware)r).onRejected();
+		}
+	}
+	
+	/**
+	 * <p>Title: RejectionAware</p>
+	 * <p>Description: Implemented by tasks that need to know if the collection thread pool rejected them</p> 
+	 * <p><code>com.heliosapm.streams.collector.execution.CollectorExecutionService.RejectionAware</code></p>
+	 */
+	public static interface RejectionAware {
+		/**
+		 * Callback when the task is rejected by the collection thread pool
+		 */
+		public void onRejected();
 	}
 	
 	
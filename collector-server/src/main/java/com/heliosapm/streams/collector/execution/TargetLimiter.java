@@ -0,0 +1,290 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.collector.execution;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
+
+/**
+ * <p>Title: TargetLimiter</p>
+ * <p>Description: An adaptive concurrency limit on the collections running against one target. The limit grows additively
+ * while the target is saturated and its latency stays near its baseline, and shrinks multiplicatively, at most once per
+ * smoothed latency interval, when a collection fails or the smoothed latency rises past a tolerance of the baseline.
+ * The baseline follows latency drops immediately and rises only slowly, so a lasting latency increase eventually becomes
+ * the new normal instead of pinning the limit at its minimum.</p> 
+ * <p>The runs of one target waiting for a pool thread are also capped, so a slow target cannot fill the pool's queue
+ * with work that will wait behind its own running collections.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.collector.execution.TargetLimiter</code></p>
+ */
+
+public class TargetLimiter {
+	/** The smoothed latency weight of a new sample */
+	public static final double EWMA_ALPHA = 0.2;
+	/** The weight of a sample above the baseline */
+	public static final double BASELINE_ALPHA = 0.01;
+	/** Characters not allowed in a target's metric names */
+	private static final Pattern METRIC_UNSAFE = Pattern.compile("[^A-Za-z0-9_\\-]");
+	
+	/** The target name */
+	protected final String target;
+	/** The minimum limit */
+	protected final int minLimit;
+	/** The maximum limit */
+	protected final int maxLimit;
+	/** The ratio of smoothed latency to baseline latency above which the limit is decreased */
+	protected final double tolerance;
+	/** The factor the limit is multiplied by on a decrease */
+	protected final double backoff;
+	/** The maximum number of admitted collections waiting for a pool thread */
+	protected final int maxQueued;
+	/** The number of collections in flight, including those waiting for a pool thread */
+	protected final AtomicInteger inFlight = new AtomicInteger(0);
+	/** The number of admitted collections waiting for a pool thread */
+	protected final AtomicInteger queued = new AtomicInteger(0);
+	/** The current limit, fractional so that additive increases can accumulate */
+	protected volatile double limit;
+	/** The smoothed latency in ns. Guarded by this */
+	private double ewmaNanos = 0d;
+	/** The baseline latency in ns. Guarded by this */
+	private double baselineNanos = 0d;
+	/** The nano time of the last decrease, zero before the first. Guarded by this */
+	private long lastDecrease = 0L;
+	/** The rejection counter */
+	protected final Counter rejections;
+	/** The latency histogram in ms. */
+	protected final Histogram latency;
+	/** The metrics this limiter registered, removed when the target goes away */
+	private final List<Metric> metrics = new CopyOnWriteArrayList<Metric>();
+	
+	/**
+	 * Creates a new TargetLimiter
+	 * @param target The target name
+	 * @param initialLimit The initial limit
+	 * @param minLimit The minimum limit
+	 * @param maxLimit The maximum limit
+	 * @param tolerance The ratio of smoothed latency to baseline latency above which the limit is decreased
+	 * @param backoff The factor the limit is multiplied by on a decrease
+	 * @param maxQueued The maximum number of admitted collections waiting for a pool thread
+	 */
+	public TargetLimiter(final String target, final int initialLimit, final int minLimit, final int maxLimit, final double tolerance, final double backoff, final int maxQueued) {
+		if(target==null) throw new IllegalArgumentException("The passed target was null");
+		this.target = target;
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.tolerance = tolerance;
+		this.backoff = backoff;
+		this.maxQueued = Math.max(1, maxQueued);
+		limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+		final String prefix = "collector.target." + metricName(target) + ".";
+		final SharedMetricsRegistry registry = SharedMetricsRegistry.getInstance();
+		rejections = registry.counter(prefix + "rejections");
+		latency = registry.histogram(prefix + "latency");
+		metrics.add(rejections);
+		metrics.add(latency);
+		gauge(registry, prefix + "inflight", new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return inFlight.get();
+			}
+		});
+		gauge(registry, prefix + "queued", new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return queued.get();
+			}
+		});
+		gauge(registry, prefix + "limit", new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return getLimit();
+			}
+		});
+	}
+	
+	/**
+	 * Returns the metric name segment for the passed target. Targets containing characters not allowed in metric names
+	 * are suffixed with the hash of the raw target, so that e.g. <code>a/b</code> and <code>a_b</code> do not collide.
+	 * @param target The target name
+	 * @return the metric name segment
+	 */
+	static String metricName(final String target) {
+		final String safe = METRIC_UNSAFE.matcher(target).replaceAll("_");
+		return safe.equals(target) ? safe : safe + "_" + Integer.toHexString(target.hashCode());
+	}
+	
+	/**
+	 * Registers a gauge, tolerating an existing metric of the same name, since the limiter is created
+	 * on the scheduler's timer thread where a registration failure must not escape
+	 * @param registry The registry to register with
+	 * @param name The gauge name
+	 * @param provider The gauge value provider
+	 */
+	private void gauge(final SharedMetricsRegistry registry, final String name, final Callable<Integer> provider) {
+		try {
+			metrics.add(registry.gauge(name, provider));
+		} catch (IllegalArgumentException iae) {
+			/* No Op: another target already owns the name, the limiter works without the gauge */
+		}
+	}
+	
+	/**
+	 * Acquires a slot if fewer collections than the limit are in flight and fewer than the queue cap are waiting for a pool thread.
+	 * The acquired slot counts as waiting until {@link #started()} is called.
+	 * @return true if a slot was acquired, false if the target is at its limit
+	 */
+	public boolean tryAcquire() {
+		for(;;) {
+			final int q = queued.get();
+			if(q >= maxQueued) {
+				rejections.inc();
+				return false;
+			}
+			if(queued.compareAndSet(q, q + 1)) break;
+		}
+		for(;;) {
+			final int n = inFlight.get();
+			if(n >= (int)limit) {
+				queued.decrementAndGet();
+				rejections.inc();
+				return false;
+			}
+			if(inFlight.compareAndSet(n, n + 1)) return true;
+		}
+	}
+	
+	/**
+	 * Marks an acquired slot's collection as started on a pool thread
+	 */
+	public void started() {
+		queued.decrementAndGet();
+	}
+	
+	/**
+	 * Releases a slot after its collection completed, adjusting the limit from the collection's outcome
+	 * @param elapsedNanos The elapsed time of the collection in ns.
+	 * @param success true if the collection succeeded, false if it failed
+	 */
+	public void release(final long elapsedNanos, final boolean success) {
+		final int n = inFlight.getAndDecrement();
+		latency.update(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+		synchronized(this) {
+			ewmaNanos = ewmaNanos==0d ? elapsedNanos : ewmaNanos + (elapsedNanos - ewmaNanos) * EWMA_ALPHA;
+			baselineNanos = (baselineNanos==0d || elapsedNanos < baselineNanos) ? elapsedNanos : baselineNanos + (elapsedNanos - baselineNanos) * BASELINE_ALPHA;
+			if(!success || ewmaNanos > baselineNanos * tolerance) {
+				final long now = System.nanoTime();
+				if(lastDecrease==0L || now - lastDecrease > ewmaNanos) {
+					limit = Math.max(minLimit, limit * backoff);
+					lastDecrease = now;
+				}
+			} else if(n >= (int)limit) {
+				limit = Math.min(maxLimit, limit + 1d / limit);
+			}
+		}
+	}
+	
+	/**
+	 * Releases a slot whose collection never ran, without adjusting the limit
+	 */
+	public void cancel() {
+		queued.decrementAndGet();
+		inFlight.decrementAndGet();
+	}
+	
+	/**
+	 * Removes this limiter's metrics from the shared registry once its target has gone away
+	 */
+	public void close() {
+		SharedMetricsRegistry.getInstance().removeMatching(new MetricFilter() {
+			@Override
+			public boolean matches(final String name, final Metric metric) {
+				return metrics.contains(metric);
+			}
+		});
+	}
+	
+	/**
+	 * Returns the target name
+	 * @return the target name
+	 */
+	public String getTarget() {
+		return target;
+	}
+	
+	/**
+	 * Returns the current limit
+	 * @return the current limit
+	 */
+	public int getLimit() {
+		return (int)limit;
+	}
+	
+	/**
+	 * Returns the number of collections in flight
+	 * @return the number of collections in flight
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+	
+	/**
+	 * Returns the number of admitted collections waiting for a pool thread
+	 * @return the number of waiting collections
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+	
+	/**
+	 * Returns the number of rejected acquisitions
+	 * @return the number of rejections
+	 */
+	public long getRejections() {
+		return rejections.getCount();
+	}
+	
+	/**
+	 * Returns the mean collection latency in ms.
+	 * @return the mean latency
+	 */
+	public double getMeanLatency() {
+		return latency.getSnapshot().getMean();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "TargetLimiter [target=" + target + ", limit=" + getLimit() + ", inFlight=" + getInFlight() 
+			+ ", queued=" + getQueued() + ", rejections=" + getRejections() + ", meanLatency=" + getMeanLatency() + "]";
+	}
+}
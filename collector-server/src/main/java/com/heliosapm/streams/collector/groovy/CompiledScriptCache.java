@@ -0,0 +1,455 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.collector.groovy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.codehaus.groovy.tools.GroovyClass;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovySystem;
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: CompiledScriptCache</p>
+ * <p>Description: An on-disk cache of compiled script bytecode, keyed by a digest of everything the compiled classes depend on:
+ * the prejected source (which already has linked files, property tokens and <b><code>@Dependency</code></b> injections resolved),
+ * the auto imports, the relevant compiler configuration, the fixture and lib classpath and the groovy version.
+ * An unchanged script is loaded straight from its cached bytecode instead of being recompiled.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.collector.groovy.CompiledScriptCache</code></p>
+ */
+
+public class CompiledScriptCache {
+	/** The cache file format version, part of every key so a format change invalidates old entries */
+	public static final int FORMAT_VERSION = 1;
+	/** The cache file extension */
+	public static final String CACHE_FILE_EXT = ".gsc";
+	/** The key digest algorithm */
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+	/** The key component charset */
+	public static final Charset UTF8 = Charset.forName("UTF8");
+	/** Hex digits for rendering keys */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+	/** The cache directory */
+	protected final File cacheDirectory;
+	/** The keys looked up or written since the cache was created */
+	protected final Set<String> touchedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/** The cache hit counter */
+	protected final LongAdder hits = new LongAdder();
+	/** The cache miss counter */
+	protected final LongAdder misses = new LongAdder();
+	/** The cache write counter */
+	protected final LongAdder writes = new LongAdder();
+	/** The cache read or write error counter */
+	protected final LongAdder errors = new LongAdder();
+
+	/**
+	 * Creates a new CompiledScriptCache
+	 * @param cacheDirectory The directory the cache files are kept in
+	 */
+	public CompiledScriptCache(final File cacheDirectory) {
+		if(cacheDirectory==null) throw new IllegalArgumentException("The passed cache directory was null");
+		this.cacheDirectory = cacheDirectory.getAbsoluteFile();
+		this.cacheDirectory.mkdirs();
+		if(!this.cacheDirectory.isDirectory()) throw new IllegalArgumentException("Failed to create cache directory [" + cacheDirectory + "]");
+		log.info("Compiled script cache directory: [{}]", this.cacheDirectory);
+	}
+	
+	/**
+	 * Computes the cache key for the passed source
+	 * @param source The script source
+	 * @param imports The auto imports applied to the script
+	 * @param config The compiler configuration
+	 * @param classpathFingerprint The fingerprint of the compilation classpath
+	 * @return the hex encoded key
+	 */
+	public String key(final ByteBufReaderSource source, final Collection<String> imports, final CompilerConfiguration config, final String classpathFingerprint) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			update(digest, "v" + FORMAT_VERSION);
+			update(digest, GroovySystem.getVersion());
+			update(digest, source.getClassName());
+			update(digest, source.getSourceFile().toPath().toRealPath().toString());
+			update(digest, source.getPrejectedSource());
+			update(digest, new TreeSet<String>(imports).toString());
+			update(digest, config.getScriptBaseClass());
+			update(digest, config.getTargetBytecode());
+			update(digest, config.getSourceEncoding());
+			update(digest, String.valueOf(config.getDebug()));
+			update(digest, new TreeMap<String, Boolean>(config.getOptimizationOptions()).toString());
+			update(digest, new TreeSet<String>(config.getDisabledGlobalASTTransformations()==null ? Collections.<String>emptySet() : config.getDisabledGlobalASTTransformations()).toString());
+			update(digest, config.getClasspath().toString());
+			for(CompilationCustomizer cc: config.getCompilationCustomizers()) {
+				update(digest, cc.getClass().getName());
+			}
+			update(digest, classpathFingerprint);
+			return hex(digest.digest());
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to compute cache key for [" + source.getSourceFile() + "]", ex);
+		}
+	}
+	
+	private static void update(final MessageDigest digest, final String value) {
+		digest.update(String.valueOf(value).getBytes(UTF8));
+		digest.update((byte)0);
+	}
+	
+	private static String hex(final byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0F];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0x0F];
+		}
+		return new String(chars);
+	}
+	
+	/**
+	 * Computes a fingerprint of the names, sizes and timestamps of the files under the passed directories
+	 * @param dirs The classpath directories
+	 * @return the fingerprint
+	 */
+	public static String fingerprint(final File...dirs) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			for(File dir: dirs) {
+				final List<File> files = new ArrayList<File>();
+				listFiles(dir, files);
+				Collections.sort(files);
+				for(File f: files) {
+					update(digest, f.getAbsolutePath() + ":" + f.length() + ":" + f.lastModified());
+				}
+			}
+			return hex(digest.digest());
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to compute classpath fingerprint", ex);
+		}
+	}
+	
+	/**
+	 * Computes a cheap stamp of the modification times of the passed directories and all their sub directories.
+	 * The stamp changes when a file is added, removed or renamed in any of them, without listing the files.
+	 * @param dirs The classpath directories
+	 * @return the stamp
+	 */
+	public static long directoryStamp(final File...dirs) {
+		long stamp = 17L;
+		for(File dir: dirs) {
+			stamp = directoryStamp(dir, stamp);
+		}
+		return stamp;
+	}
+	
+	private static long directoryStamp(final File dir, final long stamp) {
+		if(dir==null || !dir.isDirectory()) return stamp * 31L;
+		long s = stamp * 31L + dir.lastModified();
+		final File[] subDirs = dir.listFiles(File::isDirectory);
+		if(subDirs!=null) {
+			for(File f: subDirs) {
+				s = directoryStamp(f, s);
+			}
+		}
+		return s;
+	}
+	
+	private static void listFiles(final File dir, final List<File> files) {
+		final File[] children = dir==null ? null : dir.listFiles();
+		if(children==null) return;
+		for(File f: children) {
+			if(f.isDirectory()) listFiles(f, files);
+			else files.add(f);
+		}
+	}
+	
+	/**
+	 * Returns the cached compilation for the passed key
+	 * @param key The cache key
+	 * @return the cached compilation or null if there is none or it could not be read
+	 */
+	public CompiledScript get(final String key) {
+		touchedKeys.add(key);
+		final File f = cacheFile(key);
+		if(!f.isFile()) {
+			misses.increment();
+			return null;
+		}
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if(dis.readInt()!=FORMAT_VERSION) throw new IOException("Unexpected cache file format");
+			final String mainClassName = dis.readUTF();
+			final int count = dis.readInt();
+			final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>(count);
+			for(int i = 0; i < count; i++) {
+				final String name = dis.readUTF();
+				final byte[] bytes = new byte[dis.readInt()];
+				dis.readFully(bytes);
+				classes.put(name, bytes);
+			}
+			hits.increment();
+			return new CompiledScript(mainClassName, classes);
+		} catch (Exception ex) {
+			errors.increment();
+			misses.increment();
+			log.warn("Discarding unreadable cache file [{}]: {}", f, ex.toString());
+			f.delete();
+			return null;
+		} finally {
+			if(dis!=null) try { dis.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+	
+	/**
+	 * Writes the passed compilation to the cache. Failures are logged and counted but not thrown
+	 * since the cache is only an optimization.
+	 * @param key The cache key
+	 * @param compiled The compilation to cache
+	 */
+	public void put(final String key, final CompiledScript compiled) {
+		touchedKeys.add(key);
+		final File f = cacheFile(key);
+		File tmp = null;
+		DataOutputStream dos = null;
+		try {
+			tmp = File.createTempFile(key, ".tmp", cacheDirectory);
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			dos.writeInt(FORMAT_VERSION);
+			dos.writeUTF(compiled.mainClassName);
+			dos.writeInt(compiled.classes.size());
+			for(Map.Entry<String, byte[]> entry: compiled.classes.entrySet()) {
+				dos.writeUTF(entry.getKey());
+				dos.writeInt(entry.getValue().length);
+				dos.write(entry.getValue());
+			}
+			dos.close();
+			dos = null;
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			writes.increment();
+		} catch (Exception ex) {
+			errors.increment();
+			log.warn("Failed to write cache file [{}]: {}", f, ex.toString());
+		} finally {
+			if(dos!=null) try { dos.close(); } catch (Exception x) {/* No Op */}
+			if(tmp!=null && tmp.exists()) tmp.delete();
+		}
+	}
+	
+	/**
+	 * Deletes the cache files that have not been looked up or written since the cache was created.
+	 * Called once startup compilation is complete, when every deployed script has been looked up.
+	 * @return the number of deleted cache files
+	 */
+	public int prune() {
+		int deleted = 0;
+		final File[] files = cacheDirectory.listFiles();
+		if(files==null) return 0;
+		for(File f: files) {
+			final String name = f.getName();
+			if(!name.endsWith(CACHE_FILE_EXT)) continue;
+			if(!touchedKeys.contains(name.substring(0, name.length() - CACHE_FILE_EXT.length()))) {
+				if(f.delete()) deleted++;
+			}
+		}
+		if(deleted > 0) log.info("Pruned [{}] stale compiled script cache files", deleted);
+		return deleted;
+	}
+	
+	private File cacheFile(final String key) {
+		return new File(cacheDirectory, key + CACHE_FILE_EXT);
+	}
+	
+	/**
+	 * Compiles the passed source to bytecode without defining any classes
+	 * @param source The script source
+	 * @param config The compiler configuration
+	 * @param gcl The class loader used to resolve classes referenced by the source
+	 * @return the compilation
+	 * @throws CompilationFailedException thrown if the source fails to compile
+	 */
+	public static CompiledScript compile(final ByteBufReaderSource source, final CompilerConfiguration config, final GroovyClassLoader gcl) throws CompilationFailedException {
+		final CompilationUnit cu = new CompilationUnit(config, null, gcl);
+		final SourceUnit su = new SourceUnit(source.getClassName(), source, config, gcl, cu.getErrorCollector());
+		cu.addSource(su);
+		cu.compile(Phases.CLASS_GENERATION);
+		@SuppressWarnings("unchecked")
+		final List<GroovyClass> generated = cu.getClasses();
+		final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>(generated.size());
+		for(GroovyClass gc: generated) {
+			classes.put(gc.getName(), gc.getBytes());
+		}
+		final String mainClassName = classes.containsKey(source.getClassName()) ? source.getClassName() : su.getAST().getClasses().get(0).getName();
+		return new CompiledScript(mainClassName, classes);
+	}
+	
+	/**
+	 * Returns the number of cache hits
+	 * @return the number of cache hits
+	 */
+	public long getHits() {
+		return hits.longValue();
+	}
+	
+	/**
+	 * Returns the number of cache misses
+	 * @return the number of cache misses
+	 */
+	public long getMisses() {
+		return misses.longValue();
+	}
+	
+	/**
+	 * Returns the number of cache writes
+	 * @return the number of cache writes
+	 */
+	public long getWrites() {
+		return writes.longValue();
+	}
+	
+	/**
+	 * Returns the number of cache read or write errors
+	 * @return the number of cache errors
+	 */
+	public long getErrors() {
+		return errors.longValue();
+	}
+	
+	/**
+	 * Returns the cache directory
+	 * @return the cache directory
+	 */
+	public File getCacheDirectory() {
+		return cacheDirectory;
+	}
+	
+	/**
+	 * <p>Title: CompiledScript</p>
+	 * <p>Description: The bytecode of the classes compiled from one script source</p> 
+	 * <p><code>com.heliosapm.streams.collector.groovy.CompiledScriptCache.CompiledScript</code></p>
+	 */
+	public static class CompiledScript {
+		/** The name of the script class */
+		final String mainClassName;
+		/** The bytecode of all the compiled classes keyed by class name */
+		final Map<String, byte[]> classes;
+		
+		/**
+		 * Creates a new CompiledScript
+		 * @param mainClassName The name of the script class
+		 * @param classes The bytecode of all the compiled classes keyed by class name
+		 */
+		CompiledScript(final String mainClassName, final Map<String, byte[]> classes) {
+			this.mainClassName = mainClassName;
+			this.classes = classes;
+		}
+		
+		/**
+		 * Returns the name of the script class
+		 * @return the name of the script class
+		 */
+		public String getMainClassName() {
+			return mainClassName;
+		}
+	}
+	
+	/**
+	 * <p>Title: ScriptClassLoader</p>
+	 * <p>Description: A groovy class loader that defines a script's classes from precompiled bytecode,
+	 * registering them in the class cache so they are reported by {@link GroovyClassLoader#getLoadedClasses()}
+	 * the same way classes parsed from source are.</p> 
+	 * <p><code>com.heliosapm.streams.collector.groovy.CompiledScriptCache.ScriptClassLoader</code></p>
+	 */
+	public static class ScriptClassLoader extends GroovyClassLoader {
+		/** The bytecode of the classes not defined yet, keyed by class name */
+		private final Map<String, byte[]> pending = new ConcurrentHashMap<String, byte[]>();
+
+		/**
+		 * Creates a new ScriptClassLoader
+		 * @param parent The parent class loader
+		 * @param config The compiler configuration, the classpath of which is added to this loader
+		 */
+		public ScriptClassLoader(final ClassLoader parent, final CompilerConfiguration config) {
+			super(parent, config, true);
+		}
+		
+		/**
+		 * Defines all the classes of the passed compilation
+		 * @param compiled The compilation
+		 * @return the script class
+		 * @throws ClassNotFoundException thrown if the script class cannot be loaded
+		 */
+		public Class<?> define(final CompiledScript compiled) throws ClassNotFoundException {
+			pending.putAll(compiled.classes);
+			Class<?> main = null;
+			for(String name: compiled.classes.keySet()) {
+				final Class<?> clazz = loadClass(name);
+				if(name.equals(compiled.mainClassName)) main = clazz;
+			}
+			if(main==null) throw new ClassNotFoundException(compiled.mainClassName);
+			return main;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.net.URLClassLoader#findClass(java.lang.String)
+		 */
+		@Override
+		protected Class<?> findClass(final String name) throws ClassNotFoundException {
+			final byte[] bytes = pending.remove(name);
+			if(bytes!=null) {
+				final Class<?> clazz = defineClass(name, bytes, 0, bytes.length);
+				setClassCacheEntry(clazz);
+				return clazz;
+			}
+			return super.findClass(name);
+		}
+	}
+}
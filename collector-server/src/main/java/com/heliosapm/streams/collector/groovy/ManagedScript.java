@@ -38,7 +38,6 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -74,6 +73,7 @@ import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 import com.heliosapm.streams.collector.CollectorServer;
 import com.heliosapm.streams.collector.cache.GlobalCacheService;
+import com.heliosapm.streams.collector.execution.CollectionScheduler;
 import com.heliosapm.streams.collector.execution.CollectorExecutionService;
 import com.heliosapm.streams.collector.timeout.TimeoutService;
 import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
@@ -122,8 +122,8 @@ public abstract class ManagedScript extends Script implements NotificationEmitte
 	protected ByteBufReaderSource sourceReader = null;
 	/** This script's ObjectName */
 	protected ObjectName objectName = null;
-	/** The scheduler handle if this script is scheduled */
-	protected ScheduledFuture<?> scheduleHandle = null;
+	/** The collection schedule handle if this script is scheduled */
+	protected CollectionScheduler.Schedule scheduleHandle = null;
 	/** The scheduled execution period */
 	protected Long scheduledPeriod = null;
 	/** The scheduled execution period unit */
@@ -238,6 +238,13 @@ public abstract class ManagedScript extends Script implements NotificationEmitte
 	/** The pattern identifying a property value that should be resolved post-compilation */
 	public static final Pattern POST_COMPILE = Pattern.compile("\\$post\\{(.*?)\\}$");
 	
+	/** The binding name of the optional target host a script's collections are budgeted against */
+	public static final String BINDING_TARGET_HOST = "targetHost";
+	/** The binding name of the JMX service URL a script collects from */
+	public static final String BINDING_JMX_URL = "jmxurl";
+	/** The pattern extracting the last <code>//host[:port]</code> authority from an endpoint URL */
+	public static final Pattern URL_AUTHORITY = Pattern.compile("(?<!/)//([^/:\\[\\]\\$]+)(?::(\\d+))?");
+	
 	/** The UTF8 char set */
 	public static final Charset UTF8 = Charset.forName("UTF8");
 	
@@ -446,10 +453,50 @@ public abstract class ManagedScript extends Script implements NotificationEmitte
 	protected void onInitCheckComplete() {
 		canReschedule.set(true);
 		setState(ScriptState.SCHEDULED);
-		scheduleHandle = SharedScheduler.getInstance().schedule((Callable<Void>)this, scheduledPeriod, scheduledPeriodUnit);			
+		startSchedule();
 		log.info("Collection Script scheduled");
 	}
 	
+	/**
+	 * Resolves the post-compile bindings and registers this script's collection with the {@link CollectionScheduler}
+	 */
+	protected void startSchedule() {
+		updateProps();
+		scheduleHandle = CollectionScheduler.getInstance().schedule(objectName.toString(), getTargetHost(), scheduledPeriod, scheduledPeriodUnit, runCallable);
+	}
+	
+	/**
+	 * Returns the target host this script's collections are budgeted against, which is the {@link #BINDING_TARGET_HOST} binding
+	 * if defined, otherwise the <code>host:port</code> of the {@link #BINDING_JMX_URL} binding, otherwise the script's own name
+	 * so that unrelated scripts never share a budget
+	 * @return the target host
+	 */
+	protected String getTargetHost() {
+		final Object host = bindingMap.get(BINDING_TARGET_HOST);
+		if(host!=null && host!=NULL_OBJECT) return host.toString();
+		final Object url = bindingMap.get(BINDING_JMX_URL);
+		if(url!=null && url!=NULL_OBJECT) {
+			final String authority = authority(url.toString());
+			if(authority!=null) return authority;
+		}
+		return objectName.getKeyProperty("dir") + "/" + objectName.getKeyProperty("name");
+	}
+	
+	/**
+	 * Extracts the last <code>host[:port]</code> authority from the passed endpoint URL, 
+	 * e.g. <code>host:9082</code> from <code>service:jmx:rmi:///jndi/rmi://host:9082/jmxrmi</code>
+	 * @param url The endpoint URL
+	 * @return the authority or null if the URL has no host, such as <code>service:jmx:local://</code>
+	 */
+	public static String authority(final String url) {
+		final Matcher m = URL_AUTHORITY.matcher(url);
+		String authority = null;
+		while(m.find()) {
+			authority = m.group(2)==null ? m.group(1) : m.group(1) + ":" + m.group(2);
+		}
+		return authority;
+	}
+	
 	/**
 	 * Creates a runnable that is executed once a re-init-check succeeds.
 	 * @return a runnable
@@ -541,7 +588,7 @@ public abstract class ManagedScript extends Script implements NotificationEmitte
 	public void pause() {
 		if(state.get()!=ScriptState.PAUSED && scheduledPeriod!=null && scheduleHandle!=null) {
 			canReschedule.set(false);
-			scheduleHandle.cancel(true);
+			scheduleHandle.cancel();
 			scheduleHandle = null;
 			setState(ScriptState.PAUSED);
 			log.info("Collection Script paused");			
@@ -574,7 +621,7 @@ public abstract class ManagedScript extends Script implements NotificationEmitte
 	public void resume() {
 		if(state.get()==ScriptState.PAUSED && scheduledPeriod!=null && scheduleHandle==null) {
 			canReschedule.set(true);
-			scheduleHandle = SharedScheduler.getInstance().schedule((Callable<Void>)this, scheduledPeriod, scheduledPeriodUnit);
+			startSchedule();
 			setState(ScriptState.SCHEDULED);
 			log.info("Collection Script Resumed");			
 		}		
@@ -647,7 +694,6 @@ public abstract class ManagedScript extends Script implements NotificationEmitte
 			}			
 			if(!execute) {
 				preExecCheckFails.incrementAndGet();				
-				scheduleNextCollection();
 				return null;
 			}
 			setState(ScriptState.SCHEDULED, ScriptState.DISCONNECT);
@@ -657,7 +703,7 @@ public abstract class ManagedScript extends Script implements NotificationEmitte
 					log.info("Script version [{}] is [{}] not SCHEDULED. Stopping schedule.", deploymentId, state.get());
 					if(scheduleHandle!=null) {
 						if(!scheduleHandle.isCancelled()) {
-							scheduleHandle.cancel(true);
+							scheduleHandle.cancel();
 						}
 					}
 					return null;
@@ -703,28 +749,13 @@ public abstract class ManagedScript extends Script implements NotificationEmitte
 					log.error("Task Execution Failed", iex);
 				}
 			} finally {
-				if(setState(ScriptState.SCHEDULED, ScriptState.EXECUTING)) {
-					scheduleNextCollection();
-				} else {
+				if(!setState(ScriptState.SCHEDULED, ScriptState.EXECUTING)) {
 					log.debug("State not EXECUTING on return from execution");
 				}
 			}
 			return null;
 		}
 		
-		/**
-		 * Schedules the next collection
-		 */
-		protected void scheduleNextCollection() {
-			if(pendingDependencies.isEmpty()) {
-				canReschedule.set(true);
-				updateProps();  // FIXME: too heavyweight
-				scheduleHandle = SharedScheduler.getInstance().schedule(ManagedScript.this, scheduledPeriod, scheduledPeriodUnit);					
-			} else {
-				log.warn("Script scheduling waiting on dependencies {}", pendingDependencies);
-			}			
-		}
-		
 		/**
 		 * Executes the script 
 		 * @return the elapsed time or -1 if pre-exec fails or returns false.
@@ -806,7 +837,7 @@ public abstract class ManagedScript extends Script implements NotificationEmitte
 		pendingDependencies.add(cacheKey);
 		canReschedule.set(false);
 		if(scheduleHandle != null) {
-			scheduleHandle.cancel(true);
+			scheduleHandle.cancel();
 			scheduleHandle = null;
 			log.warn("\n\t ================================ \n\t Waiting script [{}} unscheduled. Dependencies incomplete: {}", this.sourceFile, pendingDependencies);			
 		}
@@ -821,8 +852,7 @@ public abstract class ManagedScript extends Script implements NotificationEmitte
 		pendingDependencies.remove(cacheKey);
 		if(pendingDependencies.isEmpty()) {
 			canReschedule.set(true);
-			updateProps();
-			scheduleHandle = SharedScheduler.getInstance().schedule(this, scheduledPeriod, scheduledPeriodUnit);
+			startSchedule();
 			log.info("\n\t ================================ \n\t Waiting script [{}} scheduled. All dependencies complete.", this.sourceFile);
 		}
 	}
@@ -958,7 +988,7 @@ public abstract class ManagedScript extends Script implements NotificationEmitte
 	public void close() throws IOException {
 		setState(ScriptState.DESTROY);
 		if(scheduleHandle!=null) {
-			scheduleHandle.cancel(true);
+			scheduleHandle.cancel();
 			scheduleHandle = null;
 		}		
 		for(Object o: bindingMap.values()) {
@@ -44,8 +44,12 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarFile;
 
@@ -105,7 +109,6 @@ import com.heliosapm.utils.url.URLHelper;
 
 import groovy.lang.Binding;
 import groovy.lang.GroovyClassLoader;
-import groovy.lang.GroovyCodeSource;
 import groovy.lang.GroovySystem;
 import groovy.lang.MetaClassRegistryChangeEvent;
 import groovy.lang.MetaClassRegistryChangeEventListener;
@@ -147,6 +150,17 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 	};
 	//"import static com.heliosapm.utils.jmx.JMXHelper.*"
 	
+	/** The configuration key for enabling the compiled script cache */
+	public static final String CONFIG_SCRIPT_CACHE_ENABLED = "collector.service.groovy.cache.enabled";
+	/** The default compiled script cache enablement */
+	public static final boolean DEFAULT_SCRIPT_CACHE_ENABLED = true;
+	/** The configuration key for the number of threads compiling scripts at startup */
+	public static final String CONFIG_COMPILE_THREADS = "collector.service.groovy.compile.threads";
+	/** The default number of threads compiling scripts at startup */
+	public static final int DEFAULT_COMPILE_THREADS = Runtime.getRuntime().availableProcessors();
+	/** The maximum age in ms. of the classpath fingerprint before it is recomputed, matching the source file watcher's scan period */
+	public static final long CLASSPATH_FINGERPRINT_TTL = 5000L;
+	
 	/** If this is the first line in a groovy script file, don't deploy it */
 	public static final String DISABLED_HEADER = "!STOP";
 	
@@ -258,6 +272,28 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 		.weakValues()
 		.build();
 	protected final Instrumentation instrumentation = LocalAgentInstaller.getInstrumentation();
+	/** The compiled script cache, null if disabled */
+	protected final CompiledScriptCache scriptCache;
+	/** The fingerprint of the fixture and lib classpath, part of every compiled script cache key */
+	protected String classpathFingerprint = null;
+	/** The directory stamp of the fixture and lib classpath when the fingerprint was computed */
+	protected long classpathStamp = 0L;
+	/** The time in ms. the classpath fingerprint was computed at */
+	protected long classpathFingerprintTime = 0L;
+	/** The number of threads compiling scripts at startup */
+	protected final int compileThreads;
+	/** The elapsed time in ms. of locating the startup scripts */
+	protected volatile long startupDiscoveryTime = -1L;
+	/** The total elapsed time in ms. of the startup deployment */
+	protected volatile long startupElapsedTime = -1L;
+	/** The cumulative time in ns. spent computing keys and reading the compiled script cache */
+	protected final LongAdder cacheLookupTime = new LongAdder();
+	/** The cumulative time in ns. spent compiling scripts */
+	protected final LongAdder compileTime = new LongAdder();
+	/** The cumulative time in ns. spent defining compiled script classes */
+	protected final LongAdder classLoadTime = new LongAdder();
+	/** The cumulative time in ns. spent instantiating and initializing scripts */
+	protected final LongAdder instantiationTime = new LongAdder();
 	
 	
 
@@ -386,6 +422,9 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 //		}
 //		Thread.currentThread().setContextClassLoader(libDirClassLoader);
 		FileHelper.cleanDir(tmpDirectory);
+		scriptCache = ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_SCRIPT_CACHE_ENABLED, DEFAULT_SCRIPT_CACHE_ENABLED)
+			? new CompiledScriptCache(new File(new File(rootDirectory, "cache"), "scripts")) : null;
+		compileThreads = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_COMPILE_THREADS, DEFAULT_COMPILE_THREADS));
 		MetaClassRegistryCleaner.createAndRegister();
 //		GroovySystem.setKeepJavaMetaClasses(false);
 //		GroovySystem.stopThreadedReferenceManager();
@@ -462,6 +501,8 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 	protected void startScriptDeployer() {
 		final long start = System.currentTimeMillis();
 		final File[] sourceFiles = sourceFinder.find();
+		startupDiscoveryTime = System.currentTimeMillis() - start;
+		if(scriptCache!=null) classpathFingerprint();
 		final StringBuilder b = new StringBuilder(" Startup Located Scripts:");
 		for(File f: sourceFiles) {
 			b.append("\n\t").append(f.getAbsolutePath());
@@ -469,8 +510,18 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 		log.info(b.toString());
 		if(sourceFiles!=null && sourceFiles.length > 0) {
 			final ArrayList<Future<Boolean>> compilationTasks = new ArrayList<Future<Boolean>>(sourceFiles.length);
+			// A dedicated, unbounded-queue pool so a large script tree cannot overflow the collection pool's queue
+			final ExecutorService compilePool = Executors.newFixedThreadPool(Math.min(compileThreads, sourceFiles.length), new ThreadFactory() {
+				final AtomicInteger serial = new AtomicInteger();
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "ScriptCompiler#" + serial.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
 			for(final File sourceFile : sourceFiles) {
-				compilationTasks.add(collectorExecutionService.submit(new Callable<Boolean>(){
+				compilationTasks.add(compilePool.submit(new Callable<Boolean>(){
 					@Override
 					public Boolean call() throws Exception {
 						try {
@@ -486,6 +537,7 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 					}
 				}));				
 			}
+			compilePool.shutdown();
 			if(springMode) {
 				final Thread t = new Thread("InitialManagedScriptCompiler") {
 					public void run() {
@@ -520,7 +572,14 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 	
 	protected void onStartupCompilationComplete(final long start, final int sourceFileCount) {
 		final long elapsed = System.currentTimeMillis() - start;
+		startupElapsedTime = elapsed;
 		log.info("Startup compilation completed for [{}] source files. Successful: [{}], Failed: [{}], Elapsed: [{}] ms.", sourceFileCount, successfulCompiles.longValue(), failedCompiles.longValue(), elapsed);						
+		log.info("Startup phases: discovery: [{}] ms, cache lookup: [{}] ms, compile: [{}] ms, class load: [{}] ms, instantiation: [{}] ms", startupDiscoveryTime, 
+				getCacheLookupTime(), getCompileTime(), getClassLoadTime(), getInstantiationTime());
+		if(scriptCache!=null) {
+			log.info("Compiled script cache: hits: [{}], misses: [{}], writes: [{}], errors: [{}]", scriptCache.getHits(), scriptCache.getMisses(), scriptCache.getWrites(), scriptCache.getErrors());
+			scriptCache.prune();
+		}
 		System.gc();
 		fileChangeWatcher = sourceFinder.watch(5, true, this);
 		fileChangeWatcher.startWatcher(5);		
@@ -545,7 +604,7 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 	public GroovyClassLoader newGroovyClassLoader(final CompilerConfiguration altConfig) {	
 		
 		
-		final GroovyClassLoader groovyClassLoader = new GroovyClassLoader(libDirClassLoader, (altConfig==null ? compilerConfig : altConfig), true);
+		final GroovyClassLoader groovyClassLoader = new CompiledScriptCache.ScriptClassLoader(libDirClassLoader, (altConfig==null ? compilerConfig : altConfig));
 //		groovyClassLoader.addURL(URLHelper.toURL(fixtureDirectory));
 //		groovyClassLoader.addClasspath(new File(rootDirectory, "fixtures").getAbsolutePath());
 //		groovyClassLoader.addClasspath(new File(rootDirectory, "conf").getAbsolutePath());
@@ -598,7 +657,7 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 			if(!source.canRead()) throw new IllegalArgumentException("The passed source file [" + source + "] could not be read");
 			final long startTime = System.currentTimeMillis();
 			final String sourceName = source.getAbsolutePath().replace(rootDirectory.getAbsolutePath(), "");
-			final GroovyClassLoader gcl = newGroovyClassLoader();
+			final CompiledScriptCache.ScriptClassLoader gcl = (CompiledScriptCache.ScriptClassLoader)newGroovyClassLoader();
 //			Thread.currentThread().setContextClassLoader(appCtx.getClassLoader());
 			boolean success = false;
 			String errMsg = null;
@@ -606,9 +665,7 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 			try {
 				log.info("Compiling script [{}]...", sourceName);
 				bSource = new ByteBufReaderSource(source, scriptPath); 
-				final GroovyCodeSource gcs = new GroovyCodeSource(bSource.getReader(), bSource.getClassName(), bSource.getURI().toString());
-				gcs.setCachable(false);
-				final Class<ManagedScript> msClazz = gcl.parseClass(gcs);
+				final Class<ManagedScript> msClazz = loadScriptClass(gcl, bSource);
 				log.info("Compiled class: [{}]", msClazz.getName());
 				ReferenceService.getInstance().newWeakReference(msClazz, null);
 	//			final ManagedScript ms;
@@ -642,9 +699,11 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 					}
 					log.info("NAVMAP: {}", Arrays.toString(navMap));
 				}
+				final long instStart = System.nanoTime();
 				final ManagedScript ms = ManagedScript.instantiate(msClazz, _binds);
 				final long elapsedTime = System.currentTimeMillis() - startTime;			
 				ms.initialize(gcl, getGlobalBindings(), bSource, rootDirectory.getAbsolutePath(), elapsedTime);
+				instantiationTime.add(System.nanoTime() - instStart);
 				if(bindings!=null) {
 					ms.bindingMap.putAll(bindings);
 				}			
@@ -691,6 +750,60 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 	}
 	
 	
+	/**
+	 * Loads the script class for the passed source, from the compiled script cache if the source and
+	 * everything it compiles against are unchanged, otherwise compiling it and caching the result
+	 * @param gcl The script's class loader
+	 * @param bSource The script source
+	 * @return the script class
+	 * @throws CompilationFailedException thrown if the source fails to compile
+	 * @throws ClassNotFoundException thrown if the compiled classes cannot be defined
+	 */
+	@SuppressWarnings("unchecked")
+	protected Class<ManagedScript> loadScriptClass(final CompiledScriptCache.ScriptClassLoader gcl, final ByteBufReaderSource bSource) throws CompilationFailedException, ClassNotFoundException {
+		long start = System.nanoTime();
+		String key = null;
+		CompiledScriptCache.CompiledScript compiled = null;
+		if(scriptCache!=null) {
+			key = scriptCache.key(bSource, autoImports, compilerConfig, classpathFingerprint());
+			compiled = scriptCache.get(key);
+			cacheLookupTime.add(System.nanoTime() - start);
+		}
+		if(compiled==null) {
+			start = System.nanoTime();
+			compiled = CompiledScriptCache.compile(bSource, compilerConfig, gcl);
+			compileTime.add(System.nanoTime() - start);
+			if(scriptCache!=null) scriptCache.put(key, compiled);
+		} else {
+			log.info("Loading script [{}] from compiled script cache", bSource.getClassName());
+		}
+		start = System.nanoTime();
+		final Class<?> clazz = gcl.define(compiled);
+		classLoadTime.add(System.nanoTime() - start);
+		return (Class<ManagedScript>)clazz;
+	}
+	
+	/**
+	 * Returns the fingerprint of the fixture and lib classpath. The fingerprint is recomputed when a file is added to,
+	 * removed from or renamed in the fixture or lib directories, and at most every {@link #CLASSPATH_FINGERPRINT_TTL} ms. otherwise,
+	 * which picks up files replaced in place.
+	 * @return the classpath fingerprint
+	 */
+	protected synchronized String classpathFingerprint() {
+		final long stamp = CompiledScriptCache.directoryStamp(fixtureDirectory, libDirectory);
+		final long now = System.currentTimeMillis();
+		if(classpathFingerprint==null || stamp!=classpathStamp || now - classpathFingerprintTime > CLASSPATH_FINGERPRINT_TTL) {
+			final String fp = CompiledScriptCache.fingerprint(fixtureDirectory, libDirectory);
+			if(classpathFingerprint!=null && !fp.equals(classpathFingerprint)) {
+				log.info("Script classpath changed, compiled script cache keys will change");
+			}
+			classpathFingerprint = fp;
+			classpathStamp = stamp;
+			classpathFingerprintTime = now;
+		}
+		return classpathFingerprint;
+	}
+	
 	/**
 	 * Computes a navmap for the passed script.
 	 * This will usually be appName/hostName/env
@@ -1094,6 +1207,114 @@ public class ManagedScriptFactory extends NotificationBroadcasterSupport impleme
 		return managedScripts.size();
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.groovy.ManagedScriptFactoryMBean#isScriptCacheEnabled()
+	 */
+	@Override
+	public boolean isScriptCacheEnabled() {
+		return scriptCache!=null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.groovy.ManagedScriptFactoryMBean#getScriptCacheHits()
+	 */
+	@Override
+	public long getScriptCacheHits() {
+		return scriptCache==null ? 0L : scriptCache.getHits();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.groovy.ManagedScriptFactoryMBean#getScriptCacheMisses()
+	 */
+	@Override
+	public long getScriptCacheMisses() {
+		return scriptCache==null ? 0L : scriptCache.getMisses();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.groovy.ManagedScriptFactoryMBean#getScriptCacheWrites()
+	 */
+	@Override
+	public long getScriptCacheWrites() {
+		return scriptCache==null ? 0L : scriptCache.getWrites();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.groovy.ManagedScriptFactoryMBean#getScriptCacheErrors()
+	 */
+	@Override
+	public long getScriptCacheErrors() {
+		return scriptCache==null ? 0L : scriptCache.getErrors();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.groovy.ManagedScriptFactoryMBean#getCompileThreads()
+	 */
+	@Override
+	public int getCompileThreads() {
+		return compileThreads;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.groovy.ManagedScriptFactoryMBean#getStartupDiscoveryTime()
+	 */
+	@Override
+	public long getStartupDiscoveryTime() {
+		return startupDiscoveryTime;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.groovy.ManagedScriptFactoryMBean#getStartupElapsedTime()
+	 */
+	@Override
+	public long getStartupElapsedTime() {
+		return startupElapsedTime;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.groovy.ManagedScriptFactoryMBean#getCacheLookupTime()
+	 */
+	@Override
+	public long getCacheLookupTime() {
+		return TimeUnit.NANOSECONDS.toMillis(cacheLookupTime.longValue());
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.groovy.ManagedScriptFactoryMBean#getCompileTime()
+	 */
+	@Override
+	public long getCompileTime() {
+		return TimeUnit.NANOSECONDS.toMillis(compileTime.longValue());
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.groovy.ManagedScriptFactoryMBean#getClassLoadTime()
+	 */
+	@Override
+	public long getClassLoadTime() {
+		return TimeUnit.NANOSECONDS.toMillis(classLoadTime.longValue());
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.groovy.ManagedScriptFactoryMBean#getInstantiationTime()
+	 */
+	@Override
+	public long getInstantiationTime() {
+		return TimeUnit.NANOSECONDS.toMillis(instantiationTime.longValue());
+	}
+	
 
 	/**
 	 * {@inheritDoc}
@@ -119,6 +119,78 @@ public interface ManagedScriptFactoryMBean {
 	 * @return the number of managed scripts
 	 */
 	public long getManagedScriptCount();	
+
+	/**
+	 * Indicates if the compiled script cache is enabled
+	 * @return true if the compiled script cache is enabled, false otherwise
+	 */
+	public boolean isScriptCacheEnabled();
+	
+	/**
+	 * Returns the number of scripts loaded from the compiled script cache
+	 * @return the number of compiled script cache hits
+	 */
+	public long getScriptCacheHits();
+	
+	/**
+	 * Returns the number of scripts not found in the compiled script cache
+	 * @return the number of compiled script cache misses
+	 */
+	public long getScriptCacheMisses();
+	
+	/**
+	 * Returns the number of compilations written to the compiled script cache
+	 * @return the number of compiled script cache writes
+	 */
+	public long getScriptCacheWrites();
+	
+	/**
+	 * Returns the number of compiled script cache read or write errors
+	 * @return the number of compiled script cache errors
+	 */
+	public long getScriptCacheErrors();
+	
+	/**
+	 * Returns the number of threads compiling scripts at startup
+	 * @return the number of startup compilation threads
+	 */
+	public int getCompileThreads();
+	
+	/**
+	 * Returns the elapsed time in ms. of locating the startup scripts
+	 * @return the startup discovery time in ms. or -1 if startup has not run
+	 */
+	public long getStartupDiscoveryTime();
+	
+	/**
+	 * Returns the total elapsed time in ms. of the startup deployment
+	 * @return the startup elapsed time in ms. or -1 if startup has not completed
+	 */
+	public long getStartupElapsedTime();
+	
+	/**
+	 * Returns the cumulative time in ms. spent computing keys and reading the compiled script cache
+	 * @return the cumulative cache lookup time in ms.
+	 */
+	public long getCacheLookupTime();
+	
+	/**
+	 * Returns the cumulative time in ms. spent compiling scripts
+	 * @return the cumulative compile time in ms.
+	 */
+	public long getCompileTime();
+	
+	/**
+	 * Returns the cumulative time in ms. spent defining compiled script classes
+	 * @return the cumulative class load time in ms.
+	 */
+	public long getClassLoadTime();
+	
+	/**
+	 * Returns the cumulative time in ms. spent instantiating and initializing scripts
+	 * @return the cumulative instantiation time in ms.
+	 */
+	public long getInstantiationTime();
 	
 	/**
 	 * Returns the script compiler's auto imports
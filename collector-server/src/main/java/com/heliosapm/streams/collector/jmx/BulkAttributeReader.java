@@ -0,0 +1,111 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.collector.jmx;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.AttributeList;
+import javax.management.MBeanRegistration;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>Title: BulkAttributeReader</p>
+ * <p>Description: A helper MBean installed in a collected JVM by {@link JMXClient#harvest(ObjectName, String...)}
+ * through <b><code>createMBean</code></b>, which reads the attributes of all the MBeans matching a pattern in one
+ * remote call instead of a query and a call per MBean. It only depends on the JDK so it can be installed in any JVM
+ * that has this class on its classpath.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.collector.jmx.BulkAttributeReader</code></p>
+ */
+
+public class BulkAttributeReader implements BulkAttributeReaderMBean, MBeanRegistration {
+	/** The MBeanServer this reader is registered in */
+	protected volatile MBeanServer server = null;
+	/** The number of harvests served */
+	protected final AtomicLong harvests = new AtomicLong();
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.jmx.BulkAttributeReaderMBean#harvest(javax.management.ObjectName, java.lang.String[])
+	 */
+	@Override
+	public HashMap<ObjectName, AttributeList> harvest(final ObjectName pattern, final String[] attributes) {
+		if(server==null) throw new IllegalStateException("BulkAttributeReader is not registered");
+		harvests.incrementAndGet();
+		final HashMap<ObjectName, AttributeList> map = new HashMap<ObjectName, AttributeList>();
+		for(ObjectName on: server.queryNames(pattern, null)) {
+			try {
+				final AttributeList attrs = server.getAttributes(on, attributes);
+				if(!attrs.isEmpty()) map.put(on, attrs);
+			} catch (Exception ex) {
+				/* Unregistered since the query, skip it */
+			}
+		}
+		return map;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.collector.jmx.BulkAttributeReaderMBean#getHarvestCount()
+	 */
+	@Override
+	public long getHarvestCount() {
+		return harvests.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see javax.management.MBeanRegistration#preRegister(javax.management.MBeanServer, javax.management.ObjectName)
+	 */
+	@Override
+	public ObjectName preRegister(final MBeanServer server, final ObjectName name) throws Exception {
+		this.server = server;
+		return name;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see javax.management.MBeanRegistration#postRegister(java.lang.Boolean)
+	 */
+	@Override
+	public void postRegister(final Boolean registrationDone) {
+		/* No Op */
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see javax.management.MBeanRegistration#preDeregister()
+	 */
+	@Override
+	public void preDeregister() throws Exception {
+		/* No Op */
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see javax.management.MBeanRegistration#postDeregister()
+	 */
+	@Override
+	public void postDeregister() {
+		server = null;
+	}
+}
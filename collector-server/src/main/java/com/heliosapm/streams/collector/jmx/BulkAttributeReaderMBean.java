@@ -0,0 +1,51 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.collector.jmx;
+
+import java.util.HashMap;
+
+import javax.management.AttributeList;
+import javax.management.ObjectName;
+
+/**
+ * <p>Title: BulkAttributeReaderMBean</p>
+ * <p>Description: JMX MBean interface for {@link BulkAttributeReader}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.collector.jmx.BulkAttributeReaderMBean</code></p>
+ */
+
+public interface BulkAttributeReaderMBean {
+	/** The JMX ObjectName the reader is registered under in a collected JVM */
+	public static final String OBJECT_NAME = "com.heliosapm.streams.collector:service=BulkAttributeReader";
+	
+	/**
+	 * Reads the named attributes of every MBean matching the passed pattern
+	 * @param pattern The ObjectName pattern to match
+	 * @param attributes The names of the attributes to read
+	 * @return the read attributes keyed by the ObjectName of their MBean. MBeans with none of the attributes are omitted.
+	 */
+	public HashMap<ObjectName, AttributeList> harvest(ObjectName pattern, String[] attributes);
+	
+	/**
+	 * Returns the number of harvests served
+	 * @return the number of harvests served
+	 */
+	public long getHarvestCount();
+}
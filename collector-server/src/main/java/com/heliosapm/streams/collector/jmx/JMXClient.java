@@ -23,6 +23,7 @@ import java.lang.reflect.Proxy;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
@@ -39,6 +40,7 @@ import javax.management.InstanceNotFoundException;
 import javax.management.IntrospectionException;
 import javax.management.InvalidAttributeValueException;
 import javax.management.ListenerNotFoundException;
+import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanException;
 import javax.management.MBeanInfo;
 import javax.management.MBeanRegistrationException;
@@ -60,6 +62,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.cliffc.high_scale_lib.NonBlockingHashSet;
 
+import com.codahale.metrics.Counter;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.RemovalListener;
@@ -67,6 +70,7 @@ import com.google.common.cache.RemovalNotification;
 import com.heliosapm.streams.collector.jmx.protocol.tunnel.ClientProvider;
 import com.heliosapm.streams.collector.ssh.SSHTunnelManager;
 import com.heliosapm.streams.collector.timeout.TimeoutService;
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
 import com.heliosapm.streams.common.naming.AgentName;
 import com.heliosapm.streams.hystrix.HystrixCommandFactory;
 import com.heliosapm.streams.hystrix.HystrixCommandProvider;
@@ -101,6 +105,26 @@ public class JMXClient implements MBeanServerConnection, Closeable {
 	protected final Logger log;
 	/** Accumulator for total jmx remoting time */
 	protected final LongAdder remotingTime = new LongAdder();
+	/** The number of remote calls made */
+	protected final LongAdder remoteCalls = new LongAdder();
+	/** The metric name segment identifying the remote endpoint */
+	protected final String metricEndpoint;
+	/** The number of bulk harvests against the remote endpoint */
+	protected final Counter bulkHarvests;
+	/** The number of remote calls bulk harvests against the remote endpoint saved over a query and a call per MBean */
+	protected final Counter roundTripsSaved;
+	/** The number of MBeanInfo cache hits for the remote endpoint */
+	protected final Counter infoCacheHits;
+	/** The number of MBeanInfo cache misses for the remote endpoint */
+	protected final Counter infoCacheMisses;
+	/** The MBeanInfo cache */
+	protected final Cache<ObjectName, MBeanInfo> infoCache;
+	/** Indicates if the bulk attribute reader is installed in the remote JVM, null if not determined yet */
+	protected volatile Boolean bulkReaderInstalled = null;
+	/** Indicates if this client registered the bulk attribute reader and so unregisters it on close */
+	protected volatile boolean bulkReaderCreated = false;
+	/** The remote bulk attribute reader ObjectName */
+	protected final ObjectName bulkReaderObjectName = JMXHelper.objectName(BulkAttributeReaderMBean.OBJECT_NAME);
 	
 	/** The tracing app name */
 	protected final String remoteApp;
@@ -126,6 +150,24 @@ public class JMXClient implements MBeanServerConnection, Closeable {
 	public static final String CONFIG_HYSTRIX_ENABLED = CONFIG_HYSTRIX + ".enabled";
 	/** The default hystrix circuit breaker enablement */
 	public static final boolean DEFAULT_HYSTRIX_ENABLED = false;
+	/** The config key for installing the bulk attribute reader in remote JVMs */
+	public static final String CONFIG_BULK_READER = "component.jmxclient.bulkreader.install";
+	/** The default bulk attribute reader installation, off since the reader is an MBean registered in the collected JVM */
+	public static final boolean DEFAULT_BULK_READER = false;
+	/** The config key for the time in seconds MBeanInfos are cached for */
+	public static final String CONFIG_INFO_CACHE_TTL = "component.jmxclient.infocache.ttl";
+	/** The default time in seconds MBeanInfos are cached for */
+	public static final long DEFAULT_INFO_CACHE_TTL = 600;
+	/** The config key for the maximum number of cached MBeanInfos per client */
+	public static final String CONFIG_INFO_CACHE_SIZE = "component.jmxclient.infocache.size";
+	/** The default maximum number of cached MBeanInfos per client */
+	public static final int DEFAULT_INFO_CACHE_SIZE = 2048;
+	
+	/** Matches characters not allowed in the endpoint metric name segment */
+	private static final Pattern METRIC_UNSAFE = Pattern.compile("[^A-Za-z0-9_\\-]");
+	
+	/** The bulk attribute reader harvest operation signature */
+	private static final String[] HARVEST_SIGNATURE = {ObjectName.class.getName(), String[].class.getName()};
 	
 	/** Listener registrations that should be saved an re-applied on re-connect */
 	protected final NonBlockingHashSet<SavedNotificationEvent> registrations = new NonBlockingHashSet<SavedNotificationEvent>();
@@ -157,7 +199,7 @@ public class JMXClient implements MBeanServerConnection, Closeable {
 					final JMXClient client = notification.getValue();
 					if(client!=null) {
 						client.log.info("Closing JMXClient [{}], Key: [{}], Removal Cause: [{}], Cache Size: [{}]", client.jmxServiceUrl, notification.getKey(), notification.getCause().name(), clients.size());
-						try { client.jmxConnector.close(); } catch (Exception ex) {/* No Op */}
+						try { client.close(); } catch (Exception ex) {/* No Op */}
 					}
 				}
 			}
@@ -247,6 +289,12 @@ public class JMXClient implements MBeanServerConnection, Closeable {
 		}
 		jmxServiceUrl = jurl;
 		log = LogManager.getLogger(getClass().getName() + "-" + rhost.replace('.', '_') + "-" + rport);
+		metricEndpoint = METRIC_UNSAFE.matcher(rhost + "_" + rport).replaceAll("_");
+		final SharedMetricsRegistry registry = SharedMetricsRegistry.getInstance();
+		bulkHarvests = registry.counter("collector.jmx." + metricEndpoint + ".harvests");
+		roundTripsSaved = registry.counter("collector.jmx." + metricEndpoint + ".roundtrips.saved");
+		infoCacheHits = registry.counter("collector.jmx." + metricEndpoint + ".infocache.hits");
+		infoCacheMisses = registry.counter("collector.jmx." + metricEndpoint + ".infocache.misses");
 		if(credentials!=null && credentials.length > 1) {
 			final String[] creds = new String[2];
 			System.arraycopy(credentials, 0, creds, 0, 2);
@@ -256,6 +304,13 @@ public class JMXClient implements MBeanServerConnection, Closeable {
 		remoteApp = qArgs.get(APP_QUERY_ARG);
 		remoteHost = qArgs.get(HOST_QUERY_ARG);
 		hystrixEnabled.set(ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_HYSTRIX_ENABLED, DEFAULT_HYSTRIX_ENABLED));
+		if(!ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_BULK_READER, DEFAULT_BULK_READER)) {
+			bulkReaderInstalled = false;
+		}
+		infoCache = CacheBuilder.newBuilder()
+			.maximumSize(ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_INFO_CACHE_SIZE, DEFAULT_INFO_CACHE_SIZE))
+			.expireAfterWrite(ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_INFO_CACHE_TTL, DEFAULT_INFO_CACHE_TTL), TimeUnit.SECONDS)
+			.build();
 		if(hystrixEnabled.get()) {
 			commandBuilder = HystrixCommandFactory.getInstance().builder(CONFIG_HYSTRIX, "jmx-remote-" + jmxServiceUrl.getProtocol())
 					.andCommandKey(jmxServiceUrl.getHost().replace('.', '-') + "." + jmxServiceUrl.getPort())
@@ -290,8 +345,23 @@ public class JMXClient implements MBeanServerConnection, Closeable {
 		return map;
 	}
 	
+	/**
+	 * Unregisters the bulk attribute reader if this client registered it and closes the connector
+	 * @throws IOException will not be thrown
+	 */
 	@Override
 	public void close() throws IOException {
+		final MBeanServerConnection conn = server;
+		if(bulkReaderCreated && conn!=null) {
+			bulkReaderCreated = false;
+			bulkReaderInstalled = null;
+			try {
+				conn.unregisterMBean(bulkReaderObjectName);
+				log.info("Uninstalled bulk attribute reader from [{}]", jmxServiceUrl);
+			} catch (Exception ex) {
+				log.debug("Failed to uninstall bulk attribute reader from [{}]: {}", jmxServiceUrl, ex.toString());
+			}
+		}
 		try { jmxConnector.close(); } catch (Exception x) {/* No Op */}
 		env.clear();
 		registrations.clear();
@@ -336,6 +406,7 @@ public class JMXClient implements MBeanServerConnection, Closeable {
 								public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
 									// FIXME: add a timeout watcher here.
 									final long start = System.currentTimeMillis();
+									remoteCalls.increment();
 									try {
 										return method.invoke(conn, args); 
 									} finally {
@@ -376,6 +447,158 @@ public class JMXClient implements MBeanServerConnection, Closeable {
 	public long getJMXRemotingTime() {
 		return remotingTime.sumThenReset();
 	}
+	
+	/**
+	 * Reads the named attributes of every MBean matching the passed pattern in as few remote calls as possible.
+	 * When enabled with {@link #CONFIG_BULK_READER}, the first harvest installs the {@link BulkAttributeReader} in the remote JVM
+	 * if its class is available there, after which each harvest is one remote call. Otherwise the matching MBeans are queried
+	 * and read with one {@link MBeanServerConnection#getAttributes(ObjectName, String[])} call each, which skips the attributes
+	 * an MBean does not have, so no {@link MBeanInfo} is fetched.
+	 * @param pattern The ObjectName pattern to match
+	 * @param attributes The names of the attributes to read
+	 * @return the attribute values keyed by attribute name, keyed by the ObjectName of their MBean.
+	 * MBeans with none of the attributes are omitted.
+	 * @throws IOException thrown on a communication failure
+	 */
+	public Map<ObjectName, Map<String, Object>> harvest(final ObjectName pattern, final String...attributes) throws IOException {
+		if(pattern==null) throw new IllegalArgumentException("The passed pattern was null");
+		if(attributes==null || attributes.length==0) throw new IllegalArgumentException("No attribute names specified");
+		bulkHarvests.inc();
+		if(isBulkReaderInstalled()) {
+			try {
+				@SuppressWarnings("unchecked")
+				final Map<ObjectName, AttributeList> results = (Map<ObjectName, AttributeList>)server().invoke(bulkReaderObjectName, "harvest", new Object[]{pattern, attributes}, HARVEST_SIGNATURE);
+				final Map<ObjectName, Map<String, Object>> map = new HashMap<ObjectName, Map<String, Object>>(results.size());
+				for(Map.Entry<ObjectName, AttributeList> entry: results.entrySet()) {
+					map.put(entry.getKey(), toMap(entry.getValue()));
+				}
+				// A query plus one call per MBean replaced by one call
+				roundTripsSaved.inc(results.size());
+				return map;
+			} catch (InstanceNotFoundException iex) {
+				log.info("Bulk attribute reader was unregistered from [{}]. Will reinstall.", jmxServiceUrl);
+				bulkReaderInstalled = null;
+			} catch (MBeanException | ReflectionException ex) {
+				log.warn("Bulk harvest of [{}] failed on [{}]. Reading per MBean.", pattern, jmxServiceUrl, ex);
+			}
+		}
+		final Set<ObjectName> names = server().queryNames(pattern, null);
+		final Map<ObjectName, Map<String, Object>> map = new HashMap<ObjectName, Map<String, Object>>(names.size());
+		for(ObjectName on: names) {
+			try {
+				final AttributeList values = server().getAttributes(on, attributes);
+				if(!values.isEmpty()) map.put(on, toMap(values));
+			} catch (InstanceNotFoundException iex) {
+				/* No Op */
+			} catch (ReflectionException rex) {
+				log.debug("Failed to read attributes of [{}]", on, rex);
+			}
+		}
+		return map;
+	}
+	
+	private static Map<String, Object> toMap(final AttributeList attributes) {
+		final Map<String, Object> map = new LinkedHashMap<String, Object>(attributes.size());
+		for(Attribute a: attributes.asList()) {
+			map.put(a.getName(), a.getValue());
+		}
+		return map;
+	}
+	
+	/**
+	 * Indicates if the bulk attribute reader is installed in the remote JVM, installing it on the first call
+	 * @return true if the reader is installed, false if it is disabled or cannot be installed
+	 */
+	public boolean isBulkReaderInstalled() {
+		Boolean installed = bulkReaderInstalled;
+		if(installed==null) {
+			synchronized(bulkReaderObjectName) {
+				installed = bulkReaderInstalled;
+				if(installed==null) {
+					installed = installBulkReader();
+					bulkReaderInstalled = installed;
+				}
+			}
+		}
+		return installed;
+	}
+	
+	/**
+	 * Registers the bulk attribute reader in the remote JVM unless it is already registered
+	 * @return true if the reader is registered, false if it could not be
+	 */
+	protected boolean installBulkReader() {
+		try {
+			if(server().isRegistered(bulkReaderObjectName)) return true;
+			server().createMBean(BulkAttributeReader.class.getName(), bulkReaderObjectName);
+			bulkReaderCreated = true;
+			log.info("Installed bulk attribute reader in [{}]", jmxServiceUrl);
+			return true;
+		} catch (InstanceAlreadyExistsException iex) {
+			return true;
+		} catch (Exception ex) {
+			log.info("Bulk attribute reader not available in [{}]. Harvests will read per MBean: {}", jmxServiceUrl, ex.toString());
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns the attribute types of the passed MBean from the MBeanInfo cache
+	 * @param name The ObjectName of the MBean
+	 * @return the attribute type class names keyed by attribute name
+	 * @throws InstanceNotFoundException thrown if the MBean is not registered
+	 * @throws IntrospectionException thrown on an MBeanInfo introspection failure
+	 * @throws ReflectionException thrown on an MBeanInfo reflection failure
+	 * @throws IOException thrown on a communication failure
+	 */
+	public Map<String, String> getAttributeTypes(final ObjectName name) throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
+		final MBeanAttributeInfo[] infos = getMBeanInfo(name).getAttributes();
+		final Map<String, String> types = new LinkedHashMap<String, String>(infos.length);
+		for(MBeanAttributeInfo a: infos) {
+			types.put(a.getName(), a.getType());
+		}
+		return types;
+	}
+	
+	/**
+	 * Returns the number of remote calls made
+	 * @return the number of remote calls made
+	 */
+	public long getRemoteCallCount() {
+		return remoteCalls.longValue();
+	}
+	
+	/**
+	 * Returns the number of bulk harvests against this client's remote endpoint
+	 * @return the number of bulk harvests
+	 */
+	public long getBulkHarvestCount() {
+		return bulkHarvests.getCount();
+	}
+	
+	/**
+	 * Returns the number of remote calls bulk harvests against this client's remote endpoint saved over a query and a call per MBean
+	 * @return the number of remote calls saved
+	 */
+	public long getRoundTripsSaved() {
+		return roundTripsSaved.getCount();
+	}
+	
+	/**
+	 * Returns the number of MBeanInfo cache hits for this client's remote endpoint
+	 * @return the number of MBeanInfo cache hits
+	 */
+	public long getInfoCacheHits() {
+		return infoCacheHits.getCount();
+	}
+	
+	/**
+	 * Returns the number of MBeanInfo cache misses for this client's remote endpoint
+	 * @return the number of MBeanInfo cache misses
+	 */
+	public long getInfoCacheMisses() {
+		return infoCacheMisses.getCount();
+	}
 
 	/**
 	 * @param className
@@ -466,6 +689,7 @@ public class JMXClient implements MBeanServerConnection, Closeable {
 	 */
 	public void unregisterMBean(ObjectName name)
 			throws InstanceNotFoundException, MBeanRegistrationException, IOException {
+		infoCache.invalidate(name);
 		server().unregisterMBean(name);
 	}
 
@@ -703,6 +927,7 @@ public class JMXClient implements MBeanServerConnection, Closeable {
 	}
 
 	/**
+	 * Returns the MBeanInfo of the passed MBean, cached for {@link #CONFIG_INFO_CACHE_TTL} seconds
 	 * @param name
 	 * @return
 	 * @throws InstanceNotFoundException
@@ -713,7 +938,15 @@ public class JMXClient implements MBeanServerConnection, Closeable {
 	 */
 	public MBeanInfo getMBeanInfo(ObjectName name)
 			throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
-		return server().getMBeanInfo(name);
+		MBeanInfo info = infoCache.getIfPresent(name);
+		if(info!=null) {
+			infoCacheHits.inc();
+			return info;
+		}
+		infoCacheMisses.inc();
+		info = server().getMBeanInfo(name);
+		infoCache.put(name, info);
+		return info;
 	}
 
 	/**
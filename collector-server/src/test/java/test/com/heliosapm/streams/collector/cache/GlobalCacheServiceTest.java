@@ -0,0 +1,129 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package test.com.heliosapm.streams.collector.cache;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.collector.cache.GlobalCacheService;
+
+import groovy.lang.Closure;
+
+/**
+ * <p>Title: GlobalCacheServiceTest</p>
+ * <p>Description: Tests for single-flight loads in the {@link GlobalCacheService}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.streams.collector.cache.GlobalCacheServiceTest</code></p>
+ */
+
+public class GlobalCacheServiceTest {
+	/** The cache under test */
+	static final GlobalCacheService cache = GlobalCacheService.getInstance();
+
+	/**
+	 * Tests that a load that recursively loads its own key fails fast
+	 */
+	@Test
+	public void testRecursiveLoad() {
+		final String key = "recursive" + System.nanoTime();
+		try {
+			cache.get(key, new Closure<Object>(this) {
+				@Override
+				public Object call(final Object... args) {
+					return cache.get(key, this);
+				}
+			});
+			Assert.fail("Recursive load not detected");
+		} catch (IllegalStateException ex) {
+			Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("Recursive load"));
+		}
+		Assert.assertNull(cache.get(key));
+	}
+
+	/**
+	 * Tests that two threads each loading the key the other is loading fail instead of deadlocking
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCrossThreadCircularLoad() throws Exception {
+		final String keyA = "circularA" + System.nanoTime();
+		final String keyB = "circularB" + System.nanoTime();
+		final CountDownLatch loading = new CountDownLatch(2);
+		final CountDownLatch done = new CountDownLatch(2);
+		final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+		loader(keyA, keyB, loading, done, failures).start();
+		loader(keyB, keyA, loading, done, failures).start();
+		Assert.assertTrue("Loads deadlocked", done.await(10, TimeUnit.SECONDS));
+		Assert.assertFalse("No load failed", failures.isEmpty());
+		boolean circular = false;
+		for(Throwable t: failures) {
+			if(t instanceof IllegalStateException && t.getMessage().startsWith("Circular load")) circular = true;
+		}
+		Assert.assertTrue("Circular load not reported: " + failures, circular);
+		Assert.assertEquals(0, cache.getPendingLoads());
+	}
+
+	/**
+	 * Creates a thread that loads one key with a closure that loads the other once both threads are loading
+	 * @param key The key to load
+	 * @param otherKey The key the loader loads
+	 * @param loading The latch counted down when each thread is loading
+	 * @param done The latch counted down when each thread completes
+	 * @param failures The failures of the loads
+	 * @return the unstarted thread
+	 */
+	private Thread loader(final String key, final String otherKey, final CountDownLatch loading, final CountDownLatch done, final Queue<Throwable> failures) {
+		final Thread t = new Thread("CacheLoader-" + key) {
+			@Override
+			public void run() {
+				try {
+					cache.get(key, new Closure<Object>(this) {
+						@Override
+						public Object call(final Object... args) {
+							loading.countDown();
+							try {
+								loading.await(5, TimeUnit.SECONDS);
+							} catch (InterruptedException iex) {
+								throw new RuntimeException(iex);
+							}
+							return cache.get(otherKey, new Closure<Object>(this) {
+								@Override
+								public Object call(final Object... args) {
+									return otherKey;
+								}
+							});
+						}
+					});
+				} catch (Throwable ex) {
+					failures.add(ex);
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,110 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package test.com.heliosapm.streams.collector.execution;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.collector.execution.CollectionScheduler;
+import com.heliosapm.streams.collector.execution.CollectionScheduler.Schedule;
+import com.heliosapm.streams.collector.execution.CollectorExecutionService;
+
+/**
+ * <p>Title: CollectionSchedulerTest</p>
+ * <p>Description: Tests for the schedule phase and slot arithmetic of the {@link CollectionScheduler} and the lifetime of its host limiters</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.streams.collector.execution.CollectionSchedulerTest</code></p>
+ */
+
+public class CollectionSchedulerTest {
+	/** The test tick duration in ms. */
+	static final long TICK = 100L;
+
+	/**
+	 * Tests that the phase is stable for a key, tick aligned and within the period
+	 */
+	@Test
+	public void testPhaseBounds() {
+		for(int i = 0; i < 1000; i++) {
+			final String key = "com.heliosapm.streams.collector:dir=jmx,name=script" + i;
+			final long phase = CollectionScheduler.phase(key, 15000L, TICK);
+			Assert.assertEquals("Phase not stable", phase, CollectionScheduler.phase(key, 15000L, TICK));
+			Assert.assertTrue("Phase out of the period: " + phase, phase >= 0L && phase < 15000L);
+			Assert.assertEquals("Phase not tick aligned: " + phase, 0L, phase % TICK);
+		}
+		// a period shorter than a tick has one slot
+		Assert.assertEquals(0L, CollectionScheduler.phase("short", TICK - 1, TICK));
+	}
+
+	/**
+	 * Tests that similar keys are spread over the slots of the period
+	 */
+	@Test
+	public void testPhaseSpread() {
+		final Set<Long> phases = new HashSet<Long>();
+		for(int i = 0; i < 1000; i++) {
+			phases.add(CollectionScheduler.phase("script" + i, 10000L, TICK));
+		}
+		// 1000 keys over 100 slots leave no slot empty unless the keys cluster
+		Assert.assertEquals(100, phases.size());
+	}
+
+	/**
+	 * Tests that the next slot follows the passed time at the schedule's phase, and that re-arming
+	 * from an early firing moves on to the following slot instead of firing the same slot twice
+	 */
+	@Test
+	public void testNextSlot() {
+		final long period = 15000L, phase = 2300L;
+		final long slot = CollectionScheduler.nextSlot(System.currentTimeMillis(), period, phase);
+		Assert.assertEquals(phase, slot % period);
+		Assert.assertEquals(slot + period, CollectionScheduler.nextSlot(slot, period, phase));
+		Assert.assertEquals(slot, CollectionScheduler.nextSlot(slot - 1, period, phase));
+		// the wheel fired 5 ms early
+		final long early = slot - 5;
+		Assert.assertEquals(slot + period, CollectionScheduler.nextSlot(Math.max(early, slot + 1), period, phase));
+		// the wheel fired 3 periods late
+		final long late = slot + (3 * period) + 10;
+		Assert.assertEquals(slot + (4 * period), CollectionScheduler.nextSlot(Math.max(late, slot + 1), period, phase));
+	}
+
+	/**
+	 * Tests that a host's limiter is removed with the host's last schedule
+	 */
+	@Test
+	public void testLimiterRemovedWithLastSchedule() {
+		final String host = "gone" + System.nanoTime();
+		final CollectionScheduler scheduler = CollectionScheduler.getInstance();
+		final CollectorExecutionService executionService = CollectorExecutionService.getInstance();
+		final Schedule a = scheduler.schedule(host + ".a", host, 1, TimeUnit.HOURS, () -> null);
+		final Schedule b = scheduler.schedule(host + ".b", host, 1, TimeUnit.HOURS, () -> null);
+		executionService.limiter(host);
+		a.cancel();
+		Assert.assertTrue("Limiter removed while the host has a schedule", executionService.getLimiters().containsKey(host));
+		a.cancel();
+		Assert.assertTrue("Limiter removed by a repeated cancel", executionService.getLimiters().containsKey(host));
+		b.cancel();
+		Assert.assertFalse("Limiter not removed", executionService.getLimiters().containsKey(host));
+	}
+}
@@ -0,0 +1,183 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package test.com.heliosapm.streams.collector.execution;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.collector.execution.TargetLimiter;
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
+
+/**
+ * <p>Title: TargetLimiterTest</p>
+ * <p>Description: Tests for the per-target adaptive concurrency limit and waiting run cap</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.streams.collector.execution.TargetLimiterTest</code></p>
+ */
+
+public class TargetLimiterTest {
+	/** One ms. in ns. */
+	static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * Runs one collection against the passed limiter
+	 * @param limiter The limiter
+	 * @param elapsedNanos The collection's elapsed time in ns.
+	 * @param success true if the collection succeeded, false if it failed
+	 */
+	static void run(final TargetLimiter limiter, final long elapsedNanos, final boolean success) {
+		Assert.assertTrue("Slot not acquired", limiter.tryAcquire());
+		limiter.started();
+		limiter.release(elapsedNanos, success);
+	}
+
+	/**
+	 * Tests that the limit grows additively, by one over the limit per release, only while the target is saturated
+	 */
+	@Test
+	public void testIncreaseOnSaturation() {
+		final TargetLimiter limiter = new TargetLimiter("increase" + System.nanoTime(), 2, 1, 8, 2.0d, 0.5d, 8);
+		// one collection at a time never saturates a limit of 2
+		for(int i = 0; i < 10; i++) run(limiter, MS, true);
+		Assert.assertEquals(2, limiter.getLimit());
+		// saturate: each release with the limit in flight adds 1/limit, 2 + 1/2 + 1/2.5 + 1/2.9
+		for(int i = 0; i < 3; i++) {
+			Assert.assertTrue(limiter.tryAcquire());
+			Assert.assertTrue(limiter.tryAcquire());
+			Assert.assertFalse("Limit not applied", limiter.tryAcquire());
+			limiter.started();
+			limiter.started();
+			limiter.release(MS, true);
+			limiter.release(MS, true);
+		}
+		Assert.assertEquals(3, limiter.getLimit());
+		// never past the maximum
+		for(int i = 0; i < 100; i++) {
+			final int limit = limiter.getLimit();
+			for(int s = 0; s < limit; s++) {
+				Assert.assertTrue(limiter.tryAcquire());
+				limiter.started();
+			}
+			for(int s = 0; s < limit; s++) limiter.release(MS, true);
+		}
+		Assert.assertEquals(8, limiter.getLimit());
+		Assert.assertEquals(0, limiter.getInFlight());
+	}
+
+	/**
+	 * Tests that the limit is multiplied by the backoff when the smoothed latency rises past the tolerance of the baseline
+	 */
+	@Test
+	public void testDecreaseOnLatencyRise() {
+		final TargetLimiter limiter = new TargetLimiter("latency" + System.nanoTime(), 8, 1, 8, 2.0d, 0.5d, 8);
+		for(int i = 0; i < 10; i++) run(limiter, MS, true);
+		Assert.assertEquals(8, limiter.getLimit());
+		// within the tolerance
+		run(limiter, MS * 5 / 4, true);
+		Assert.assertEquals(8, limiter.getLimit());
+		// smoothed latency of ~21 ms. against a baseline of ~2 ms.
+		run(limiter, 100 * MS, true);
+		Assert.assertEquals(4, limiter.getLimit());
+	}
+
+	/**
+	 * Tests that a failed collection decreases the limit, at most once per smoothed latency interval, and never below the minimum
+	 */
+	@Test
+	public void testDecreaseOncePerInterval() {
+		final TargetLimiter slow = new TargetLimiter("failslow" + System.nanoTime(), 8, 1, 8, 2.0d, 0.5d, 8);
+		run(slow, TimeUnit.SECONDS.toNanos(10), false);
+		Assert.assertEquals(4, slow.getLimit());
+		// further failures within the 10 s. interval are the same congestion event
+		run(slow, TimeUnit.SECONDS.toNanos(10), false);
+		run(slow, TimeUnit.SECONDS.toNanos(10), false);
+		Assert.assertEquals(4, slow.getLimit());
+		final TargetLimiter fast = new TargetLimiter("failfast" + System.nanoTime(), 8, 2, 8, 2.0d, 0.5d, 8);
+		run(fast, 1000L, false);
+		Assert.assertEquals(4, fast.getLimit());
+		// past the 1 us. interval every failure decreases again
+		for(int i = 0; i < 3; i++) {
+			LockSupport.parkNanos(MS);
+			run(fast, 1000L, false);
+		}
+		Assert.assertEquals("Decreased past the minimum", 2, fast.getLimit());
+	}
+
+	/**
+	 * Tests that closing a limiter removes its metrics from the shared registry
+	 */
+	@Test
+	public void testCloseRemovesMetrics() {
+		final String target = "close" + System.nanoTime();
+		final SharedMetricsRegistry registry = SharedMetricsRegistry.getInstance();
+		final TargetLimiter limiter = new TargetLimiter(target, 2, 1, 4, 2.0d, 0.75d, 4);
+		final String prefix = "collector.target." + target + ".";
+		Assert.assertTrue(registry.getGauges().containsKey("gauge." + prefix + "limit"));
+		Assert.assertTrue(registry.getCounters().containsKey("counter." + prefix + "rejections"));
+		limiter.close();
+		for(String name: registry.getNames()) {
+			Assert.assertFalse("Metric not removed: " + name, name.contains(prefix));
+		}
+	}
+
+	/**
+	 * Tests that targets whose sanitized metric names are equal can both be created
+	 */
+	@Test
+	public void testMetricNameCollision() {
+		final String base = "collide" + System.nanoTime();
+		final TargetLimiter a = new TargetLimiter(base + "/b:9000", 2, 1, 4, 2.0d, 0.75d, 4);
+		final TargetLimiter b = new TargetLimiter(base + "_b_9000", 2, 1, 4, 2.0d, 0.75d, 4);
+		final TargetLimiter c = new TargetLimiter(base + "/b:9000", 2, 1, 4, 2.0d, 0.75d, 4);
+		Assert.assertTrue(a.tryAcquire());
+		Assert.assertTrue(b.tryAcquire());
+		Assert.assertTrue(c.tryAcquire());
+	}
+
+	/**
+	 * Tests that admitted runs waiting for a pool thread are capped independently of the in flight limit
+	 */
+	@Test
+	public void testQueuedCap() {
+		final TargetLimiter limiter = new TargetLimiter("queued" + System.nanoTime(), 4, 1, 4, 2.0d, 0.75d, 2);
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertFalse("Queue cap not applied", limiter.tryAcquire());
+		Assert.assertEquals(2, limiter.getQueued());
+		Assert.assertEquals(2, limiter.getInFlight());
+		limiter.started();
+		limiter.started();
+		Assert.assertEquals(0, limiter.getQueued());
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertTrue(limiter.tryAcquire());
+		limiter.started();
+		Assert.assertFalse("In flight limit not applied", limiter.tryAcquire());
+		Assert.assertEquals(2, limiter.getRejections());
+		Assert.assertEquals(1, limiter.getQueued());
+		limiter.cancel();
+		Assert.assertEquals(0, limiter.getQueued());
+		Assert.assertEquals(3, limiter.getInFlight());
+		limiter.release(TimeUnit.MILLISECONDS.toNanos(5), true);
+		Assert.assertEquals(2, limiter.getInFlight());
+	}
+}
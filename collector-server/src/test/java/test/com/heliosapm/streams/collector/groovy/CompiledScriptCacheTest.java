@@ -0,0 +1,188 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package test.com.heliosapm.streams.collector.groovy;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.collector.groovy.ByteBufReaderSource;
+import com.heliosapm.streams.collector.groovy.CompiledScriptCache;
+import com.heliosapm.streams.collector.groovy.CompiledScriptCache.CompiledScript;
+import com.heliosapm.streams.collector.groovy.CompiledScriptCache.ScriptClassLoader;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+
+/**
+ * <p>Title: CompiledScriptCacheTest</p>
+ * <p>Description: Tests the compiled script cache's keys, its round trip from compilation to defined script class,
+ * and that its classpath stamp and fingerprint track changes to the classpath directories</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.streams.collector.groovy.CompiledScriptCacheTest</code></p>
+ */
+
+public class CompiledScriptCacheTest {
+	/** A script compiling to a script class and a closure class */
+	static final String SCRIPT = "def twice = { x -> x * 2 }\nreturn 'hello ' + twice(21)\n";
+
+	/**
+	 * Writes a script source file
+	 * @param file The file to write
+	 * @param source The script source
+	 * @throws Exception thrown on any error
+	 */
+	static void write(final File file, final String source) throws Exception {
+		Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Tests that a compilation keyed, written and read back from the cache defines a working script class
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+		final File root = Files.createTempDirectory("scripts").toFile();
+		final File cacheDir = Files.createTempDirectory("gsc").toFile();
+		final File scriptFile = new File(root, "hello.groovy");
+		write(scriptFile, SCRIPT);
+		final CompilerConfiguration config = new CompilerConfiguration();
+		final CompiledScriptCache cache = new CompiledScriptCache(cacheDir);
+		final ByteBufReaderSource source = new ByteBufReaderSource(scriptFile, root.toPath());
+		try {
+			final String key = cache.key(source, Collections.<String>emptyList(), config, CompiledScriptCache.fingerprint(root));
+			Assert.assertNull(cache.get(key));
+			Assert.assertEquals(1L, cache.getMisses());
+			final CompiledScript compiled;
+			try(final GroovyClassLoader gcl = new GroovyClassLoader(getClass().getClassLoader(), config)) {
+				compiled = CompiledScriptCache.compile(source, config, gcl);
+			}
+			Assert.assertEquals("hello", compiled.getMainClassName());
+			cache.put(key, compiled);
+			Assert.assertEquals(1L, cache.getWrites());
+			final CompiledScript cached = cache.get(key);
+			Assert.assertNotNull("Compilation not cached", cached);
+			Assert.assertEquals(1L, cache.getHits());
+			Assert.assertEquals(0L, cache.getErrors());
+			Assert.assertEquals(compiled.getMainClassName(), cached.getMainClassName());
+			try(final ScriptClassLoader loader = new ScriptClassLoader(getClass().getClassLoader(), config)) {
+				final Class<?> clazz = loader.define(cached);
+				Assert.assertEquals("hello", clazz.getName());
+				Assert.assertSame(loader, clazz.getClassLoader());
+				Assert.assertEquals("Closure class not defined", 2, loader.getLoadedClasses().length);
+				final Script script = (Script)clazz.newInstance();
+				Assert.assertEquals("hello 42", script.run());
+			}
+		} finally {
+			source.close();
+			for(File f: cacheDir.listFiles()) f.delete();
+			cacheDir.delete();
+			scriptFile.delete();
+			root.delete();
+		}
+	}
+
+	/**
+	 * Tests that the key is stable for the same source and changes when the source changes
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testKeyTracksSource() throws Exception {
+		final File root = Files.createTempDirectory("scripts").toFile();
+		final File cacheDir = Files.createTempDirectory("gsc").toFile();
+		final File scriptFile = new File(root, "hello.groovy");
+		final CompilerConfiguration config = new CompilerConfiguration();
+		final CompiledScriptCache cache = new CompiledScriptCache(cacheDir);
+		try {
+			write(scriptFile, SCRIPT);
+			final String key = key(cache, scriptFile, root, config);
+			Assert.assertEquals("Key not stable", key, key(cache, scriptFile, root, config));
+			write(scriptFile, SCRIPT.replace("21", "22"));
+			Assert.assertNotEquals("Key missed the source change", key, key(cache, scriptFile, root, config));
+		} finally {
+			scriptFile.delete();
+			root.delete();
+			cacheDir.delete();
+		}
+	}
+
+	/**
+	 * Computes the cache key of a script source file against a fixed classpath fingerprint,
+	 * so that only the source itself can change the key
+	 * @param cache The cache
+	 * @param scriptFile The script source file
+	 * @param root The script root directory
+	 * @param config The compiler configuration
+	 * @return the key
+	 */
+	static String key(final CompiledScriptCache cache, final File scriptFile, final File root, final CompilerConfiguration config) {
+		final ByteBufReaderSource source = new ByteBufReaderSource(scriptFile, root.toPath());
+		try {
+			return cache.key(source, Collections.<String>emptyList(), config, "classpath");
+		} finally {
+			source.close();
+		}
+	}
+
+	/**
+	 * Tests that adding a file to a nested directory changes the stamp and the fingerprint,
+	 * and that replacing a file in place changes the fingerprint
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testClasspathChanges() throws Exception {
+		final File lib = Files.createTempDirectory("lib").toFile();
+		final File fixtures = Files.createTempDirectory("fixtures").toFile();
+		final File jdbc = new File(lib, "jdbc");
+		Assert.assertTrue(jdbc.mkdir());
+		final File jar = new File(lib, "a.jar");
+		try {
+			Files.write(jar.toPath(), new byte[]{1, 2, 3});
+			// back date the directories so adding a file changes their timestamp even on a file system with one second resolution
+			final long past = System.currentTimeMillis() - 10000L;
+			Assert.assertTrue(lib.setLastModified(past));
+			Assert.assertTrue(jdbc.setLastModified(past));
+			final long stamp = CompiledScriptCache.directoryStamp(fixtures, lib);
+			final String fp = CompiledScriptCache.fingerprint(fixtures, lib);
+			Assert.assertEquals(stamp, CompiledScriptCache.directoryStamp(fixtures, lib));
+			Assert.assertEquals(fp, CompiledScriptCache.fingerprint(fixtures, lib));
+			final File driver = new File(jdbc, "driver.jar");
+			Files.write(driver.toPath(), new byte[]{1});
+			Assert.assertNotEquals("Stamp missed the new file", stamp, CompiledScriptCache.directoryStamp(fixtures, lib));
+			final String added = CompiledScriptCache.fingerprint(fixtures, lib);
+			Assert.assertNotEquals("Fingerprint missed the new file", fp, added);
+			final long addedStamp = CompiledScriptCache.directoryStamp(fixtures, lib);
+			Files.write(jar.toPath(), new byte[]{1, 2, 3, 4});
+			Assert.assertEquals("Stamp changed on an in place write", addedStamp, CompiledScriptCache.directoryStamp(fixtures, lib));
+			Assert.assertNotEquals("Fingerprint missed the replaced file", added, CompiledScriptCache.fingerprint(fixtures, lib));
+			driver.delete();
+		} finally {
+			jar.delete();
+			jdbc.delete();
+			lib.delete();
+			fixtures.delete();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package test.com.heliosapm.streams.collector.groovy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.collector.groovy.ManagedScript;
+
+/**
+ * <p>Title: ManagedScriptTest</p>
+ * <p>Description: Tests for the target host authority {@link ManagedScript} extracts from endpoint URLs</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.streams.collector.groovy.ManagedScriptTest</code></p>
+ */
+
+public class ManagedScriptTest {
+
+	/**
+	 * Tests the authority of JMX service URLs with and without ports
+	 */
+	@Test
+	public void testAuthority() {
+		Assert.assertEquals("localhost:8006", ManagedScript.authority("service:jmx:jmxmp://localhost:8006"));
+		Assert.assertEquals("host:9082", ManagedScript.authority("service:jmx:rmi:///jndi/rmi://host:9082/jmxrmi"));
+		Assert.assertEquals("kafka-1", ManagedScript.authority("service:jmx:jmxmp://kafka-1"));
+		Assert.assertEquals("10.0.0.5:1099", ManagedScript.authority("service:jmx:rmi://10.0.0.5:1099"));
+	}
+
+	/**
+	 * Tests that URLs without a host have no authority
+	 */
+	@Test
+	public void testNoAuthority() {
+		Assert.assertNull(ManagedScript.authority("service:jmx:local://"));
+		Assert.assertNull(ManagedScript.authority("service:jmx:attach:///[12345]"));
+		Assert.assertNull(ManagedScript.authority("service:jmx:jmxmp://${host}:8006"));
+		Assert.assertNull(ManagedScript.authority(""));
+	}
+}
@@ -0,0 +1,144 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package test.com.heliosapm.streams.collector.jmx;
+
+import java.util.Map;
+
+import javax.management.ObjectName;
+import javax.management.remote.jmxmp.JMXMPConnectorServer;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.heliosapm.streams.collector.jmx.BulkAttributeReaderMBean;
+import com.heliosapm.streams.collector.jmx.JMXClient;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: JMXClientTest</p>
+ * <p>Description: Tests for {@link JMXClient} attribute harvests with and without the bulk attribute reader</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.streams.collector.jmx.JMXClientTest</code></p>
+ */
+
+public class JMXClientTest {
+	/** The JMXMP server the clients connect to */
+	static JMXMPConnectorServer jmxmp;
+	/** The JMX URL of the JMXMP server */
+	static String url;
+	/** The harvested pattern */
+	static final ObjectName PATTERN = JMXHelper.objectName("java.lang:*");
+	/** The harvested attribute, which only the memory MXBean has */
+	static final String ATTRIBUTE = "HeapMemoryUsage";
+	/** The bulk attribute reader ObjectName */
+	static final ObjectName READER = JMXHelper.objectName(BulkAttributeReaderMBean.OBJECT_NAME);
+
+	/**
+	 * Starts the JMXMP server
+	 */
+	@BeforeClass
+	public static void startServer() {
+		jmxmp = JMXHelper.fireUpJMXMPServer(0);
+		url = "service:jmx:jmxmp://localhost:" + jmxmp.getAddress().getPort();
+	}
+
+	/**
+	 * Stops the JMXMP server
+	 * @throws Exception thrown on any error
+	 */
+	@AfterClass
+	public static void stopServer() throws Exception {
+		System.clearProperty(JMXClient.CONFIG_BULK_READER);
+		if(jmxmp!=null) jmxmp.stop();
+	}
+
+	/**
+	 * Tests that the reader is not installed by default and that the per MBean harvest
+	 * is a query plus one read per MBean, without fetching any MBeanInfo
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testPerMBeanHarvest() throws Exception {
+		final JMXClient client = new JMXClient(url, 10);
+		try {
+			Assert.assertFalse(client.isBulkReaderInstalled());
+			Assert.assertFalse(client.isRegistered(READER));
+			final int mbeans = client.queryNames(PATTERN, null).size();
+			Assert.assertTrue(mbeans > 1);
+			final long saved = client.getRoundTripsSaved();
+			final long hits = client.getInfoCacheHits();
+			final long misses = client.getInfoCacheMisses();
+			for(int i = 0; i < 2; i++) {
+				final long calls = client.getRemoteCallCount();
+				assertHarvested(client.harvest(PATTERN, ATTRIBUTE));
+				Assert.assertEquals("Expected a query and one read per MBean", calls + 1 + mbeans, client.getRemoteCallCount());
+			}
+			Assert.assertEquals("MBeanInfo fetched", misses, client.getInfoCacheMisses());
+			Assert.assertEquals("MBeanInfo fetched", hits, client.getInfoCacheHits());
+			Assert.assertEquals("Per MBean reads counted as saved", saved, client.getRoundTripsSaved());
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * Tests that an enabled reader is installed on the first harvest and unregistered when the client is closed
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBulkReaderHarvest() throws Exception {
+		System.setProperty(JMXClient.CONFIG_BULK_READER, "true");
+		final JMXClient client;
+		try {
+			client = new JMXClient(url, 10);
+		} finally {
+			System.clearProperty(JMXClient.CONFIG_BULK_READER);
+		}
+		final JMXClient observer = new JMXClient(url, 10);
+		try {
+			final long saved = client.getRoundTripsSaved();
+			assertHarvested(client.harvest(PATTERN, ATTRIBUTE));
+			Assert.assertTrue(client.isBulkReaderInstalled());
+			Assert.assertTrue(observer.isRegistered(READER));
+			Assert.assertEquals(saved + 1, client.getRoundTripsSaved());
+			final long calls = client.getRemoteCallCount();
+			assertHarvested(client.harvest(PATTERN, ATTRIBUTE));
+			Assert.assertEquals("Expected one call", calls + 1, client.getRemoteCallCount());
+			client.close();
+			Assert.assertFalse("Reader not unregistered", observer.isRegistered(READER));
+		} finally {
+			client.close();
+			observer.close();
+		}
+	}
+
+	/**
+	 * Asserts that a harvest returned only the memory MXBean's attribute
+	 * @param harvested The harvest result
+	 */
+	static void assertHarvested(final Map<ObjectName, Map<String, Object>> harvested) {
+		Assert.assertEquals(harvested.toString(), 1, harvested.size());
+		final Map<String, Object> attrs = harvested.get(JMXHelper.objectName("java.lang:type=Memory"));
+		Assert.assertNotNull(attrs);
+		Assert.assertNotNull(attrs.get(ATTRIBUTE));
+	}
+}
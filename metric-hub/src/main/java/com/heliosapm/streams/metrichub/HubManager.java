@@ -23,25 +23,35 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import javax.sql.DataSource;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.fasterxml.jackson.core.JsonGenerator;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
 import com.heliosapm.utils.buffer.BufferManager;
+import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.streams.metrichub.impl.MetricsMetaAPIImpl;
 import com.heliosapm.streams.metrichub.results.QueryResult;
 import com.heliosapm.streams.metrichub.results.QueryResultDecoder;
 import com.heliosapm.streams.metrichub.results.RequestCompletion;
+import com.heliosapm.streams.metrichub.results.ShardCompletion;
+import com.heliosapm.streams.metrichub.results.ShardResults;
 import com.heliosapm.streams.sqlbinder.SQLWorker;
 import com.heliosapm.utils.url.URLHelper;
 
@@ -58,6 +68,7 @@ import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.pool.AbstractChannelPoolMap;
 import io.netty.channel.pool.ChannelPool;
+import io.netty.util.concurrent.Future;
 import io.netty.channel.pool.ChannelPoolHandler;
 import io.netty.channel.pool.ChannelPoolMap;
 import io.netty.channel.pool.SimpleChannelPool;
@@ -69,7 +80,6 @@ import io.netty.handler.codec.http.HttpContentDecompressor;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.logging.LogLevel;
@@ -115,6 +125,22 @@ public class HubManager implements MetricsMetaAPI, ChannelPoolHandler, Closeable
 	private final ChannelGroup channelGroup;
 	/** The known up tsdb endpoints */
 	private final List<InetSocketAddress> tsdbAddresses = new CopyOnWriteArrayList<InetSocketAddress>();
+	/** The query URLs of the known up tsdb endpoints keyed by the endpoint address */
+	private final Map<InetSocketAddress, URL> tsdbQueryUrls = new ConcurrentHashMap<InetSocketAddress, URL>();
+	/** The maximum number of TSUIDs sent to a tsdb endpoint in one query shard */
+	private final int shardSize;
+	/** The shard timeout in ms. */
+	private final long shardTimeout;
+	/** The number of times a failed shard is retried against another endpoint */
+	private final int shardRetries;
+	/** The per endpoint shard latency timers */
+	private final Map<InetSocketAddress, Timer> endpointTimers = new ConcurrentHashMap<InetSocketAddress, Timer>();
+	/** The histogram of the elapsed time between the fastest and slowest shard of a query in ms. */
+	private final Histogram shardSkew = SharedMetricsRegistry.getInstance().histogram("hubmanager.shard.skew");
+	/** The counter of shard retries */
+	private final Counter shardRetryCount = SharedMetricsRegistry.getInstance().counter("hubmanager.shard.retries");
+	/** The counter of shards failed after exhausting their retries */
+	private final Counter shardFailures = SharedMetricsRegistry.getInstance().counter("hubmanager.shard.failures");
 	/** The number of loaded addresses */
 	private final int endpointCount;
 	/** Sequence for getting random endpoint */
@@ -127,8 +153,19 @@ public class HubManager implements MetricsMetaAPI, ChannelPoolHandler, Closeable
 	/** The closing characters of an OpenTSDB JSON request */
 	public static final String REQUEST_CLOSER = "]}]}"; 
 	
+	/** The config property name for the maximum number of TSUIDs sent to a tsdb endpoint in one query shard */
+	public static final String CONFIG_SHARD_SIZE = "metrichub.query.shardsize";
+	/** The default maximum number of TSUIDs in one query shard */
+	public static final int DEFAULT_SHARD_SIZE = 500;
+	/** The config property name for the shard timeout in ms. A value less than 1 uses the query context timeout */
+	public static final String CONFIG_SHARD_TIMEOUT = "metrichub.query.shardtimeout";
+	/** The default shard timeout in ms. */
+	public static final long DEFAULT_SHARD_TIMEOUT = 0L;
+	/** The config property name for the number of times a failed shard is retried against another endpoint */
+	public static final String CONFIG_SHARD_RETRIES = "metrichub.query.shardretries";
+	/** The default number of shard retries */
+	public static final int DEFAULT_SHARD_RETRIES = 1;
 	
-	private final QueryResultDecoder queryResultDecoder = new QueryResultDecoder();
 	
 	/** Instance logger */
 	private final Logger log = LogManager.getLogger(getClass());
@@ -146,7 +183,7 @@ public class HubManager implements MetricsMetaAPI, ChannelPoolHandler, Closeable
 			p.addLast("httpcodec",    new HttpClientCodec());
 			p.addLast("inflater",   new HttpContentDecompressor());
 			//p.addLast("aggregator", new HttpObjectAggregator(1048576));
-			p.addLast("qdecoder", queryResultDecoder);
+			p.addLast("qdecoder", new QueryResultDecoder());
 //			p.addLast("logging", loggingHandler);
 		}
 	};
@@ -226,9 +263,14 @@ public class HubManager implements MetricsMetaAPI, ChannelPoolHandler, Closeable
 		tsdbEndpoint = TSDBEndpoint.getEndpoint(metricMetaService.getSqlWorker());
 		for(String url: tsdbEndpoint.getUpServers()) {
 			final URL tsdbUrl = URLHelper.toURL(url);
-			tsdbAddresses.add(new InetSocketAddress(tsdbUrl.getHost(), tsdbUrl.getPort()));
+			final InetSocketAddress addr = new InetSocketAddress(tsdbUrl.getHost(), tsdbUrl.getPort());
+			tsdbAddresses.add(addr);
+			tsdbQueryUrls.put(addr, URLHelper.toURL(url + "/query/"));
 		}
 		endpointCount = tsdbAddresses.size(); 
+		shardSize = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_SHARD_SIZE, DEFAULT_SHARD_SIZE, properties));
+		shardTimeout = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_SHARD_TIMEOUT, DEFAULT_SHARD_TIMEOUT, properties);
+		shardRetries = Math.max(0, ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_SHARD_RETRIES, DEFAULT_SHARD_RETRIES, properties));
 		endpointSequence = new AtomicInteger(endpointCount);
 		group = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2, metricMetaService.getForkJoinPool());
 		bootstrap = new Bootstrap();
@@ -271,6 +313,29 @@ public class HubManager implements MetricsMetaAPI, ChannelPoolHandler, Closeable
 		log.info("<<<<< HubManager Initialized.");
 	}
 	
+	/**
+	 * Creates a HubManager for the passed endpoints with no metadata service or netty client,
+	 * so only the shard dispatch can be used. Attempts must be run by overriding {@link #query(RequestBuilder, List, long, InetSocketAddress, Consumer)}.
+	 * @param endpoints The tsdb endpoints
+	 * @param shardSize The maximum number of TSUIDs in one query shard
+	 * @param shardRetries The number of times a failed shard is retried against another endpoint
+	 */
+	HubManager(final List<InetSocketAddress> endpoints, final int shardSize, final int shardRetries) {
+		metricMetaService = null;
+		tsdbEndpoint = null;
+		tsdbAddresses.addAll(endpoints);
+		endpointCount = tsdbAddresses.size();
+		this.shardSize = Math.max(1, shardSize);
+		shardTimeout = DEFAULT_SHARD_TIMEOUT;
+		this.shardRetries = Math.max(0, shardRetries);
+		endpointSequence = new AtomicInteger(endpointCount);
+		group = null;
+		bootstrap = null;
+		poolMap = null;
+		eventExecutor = null;
+		channelGroup = null;
+	}
+	
 	/**
 	 * Acquires the next tsdb socket address
 	 * @return the next tsdb socket address
@@ -324,32 +389,202 @@ public class HubManager implements MetricsMetaAPI, ChannelPoolHandler, Closeable
 //		System.err.println("Count:" + resultStream.count());
 	}
 	
+	/**
+	 * Evaluates the passed expression and queries the matched TSUIDs from the tsdb endpoints.
+	 * The TSUIDs are split into shards which are dispatched concurrently across all the up endpoints,
+	 * and the shards' results are merged into the returned completion.
+	 * @param queryContext The query context
+	 * @param requestBuilder The request builder defining the query
+	 * @param expression The MetricMetaAPI TSMeta expression
+	 * @return the completion the results are delivered to
+	 */
 	public RequestCompletion evaluate(final QueryContext queryContext, final RequestBuilder requestBuilder, final String expression) {
 		try {
-			final JsonGenerator jg = requestBuilder.renderHeader();
-			final ChannelPool pool = channelPool();
-			final Channel channel = pool.acquire().get();
 			final CompletableFuture<RequestCompletion> completionFuture = new CompletableFuture<RequestCompletion>();
- 
 			evaluate(queryContext, expression).flush().consume(lmt -> {
-				final RequestCompletion rc = new RequestCompletion(queryContext.getTimeout(), pool);
-				if(channel.pipeline().get("completion")!=null) {
-					try { channel.pipeline().remove("completion"); } catch (Exception ex) {}
+				try {
+					completionFuture.complete(dispatch(queryContext, requestBuilder, lmt));
+				} catch (Exception ex) {
+					completionFuture.completeExceptionally(ex);
 				}
-				channel.pipeline().addLast("completion", rc);
-				completionFuture.complete(rc);
-				final ByteBuf bb = requestBuilder.merge(jg, lmt);
-				if(log.isDebugEnabled()) log.debug("CREQUEST:\n{}", bb.toString(UTF8));				
-				final HttpRequest httpRequest = buildHttpRequest(bb);
-				log.info("Flushed request. Size: {} bytes", bb.readableBytes());
-				channel.writeAndFlush(httpRequest);					
-			});
+			}).when(Throwable.class, t -> completionFuture.completeExceptionally(t));
 			return completionFuture.get();
 		} catch (Exception ex) {
 			throw new RuntimeException("eval error", ex);
 		}
 	}
 	
+	/**
+	 * Splits the passed TSMetas into shards and dispatches them across the up endpoints.
+	 * Each shard's results are streamed into the returned completion as they are decoded.
+	 * @param queryContext The query context
+	 * @param requestBuilder The request builder defining the query
+	 * @param metas The TSMetas to query
+	 * @return the completion the shards' results are merged into
+	 */
+	protected RequestCompletion dispatch(final QueryContext queryContext, final RequestBuilder requestBuilder, final List<TSMeta> metas) {
+		final List<List<TSMeta>> shards = shard(metas);
+		final RequestCompletion rc = new RequestCompletion(queryContext.getTimeout(), shards.size());
+		if(shards.isEmpty()) return rc;
+		final long timeout = shardTimeout > 0 ? shardTimeout : queryContext.getTimeout();
+		final AtomicInteger remaining = new AtomicInteger(shards.size());
+		final AtomicLong fastest = new AtomicLong(Long.MAX_VALUE);
+		final AtomicLong slowest = new AtomicLong(0L);
+		final long start = System.currentTimeMillis();
+		log.info("Dispatching {} TSUIDs in {} shards across {} endpoints", metas.size(), shards.size(), endpointCount);
+		for(final List<TSMeta> shard: shards) {
+			send(requestBuilder, shard, timeout, shardRetries, endpointSocketAddress(), new ShardResults(rc::acceptPart)).whenComplete((v, t) -> {
+				if(t!=null) {
+					shardFailures.inc();
+					rc.fail(t);
+				} else {
+					final long elapsed = System.currentTimeMillis() - start;
+					fastest.accumulateAndGet(elapsed, Math::min);
+					slowest.accumulateAndGet(elapsed, Math::max);
+					rc.completePart();
+				}
+				if(remaining.decrementAndGet()==0 && slowest.get() > 0) {
+					shardSkew.update(slowest.get() - fastest.get());
+				}
+			});
+		}
+		return rc;
+	}
+	
+	/**
+	 * Splits the passed TSMetas into shards of at most the configured shard size,
+	 * making sure each endpoint gets a shard when there are enough TSMetas
+	 * @param metas The TSMetas to split
+	 * @return the list of shards
+	 */
+	protected List<List<TSMeta>> shard(final List<TSMeta> metas) {
+		return shard(metas, shardSize, endpointCount);
+	}
+	
+	/**
+	 * Splits the passed TSMetas into shards of at most the passed shard size,
+	 * making sure each endpoint gets a shard when there are enough TSMetas
+	 * @param metas The TSMetas to split
+	 * @param shardSize The maximum number of TSMetas in a shard
+	 * @param endpointCount The number of endpoints
+	 * @return the list of shards
+	 */
+	public static List<List<TSMeta>> shard(final List<TSMeta> metas, final int shardSize, final int endpointCount) {
+		final List<TSMeta> valid = new ArrayList<TSMeta>(metas.size());
+		for(TSMeta meta: metas) {
+			if(meta!=null) valid.add(meta);
+		}
+		final int total = valid.size();
+		final List<List<TSMeta>> shards = new ArrayList<List<TSMeta>>();
+		if(total==0) return shards;
+		final int perEndpoint = (total + endpointCount - 1) / endpointCount;
+		final int size = Math.max(1, Math.min(shardSize, perEndpoint));
+		for(int i = 0; i < total; i += size) {
+			shards.add(valid.subList(i, Math.min(total, i + size)));
+		}
+		return shards;
+	}
+	
+	/**
+	 * Sends one shard to the passed endpoint, retrying against another endpoint if the shard fails
+	 * @param requestBuilder The request builder defining the query
+	 * @param shard The TSMetas in the shard
+	 * @param timeout The shard timeout in ms.
+	 * @param retries The number of retries remaining
+	 * @param endpoint The endpoint to send the shard to
+	 * @param results The shard's results, which hands each series to the merging completion once across the attempts
+	 * @return a future completed when the shard's response is complete
+	 */
+	protected CompletableFuture<Void> send(final RequestBuilder requestBuilder, final List<TSMeta> shard, final long timeout, final int retries, final InetSocketAddress endpoint, final ShardResults results) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		final Timer.Context ctx = endpointTimer(endpoint).time();
+		query(requestBuilder, shard, timeout, endpoint, results.attempt()).whenComplete((v, t) -> {
+			if(t!=null) {
+				retryOrFail(requestBuilder, shard, timeout, retries, endpoint, results, t, future);
+			} else {
+				ctx.stop();
+				future.complete(null);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Runs one attempt at a shard against the passed endpoint
+	 * @param requestBuilder The request builder defining the query
+	 * @param shard The TSMetas in the shard
+	 * @param timeout The shard timeout in ms.
+	 * @param endpoint The endpoint to send the shard to
+	 * @param sink The sink each result is handed to as it is decoded
+	 * @return a future completed when the response is complete, or completed exceptionally if the attempt fails
+	 */
+	protected CompletableFuture<Void> query(final RequestBuilder requestBuilder, final List<TSMeta> shard, final long timeout, final InetSocketAddress endpoint, final Consumer<QueryResult> sink) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		final ChannelPool pool = poolMap.get(endpoint);
+		pool.acquire().addListener((Future<Channel> f) -> {
+			if(!f.isSuccess()) {
+				future.completeExceptionally(f.cause());
+				return;
+			}
+			final Channel channel = f.getNow();
+			final ShardCompletion sc = new ShardCompletion(timeout, pool, sink);
+			if(channel.pipeline().get("completion")!=null) {
+				try { channel.pipeline().remove("completion"); } catch (Exception ex) {}
+			}
+			channel.pipeline().addLast("completion", sc);
+			sc.future().whenComplete((v, t) -> {
+				if(t!=null) future.completeExceptionally(t);
+				else future.complete(null);
+			});
+			try {
+				final ByteBuf bb = requestBuilder.merge(requestBuilder.renderHeader(), shard);
+				if(log.isDebugEnabled()) log.debug("CREQUEST to [{}]:\n{}", endpoint, bb.toString(UTF8));
+				channel.writeAndFlush(buildHttpRequest(bb, endpoint)).addListener(wf -> {
+					if(!wf.isSuccess()) channel.pipeline().fireExceptionCaught(wf.cause());
+				});
+			} catch (Exception ex) {
+				channel.pipeline().fireExceptionCaught(ex);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Retries a failed shard against another endpoint, or fails the shard if it has no retries left
+	 * @param requestBuilder The request builder defining the query
+	 * @param shard The TSMetas in the shard
+	 * @param timeout The shard timeout in ms.
+	 * @param retries The number of retries remaining
+	 * @param failed The endpoint the shard failed on
+	 * @param results The shard's results
+	 * @param cause The cause of the failure
+	 * @param future The shard's future
+	 */
+	private void retryOrFail(final RequestBuilder requestBuilder, final List<TSMeta> shard, final long timeout, final int retries, final InetSocketAddress failed, final ShardResults results, final Throwable cause, final CompletableFuture<Void> future) {
+		if(retries < 1) {
+			future.completeExceptionally(cause);
+			return;
+		}
+		InetSocketAddress next = endpointSocketAddress();
+		if(endpointCount > 1 && next.equals(failed)) next = endpointSocketAddress();
+		log.warn("Shard of {} TSUIDs failed on [{}]. Retrying on [{}]: {}", shard.size(), failed, next, cause.toString());
+		shardRetryCount.inc();
+		send(requestBuilder, shard, timeout, retries-1, next, results).whenComplete((v, t) -> {
+			if(t!=null) future.completeExceptionally(t);
+			else future.complete(null);
+		});
+	}
+	
+	/**
+	 * Returns the shard latency timer for the passed endpoint
+	 * @param endpoint The endpoint
+	 * @return the timer
+	 */
+	private Timer endpointTimer(final InetSocketAddress endpoint) {
+		return endpointTimers.computeIfAbsent(endpoint, 
+			addr -> SharedMetricsRegistry.getInstance().timer("hubmanager.shard.latency." + addr.getHostString() + "_" + addr.getPort()));
+	}
+	
 	
 	protected ByteBuf updateJsonRequest(final List<TSMeta> tsMetas, final ByteBuf header) {
 		try {
@@ -368,9 +603,14 @@ public class HubManager implements MetricsMetaAPI, ChannelPoolHandler, Closeable
 		}
 	}
 	
-	protected HttpRequest buildHttpRequest(final ByteBuf jsonRequest) {
-		final String[] endpoints = tsdbEndpoint.getUpServers();
-		final URL postUrl = URLHelper.toURL(endpoints[0] + "/query/");
+	/**
+	 * Builds the query post request for the passed endpoint
+	 * @param jsonRequest The JSON query
+	 * @param endpoint The endpoint the request is sent to
+	 * @return the http request
+	 */
+	protected HttpRequest buildHttpRequest(final ByteBuf jsonRequest, final InetSocketAddress endpoint) {
+		final URL postUrl = tsdbQueryUrls.get(endpoint);
 		log.debug("Http Post to [{}]", postUrl);
 		final DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, postUrl.getPath(), jsonRequest);
 		request.headers().set(HttpHeaderNames.HOST, postUrl.getHost());
@@ -406,9 +646,8 @@ public class HubManager implements MetricsMetaAPI, ChannelPoolHandler, Closeable
 		p.addLast("httpcodec",    new HttpClientCodec());
 		p.addLast("inflater",   new HttpContentDecompressor());
 //		p.addLast("deflater",   new HttpContentCompressor());
-		p.addLast("aggregator", new HttpObjectAggregator(20485760));
 //		p.addLast("logging", loggingHandler);
-		p.addLast("qdecoder", queryResultDecoder);
+		p.addLast("qdecoder", new QueryResultDecoder());
 		
 	}
 	
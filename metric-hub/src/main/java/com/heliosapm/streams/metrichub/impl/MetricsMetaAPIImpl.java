@@ -47,10 +47,12 @@ import org.apache.logging.log4j.Logger;
 import com.heliosapm.streams.metrichub.MetaReader;
 import com.heliosapm.streams.metrichub.MetricsMetaAPI;
 import com.heliosapm.streams.metrichub.QueryContext;
+import com.heliosapm.streams.metrichub.index.TagIndex;
 import com.heliosapm.streams.metrichub.metareader.DefaultMetaReader;
 import com.heliosapm.streams.sqlbinder.SQLWorker;
 import com.heliosapm.streams.sqlbinder.TagPredicateCache;
 import com.heliosapm.streams.sqlbinder.datasource.SQLCompilerDataSource;
+import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.utils.jmx.JMXHelper;
 import com.heliosapm.utils.jmx.ManagedForkJoinPool;
 import com.heliosapm.utils.time.SystemClock;
@@ -96,6 +98,8 @@ public class MetricsMetaAPIImpl implements MetricsMetaAPI, UncaughtExceptionHand
 	protected final WorkQueueDispatcher dispatcher;
 	/** The tag predicate cache */
 	protected final TagPredicateCache tagPredicateCache;
+	/** The optional in-memory tag index, null if disabled */
+	protected final TagIndex tagIndex;
 	
 	/** The maximum TSUID in Hex String format */
 	public static final String MAX_TSUID;
@@ -253,6 +257,12 @@ public class MetricsMetaAPIImpl implements MetricsMetaAPI, UncaughtExceptionHand
 		public static final String GET_TSMETAS_NO_TAGS_NAME_TSUID_SQL =
 				"SELECT X.* FROM TSD_TSMETA X, TSD_METRIC M WHERE M.XUID = X.METRIC_UID AND %s AND M.NAME = ?  AND X.TSUID = ? ORDER BY X.TSUID DESC LIMIT ?";
 		
+		/** The TSMeta hydration SQL template for FQNIDs resolved by the tag index. Token is the FQNID bind symbols */
+		public static final String GET_TSMETAS_BY_FQNID_SQL =
+				"SELECT X.* FROM TSD_TSMETA X WHERE X.FQNID IN (%s) ORDER BY X.FQNID DESC";
+		/** The maximum number of FQNIDs hydrated per query, keeping IN lists within Oracle's limit */
+		public static final int MAX_HYDRATE_IDS = 512;
+
 		/** The initial start range if no starting index is supplied. Token is the target table alias  */
 		public static final String INITIAL_TSUID_START_SQL;
 		/** The initial start range if a starting index is supplied. Token is the target table alias */
@@ -350,6 +360,12 @@ public class MetricsMetaAPIImpl implements MetricsMetaAPI, UncaughtExceptionHand
 		tagPredicateCache = new TagPredicateCache(sqlWorker);
 		fjPool = new ManagedForkJoinPool(getClass().getSimpleName(), Runtime.getRuntime().availableProcessors(), true, JMXHelper.objectName(getClass()));
 		metaReader = new DefaultMetaReader(sqlWorker);
+		if(ConfigurationHelper.getBooleanSystemThenEnvProperty(TagIndex.CONFIG_ENABLED, TagIndex.DEFAULT_ENABLED, properties)) {
+			tagIndex = new TagIndex(sqlWorker, properties);
+			tagIndex.start();
+		} else {
+			tagIndex = null;
+		}
 		dispatcher = new WorkQueueDispatcher("MetricsMetaDispatcher", Runtime.getRuntime().availableProcessors(), 1024, this, ProducerType.MULTI, new LiteBlockingWaitStrategy());
 		log.info("Dispatcher Alive: {}", dispatcher.alive());
 	}
@@ -374,6 +390,7 @@ public class MetricsMetaAPIImpl implements MetricsMetaAPI, UncaughtExceptionHand
 	 */
 	public void close() throws IOException {
 		log.info(">>>>> Closing MetricsMetaAPIImpl...");
+		if(tagIndex!=null) tagIndex.close();
 		if(fjPool!=null) {			
 			try {
 				fjPool.shutdown();
@@ -651,6 +668,26 @@ public class MetricsMetaAPIImpl implements MetricsMetaAPI, UncaughtExceptionHand
 		final Stream<List<TSMeta>> stream = def.compose().collect();		
 		final String _metricName = (metricName==null || metricName.trim().isEmpty()) ? "*" : metricName.trim();
 		final Map<String, String> _tags = (tags==null) ? EMPTY_TAGS : tags;
+		if(tagIndex!=null && tagIndex.isReady() && tsuid==null && (queryContext.getNextIndex()==null || queryContext.getNextIndex() instanceof Long)) {
+			fjPool.execute(new Runnable() {
+				public void run() {
+					try {
+						getIndexedTSMetas(def, queryContext, _metricName, _tags, propertyListPattern);
+						if(queryContext.isContinuous() && queryContext.shouldContinue()) {
+							fjPool.execute(new Runnable(){
+								public void run() {
+									getTSMetas(def, queryContext, metricName, tags, propertyListPattern, tsuid);
+								}
+							});
+						}
+					} catch (Exception ex) {
+						log.error("Failed to execute indexed getTSMetas for [{}:{}]", _metricName, _tags, ex);
+						def.accept(new Exception("Failed to execute getTSMetas", ex));
+					}
+				}
+			});
+			return stream;
+		}
 		
 		fjPool.execute(new Runnable() {
 			@SuppressWarnings({ "boxing" })
@@ -693,6 +730,83 @@ public class MetricsMetaAPIImpl implements MetricsMetaAPI, UncaughtExceptionHand
 		return stream;
 	}
 	
+	/**
+	 * Streams the TSMetas matching the passed expression using the tag index to resolve the matching FQNIDs,
+	 * which are then hydrated from the DB a page at a time in descending FQNID order.
+	 * The query context's next index is the next FQNID to stream.
+	 * <p>Unlike the SQL path, which streams in descending TSUID order and pages on a TSUID next index, this path
+	 * streams in descending FQNID order, i.e. the newest TSMetas first. Sorting by TSUID would mean hydrating every
+	 * match before the first page, so a query started on one path stays on it: a TSUID next index is always
+	 * continued by the SQL path.</p>
+	 * @param def The deferred the TSMetas are accepted into
+	 * @param queryContext The query context
+	 * @param metricName The TSMeta metric name or expression
+	 * @param tags The TSMeta tags
+	 * @param propertyListPattern true if a TSMeta matching any of the tags matches, false if it must match all of them
+	 */
+	protected void getIndexedTSMetas(final Deferred<TSMeta, Stream<TSMeta>> def, final QueryContext queryContext, final String metricName, final Map<String, String> tags, final boolean propertyListPattern) {
+		final Long nextIndex = (Long)queryContext.getNextIndex();
+		final int from = nextIndex==null ? Integer.MAX_VALUE : (int)Math.min(Integer.MAX_VALUE, nextIndex);
+		final int limit = queryContext.getNextMaxLimit();
+		// one more than the limit so the next index is known
+		final int[] fqnIds = tagIndex.evaluate(metricName, tags, propertyListPattern).descending(from, limit + 1);
+		queryContext.addCtx("IndexEvaluated", System.currentTimeMillis());
+		final int pageRows = queryContext.getPageSize();
+		final int end = Math.min(limit, fqnIds.length);
+		int offset = 0;
+		do {
+			if(queryContext.isExpired()) {
+				def.accept(new TimeoutException("Request Timed Out During Processing after [" + queryContext.getTimeout() + "] ms."));
+				return;
+			}
+			final int pageEnd = Math.min(offset + pageRows, end);
+			for(int i = offset; i < pageEnd; i += MAX_HYDRATE_IDS) {
+				for(TSMeta meta: hydrateTSMetas(fqnIds, i, Math.min(i + MAX_HYDRATE_IDS, pageEnd))) {
+					def.accept(meta);
+				}
+			}
+			if(pageEnd < fqnIds.length) {
+				queryContext.setExhausted(false).setNextIndex((long)fqnIds[pageEnd]).incrementCummulative(pageEnd - offset);
+			} else {
+				queryContext.setExhausted(true).setNextIndex(null).incrementCummulative(pageEnd - offset);
+			}
+			offset = pageEnd;
+			queryContext.addCtx("StreamFlushed", System.currentTimeMillis());
+			def.flush();
+			if(offset < end && queryContext.shouldContinue()) {
+				queryContext.startExpiry();
+			} else {
+				break;
+			}
+		} while(true);
+	}
+
+	/**
+	 * Reads the TSMetas for a range of FQNIDs. The IN list is padded to a power of two with the last FQNID
+	 * so the number of distinct statements, and the binders compiled for them, stays small.
+	 * @param fqnIds The FQNIDs
+	 * @param start The index of the first FQNID to read
+	 * @param end The index after the last FQNID to read
+	 * @return the TSMetas in descending FQNID order
+	 */
+	protected List<TSMeta> hydrateTSMetas(final int[] fqnIds, final int start, final int end) {
+		final int count = end - start;
+		final int binds = Math.max(8, Integer.highestOneBit(count - 1) << 1);
+		final Object[] args = new Object[binds];
+		final StringBuilder b = new StringBuilder(binds * 3);
+		for(int i = 0; i < binds; i++) {
+			if(i > 0) b.append(", ");
+			b.append('?');
+			args[i] = (long)fqnIds[start + Math.min(i, count - 1)];
+		}
+		final ResultSet rset = sqlWorker.executeQuery(String.format(GET_TSMETAS_BY_FQNID_SQL, b), count, true, args);
+		try {
+			return metaReader.readTSMetas(rset, false);
+		} finally {
+			try { rset.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.streams.metrichub.MetricsMetaAPI#match(java.lang.String, byte[])
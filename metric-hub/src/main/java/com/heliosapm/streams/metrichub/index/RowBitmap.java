@@ -0,0 +1,676 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.metrichub.index;
+
+import java.util.Arrays;
+
+/**
+ * <p>Title: RowBitmap</p>
+ * <p>Description: A compressed bitmap of non-negative int row ids. Rows are partitioned by their high 16 bits into
+ * containers which hold the low 16 bits either as a sorted array (sparse, up to {@link #ARRAY_MAX} rows) or as a
+ * 65536 bit bitmap (dense), the same layout as a Roaring bitmap.</p>
+ * <p>Instances are not thread safe. The static {@link #and(RowBitmap, RowBitmap)} and {@link #andNot(RowBitmap, RowBitmap)}
+ * always return a new bitmap sharing no state with the operands, and {@link #or(RowBitmap)} never shares the passed bitmap's
+ * containers with this one.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrichub.index.RowBitmap</code></p>
+ */
+
+public class RowBitmap {
+	/** The maximum cardinality of an array container */
+	static final int ARRAY_MAX = 4096;
+	/** The number of longs in a bitmap container */
+	static final int WORDS = 1024;
+	/** An empty int array const */
+	static final int[] EMPTY_INT_ARR = {};
+
+	/** The high 16 bits of the rows in each container, in ascending order */
+	private char[] keys;
+	/** The containers, in the same order as the keys */
+	private Container[] containers;
+	/** The number of containers */
+	private int size = 0;
+
+	/**
+	 * Creates a new empty RowBitmap
+	 */
+	public RowBitmap() {
+		this(4);
+	}
+
+	private RowBitmap(final int capacity) {
+		keys = new char[capacity];
+		containers = new Container[capacity];
+	}
+
+	/**
+	 * Adds a row
+	 * @param row The row id
+	 * @return true if the row was added, false if it was already present
+	 */
+	public boolean add(final int row) {
+		checkRow(row);
+		final char hb = (char)(row >>> 16);
+		final int i = indexOf(hb);
+		if(i >= 0) {
+			final Container c = containers[i];
+			final int card = c.cardinality();
+			containers[i] = c.add((char)row);
+			return containers[i].cardinality()!=card;
+		}
+		insert(-i-1, hb, new ArrayContainer().add((char)row));
+		return true;
+	}
+
+	/**
+	 * Removes a row
+	 * @param row The row id
+	 * @return true if the row was removed, false if it was not present
+	 */
+	public boolean remove(final int row) {
+		if(row < 0) return false;
+		final int i = indexOf((char)(row >>> 16));
+		if(i < 0) return false;
+		final Container c = containers[i];
+		final int card = c.cardinality();
+		final Container r = c.remove((char)row);
+		if(r.cardinality()==0) {
+			System.arraycopy(keys, i+1, keys, i, size-i-1);
+			System.arraycopy(containers, i+1, containers, i, size-i-1);
+			containers[--size] = null;
+		} else {
+			containers[i] = r;
+		}
+		return r.cardinality()!=card;
+	}
+
+	/**
+	 * Indicates if the passed row is present
+	 * @param row The row id
+	 * @return true if the row is present, false otherwise
+	 */
+	public boolean contains(final int row) {
+		if(row < 0) return false;
+		final int i = indexOf((char)(row >>> 16));
+		return i >= 0 && containers[i].contains((char)row);
+	}
+
+	/**
+	 * Returns the number of rows
+	 * @return the number of rows
+	 */
+	public long getCardinality() {
+		long card = 0;
+		for(int i = 0; i < size; i++) {
+			card += containers[i].cardinality();
+		}
+		return card;
+	}
+
+	/**
+	 * Indicates if this bitmap has no rows
+	 * @return true if empty, false otherwise
+	 */
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	/**
+	 * Returns the approximate heap size of the containers in bytes
+	 * @return the approximate size in bytes
+	 */
+	public long getSizeInBytes() {
+		long bytes = (keys.length * 2L) + (containers.length * 8L);
+		for(int i = 0; i < size; i++) {
+			bytes += containers[i].sizeInBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Adds all the rows in the passed bitmap to this one
+	 * @param other The bitmap to add
+	 * @return this bitmap
+	 */
+	public RowBitmap or(final RowBitmap other) {
+		if(other.size==0) return this;
+		final char[] nk = new char[size + other.size];
+		final Container[] nc = new Container[size + other.size];
+		int i = 0, j = 0, n = 0;
+		while(i < size && j < other.size) {
+			final char ki = keys[i], kj = other.keys[j];
+			if(ki==kj) {
+				nk[n] = ki;
+				nc[n++] = containers[i++].ior(other.containers[j++]);
+			} else if(ki < kj) {
+				nk[n] = ki;
+				nc[n++] = containers[i++];
+			} else {
+				nk[n] = kj;
+				nc[n++] = other.containers[j++].copy();
+			}
+		}
+		while(i < size) {
+			nk[n] = keys[i];
+			nc[n++] = containers[i++];
+		}
+		while(j < other.size) {
+			nk[n] = other.keys[j];
+			nc[n++] = other.containers[j++].copy();
+		}
+		keys = nk;
+		containers = nc;
+		size = n;
+		return this;
+	}
+
+	/**
+	 * Returns a new bitmap of the rows present in both passed bitmaps
+	 * @param a The first bitmap
+	 * @param b The second bitmap
+	 * @return the intersection
+	 */
+	public static RowBitmap and(final RowBitmap a, final RowBitmap b) {
+		final RowBitmap r = new RowBitmap(Math.max(1, Math.min(a.size, b.size)));
+		int i = 0, j = 0;
+		while(i < a.size && j < b.size) {
+			final char ki = a.keys[i], kj = b.keys[j];
+			if(ki==kj) {
+				final Container c = a.containers[i++].and(b.containers[j++]);
+				if(c.cardinality() > 0) r.append(ki, c);
+			} else if(ki < kj) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Returns a new bitmap of the rows present in the first passed bitmap but not in the second
+	 * @param a The bitmap to subtract from
+	 * @param b The bitmap to subtract
+	 * @return the difference
+	 */
+	public static RowBitmap andNot(final RowBitmap a, final RowBitmap b) {
+		final RowBitmap r = new RowBitmap(Math.max(1, a.size));
+		int j = 0;
+		for(int i = 0; i < a.size; i++) {
+			final char ki = a.keys[i];
+			while(j < b.size && b.keys[j] < ki) j++;
+			if(j < b.size && b.keys[j]==ki) {
+				final Container c = a.containers[i].andNot(b.containers[j]);
+				if(c.cardinality() > 0) r.append(ki, c);
+			} else {
+				r.append(ki, a.containers[i].copy());
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Removes all the rows in the passed bitmap from this one
+	 * @param other The bitmap to remove
+	 * @return this bitmap
+	 */
+	public RowBitmap removeAll(final RowBitmap other) {
+		final RowBitmap r = andNot(this, other);
+		keys = r.keys;
+		containers = r.containers;
+		size = r.size;
+		return this;
+	}
+
+	/**
+	 * Returns a copy of this bitmap
+	 * @return a copy of this bitmap
+	 */
+	public RowBitmap copy() {
+		return new RowBitmap().or(this);
+	}
+
+	/**
+	 * Returns up to <b><code>max</code></b> rows, in descending order, starting at the passed row
+	 * @param fromInclusive The highest row to return
+	 * @param max The maximum number of rows to return
+	 * @return an array of the rows in descending order
+	 */
+	public int[] descending(final int fromInclusive, final int max) {
+		if(fromInclusive < 0 || max < 1 || size==0) return EMPTY_INT_ARR;
+		final int[] out = new int[(int)Math.min(max, getCardinality())];
+		final char hb = (char)(fromInclusive >>> 16);
+		final int lb = fromInclusive & 0xFFFF;
+		int n = 0;
+		for(int i = size - 1; i >= 0 && n < out.length; i--) {
+			if(keys[i] > hb) continue;
+			n = containers[i].descending(keys[i]==hb ? lb : 0xFFFF, keys[i] << 16, out, n, out.length);
+		}
+		return n==out.length ? out : Arrays.copyOf(out, n);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "RowBitmap [rows=" + getCardinality() + ", containers=" + size + "]";
+	}
+
+	private static void checkRow(final int row) {
+		if(row < 0) throw new IllegalArgumentException("Invalid negative row [" + row + "]");
+	}
+
+	private int indexOf(final char hb) {
+		return Arrays.binarySearch(keys, 0, size, hb);
+	}
+
+	private void ensureCapacity(final int capacity) {
+		if(capacity > keys.length) {
+			final int len = Math.max(capacity, keys.length * 2);
+			keys = Arrays.copyOf(keys, len);
+			containers = Arrays.copyOf(containers, len);
+		}
+	}
+
+	private void insert(final int index, final char key, final Container c) {
+		ensureCapacity(size + 1);
+		System.arraycopy(keys, index, keys, index+1, size-index);
+		System.arraycopy(containers, index, containers, index+1, size-index);
+		keys[index] = key;
+		containers[index] = c;
+		size++;
+	}
+
+	private void append(final char key, final Container c) {
+		ensureCapacity(size + 1);
+		keys[size] = key;
+		containers[size++] = c;
+	}
+
+	/**
+	 * <p>Title: Container</p>
+	 * <p>Description: Holds the low 16 bits of the rows sharing the same high 16 bits</p>
+	 * <p><code>com.heliosapm.streams.metrichub.index.RowBitmap.Container</code></p>
+	 */
+	abstract static class Container {
+		/**
+		 * Returns the number of values
+		 * @return the number of values
+		 */
+		abstract int cardinality();
+		/**
+		 * Adds a value
+		 * @param v The value
+		 * @return this container or the container that replaces it
+		 */
+		abstract Container add(char v);
+		/**
+		 * Removes a value
+		 * @param v The value
+		 * @return this container or the container that replaces it
+		 */
+		abstract Container remove(char v);
+		/**
+		 * Indicates if the value is present
+		 * @param v The value
+		 * @return true if present, false otherwise
+		 */
+		abstract boolean contains(char v);
+		/**
+		 * Returns a new container of the values in this and the passed container
+		 * @param other The other container
+		 * @return the intersection
+		 */
+		abstract Container and(Container other);
+		/**
+		 * Adds the values of the passed container, which is never modified or shared
+		 * @param other The other container
+		 * @return this container or the container that replaces it
+		 */
+		abstract Container ior(Container other);
+		/**
+		 * Returns a new container of the values in this container but not in the passed container
+		 * @param other The other container
+		 * @return the difference
+		 */
+		abstract Container andNot(Container other);
+		/**
+		 * Returns a copy of this container
+		 * @return a copy
+		 */
+		abstract Container copy();
+		/**
+		 * Writes values in descending order into the passed array
+		 * @param fromLow The highest value to write
+		 * @param high The high 16 bits to OR into each written value
+		 * @param out The array to write into
+		 * @param n The index in the array to write the first value at
+		 * @param max The maximum index in the array
+		 * @return the index in the array after the last written value
+		 */
+		abstract int descending(int fromLow, int high, int[] out, int n, int max);
+		/**
+		 * Returns the approximate heap size in bytes
+		 * @return the approximate heap size in bytes
+		 */
+		abstract long sizeInBytes();
+	}
+
+	/**
+	 * <p>Title: ArrayContainer</p>
+	 * <p>Description: A sparse container holding its values in a sorted array</p>
+	 * <p><code>com.heliosapm.streams.metrichub.index.RowBitmap.ArrayContainer</code></p>
+	 */
+	static class ArrayContainer extends Container {
+		/** The sorted values */
+		char[] values;
+		/** The number of values */
+		int card;
+
+		ArrayContainer() {
+			this(new char[4], 0);
+		}
+
+		ArrayContainer(final char[] values, final int card) {
+			this.values = values;
+			this.card = card;
+		}
+
+		@Override
+		int cardinality() {
+			return card;
+		}
+
+		@Override
+		Container add(final char v) {
+			int i = Arrays.binarySearch(values, 0, card, v);
+			if(i >= 0) return this;
+			if(card >= ARRAY_MAX) return toBitmap().add(v);
+			i = -i-1;
+			if(card==values.length) values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(8, card * 2)));
+			System.arraycopy(values, i, values, i+1, card-i);
+			values[i] = v;
+			card++;
+			return this;
+		}
+
+		@Override
+		Container remove(final char v) {
+			final int i = Arrays.binarySearch(values, 0, card, v);
+			if(i < 0) return this;
+			System.arraycopy(values, i+1, values, i, card-i-1);
+			card--;
+			return this;
+		}
+
+		@Override
+		boolean contains(final char v) {
+			return Arrays.binarySearch(values, 0, card, v) >= 0;
+		}
+
+		@Override
+		Container and(final Container other) {
+			final char[] out = new char[Math.min(card, other.cardinality())];
+			int n = 0;
+			if(other instanceof ArrayContainer) {
+				final ArrayContainer o = (ArrayContainer)other;
+				int i = 0, j = 0;
+				while(i < card && j < o.card) {
+					final char a = values[i], b = o.values[j];
+					if(a==b) {
+						out[n++] = a;
+						i++;
+						j++;
+					} else if(a < b) {
+						i++;
+					} else {
+						j++;
+					}
+				}
+			} else {
+				for(int i = 0; i < card; i++) {
+					if(other.contains(values[i])) out[n++] = values[i];
+				}
+			}
+			return new ArrayContainer(out, n);
+		}
+
+		@Override
+		Container ior(final Container other) {
+			if(other instanceof BitmapContainer) return other.copy().ior(this);
+			final ArrayContainer o = (ArrayContainer)other;
+			final char[] out = new char[card + o.card];
+			int i = 0, j = 0, n = 0;
+			while(i < card && j < o.card) {
+				final char a = values[i], b = o.values[j];
+				if(a==b) {
+					out[n++] = a;
+					i++;
+					j++;
+				} else if(a < b) {
+					out[n++] = values[i++];
+				} else {
+					out[n++] = o.values[j++];
+				}
+			}
+			while(i < card) out[n++] = values[i++];
+			while(j < o.card) out[n++] = o.values[j++];
+			if(n > ARRAY_MAX) {
+				final BitmapContainer b = new BitmapContainer();
+				for(int x = 0; x < n; x++) b.add(out[x]);
+				return b;
+			}
+			values = out;
+			card = n;
+			return this;
+		}
+
+		@Override
+		Container andNot(final Container other) {
+			final char[] out = new char[card];
+			int n = 0;
+			for(int i = 0; i < card; i++) {
+				if(!other.contains(values[i])) out[n++] = values[i];
+			}
+			return new ArrayContainer(out, n);
+		}
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, card), card);
+		}
+
+		@Override
+		int descending(final int fromLow, final int high, final int[] out, int n, final int max) {
+			int i = Arrays.binarySearch(values, 0, card, (char)fromLow);
+			if(i < 0) i = -i-2;
+			for(; i >= 0 && n < max; i--) {
+				out[n++] = high | values[i];
+			}
+			return n;
+		}
+
+		@Override
+		long sizeInBytes() {
+			return 16L + (values.length * 2L);
+		}
+
+		BitmapContainer toBitmap() {
+			final BitmapContainer b = new BitmapContainer();
+			for(int i = 0; i < card; i++) b.add(values[i]);
+			return b;
+		}
+	}
+
+	/**
+	 * <p>Title: BitmapContainer</p>
+	 * <p>Description: A dense container holding its values as a 65536 bit bitmap</p>
+	 * <p><code>com.heliosapm.streams.metrichub.index.RowBitmap.BitmapContainer</code></p>
+	 */
+	static class BitmapContainer extends Container {
+		/** The bitmap words */
+		final long[] words;
+		/** The number of set bits */
+		int card;
+
+		BitmapContainer() {
+			this(new long[WORDS], 0);
+		}
+
+		BitmapContainer(final long[] words, final int card) {
+			this.words = words;
+			this.card = card;
+		}
+
+		@Override
+		int cardinality() {
+			return card;
+		}
+
+		@Override
+		Container add(final char v) {
+			final int w = v >>> 6;
+			final long bit = 1L << v;
+			if((words[w] & bit)==0) {
+				words[w] |= bit;
+				card++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(final char v) {
+			final int w = v >>> 6;
+			final long bit = 1L << v;
+			if((words[w] & bit)!=0) {
+				words[w] &= ~bit;
+				card--;
+				if(card <= ARRAY_MAX) return toArray();
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(final char v) {
+			return (words[v >>> 6] & (1L << v))!=0;
+		}
+
+		@Override
+		Container and(final Container other) {
+			if(other instanceof ArrayContainer) return other.and(this);
+			final long[] o = ((BitmapContainer)other).words;
+			final long[] out = new long[WORDS];
+			int c = 0;
+			for(int i = 0; i < WORDS; i++) {
+				out[i] = words[i] & o[i];
+				c += Long.bitCount(out[i]);
+			}
+			return normalize(out, c);
+		}
+
+		@Override
+		Container ior(final Container other) {
+			if(other instanceof ArrayContainer) {
+				final ArrayContainer o = (ArrayContainer)other;
+				for(int i = 0; i < o.card; i++) add(o.values[i]);
+				return this;
+			}
+			final long[] o = ((BitmapContainer)other).words;
+			int c = 0;
+			for(int i = 0; i < WORDS; i++) {
+				words[i] |= o[i];
+				c += Long.bitCount(words[i]);
+			}
+			card = c;
+			return this;
+		}
+
+		@Override
+		Container andNot(final Container other) {
+			final long[] out = Arrays.copyOf(words, WORDS);
+			int c = card;
+			if(other instanceof ArrayContainer) {
+				final ArrayContainer o = (ArrayContainer)other;
+				for(int i = 0; i < o.card; i++) {
+					final char v = o.values[i];
+					final long bit = 1L << v;
+					if((out[v >>> 6] & bit)!=0) {
+						out[v >>> 6] &= ~bit;
+						c--;
+					}
+				}
+			} else {
+				final long[] o = ((BitmapContainer)other).words;
+				c = 0;
+				for(int i = 0; i < WORDS; i++) {
+					out[i] &= ~o[i];
+					c += Long.bitCount(out[i]);
+				}
+			}
+			return normalize(out, c);
+		}
+
+		@Override
+		Container copy() {
+			return new BitmapContainer(Arrays.copyOf(words, WORDS), card);
+		}
+
+		@Override
+		int descending(final int fromLow, final int high, final int[] out, int n, final int max) {
+			int w = fromLow >>> 6;
+			long word = words[w] & (-1L >>> (63 - (fromLow & 63)));
+			while(true) {
+				while(word!=0 && n < max) {
+					final int t = 63 - Long.numberOfLeadingZeros(word);
+					out[n++] = high | ((w << 6) + t);
+					word &= ~(1L << t);
+				}
+				if(n >= max || --w < 0) break;
+				word = words[w];
+			}
+			return n;
+		}
+
+		@Override
+		long sizeInBytes() {
+			return 16L + (WORDS * 8L);
+		}
+
+		ArrayContainer toArray() {
+			final char[] out = new char[card];
+			int n = 0;
+			for(int i = 0; i < WORDS; i++) {
+				long word = words[i];
+				while(word!=0) {
+					out[n++] = (char)((i << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayContainer(out, n);
+		}
+
+		private static Container normalize(final long[] words, final int card) {
+			final BitmapContainer b = new BitmapContainer(words, card);
+			return card > ARRAY_MAX ? b : b.toArray();
+		}
+	}
+}
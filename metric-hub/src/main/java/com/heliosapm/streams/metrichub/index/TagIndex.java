@@ -0,0 +1,673 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.metrichub.index;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
+import com.heliosapm.streams.sqlbinder.SQLWorker;
+import com.heliosapm.streams.sqlbinder.SQLWorker.ResultSetRowDataHandler;
+import com.heliosapm.utils.config.ConfigurationHelper;
+
+/**
+ * <p>Title: TagIndex</p>
+ * <p>Description: An in-memory inverted index of the TSMeta catalog. Metric names, tag keys and tag values are
+ * dictionary encoded to int codes, and each metric name and tag pair maps to a {@link RowBitmap} of the FQNIDs
+ * of the TSMetas carrying it, so metric/tag expressions resolve to matching FQNIDs with bitmap ANDs and ORs
+ * and the DB is only hit to hydrate the matched TSMetas.</p>
+ * <p>Matches are returned as FQNIDs, so callers stream them in FQNID order rather than the TSUID order of the SQL path.</p>
+ * <p>The index is bootstrapped from the DB in FQNID ranges on {@link #start()} and then polls for TSMetas with an FQNID
+ * higher than the highest one indexed, which assumes FQNIDs are committed in order, as the listener's single
+ * group committing writer does. TSMetas are never deleted by the listener, but they can be deleted from the DB, so each poll
+ * also compares the number of TSMetas in the DB with the number indexed and, if the DB holds fewer, rescans the indexed FQNID
+ * range and drops the deleted TSMetas from the index.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrichub.index.TagIndex</code></p>
+ */
+
+public class TagIndex implements Closeable {
+	/** The config key for enabling the tag index */
+	public static final String CONFIG_ENABLED = "metrichub.tagindex.enabled";
+	/** The default tag index enablement */
+	public static final boolean DEFAULT_ENABLED = false;
+	/** The config key for the period in seconds between polls for new TSMetas */
+	public static final String CONFIG_POLL_PERIOD = "metrichub.tagindex.poll";
+	/** The default poll period in seconds */
+	public static final long DEFAULT_POLL_PERIOD = 15L;
+	/** The config key for the number of FQNIDs loaded per DB round trip */
+	public static final String CONFIG_LOAD_RANGE = "metrichub.tagindex.loadrange";
+	/** The default number of FQNIDs loaded per DB round trip */
+	public static final int DEFAULT_LOAD_RANGE = 100000;
+
+	/** The SQL to get the highest FQNID */
+	public static final String MAX_FQNID_SQL = "SELECT MAX(FQNID) FROM TSD_TSMETA";
+	/** The SQL to count the TSMetas up to an FQNID */
+	public static final String COUNT_FQNID_SQL = "SELECT COUNT(*) FROM TSD_TSMETA WHERE FQNID <= ?";
+	/** The SQL to load the FQNIDs of a range */
+	public static final String LOAD_FQNIDS_SQL = "SELECT FQNID FROM TSD_TSMETA WHERE FQNID > ? AND FQNID <= ?";
+	/** The SQL to load the metric names of a range of FQNIDs */
+	public static final String LOAD_METRICS_SQL =
+			"SELECT X.FQNID, M.NAME FROM TSD_TSMETA X, TSD_METRIC M " +
+			"WHERE M.XUID = X.METRIC_UID " +
+			"AND X.FQNID > ? AND X.FQNID <= ?";
+	/** The SQL to load the tag pairs of a range of FQNIDs */
+	public static final String LOAD_TAGS_SQL =
+			"SELECT T.FQNID, K.NAME, V.NAME FROM TSD_FQN_TAGPAIR T, TSD_TAGPAIR P, TSD_TAGK K, TSD_TAGV V " +
+			"WHERE T.XUID = P.XUID " +
+			"AND P.TAGK = K.XUID " +
+			"AND P.TAGV = V.XUID " +
+			"AND T.FQNID > ? AND T.FQNID <= ?";
+
+	/** Pipe parser pattern */
+	static final Pattern SPLIT_PIPES = Pattern.compile("\\|");
+
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+	/** The SQLWorker the index is loaded with */
+	protected final SQLWorker sqlWorker;
+	/** The poll period in seconds */
+	protected final long pollPeriod;
+	/** The number of FQNIDs loaded per DB round trip */
+	protected final int loadRange;
+	/** The poll scheduler */
+	protected final ScheduledExecutorService scheduler;
+	/** Guards the dictionaries and bitmaps */
+	protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** The metric name dictionary */
+	protected final Dictionary metricDict = new Dictionary();
+	/** The tag key dictionary */
+	protected final Dictionary tagKeyDict = new Dictionary();
+	/** The tag value dictionary */
+	protected final Dictionary tagValueDict = new Dictionary();
+	/** The rows of each metric, indexed by metric code */
+	protected final List<RowBitmap> metricRows = new ArrayList<RowBitmap>();
+	/** The rows of each tag pair, indexed by tag key code, then keyed by tag value code */
+	protected final List<Map<Integer, RowBitmap>> tagRows = new ArrayList<Map<Integer, RowBitmap>>();
+	/** All the indexed rows */
+	protected final RowBitmap allRows = new RowBitmap();
+
+	/** The highest FQNID indexed */
+	protected volatile long maxFqnId = 0L;
+	/** Indicates if the bootstrap load has completed */
+	protected volatile boolean ready = false;
+	/** The timestamp of the last successful poll */
+	protected volatile long lastPollTime = -1L;
+	/** The number of indexed tag pairs */
+	protected volatile int tagPairCount = 0;
+
+	/** The load timer */
+	protected final Timer loadTimer = SharedMetricsRegistry.getInstance().timer("tagindex.load");
+	/** The evaluation timer */
+	protected final Timer evalTimer = SharedMetricsRegistry.getInstance().timer("tagindex.eval");
+	/** The poll failure counter */
+	protected final Counter pollFailures = SharedMetricsRegistry.getInstance().counter("tagindex.poll.failures");
+	/** The counter of rows skipped because the FQNID does not fit a row id */
+	protected final Counter overflows = SharedMetricsRegistry.getInstance().counter("tagindex.overflows");
+	/** The counter of rows dropped because their TSMeta was deleted */
+	protected final Counter removals = SharedMetricsRegistry.getInstance().counter("tagindex.removals");
+
+	/**
+	 * Creates a new TagIndex
+	 * @param sqlWorker The SQLWorker the index is loaded with
+	 * @param properties The configuration properties
+	 */
+	public TagIndex(final SQLWorker sqlWorker, final Properties properties) {
+		if(sqlWorker==null) throw new IllegalArgumentException("The passed SQLWorker was null");
+		this.sqlWorker = sqlWorker;
+		pollPeriod = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_POLL_PERIOD, DEFAULT_POLL_PERIOD, properties);
+		loadRange = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_LOAD_RANGE, DEFAULT_LOAD_RANGE, properties);
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			final AtomicInteger serial = new AtomicInteger();
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "TagIndexPoller#" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts the bootstrap load and the polling for new TSMetas
+	 */
+	public void start() {
+		log.info("Starting TagIndex. Poll period: {} s, load range: {}", pollPeriod, loadRange);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, 0L, pollPeriod, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		log.info("TagIndex closed");
+	}
+
+	/**
+	 * Loads all TSMetas with an FQNID higher than the highest indexed
+	 */
+	protected void poll() {
+		try {
+			final long max = sqlWorker.sqlForLong(0L, MAX_FQNID_SQL);
+			if(max > maxFqnId) {
+				final Timer.Context ctx = loadTimer.time();
+				final long start = maxFqnId;
+				for(long from = start; from < max; from += loadRange) {
+					final long to = Math.min(from + loadRange, max);
+					loadRange(from, to);
+					maxFqnId = to;
+				}
+				final long elapsed = TimeUnit.NANOSECONDS.toMillis(ctx.stop());
+				if(ready) {
+					log.debug("Indexed FQNIDs ({} - {}] in {} ms", start, max, elapsed);
+				} else {
+					log.info("TagIndex bootstrapped {} TSMetas in {} ms", getSeriesCount(), elapsed);
+				}
+			}
+			if(ready) reconcile();
+			ready = true;
+			lastPollTime = System.currentTimeMillis();
+		} catch (Exception ex) {
+			pollFailures.inc();
+			log.error("TagIndex poll failed. Highest indexed FQNID: {}", maxFqnId, ex);
+		}
+	}
+
+	/**
+	 * Drops the TSMetas deleted from the DB if the DB holds fewer TSMetas up to the highest indexed FQNID than are indexed
+	 */
+	protected void reconcile() {
+		final long indexed = getSeriesCount();
+		if(sqlWorker.sqlForLong(0L, COUNT_FQNID_SQL, Math.min(maxFqnId, Integer.MAX_VALUE)) >= indexed) return;
+		final RowBitmap present = new RowBitmap();
+		for(long from = 0; from < maxFqnId; from += loadRange) {
+			sqlWorker.executeQuery(LOAD_FQNIDS_SQL, new ResultSetRowDataHandler() {
+				@Override
+				public boolean onRow(final int rowId, final int columnCount, final Object... columnValues) {
+					final long id = ((Number)columnValues[0]).longValue();
+					if(id <= Integer.MAX_VALUE) present.add((int)id);
+					return true;
+				}
+			}, from, Math.min(from + loadRange, maxFqnId));
+		}
+		final RowBitmap deleted;
+		lock.readLock().lock();
+		try {
+			deleted = RowBitmap.andNot(allRows, present);
+		} finally {
+			lock.readLock().unlock();
+		}
+		if(!deleted.isEmpty()) {
+			remove(deleted);
+			log.info("Dropped {} deleted TSMetas from the TagIndex", deleted.getCardinality());
+		}
+	}
+	
+	/**
+	 * Drops the passed rows from the index
+	 * @param rows The FQNIDs of the TSMetas to drop
+	 */
+	protected void remove(final RowBitmap rows) {
+		lock.writeLock().lock();
+		try {
+			final long before = allRows.getCardinality();
+			allRows.removeAll(rows);
+			removals.inc(before - allRows.getCardinality());
+			for(RowBitmap b: metricRows) {
+				b.removeAll(rows);
+			}
+			for(Map<Integer, RowBitmap> pairs: tagRows) {
+				for(Iterator<RowBitmap> iter = pairs.values().iterator(); iter.hasNext();) {
+					if(iter.next().removeAll(rows).isEmpty()) {
+						iter.remove();
+						tagPairCount--;
+					}
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Loads the metric names and tag pairs of a range of FQNIDs into the index
+	 * @param from The exclusive low FQNID
+	 * @param to The inclusive high FQNID
+	 */
+	protected void loadRange(final long from, final long to) {
+		final List<Object[]> metrics = new ArrayList<Object[]>();
+		final List<Object[]> tags = new ArrayList<Object[]>();
+		sqlWorker.executeQuery(LOAD_METRICS_SQL, new ResultSetRowDataHandler() {
+			@Override
+			public boolean onRow(final int rowId, final int columnCount, final Object... columnValues) {
+				metrics.add(columnValues);
+				return true;
+			}
+		}, from, to);
+		sqlWorker.executeQuery(LOAD_TAGS_SQL, new ResultSetRowDataHandler() {
+			@Override
+			public boolean onRow(final int rowId, final int columnCount, final Object... columnValues) {
+				tags.add(columnValues);
+				return true;
+			}
+		}, from, to);
+		lock.writeLock().lock();
+		try {
+			for(Object[] m: metrics) {
+				final int row = toRow(m[0]);
+				if(row==-1) continue;
+				final int code = metricDict.encode((String)m[1]);
+				if(code==metricRows.size()) metricRows.add(new RowBitmap());
+				metricRows.get(code).add(row);
+				allRows.add(row);
+			}
+			for(Object[] t: tags) {
+				final int row = toRow(t[0]);
+				if(row==-1) continue;
+				final int k = tagKeyDict.encode((String)t[1]);
+				final int v = tagValueDict.encode((String)t[2]);
+				if(k==tagRows.size()) tagRows.add(new HashMap<Integer, RowBitmap>());
+				final Map<Integer, RowBitmap> values = tagRows.get(k);
+				RowBitmap rows = values.get(v);
+				if(rows==null) {
+					rows = new RowBitmap();
+					values.put(v, rows);
+					tagPairCount++;
+				}
+				rows.add(row);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private int toRow(final Object fqnId) {
+		final long id = ((Number)fqnId).longValue();
+		if(id < 0 || id > Integer.MAX_VALUE) {
+			overflows.inc();
+			return -1;
+		}
+		return (int)id;
+	}
+
+	/**
+	 * Returns the FQNIDs of the TSMetas matching the passed expression. Expression values may hold
+	 * <b><code>|</code></b> separated alternatives and <b><code>*</code></b> wildcards. Alternatives holding a
+	 * <b><code>*</code></b> match as the SQL path's <b><code>LIKE</code></b> does, so <b><code>_</code></b> and
+	 * <b><code>%</code></b> are wildcards in them too, while alternatives without one match literally.
+	 * @param metricName The metric name expression, <b><code>*</code></b> for all metrics
+	 * @param tags The tag key and value expressions
+	 * @param union true if a TSMeta matching any tag matches (a property list pattern), false if it must match every tag
+	 * @return a new bitmap of the matching FQNIDs
+	 */
+	public RowBitmap evaluate(final String metricName, final Map<String, String> tags, final boolean union) {
+		final Timer.Context ctx = evalTimer.time();
+		lock.readLock().lock();
+		try {
+			RowBitmap rows = "*".equals(metricName) ? allRows.copy() : match(metricDict, new Expression(metricName), metricRows);
+			if(tags==null || tags.isEmpty() || rows.isEmpty()) return rows;
+			RowBitmap tagMatch = null;
+			for(Map.Entry<String, String> tag: tags.entrySet()) {
+				final RowBitmap t = matchTag(new Expression(tag.getKey()), new Expression(tag.getValue()));
+				if(tagMatch==null) {
+					tagMatch = t;
+				} else if(union) {
+					tagMatch.or(t);
+				} else {
+					tagMatch = RowBitmap.and(tagMatch, t);
+				}
+				if(!union && tagMatch.isEmpty()) break;
+			}
+			return RowBitmap.and(rows, tagMatch);
+		} finally {
+			lock.readLock().unlock();
+			ctx.stop();
+		}
+	}
+
+	/**
+	 * Returns the union of the bitmaps of the dictionary entries matching the passed expression
+	 * @param dict The dictionary
+	 * @param expr The expression
+	 * @param bitmaps The bitmaps indexed by dictionary code
+	 * @return a new bitmap
+	 */
+	private static RowBitmap match(final Dictionary dict, final Expression expr, final List<RowBitmap> bitmaps) {
+		final RowBitmap rows = new RowBitmap();
+		for(int code: expr.codes(dict)) {
+			rows.or(bitmaps.get(code));
+		}
+		return rows;
+	}
+
+	/**
+	 * Returns the union of the bitmaps of the tag pairs matching the passed key and value expressions
+	 * @param keyExpr The tag key expression
+	 * @param valueExpr The tag value expression
+	 * @return a new bitmap
+	 */
+	private RowBitmap matchTag(final Expression keyExpr, final Expression valueExpr) {
+		final RowBitmap rows = new RowBitmap();
+		final int[] keys = keyExpr.codes(tagKeyDict);
+		if(keys.length==0) return rows;
+		if(valueExpr.globs.isEmpty() && !valueExpr.all) {
+			final int[] values = valueExpr.codes(tagValueDict);
+			for(int k: keys) {
+				final Map<Integer, RowBitmap> pairs = tagRows.get(k);
+				for(int v: values) {
+					final RowBitmap pair = pairs.get(v);
+					if(pair!=null) rows.or(pair);
+				}
+			}
+		} else {
+			for(int k: keys) {
+				for(Map.Entry<Integer, RowBitmap> pair: tagRows.get(k).entrySet()) {
+					if(valueExpr.matches(tagValueDict.decode(pair.getKey()))) rows.or(pair.getValue());
+				}
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Indicates if the bootstrap load has completed
+	 * @return true if the index is ready, false otherwise
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Returns the highest indexed FQNID
+	 * @return the highest indexed FQNID
+	 */
+	public long getMaxFqnId() {
+		return maxFqnId;
+	}
+
+	/**
+	 * Returns the timestamp of the last successful poll
+	 * @return the timestamp of the last successful poll or -1 if none has succeeded
+	 */
+	public long getLastPollTime() {
+		return lastPollTime;
+	}
+
+	/**
+	 * Returns the number of indexed TSMetas
+	 * @return the number of indexed TSMetas
+	 */
+	public long getSeriesCount() {
+		lock.readLock().lock();
+		try {
+			return allRows.getCardinality();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of distinct metric names
+	 * @return the number of distinct metric names
+	 */
+	public int getMetricCount() {
+		return size(metricDict);
+	}
+
+	/**
+	 * Returns the number of distinct tag keys
+	 * @return the number of distinct tag keys
+	 */
+	public int getTagKeyCount() {
+		return size(tagKeyDict);
+	}
+
+	/**
+	 * Returns the number of distinct tag values
+	 * @return the number of distinct tag values
+	 */
+	public int getTagValueCount() {
+		return size(tagValueDict);
+	}
+
+	private int size(final Dictionary dict) {
+		lock.readLock().lock();
+		try {
+			return dict.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of distinct tag pairs
+	 * @return the number of distinct tag pairs
+	 */
+	public int getTagPairCount() {
+		return tagPairCount;
+	}
+
+	/**
+	 * Returns the approximate heap size of the index bitmaps in bytes
+	 * @return the approximate size in bytes
+	 */
+	public long getSizeInBytes() {
+		lock.readLock().lock();
+		try {
+			long bytes = allRows.getSizeInBytes();
+			for(RowBitmap b: metricRows) bytes += b.getSizeInBytes();
+			for(Map<Integer, RowBitmap> pairs: tagRows) {
+				for(RowBitmap b: pairs.values()) bytes += b.getSizeInBytes();
+			}
+			return bytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "TagIndex [ready=" + ready + ", maxFqnId=" + maxFqnId + ", metrics=" + getMetricCount()
+			+ ", tagKeys=" + getTagKeyCount() + ", tagValues=" + getTagValueCount() + ", tagPairs=" + tagPairCount + "]";
+	}
+
+	/**
+	 * <p>Title: Dictionary</p>
+	 * <p>Description: Encodes names to dense int codes. Guarded by the index lock.</p>
+	 * <p><code>com.heliosapm.streams.metrichub.index.TagIndex.Dictionary</code></p>
+	 */
+	static class Dictionary {
+		/** The codes keyed by name */
+		final Map<String, Integer> codes = new HashMap<String, Integer>();
+		/** The names indexed by code */
+		final List<String> names = new ArrayList<String>();
+
+		/**
+		 * Returns the code for the passed name, assigning the next code if it is new
+		 * @param name The name
+		 * @return the code
+		 */
+		int encode(final String name) {
+			Integer code = codes.get(name);
+			if(code==null) {
+				code = names.size();
+				codes.put(name, code);
+				names.add(name);
+			}
+			return code;
+		}
+
+		/**
+		 * Returns the code for the passed name
+		 * @param name The name
+		 * @return the code or -1 if the name is not in the dictionary
+		 */
+		int lookup(final String name) {
+			final Integer code = codes.get(name);
+			return code==null ? -1 : code;
+		}
+
+		/**
+		 * Returns the name for the passed code
+		 * @param code The code
+		 * @return the name
+		 */
+		String decode(final int code) {
+			return names.get(code);
+		}
+
+		/**
+		 * Returns the number of names
+		 * @return the number of names
+		 */
+		int size() {
+			return names.size();
+		}
+	}
+
+	/**
+	 * <p>Title: Expression</p>
+	 * <p>Description: A parsed name expression of <b><code>|</code></b> separated alternatives, each of which may
+	 * hold <b><code>*</code></b> wildcards, matching the SQL predicates generated by the meta API: an alternative without a
+ * <b><code>*</code></b> is an equality, and one with a <b><code>*</code></b> is a <b><code>LIKE</code></b> in which
+ * <b><code>*</code></b> and <b><code>%</code></b> match any run of characters and <b><code>_</code></b> matches exactly one</p>
+	 * <p><code>com.heliosapm.streams.metrichub.index.TagIndex.Expression</code></p>
+	 */
+	static class Expression {
+		/** The literal alternatives */
+		final Set<String> literals = new LinkedHashSet<String>();
+		/** The wildcard alternatives */
+		final List<Pattern> globs = new ArrayList<Pattern>();
+		/** Indicates if an alternative matches everything */
+		boolean all = false;
+
+		/**
+		 * Parses a new Expression
+		 * @param expr The expression to parse
+		 */
+		Expression(final String expr) {
+			for(String alt: SPLIT_PIPES.split(expr.replace(" ", ""))) {
+				if(alt.isEmpty()) continue;
+				if("*".equals(alt)) {
+					all = true;
+				} else if(alt.indexOf('*')==-1) {
+					literals.add(alt);
+				} else {
+					globs.add(like(alt));
+				}
+			}
+		}
+
+		/**
+		 * Compiles a wildcard alternative to the pattern the SQL <b><code>LIKE</code></b> it is rewritten to would apply
+		 * @param alt The alternative holding a <b><code>*</code></b>
+		 * @return the compiled pattern
+		 */
+		static Pattern like(final String alt) {
+			final StringBuilder b = new StringBuilder();
+			final StringBuilder literal = new StringBuilder();
+			for(int i = 0; i < alt.length(); i++) {
+				final char c = alt.charAt(i);
+				if(c=='*' || c=='%' || c=='_') {
+					if(literal.length() > 0) {
+						b.append(Pattern.quote(literal.toString()));
+						literal.setLength(0);
+					}
+					b.append(c=='_' ? "." : ".*");
+				} else {
+					literal.append(c);
+				}
+			}
+			if(literal.length() > 0) b.append(Pattern.quote(literal.toString()));
+			return Pattern.compile(b.toString(), Pattern.DOTALL);
+		}
+
+		/**
+		 * Indicates if the passed name matches this expression
+		 * @param name The name to test
+		 * @return true for a match, false otherwise
+		 */
+		boolean matches(final String name) {
+			if(all || literals.contains(name)) return true;
+			for(Pattern p: globs) {
+				if(p.matcher(name).matches()) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Returns the codes of the dictionary names matching this expression, looking up literals
+		 * directly and only scanning the dictionary for wildcards
+		 * @param dict The dictionary
+		 * @return the matching codes
+		 */
+		int[] codes(final Dictionary dict) {
+			if(all || !globs.isEmpty()) {
+				final int[] out = new int[dict.names.size()];
+				int n = 0;
+				for(int code = 0; code < out.length; code++) {
+					if(matches(dict.names.get(code))) out[n++] = code;
+				}
+				return Arrays.copyOf(out, n);
+			}
+			final int[] out = new int[literals.size()];
+			int n = 0;
+			for(String literal: literals) {
+				final int code = dict.lookup(literal);
+				if(code!=-1) out[n++] = code;
+			}
+			return Arrays.copyOf(out, n);
+		}
+	}
+}
@@ -22,26 +22,23 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.LongSummaryStatistics;
+import java.util.DoubleSummaryStatistics;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.TreeMap;
-import java.util.TreeSet;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.function.LongBinaryOperator;
+import java.util.stream.DoubleStream;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
-import com.heliosapm.streams.tracing.TagKeySorter;
 import com.heliosapm.streams.tracing.TagKeySorter.TagMap;
 
 /**
  * <p>Title: QueryResult</p>
- * <p>Description: Represents the query results for one distinct metric in an <b>/api/query</b> query to OpenTSDB</p> 
+ * <p>Description: Represents the query results for one distinct metric in an <b>/api/query</b> query to OpenTSDB.
+ * The data points are held in parallel primitive arrays in timestamp order: the ms timestamps in a <b><code>long[]</code></b>
+ * and the values in a <b><code>long[]</code></b> while every value is integral, or a <b><code>double[]</code></b> once any value is not.</p> 
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.streams.metrichub.results.QueryResult</code></p>
  */
@@ -54,8 +51,14 @@ public class QueryResult {
 	protected final Map<String, String> tags;
 	/** Aggregated tags */
 	protected final String[] aggregatedTags;
-	/** The data points */
-	protected final TreeSet<long[]> dps = new TreeSet<long[]>(DPS_COMPARATOR);
+	/** The data point ms timestamps in ascending order */
+	protected final long[] times;
+	/** The data point values if all are integral, otherwise null */
+	protected final long[] longValues;
+	/** The data point values if any are not integral, otherwise null */
+	protected final double[] doubleValues;
+	/** The number of data points */
+	protected final int size;
 	
 	
 	
@@ -70,8 +73,8 @@ public class QueryResult {
 	
 	/** Empty string array const */
 	public static final String[] EMPTY_STR_ARR = {};
-	/** Empty dps set const */
-	public static final SortedSet<long[]> EMPTY_DPS_SET = Collections.unmodifiableSortedSet(new TreeSet<long[]>());
+	/** Empty long array const */
+	public static final long[] EMPTY_LONG_ARR = {};
 	
 	
 	/**
@@ -93,12 +96,34 @@ public class QueryResult {
 	
 	
 	
+	/**
+	 * Creates a new QueryResult from a set of <b><code>[timestamp, value]</code></b> pairs
+	 * @param metricName The metric name
+	 * @param tags The metric tags
+	 * @param aggregatedTags The aggregated tags
+	 * @param dps The data points
+	 */
 	public QueryResult(final String metricName, final Map<String, String> tags, final String[] aggregatedTags, final Set<long[]> dps) {		
+		this(metricName, tags, aggregatedTags, fromDps(dps));
+	}
+	
+	private QueryResult(final String metricName, final Map<String, String> tags, final String[] aggregatedTags, final Builder dps) {
 		this.metricName = metricName;
 		this.tags = Collections.unmodifiableSortedMap(new TagMap(tags));
 		this.aggregatedTags = aggregatedTags;
-		this.dps.addAll(dps);
-
+		dps.sort();
+		times = dps.times;
+		longValues = dps.doubleValues==null ? dps.longValues : null;
+		doubleValues = dps.doubleValues;
+		size = dps.size;
+	}
+	
+	private static Builder fromDps(final Set<long[]> dps) {
+		final Builder b = new Builder(dps.size());
+		for(long[] dp: dps) {
+			b.add(dp[0], dp[1]);
+		}
+		return b;
 	}
 	
 	
@@ -135,96 +160,108 @@ public class QueryResult {
 		return metricName + tags.toString();
 	}
 	
-	
-	
-	
 	/**
-	 * Converts all of the either timestamps (index 0) or values (index 1) to a reduced long  
-	 * @param index the index of the dps items to stream: 0 for timestamp, 1 for values
-	 * @param parallel true to run in parallel (at the cost of loss of ordering), false to run single-threaded
-	 * @param op The long binary operator to apply.
-	 * @return the resulting long
+	 * Indicates if every value is integral, in which case {@link #longValues()} is not converted
+	 * @return true if the values are held as longs, false if they are held as doubles
 	 */
-	protected long dpsReduce(final int index, final boolean parallel, final LongBinaryOperator op) {
-		return dpsStream(index, parallel).reduce(op).getAsLong();
+	public boolean isIntegral() {
+		return doubleValues==null;
 	}
 	
+
+	/**
+	 * Returns a long stream of the ms timestamps of the result's DPS in ascending order.
+	 * The stream reads the underlying array without copying it.
+	 * @return a long stream
+	 */
+	public LongStream times() {
+		return Arrays.stream(times, 0, size);
+	}
 	
+	/**
+	 * Returns a stream of the timestamps of the result's DPS as java dates in ascending order
+	 * @return a stream of dates
+	 */
+	public Stream<Date> dates() {
+		return times().mapToObj(t -> new Date(t));
+	}
 	
 	/**
-	 * Converts all of the either timestamps (index 0) or values (index 1) to a LongStream  
-	 * @param index the index of the dps items to stream: 0 for timestamp, 1 for values
-	 * @param parallel true to run in parallel (at the cost of loss of ordering), false to run single-threaded
-	 * @return a LongStream
+	 * Returns a double stream of the values of the result's DPS in timestamp order.
+	 * The stream reads the underlying array without copying it.
+	 * @return a double stream
 	 */
-	protected LongStream dpsStream(final int index, final boolean parallel) {
-		if(parallel) return StreamSupport.stream(dps.spliterator(), true).parallel().flatMapToLong(arr -> LongStream.of(arr[index])).parallel();
-		return StreamSupport.stream(dps.spliterator(), true).flatMapToLong(arr -> LongStream.of(arr[index]));
+	public DoubleStream values() {
+		return doubleValues==null ? Arrays.stream(longValues, 0, size).asDoubleStream() : Arrays.stream(doubleValues, 0, size);
 	}
 	
-
 	/**
-	 * Returns a long stream of the ms timestamps of the result's DPS
+	 * Returns a long stream of the values of the result's DPS in timestamp order, truncating non-integral values.
+	 * The stream reads the underlying array without copying it.
 	 * @return a long stream
 	 */
-	public LongStream times() {
-		return dpsStream(0, true).sorted();
+	public LongStream longValues() {
+		return doubleValues==null ? Arrays.stream(longValues, 0, size) : Arrays.stream(doubleValues, 0, size).mapToLong(d -> (long)d);
 	}
 	
 	/**
-	 * Returns a long stream of the timestamps of the result's DPS as java dates
-	 * @return a stream of dates
+	 * Returns the ms timestamp of the data point at the passed index
+	 * @param index The data point index
+	 * @return the timestamp
 	 */
-	public Stream<Date> dates() {
-		return dpsStream(0, true).parallel().mapToObj(t -> new Date(t)).sorted();
+	public long time(final int index) {
+		if(index < 0 || index >= size) throw new IndexOutOfBoundsException("Invalid index [" + index + "] for size [" + size + "]");
+		return times[index];
 	}
 	
 	/**
-	 * Returns a long stream of the values of the result's DPS
-	 * @return a long stream
+	 * Returns the value of the data point at the passed index
+	 * @param index The data point index
+	 * @return the value
 	 */
-	public LongStream values() {
-		return dpsStream(1, false);
+	public double value(final int index) {
+		if(index < 0 || index >= size) throw new IndexOutOfBoundsException("Invalid index [" + index + "] for size [" + size + "]");
+		return doubleValues==null ? longValues[index] : doubleValues[index];
 	}
 	
 	/**
 	 * Returns a summary of the values in the DPS for this result
-	 * @return a long value summary
+	 * @return a value summary
 	 */
-	public LongSummaryStatistics valueSummary() {
-		return dpsStream(1, true).summaryStatistics();
+	public DoubleSummaryStatistics valueSummary() {
+		return values().summaryStatistics();
 	}
 	
 	/**
 	 * Returns the sum of the values
 	 * @return the sum of the values
 	 */
-	public long valuesSum() {
-		return dpsReduce(1, true, Long::sum);
+	public double valuesSum() {
+		return values().sum();
 	}
 	
 	/**
 	 * Returns the minimum dps value
-	 * @return the minimum dps value
+	 * @return the minimum dps value or NaN if there are no data points
 	 */
-	public long valuesMin() {
-		return dpsReduce(1, true, Long::min);
+	public double valuesMin() {
+		return values().min().orElse(Double.NaN);
 	}
 	
 	/**
 	 * Returns the maximum dps value
-	 * @return the maximum dps value
+	 * @return the maximum dps value or NaN if there are no data points
 	 */
-	public long valuesMax() {
-		return dpsReduce(1, true, Long::max);
+	public double valuesMax() {
+		return values().max().orElse(Double.NaN);
 	}
 	
 	/**
 	 * Returns the average of the values
-	 * @return the average of the values
+	 * @return the average of the values or NaN if there are no data points
 	 */
 	public double valuesAvg() {
-		return dpsStream(1, true).average().getAsDouble();
+		return values().average().orElse(Double.NaN);
 	}
 
 	/**
@@ -232,16 +269,19 @@ public class QueryResult {
 	 * @return the number of DP's
 	 */
 	public int count() {
-		return dps.size();
+		return size;
 	}
 	
 	/**
-	 * Returns a map of values keyed by the effective date/timestamp for that value 
+	 * Returns a map of values keyed by the effective date/timestamp for that value.
+	 * Values are {@link Long}s if every value is integral, otherwise {@link Double}s.
 	 * @return a map of values keyed by the date
 	 */
-	public Map<Date, Long> dps() {
-		final Map<Date, Long> dpmap = new ConcurrentSkipListMap<Date, Long>();
-		StreamSupport.stream(dps.spliterator(), true).forEach(arr -> dpmap.put(new Date(arr[0]), arr[1]));
+	public Map<Date, Number> dps() {
+		final Map<Date, Number> dpmap = new TreeMap<Date, Number>();
+		for(int i = 0; i < size; i++) {
+			dpmap.put(new Date(times[i]), doubleValues==null ? (Number)longValues[i] : (Number)doubleValues[i]);
+		}
 		return dpmap;
 	}
 	
@@ -252,13 +292,177 @@ public class QueryResult {
 	 * @see java.lang.Object#toString()
 	 */
 	public String toString() {
-		if(dps.isEmpty()) {
-			return new StringBuilder(metricName).append(":").append(tags).append(", aggtags:").append(Arrays.toString(aggregatedTags)).append(", dps:").append(dps.size()).toString();
+		if(size==0) {
+			return new StringBuilder(metricName).append(":").append(tags).append(", aggtags:").append(Arrays.toString(aggregatedTags)).append(", dps:").append(size).toString();
 		} else {
 			return new StringBuilder(metricName).append(":").append(tags)
 					.append((aggregatedTags!=null && aggregatedTags.length > 0) ? (", aggtags:" + Arrays.toString(aggregatedTags)) : "")
-					.append(", dps:").append(dps.size())
-					.append(", summary:").append(valueSummary().toString().replace("LongSummaryStatistics", "")).toString();
+					.append(", dps:").append(size)
+					.append(", summary:").append(valueSummary().toString().replace("DoubleSummaryStatistics", "")).toString();
+		}
+	}
+	
+	/**
+	 * <p>Title: Builder</p>
+	 * <p>Description: Accumulates the data points of a {@link QueryResult} into growing primitive arrays.
+	 * Values are held as longs until the first non-integral value is added. Data points are expected
+	 * in timestamp order, but are sorted when the result is built if they were not.
+	 * A data point with the same timestamp as an earlier one is ignored.</p> 
+	 * <p><code>com.heliosapm.streams.metrichub.results.QueryResult.Builder</code></p>
+	 */
+	public static class Builder {
+		/** The metric name */
+		private String metricName;
+		/** The metric tags */
+		private Map<String, String> tags = Collections.emptyMap();
+		/** Aggregated tags */
+		private String[] aggregatedTags = EMPTY_STR_ARR;
+		/** The timestamps */
+		private long[] times;
+		/** The values while all are integral */
+		private long[] longValues;
+		/** The values once any is not integral */
+		private double[] doubleValues = null;
+		/** The number of data points */
+		private int size = 0;
+		/** Indicates if the data points have been added in timestamp order */
+		private boolean ordered = true;
+		
+		/**
+		 * Creates a new Builder
+		 * @param capacity The initial data point capacity
+		 */
+		public Builder(final int capacity) {
+			times = new long[Math.max(8, capacity)];
+			longValues = new long[times.length];
+		}
+		
+		/**
+		 * Sets the metric name
+		 * @param metricName The metric name
+		 * @return this builder
+		 */
+		public Builder metricName(final String metricName) {
+			this.metricName = metricName;
+			return this;
+		}
+		
+		/**
+		 * Sets the metric tags
+		 * @param tags The metric tags
+		 * @return this builder
+		 */
+		public Builder tags(final Map<String, String> tags) {
+			this.tags = tags==null ? Collections.<String, String>emptyMap() : tags;
+			return this;
+		}
+		
+		/**
+		 * Sets the aggregated tags
+		 * @param aggregatedTags The aggregated tags
+		 * @return this builder
+		 */
+		public Builder aggregatedTags(final String[] aggregatedTags) {
+			this.aggregatedTags = aggregatedTags==null ? EMPTY_STR_ARR : aggregatedTags;
+			return this;
+		}
+		
+		/**
+		 * Adds an integral data point
+		 * @param time The ms timestamp
+		 * @param value The value
+		 * @return this builder
+		 */
+		public Builder add(final long time, final long value) {
+			if(doubleValues!=null) return add(time, (double)value);
+			if(next(time)) {
+				longValues[size++] = value;
+			}
+			return this;
+		}
+		
+		/**
+		 * Adds a data point
+		 * @param time The ms timestamp
+		 * @param value The value
+		 * @return this builder
+		 */
+		public Builder add(final long time, final double value) {
+			if(doubleValues==null) {
+				doubleValues = new double[times.length];
+				for(int i = 0; i < size; i++) doubleValues[i] = longValues[i];
+				longValues = null;
+			}
+			if(next(time)) {
+				doubleValues[size++] = value;
+			}
+			return this;
+		}
+		
+		/**
+		 * Returns the number of data points added
+		 * @return the number of data points
+		 */
+		public int size() {
+			return size;
+		}
+		
+		/**
+		 * Builds the QueryResult
+		 * @return the QueryResult
+		 */
+		public QueryResult build() {
+			if(metricName==null) throw new IllegalStateException("No metric name set");
+			return new QueryResult(metricName, tags, aggregatedTags, this);
+		}
+		
+		/**
+		 * Stores the next timestamp, growing the arrays if full
+		 * @param time The timestamp
+		 * @return false if the last data point has the same timestamp and this one should be ignored
+		 */
+		private boolean next(final long time) {
+			if(size > 0) {
+				final long last = times[size-1];
+				if(time==last) return false;
+				if(time < last) ordered = false;
+			}
+			if(size==times.length) {
+				final int len = size + (size >> 1);
+				times = Arrays.copyOf(times, len);
+				if(doubleValues==null) longValues = Arrays.copyOf(longValues, len);
+				else doubleValues = Arrays.copyOf(doubleValues, len);
+			}
+			times[size] = time;
+			return true;
+		}
+		
+		/**
+		 * Sorts the data points by timestamp if they were not added in order, dropping repeated timestamps
+		 */
+		private void sort() {
+			if(ordered) return;
+			final Integer[] order = new Integer[size];
+			for(int i = 0; i < size; i++) order[i] = i;
+			final long[] t = times;
+			Arrays.sort(order, (a, b) -> Long.compare(t[a], t[b]));	// stable, so the first of repeated timestamps is kept
+			final long[] nt = new long[size];
+			final long[] nl = doubleValues==null ? new long[size] : null;
+			final double[] nd = doubleValues==null ? null : new double[size];
+			int n = 0;
+			for(int i = 0; i < size; i++) {
+				final int x = order[i];
+				if(n > 0 && nt[n-1]==t[x]) continue;
+				nt[n] = t[x];
+				if(nl!=null) nl[n] = longValues[x];
+				else nd[n] = doubleValues[x];
+				n++;
+			}
+			times = nt;
+			longValues = nl;
+			doubleValues = nd;
+			size = n;
+			ordered = true;
 		}
 	}
 	
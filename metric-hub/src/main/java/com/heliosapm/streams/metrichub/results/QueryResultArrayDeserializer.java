@@ -20,16 +20,13 @@ package com.heliosapm.streams.metrichub.results;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.stream.StreamSupport;
 
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 
 /**
  * <p>Title: QueryResultArrayDeserializer</p>
@@ -50,17 +47,16 @@ public class QueryResultArrayDeserializer extends JsonDeserializer<QueryResult[]
 	public QueryResult[] deserialize(final JsonParser p, final DeserializationContext ctxt) throws IOException, JsonProcessingException {
 		final JsonToken jt = p.getCurrentToken();
 		if(jt!=JsonToken.START_ARRAY) {
-			return new QueryResult[]{QueryResultDeserializer.INSTANCE.deserialize(p, ctxt)};
+			final QueryResult q = QueryResultDeserializer.INSTANCE.read(p);
+			return q==null ? new QueryResult[0] : new QueryResult[]{q};
 		}
-		final ArrayNode arr = (ArrayNode)p.getCodec().readTree(p);
-		final int sz = arr.size();
-		final List<QueryResult> qarr = Collections.synchronizedList(new ArrayList<QueryResult>(sz));
-		StreamSupport.stream(arr.spliterator(), true).forEach(arrNode -> { 
-			final QueryResult q = QueryResultDeserializer.INSTANCE.from(arrNode);
+		final List<QueryResult> qarr = new ArrayList<QueryResult>();
+		while(p.nextToken()==JsonToken.START_OBJECT) {
+			final QueryResult q = QueryResultDeserializer.INSTANCE.read(p);
 			if(q!=null) {
-				qarr.add(QueryResultDeserializer.INSTANCE.from(arrNode));
+				qarr.add(q);
 			}
-		});
+		}
 		return qarr.toArray(new QueryResult[qarr.size()]);
 	}
 
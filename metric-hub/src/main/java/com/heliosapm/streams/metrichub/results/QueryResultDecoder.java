@@ -18,28 +18,200 @@ under the License.
  */
 package com.heliosapm.streams.metrichub.results;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.util.List;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.heliosapm.streams.json.JSONOps;
 
-import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.DecoderException;
 import io.netty.handler.codec.MessageToMessageDecoder;
-import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
 
 /**
  * <p>Title: QueryResultDecoder</p>
- * <p>Description: Decoder to convert ByteBufs containing JSON to instances of {@link QueryResult}</p> 
+ * <p>Description: Decoder to convert the chunked JSON content of an <b>/api/query</b> response to instances of {@link QueryResult}.
+ * Each result is emitted as soon as its JSON object is complete, and {@link #END_OF_RESULTS} is emitted after the last one,
+ * so only the result currently being received is buffered. Error responses are raised as a {@link DecoderException}.</p>
+ * <p>Holds per response state, so each channel needs its own instance.</p> 
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.streams.metrichub.results.QueryResultDecoder</code></p>
  */
-@Sharable
-public class QueryResultDecoder extends MessageToMessageDecoder<FullHttpResponse> {
+public class QueryResultDecoder extends MessageToMessageDecoder<HttpObject> {
+	/** The message emitted after the last result of a response */
+	public static final Object END_OF_RESULTS = new Object() {
+		@Override
+		public String toString() {
+			return "END_OF_RESULTS";
+		}
+	};
+	/** The UTF8 character set */
+	public static final Charset UTF8 = Charset.forName("UTF8");
+	/** The initial capacity of the content buffer */
+	public static final int INITIAL_CAPACITY = 8192;
 
+	/** Holds the content of the result being received */
+	private ByteBuf cumulation = null;
+	/** The content buffer index scanning resumes at */
+	private int scanIndex = 0;
+	/** The content buffer index of the start of the result being received, or -1 */
+	private int objectStart = -1;
+	/** The JSON nesting depth at the scan index */
+	private int depth = 0;
+	/** Indicates if the scan index is within a JSON string */
+	private boolean inString = false;
+	/** Indicates if the last scanned character was an escape within a JSON string */
+	private boolean escaped = false;
+	/** Indicates if the response is a single object rather than an array of results */
+	private boolean singleObject = false;
+	/** Indicates if the response status is an error */
+	private boolean failed = false;
+	/** The status of the current response */
+	private HttpResponseStatus status = null;
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.codec.MessageToMessageDecoder#decode(io.netty.channel.ChannelHandlerContext, java.lang.Object, java.util.List)
+	 */
+	@Override
+	protected void decode(final ChannelHandlerContext ctx, final HttpObject msg, final List<Object> out) throws Exception {
+		if(msg instanceof HttpResponse) {
+			reset();
+			status = ((HttpResponse)msg).status();
+			failed = status.code() >= 400;
+		}
+		if(msg instanceof HttpContent) {
+			final ByteBuf content = ((HttpContent)msg).content();
+			if(content.isReadable()) {
+				if(cumulation==null) cumulation = ctx.alloc().buffer(Math.max(INITIAL_CAPACITY, content.readableBytes()));
+				cumulation.writeBytes(content);
+				if(!failed) scan(out);
+			}
+			if(msg instanceof LastHttpContent) {
+				try {
+					if(failed) throw new DecoderException("Query failed [" + status + "]: " + (cumulation==null ? "" : cumulation.toString(UTF8)));
+					if(depth!=0 || inString) throw new DecoderException("Truncated query response");
+					out.add(END_OF_RESULTS);
+				} finally {
+					reset();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scans the unscanned content for the end of result objects, emitting each complete one,
+	 * then discards the content before the result being received
+	 * @param out The decoded message list
+	 * @throws IOException thrown on any error reading a result
+	 */
+	private void scan(final List<Object> out) throws IOException {
+		final int end = cumulation.writerIndex();
+		for(int i = scanIndex; i < end; i++) {
+			final byte b = cumulation.getByte(i);
+			if(inString) {
+				if(escaped) escaped = false;
+				else if(b=='\\') escaped = true;
+				else if(b=='"') inString = false;
+				continue;
+			}
+			switch(b) {
+				case '"':
+					inString = true;
+					break;
+				case '{':
+					if(depth==0) {
+						singleObject = true;
+						objectStart = i;
+					} else if(depth==1 && !singleObject) {
+						objectStart = i;
+					}
+					depth++;
+					break;
+				case '}':
+					depth--;
+					if(objectStart!=-1 && depth==(singleObject ? 0 : 1)) {
+						emit(cumulation.slice(objectStart, i + 1 - objectStart), out);
+						objectStart = -1;
+					}
+					break;
+				case '[':
+					depth++;
+					break;
+				case ']':
+					depth--;
+					break;
+				default:
+			}
+		}
+		cumulation.readerIndex(objectStart==-1 ? end : objectStart);
+		cumulation.discardReadBytes();
+		if(objectStart!=-1) objectStart = 0;
+		scanIndex = cumulation.writerIndex();
+	}
+
+	/**
+	 * Reads a complete result object and adds it to the decoded messages
+	 * @param json The result object's JSON
+	 * @param out The decoded message list
+	 * @throws IOException thrown on any error reading the result
+	 */
+	private static void emit(final ByteBuf json, final List<Object> out) throws IOException {
+		final JsonParser p = JSONOps.getFactory().createParser((InputStream)new ByteBufInputStream(json));
+		try {
+			p.nextToken();
+			final QueryResult q = QueryResultDeserializer.INSTANCE.read(p);
+			if(q!=null) out.add(q);
+		} finally {
+			p.close();
+		}
+	}
+
+	/**
+	 * Releases the content buffer and resets the response state
+	 */
+	private void reset() {
+		if(cumulation!=null) {
+			cumulation.release();
+			cumulation = null;
+		}
+		scanIndex = 0;
+		objectStart = -1;
+		depth = 0;
+		inString = false;
+		escaped = false;
+		singleObject = false;
+		failed = false;
+		status = null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.ChannelInboundHandlerAdapter#channelInactive(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		reset();
+		super.channelInactive(ctx);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.ChannelHandlerAdapter#handlerRemoved(io.netty.channel.ChannelHandlerContext)
+	 */
 	@Override
-	protected void decode(final ChannelHandlerContext ctx, final FullHttpResponse msg, final List<Object> out) throws Exception {
-		final QueryResult[] qrs = JSONOps.parseToObject(msg.content(), QueryResult[].class);
-		out.add(qrs);
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		reset();
+		super.handlerRemoved(ctx);
 	}
 	
 	static {
@@ -19,24 +19,24 @@ under the License.
 package com.heliosapm.streams.metrichub.results;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.stream.StreamSupport;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.heliosapm.streams.json.JSONOps;
 import com.heliosapm.streams.metrichub.RequestBuilder;
 import com.heliosapm.streams.tracing.TagKeySorter.TagMap;
 
 /**
  * <p>Title: QueryResultDeserializer</p>
- * <p>Description: Jackson json deserializer for {@link QueryResult}s.</p> 
+ * <p>Description: Jackson json deserializer for {@link QueryResult}s. Reads the parser's tokens straight into
+ * the result's primitive data point arrays without building a tree of the data points. Accepts the
+ * <b><code>dps</code></b> either as an object of timestamp/value fields or, for queries with the
+ * <b><code>arrays</code></b> option, as an array of <b><code>[timestamp, value]</code></b> arrays.</p> 
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.streams.metrichub.results.QueryResultDeserializer</code></p>
  */
@@ -52,23 +52,95 @@ public class QueryResultDeserializer extends JsonDeserializer<QueryResult> {
 	 */
 	@Override
 	public QueryResult deserialize(final JsonParser p, final DeserializationContext ctxt) throws IOException, JsonProcessingException {
-		final JsonNode node = p.getCodec().readTree(p);
-		return from(node);
+		return read(p);
 	}
 	
-	public QueryResult from(final JsonNode node) {
-		if(!node.has("metric")) return null;
-		final String metric = node.get("metric").textValue();
-		final TagMap tags = JSONOps.parseToObject(node.get("tags"), QueryResult.TREE_MAP_TYPE_REF);
-		final String[] aggregatedTags = JSONOps.parseToObject(node.get("aggregateTags"), String[].class);
-		final JsonNode dpsNode = node.get("dps");
-		final Set<long[]> dps = Collections.synchronizedSet(new HashSet<long[]>(dpsNode.size()));
-		
-		final Iterable<Entry<String, JsonNode>> iterable = () -> dpsNode.fields();				
-		StreamSupport.stream(iterable.spliterator(), true).forEach(dp -> 
-			dps.add(new long[]{RequestBuilder.toMsTime(dp.getKey()), dp.getValue().asLong()})
-		);
-		return new QueryResult(metric, tags, aggregatedTags, dps);		
+	/**
+	 * Reads a QueryResult from the object starting at the parser's current token
+	 * @param p The parser, positioned on the object's start token
+	 * @return the QueryResult or null if the object is not a query result
+	 * @throws IOException thrown on any error reading the parser
+	 */
+	public QueryResult read(final JsonParser p) throws IOException {
+		if(p.getCurrentToken()!=JsonToken.START_OBJECT) throw new JsonParseException(p, "Expected a QueryResult object but got [" + p.getCurrentToken() + "]");
+		final QueryResult.Builder b = new QueryResult.Builder(64);
+		boolean isResult = false;
+		while(p.nextToken()==JsonToken.FIELD_NAME) {
+			final String field = p.getCurrentName();
+			final JsonToken t = p.nextToken();
+			if(t==JsonToken.VALUE_NULL) continue;
+			switch(field) {
+				case "metric":
+					b.metricName(p.getText());
+					isResult = true;
+					break;
+				case "tags":
+					b.tags(readTags(p));
+					break;
+				case "aggregateTags":
+					b.aggregatedTags(readStrings(p));
+					break;
+				case "dps":
+					readDps(p, b);
+					break;
+				default:
+					p.skipChildren();
+			}
+		}
+		return isResult ? b.build() : null;
+	}
+	
+	private static TagMap readTags(final JsonParser p) throws IOException {
+		final TagMap tags = new TagMap();
+		while(p.nextToken()==JsonToken.FIELD_NAME) {
+			final String key = p.getCurrentName();
+			p.nextToken();
+			tags.put(key, p.getText());
+		}
+		return tags;
+	}
+	
+	private static String[] readStrings(final JsonParser p) throws IOException {
+		final List<String> strings = new ArrayList<String>();
+		while(p.nextToken()!=JsonToken.END_ARRAY) {
+			strings.add(p.getText());
+		}
+		return strings.toArray(new String[strings.size()]);
+	}
+	
+	private static void readDps(final JsonParser p, final QueryResult.Builder b) throws IOException {
+		if(p.getCurrentToken()==JsonToken.START_ARRAY) {
+			while(p.nextToken()==JsonToken.START_ARRAY) {
+				p.nextToken();
+				final long time = RequestBuilder.toMsTime(p.getLongValue());
+				p.nextToken();
+				readValue(p, b, time);
+				while(p.nextToken()!=JsonToken.END_ARRAY) p.skipChildren();
+			}
+		} else {
+			while(p.nextToken()==JsonToken.FIELD_NAME) {
+				final long time = RequestBuilder.toMsTime(p.getCurrentName());
+				p.nextToken();
+				readValue(p, b, time);
+			}
+		}
+	}
+	
+	private static void readValue(final JsonParser p, final QueryResult.Builder b, final long time) throws IOException {
+		switch(p.getCurrentToken()) {
+			case VALUE_NUMBER_INT:
+				b.add(time, p.getLongValue());
+				break;
+			case VALUE_NUMBER_FLOAT:
+				b.add(time, p.getDoubleValue());
+				break;
+			case VALUE_STRING:
+				// NaN and Infinity are rendered as strings
+				b.add(time, Double.parseDouble(p.getText()));
+				break;
+			default:
+				// null values are gaps
+		}
 	}
 
 }
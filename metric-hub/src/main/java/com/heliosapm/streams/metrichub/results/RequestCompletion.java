@@ -25,7 +25,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.LongStream;
+import java.util.function.Consumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -37,26 +37,34 @@ import io.netty.channel.pool.ChannelPool;
 
 /**
  * <p>Title: RequestCompletion</p>
- * <p>Description: </p> 
+ * <p>Description: Collects the {@link QueryResult}s of a submitted query as the {@link QueryResultDecoder} emits them,
+ * handing each one to the registered {@link #onResult(Consumer, boolean) consumers} as soon as it is decoded, and completes when the
+ * decoder signals the end of the response. A RequestCompletion can also merge the results of a query split into
+ * several parts, each executed on its own channel, in which case each part's results are handed over with
+ * {@link #acceptPart(QueryResult)} as they are decoded, and it completes when every part has been {@link #completePart() completed}.</p> 
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.streams.metrichub.results.RequestCompletion</code></p>
  */
 
-public class RequestCompletion extends SimpleChannelInboundHandler<QueryResult[]> {
+public class RequestCompletion extends SimpleChannelInboundHandler<Object> {
 	/** Static class log */
 	private static final Logger log = LogManager.getLogger(RequestCompletion.class);
 	/** Completion latch */
 	private final CountDownLatch latch;
 	/** A possible throwable thrown in the pipeline */
 	private volatile Throwable t = null;
-	/** The completed results */
-	private List<QueryResult> results;
+	/** The retained results */
+	private final List<QueryResult> results = new ArrayList<QueryResult>();
+	/** The consumers handed each result as it is decoded */
+	private final List<Consumer<QueryResult>> consumers = new ArrayList<Consumer<QueryResult>>(1);
+	/** Indicates if results are retained for {@link #get()} */
+	private boolean retain = true;
 	
 	private final Set<Thread> waitingThreads = Collections.synchronizedSet(new HashSet<Thread>(1));
 	
 	/** The timeout in ms. */
 	private final long timeoutMs;
-	/** The pool to return a non-errored out channel to */
+	/** The pool to return a non-errored out channel to, null for a merging completion */
 	private final ChannelPool pool;
 	
 	/**
@@ -71,16 +79,118 @@ public class RequestCompletion extends SimpleChannelInboundHandler<QueryResult[]
 		this.pool = pool;
 	}
 	
+	/**
+	 * Creates a new RequestCompletion that merges the results of a query split into the passed number of parts
+	 * @param timeoutMs The timeout in ms.
+	 * @param parts The number of parts the query was split into
+	 */
+	public RequestCompletion(final long timeoutMs, final int parts) {
+		this.timeoutMs = timeoutMs;
+		latch = new CountDownLatch(parts);
+		this.pool = null;
+	}
+	
+	/**
+	 * Delivers one decoded result of a part of a split query
+	 * @param result The decoded result
+	 */
+	public void acceptPart(final QueryResult result) {
+		accept(result);
+	}
+	
+	/**
+	 * Marks one part of a split query as complete
+	 */
+	public void completePart() {
+		latch.countDown();
+	}
+	
+	/**
+	 * Fails this completion, releasing any waiting callers
+	 * @param cause The cause of the failure
+	 */
+	public void fail(final Throwable cause) {
+		t = cause;
+		waitingThreads.parallelStream().forEach(t -> t.interrupt());
+		while(latch.getCount()>0) latch.countDown();
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see io.netty.channel.SimpleChannelInboundHandler#channelRead0(io.netty.channel.ChannelHandlerContext, java.lang.Object)
 	 */
 	@Override
-	protected void channelRead0(final ChannelHandlerContext ctx, final QueryResult[] msgs) throws Exception {
+	protected void channelRead0(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		if(msg instanceof QueryResult) {
+			accept((QueryResult)msg);
+		} else if(msg instanceof QueryResult[]) {
+			for(QueryResult q: (QueryResult[])msg) {
+				accept(q);
+			}
+			complete(ctx);
+		} else if(msg==QueryResultDecoder.END_OF_RESULTS) {
+			complete(ctx);
+		} else {
+			ctx.fireChannelRead(msg);
+		}
+	}
+	
+	/**
+	 * Retains the passed result and hands it to the consumers
+	 * @param result The decoded result
+	 */
+	private synchronized void accept(final QueryResult result) {
+		if(retain) results.add(result);
+		for(Consumer<QueryResult> consumer: consumers) {
+			try {
+				consumer.accept(result);
+			} catch (Exception ex) {
+				log.warn("QueryResult consumer [{}] failed on [{}]", consumer, result.fqn(), ex);
+			}
+		}
+	}
+	
+	/**
+	 * Releases the waiting callers and returns the channel to the pool
+	 * @param ctx The channel handler context
+	 */
+	private void complete(final ChannelHandlerContext ctx) {
 		latch.countDown();
-		results = Collections.synchronizedList(new ArrayList<QueryResult>(msgs.length));
-		Collections.addAll(results, msgs);
-		pool.release(ctx.channel());			
+		if(pool!=null) pool.release(ctx.channel());
+	}
+	
+	/**
+	 * Registers a consumer that is handed each result as soon as it is decoded, on the channel's event loop,
+	 * so results can be processed before the whole response has been received. Results decoded before the
+	 * consumer is registered are handed to it immediately, in order.
+	 * @param consumer The result consumer
+	 * @param retain true to keep retaining results for {@link #get()}, false to only hand them to the consumers,
+	 * in which case {@link #get()} returns the results retained so far
+	 * @return this RequestCompletion
+	 */
+	public synchronized RequestCompletion onResult(final Consumer<QueryResult> consumer, final boolean retain) {
+		if(consumer==null) throw new IllegalArgumentException("The passed consumer was null");
+		for(QueryResult q: results) {
+			consumer.accept(q);
+		}
+		consumers.add(consumer);
+		if(!retain) this.retain = false;
+		return this;
+	}
+	
+	/**
+	 * Waits for the end of the response
+	 * @return true if the response completed, false if the wait timed out
+	 */
+	public boolean await() {
+		try {
+			final boolean done = latch.await(timeoutMs>0 ? timeoutMs : Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			if(t!=null) throw new RuntimeException("Query failure", t);
+			return done;
+		} catch (InterruptedException iex) {
+			if(t!=null) throw new RuntimeException("Query failure", t);
+			throw new RuntimeException("Thread interrupted while waiting on Query result");
+		}
 	}
 	
 	/**
@@ -89,9 +199,7 @@ public class RequestCompletion extends SimpleChannelInboundHandler<QueryResult[]
 	 */
 	@Override
 	public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
-		t = cause;
-		waitingThreads.parallelStream().forEach(t -> t.interrupt());
-		LongStream.builder().add(latch.getCount()).build().parallel().forEach(l -> latch.countDown());
+		fail(cause);
 		final Channel channel = ctx.channel();
 		channel.close();
 	}
@@ -108,7 +216,9 @@ public class RequestCompletion extends SimpleChannelInboundHandler<QueryResult[]
 			if(latch.await(timeoutMs>0 ? timeoutMs : Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
 				waitingThreads.remove(Thread.currentThread());
 				if(t!=null) throw new RuntimeException("Query failure", t);
-				return results;
+				synchronized(this) {
+					return new ArrayList<QueryResult>(results);
+				}
 			} else {
 				waitingThreads.remove(Thread.currentThread());
 				if(t!=null) throw new RuntimeException("Query failure", t);
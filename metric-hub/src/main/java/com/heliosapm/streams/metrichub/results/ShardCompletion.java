@@ -0,0 +1,153 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.metrichub.results;
+
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * <p>Title: ShardCompletion</p>
+ * <p>Description: Streams the {@link QueryResult}s of one attempt at one shard of a split query, on the channel the shard was sent on,
+ * to a sink as each result is decoded. No results are held here, so the memory a shard takes is bounded by the result being
+ * decoded rather than by the size of the shard. A failed shard is retried against another endpoint with a sink from the same
+ * {@link ShardResults}, which drops the results an earlier attempt already delivered.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrichub.results.ShardCompletion</code></p>
+ */
+
+public class ShardCompletion extends SimpleChannelInboundHandler<Object> {
+	/** The pool to return the channel to */
+	private final ChannelPool pool;
+	/** The shard timeout in ms. */
+	private final long timeoutMs;
+	/** The sink each result is handed to as it is decoded */
+	private final Consumer<QueryResult> sink;
+	/** The future completed when the response is complete */
+	private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+	/** The scheduled shard timeout */
+	private ScheduledFuture<?> timeoutTask = null;
+	
+	/**
+	 * Creates a new ShardCompletion
+	 * @param timeoutMs The shard timeout in ms. A value less than 1 disables the timeout
+	 * @param pool The pool to return the channel to
+	 * @param sink The sink each result is handed to as it is decoded
+	 */
+	public ShardCompletion(final long timeoutMs, final ChannelPool pool, final Consumer<QueryResult> sink) {
+		this.timeoutMs = timeoutMs;
+		this.pool = pool;
+		this.sink = sink;
+	}
+	
+	/**
+	 * Returns the future completed when the shard's response is complete, or completed exceptionally if the shard fails or times out
+	 * @return the shard future
+	 */
+	public CompletableFuture<Void> future() {
+		return future;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.ChannelHandlerAdapter#handlerAdded(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+		if(timeoutMs > 0) {
+			final SocketAddress remote = ctx.channel().remoteAddress();
+			timeoutTask = ctx.executor().schedule(() -> fail(ctx, 
+				new TimeoutException("Shard timed out after [" + timeoutMs + "] ms. waiting on [" + remote + "]")
+			), timeoutMs, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.SimpleChannelInboundHandler#channelRead0(io.netty.channel.ChannelHandlerContext, java.lang.Object)
+	 */
+	@Override
+	protected void channelRead0(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		if(future.isDone()) return;
+		if(msg instanceof QueryResult) {
+			sink.accept((QueryResult)msg);
+		} else if(msg instanceof QueryResult[]) {
+			for(QueryResult q: (QueryResult[])msg) {
+				sink.accept(q);
+			}
+			complete(ctx);
+		} else if(msg==QueryResultDecoder.END_OF_RESULTS) {
+			complete(ctx);
+		} else {
+			ctx.fireChannelRead(msg);
+		}
+	}
+	
+	/**
+	 * Returns the channel to the pool and completes the shard future
+	 * @param ctx The channel handler context
+	 */
+	private void complete(final ChannelHandlerContext ctx) {
+		if(timeoutTask!=null) timeoutTask.cancel(false);
+		pool.release(ctx.channel());
+		future.complete(null);
+	}
+	
+	/**
+	 * Closes the channel and fails the shard future
+	 * @param ctx The channel handler context
+	 * @param cause The cause of the failure
+	 */
+	private void fail(final ChannelHandlerContext ctx, final Throwable cause) {
+		if(future.isDone()) return;
+		if(timeoutTask!=null) timeoutTask.cancel(false);
+		ctx.channel().close();
+		pool.release(ctx.channel());
+		future.completeExceptionally(cause);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.ChannelInboundHandlerAdapter#exceptionCaught(io.netty.channel.ChannelHandlerContext, java.lang.Throwable)
+	 */
+	@Override
+	public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+		fail(ctx, cause);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.ChannelInboundHandlerAdapter#channelInactive(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		fail(ctx, new ClosedChannelException());
+		super.channelInactive(ctx);
+	}
+
+}
@@ -0,0 +1,74 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.metrichub.results;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * <p>Title: ShardResults</p>
+ * <p>Description: Hands the results of one shard of a split query to the merging sink across the shard's attempts,
+ * delivering each series once. A retried attempt returns the series an earlier, failed attempt already delivered,
+ * so each attempt counts the series it has seen by {@link QueryResult#fqn() name} and only delivers the ones past
+ * the count already delivered. Only these counts are held, one per distinct series in the shard.</p> 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrichub.results.ShardResults</code></p>
+ */
+
+public class ShardResults {
+	/** The merging sink */
+	private final Consumer<QueryResult> sink;
+	/** The number of results delivered to the sink keyed by series name */
+	private final Map<String, Integer> delivered = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Creates a new ShardResults
+	 * @param sink The merging sink
+	 */
+	public ShardResults(final Consumer<QueryResult> sink) {
+		if(sink==null) throw new IllegalArgumentException("The passed sink was null");
+		this.sink = sink;
+	}
+
+	/**
+	 * Returns the sink for a new attempt at the shard. Attempts run one after the other, never concurrently.
+	 * @return the attempt's sink
+	 */
+	public Consumer<QueryResult> attempt() {
+		final Map<String, Integer> seen = new HashMap<String, Integer>();
+		return q -> {
+			final String fqn = q.fqn();
+			final int n = seen.merge(fqn, 1, Integer::sum);
+			if(n > delivered.getOrDefault(fqn, 0)) {
+				delivered.put(fqn, n);
+				sink.accept(q);
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of distinct series delivered
+	 * @return the number of distinct series delivered
+	 */
+	public int size() {
+		return delivered.size();
+	}
+}
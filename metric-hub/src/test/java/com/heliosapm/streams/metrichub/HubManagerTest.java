@@ -0,0 +1,197 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.metrichub;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.metrichub.results.QueryResult;
+import com.heliosapm.streams.metrichub.results.RequestCompletion;
+
+import net.opentsdb.meta.TSMeta;
+
+/**
+ * <p>Title: HubManagerTest</p>
+ * <p>Description: Tests the shard sizing, retries and result streaming of the {@link HubManager} query fan-out</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrichub.HubManagerTest</code></p>
+ */
+
+public class HubManagerTest {
+	/** The test endpoints */
+	static final List<InetSocketAddress> ENDPOINTS = Arrays.asList(
+		InetSocketAddress.createUnresolved("tsdb1", 4242),
+		InetSocketAddress.createUnresolved("tsdb2", 4242),
+		InetSocketAddress.createUnresolved("tsdb3", 4242)
+	);
+
+	/**
+	 * A query attempt against an endpoint
+	 */
+	interface Attempt {
+		/**
+		 * Runs the attempt
+		 * @param number The attempt number, starting at 1
+		 * @param endpoint The endpoint
+		 * @param sink The result sink
+		 * @return the attempt future
+		 */
+		CompletableFuture<Void> run(int number, InetSocketAddress endpoint, Consumer<QueryResult> sink);
+	}
+
+	/**
+	 * A HubManager whose shard attempts are run by an {@link Attempt} and recorded
+	 */
+	static class TestHubManager extends HubManager {
+		/** The endpoints of the attempts */
+		final List<InetSocketAddress> attempts = new ArrayList<InetSocketAddress>();
+		/** The attempt */
+		final Attempt attempt;
+
+		TestHubManager(final int shardRetries, final Attempt attempt) {
+			super(ENDPOINTS, 500, shardRetries);
+			this.attempt = attempt;
+		}
+
+		@Override
+		protected CompletableFuture<Void> query(final RequestBuilder requestBuilder, final List<TSMeta> shard, final long timeout, final InetSocketAddress endpoint, final Consumer<QueryResult> sink) {
+			attempts.add(endpoint);
+			return attempt.run(attempts.size(), endpoint, sink);
+		}
+	}
+
+	/**
+	 * Creates TSMetas
+	 * @param count The number of TSMetas
+	 * @return the TSMetas
+	 */
+	static List<TSMeta> metas(final int count) {
+		final List<TSMeta> metas = new ArrayList<TSMeta>(count);
+		for(int i = 0; i < count; i++) {
+			metas.add(new TSMeta(String.format("%06X000001000001", i)));
+		}
+		return metas;
+	}
+
+	/**
+	 * Returns the sizes of the passed shards
+	 * @param shards The shards
+	 * @return the shard sizes
+	 */
+	static List<Integer> sizes(final List<List<TSMeta>> shards) {
+		final List<Integer> sizes = new ArrayList<Integer>(shards.size());
+		for(List<TSMeta> shard: shards) {
+			sizes.add(shard.size());
+		}
+		return sizes;
+	}
+
+	/**
+	 * Creates a query result
+	 * @param metric The metric name
+	 * @return the query result
+	 */
+	static QueryResult result(final String metric) {
+		return new QueryResult(metric, Collections.singletonMap("host", "a"), new String[0], Collections.singleton(new long[]{1500000000000L, 1L}));
+	}
+
+	/**
+	 * Creates a failed attempt future
+	 * @param endpoint The endpoint the attempt failed on
+	 * @return the failed future
+	 */
+	static CompletableFuture<Void> failed(final InetSocketAddress endpoint) {
+		final CompletableFuture<Void> f = new CompletableFuture<Void>();
+		f.completeExceptionally(new IOException("Endpoint down: " + endpoint));
+		return f;
+	}
+
+	/**
+	 * Tests that shards are capped at the shard size and spread so each endpoint gets one when there are enough TSMetas
+	 */
+	@Test
+	public void testShardSizing() {
+		Assert.assertEquals(Arrays.asList(4, 4, 2), sizes(HubManager.shard(metas(10), 500, 3)));
+		Assert.assertEquals(Arrays.asList(2, 2, 2, 2, 2), sizes(HubManager.shard(metas(10), 2, 3)));
+		Assert.assertEquals(Arrays.asList(1, 1), sizes(HubManager.shard(metas(2), 500, 3)));
+		Assert.assertEquals(Arrays.asList(5), sizes(HubManager.shard(metas(5), 500, 1)));
+		Assert.assertTrue(HubManager.shard(Collections.<TSMeta>emptyList(), 500, 3).isEmpty());
+		final List<TSMeta> withNulls = metas(4);
+		withNulls.add(1, null);
+		withNulls.add(null);
+		final List<List<TSMeta>> shards = HubManager.shard(withNulls, 500, 2);
+		Assert.assertEquals(Arrays.asList(2, 2), sizes(shards));
+		Assert.assertFalse(shards.get(0).contains(null) || shards.get(1).contains(null));
+	}
+
+	/**
+	 * Tests that a failing shard is retried on another endpoint each time and fails the query once its retries run out
+	 */
+	@Test
+	public void testRetryThenFail() {
+		final TestHubManager hm = new TestHubManager(2, (n, endpoint, sink) -> failed(endpoint));
+		final RequestBuilder rb = new RequestBuilder("1h-ago", Aggregator.AVG);
+		final RequestCompletion rc = hm.dispatch(rb.context(), rb, metas(1));
+		Assert.assertEquals("Expected the attempt and 2 retries", 3, hm.attempts.size());
+		for(int i = 1; i < hm.attempts.size(); i++) {
+			Assert.assertNotEquals("Retried on the failed endpoint", hm.attempts.get(i-1), hm.attempts.get(i));
+		}
+		try {
+			rc.get();
+			Assert.fail("Expected the query to fail");
+		} catch (RuntimeException rex) {
+			Assert.assertTrue(String.valueOf(rex.getCause()), rex.getCause() instanceof IOException);
+			Assert.assertTrue(rex.getCause().getMessage().contains(hm.attempts.get(2).toString()));
+		}
+	}
+
+	/**
+	 * Tests that results are streamed as an attempt decodes them, before the shard completes, and that a retry
+	 * does not deliver the series the failed attempt already delivered a second time
+	 */
+	@Test
+	public void testRetryStreamsEachSeriesOnce() {
+		final QueryResult a = result("sys.cpu"), b = result("sys.mem");
+		final CompletableFuture<Void> first = new CompletableFuture<Void>();
+		final TestHubManager hm = new TestHubManager(1, (n, endpoint, sink) -> {
+			sink.accept(a);
+			if(n==1) return first;
+			sink.accept(b);
+			return CompletableFuture.completedFuture(null);
+		});
+		final RequestBuilder rb = new RequestBuilder("1h-ago", Aggregator.AVG);
+		final RequestCompletion rc = hm.dispatch(rb.context(), rb, metas(1));
+		final List<QueryResult> streamed = new ArrayList<QueryResult>();
+		rc.onResult(streamed::add, true);
+		Assert.assertEquals("Result not streamed before the shard completed", Arrays.asList(a), streamed);
+		first.completeExceptionally(new IOException("Connection reset"));
+		Assert.assertEquals(2, hm.attempts.size());
+		Assert.assertEquals(Arrays.asList(a, b), rc.get());
+		Assert.assertEquals(Arrays.asList(a, b), streamed);
+	}
+}
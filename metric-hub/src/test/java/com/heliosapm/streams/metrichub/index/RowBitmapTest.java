@@ -0,0 +1,220 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.metrichub.index;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Title: RowBitmapTest</p>
+ * <p>Description: Verifies {@link RowBitmap} against a {@link BitSet} oracle, across the array/bitmap container
+ * conversion threshold and container boundaries</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrichub.index.RowBitmapTest</code></p>
+ */
+
+public class RowBitmapTest {
+	/** The rows of the first container */
+	static final int C0 = 0;
+	/** The rows of the second container */
+	static final int C1 = 1 << 16;
+	/** The rows of the third container */
+	static final int C2 = 2 << 16;
+
+	/**
+	 * Tests that a container converts from an array to a bitmap past {@link RowBitmap#ARRAY_MAX} values and back
+	 */
+	@Test
+	public void testContainerThreshold() {
+		RowBitmap.Container c = new RowBitmap.ArrayContainer();
+		for(int i = 0; i < RowBitmap.ARRAY_MAX; i++) {
+			c = c.add((char)(i * 2));
+		}
+		Assert.assertTrue(c instanceof RowBitmap.ArrayContainer);
+		Assert.assertSame(c, c.add((char)0));
+		c = c.add((char)1);
+		Assert.assertTrue(c instanceof RowBitmap.BitmapContainer);
+		Assert.assertEquals(RowBitmap.ARRAY_MAX + 1, c.cardinality());
+		Assert.assertSame(c, c.remove((char)3));
+		c = c.remove((char)1);
+		Assert.assertTrue(c instanceof RowBitmap.ArrayContainer);
+		Assert.assertEquals(RowBitmap.ARRAY_MAX, c.cardinality());
+		for(int i = 0; i < RowBitmap.ARRAY_MAX; i++) {
+			Assert.assertTrue(c.contains((char)(i * 2)));
+			Assert.assertFalse(c.contains((char)(i * 2 + 1)));
+		}
+	}
+
+	/**
+	 * Tests add, remove and contains as a container converts from an array to a bitmap and back
+	 */
+	@Test
+	public void testContainerConversion() {
+		final RowBitmap rb = new RowBitmap();
+		final BitSet oracle = new BitSet();
+		for(int i = 0; i < RowBitmap.ARRAY_MAX; i++) {
+			Assert.assertTrue(rb.add(C1 + i * 3));
+			oracle.set(C1 + i * 3);
+		}
+		Assert.assertFalse("Duplicate add", rb.add(C1));
+		assertEquals(oracle, rb);
+		Assert.assertTrue(rb.add(C1 + 1));
+		oracle.set(C1 + 1);
+		assertEquals(oracle, rb);
+		Assert.assertFalse("Duplicate add", rb.add(C1 + 1));
+		Assert.assertFalse("Absent remove", rb.remove(C1 + 2));
+		Assert.assertTrue(rb.remove(C1));
+		oracle.clear(C1);
+		assertEquals(oracle, rb);
+		Assert.assertFalse(rb.contains(C1));
+		Assert.assertTrue(rb.contains(C1 + 3));
+		for(int i = oracle.nextSetBit(0); i >= 0; i = oracle.nextSetBit(i + 1)) {
+			Assert.assertTrue(rb.remove(i));
+		}
+		Assert.assertTrue(rb.isEmpty());
+		Assert.assertEquals(0L, rb.getCardinality());
+	}
+
+	/**
+	 * Tests rows on either side of container boundaries
+	 */
+	@Test
+	public void testContainerBoundaries() {
+		final RowBitmap rb = new RowBitmap();
+		final int[] rows = {C0, C1 - 1, C1, C2 - 1, C2, Integer.MAX_VALUE};
+		for(int row: rows) Assert.assertTrue(rb.add(row));
+		Assert.assertEquals(rows.length, rb.getCardinality());
+		for(int row: rows) Assert.assertTrue(rb.contains(row));
+		Assert.assertFalse(rb.contains(C1 + 1));
+		Assert.assertFalse(rb.contains(-1));
+		Assert.assertFalse(rb.remove(-1));
+		Assert.assertTrue(rb.remove(C1));
+		Assert.assertTrue(rb.contains(C1 - 1));
+		Assert.assertFalse(rb.contains(C1));
+		Assert.assertArrayEquals(new int[]{Integer.MAX_VALUE, C2, C2 - 1, C1 - 1, C0}, rb.descending(Integer.MAX_VALUE, 10));
+		try {
+			rb.add(-1);
+			Assert.fail("Negative row was accepted");
+		} catch (IllegalArgumentException expected) {
+			/* Expected */
+		}
+	}
+
+	/**
+	 * Tests or, and, andNot and removeAll of mixed sparse and dense containers against the oracle
+	 */
+	@Test
+	public void testSetOperations() {
+		final Random r = new Random(17);
+		for(int round = 0; round < 20; round++) {
+			final BitSet oa = new BitSet(), ob = new BitSet();
+			final RowBitmap a = random(r, oa), b = random(r, ob);
+			final BitSet expected = (BitSet)oa.clone();
+			expected.and(ob);
+			assertEquals(expected, RowBitmap.and(a, b));
+			expected.clear();
+			expected.or(oa);
+			expected.andNot(ob);
+			assertEquals(expected, RowBitmap.andNot(a, b));
+			assertEquals(oa, a);
+			assertEquals(ob, b);
+			expected.clear();
+			expected.or(oa);
+			expected.or(ob);
+			final RowBitmap union = a.copy().or(b);
+			assertEquals(expected, union);
+			assertEquals(oa, a);
+			if(!ob.isEmpty()) {
+				final int probe = expected.nextClearBit(ob.nextSetBit(0));
+				b.add(probe);
+				ob.set(probe);
+				Assert.assertFalse("or shared a container with its operand", union.contains(probe));
+			}
+			expected.clear();
+			expected.or(oa);
+			expected.andNot(ob);
+			assertEquals(expected, a.removeAll(b));
+		}
+	}
+
+	/**
+	 * Tests descending iteration from arbitrary rows with arbitrary limits against the oracle
+	 */
+	@Test
+	public void testDescending() {
+		final Random r = new Random(31);
+		final BitSet oracle = new BitSet();
+		final RowBitmap rb = random(r, oracle);
+		Assert.assertEquals(oracle.cardinality(), rb.getCardinality());
+		for(int i = 0; i < 200; i++) {
+			final int from = r.nextInt(4 << 16);
+			final int max = 1 + r.nextInt(10000);
+			final int[] expected = new int[max];
+			int n = 0;
+			for(int row = oracle.previousSetBit(from); row >= 0 && n < max; row = oracle.previousSetBit(row - 1)) {
+				expected[n++] = row;
+			}
+			Assert.assertArrayEquals("from " + from + ", max " + max, Arrays.copyOf(expected, n), rb.descending(from, max));
+		}
+		Assert.assertEquals(0, rb.descending(-1, 10).length);
+		Assert.assertEquals(0, rb.descending(Integer.MAX_VALUE, 0).length);
+		Assert.assertEquals(0, new RowBitmap().descending(Integer.MAX_VALUE, 10).length);
+	}
+
+	/**
+	 * Builds a random bitmap of four containers: an empty or sparse one, a dense one, one at the conversion threshold and one random
+	 * @param r The random to use
+	 * @param oracle The oracle to set the same rows in
+	 * @return the bitmap
+	 */
+	static RowBitmap random(final Random r, final BitSet oracle) {
+		final RowBitmap rb = new RowBitmap();
+		final int[] counts = {r.nextInt(100), RowBitmap.ARRAY_MAX * 4, RowBitmap.ARRAY_MAX + r.nextInt(3) - 1, r.nextInt(RowBitmap.ARRAY_MAX * 2)};
+		for(int c = 0; c < counts.length; c++) {
+			if(r.nextInt(5)==0) continue;
+			for(int i = 0; i < counts[c]; i++) {
+				final int row = (c << 16) + r.nextInt(1 << 16);
+				rb.add(row);
+				oracle.set(row);
+			}
+		}
+		return rb;
+	}
+
+	/**
+	 * Asserts that the bitmap holds exactly the rows of the oracle
+	 * @param oracle The expected rows
+	 * @param rb The bitmap
+	 */
+	static void assertEquals(final BitSet oracle, final RowBitmap rb) {
+		Assert.assertEquals(oracle.cardinality(), rb.getCardinality());
+		Assert.assertEquals(oracle.isEmpty(), rb.isEmpty());
+		final int[] rows = rb.descending(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		int n = 0;
+		for(int row = oracle.previousSetBit(oracle.length()); row >= 0; row = oracle.previousSetBit(row - 1)) {
+			Assert.assertEquals(row, rows[n++]);
+			Assert.assertTrue(rb.contains(row));
+		}
+		Assert.assertEquals(n, rows.length);
+	}
+}
@@ -0,0 +1,373 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.metrichub.index;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.heliosapm.streams.metrichub.impl.MetricsMetaAPIImpl;
+import com.heliosapm.streams.sqlbinder.SQLWorker;
+
+/**
+ * <p>Title: TagIndexBenchmark</p>
+ * <p>Description: JMH benchmark comparing the SQL INTERSECT / UNION ALL path of the meta API with the {@link TagIndex}
+ * bitmap path when resolving the first page of FQNIDs matching a metric/tag expression, against an in-memory H2
+ * catalog of synthetic TSMetas. Hydrating the matched TSMetas is the same for both paths and is not measured.</p>
+ * <p>Each series has a metric (64 values) and <b><code>host</code></b> (1024), <b><code>cpu</code></b> (16),
+ * <b><code>dc</code></b> (8) and <b><code>app</code></b> (32) tags. The default of 1,048,576 series needs a few GB of heap.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrichub.index.TagIndexBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(value=1, jvmArgsAppend={"-Xmx6g"})
+public class TagIndexBenchmark {
+	/** The number of metric names */
+	static final int METRICS = 64;
+	/** The number of hosts */
+	static final int HOSTS = 1024;
+	/** The tag keys */
+	static final String[] TAG_KEYS = {"host", "cpu", "dc", "app"};
+	/** The number of rows returned per query */
+	static final int PAGE = 500;
+	/** The JDBC batch size for loading the catalog */
+	static final int BATCH = 10000;
+
+	/** The catalog DDL */
+	static final String[] DDL = {
+		"CREATE TABLE TSD_METRIC (XUID CHAR(6) NOT NULL PRIMARY KEY, NAME VARCHAR2(200) NOT NULL)",
+		"CREATE UNIQUE INDEX TSD_METRIC_AK ON TSD_METRIC (NAME ASC)",
+		"CREATE TABLE TSD_TAGK (XUID CHAR(6) NOT NULL PRIMARY KEY, NAME VARCHAR2(200) NOT NULL)",
+		"CREATE UNIQUE INDEX TSD_TAGK_AK ON TSD_TAGK (NAME ASC)",
+		"CREATE TABLE TSD_TAGV (XUID CHAR(6) NOT NULL PRIMARY KEY, NAME VARCHAR2(200) NOT NULL)",
+		"CREATE UNIQUE INDEX TSD_TAGV_AK ON TSD_TAGV (NAME ASC)",
+		"CREATE TABLE TSD_TAGPAIR (XUID CHAR(12) NOT NULL PRIMARY KEY, TAGK CHAR(6) NOT NULL, TAGV CHAR(6) NOT NULL, NAME VARCHAR2(120) NOT NULL)",
+		"CREATE UNIQUE INDEX TSD_TAGPAIR_AK ON TSD_TAGPAIR (TAGK ASC, TAGV ASC)",
+		"CREATE INDEX TSD_TAGPAIR_V_IDX ON TSD_TAGPAIR (TAGV ASC)",
+		"CREATE TABLE TSD_TSMETA (FQNID BIGINT NOT NULL PRIMARY KEY, METRIC_UID CHAR(6) NOT NULL, FQN VARCHAR(4000) NOT NULL, TSUID VARCHAR(120) NOT NULL)",
+		"CREATE INDEX TSD_TSMETA_METRIC_IDX ON TSD_TSMETA (METRIC_UID)",
+		"CREATE TABLE TSD_FQN_TAGPAIR (FQN_TP_ID BIGINT NOT NULL PRIMARY KEY, FQNID BIGINT NOT NULL, XUID CHAR(12) NOT NULL, PORDER TINYINT NOT NULL, NODE CHAR(1) NOT NULL)",
+		"CREATE UNIQUE INDEX TSD_FQN_TAGPAIR_IND ON TSD_FQN_TAGPAIR (FQNID, XUID, PORDER)",
+		"CREATE INDEX TSD_FQN_TAGPAIR_XUID_IDX ON TSD_FQN_TAGPAIR (XUID)"
+	};
+
+	/** The number of synthetic series */
+	@Param({"1048576"})
+	int series;
+
+	/** The in-memory H2 data source */
+	JdbcDataSource dataSource;
+	/** A connection held open so the in-memory DB survives */
+	Connection keepAlive;
+	/** The index under test */
+	TagIndex tagIndex;
+
+	/** An exact expression matching one series */
+	final Expr exact = new Expr("sys.metric.7", false, "host", "host-42", "cpu", "3");
+	/** A wildcard expression */
+	final Expr wildcard = new Expr("sys.metric.7", false, "host", "host-1*", "dc", "dc-2");
+	/** A broad property list pattern expression */
+	final Expr broad = new Expr("sys.metric.*", true, "app", "app-5|app-6", "dc", "dc-1");
+
+	/**
+	 * Loads the synthetic catalog and bootstraps the index
+	 * @throws Exception thrown on any error
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:tagindexbench;DB_CLOSE_DELAY=-1");
+		keepAlive = dataSource.getConnection();
+		load(keepAlive);
+		final Properties p = new Properties();
+		p.setProperty(TagIndex.CONFIG_LOAD_RANGE, "" + (1 << 18));
+		tagIndex = new TagIndex(SQLWorker.getInstance(dataSource), p);
+		tagIndex.poll();
+		for(Expr e: new Expr[]{exact, wildcard, broad}) {
+			final int[] a = sql(e), b = index(e);
+			if(!Arrays.equals(a, b)) throw new IllegalStateException("Paths disagree on [" + e + "]: " + a.length + " vs " + b.length);
+		}
+	}
+
+	/**
+	 * Drops the catalog
+	 * @throws Exception thrown on any error
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		tagIndex.close();
+		final Statement st = keepAlive.createStatement();
+		st.execute("SHUTDOWN");
+		st.close();
+		keepAlive.close();
+	}
+
+	private void load(final Connection conn) throws Exception {
+		conn.setAutoCommit(false);
+		final Statement st = conn.createStatement();
+		for(String ddl: DDL) st.execute(ddl);
+		st.close();
+		final int[] cardinality = {HOSTS, 16, 8, 32};
+		final String[][] values = new String[TAG_KEYS.length][];
+		int uid = 0;
+		final PreparedStatement m = conn.prepareStatement("INSERT INTO TSD_METRIC VALUES (?, ?)");
+		for(int i = 0; i < METRICS; i++) {
+			m.setString(1, uid(uid++));
+			m.setString(2, "sys.metric." + i);
+			m.addBatch();
+		}
+		m.executeBatch();
+		m.close();
+		final PreparedStatement k = conn.prepareStatement("INSERT INTO TSD_TAGK VALUES (?, ?)");
+		final PreparedStatement v = conn.prepareStatement("INSERT INTO TSD_TAGV VALUES (?, ?)");
+		final PreparedStatement tp = conn.prepareStatement("INSERT INTO TSD_TAGPAIR VALUES (?, ?, ?, ?)");
+		for(int t = 0; t < TAG_KEYS.length; t++) {
+			final String tagk = uid(uid++);
+			k.setString(1, tagk);
+			k.setString(2, TAG_KEYS[t]);
+			k.addBatch();
+			values[t] = new String[cardinality[t]];
+			for(int i = 0; i < cardinality[t]; i++) {
+				final String name = t==1 ? ("" + i) : (TAG_KEYS[t] + "-" + i);
+				final String tagv = uid(uid++);
+				v.setString(1, tagv);
+				v.setString(2, name);
+				v.addBatch();
+				values[t][i] = tagk + tagv;
+				tp.setString(1, tagk + tagv);
+				tp.setString(2, tagk);
+				tp.setString(3, tagv);
+				tp.setString(4, TAG_KEYS[t] + "=" + name);
+				tp.addBatch();
+			}
+		}
+		k.executeBatch();
+		v.executeBatch();
+		tp.executeBatch();
+		k.close();
+		v.close();
+		tp.close();
+		final PreparedStatement ts = conn.prepareStatement("INSERT INTO TSD_TSMETA VALUES (?, ?, ?, ?)");
+		final PreparedStatement fp = conn.prepareStatement("INSERT INTO TSD_FQN_TAGPAIR VALUES (?, ?, ?, ?, ?)");
+		long fqnTpId = 0;
+		for(int fqnId = 1; fqnId <= series; fqnId++) {
+			final int i = fqnId - 1;
+			final int host = (i / METRICS) % HOSTS;
+			final int[] tags = {host, (i / (METRICS * HOSTS)) % 16, host % 8, host % 32};
+			ts.setLong(1, fqnId);
+			ts.setString(2, uid(i % METRICS));
+			ts.setString(3, "sys.metric." + (i % METRICS) + ":" + fqnId);
+			ts.setString(4, Integer.toHexString(fqnId));
+			ts.addBatch();
+			for(int t = 0; t < TAG_KEYS.length; t++) {
+				fp.setLong(1, fqnTpId++);
+				fp.setLong(2, fqnId);
+				fp.setString(3, values[t][tags[t]]);
+				fp.setInt(4, t + 1);
+				fp.setString(5, t==TAG_KEYS.length-1 ? "L" : "B");
+				fp.addBatch();
+			}
+			if(fqnId % BATCH==0) {
+				ts.executeBatch();
+				fp.executeBatch();
+				conn.commit();
+			}
+		}
+		ts.executeBatch();
+		fp.executeBatch();
+		conn.commit();
+		ts.close();
+		fp.close();
+		conn.setAutoCommit(true);
+	}
+
+	private static String uid(final int id) {
+		final String hex = Integer.toHexString(id).toUpperCase();
+		return "000000".substring(hex.length()) + hex;
+	}
+
+	/**
+	 * Resolves the first page of FQNIDs the way the SQL path of the meta API does
+	 * @param e The expression
+	 * @return the FQNIDs in descending order
+	 * @throws Exception thrown on any error
+	 */
+	int[] sql(final Expr e) throws Exception {
+		final List<Object> binds = new ArrayList<Object>();
+		final StringBuilder b = new StringBuilder("SELECT * FROM ( ");
+		final Iterator<Map.Entry<String, String>> iter = e.tags.entrySet().iterator();
+		while(iter.hasNext()) {
+			final Map.Entry<String, String> tag = iter.next();
+			b.append(String.format(MetricsMetaAPIImpl.GET_ANN_TSMETAS_SQL,
+				MetricsMetaAPIImpl.expandPredicate(e.metric, MetricsMetaAPIImpl.METRIC_SQL_BLOCK, binds),
+				MetricsMetaAPIImpl.expandPredicate(tag.getKey(), MetricsMetaAPIImpl.TAGK_SQL_BLOCK, binds),
+				MetricsMetaAPIImpl.expandPredicate(tag.getValue(), MetricsMetaAPIImpl.TAGV_SQL_BLOCK, binds)
+			));
+			// UNION rather than the API's UNION ALL so both paths return distinct FQNIDs
+			if(iter.hasNext()) b.append(e.union ? " UNION " : " INTERSECT ");
+		}
+		b.append(") X ORDER BY X.FQNID DESC LIMIT ?");
+		binds.add(PAGE);
+		final PreparedStatement ps = keepAlive.prepareStatement(b.toString());
+		try {
+			for(int i = 0; i < binds.size(); i++) ps.setObject(i+1, binds.get(i));
+			final ResultSet rset = ps.executeQuery();
+			final int[] ids = new int[PAGE];
+			int n = 0;
+			while(rset.next()) ids[n++] = rset.getInt(1);
+			rset.close();
+			return Arrays.copyOf(ids, n);
+		} finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * Resolves the first page of FQNIDs with the tag index
+	 * @param e The expression
+	 * @return the FQNIDs in descending order
+	 */
+	int[] index(final Expr e) {
+		return tagIndex.evaluate(e.metric, e.tags, e.union).descending(Integer.MAX_VALUE, PAGE);
+	}
+
+	/**
+	 * SQL path, exact expression
+	 * @return the FQNIDs
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public int[] sqlExact() throws Exception {
+		return sql(exact);
+	}
+
+	/**
+	 * Index path, exact expression
+	 * @return the FQNIDs
+	 */
+	@Benchmark
+	public int[] indexExact() {
+		return index(exact);
+	}
+
+	/**
+	 * SQL path, wildcard expression
+	 * @return the FQNIDs
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public int[] sqlWildcard() throws Exception {
+		return sql(wildcard);
+	}
+
+	/**
+	 * Index path, wildcard expression
+	 * @return the FQNIDs
+	 */
+	@Benchmark
+	public int[] indexWildcard() {
+		return index(wildcard);
+	}
+
+	/**
+	 * SQL path, broad property list pattern expression
+	 * @return the FQNIDs
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public int[] sqlBroad() throws Exception {
+		return sql(broad);
+	}
+
+	/**
+	 * Index path, broad property list pattern expression
+	 * @return the FQNIDs
+	 */
+	@Benchmark
+	public int[] indexBroad() {
+		return index(broad);
+	}
+
+	/**
+	 * Runs the benchmark
+	 * @param args None
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(TagIndexBenchmark.class.getSimpleName())
+			.build()
+		).run();
+	}
+
+	/**
+	 * <p>Title: Expr</p>
+	 * <p>Description: A benchmarked metric/tag expression</p>
+	 * <p><code>com.heliosapm.streams.metrichub.index.TagIndexBenchmark.Expr</code></p>
+	 */
+	static class Expr {
+		/** The metric name expression */
+		final String metric;
+		/** true for a property list pattern */
+		final boolean union;
+		/** The tag expressions */
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+
+		Expr(final String metric, final boolean union, final String...pairs) {
+			this.metric = metric;
+			this.union = union;
+			for(int i = 0; i < pairs.length; i += 2) tags.put(pairs[i], pairs[i+1]);
+		}
+
+		@Override
+		public String toString() {
+			return metric + ":" + tags + (union ? ",*" : "");
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.metrichub.index;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.heliosapm.streams.sqlbinder.SQLWorker;
+
+/**
+ * <p>Title: TagIndexTest</p>
+ * <p>Description: Verifies {@link TagIndex} expression evaluation and index maintenance against a small in-memory H2 catalog</p>
+ * <p>The catalog holds:<pre>
+ *   1: sys.cpu  host=web-1, dc=east
+ *   2: sys.cpu  host=web-2, dc=west
+ *   3: sys.cpu  host=db-1,  dc=east
+ *   4: sys.mem  host=web-1, dc=east
+ *   5: sys.mem  host=db-1,  dc=west
+ *   6: app.reqs host=web-2, dc=west, path=/a
+ * </pre></p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrichub.index.TagIndexTest</code></p>
+ */
+
+public class TagIndexTest {
+	/** A serial to give each test its own in-memory DB */
+	static final AtomicInteger serial = new AtomicInteger();
+
+	/** A connection held open so the in-memory DB survives */
+	Connection conn;
+	/** The index under test */
+	TagIndex tagIndex;
+	/** The UIDs assigned to each name, keyed by table */
+	final Map<String, Map<String, String>> uids = new HashMap<String, Map<String, String>>();
+	/** The UIDs of the inserted tag pairs */
+	final Set<String> tagPairs = new HashSet<String>();
+	/** The next UID */
+	int nextUid = 0;
+	/** The next FQN tag pair id */
+	long nextFqnTpId = 0;
+
+	/**
+	 * Creates the catalog and bootstraps the index
+	 * @throws Exception thrown on any error
+	 */
+	@Before
+	public void setUp() throws Exception {
+		final JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:tagindextest" + serial.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+		conn = dataSource.getConnection();
+		final Statement st = conn.createStatement();
+		for(String ddl: TagIndexBenchmark.DDL) st.execute(ddl);
+		st.close();
+		series(1, "sys.cpu", "host", "web-1", "dc", "east");
+		series(2, "sys.cpu", "host", "web-2", "dc", "west");
+		series(3, "sys.cpu", "host", "db-1", "dc", "east");
+		series(4, "sys.mem", "host", "web-1", "dc", "east");
+		series(5, "sys.mem", "host", "db-1", "dc", "west");
+		series(6, "app.reqs", "host", "web-2", "dc", "west", "path", "/a");
+		tagIndex = new TagIndex(SQLWorker.getInstance(dataSource), new Properties());
+		tagIndex.poll();
+		Assert.assertTrue(tagIndex.isReady());
+	}
+
+	/**
+	 * Closes the index and drops the catalog
+	 * @throws Exception thrown on any error
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if(tagIndex!=null) tagIndex.close();
+		if(conn!=null) {
+			final Statement st = conn.createStatement();
+			st.execute("SHUTDOWN");
+			st.close();
+			conn.close();
+		}
+	}
+
+	/**
+	 * Tests the bootstrap load
+	 */
+	@Test
+	public void testBootstrap() {
+		Assert.assertEquals(6L, tagIndex.getSeriesCount());
+		Assert.assertEquals(6L, tagIndex.getMaxFqnId());
+		Assert.assertEquals(3, tagIndex.getMetricCount());
+		Assert.assertEquals(3, tagIndex.getTagKeyCount());
+		Assert.assertEquals(6, tagIndex.getTagValueCount());
+		Assert.assertEquals(6, tagIndex.getTagPairCount());
+		assertRows(tagIndex.evaluate("*", null, false), 6, 5, 4, 3, 2, 1);
+	}
+
+	/**
+	 * Tests exact and wildcard metric names and tag values
+	 */
+	@Test
+	public void testWildcards() {
+		assertRows(evaluate("sys.cpu", false, "host", "web-1"), 1);
+		assertRows(evaluate("sys.cpu", false, "host", "web-*"), 2, 1);
+		assertRows(evaluate("sys.*", false, "host", "web-*"), 4, 2, 1);
+		assertRows(evaluate("*", false, "host", "*-1"), 5, 4, 3, 1);
+		assertRows(evaluate("sys.*", false, "host", "*"), 5, 4, 3, 2, 1);
+		assertRows(evaluate("*.reqs", false, "p*", "/*"), 6);
+		assertRows(evaluate("sys.cpu", false, "*", "east"), 3, 1);
+	}
+
+	/**
+	 * Tests that <b><code>_</code></b> and <b><code>%</code></b> are wildcards, as in the SQL <b><code>LIKE</code></b>,
+	 * only in alternatives holding a <b><code>*</code></b>
+	 */
+	@Test
+	public void testLikeWildcards() {
+		assertRows(evaluate("sys.cpu", false, "host", "web_1"));
+		assertRows(evaluate("sys_cpu", false, "host", "*"));
+		assertRows(evaluate("sys.cpu", false, "host", "w_b-*"), 2, 1);
+		assertRows(evaluate("sys.cpu", false, "host", "*-_"), 3, 2, 1);
+		assertRows(evaluate("sys.cpu", false, "host", "web-_*"), 2, 1);
+		assertRows(evaluate("sys.cpu", false, "host", "web-__*"));
+		assertRows(evaluate("sys_*", false, "host", "d%*"), 5, 3);
+		assertRows(evaluate("*", false, "host", "%-2*"), 6, 2);
+	}
+
+	/**
+	 * Tests <b><code>|</code></b> separated alternatives and property list patterns, which match a TSMeta matching any tag
+	 */
+	@Test
+	public void testAlternatives() {
+		assertRows(evaluate("sys.cpu|sys.mem", false, "host", "db-1"), 5, 3);
+		assertRows(evaluate("sys.cpu", false, "host", "web-2|db-1"), 3, 2);
+		assertRows(evaluate("*", false, "host", "web-2|db-*", "dc", "west"), 6, 5, 2);
+		assertRows(evaluate("sys.cpu", true, "host", "db-1", "dc", "west"), 3, 2);
+		assertRows(evaluate("*", true, "path", "/a", "host", "web-1"), 6, 4, 1);
+	}
+
+	/**
+	 * Tests that TSMetas not matching every tag, or carrying an unknown name, are excluded
+	 */
+	@Test
+	public void testExclusions() {
+		assertRows(evaluate("sys.cpu", false, "host", "web-*", "dc", "west"), 2);
+		assertRows(evaluate("*", false, "host", "db-1", "dc", "north"));
+		assertRows(evaluate("*", false, "host", "web-1", "path", "*"));
+		assertRows(evaluate("sys.disk", false, "host", "*"));
+		assertRows(evaluate("sys.disk|sys.mem", false, "rack", "*"));
+		assertRows(evaluate("sys.cpu", true, "rack", "r1", "dc", "west"), 2);
+	}
+
+	/**
+	 * Tests that a poll adds new TSMetas and drops the TSMetas deleted from the DB
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRemoval() throws Exception {
+		delete(2, 6);
+		series(7, "sys.cpu", "host", "web-3", "dc", "west");
+		tagIndex.poll();
+		Assert.assertEquals(5L, tagIndex.getSeriesCount());
+		Assert.assertEquals(7L, tagIndex.getMaxFqnId());
+		assertRows(tagIndex.evaluate("*", null, false), 7, 5, 4, 3, 1);
+		assertRows(evaluate("sys.cpu", false, "host", "web-*"), 7, 1);
+		assertRows(evaluate("*", false, "host", "web-2"));
+		assertRows(evaluate("*", false, "path", "*"));
+		assertRows(evaluate("app.reqs", false, "dc", "*"));
+		assertRows(evaluate("*", false, "dc", "west"), 7, 5);
+		// host=web-2 and path=/a are gone, host=web-3 is new
+		Assert.assertEquals(5, tagIndex.getTagPairCount());
+		delete(7);
+		tagIndex.poll();
+		assertRows(evaluate("*", false, "dc", "west"), 5);
+		Assert.assertEquals(4L, tagIndex.getSeriesCount());
+		// nothing deleted since the last poll
+		tagIndex.poll();
+		Assert.assertEquals(4L, tagIndex.getSeriesCount());
+	}
+
+	private RowBitmap evaluate(final String metricName, final boolean union, final String...pairs) {
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		for(int i = 0; i < pairs.length; i += 2) tags.put(pairs[i], pairs[i+1]);
+		return tagIndex.evaluate(metricName, tags, union);
+	}
+
+	private static void assertRows(final RowBitmap rows, final int...expected) {
+		Assert.assertArrayEquals(expected, rows.descending(Integer.MAX_VALUE, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Inserts a TSMeta into the catalog
+	 * @param fqnId The FQNID
+	 * @param metric The metric name
+	 * @param pairs The tag keys and values
+	 * @throws Exception thrown on any error
+	 */
+	private void series(final long fqnId, final String metric, final String...pairs) throws Exception {
+		final String metricUid = uid("TSD_METRIC", metric);
+		final PreparedStatement ts = conn.prepareStatement("INSERT INTO TSD_TSMETA VALUES (?, ?, ?, ?)");
+		ts.setLong(1, fqnId);
+		ts.setString(2, metricUid);
+		ts.setString(3, metric + ":" + fqnId);
+		ts.setString(4, Long.toHexString(fqnId));
+		ts.executeUpdate();
+		ts.close();
+		final PreparedStatement fp = conn.prepareStatement("INSERT INTO TSD_FQN_TAGPAIR VALUES (?, ?, ?, ?, ?)");
+		for(int i = 0; i < pairs.length; i += 2) {
+			final String tagk = uid("TSD_TAGK", pairs[i]);
+			final String tagv = uid("TSD_TAGV", pairs[i+1]);
+			if(tagPairs.add(tagk + tagv)) {
+				final PreparedStatement tp = conn.prepareStatement("INSERT INTO TSD_TAGPAIR VALUES (?, ?, ?, ?)");
+				tp.setString(1, tagk + tagv);
+				tp.setString(2, tagk);
+				tp.setString(3, tagv);
+				tp.setString(4, pairs[i] + "=" + pairs[i+1]);
+				tp.executeUpdate();
+				tp.close();
+			}
+			fp.setLong(1, nextFqnTpId++);
+			fp.setLong(2, fqnId);
+			fp.setString(3, tagk + tagv);
+			fp.setInt(4, i / 2 + 1);
+			fp.setString(5, i==pairs.length-2 ? "L" : "B");
+			fp.executeUpdate();
+		}
+		fp.close();
+	}
+
+	/**
+	 * Deletes TSMetas from the catalog
+	 * @param fqnIds The FQNIDs of the TSMetas to delete
+	 * @throws Exception thrown on any error
+	 */
+	private void delete(final long...fqnIds) throws Exception {
+		final Statement st = conn.createStatement();
+		for(long fqnId: fqnIds) {
+			st.executeUpdate("DELETE FROM TSD_FQN_TAGPAIR WHERE FQNID = " + fqnId);
+			st.executeUpdate("DELETE FROM TSD_TSMETA WHERE FQNID = " + fqnId);
+		}
+		st.close();
+	}
+
+	/**
+	 * Returns the UID of a name, inserting it into the passed table if it is new
+	 * @param table The metric, tag key or tag value table
+	 * @param name The name
+	 * @return the UID
+	 * @throws Exception thrown on any error
+	 */
+	private String uid(final String table, final String name) throws Exception {
+		Map<String, String> names = uids.get(table);
+		if(names==null) {
+			names = new HashMap<String, String>();
+			uids.put(table, names);
+		}
+		String uid = names.get(name);
+		if(uid==null) {
+			final String hex = Integer.toHexString(nextUid++).toUpperCase();
+			uid = "000000".substring(hex.length()) + hex;
+			names.put(name, uid);
+			final PreparedStatement ps = conn.prepareStatement("INSERT INTO " + table + " VALUES (?, ?)");
+			ps.setString(1, uid);
+			ps.setString(2, name);
+			ps.executeUpdate();
+			ps.close();
+		}
+		return uid;
+	}
+}
@@ -0,0 +1,234 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.metrichub.results;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+
+/**
+ * <p>Title: QueryResultDecoderTest</p>
+ * <p>Description: Feeds chunked <b>/api/query</b> responses through a {@link QueryResultDecoder} in an {@link EmbeddedChannel}</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrichub.results.QueryResultDecoderTest</code></p>
+ */
+
+public class QueryResultDecoderTest {
+	/** A result for sys.cpu */
+	static final String CPU = "{\"metric\":\"sys.cpu\",\"tags\":{\"host\":\"a\"},\"aggregateTags\":[],\"dps\":{\"1500000000\":1,\"1500000015\":2.5}}";
+	/** A result for sys.mem */
+	static final String MEM = "{\"metric\":\"sys.mem\",\"tags\":{\"host\":\"b\"},\"aggregateTags\":[\"cpu\"],\"dps\":[[1500000000,7]]}";
+
+	/**
+	 * Starts a response on the passed channel
+	 * @param ch The channel
+	 * @param status The response status
+	 */
+	static void respond(final EmbeddedChannel ch, final HttpResponseStatus status) {
+		ch.writeInbound(new DefaultHttpResponse(HttpVersion.HTTP_1_1, status));
+	}
+
+	/**
+	 * Writes a content chunk to the passed channel
+	 * @param ch The channel
+	 * @param chunk The chunk content
+	 */
+	static void chunk(final EmbeddedChannel ch, final String chunk) {
+		ch.writeInbound(new DefaultHttpContent(Unpooled.copiedBuffer(chunk, QueryResultDecoder.UTF8)));
+	}
+
+	/**
+	 * Writes the last content chunk to the passed channel
+	 * @param ch The channel
+	 * @param chunk The chunk content
+	 */
+	static void last(final EmbeddedChannel ch, final String chunk) {
+		ch.writeInbound(chunk.isEmpty() ? LastHttpContent.EMPTY_LAST_CONTENT : new DefaultLastHttpContent(Unpooled.copiedBuffer(chunk, QueryResultDecoder.UTF8)));
+	}
+
+	/**
+	 * Reads the next decoded result, failing if there is none
+	 * @param ch The channel
+	 * @param metric The expected metric name
+	 * @return the result
+	 */
+	static QueryResult result(final EmbeddedChannel ch, final String metric) {
+		final Object o = ch.readInbound();
+		Assert.assertTrue("Expected a result but got " + o, o instanceof QueryResult);
+		final QueryResult q = (QueryResult)o;
+		Assert.assertEquals(metric, q.metricName());
+		return q;
+	}
+
+	/**
+	 * Asserts that the response ended
+	 * @param ch The channel
+	 */
+	static void assertEnd(final EmbeddedChannel ch) {
+		Assert.assertSame(QueryResultDecoder.END_OF_RESULTS, ch.readInbound());
+		Assert.assertNull(ch.readInbound());
+	}
+
+	/**
+	 * Tests that an object split across chunks, including inside a string and a nested object, is emitted once it completes
+	 */
+	@Test
+	public void testObjectSplitAcrossChunks() {
+		final EmbeddedChannel ch = new EmbeddedChannel(new QueryResultDecoder());
+		respond(ch, HttpResponseStatus.OK);
+		final String body = "[" + CPU + "," + MEM + "]";
+		final int split1 = body.indexOf("sys.cpu") + 3, split2 = body.indexOf("\"host\":\"a\"") + 2;
+		chunk(ch, body.substring(0, split1));
+		chunk(ch, body.substring(split1, split2));
+		Assert.assertNull("Result emitted before it completed", ch.readInbound());
+		final int split3 = body.indexOf(MEM) + 5;
+		chunk(ch, body.substring(split2, split3));
+		final QueryResult cpu = result(ch, "sys.cpu");
+		Assert.assertEquals("a", cpu.tags().get("host"));
+		Assert.assertEquals(1500000000000L, cpu.time(0));
+		Assert.assertEquals(2.5D, cpu.value(1), 0D);
+		Assert.assertNull(ch.readInbound());
+		last(ch, body.substring(split3));
+		Assert.assertEquals(7D, result(ch, "sys.mem").value(0), 0D);
+		assertEnd(ch);
+		Assert.assertFalse(ch.finish());
+	}
+
+	/**
+	 * Tests that every split of a response, one byte at a time, decodes the same results
+	 */
+	@Test
+	public void testByteAtATime() {
+		final EmbeddedChannel ch = new EmbeddedChannel(new QueryResultDecoder());
+		respond(ch, HttpResponseStatus.OK);
+		final String body = "[" + CPU + " ,\n" + MEM + "]";
+		for(int i = 0; i < body.length(); i++) {
+			chunk(ch, body.substring(i, i + 1));
+		}
+		last(ch, "");
+		result(ch, "sys.cpu");
+		result(ch, "sys.mem");
+		assertEnd(ch);
+	}
+
+	/**
+	 * Tests that escaped quotes and braces inside strings do not end an object
+	 */
+	@Test
+	public void testEscapesInStrings() {
+		final EmbeddedChannel ch = new EmbeddedChannel(new QueryResultDecoder());
+		respond(ch, HttpResponseStatus.OK);
+		final String tricky = "{\"metric\":\"sys.cpu\",\"tags\":{\"path\":\"C:\\\\dir\\\\\",\"q\":\"say \\\"}]{[\\\" \\\\\\\"\"},\"dps\":{\"1500000000\":3}}";
+		final String body = "[" + tricky + "," + MEM + "]";
+		// split right after an escape character
+		final int split = body.indexOf("say \\") + 5;
+		chunk(ch, body.substring(0, split));
+		Assert.assertNull(ch.readInbound());
+		last(ch, body.substring(split));
+		final QueryResult q = result(ch, "sys.cpu");
+		Assert.assertEquals("C:\\dir\\", q.tags().get("path"));
+		Assert.assertEquals("say \"}]{[\" \\\"", q.tags().get("q"));
+		result(ch, "sys.mem");
+		assertEnd(ch);
+	}
+
+	/**
+	 * Tests that a response of a single object rather than an array is decoded
+	 */
+	@Test
+	public void testSingleObjectResponse() {
+		final EmbeddedChannel ch = new EmbeddedChannel(new QueryResultDecoder());
+		respond(ch, HttpResponseStatus.OK);
+		chunk(ch, CPU.substring(0, 20));
+		last(ch, CPU.substring(20));
+		Assert.assertEquals(2, result(ch, "sys.cpu").values().count());
+		assertEnd(ch);
+	}
+
+	/**
+	 * Tests that an error response is raised with its body, whatever the body contains
+	 */
+	@Test
+	public void testErrorResponse() {
+		final EmbeddedChannel ch = new EmbeddedChannel(new QueryResultDecoder());
+		respond(ch, HttpResponseStatus.BAD_REQUEST);
+		chunk(ch, "{\"error\":{\"code\":400,");
+		try {
+			last(ch, "\"message\":\"No such name for 'metrics': 'sys.nope'\"}}");
+			Assert.fail("Expected a DecoderException");
+		} catch (DecoderException dex) {
+			Assert.assertTrue(dex.getMessage(), dex.getMessage().contains("400"));
+			Assert.assertTrue(dex.getMessage(), dex.getMessage().contains("sys.nope"));
+		}
+		Assert.assertNull(ch.readInbound());
+	}
+
+	/**
+	 * Tests that the decoder state is reset after an error response, a truncated response and a new response
+	 * arriving mid result, so the next response on the channel decodes cleanly
+	 */
+	@Test
+	public void testStateAfterReset() {
+		final EmbeddedChannel ch = new EmbeddedChannel(new QueryResultDecoder());
+		respond(ch, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+		chunk(ch, "{\"error\":\"unterminated \\\"");
+		try {
+			last(ch, "");
+			Assert.fail("Expected a DecoderException");
+		} catch (DecoderException dex) {
+			/* No Op */
+		}
+		respond(ch, HttpResponseStatus.OK);
+		chunk(ch, "[" + CPU + ",{\"metric\":\"sys.m");
+		result(ch, "sys.cpu");
+		try {
+			last(ch, "");
+			Assert.fail("Expected a DecoderException");
+		} catch (DecoderException dex) {
+			Assert.assertTrue(dex.getMessage(), dex.getMessage().contains("Truncated"));
+		}
+		// a new response while inside a string of the previous one
+		respond(ch, HttpResponseStatus.OK);
+		chunk(ch, "[{\"metric\":\"sys.\\");
+		respond(ch, HttpResponseStatus.OK);
+		last(ch, "[" + MEM + "]");
+		result(ch, "sys.mem");
+		assertEnd(ch);
+		// a single object response followed by an array response
+		respond(ch, HttpResponseStatus.OK);
+		last(ch, CPU);
+		result(ch, "sys.cpu");
+		assertEnd(ch);
+		respond(ch, HttpResponseStatus.OK);
+		last(ch, "[" + MEM + "," + CPU + "]");
+		result(ch, "sys.mem");
+		result(ch, "sys.cpu");
+		assertEnd(ch);
+		Assert.assertFalse(ch.finish());
+	}
+}
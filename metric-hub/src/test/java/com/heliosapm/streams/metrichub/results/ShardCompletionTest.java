@@ -0,0 +1,124 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.metrichub.results;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * <p>Title: ShardCompletionTest</p>
+ * <p>Description: Tests that a {@link ShardCompletion} streams each result to its sink as it is decoded, holding none itself</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrichub.results.ShardCompletionTest</code></p>
+ */
+
+public class ShardCompletionTest {
+
+	/**
+	 * A channel pool that counts releases
+	 */
+	static class CountingPool implements ChannelPool {
+		/** The number of released channels */
+		final AtomicInteger released = new AtomicInteger();
+
+		@Override
+		public Future<Channel> acquire() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Future<Channel> acquire(final Promise<Channel> promise) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Future<Void> release(final Channel channel) {
+			released.incrementAndGet();
+			return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+		}
+
+		@Override
+		public Future<Void> release(final Channel channel, final Promise<Void> promise) {
+			released.incrementAndGet();
+			return promise.setSuccess(null);
+		}
+
+		@Override
+		public void close() {
+			/* No Op */
+		}
+	}
+
+	/**
+	 * Tests that results reach the sink one by one as the response streams in, and that the shard completes at the end of the response
+	 */
+	@Test
+	public void testStreamsResults() {
+		final CountingPool pool = new CountingPool();
+		final List<QueryResult> sunk = new ArrayList<QueryResult>();
+		final ShardCompletion sc = new ShardCompletion(0L, pool, sunk::add);
+		final EmbeddedChannel ch = new EmbeddedChannel(new QueryResultDecoder(), sc);
+		ch.writeInbound(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+		ch.writeInbound(new DefaultHttpContent(Unpooled.copiedBuffer("[" + QueryResultDecoderTest.CPU + ",", QueryResultDecoder.UTF8)));
+		Assert.assertEquals(1, sunk.size());
+		Assert.assertFalse(sc.future().isDone());
+		ch.writeInbound(new DefaultHttpContent(Unpooled.copiedBuffer(QueryResultDecoderTest.MEM, QueryResultDecoder.UTF8)));
+		Assert.assertEquals(2, sunk.size());
+		Assert.assertFalse(sc.future().isDone());
+		ch.writeInbound(new DefaultLastHttpContent(Unpooled.copiedBuffer("]", QueryResultDecoder.UTF8)));
+		Assert.assertTrue(sc.future().isDone());
+		Assert.assertFalse(sc.future().isCompletedExceptionally());
+		Assert.assertEquals("sys.cpu", sunk.get(0).metricName());
+		Assert.assertEquals("sys.mem", sunk.get(1).metricName());
+		Assert.assertEquals(1, pool.released.get());
+	}
+
+	/**
+	 * Tests that a shard whose channel closes mid response fails after streaming the results decoded so far
+	 */
+	@Test
+	public void testFailsOnClose() {
+		final CountingPool pool = new CountingPool();
+		final List<QueryResult> sunk = new ArrayList<QueryResult>();
+		final ShardCompletion sc = new ShardCompletion(0L, pool, sunk::add);
+		final EmbeddedChannel ch = new EmbeddedChannel(new QueryResultDecoder(), sc);
+		ch.writeInbound(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+		ch.writeInbound(new DefaultHttpContent(Unpooled.copiedBuffer("[" + QueryResultDecoderTest.CPU + ",{\"metric\"", QueryResultDecoder.UTF8)));
+		ch.close();
+		Assert.assertEquals(1, sunk.size());
+		Assert.assertTrue(sc.future().isCompletedExceptionally());
+	}
+}
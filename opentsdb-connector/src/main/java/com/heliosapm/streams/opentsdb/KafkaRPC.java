@@ -20,11 +20,14 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -34,6 +37,8 @@ import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.logging.log4j.LogManager;
@@ -49,8 +54,6 @@ import com.codahale.metrics.Timer;
 import com.codahale.metrics.Timer.Context;
 import com.heliosapm.utils.buffer.BufferManager;
 import com.heliosapm.streams.buffers.ByteBufSerde.ByteBufDeserializer;
-import com.heliosapm.streams.chronicle.MessageListener;
-import com.heliosapm.streams.chronicle.MessageQueue;
 import com.heliosapm.streams.common.kafka.interceptor.MonitoringConsumerInterceptor;
 import com.heliosapm.streams.metrics.Blacklist;
 import com.heliosapm.streams.metrics.StreamedMetricValue;
@@ -74,7 +77,7 @@ import net.opentsdb.tsd.RpcPlugin;
  * <p><code>com.heliosapm.streams.opentsdb.KafkaRPC</code></p>
  */
 
-public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, MessageListener, ConsumerRebalanceListener  {
+public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, ConsumerRebalanceListener  {
 	/** The TSDB instance */
 	static TSDB tsdb = null;
 	/** The prefix on TSDB config items marking them as applicable to this service */
@@ -120,6 +123,34 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	/** The default stat collection forwarding */
 	public static final boolean DEFAULT_STATS_FORWARD = false;
 	
+	/** The config key name for at-least-once mode, where offsets are only committed once their data points are written */
+	public static final String CONFIG_AT_LEAST_ONCE = "atleastonce";
+	/** The default at-least-once mode */
+	public static final boolean DEFAULT_AT_LEAST_ONCE = false;
+	
+	/** The config key name for the number of pending data point adds at which partitions are paused in at-least-once mode */
+	public static final String CONFIG_PAUSE_HIGHWATER = "pause.highwater";
+	/** The default number of pending data point adds at which partitions are paused */
+	public static final long DEFAULT_PAUSE_HIGHWATER = 100000;
+	
+	/** The config key name for the number of pending data point adds at which paused partitions are resumed */
+	public static final String CONFIG_PAUSE_LOWWATER = "pause.lowwater";
+	/** The default number of pending data point adds at which paused partitions are resumed, which is half the high water mark */
+	public static final long DEFAULT_PAUSE_LOWWATER = -1;
+	
+	/** The config key name for the number of consecutive rewinds to a failing record before it is skipped in at-least-once mode */
+	public static final String CONFIG_MAX_REWINDS = "rewind.max";
+	/** The default number of consecutive rewinds to a failing record before it is skipped, a negative number never skips */
+	public static final int DEFAULT_MAX_REWINDS = 10;
+	
+	/** The maximum poll timeout in ms. in at-least-once mode, so completed offsets are committed and paused partitions resumed promptly */
+	public static final long AT_LEAST_ONCE_POLLTIMEOUT = 1000;
+	
+	/** The config key name for the number of partition lanes writing to the TSDB in parallel */
+	public static final String CONFIG_LANES = "lanes";
+	/** The default number of partition lanes */
+	public static final int DEFAULT_LANES = 1;
+	
 	
 	/** A ref to the buffer manager */
 	protected final BufferManager bufferManager;
@@ -154,9 +185,19 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	protected boolean monitoringInterceptor = false;
 	/** Indicates if stats collection should include a save to the tsd */
 	protected boolean forwardStats = false;
+	/** Indicates if offsets are only committed once their data points have been written */
+	protected boolean atLeastOnce = DEFAULT_AT_LEAST_ONCE;
+	/** The number of pending data point adds at which partitions are paused */
+	protected long pauseHighWater = DEFAULT_PAUSE_HIGHWATER;
+	/** The number of pending data point adds at which paused partitions are resumed */
+	protected long pauseLowWater = DEFAULT_PAUSE_HIGHWATER/2;
+	/** The partitions paused on pending data point adds */
+	protected final Set<TopicPartition> pausedPartitions = new CopyOnWriteArraySet<TopicPartition>();
 	
-	/** The chronicle message queue */
-	protected MessageQueue messageQueue;
+	/** The partition lanes, each with its own chronicle message queue and reader thread */
+	protected PartitionLane[] lanes = null;
+	/** The lane each assigned topic partition is pinned to */
+	protected final Map<TopicPartition, PartitionLane> laneAssignments = new ConcurrentHashMap<TopicPartition, PartitionLane>();
 	
 
 
@@ -188,6 +229,23 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	protected final Counter deserErrors = metricManager.counter("deserErrors");
 	/** A histogram of metric delivery latency */
 	protected final Histogram metricLatency = metricManager.histogram("metricLatency");
+	/** A counter of partition rewinds after failed data point adds */
+	protected final Counter partitionRewinds = metricManager.counter("partitionRewinds");
+	/** A counter of failed offset commits */
+	protected final Counter commitFailures = metricManager.counter("commitFailures");
+	/** A counter of partition pauses on pending data point adds */
+	protected final Counter partitionPauses = metricManager.counter("partitionPauses");
+	
+	/** Logs failed async offset commits */
+	protected final OffsetCommitCallback commitCallback = new OffsetCommitCallback() {
+		@Override
+		public void onComplete(final Map<TopicPartition, OffsetAndMetadata> offsets, final Exception exception) {
+			if(exception!=null) {
+				commitFailures.inc();
+				log.warn("Failed to commit offsets {}", offsets, exception);
+			}
+		}
+	};
 	
 	
 	/** The per message timer snapshot */
@@ -229,7 +287,19 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 		kafkaStartupTimeout = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_KAFKAMETA_TIMEOUT, DEFAULT_KAFKAMETA_TIMEOUT, rpcConfig);
 		monitoringInterceptor = ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_KAFKA_MONITOR, DEFAULT_KAFKA_MONITOR, rpcConfig);
 		compression = ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_COMPRESS_QWRITES, DEFAULT_COMPRESS_QWRITES, rpcConfig);
-		messageQueue = MessageQueue.getInstance(getClass().getSimpleName(), this, rpcConfig);
+		atLeastOnce = ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_AT_LEAST_ONCE, DEFAULT_AT_LEAST_ONCE, rpcConfig);
+		pauseHighWater = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_PAUSE_HIGHWATER, DEFAULT_PAUSE_HIGHWATER, rpcConfig);
+		final long lowWater = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_PAUSE_LOWWATER, DEFAULT_PAUSE_LOWWATER, rpcConfig);
+		pauseLowWater = (lowWater < 0 || lowWater >= pauseHighWater) ? pauseHighWater/2 : lowWater;
+		if(atLeastOnce) {
+			// offsets are committed explicitly as their data points are written
+			rpcConfig.put("enable.auto.commit", "false");
+		}
+		final int laneCount = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_LANES, DEFAULT_LANES, rpcConfig));
+		lanes = new PartitionLane[laneCount];
+		for(int i = 0; i < laneCount; i++) {
+			lanes[i] = new PartitionLane(this, i, laneCount, metricManager, rpcConfig);
+		}
 		
 		if(monitoringInterceptor) {
 			rpcConfig.put("interceptor.classes", MonitoringConsumerInterceptor.class.getName());
@@ -238,7 +308,7 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 		InterceptorInstaller.filter(false, rpcConfig);
 //		
 		consumerConfig.putAll(extractOrEnv(CONFIG_PREFIX, rpcConfig, true));
-		metricManager.addExtraTag("mode", syncAdd ? "sync" : "async");		
+		metricManager.addExtraTag("mode", atLeastOnce ? "atleastonce" : syncAdd ? "sync" : "async");		
 		printConfig();
 //		try {
 //			final Class<?> consumerClazz = Class.forName("org.apache.kafka.clients.consumer.KafkaConsumer");
@@ -341,6 +411,12 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 		b.append("\n\tKafka Async Commit:").append(syncAdd);
 		b.append("\n\tKafka Monitor Enabled:").append(syncAdd);
 		b.append("\n\tTSDB Put Timeout (ms):").append(syncAddTimeout);
+		b.append("\n\tPartition Lanes:").append(lanes.length);
+		b.append("\n\tAt Least Once:").append(atLeastOnce);
+		if(atLeastOnce) {
+			b.append("\n\tPause High/Low Water:").append(pauseHighWater).append("/").append(pauseLowWater);
+			b.append("\n\tMax Rewinds:").append(lanes[0].offsetTracker.getMaxRewinds());
+		}
 		b.append("\n\tCompressed MessageQueue Writes:").append(monitoringInterceptor);		
 		b.append("\n\t=====================\n");
 		log.info(b.toString());
@@ -359,7 +435,7 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
             	try {
 	                final ConsumerRecords<String, ByteBuf> records;
 	                try {
-	                	records = consumer.poll(pollTimeout);	                	
+	                	records = consumer.poll(atLeastOnce ? Math.min(pollTimeout, AT_LEAST_ONCE_POLLTIMEOUT) : pollTimeout);
 	                	final Context ctx = perMessageTimer.time();
 	                	final int recordCount = records.count();	                	
 	                	if(recordCount > 0) {
@@ -371,17 +447,17 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	                			final ConsumerRecord<String, ByteBuf> record = iter.next();
 	                			final ByteBuf b = record.value();
 	                			log.debug("Polled Record #{}: {} bytes", i, b.readableBytes());
-	                			messageQueue.writeEntry(b);
-	                			
+	                			final TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+	                			laneFor(tp).write(tp, record.offset(), b, atLeastOnce);
 	                		}
 	                		final long st = System.currentTimeMillis();
 	                		
 	                		log.info("Wrote [{}] records to MessageQueue in [{}] ms.", recordCount, System.currentTimeMillis()-st);
 	                	}
-	                	if(syncAdd) {
-	                		consumer.commitAsync();
+	                	if(atLeastOnce) {
+	                		commitAndThrottle();
 	                	} else {
-	                		consumer.commitAsync();			// FIXME:  this will break at some point
+	                		consumer.commitAsync();			// at-most-once: the message queue is not durable
 	                	}
 	                	ctx.stop();
 	                } catch (Exception ex) {
@@ -391,6 +467,9 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
             	} catch (Exception ex) {
             		log.error("Unexpected Exception1", ex);
             	}
+            }
+            if(atLeastOnce) {
+            	commitCompleted(null);
             }
 		} catch (Exception ex) {
 			log.error("Unexpected Exception2", ex);
@@ -398,17 +477,122 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	}
 	
 	/**
-	 * {@inheritDoc}
-	 * @see com.heliosapm.streams.chronicle.MessageListener#onMetric(io.netty.buffer.ByteBuf)
+	 * Returns the lane the passed topic partition is pinned to. A partition is always pinned to the same lane, by a stable hash,
+	 * so that when it is revoked and reassigned, records of the partition still queued in its lane are written before newer ones.
+	 * The topic's hash picks the lane of partition zero and each following partition of the topic goes to the next lane,
+	 * so the partitions of a topic are spread round robin across the lanes.
+	 * @param tp The topic partition
+	 * @return the partition's lane
 	 */
-	@Override
-	public int onMetric(final ByteBuf buf) {
+	protected PartitionLane laneFor(final TopicPartition tp) {
+		final PartitionLane lane = laneAssignments.get(tp);
+		if(lane!=null) return lane;
+		return laneAssignments.computeIfAbsent(tp, k -> {
+			final PartitionLane l = lanes[laneIndex(k, lanes.length)];
+			l.partitions.add(k);
+			return l;
+		});
+	}
+	
+	/**
+	 * Returns the index of the lane the passed topic partition is pinned to
+	 * @param tp The topic partition
+	 * @param laneCount The number of lanes
+	 * @return the lane index
+	 */
+	static int laneIndex(final TopicPartition tp, final int laneCount) {
+		final int first = (tp.topic().hashCode() & Integer.MAX_VALUE) % laneCount;
+		return (first + tp.partition()) % laneCount;
+	}
+	
+	/**
+	 * Returns the offsets to commit across all lanes
+	 * @param rewinds A map the offsets to seek failed partitions to are added to
+	 * @param partitions The partitions to drain, or null for all of them. The tracked offsets of other partitions are left untouched.
+	 * @return the offsets to commit, keyed by partition
+	 */
+	protected Map<TopicPartition, OffsetAndMetadata> committable(final Map<TopicPartition, Long> rewinds, final Collection<TopicPartition> partitions) {
+		final Map<TopicPartition, OffsetAndMetadata> commits = new HashMap<TopicPartition, OffsetAndMetadata>();
+		for(PartitionLane lane: lanes) {
+			commits.putAll(lane.offsetTracker.committable(rewinds, partitions));
+		}
+		return commits;
+	}
+	
+	/**
+	 * Commits the offsets of records whose data points have all been written, rewinds partitions with failed writes
+	 * and pauses or resumes partitions on the number of pending data point adds.
+	 * Called from the subscription thread in at-least-once mode.
+	 */
+	protected void commitAndThrottle() {
+		final Map<TopicPartition, Long> rewinds = new HashMap<TopicPartition, Long>();
+		final Map<TopicPartition, OffsetAndMetadata> commits = committable(rewinds, null);
+		if(!commits.isEmpty()) {
+			consumer.commitAsync(commits, commitCallback);
+		}
+		for(Map.Entry<TopicPartition, Long> rewind: rewinds.entrySet()) {
+			partitionRewinds.inc();
+			log.warn("Data point adds failed for [{}], rewinding to offset [{}]", rewind.getKey(), rewind.getValue());
+			consumer.seek(rewind.getKey(), rewind.getValue());
+		}
+		final long pending = pendingDataPointAdds.longValue();
+		if(pausedPartitions.isEmpty()) {
+			if(pending > pauseHighWater) {
+				final Set<TopicPartition> pause = new HashSet<TopicPartition>();
+				for(PartitionLane lane: lanes) {
+					pause.addAll(lane.offsetTracker.activePartitions());
+				}
+				pause.retainAll(consumer.assignment());
+				if(!pause.isEmpty()) {
+					consumer.pause(pause);
+					pausedPartitions.addAll(pause);
+					partitionPauses.inc(pause.size());
+					log.info("Paused partitions {} with [{}] pending data point adds", pause, pending);
+				}
+			}
+		} else if(pending <= pauseLowWater) {
+			final Set<TopicPartition> resume = new HashSet<TopicPartition>(pausedPartitions);
+			resume.retainAll(consumer.assignment());
+			consumer.resume(resume);
+			pausedPartitions.clear();
+			log.info("Resumed partitions {} with [{}] pending data point adds", resume, pending);
+		}
+	}
+	
+	/**
+	 * Synchronously commits the offsets of records whose data points have all been written
+	 * @param partitions The partitions to commit, or null for all of them
+	 */
+	protected void commitCompleted(final Collection<TopicPartition> partitions) {
+		final Map<TopicPartition, OffsetAndMetadata> commits = committable(new HashMap<TopicPartition, Long>(), partitions);
+		if(commits.isEmpty()) return;
+		try {
+			consumer.commitSync(commits);
+		} catch (Exception ex) {
+			commitFailures.inc();
+			log.warn("Failed to commit offsets {}", commits, ex);
+		}
+	}
+	
+	/**
+	 * Writes the metrics in a buffer read back from a lane's message queue to the TSDB.
+	 * Called on the lane's reader thread, so lanes write in parallel.
+	 * <p>In at-least-once mode, the entry at the passed index is marked complete in the lane's {@link OffsetTracker}
+	 * once all its data point adds have completed, allowing its offset to be committed. It is marked failed, so the
+	 * partition is rewound to it, if any add fails, including an add that throws or a buffer that cannot be fully read.</p>
+	 * @param lane The lane the buffer was read from
+	 * @param index The queue index the buffer was read from
+	 * @param buf The buffer
+	 * @return the number of data points added
+	 */
+	protected int onMetric(final PartitionLane lane, final long index, final ByteBuf buf) {
 		log.info("OnMetric Buffer: {} bytes", buf.readableBytes());
 		try {			
 			final List<Deferred<Object>> addPointDeferreds = new ArrayList<Deferred<Object>>();
 			int recordCount = 0;
 			int totalCount = 0;
 			int totalBlacklisted = 0;
+			boolean addFailed = false;
 			final long startTimeNanos = System.nanoTime();
 			try {
 				final Iterator<StreamedMetricValue> iter = StreamedMetricValue.streamedMetricValues(true, buf, true).iterator();
@@ -439,39 +623,54 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 							log.error("Failed to add data point for invalid metric name: {}, cause: {}", smv.metricKey(), adpe.getMessage());
 							blacklist.blackList(smv.metricKey());
 						}
+						addFailed = true;
 						log.error("Failed to process StreamedMetricValue", adpe);
 					}
 				}
 				log.info("Async Writes Complete. total-reads: {}, total-writes: {}, blacklisted: {}", totalCount, recordCount, totalBlacklisted);
 			} catch (Exception ex) {
+				addFailed = true;
 				log.error("BufferIteration Failure on read #" + totalCount, ex);
 			}
 			final long readAndWriteTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeNanos);					
 			log.debug("Read [{}] total metrics and wrote [{}] to OpenTSDB in [{}] ms.", totalCount, recordCount, readAndWriteTime);
 			Deferred<ArrayList<Object>> d = Deferred.group(addPointDeferreds);
 			final int rcount = recordCount;
-			d.addCallback(new Callback<Void, ArrayList<Object>>() {
+			final boolean complete = !addFailed;
+			d.addCallbacks(new Callback<Void, ArrayList<Object>>() {
 				@Override
 				public Void call(final ArrayList<Object> arg) throws Exception {
 					pendingDataPointAdds.add(-1 * rcount);
 					final long elapsed = System.nanoTime() - startTimeNanos; 
 					perMessageTimer.update(nanosPerMessage(elapsed, rcount), TimeUnit.NANOSECONDS);
 					pointsAddedMeter.mark(rcount);
+					lane.update(nanosPerMessage(elapsed, rcount), rcount);
 					if(syncAdd) log.info("Sync Processed {} records in {} ms. Pending: {}", rcount, TimeUnit.NANOSECONDS.toMillis(elapsed), pendingDataPointAdds.longValue());							
+					if(atLeastOnce) {
+						if(!complete) log.warn("Data points of queue entry #{} were not all added. Marking it failed.", index);
+						lane.offsetTracker.complete(index, complete);
+					}
 					return null;
 				}                		 
+			}, new Callback<Void, Exception>() {
+				@Override
+				public Void call(final Exception ex) throws Exception {
+					pendingDataPointAdds.add(-1 * rcount);
+					log.warn("Failed to add data points: {}", ex.toString());
+					if(atLeastOnce) lane.offsetTracker.complete(index, false);
+					return null;
+				}
 			});
-			if(syncAdd) {
+			if(syncAdd && !atLeastOnce) {
 				try {
 					d.joinUninterruptibly(syncAddTimeout);
 				} catch (Exception ex) {
 					putTimeouts.inc(rcount);
 					log.warn("Datapoints Write Timed Out");
 				}
-			} else {
+			} else if(!syncAdd) {
+				// the timers and meters are updated once, when the adds complete
 				final long elapsed = System.nanoTime() - startTimeNanos; 
-				perMessageTimer.update(nanosPerMessage(elapsed, recordCount), TimeUnit.NANOSECONDS);
-				pointsAddedMeter.mark(recordCount);
 				log.info("Async Processed {} records in {} ms. Pending: {}", recordCount, TimeUnit.NANOSECONDS.toMillis(elapsed), pendingDataPointAdds.longValue());							
 			}
 			return recordCount;
@@ -495,6 +694,15 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 		return (long)(nanosElapsed/messageCount);
 	}
 
+	/**
+	 * Converts a timer value in nanos to ms.
+	 * @param nanos The nanos
+	 * @return the ms
+	 */
+	protected static double nanosToMs(final double nanos) {
+		return nanos / 1000000D;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see net.opentsdb.tsd.RpcPlugin#shutdown()
@@ -528,13 +736,11 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 		}
 	     closed.set(true);
 	     consumer.wakeup();		
-	     if(messageQueue!=null) {
-	    	 try { 
-	    		 messageQueue.close();
-	    		 log.info("KafkaRPC MessageQueue closed");
-	    	 } catch (Exception ex) {
-	    		 log.warn("Failed to close KafkaRPC MessageQueue", ex);
+	     if(lanes!=null) {
+	    	 for(PartitionLane lane: lanes) {
+	    		 lane.close();
 	    	 }
+	    	 log.info("KafkaRPC MessageQueues closed");
 	     }
 		return d;
 	}
@@ -618,7 +824,7 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	 */
 	@Override
 	public double getPerDataPointMeanTimeMs() {
-		return perMessageTimerSnap.getValue().getMean();
+		return nanosToMs(perMessageTimerSnap.getValue().getMean());
 	}
 	
 	/**
@@ -627,7 +833,7 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	 */
 	@Override
 	public double getPerDataPointMedianTimeMs() {
-		return perMessageTimerSnap.getValue().getMedian();
+		return nanosToMs(perMessageTimerSnap.getValue().getMedian());
 	}
 	
 	/**
@@ -636,7 +842,7 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	 */
 	@Override
 	public double getPerDataPoint999pctTimeMs() {
-		return perMessageTimerSnap.getValue().get999thPercentile();
+		return nanosToMs(perMessageTimerSnap.getValue().get999thPercentile());
 	}
 	
 	/**
@@ -645,7 +851,7 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	 */
 	@Override
 	public double getPerDataPoint99pctTimeMs() {
-		return perMessageTimerSnap.getValue().get99thPercentile();
+		return nanosToMs(perMessageTimerSnap.getValue().get99thPercentile());
 	}
 
 	/**
@@ -654,7 +860,7 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	 */
 	@Override
 	public double getPerDataPoint75pctTimeMs() {
-		return perMessageTimerSnap.getValue().get75thPercentile();
+		return nanosToMs(perMessageTimerSnap.getValue().get75thPercentile());
 	}
 	
 	/**
@@ -741,6 +947,18 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	 */
 	@Override
 	public void onPartitionsRevoked(final Collection<TopicPartition> partitions) {
+		if(atLeastOnce) {
+			// commit what has been written, anything still in flight will be redelivered to the new owner
+			commitCompleted(partitions);
+			for(PartitionLane lane: lanes) {
+				lane.offsetTracker.revoke(partitions);
+			}
+			pausedPartitions.removeAll(partitions);
+		}
+		for(TopicPartition tp: partitions) {
+			final PartitionLane lane = laneAssignments.remove(tp);
+			if(lane!=null) lane.partitions.remove(tp);
+		}
 		if(!partitions.isEmpty()) {
 			final StringBuilder b = new StringBuilder("\n\t===========================\n\tPARTITIONS REVOKED !!\n\t===========================");
 			for(TopicPartition tp: partitions) {
@@ -769,6 +987,7 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 		for(TopicPartition tp: partitions) {
 			b.append("\n\t").append(tp);
 			assignedPartitions.add(tp.toString());
+			b.append(" -> ").append(laneFor(tp).getName());
 		}
 		b.append("\n\t===========================\n");
 		log.info(b.toString());
@@ -838,7 +1057,11 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	 */
 	@Override
 	public long getDeletedRollFiles() {
-		return messageQueue.getDeletedRollFiles();
+		long total = 0;
+		for(PartitionLane lane: lanes) {
+			total += lane.messageQueue.getDeletedRollFiles();
+		}
+		return total;
 	}
 
 
@@ -849,7 +1072,11 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	 */
 	@Override
 	public long getChronicleReads() {
-		return messageQueue.getChronicleReads();
+		long total = 0;
+		for(PartitionLane lane: lanes) {
+			total += lane.messageQueue.getChronicleReads();
+		}
+		return total;
 	}
 
 
@@ -860,7 +1087,11 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	 */
 	@Override
 	public long getChronicleWrites() {
-		return messageQueue.getChronicleWrites();
+		long total = 0;
+		for(PartitionLane lane: lanes) {
+			total += lane.messageQueue.getChronicleWrites();
+		}
+		return total;
 	}
 
 
@@ -871,7 +1102,11 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	 */
 	@Override
 	public long getChronicleReadErrs() {
-		return messageQueue.getChronicleReadErrs();
+		long total = 0;
+		for(PartitionLane lane: lanes) {
+			total += lane.messageQueue.getChronicleReadErrs();
+		}
+		return total;
 	}
 
 
@@ -882,7 +1117,151 @@ public class KafkaRPC extends RpcPlugin implements KafkaRPCMBean, Runnable, Mess
 	 */
 	@Override
 	public long getQueueBacklog() {
-		return messageQueue.getQueueBacklog();
+		long backlog = 0;
+		for(PartitionLane lane: lanes) {
+			backlog += lane.messageQueue.getQueueBacklog();
+		}
+		return backlog;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.KafkaRPCMBean#isAtLeastOnce()
+	 */
+	@Override
+	public boolean isAtLeastOnce() {
+		return atLeastOnce;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.KafkaRPCMBean#getPausedPartitions()
+	 */
+	@Override
+	public Set<String> getPausedPartitions() {
+		final Set<String> paused = new HashSet<String>();
+		for(TopicPartition tp: pausedPartitions) {
+			paused.add(tp.toString());
+		}
+		return paused;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.KafkaRPCMBean#getUncommittedRecords()
+	 */
+	@Override
+	public int getUncommittedRecords() {
+		int size = 0;
+		for(PartitionLane lane: lanes) {
+			size += lane.offsetTracker.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.KafkaRPCMBean#getPartitionRewinds()
+	 */
+	@Override
+	public long getPartitionRewinds() {
+		return partitionRewinds.getCount();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.KafkaRPCMBean#getSkippedRecords()
+	 */
+	@Override
+	public long getSkippedRecords() {
+		long skipped = 0;
+		for(PartitionLane lane: lanes) {
+			skipped += lane.offsetTracker.getSkipped();
+		}
+		return skipped;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.KafkaRPCMBean#getCommitFailures()
+	 */
+	@Override
+	public long getCommitFailures() {
+		return commitFailures.getCount();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.KafkaRPCMBean#getLaneCount()
+	 */
+	@Override
+	public int getLaneCount() {
+		return lanes.length;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.KafkaRPCMBean#getLanePartitions()
+	 */
+	@Override
+	public Map<String, String> getLanePartitions() {
+		final Map<String, String> map = new TreeMap<String, String>();
+		for(PartitionLane lane: lanes) {
+			map.put(lane.getName(), lane.getPartitions().toString());
+		}
+		return map;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.KafkaRPCMBean#getLaneDataPoints()
+	 */
+	@Override
+	public Map<String, Long> getLaneDataPoints() {
+		final Map<String, Long> map = new TreeMap<String, Long>();
+		for(PartitionLane lane: lanes) {
+			map.put(lane.getName(), lane.getDataPoints());
+		}
+		return map;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.KafkaRPCMBean#getLaneBatch1mRates()
+	 */
+	@Override
+	public Map<String, Double> getLaneBatch1mRates() {
+		final Map<String, Double> map = new TreeMap<String, Double>();
+		for(PartitionLane lane: lanes) {
+			map.put(lane.getName(), lane.getPoints1mRate());
+		}
+		return map;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.KafkaRPCMBean#getLanePerDataPointMeanTimesMs()
+	 */
+	@Override
+	public Map<String, Double> getLanePerDataPointMeanTimesMs() {
+		final Map<String, Double> map = new TreeMap<String, Double>();
+		for(PartitionLane lane: lanes) {
+			map.put(lane.getName(), lane.getPerDataPointMeanTimeMs());
+		}
+		return map;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.KafkaRPCMBean#getLaneQueueBacklogs()
+	 */
+	@Override
+	public Map<String, Long> getLaneQueueBacklogs() {
+		final Map<String, Long> map = new TreeMap<String, Long>();
+		for(PartitionLane lane: lanes) {
+			map.put(lane.getName(), lane.messageQueue.getQueueBacklog());
+		}
+		return map;
 	}
 
 
@@ -24,6 +24,7 @@
  */
 package com.heliosapm.streams.opentsdb;
 
+import java.util.Map;
 import java.util.Set;
 
 import javax.management.ObjectName;
@@ -222,6 +223,78 @@ public interface KafkaRPCMBean {
 	 * @return the processing queue backlog
 	 */
 	public long getQueueBacklog();
+	
+	/**
+	 * Indicates if offsets are only committed once their data points have been written to the TSDB
+	 * @return true if running in at-least-once mode, false otherwise
+	 */
+	public boolean isAtLeastOnce();
+	
+	/**
+	 * Returns the topic partitions currently paused because too many data point writes are pending
+	 * @return the paused topic partitions
+	 */
+	public Set<String> getPausedPartitions();
+	
+	/**
+	 * Returns the number of polled records whose offsets have not been committed yet
+	 * @return the number of uncommitted records
+	 */
+	public int getUncommittedRecords();
+	
+	/**
+	 * Returns the cummulative number of partition rewinds after failed TSDB writes
+	 * @return the cummulative number of partition rewinds
+	 */
+	public long getPartitionRewinds();
+	
+	/**
+	 * Returns the cummulative number of records skipped after exhausting their rewinds
+	 * @return the cummulative number of skipped records
+	 */
+	public long getSkippedRecords();
+	
+	/**
+	 * Returns the cummulative number of failed offset commits
+	 * @return the cummulative number of failed offset commits
+	 */
+	public long getCommitFailures();
+	
+	/**
+	 * Returns the number of partition lanes writing to the TSDB in parallel
+	 * @return the number of partition lanes
+	 */
+	public int getLaneCount();
+	
+	/**
+	 * Returns the topic partitions pinned to each lane
+	 * @return the topic partitions keyed by lane name
+	 */
+	public Map<String, String> getLanePartitions();
+	
+	/**
+	 * Returns the total number of data points ingested by each lane
+	 * @return the total number of data points keyed by lane name
+	 */
+	public Map<String, Long> getLaneDataPoints();
+	
+	/**
+	 * Returns the 1 minute rate of points added by each lane
+	 * @return the 1 minute rate of points added keyed by lane name
+	 */
+	public Map<String, Double> getLaneBatch1mRates();
+	
+	/**
+	 * Returns the mean elapsed time per data point in ms. for each lane
+	 * @return the mean elapsed time per data point in ms. keyed by lane name
+	 */
+	public Map<String, Double> getLanePerDataPointMeanTimesMs();
+	
+	/**
+	 * Returns the message queue backlog of each lane
+	 * @return the message queue backlog keyed by lane name
+	 */
+	public Map<String, Long> getLaneQueueBacklogs();
 
 
 
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.streams.opentsdb;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>Title: OffsetTracker</p>
+ * <p>Description: Tracks the kafka offsets of records written to a {@link com.heliosapm.streams.chronicle.MessageQueue}
+ * by the queue index they were written at, so that an offset is only committed once every record up to and including it
+ * has been written to the TSDB.</p>
+ * <p>{@link #track(TopicPartition, long, long)}, {@link #committable(Map, Collection)} and {@link #revoke(Collection)} are called from the
+ * kafka subscription thread. {@link #complete(long, boolean)} may be called from any thread, including before the
+ * entry is tracked. Queue indexes are assumed to increase monotonically.</p>
+ * <p>A record whose write fails after its partition has been rewound to it <b><code>maxRewinds</code></b> times in a row
+ * is logged and skipped, so a record that can never be written does not stall its partition.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.opentsdb.OffsetTracker</code></p>
+ */
+
+public class OffsetTracker {
+	/** Entry state: written to the queue, not yet written to the TSDB */
+	static final int PENDING = 0;
+	/** Entry state: all data points written to the TSDB */
+	static final int DONE = 1;
+	/** Entry state: the TSDB write failed */
+	static final int FAILED = 2;
+
+	/** Static class logger */
+	private static final Logger log = LogManager.getLogger(OffsetTracker.class);
+	/** The in-flight entries keyed by queue index */
+	private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+	/** The in-flight entries of each partition in queue index order */
+	private final ConcurrentHashMap<TopicPartition, ConcurrentSkipListMap<Long, Entry>> partitions = new ConcurrentHashMap<TopicPartition, ConcurrentSkipListMap<Long, Entry>>();
+	/** The queue indexes of completions that arrived before their entry was tracked */
+	private final ConcurrentSkipListSet<Long> placeholders = new ConcurrentSkipListSet<Long>();
+	/** The offset of the last failed record and the number of rewinds to it, keyed by partition */
+	private final Map<TopicPartition, long[]> failures = new ConcurrentHashMap<TopicPartition, long[]>();
+	/** The highest queue index tracked so far */
+	private volatile long highestIndex = -1L;
+	/** The number of consecutive rewinds to the same record before it is skipped, or a negative number to never skip */
+	private final int maxRewinds;
+	/** The number of records skipped after exhausting their rewinds */
+	private final LongAdder skipped = new LongAdder();
+	
+	/**
+	 * Creates a new OffsetTracker with the default maximum number of rewinds
+	 */
+	public OffsetTracker() {
+		this(KafkaRPC.DEFAULT_MAX_REWINDS);
+	}
+	
+	/**
+	 * Creates a new OffsetTracker
+	 * @param maxRewinds The number of consecutive rewinds to the same record before it is skipped, or a negative number to never skip
+	 */
+	public OffsetTracker(final int maxRewinds) {
+		this.maxRewinds = maxRewinds;
+	}
+
+	/**
+	 * Starts tracking a record written to the queue
+	 * @param tp The record's topic partition
+	 * @param index The queue index the record was written at
+	 * @param offset The record's offset
+	 */
+	public void track(final TopicPartition tp, final long index, final long offset) {
+		ConcurrentSkipListMap<Long, Entry> partition = partitions.get(tp);
+		if(partition==null) {
+			partition = new ConcurrentSkipListMap<Long, Entry>();
+			final ConcurrentSkipListMap<Long, Entry> prior = partitions.putIfAbsent(tp, partition);
+			if(prior!=null) partition = prior;
+		}
+		// the queue consumer may have completed the entry before it is tracked
+		final Entry entry = entries.compute(index, (k, early) -> early==null ? new Entry(offset, PENDING) : new Entry(offset, early.state));
+		placeholders.remove(index);
+		partition.put(index, entry);
+		if(index > highestIndex) highestIndex = index;
+	}
+
+	/**
+	 * Marks the entry at the passed queue index as written or failed. Unknown indexes are ignored.
+	 * @param index The queue index
+	 * @param success true if all the entry's data points were written, false otherwise
+	 */
+	public void complete(final long index, final boolean success) {
+		if(index < 0) return;
+		final int state = success ? DONE : FAILED;
+		entries.compute(index, (k, entry) -> {
+			if(entry!=null) {
+				entry.state = state;
+				return entry;
+			}
+			// not tracked yet: keep the state for track, otherwise the entry was dropped
+			if(index <= highestIndex) return null;
+			placeholders.add(index);
+			return new Entry(-1L, state);
+		});
+	}
+
+	/**
+	 * Removes the completed entries at the head of each partition and returns the offsets to commit.
+	 * If the head of a partition failed, the partition's entries are dropped and the failed record's
+	 * offset is added to the passed rewinds so the partition can be re-read from it, unless the record has
+	 * exhausted its rewinds, in which case it is skipped and committed past.
+	 * @param rewinds A map the offsets to seek failed partitions to are added to
+	 * @return the offsets to commit, keyed by partition
+	 */
+	public Map<TopicPartition, OffsetAndMetadata> committable(final Map<TopicPartition, Long> rewinds) {
+		return committable(rewinds, null);
+	}
+
+	/**
+	 * Removes the completed entries at the head of the passed partitions and returns the offsets to commit.
+	 * The entries of other partitions are left untouched.
+	 * @param rewinds A map the offsets to seek failed partitions to are added to
+	 * @param tps The partitions to drain, or null for all of them
+	 * @return the offsets to commit, keyed by partition
+	 * @see #committable(Map)
+	 */
+	public Map<TopicPartition, OffsetAndMetadata> committable(final Map<TopicPartition, Long> rewinds, final Collection<TopicPartition> tps) {
+		final Map<TopicPartition, OffsetAndMetadata> commits = new HashMap<TopicPartition, OffsetAndMetadata>();
+		if(tps==null) {
+			for(Map.Entry<TopicPartition, ConcurrentSkipListMap<Long, Entry>> p: partitions.entrySet()) {
+				drain(p.getKey(), p.getValue(), commits, rewinds);
+			}
+		} else {
+			for(TopicPartition tp: tps) {
+				final ConcurrentSkipListMap<Long, Entry> partition = partitions.get(tp);
+				if(partition!=null) drain(tp, partition, commits, rewinds);
+			}
+		}
+		purgePlaceholders();
+		return commits;
+	}
+
+	private void drain(final TopicPartition tp, final ConcurrentSkipListMap<Long, Entry> partition, final Map<TopicPartition, OffsetAndMetadata> commits, final Map<TopicPartition, Long> rewinds) {
+		long commit = -1L;
+		Map.Entry<Long, Entry> head;
+		while((head = partition.firstEntry())!=null) {
+			final Entry entry = head.getValue();
+			final int state = entry.state;
+			if(state==PENDING) break;
+			if(state==FAILED) {
+				final long[] failure = failures.get(tp);
+				final long attempts = (failure!=null && failure[0]==entry.offset) ? failure[1] + 1 : 1;
+				if(maxRewinds < 0 || attempts <= maxRewinds) {
+					failures.put(tp, new long[]{entry.offset, attempts});
+					rewinds.put(tp, entry.offset);
+					drop(partition);
+					break;
+				}
+				skipped.increment();
+				log.error("Skipping record [{}] at offset [{}] after [{}] failed rewinds", tp, entry.offset, maxRewinds);
+			}
+			commit = entry.offset + 1;
+			partition.remove(head.getKey());
+			entries.remove(head.getKey());
+		}
+		if(commit!=-1L) {
+			commits.put(tp, new OffsetAndMetadata(commit));
+			final long[] failure = failures.get(tp);
+			if(failure!=null && commit > failure[0]) failures.remove(tp);
+		}
+	}
+	
+	/**
+	 * Removes the completions that arrived before their entry was tracked whose entry will now never be tracked,
+	 * such as completions of entries replayed from the queue after a rewind or a restart
+	 */
+	private void purgePlaceholders() {
+		// indexes increase monotonically, so an index at or below the highest tracked index is never tracked later
+		final Iterator<Long> iter = placeholders.headSet(highestIndex, true).iterator();
+		while(iter.hasNext()) {
+			final Long index = iter.next();
+			iter.remove();
+			entries.computeIfPresent(index, (k, entry) -> entry.offset==-1L ? null : entry);
+		}
+	}
+
+	/**
+	 * Stops tracking the passed partitions
+	 * @param tps The revoked partitions
+	 */
+	public void revoke(final Collection<TopicPartition> tps) {
+		for(TopicPartition tp: tps) {
+			final ConcurrentSkipListMap<Long, Entry> partition = partitions.remove(tp);
+			if(partition!=null) drop(partition);
+			failures.remove(tp);
+		}
+		purgePlaceholders();
+	}
+
+	/**
+	 * Returns the partitions with in-flight entries
+	 * @return the active partitions
+	 */
+	public Set<TopicPartition> activePartitions() {
+		final Set<TopicPartition> active = new HashSet<TopicPartition>();
+		for(Map.Entry<TopicPartition, ConcurrentSkipListMap<Long, Entry>> p: partitions.entrySet()) {
+			if(!p.getValue().isEmpty()) active.add(p.getKey());
+		}
+		return active;
+	}
+
+	/**
+	 * Returns the number of in-flight entries
+	 * @return the number of in-flight entries
+	 */
+	public int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the number of consecutive rewinds to the same record before it is skipped
+	 * @return the maximum number of rewinds, negative if records are never skipped
+	 */
+	public int getMaxRewinds() {
+		return maxRewinds;
+	}
+	
+	/**
+	 * Returns the number of records skipped after exhausting their rewinds
+	 * @return the number of skipped records
+	 */
+	public long getSkipped() {
+		return skipped.longValue();
+	}
+
+	private void drop(final ConcurrentSkipListMap<Long, Entry> partition) {
+		for(Long index: partition.keySet()) {
+			entries.remove(index);
+		}
+		partition.clear();
+	}
+
+	/**
+	 * <p>Title: Entry</p>
+	 * <p>Description: A record written to the queue</p>
+	 * <p><code>com.heliosapm.streams.opentsdb.OffsetTracker.Entry</code></p>
+	 */
+	static class Entry {
+		/** The record's offset */
+		final long offset;
+		/** The entry state */
+		volatile int state;
+
+		Entry(final long offset, final int state) {
+			this.offset = offset;
+			this.state = state;
+		}
+	}
+}
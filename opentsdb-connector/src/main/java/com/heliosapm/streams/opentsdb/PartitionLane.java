@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.streams.opentsdb;
+
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.TopicPartition;
+
+import com.codahale.metrics.CachedGauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.heliosapm.streams.chronicle.MessageListener;
+import com.heliosapm.streams.chronicle.MessageQueue;
+import com.heliosapm.streams.chronicle.TailerCheckpoint;
+import com.heliosapm.streams.opentsdb.plugin.PluginMetricManager;
+import com.heliosapm.utils.config.ConfigurationHelper;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: PartitionLane</p>
+ * <p>Description: One of {@link KafkaRPC}'s processing lanes. Each lane has its own {@link MessageQueue}, read back on the
+ * queue's reader thread, and its own {@link OffsetTracker}. A topic partition is always pinned to the same lane, by a stable hash
+ * of the partition, so records of a partition are written to the TSDB in order, even across a revoke and reassign, while
+ * partitions in different lanes proceed in parallel.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.opentsdb.PartitionLane</code></p>
+ */
+
+public class PartitionLane implements MessageListener {
+	/** The lane id */
+	protected final int id;
+	/** The lane name */
+	protected final String name;
+	/** The owning KafkaRPC */
+	protected final KafkaRPC rpc;
+	/** The lane's message queue */
+	protected final MessageQueue messageQueue;
+	/** The offsets of records written to this lane's message queue in at-least-once mode */
+	protected final OffsetTracker offsetTracker;
+	/** The topic partitions currently pinned to this lane */
+	protected final Set<TopicPartition> partitions = new CopyOnWriteArraySet<TopicPartition>();
+	/** A meter to track the rate of points added by this lane */
+	protected final Meter pointsAddedMeter;
+	/** A timer to track the elapsed time per message ingested by this lane */
+	protected final Timer perMessageTimer;
+	/** The per message timer snapshot */
+	protected final CachedGauge<Snapshot> perMessageTimerSnap;
+
+	/**
+	 * Creates a new PartitionLane
+	 * @param rpc The owning KafkaRPC
+	 * @param id The lane id. Lane zero uses the owner's queue name so a single lane keeps the existing queue directory.
+	 * @param laneCount The total number of lanes
+	 * @param metricManager The plugin metric manager
+	 * @param config The rpc configuration
+	 */
+	public PartitionLane(final KafkaRPC rpc, final int id, final int laneCount, final PluginMetricManager metricManager, final Properties config) {
+		this.rpc = rpc;
+		this.id = id;
+		final String baseName = rpc.getClass().getSimpleName();
+		name = id==0 ? baseName : (baseName + "-lane" + id);
+		offsetTracker = new OffsetTracker(ConfigurationHelper.getIntSystemThenEnvProperty(KafkaRPC.CONFIG_MAX_REWINDS, KafkaRPC.DEFAULT_MAX_REWINDS, config));
+		if(laneCount > 1) {
+			pointsAddedMeter = metricManager.meter("lane" + id + ".pointsAdded");
+			perMessageTimer = metricManager.timer("lane" + id + ".perMessage");
+		} else {
+			pointsAddedMeter = new Meter();
+			perMessageTimer = new Timer();
+		}
+		perMessageTimerSnap = new CachedGauge<Snapshot>(5, TimeUnit.SECONDS) {
+			@Override
+			protected Snapshot loadValue() {
+				return perMessageTimer.getSnapshot();
+			}
+		};
+		messageQueue = MessageQueue.getInstance(name, this, laneConfig(baseName, name, config));
+	}
+
+	/**
+	 * Copies the message queue configuration keyed by the base queue name so it also applies to the lane's queue
+	 * @param baseName The base queue name
+	 * @param laneName The lane's queue name
+	 * @param config The rpc configuration
+	 * @return the lane configuration
+	 */
+	static Properties laneConfig(final String baseName, final String laneName, final Properties config) {
+		if(baseName.equals(laneName)) return config;
+		final Properties p = new Properties();
+		p.putAll(config);
+		final String prefix = baseName + ".";
+		for(String key: config.stringPropertyNames()) {
+			if(key.startsWith(prefix)) {
+				final String laneKey = laneName + "." + key.substring(prefix.length());
+				if(!config.containsKey(laneKey)) p.setProperty(laneKey, config.getProperty(key));
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.chronicle.MessageListener#onMetric(io.netty.buffer.ByteBuf)
+	 */
+	@Override
+	public int onMetric(final ByteBuf buf) {
+		return rpc.onMetric(this, TailerCheckpoint.NO_INDEX, buf);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.chronicle.MessageListener#onMetric(long, io.netty.buffer.ByteBuf)
+	 */
+	@Override
+	public int onMetric(final long index, final ByteBuf buf) {
+		return rpc.onMetric(this, index, buf);
+	}
+
+	/**
+	 * Writes a polled record to this lane's message queue
+	 * @param tp The record's topic partition
+	 * @param offset The record's offset
+	 * @param buf The record's value
+	 * @param track true to track the record's offset until its data points are written
+	 */
+	public void write(final TopicPartition tp, final long offset, final ByteBuf buf, final boolean track) {
+		final long index = messageQueue.writeEntry(buf);
+		if(track) offsetTracker.track(tp, index, offset);
+	}
+
+	/**
+	 * Records the completion of a message read from this lane's queue
+	 * @param nanosPerMessage The elapsed nanos per data point
+	 * @param points The number of data points written
+	 */
+	void update(final long nanosPerMessage, final int points) {
+		perMessageTimer.update(nanosPerMessage, TimeUnit.NANOSECONDS);
+		pointsAddedMeter.mark(points);
+	}
+
+	/**
+	 * Closes this lane's message queue
+	 */
+	public void close() {
+		try {
+			messageQueue.close();
+		} catch (Exception ex) {
+			/* No Op */
+		}
+	}
+
+	/**
+	 * Returns the lane id
+	 * @return the lane id
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the lane name
+	 * @return the lane name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the lane's message queue
+	 * @return the lane's message queue
+	 */
+	public MessageQueue getMessageQueue() {
+		return messageQueue;
+	}
+
+	/**
+	 * Returns the lane's offset tracker
+	 * @return the lane's offset tracker
+	 */
+	public OffsetTracker getOffsetTracker() {
+		return offsetTracker;
+	}
+
+	/**
+	 * Returns the topic partitions pinned to this lane
+	 * @return the topic partitions pinned to this lane
+	 */
+	public Set<TopicPartition> getPartitions() {
+		return Collections.unmodifiableSet(partitions);
+	}
+
+	/**
+	 * Returns the total number of data points added by this lane
+	 * @return the total number of data points added by this lane
+	 */
+	public long getDataPoints() {
+		return pointsAddedMeter.getCount();
+	}
+
+	/**
+	 * Returns the 1 minute rate of points added by this lane
+	 * @return the 1 minute rate of points added by this lane
+	 */
+	public double getPoints1mRate() {
+		return pointsAddedMeter.getOneMinuteRate();
+	}
+
+	/**
+	 * Returns the mean elapsed time per data point in this lane in ms.
+	 * @return the mean elapsed time per data point in this lane in ms.
+	 */
+	public double getPerDataPointMeanTimeMs() {
+		return KafkaRPC.nanosToMs(perMessageTimerSnap.getValue().getMean());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "PartitionLane [" + name + ", partitions:" + partitions + "]";
+	}
+}
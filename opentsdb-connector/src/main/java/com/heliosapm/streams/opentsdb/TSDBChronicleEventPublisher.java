@@ -46,7 +46,9 @@ import com.heliosapm.streams.chronicle.MessageType;
 import com.heliosapm.streams.chronicle.TSDBMetricMeta;
 import com.heliosapm.streams.opentsdb.MetaDataSync2.MetricMetaSink;
 import com.heliosapm.streams.opentsdb.plugin.PluginMetricManager;
+import com.heliosapm.streams.opentsdb.ringbuffer.OverflowPolicy;
 import com.heliosapm.streams.opentsdb.ringbuffer.RBWaitStrategy;
+import com.heliosapm.streams.opentsdb.ringbuffer.RingBufferOverflow;
 import com.heliosapm.utils.collections.Props;
 import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.utils.jmx.JMXHelper;
@@ -54,6 +56,7 @@ import com.heliosapm.utils.jmx.JMXManagedThreadFactory;
 import com.heliosapm.utils.time.SystemClock;
 import com.heliosapm.utils.time.SystemClock.ElapsedTime;
 import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorOneArg;
 import com.lmax.disruptor.ExceptionHandler;
 import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.TimeoutException;
@@ -62,6 +65,7 @@ import com.lmax.disruptor.dsl.ProducerType;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
+import net.openhft.chronicle.bytes.BytesIn;
 import net.openhft.chronicle.bytes.BytesRingBufferStats;
 import net.openhft.chronicle.map.ChronicleMap;
 import net.openhft.chronicle.queue.ChronicleQueue;
@@ -69,8 +73,6 @@ import net.openhft.chronicle.queue.RollCycle;
 import net.openhft.chronicle.queue.RollCycles;
 import net.openhft.chronicle.queue.impl.StoreFileListener;
 import net.openhft.chronicle.queue.impl.single.SingleChronicleQueueBuilder;
-import net.openhft.chronicle.set.ChronicleSet;
-import net.openhft.chronicle.set.ChronicleSetBuilder;
 import net.openhft.chronicle.wire.WireType;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.Annotation;
@@ -121,6 +123,21 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 	/** The config key prefix for the cache lookup ringbuffer wait strategy config properties */
 	public static final String CONFIG_CACHERB_WAITSTRAT_PROPS = CONFIG_CACHERB_WAITSTRAT + ".";
 	
+	/** The config key name for the policy applied when the cache lookup ringbuffer is full */
+	public static final String CONFIG_CACHERB_OVERFLOW = "eventpublisher.cache.rb.overflow";
+	/** The default cache lookup ringbuffer overflow policy */
+	public static final OverflowPolicy DEFAULT_CACHERB_OVERFLOW = OverflowPolicy.BLOCK;
+	
+	/** The config key name for the sampling rate of the {@link OverflowPolicy#SAMPLE} overflow policy */
+	public static final String CONFIG_CACHERB_OVERFLOW_SAMPLE = "eventpublisher.cache.rb.overflow.sample";
+	/** The default sampling rate */
+	public static final int DEFAULT_CACHERB_OVERFLOW_SAMPLE = 10;
+	
+	/** The config key name for the overflow queue directory of the {@link OverflowPolicy#SPILL} overflow policy */
+	public static final String CONFIG_CACHERB_OVERFLOW_DIR = "eventpublisher.cache.rb.overflow.dir";
+	/** The default overflow queue directory */
+	public static final String DEFAULT_CACHERB_OVERFLOW_DIR = new File(new File(System.getProperty("user.home"), ".eventpublisher"), "overflow").getAbsolutePath();
+	
 	/** The config key name for the dispatch ringbuffer wait strategy */
 	public static final String CONFIG_DISPATCHRB_WAITSTRAT = "eventpublisher.dispatch.rb.waitstrat";
 	/** The default dispatch ringbuffer wait strategy */
@@ -151,6 +168,11 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 	/** The default lookup cache maximum number of entries */
 	public static final double DEFAULT_CACHE_BLOAT = 1.0D;
 	
+	/** The config key name for the maximum number of entries in the on-heap hot tier of the lookup cache */
+	public static final String CONFIG_CACHE_HOTSIZE = "eventpublisher.cache.hotsize";
+	/** The default maximum number of entries in the on-heap hot tier of the lookup cache */
+	public static final int DEFAULT_CACHE_HOTSIZE = 10000;
+	
 	
 	/** The config key name for the outbound queue base directory */
 	public static final String CONFIG_OUTQ_DIR = "eventpublisher.outq.dir";
@@ -285,8 +307,10 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 	protected long maxEntries = -1;
 	/** The TSUID lookup cache max bloat factor */
 	protected double maxBloatFactor = -1D;
+	/** The TSUID lookup cache hot tier max entries */
+	protected int hotSize = -1;
 	/** The TSUID lookup cache instance */
-	protected ChronicleSet<byte[]> cacheDb = null;
+	protected TSUIDCache cacheDb = null;
 	
 	
 	// ===============================================================================================
@@ -312,6 +336,24 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 	protected RingBuffer<TSDBMetricMeta> cacheRb = null;
 	/** The dispatch ring buffer */
 	protected RingBuffer<TSDBMetricMeta> dispatchRb = null;
+	/** The cache lookup ring buffer overflow policy handler */
+	protected RingBufferOverflow<TSDBMetricMeta> cacheRbOverflow = null;
+	
+	/** Reads a spilled data point back into a cache lookup ring buffer event */
+	protected static final EventTranslatorOneArg<TSDBMetricMeta, BytesIn> CACHERB_DRAINER = new EventTranslatorOneArg<TSDBMetricMeta, BytesIn>() {
+		@Override
+		public void translateTo(final TSDBMetricMeta meta, final long sequence, final BytesIn in) {
+			final String metric = in.readUtf8();
+			final int tagCount = (int)in.readStopBit();
+			final Map<String, String> tags = new HashMap<String, String>(tagCount);
+			for(int i = 0; i < tagCount; i++) {
+				tags.put(in.readUtf8(), in.readUtf8());
+			}
+			final byte[] tsuid = new byte[(int)in.readStopBit()];
+			in.read(tsuid);
+			meta.reset().load(metric, tags, tsuid).startTimer();
+		}
+	};
 	
 	/** The cache lookup exception handler */
 	protected final ExceptionHandler<TSDBMetricMeta> cacheLookupExceptionHandler = new ExceptionHandler<TSDBMetricMeta>() {
@@ -367,28 +409,11 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 			dataPoints.mark();
 			final Context ctx = cacheLookupHandlerTimer.time();
 			try {
-				if(!cacheDb.contains(meta.getTsuid())) {
-					// We have to clone here since the incoming meta gets recycled back to the cacheRb.
-					// Alternatively, the resolveUID could be synchronous. 
-					final TSDBMetricMeta metaClone = meta.clone();
+				if(!cacheDb.contains(meta.getTsuid()) && cacheDb.startResolve(meta.getTsuid())) {
 //					FIXME: temporarilly calling this just so we can compare elapsed times
 //					FIXED: getTSMetaAsync is approx 20-30 slower than resolveUIDsAsync 
 //					getTSMetaAsync(meta);
-					resolveUIDsAsync(metaClone).addCallback(new Callback<Void, EnumMap<UniqueIdType,Map<String,String>>>() {
-						@Override
-						public Void call(final EnumMap<UniqueIdType, Map<String, String>> map) throws Exception {
-							metaClone.resolved(
-									map.get(UniqueIdType.METRIC).values().iterator().next(), 
-									map.get(UniqueIdType.TAGK), 
-									map.get(UniqueIdType.TAGV)
-							);
-							final long seq = dispatchRb.next();
-							final TSDBMetricMeta meta = dispatchRb.get(seq);
-							meta.load(metaClone).resolved(metaClone);
-							dispatchRb.publish(seq);										
-							return null;
-						}
-					});
+					resolveAndDispatch(meta, false);
 				}
 			} finally {
 				meta.reset();
@@ -420,28 +445,11 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 			dataPoints.mark();
 			final Context ctx = cacheLookupHandlerTimer.time();
 			try {
-				if(!cacheDb.contains(meta.getTsuid())) {
-					// We have to clone here since the incoming meta gets recycled back to the cacheRb.
-					// Alternatively, the resolveUID could be synchronous. 
-					final TSDBMetricMeta metaClone = meta.clone();
+				if(!cacheDb.contains(meta.getTsuid()) && cacheDb.startResolve(meta.getTsuid())) {
 //					FIXME: temporarilly calling this just so we can compare elapsed times
 //					FIXED: getTSMetaAsync is approx 20-30 slower than resolveUIDsAsync 
 //					getTSMetaAsync(meta);
-					testLookup(metaClone).addCallback(new Callback<Void, EnumMap<UniqueIdType,Map<String,String>>>() {
-						@Override
-						public Void call(final EnumMap<UniqueIdType, Map<String, String>> map) throws Exception {
-							metaClone.resolved(
-									map.get(UniqueIdType.METRIC).values().iterator().next(), 
-									map.get(UniqueIdType.TAGK), 
-									map.get(UniqueIdType.TAGV)
-							);
-							final long seq = dispatchRb.next();
-							final TSDBMetricMeta meta = dispatchRb.get(seq);
-							meta.load(metaClone).resolved(metaClone);
-							dispatchRb.publish(seq);										
-							return null;
-						}
-					});
+					resolveAndDispatch(meta, true);
 				}
 			} finally {
 				meta.reset();
@@ -452,6 +460,67 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 
 	
 	
+	/**
+	 * Resolves the UIDs of the passed meta and publishes the resolved meta to the dispatch ring buffer.
+	 * The caller must have started the in-flight resolution of the meta's TSUID. Any failure, whether thrown by the
+	 * lookup call, delivered by the lookup's deferred or thrown while publishing, ends that in-flight resolution.
+	 * @param meta The meta to resolve, which is cloned since the incoming meta gets recycled back to the cacheRb
+	 * @param test true to resolve with the {@link #testLookup(TSDBMetricMeta)}, false to resolve against the TSDB
+	 */
+	protected void resolveAndDispatch(final TSDBMetricMeta meta, final boolean test) {
+		final TSDBMetricMeta metaClone;
+		final Deferred<EnumMap<UniqueIdType, Map<String, String>>> lookup;
+		try {
+			metaClone = meta.clone();
+			lookup = test ? testLookup(metaClone) : resolveUIDsAsync(metaClone);
+		} catch (Exception ex) {
+			resolveFailed(meta, ex);
+			return;
+		}
+		// the errback is chained after the callback so that it also sees exceptions thrown by the callback
+		lookup.addCallback(new Callback<Void, EnumMap<UniqueIdType,Map<String,String>>>() {
+			@Override
+			public Void call(final EnumMap<UniqueIdType, Map<String, String>> map) throws Exception {
+				metaClone.resolved(
+						map.get(UniqueIdType.METRIC).values().iterator().next(), 
+						map.get(UniqueIdType.TAGK), 
+						map.get(UniqueIdType.TAGV)
+				);
+				final long seq = dispatchRb.next();
+				final TSDBMetricMeta dispatched = dispatchRb.get(seq);
+				dispatched.load(metaClone).resolved(metaClone);
+				dispatchRb.publish(seq);										
+				return null;
+			}
+		}).addErrback(resolveFailed(metaClone));
+	}
+	
+	/**
+	 * Creates an errback that ends the failed in-flight resolution of the passed meta's TSUID
+	 * @param meta The meta being resolved
+	 * @return the errback
+	 */
+	protected Callback<Void, Exception> resolveFailed(final TSDBMetricMeta meta) {
+		return new Callback<Void, Exception>() {
+			@Override
+			public Void call(final Exception ex) throws Exception {
+				resolveFailed(meta, ex);
+				return null;
+			}
+		};
+	}
+	
+	/**
+	 * Ends the failed in-flight resolution of the passed meta's TSUID
+	 * @param meta The meta being resolved
+	 * @param ex The resolution failure
+	 */
+	protected void resolveFailed(final TSDBMetricMeta meta, final Exception ex) {
+		cacheLookupExceptions.inc();
+		cacheDb.failed(meta.getTsuid());
+		log.warn("Failed to resolve UIDs for {}", meta.getMetricName(), ex);
+	}
+	
 	/** The dispatch exception handler */
 	protected final ExceptionHandler<TSDBMetricMeta> dispatchExceptionHandler = new ExceptionHandler<TSDBMetricMeta>() {
 		
@@ -479,15 +548,18 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 		@Override
 		public void onEvent(final TSDBMetricMeta meta, final long sequence, final boolean endOfBatch) throws Exception {
 			final Context ctx = dispatchHandlerTimer.time();
+			boolean published = false;
 			try {
 				if(outQueueTextFormat) {
 					outQueue.acquireAppender().writeDocument(w -> w.write(MessageType.METRICMETA.shortName).marshallable(meta));
 				} else {
 					outQueue.acquireAppender().writeBytes(meta);
 				}
-				cacheDb.add(meta.getTsuid());
+				published = true;
+				cacheDb.resolved(meta.getTsuid());
 				meta.recordTimer(endToEndTimer);
 			} finally {
+				if(!published) cacheDb.failed(meta.getTsuid());
 				meta.reset();
 				ctx.stop();
 			}
@@ -586,12 +658,9 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 			maxBloatFactor = metricManager.getAndSetConfig(CONFIG_CACHE_BLOAT, DEFAULT_CACHE_BLOAT, properties, cfg);
 			avgKeySize = metricManager.getAndSetConfig(CONFIG_CACHE_AVGKEYSIZE, DEFAULT_CACHE_AVGKEYSIZE, properties, cfg);
 			maxEntries = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_CACHE_MAXKEYS, DEFAULT_CACHE_MAXKEYS, properties);
+			hotSize = metricManager.getAndSetConfig(CONFIG_CACHE_HOTSIZE, DEFAULT_CACHE_HOTSIZE, properties, cfg);
 			try {
-				cacheDb = ChronicleSetBuilder.of(byte[].class)
-					.averageKeySize(avgKeySize)
-					.entries(maxEntries)
-					.maxBloatFactor(maxBloatFactor)
-					.createOrRecoverPersistedTo(tsuidCacheDbFile);
+				cacheDb = new TSUIDCache(tsuidCacheDbFile, avgKeySize, maxEntries, maxBloatFactor, hotSize, metricManager);
 				log.info("TSUID Lookup Cache Initialized. Initial Size: {}", cacheDb.size());
 			} catch (Exception ex) {
 				final String msg = "Failed to create TSUID lookup cache with file [" + tsuidCacheDbFileName + "]";
@@ -621,6 +690,12 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 			dispatchRbDisruptor.setDefaultExceptionHandler(dispatchExceptionHandler);
 			dispatchRbDisruptor.handleEventsWith(dispatchHandler);
 			cacheRb = cacheRbDisruptor.start();
+			cacheRbOverflow = new RingBufferOverflow<TSDBMetricMeta>("CacheLookup", cacheRb, 
+				metricManager.getAndSetConfig(CONFIG_CACHERB_OVERFLOW, DEFAULT_CACHERB_OVERFLOW, properties, cfg),
+				metricManager.getAndSetConfig(CONFIG_CACHERB_OVERFLOW_SAMPLE, DEFAULT_CACHERB_OVERFLOW_SAMPLE, properties, cfg),
+				new File(metricManager.getAndSetConfig(CONFIG_CACHERB_OVERFLOW_DIR, DEFAULT_CACHERB_OVERFLOW_DIR, properties, cfg)),
+				CACHERB_DRAINER
+			);
 			log.info("Started CacheLookup RingBuffer");
 			dispatchRb = dispatchRbDisruptor.start();
 			log.info("Started MetricDispatch RingBuffer");
@@ -651,6 +726,7 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 	@Override
 	public Deferred<Object> shutdown() {
 		log.info(">>>>> Stopping TSDBChronicleEventPublisher");
+		if(cacheRbOverflow!=null) cacheRbOverflow.close();
 		stopDisruptor("CacheLookup", cacheRbDisruptor);
 		stopDisruptor("Dispatch", dispatchRbDisruptor);
 		keepRunning.set(false);
@@ -661,6 +737,10 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 		} catch (Exception ex) {
 			log.warn("Error closing OutboundQueue: {}", ex);
 		}
+		if(cacheDb!=null) {
+			cacheDb.close();
+			log.info("TSUID Lookup Cache Closed");
+		}
 		try {
 			JMXHelper.unregisterMBean(JMXHelper.objectName("net.opentsdb:service=TSDBChronicleEventPublisher"));
 		} catch (Exception x) {/* No Op */}
@@ -713,10 +793,7 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 	 */
 	@Override
 	public Deferred<Object> publishDataPoint(final String metric, final long timestamp, final long value, final Map<String, String> tags, final byte[] tsuid) {
-		final long sequence = cacheRb.next();
-		final TSDBMetricMeta meta = cacheRb.get(sequence);
-		meta.reset().load(metric, tags, tsuid).startTimer();
-		cacheRb.publish(sequence);
+		publish(metric, tags, tsuid);
 		return Deferred.fromResult(null);
 	}
 	
@@ -740,11 +817,39 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 	 */
 	@Override
 	public Deferred<Object> publishDataPoint(final String metric, final long timestamp, final double value, final Map<String, String> tags, final byte[] tsuid) {
-		final long sequence = cacheRb.next();
+		publish(metric, tags, tsuid);
+		return Deferred.fromResult(null);
+	}
+	
+	/**
+	 * Publishes a data point's meta to the cache lookup ring buffer according to the configured overflow policy
+	 * @param metric The metric name
+	 * @param tags The metric tags
+	 * @param tsuid The metric TSUID
+	 */
+	protected void publish(final String metric, final Map<String, String> tags, final byte[] tsuid) {
+		final long sequence = cacheRbOverflow.claim();
+		if(sequence < 0) {
+			if(cacheDb.contains(tsuid)) {
+				// the lookup handler would have ignored it anyways
+				dataPoints.mark();
+				return;
+			}
+			cacheRbOverflow.spill(out -> {
+				out.writeUtf8(metric);
+				out.writeStopBit(tags.size());
+				for(Map.Entry<String, String> tag: tags.entrySet()) {
+					out.writeUtf8(tag.getKey());
+					out.writeUtf8(tag.getValue());
+				}
+				out.writeStopBit(tsuid.length);
+				out.write(tsuid);
+			});
+			return;
+		}
 		final TSDBMetricMeta meta = cacheRb.get(sequence);
 		meta.reset().load(metric, tags, tsuid).startTimer();
 		cacheRb.publish(sequence);
-		return Deferred.fromResult(null);
 	}
 
 	/**
@@ -810,7 +915,7 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 			});
 			completion.add(tagValueDef);			
 		}
-		Deferred.group(completion).addCallback(new Callback<Void, ArrayList<byte[]>>() {
+		Deferred.group(completion).addCallbacks(new Callback<Void, ArrayList<byte[]>>() {
 			@Override
 			public Void call(final ArrayList<byte[]> arg) throws Exception {
 				final long elapsed = ctx.stop();
@@ -818,6 +923,13 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 				resultDef.callback(resolvedMap);
 				return null;
 			}
+		}, new Callback<Void, Exception>() {
+			@Override
+			public Void call(final Exception ex) throws Exception {
+				ctx.stop();
+				resultDef.callback(ex);
+				return null;
+			}
 		});
 		return resultDef;
 	}
@@ -947,7 +1059,7 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 	 */
 	@Override
 	public long getCacheLookupFileSize() {
-		return (tsuidCacheDbFile!=null && tsuidCacheDbFile.isFile()) ? tsuidCacheDbFile.length() : -1L;
+		return cacheDb!=null ? cacheDb.getFileSize() : -1L;
 	}
 
 	/**
@@ -995,6 +1107,42 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 	public long getCacheRbCapacity() {
 		return cacheRb.remainingCapacity();
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.TSDBChronicleEventPublisherMBean#getCacheRbOverflowPolicy()
+	 */
+	@Override
+	public String getCacheRbOverflowPolicy() {
+		return cacheRbOverflow.getPolicy().name();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.TSDBChronicleEventPublisherMBean#getCacheRbDropped()
+	 */
+	@Override
+	public long getCacheRbDropped() {
+		return cacheRbOverflow.getDropped();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.TSDBChronicleEventPublisherMBean#getCacheRbSpilled()
+	 */
+	@Override
+	public long getCacheRbSpilled() {
+		return cacheRbOverflow.getSpilled();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.TSDBChronicleEventPublisherMBean#getCacheRbOverflowBacklog()
+	 */
+	@Override
+	public long getCacheRbOverflowBacklog() {
+		return cacheRbOverflow.getBacklog();
+	}
 
 	public long getDispatchRbCapacity() {
 		return dispatchRb.remainingCapacity();
@@ -1052,6 +1200,69 @@ public class TSDBChronicleEventPublisher extends RTPublisher implements TSDBChro
 		cacheDb.clear();
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.TSDBChronicleEventPublisherMBean#getLookupCacheHotSize()
+	 */
+	@Override
+	public int getLookupCacheHotSize() {
+		return cacheDb.getHotSize();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.TSDBChronicleEventPublisherMBean#getLookupCacheHotHits()
+	 */
+	@Override
+	public long getLookupCacheHotHits() {
+		return cacheDb.getHotHits();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.TSDBChronicleEventPublisherMBean#getLookupCacheOffHeapHits()
+	 */
+	@Override
+	public long getLookupCacheOffHeapHits() {
+		return cacheDb.getOffHeapHits();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.TSDBChronicleEventPublisherMBean#getLookupCacheMisses()
+	 */
+	@Override
+	public long getLookupCacheMisses() {
+		return cacheDb.getMisses();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.TSDBChronicleEventPublisherMBean#getLookupCacheCoalesced()
+	 */
+	@Override
+	public long getLookupCacheCoalesced() {
+		return cacheDb.getCoalesced();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.TSDBChronicleEventPublisherMBean#getLookupCacheInFlight()
+	 */
+	@Override
+	public int getLookupCacheInFlight() {
+		return cacheDb.getInFlight();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.opentsdb.TSDBChronicleEventPublisherMBean#getLookupCacheRotations()
+	 */
+	@Override
+	public long getLookupCacheRotations() {
+		return cacheDb.getRotations();
+	}
+	
 	public long getDispatchExceptionCount() {
 		return dispatchExceptions.getCount();
 	}
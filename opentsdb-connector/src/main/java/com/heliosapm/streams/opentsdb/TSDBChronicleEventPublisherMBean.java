@@ -64,6 +64,30 @@ public interface TSDBChronicleEventPublisherMBean {
 	public String getDispatchRbWaitStrat();
 
 	public long getCacheRbCapacity();
+	
+	/**
+	 * Returns the policy applied when the cache lookup ring buffer is full
+	 * @return the overflow policy name
+	 */
+	public String getCacheRbOverflowPolicy();
+	
+	/**
+	 * Returns the number of data points dropped because the cache lookup ring buffer was full
+	 * @return the number of dropped data points
+	 */
+	public long getCacheRbDropped();
+	
+	/**
+	 * Returns the number of data points spilled to the overflow queue because the cache lookup ring buffer was full
+	 * @return the number of spilled data points
+	 */
+	public long getCacheRbSpilled();
+	
+	/**
+	 * Returns the number of spilled data points not yet drained back into the cache lookup ring buffer
+	 * @return the overflow queue backlog
+	 */
+	public long getCacheRbOverflowBacklog();
 
 	public long getDispatchRbCapacity();
 
@@ -87,6 +111,48 @@ public interface TSDBChronicleEventPublisherMBean {
 	
 	public void clearLookupCache();
 	
+	/**
+	 * Returns the number of TSUIDs in the on-heap hot tier of the lookup cache
+	 * @return the number of TSUIDs in the hot tier
+	 */
+	public int getLookupCacheHotSize();
+	
+	/**
+	 * Returns the number of lookups answered by the on-heap hot tier
+	 * @return the number of hot tier hits
+	 */
+	public long getLookupCacheHotHits();
+	
+	/**
+	 * Returns the number of lookups answered by the off-heap tier
+	 * @return the number of off-heap hits
+	 */
+	public long getLookupCacheOffHeapHits();
+	
+	/**
+	 * Returns the number of lookups for unknown TSUIDs
+	 * @return the number of lookup misses
+	 */
+	public long getLookupCacheMisses();
+	
+	/**
+	 * Returns the number of misses coalesced into an already in-flight UID resolution
+	 * @return the number of coalesced misses
+	 */
+	public long getLookupCacheCoalesced();
+	
+	/**
+	 * Returns the number of TSUIDs with a UID resolution in flight
+	 * @return the number of in-flight resolutions
+	 */
+	public int getLookupCacheInFlight();
+	
+	/**
+	 * Returns the number of off-heap lookup cache generation rotations
+	 * @return the number of rotations
+	 */
+	public long getLookupCacheRotations();
+	
 	public long getDispatchExceptionCount();
 	
 	public long getCacheLookupExceptionCount();
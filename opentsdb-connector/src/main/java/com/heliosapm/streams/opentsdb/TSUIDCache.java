@@ -0,0 +1,313 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.opentsdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cliffc.high_scale_lib.NonBlockingHashSet;
+
+import com.codahale.metrics.Counter;
+import com.heliosapm.streams.opentsdb.plugin.PluginMetricManager;
+
+import net.openhft.chronicle.set.ChronicleSet;
+import net.openhft.chronicle.set.ChronicleSetBuilder;
+
+/**
+ * <p>Title: TSUIDCache</p>
+ * <p>Description: The set of TSUIDs already published by the {@link TSDBChronicleEventPublisher}.</p>
+ * <p>Lookups check a small on-heap hot tier first, then two generations of persisted off-heap {@link ChronicleSet}s.
+ * When the current off-heap generation fills up, the previous generation is cleared and becomes the current one,
+ * so TSUIDs not seen for a whole generation are evicted rather than new TSUIDs being refused.
+ * Hits in the previous generation are promoted to the current one. The hot tier rotates the same way.</p>
+ * <p>An in-flight registry makes sure only one UID resolution is outstanding per TSUID. Callers that find a TSUID
+ * neither cached nor in flight win the resolution and must call {@link #resolved(byte[])} or {@link #failed(byte[])}.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.opentsdb.TSUIDCache</code></p>
+ */
+
+public class TSUIDCache {
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+	/** The maximum number of TSUIDs in one off-heap generation */
+	protected final long maxEntries;
+	/** The maximum number of TSUIDs in one hot tier generation */
+	protected final int hotSize;
+	/** The two off-heap generations */
+	protected final ChronicleSet<byte[]>[] offHeap;
+	/** The off-heap generation files */
+	protected final File[] offHeapFiles;
+	/** The index of the current off-heap generation */
+	protected volatile int current = 0;
+	/** The current hot tier generation */
+	protected volatile NonBlockingHashSet<ByteBuffer> hot = new NonBlockingHashSet<ByteBuffer>();
+	/** The previous hot tier generation */
+	protected volatile NonBlockingHashSet<ByteBuffer> hotPrevious = new NonBlockingHashSet<ByteBuffer>();
+	/** The TSUIDs with a resolution in flight */
+	protected final NonBlockingHashSet<ByteBuffer> inFlight = new NonBlockingHashSet<ByteBuffer>();
+
+	/** Counter of lookups answered by the hot tier */
+	protected final Counter hotHits;
+	/** Counter of lookups answered by the off-heap tier */
+	protected final Counter offHeapHits;
+	/** Counter of lookups for unknown TSUIDs */
+	protected final Counter misses;
+	/** Counter of misses coalesced into an in-flight resolution */
+	protected final Counter coalesced;
+	/** Counter of off-heap generation rotations */
+	protected final Counter rotations;
+
+	/**
+	 * Creates a new TSUIDCache
+	 * @param file The file the first off-heap generation is persisted to. The second generation is persisted alongside it.
+	 * @param avgKeySize The average TSUID size in bytes
+	 * @param maxEntries The maximum number of TSUIDs in one off-heap generation
+	 * @param maxBloatFactor The off-heap maximum bloat factor
+	 * @param hotSize The maximum number of TSUIDs in one hot tier generation
+	 * @param metricManager The metric manager to register the cache counters with
+	 * @throws IOException thrown if either generation file cannot be created or recovered
+	 */
+	@SuppressWarnings("unchecked")
+	public TSUIDCache(final File file, final int avgKeySize, final long maxEntries, final double maxBloatFactor, final int hotSize, final PluginMetricManager metricManager) throws IOException {
+		this.maxEntries = maxEntries;
+		this.hotSize = hotSize;
+		final String name = file.getName();
+		final int dot = name.lastIndexOf('.');
+		offHeapFiles = new File[] {
+			file,
+			new File(file.getParentFile(), dot==-1 ? (name + ".1") : (name.substring(0, dot) + ".1" + name.substring(dot)))
+		};
+		offHeap = new ChronicleSet[2];
+		for(int i = 0; i < 2; i++) {
+			// headroom over maxEntries for promotions racing a rotation
+			offHeap[i] = ChronicleSetBuilder.of(byte[].class)
+				.averageKeySize(avgKeySize)
+				.entries(maxEntries + (maxEntries/10))
+				.maxBloatFactor(maxBloatFactor)
+				.createOrRecoverPersistedTo(offHeapFiles[i]);
+		}
+		if(offHeap[1].size() > offHeap[0].size()) current = 1;
+		hotHits = metricManager.counter("tsuidCache.hotHits");
+		offHeapHits = metricManager.counter("tsuidCache.offHeapHits");
+		misses = metricManager.counter("tsuidCache.misses");
+		coalesced = metricManager.counter("tsuidCache.coalesced");
+		rotations = metricManager.counter("tsuidCache.rotations");
+	}
+
+	/**
+	 * Determines if the passed TSUID is known
+	 * @param tsuid The TSUID to check
+	 * @return true if the TSUID has been published, false otherwise
+	 */
+	public boolean contains(final byte[] tsuid) {
+		final ByteBuffer key = ByteBuffer.wrap(tsuid);
+		if(hot.contains(key)) {
+			hotHits.inc();
+			return true;
+		}
+		if(hotPrevious.contains(key)) {
+			hotHits.inc();
+			addHot(key);
+			return true;
+		}
+		final int c = current;
+		if(offHeap[c].contains(tsuid)) {
+			offHeapHits.inc();
+			addHot(key);
+			return true;
+		}
+		if(offHeap[c ^ 1].contains(tsuid)) {
+			offHeapHits.inc();
+			addOffHeap(tsuid);
+			addHot(key);
+			return true;
+		}
+		misses.inc();
+		return false;
+	}
+
+	/**
+	 * Registers a resolution of the passed unknown TSUID
+	 * @param tsuid The TSUID to resolve
+	 * @return true if the caller should resolve the TSUID, false if a resolution is already in flight
+	 */
+	public boolean startResolve(final byte[] tsuid) {
+		if(inFlight.add(ByteBuffer.wrap(tsuid))) return true;
+		coalesced.inc();
+		return false;
+	}
+
+	/**
+	 * Adds a resolved and published TSUID to the cache and ends its in-flight resolution
+	 * @param tsuid The published TSUID
+	 */
+	public void resolved(final byte[] tsuid) {
+		final ByteBuffer key = ByteBuffer.wrap(tsuid);
+		addOffHeap(tsuid);
+		addHot(key);
+		inFlight.remove(key);
+	}
+
+	/**
+	 * Ends the failed in-flight resolution of the passed TSUID so the next lookup retries it
+	 * @param tsuid The TSUID that failed to resolve
+	 */
+	public void failed(final byte[] tsuid) {
+		inFlight.remove(ByteBuffer.wrap(tsuid));
+	}
+
+	private void addHot(final ByteBuffer key) {
+		final NonBlockingHashSet<ByteBuffer> h = hot;
+		h.add(key);
+		if(h.size() > hotSize) {
+			synchronized(inFlight) {
+				if(hot==h) {
+					hotPrevious = h;
+					hot = new NonBlockingHashSet<ByteBuffer>();
+				}
+			}
+		}
+	}
+
+	private void addOffHeap(final byte[] tsuid) {
+		int c = current;
+		if(offHeap[c].size() >= maxEntries) {
+			synchronized(offHeap) {
+				c = current;
+				if(offHeap[c].size() >= maxEntries) {
+					final int next = c ^ 1;
+					offHeap[next].clear();
+					current = next;
+					c = next;
+					rotations.inc();
+					log.info("Rotated TSUID cache to [{}]", offHeapFiles[next]);
+				}
+			}
+		}
+		offHeap[c].add(tsuid);
+	}
+
+	/**
+	 * Clears all the tiers. In flight resolutions are not affected.
+	 */
+	public void clear() {
+		synchronized(offHeap) {
+			offHeap[0].clear();
+			offHeap[1].clear();
+		}
+		hot = new NonBlockingHashSet<ByteBuffer>();
+		hotPrevious = new NonBlockingHashSet<ByteBuffer>();
+	}
+
+	/**
+	 * Closes the off-heap generations
+	 */
+	public void close() {
+		for(ChronicleSet<byte[]> set: offHeap) {
+			try { set.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
+	/**
+	 * Returns the number of TSUIDs in the off-heap tier
+	 * @return the number of TSUIDs in the off-heap tier
+	 */
+	public int size() {
+		return offHeap[0].size() + offHeap[1].size();
+	}
+
+	/**
+	 * Returns the number of segments in the current off-heap generation
+	 * @return the number of segments
+	 */
+	public int segments() {
+		return offHeap[current].segments();
+	}
+
+	/**
+	 * Returns the number of TSUIDs in the hot tier
+	 * @return the number of TSUIDs in the hot tier
+	 */
+	public int getHotSize() {
+		return hot.size() + hotPrevious.size();
+	}
+
+	/**
+	 * Returns the number of TSUIDs with a resolution in flight
+	 * @return the number of in flight resolutions
+	 */
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Returns the combined size of the off-heap generation files in bytes
+	 * @return the size of the off-heap generation files
+	 */
+	public long getFileSize() {
+		long size = 0;
+		for(File f: offHeapFiles) {
+			if(f.isFile()) size += f.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of lookups answered by the hot tier
+	 * @return the number of hot tier hits
+	 */
+	public long getHotHits() {
+		return hotHits.getCount();
+	}
+
+	/**
+	 * Returns the number of lookups answered by the off-heap tier
+	 * @return the number of off-heap hits
+	 */
+	public long getOffHeapHits() {
+		return offHeapHits.getCount();
+	}
+
+	/**
+	 * Returns the number of lookups for unknown TSUIDs
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return misses.getCount();
+	}
+
+	/**
+	 * Returns the number of misses coalesced into an in-flight resolution
+	 * @return the number of coalesced misses
+	 */
+	public long getCoalesced() {
+		return coalesced.getCount();
+	}
+
+	/**
+	 * Returns the number of off-heap generation rotations
+	 * @return the number of rotations
+	 */
+	public long getRotations() {
+		return rotations.getCount();
+	}
+}
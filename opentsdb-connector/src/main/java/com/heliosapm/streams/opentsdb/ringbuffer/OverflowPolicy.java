@@ -0,0 +1,20 @@
+package com.heliosapm.streams.opentsdb.ringbuffer;
+
+
+/**
+ * <p>Title: OverflowPolicy</p>
+ * <p>Description: Enumerates what a publisher does with an event when its ring buffer is full</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.opentsdb.ringbuffer.OverflowPolicy</code></p>
+ */
+public enum OverflowPolicy {
+	/** Waits for a free slot, blocking the publishing thread */
+	BLOCK,
+	/** Drops the event and counts it */
+	DROP,
+	/** Briefly retries for a free slot for one in every <b>N</b> overflowing events, without blocking, and drops the rest */
+	SAMPLE,
+	/** Writes the event to a chronicle overflow queue which is drained back into the ring buffer when capacity returns */
+	SPILL;
+}
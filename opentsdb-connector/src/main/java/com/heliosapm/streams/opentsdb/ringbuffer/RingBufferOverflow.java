@@ -0,0 +1,343 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.streams.opentsdb.ringbuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.heliosapm.streams.chronicle.MessageQueue;
+import com.heliosapm.streams.chronicle.TailerCheckpoint;
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.WriteBytesMarshallable;
+import net.openhft.chronicle.queue.ChronicleQueue;
+import net.openhft.chronicle.queue.ExcerptTailer;
+import net.openhft.chronicle.queue.RollCycle;
+import net.openhft.chronicle.queue.RollCycles;
+import net.openhft.chronicle.queue.impl.single.SingleChronicleQueueBuilder;
+import net.openhft.chronicle.wire.DocumentContext;
+
+/**
+ * <p>Title: RingBufferOverflow</p>
+ * <p>Description: Claims ring buffer slots for a publisher according to an {@link OverflowPolicy}, so a full
+ * ring buffer does not have to block the publishing thread.</p>
+ * <p>Publishers call {@link #claim()} and, when it returns <b>-1</b>, offer the event to {@link #spill(WriteBytesMarshallable)},
+ * which writes it to the overflow queue under {@link OverflowPolicy#SPILL} and counts it as dropped otherwise. A publisher that
+ * can discard an unclaimed event without loss, such as one whose TSUID is already cached, does not offer it and nothing is counted.
+ * {@link #claim()} never blocks unless the policy is {@link OverflowPolicy#BLOCK}. While the overflow queue
+ * has a backlog, new events are spilled too so events keep their order. A drain thread republishes spilled events once the
+ * ring buffer is less than three quarters full.</p>
+ * <p>The overflow queue rolls every minute. The drain position is checkpointed, and the roll files the drain thread has moved past
+ * are deleted. Events still spilled when the overflow is closed stay in the overflow queue and are drained after the next start.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.opentsdb.ringbuffer.RingBufferOverflow</code></p>
+ * @param <T> The ring buffer event type
+ */
+
+public class RingBufferOverflow<T> implements Runnable {
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The ring buffer name */
+	protected final String name;
+	/** The guarded ring buffer */
+	protected final RingBuffer<T> ringBuffer;
+	/** The overflow policy */
+	protected final OverflowPolicy policy;
+	/** The sampling rate under {@link OverflowPolicy#SAMPLE} */
+	protected final int sampleRate;
+	/** Reads a spilled event back into a claimed ring buffer slot */
+	protected final EventTranslatorOneArg<T, BytesIn> drainer;
+	/** The overflow queue, null unless the policy is {@link OverflowPolicy#SPILL} */
+	protected final ChronicleQueue spool;
+	/** The overflow queue drain thread, null unless the policy is {@link OverflowPolicy#SPILL} */
+	protected final Thread drainThread;
+	/** The overflow queue directory */
+	protected final File spoolDir;
+	/** The overflow queue drain tailer, null unless the policy is {@link OverflowPolicy#SPILL} */
+	protected final ExcerptTailer drainTailer;
+	/** The checkpoint of the last drained event, null unless the policy is {@link OverflowPolicy#SPILL} */
+	protected final TailerCheckpoint drainCheckpoint;
+	/** The number of spilled events not yet drained */
+	protected final AtomicLong backlog = new AtomicLong(0L);
+	/** The number of overflowing events seen under {@link OverflowPolicy#SAMPLE} */
+	protected final AtomicLong overflows = new AtomicLong(0L);
+	/** Indicates if the drain thread should keep running */
+	protected final AtomicBoolean keepRunning = new AtomicBoolean(true);
+
+	/** Counter of dropped events */
+	protected final Counter dropped;
+	/** Counter of spilled events */
+	protected final Counter spilled;
+	/** Counter of drained events */
+	protected final Counter drained;
+
+	/** The longest a sampled event waits for a free slot under {@link OverflowPolicy#SAMPLE}, in nanos */
+	public static final long SAMPLE_MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	/** The overflow queue roll cycle */
+	public static final RollCycle SPOOL_ROLL_CYCLE = RollCycles.MINUTELY;
+	/** The name of the drain position checkpoint */
+	public static final String DRAIN_CHECKPOINT = "drain";
+
+	/**
+	 * Creates a new RingBufferOverflow
+	 * @param name The ring buffer name, used for metric and thread names
+	 * @param ringBuffer The guarded ring buffer
+	 * @param policy The overflow policy
+	 * @param sampleRate The sampling rate under {@link OverflowPolicy#SAMPLE}
+	 * @param spoolDir The overflow queue directory under {@link OverflowPolicy#SPILL}. Events left undrained by a prior run are drained first.
+	 * @param drainer Reads a spilled event back into a claimed ring buffer slot under {@link OverflowPolicy#SPILL}
+	 */
+	public RingBufferOverflow(final String name, final RingBuffer<T> ringBuffer, final OverflowPolicy policy, final int sampleRate, final File spoolDir, final EventTranslatorOneArg<T, BytesIn> drainer) {
+		this.name = name;
+		this.ringBuffer = ringBuffer;
+		this.policy = policy;
+		this.sampleRate = Math.max(1, sampleRate);
+		this.drainer = drainer;
+		this.spoolDir = spoolDir;
+		dropped = SharedMetricsRegistry.getInstance().counter("ringbuffer.overflow.dropped.rb=" + name);
+		spilled = SharedMetricsRegistry.getInstance().counter("ringbuffer.overflow.spilled.rb=" + name);
+		drained = SharedMetricsRegistry.getInstance().counter("ringbuffer.overflow.drained.rb=" + name);
+		if(policy==OverflowPolicy.SPILL) {
+			spoolDir.mkdirs();
+			spool = SingleChronicleQueueBuilder.binary(spoolDir).rollCycle(SPOOL_ROLL_CYCLE).build();
+			try {
+				drainCheckpoint = new TailerCheckpoint(spoolDir, DRAIN_CHECKPOINT);
+			} catch (IOException iex) {
+				try { spool.close(); } catch (Exception x) {/* No Op */}
+				throw new IllegalStateException("Failed to open the overflow drain checkpoint in [" + spoolDir + "]", iex);
+			}
+			drainTailer = spool.createTailer();
+			final long undrained = countUndrained();
+			if(undrained > 0) {
+				backlog.set(undrained);
+				log.info("RingBuffer [{}] has [{}] spilled events from a prior run to drain", name, undrained);
+			}
+			drainCheckpoint.resume(drainTailer);
+			drainThread = new Thread(this, name + "OverflowDrainThread");
+			drainThread.setDaemon(true);
+			drainThread.start();
+		} else {
+			spool = null;
+			drainTailer = null;
+			drainCheckpoint = null;
+			drainThread = null;
+		}
+		log.info("RingBuffer [{}] overflow policy: {}", name, policy);
+	}
+
+	/**
+	 * Claims the next ring buffer sequence according to the overflow policy
+	 * @return the claimed sequence which the caller must publish, or -1 if no slot was claimed,
+	 * in which case the caller offers the event to {@link #spill(WriteBytesMarshallable)} unless it can discard it without loss
+	 */
+	public long claim() {
+		if(policy==OverflowPolicy.BLOCK) return ringBuffer.next();
+		if(spool!=null && backlog.get() > 0) return -1L;
+		try {
+			return ringBuffer.tryNext();
+		} catch (InsufficientCapacityException ice) {
+			if(policy==OverflowPolicy.SAMPLE && overflows.incrementAndGet() % sampleRate == 0) return trySample();
+			return -1L;
+		}
+	}
+
+	/**
+	 * Retries claiming a slot for a sampled event for at most {@link #SAMPLE_MAX_WAIT_NANOS}
+	 * @return the claimed sequence or -1 if the ring buffer stayed full
+	 */
+	protected long trySample() {
+		final long deadline = System.nanoTime() + SAMPLE_MAX_WAIT_NANOS;
+		while(true) {
+			try {
+				return ringBuffer.tryNext();
+			} catch (InsufficientCapacityException ice) {
+				if(System.nanoTime() - deadline >= 0) return -1L;
+				LockSupport.parkNanos(1000L);
+			}
+		}
+	}
+
+	/**
+	 * Writes an event that could not be claimed to the overflow queue, or counts it as dropped if the policy does not spill
+	 * @param writer Writes the event
+	 * @return true if the event was spilled, false if it was dropped
+	 */
+	public boolean spill(final WriteBytesMarshallable writer) {
+		if(spool==null) {
+			dropped.inc();
+			return false;
+		}
+		try {
+			spool.acquireAppender().writeBytes(writer);
+			spilled.inc();
+			backlog.incrementAndGet();
+			LockSupport.unpark(drainThread);
+			return true;
+		} catch (Exception ex) {
+			dropped.inc();
+			log.warn("Failed to spill event for RingBuffer [{}]", name, ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Counts the spilled events after the drain checkpoint, leaving the drain tailer positioned at the end
+	 * @return the number of undrained events
+	 */
+	protected long countUndrained() {
+		drainCheckpoint.resume(drainTailer);
+		long count = 0;
+		while(true) {
+			try (final DocumentContext dc = drainTailer.readingDocument()) {
+				if(!dc.isPresent()) break;
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Drains the overflow queue back into the ring buffer
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		final long lowWater = ringBuffer.getBufferSize() / 4;
+		int drainCycle = Integer.MIN_VALUE;
+		while(keepRunning.get()) {
+			try {
+				if(backlog.get()==0) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+					continue;
+				}
+				if(ringBuffer.remainingCapacity() < lowWater) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+					continue;
+				}
+				long index = -1L;
+				try (final DocumentContext dc = drainTailer.readingDocument()) {
+					if(dc.isPresent()) {
+						index = dc.index();
+						final long seq = ringBuffer.next();
+						try {
+							drainer.translateTo(ringBuffer.get(seq), seq, dc.wire().bytes());
+						} finally {
+							ringBuffer.publish(seq);
+						}
+					}
+				}
+				if(index!=-1L) {
+					drained.inc();
+					backlog.decrementAndGet();
+					drainCheckpoint.checkpoint(index);
+					final int cycle = SPOOL_ROLL_CYCLE.toCycle(index);
+					if(cycle!=drainCycle) {
+						drainCycle = cycle;
+						purgeDrained(cycle);
+					}
+				} else {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+				}
+			} catch (Exception ex) {
+				if(!keepRunning.get()) break;
+				log.warn("Failed to drain overflow for RingBuffer [{}]", name, ex);
+			}
+		}
+		log.info("RingBuffer [{}] overflow drain thread stopped", name);
+	}
+
+	/**
+	 * Deletes the overflow queue roll files of the cycles before the passed cycle, which have been fully drained
+	 * @param cycle The cycle of the last drained event
+	 */
+	protected void purgeDrained(final int cycle) {
+		for(Map.Entry<Integer, File> rollFile: MessageQueue.rollFiles(spoolDir, SPOOL_ROLL_CYCLE).headMap(cycle, false).entrySet()) {
+			final File f = rollFile.getValue();
+			if(f.delete()) {
+				log.info("Deleted drained overflow roll file [{}] for RingBuffer [{}]", f, name);
+			} else {
+				log.warn("Failed to delete drained overflow roll file [{}] for RingBuffer [{}]", f, name);
+			}
+		}
+	}
+
+	/**
+	 * Stops the drain thread and closes the overflow queue. Undrained events are kept in the overflow queue
+	 * and drained after the next start.
+	 */
+	public void close() {
+		keepRunning.set(false);
+		if(drainThread!=null) {
+			drainThread.interrupt();
+			try { drainThread.join(5000); } catch (Exception x) {/* No Op */}
+		}
+		if(spool!=null) {
+			final long undrained = backlog.get();
+			if(undrained > 0) {
+				log.info("RingBuffer [{}] closed with [{}] spilled events kept in [{}] for the next start", name, undrained, spoolDir);
+			}
+			try { drainCheckpoint.close(); } catch (Exception x) {/* No Op */}
+			try { spool.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
+	/**
+	 * Returns the overflow policy
+	 * @return the overflow policy
+	 */
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns the number of dropped events
+	 * @return the number of dropped events
+	 */
+	public long getDropped() {
+		return dropped.getCount();
+	}
+
+	/**
+	 * Returns the number of spilled events
+	 * @return the number of spilled events
+	 */
+	public long getSpilled() {
+		return spilled.getCount();
+	}
+
+	/**
+	 * Returns the number of spilled events not yet drained
+	 * @return the overflow backlog
+	 */
+	public long getBacklog() {
+		return backlog.get();
+	}
+}
@@ -15,11 +15,16 @@
  */
 package com.heliosapm.streams.opentsdb.ringbuffer;
 
+import java.io.File;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.serialization.Serdes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,12 +40,16 @@ import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.utils.jmx.JMXManagedThreadFactory;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorOneArg;
 import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.WaitStrategy;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.ProducerType;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
 
 /**
  * <p>Title: RingBufferService</p>
@@ -79,12 +88,36 @@ public class RingBufferService implements EventFactory<ByteBuf>, EventHandler<By
 	/** The default buffer event factory initial size */
 	public static final String RB_DEFAULT_TOPIC_NAME = "bosun.tsdb.rtp.metrics";
 	
+	/** The config prop for the policy applied when the ring buffer is full */
+	public static final String RB_CONF_OVERFLOW_POLICY = "disruptor.overflow.policy";	
+	/** The default overflow policy */
+	public static final OverflowPolicy RB_DEFAULT_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+	
+	/** The config prop for the sampling rate of the {@link OverflowPolicy#SAMPLE} overflow policy */
+	public static final String RB_CONF_OVERFLOW_SAMPLE = "disruptor.overflow.sample";	
+	/** The default sampling rate */
+	public static final int RB_DEFAULT_OVERFLOW_SAMPLE = 10;
+	
+	/** The config prop for the overflow queue directory of the {@link OverflowPolicy#SPILL} overflow policy */
+	public static final String RB_CONF_OVERFLOW_DIR = "disruptor.overflow.dir";	
+	/** The default overflow queue directory */
+	public static final String RB_DEFAULT_OVERFLOW_DIR = new File(new File(System.getProperty("user.home"), ".ringbuffer"), "overflow").getAbsolutePath();
+	
+	/** The config prop for the maximum bytes sent to kafka and not yet acknowledged before the handler flushes the producer */
+	public static final String RB_CONF_MAX_INFLIGHT = "producer.inflight.bytes";	
+	/** The default maximum in-flight bytes */
+	public static final long RB_DEFAULT_MAX_INFLIGHT = 8 * 1024 * 1024;
+	
 	
 	//  "bosun.tsdb.rtp.metrics"
 	
 	
 	/** A counter to track the number of event handling errors */
 	protected final Counter handleEventExceptions = SharedMetricsRegistry.getInstance().counter("disruptor.handler.exceptions");
+	/** A counter to track the number of failed kafka sends */
+	protected final Counter sendFailures = SharedMetricsRegistry.getInstance().counter("disruptor.producer.failures");
+	/** A counter to track the number of producer flushes forced by the in-flight bytes limit */
+	protected final Counter inFlightFlushes = SharedMetricsRegistry.getInstance().counter("disruptor.producer.flushes");
 
 	
 	/** The ring buffer thread factory */
@@ -116,6 +149,23 @@ public class RingBufferService implements EventFactory<ByteBuf>, EventHandler<By
 	/** The buffer factory */
 	protected final BufferManager bufferManager = BufferManager.getInstance();
 	
+	/** The overflow policy handler */
+	protected final RingBufferOverflow<ByteBuf> overflow;
+	/** The maximum bytes sent to kafka and not yet acknowledged */
+	protected final long maxInFlightBytes;
+	/** The bytes sent to kafka and not yet acknowledged */
+	protected final AtomicLong inFlightBytes = new AtomicLong(0L);
+	
+	/** Reads a spilled metric back into a ring buffer event */
+	protected static final EventTranslatorOneArg<ByteBuf, BytesIn> DRAINER = new EventTranslatorOneArg<ByteBuf, BytesIn>() {
+		@Override
+		public void translateTo(final ByteBuf event, final long sequence, final BytesIn in) {
+			final byte[] bytes = new byte[(int)in.readStopBit()];
+			in.read(bytes);
+			event.clear().writeBytes(bytes);
+		}
+	};
+	
 	
 	/**
 	 * Acquires and returns the RingBufferService singleton
@@ -150,6 +200,14 @@ public class RingBufferService implements EventFactory<ByteBuf>, EventHandler<By
 		disruptor.handleEventsWith(this);   // FIXME: need to able to supply several handlers
 		disruptor.start();
 		ringBuffer = disruptor.getRingBuffer();
+		maxInFlightBytes = ConfigurationHelper.getLongSystemThenEnvProperty(RB_CONF_MAX_INFLIGHT, RB_DEFAULT_MAX_INFLIGHT, config);
+		overflow = new RingBufferOverflow<ByteBuf>(
+			"RingBufferService", ringBuffer, 
+			ConfigurationHelper.getEnumSystemThenEnvProperty(OverflowPolicy.class, RB_CONF_OVERFLOW_POLICY, RB_DEFAULT_OVERFLOW_POLICY, config),
+			ConfigurationHelper.getIntSystemThenEnvProperty(RB_CONF_OVERFLOW_SAMPLE, RB_DEFAULT_OVERFLOW_SAMPLE, config),
+			new File(ConfigurationHelper.getSystemThenEnvProperty(RB_CONF_OVERFLOW_DIR, RB_DEFAULT_OVERFLOW_DIR, config)),
+			DRAINER
+		);
 		log.info("<<<<< RawRingBufferDispatcher Started.");		
 	}
 
@@ -174,7 +232,19 @@ public class RingBufferService implements EventFactory<ByteBuf>, EventHandler<By
 	 * @param tags The metric tags
 	 */
 	public void publishDataPoint(final String metric, final long timestamp, final double value, final Map<String, String> tags) {
-		final long seq = ringBuffer.next();
+		final long seq = overflow.claim();
+		if(seq < 0) {
+			overflow.spill(out -> {
+				final ByteBuf buf = bufferManager.buffer(eventBuffInitSize);
+				try {
+					StreamedMetricValue.write(buf, ValueType.STRAIGHTTHROUGH, metric, timestamp, value, tags);
+					spill(buf, out);
+				} finally {
+					buf.release();
+				}
+			});
+			return;
+		}
 		StreamedMetricValue.write(ringBuffer.get(seq), ValueType.STRAIGHTTHROUGH, metric, timestamp, value, tags);
 		ringBuffer.publish(seq);
 	}
@@ -187,10 +257,33 @@ public class RingBufferService implements EventFactory<ByteBuf>, EventHandler<By
 	 * @param tags The metric tags
 	 */
 	public void publishDataPoint(final String metric, final long timestamp, final long value, final Map<String, String> tags) {
-		final long seq = ringBuffer.next();
+		final long seq = overflow.claim();
+		if(seq < 0) {
+			overflow.spill(out -> {
+				final ByteBuf buf = bufferManager.buffer(eventBuffInitSize);
+				try {
+					StreamedMetricValue.write(buf, ValueType.STRAIGHTTHROUGH, metric, timestamp, value, tags);
+					spill(buf, out);
+				} finally {
+					buf.release();
+				}
+			});
+			return;
+		}
 		StreamedMetricValue.write(ringBuffer.get(seq), ValueType.STRAIGHTTHROUGH, metric, timestamp, value, tags);
 		ringBuffer.publish(seq);
 	}
+	
+	/**
+	 * Writes a serialized metric to the overflow queue
+	 * @param buf The serialized metric
+	 * @param out The overflow queue output
+	 */
+	protected static void spill(final ByteBuf buf, final BytesOut out) {
+		final byte[] bytes = ByteBufUtil.getBytes(buf);
+		out.writeStopBit(bytes.length);
+		out.write(bytes);
+	}
 
 
 	/**
@@ -200,20 +293,77 @@ public class RingBufferService implements EventFactory<ByteBuf>, EventHandler<By
 	@Override
 	public void onEvent(final ByteBuf event, final long sequence, final boolean endOfBatch) throws Exception {
 		try {
-			producer.send(new ProducerRecord<String, ByteBuf>(targetTopic, null, StreamedMetricValue.timestamp(event), StreamedMetricValue.metricName(event), event)); 
+			final int size = event.readableBytes();
+			if(inFlightBytes.addAndGet(size) > maxInFlightBytes) {
+				// bounded in-flight bytes: only wait on kafka when too much is outstanding
+				inFlightFlushes.inc();
+				producer.flush();
+			}
+			try {
+				send(producer, new ProducerRecord<String, ByteBuf>(targetTopic, null, StreamedMetricValue.timestamp(event), StreamedMetricValue.metricName(event), event), new Callback() {
+					@Override
+					public void onCompletion(final RecordMetadata metadata, final Exception exception) {
+						inFlightBytes.addAndGet(-size);
+						if(exception!=null) {
+							sendFailures.inc();
+							log.warn("Failed to send metric to [{}]: {}", targetTopic, exception.toString());
+						}
+					}
+				});
+			} catch (Exception ex) {
+				// the callback is not invoked when the send throws
+				inFlightBytes.addAndGet(-size);
+				throw ex;
+			}
 		} catch (Exception x) {
 			handleEventExceptions.inc();
 			log.error("Failed to handle event", x);
 		} finally {
-			if(endOfBatch) producer.flush();
 			event.clear();
 		}
 	}
 	
+	/**
+	 * Sends a ring buffer event buffer. The serializer releases the buffer it serializes, but the event buffer
+	 * belongs to the ring buffer, so it is retained for the serializer. If the send fails before the buffer is serialized,
+	 * whether it throws or completes the callback exceptionally, the retained reference is released here.
+	 * @param producer The producer to send with
+	 * @param record The record holding the event buffer as its value
+	 * @param callback The send completion callback
+	 */
+	protected static void send(final Producer<String, ByteBuf> producer, final ProducerRecord<String, ByteBuf> record, final Callback callback) {
+		final ByteBuf event = record.value();
+		final int refs = event.retain().refCnt();
+		try {
+			producer.send(record, callback);
+		} finally {
+			// serialization happens on the sending thread, so an unchanged count means the serializer never ran
+			if(event.refCnt()==refs) event.release();
+		}
+	}
+
+	/**
+	 * Returns the overflow policy handler
+	 * @return the overflow policy handler
+	 */
+	public RingBufferOverflow<ByteBuf> getOverflow() {
+		return overflow;
+	}
+	
+	/**
+	 * Returns the bytes sent to kafka and not yet acknowledged
+	 * @return the in-flight bytes
+	 */
+	public long getInFlightBytes() {
+		return inFlightBytes.get();
+	}
+	
 	/**
 	 * Stops the ring buffer service
 	 */
 	public void shutdown() {
+		overflow.close();
 		disruptor.shutdown();		
+		producer.flush();
 	}
 }
@@ -0,0 +1,190 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.opentsdb;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Title: OffsetTrackerTest</p>
+ * <p>Description: Tests the commit and rewind decisions of {@link OffsetTracker}</p> 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.opentsdb.OffsetTrackerTest</code></p>
+ */
+
+public class OffsetTrackerTest {
+	/** Test partition 0 */
+	static final TopicPartition TP0 = new TopicPartition("tsdb.metrics", 0);
+	/** Test partition 1 */
+	static final TopicPartition TP1 = new TopicPartition("tsdb.metrics", 1);
+
+	/**
+	 * Tests that only the completed prefix of each partition is committed
+	 */
+	@Test
+	public void testCommitCompletedPrefix() {
+		final OffsetTracker tracker = new OffsetTracker();
+		tracker.track(TP0, 1, 100);
+		tracker.track(TP1, 2, 50);
+		tracker.track(TP0, 3, 101);
+		tracker.track(TP0, 4, 102);
+		tracker.complete(1, true);
+		tracker.complete(4, true);
+		final Map<TopicPartition, Long> rewinds = new HashMap<TopicPartition, Long>();
+		Map<TopicPartition, OffsetAndMetadata> commits = tracker.committable(rewinds);
+		Assert.assertEquals(1, commits.size());
+		Assert.assertEquals(101L, commits.get(TP0).offset());
+		Assert.assertTrue(rewinds.isEmpty());
+		tracker.complete(3, true);
+		tracker.complete(2, true);
+		commits = tracker.committable(rewinds);
+		Assert.assertEquals(103L, commits.get(TP0).offset());
+		Assert.assertEquals(51L, commits.get(TP1).offset());
+		Assert.assertEquals(0, tracker.size());
+	}
+
+	/**
+	 * Tests that a failed write rewinds its partition to the failed offset
+	 */
+	@Test
+	public void testRewindOnFailure() {
+		final OffsetTracker tracker = new OffsetTracker();
+		tracker.track(TP0, 1, 100);
+		tracker.track(TP0, 2, 101);
+		tracker.track(TP0, 3, 102);
+		tracker.complete(1, true);
+		tracker.complete(2, false);
+		tracker.complete(3, true);
+		final Map<TopicPartition, Long> rewinds = new HashMap<TopicPartition, Long>();
+		final Map<TopicPartition, OffsetAndMetadata> commits = tracker.committable(rewinds);
+		Assert.assertEquals(101L, commits.get(TP0).offset());
+		Assert.assertEquals(101L, rewinds.get(TP0).longValue());
+		Assert.assertEquals(0, tracker.size());
+		Assert.assertTrue(tracker.activePartitions().isEmpty());
+	}
+
+	/**
+	 * Tests that a completion arriving before the entry is tracked is not lost
+	 */
+	@Test
+	public void testCompleteBeforeTrack() {
+		final OffsetTracker tracker = new OffsetTracker();
+		tracker.complete(7, true);
+		tracker.track(TP0, 7, 200);
+		final Map<TopicPartition, OffsetAndMetadata> commits = tracker.committable(new HashMap<TopicPartition, Long>());
+		Assert.assertEquals(201L, commits.get(TP0).offset());
+		// completions of dropped entries are ignored
+		tracker.complete(5, true);
+		Assert.assertEquals(0, tracker.size());
+	}
+
+	/**
+	 * Tests that draining the revoked partitions leaves the completed and failed entries of the others to be committed or rewound later
+	 */
+	@Test
+	public void testCommitRevokedOnly() {
+		final OffsetTracker tracker = new OffsetTracker();
+		final TopicPartition tp2 = new TopicPartition("tsdb.metrics", 2);
+		tracker.track(TP0, 1, 100);
+		tracker.track(TP1, 2, 50);
+		tracker.track(tp2, 3, 10);
+		tracker.complete(1, true);
+		tracker.complete(2, true);
+		tracker.complete(3, false);
+		final Map<TopicPartition, Long> rewinds = new HashMap<TopicPartition, Long>();
+		Map<TopicPartition, OffsetAndMetadata> commits = tracker.committable(rewinds, Collections.singleton(TP0));
+		Assert.assertEquals(Collections.singleton(TP0), commits.keySet());
+		Assert.assertEquals(101L, commits.get(TP0).offset());
+		Assert.assertTrue(rewinds.isEmpty());
+		Assert.assertEquals(2, tracker.size());
+		tracker.revoke(Collections.singleton(TP0));
+		commits = tracker.committable(rewinds);
+		Assert.assertEquals(Collections.singleton(TP1), commits.keySet());
+		Assert.assertEquals(51L, commits.get(TP1).offset());
+		Assert.assertEquals(10L, rewinds.get(tp2).longValue());
+		Assert.assertEquals(0, tracker.size());
+	}
+
+	/**
+	 * Tests that a record that keeps failing is skipped once its rewinds are exhausted
+	 */
+	@Test
+	public void testSkipAfterMaxRewinds() {
+		final OffsetTracker tracker = new OffsetTracker(2);
+		final Map<TopicPartition, Long> rewinds = new HashMap<TopicPartition, Long>();
+		long index = 0;
+		for(int i = 0; i < 2; i++) {
+			tracker.track(TP0, ++index, 100);
+			tracker.complete(index, false);
+			rewinds.clear();
+			Assert.assertTrue(tracker.committable(rewinds).isEmpty());
+			Assert.assertEquals(100L, rewinds.get(TP0).longValue());
+		}
+		tracker.track(TP0, ++index, 100);
+		tracker.track(TP0, ++index, 101);
+		tracker.complete(index - 1, false);
+		tracker.complete(index, false);
+		rewinds.clear();
+		Map<TopicPartition, OffsetAndMetadata> commits = tracker.committable(rewinds);
+		Assert.assertEquals(101L, commits.get(TP0).offset());
+		Assert.assertEquals(1, tracker.getSkipped());
+		// the next failing record gets its own rewinds
+		Assert.assertEquals(101L, rewinds.get(TP0).longValue());
+		tracker.track(TP0, ++index, 101);
+		tracker.complete(index, true);
+		rewinds.clear();
+		commits = tracker.committable(rewinds);
+		Assert.assertEquals(102L, commits.get(TP0).offset());
+		Assert.assertTrue(rewinds.isEmpty());
+		Assert.assertEquals(0, tracker.size());
+	}
+
+	/**
+	 * Tests that completions of queue entries that are never tracked, such as entries replayed from the queue,
+	 * are removed once later entries are tracked, including failed ones
+	 */
+	@Test
+	public void testUntrackedCompletionsPurged() {
+		final OffsetTracker tracker = new OffsetTracker();
+		tracker.complete(1, true);
+		tracker.complete(2, false);
+		tracker.track(TP0, 3, 100);
+		tracker.complete(3, true);
+		Assert.assertEquals(3, tracker.size());
+		final Map<TopicPartition, Long> rewinds = new HashMap<TopicPartition, Long>();
+		Map<TopicPartition, OffsetAndMetadata> commits = tracker.committable(rewinds);
+		Assert.assertEquals(101L, commits.get(TP0).offset());
+		Assert.assertTrue(rewinds.isEmpty());
+		Assert.assertEquals(0, tracker.size());
+		tracker.complete(5, true);
+		tracker.track(TP0, 4, 101);
+		tracker.complete(4, false);
+		tracker.track(TP0, 6, 102);
+		commits = tracker.committable(rewinds);
+		Assert.assertTrue(commits.isEmpty());
+		Assert.assertEquals(101L, rewinds.get(TP0).longValue());
+		Assert.assertEquals(0, tracker.size());
+	}
+}
@@ -0,0 +1,140 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.opentsdb;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.openhft.chronicle.core.io.IOTools;
+
+/**
+ * <p>Title: PartitionLaneTest</p>
+ * <p>Description: Tests how {@link KafkaRPC} spreads partitions across its {@link PartitionLane}s, the lanes' time accounting
+ * and how the lanes' queue entries are completed</p> 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.opentsdb.PartitionLaneTest</code></p>
+ */
+
+public class PartitionLaneTest {
+
+	/**
+	 * Tests that consecutive partitions of a topic go to consecutive lanes, so every lane gets an equal share
+	 */
+	@Test
+	public void testPartitionSpread() {
+		for(String topic: new String[]{"tsdb.metrics", "tsdb.meta", "x"}) {
+			for(int laneCount = 1; laneCount <= 8; laneCount++) {
+				final int[] perLane = new int[laneCount];
+				final int first = KafkaRPC.laneIndex(new TopicPartition(topic, 0), laneCount);
+				for(int p = 0; p < laneCount * 3; p++) {
+					final int lane = KafkaRPC.laneIndex(new TopicPartition(topic, p), laneCount);
+					Assert.assertEquals((first + p) % laneCount, lane);
+					perLane[lane]++;
+				}
+				for(int i = 0; i < laneCount; i++) {
+					Assert.assertEquals("Uneven spread for [" + topic + "] over " + laneCount + " lanes", 3, perLane[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests that a partition is pinned to its lane and that lane times are reported in ms. and counted once per update
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLaneTimesMs() throws Exception {
+		final File dir = Files.createTempDirectory("PartitionLaneTest").toFile();
+		final KafkaRPC rpc = new KafkaRPC();
+		final Properties p = new Properties();
+		p.setProperty(KafkaRPC.class.getSimpleName() + ".chronicle.dir", dir.getAbsolutePath());
+		rpc.lanes = new PartitionLane[2];
+		try {
+			for(int i = 0; i < rpc.lanes.length; i++) {
+				rpc.lanes[i] = new PartitionLane(rpc, i, rpc.lanes.length, rpc.metricManager, p);
+			}
+			final TopicPartition tp = new TopicPartition("tsdb.metrics", 3);
+			final PartitionLane lane = rpc.laneFor(tp);
+			Assert.assertSame(rpc.lanes[KafkaRPC.laneIndex(tp, 2)], lane);
+			Assert.assertSame(lane, rpc.laneFor(tp));
+			Assert.assertTrue(lane.getPartitions().contains(tp));
+			final long dataPoints = lane.getDataPoints();
+			lane.update(2000000L, 10);
+			lane.update(2000000L, 10);
+			Assert.assertEquals(dataPoints + 20, lane.getDataPoints());
+			Assert.assertEquals(2.0D, lane.getPerDataPointMeanTimeMs(), 0.0001D);
+			Assert.assertEquals(2.0D, rpc.getLanePerDataPointMeanTimesMs().get(lane.getName()), 0.0001D);
+		} finally {
+			for(PartitionLane lane: rpc.lanes) {
+				if(lane!=null) lane.close();
+			}
+			IOTools.deleteDirWithFiles(dir, 3);
+		}
+	}
+
+	/**
+	 * Tests that in at-least-once mode an entry whose buffer cannot be read is marked failed, rewinding its partition,
+	 * while a fully read entry is committed
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testUnreadableEntryRewinds() throws Exception {
+		final File dir = Files.createTempDirectory("PartitionLaneTest").toFile();
+		final KafkaRPC rpc = new KafkaRPC();
+		rpc.atLeastOnce = true;
+		final Properties p = new Properties();
+		p.setProperty(KafkaRPC.class.getSimpleName() + ".chronicle.dir", dir.getAbsolutePath());
+		rpc.lanes = new PartitionLane[1];
+		try {
+			rpc.lanes[0] = new PartitionLane(rpc, 0, 1, rpc.metricManager, p);
+			final TopicPartition tp = new TopicPartition("tsdb.metrics", 0);
+			final PartitionLane lane = rpc.laneFor(tp);
+			final Map<TopicPartition, Long> rewinds = new HashMap<TopicPartition, Long>();
+			// an empty entry has nothing to add and completes
+			lane.offsetTracker.track(tp, 1L, 500L);
+			Assert.assertEquals(0, rpc.onMetric(lane, 1L, Unpooled.buffer(0)));
+			Map<TopicPartition, OffsetAndMetadata> commits = lane.offsetTracker.committable(rewinds);
+			Assert.assertEquals(501L, commits.get(tp).offset());
+			// an entry that fails to decode part way is not committed
+			final ByteBuf garbage = Unpooled.buffer(64);
+			while(garbage.isWritable()) garbage.writeByte(0x7F);
+			lane.offsetTracker.track(tp, 2L, 501L);
+			Assert.assertEquals(0, rpc.onMetric(lane, 2L, garbage));
+			Assert.assertEquals("Buffer not released", 0, garbage.refCnt());
+			commits = lane.offsetTracker.committable(rewinds);
+			Assert.assertTrue("Unreadable entry committed: " + commits, commits.isEmpty());
+			Assert.assertEquals(Long.valueOf(501L), rewinds.get(tp));
+		} finally {
+			for(PartitionLane lane: rpc.lanes) {
+				if(lane!=null) lane.close();
+			}
+			IOTools.deleteDirWithFiles(dir, 3);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.opentsdb;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.chronicle.TSDBMetricMeta;
+import com.heliosapm.streams.opentsdb.ringbuffer.OverflowPolicy;
+import com.heliosapm.streams.opentsdb.ringbuffer.RingBufferOverflow;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.Sequence;
+
+/**
+ * <p>Title: TSDBChronicleEventPublisherTest</p>
+ * <p>Description: Tests how {@link TSDBChronicleEventPublisher} publishes data points when the cache lookup ring buffer is full</p> 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.opentsdb.TSDBChronicleEventPublisherTest</code></p>
+ */
+
+public class TSDBChronicleEventPublisherTest {
+
+	/**
+	 * Tests that a data point with a cached TSUID is skipped on overflow without being counted as dropped,
+	 * while one with an unknown TSUID is dropped and counted
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testOverflowSkipsCachedTSUID() throws Exception {
+		final File dir = Files.createTempDirectory("TSDBChronicleEventPublisherTest").toFile();
+		final TSDBChronicleEventPublisher pub = new TSDBChronicleEventPublisher(true);
+		pub.cacheDb = new TSUIDCache(new File(dir, "tsuids.db"), 12, 100, 2.0D, 10, pub.metricManager);
+		try {
+			pub.cacheRb = RingBuffer.createSingleProducer(TSDBMetricMeta.FACTORY, 2);
+			pub.cacheRb.addGatingSequences(new Sequence(-1L));
+			pub.cacheRb.publish(pub.cacheRb.next());
+			pub.cacheRb.publish(pub.cacheRb.next());
+			pub.cacheRbOverflow = new RingBufferOverflow<TSDBMetricMeta>("testPublisherDrop", pub.cacheRb, OverflowPolicy.DROP, 1, null, null);
+			final Map<String, String> tags = Collections.singletonMap("host", "a");
+			final byte[] cached = new byte[]{0, 0, 1, 0, 0, 1, 0, 0, 1};
+			final byte[] unknown = new byte[]{0, 0, 2, 0, 0, 1, 0, 0, 1};
+			pub.cacheDb.resolved(cached);
+			pub.publish("sys.cpu", tags, cached);
+			Assert.assertEquals(0L, pub.getCacheRbDropped());
+			pub.publish("sys.mem", tags, unknown);
+			Assert.assertEquals(1L, pub.getCacheRbDropped());
+		} finally {
+			pub.cacheDb.close();
+		}
+	}
+}
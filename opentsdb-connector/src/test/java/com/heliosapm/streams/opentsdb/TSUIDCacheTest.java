@@ -0,0 +1,171 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.opentsdb;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.chronicle.TSDBMetricMeta;
+import com.heliosapm.streams.opentsdb.plugin.PluginMetricManager;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.uid.UniqueId.UniqueIdType;
+
+/**
+ * <p>Title: TSUIDCacheTest</p>
+ * <p>Description: Tests the in-flight coalescing and the generation rotation of the {@link TSUIDCache}</p> 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.opentsdb.TSUIDCacheTest</code></p>
+ */
+
+public class TSUIDCacheTest {
+	/** Serial number for unique metric names, since the counters are shared across instances */
+	static final AtomicInteger serial = new AtomicInteger();
+
+	/**
+	 * Creates a new cache in a temp directory with its own counters
+	 * @param maxEntries The maximum number of TSUIDs in one off-heap generation
+	 * @param hotSize The maximum number of TSUIDs in one hot tier generation
+	 * @return the new cache
+	 * @throws Exception thrown on any error
+	 */
+	static TSUIDCache cache(final long maxEntries, final int hotSize) throws Exception {
+		final File dir = Files.createTempDirectory("TSUIDCacheTest").toFile();
+		return new TSUIDCache(new File(dir, "tsuids.db"), 12, maxEntries, 2.0D, hotSize, new PluginMetricManager("TSUIDCacheTest" + serial.incrementAndGet()));
+	}
+
+	/**
+	 * Creates a test TSUID
+	 * @param id The distinguishing metric id
+	 * @return the TSUID
+	 */
+	static byte[] tsuid(final int id) {
+		return new byte[]{0, 0, (byte)id, 0, 0, 1, 0, 0, 1};
+	}
+
+	/**
+	 * Tests that concurrent misses on the same TSUID make one UID lookup, and that a failed lookup lets the next miss retry
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=30000)
+	public void testConcurrentMissesMakeOneLookup() throws Exception {
+		final int threads = 8;
+		final List<Deferred<EnumMap<UniqueIdType, Map<String, String>>>> lookups = new CopyOnWriteArrayList<Deferred<EnumMap<UniqueIdType, Map<String, String>>>>();
+		final TSDBChronicleEventPublisher pub = new TSDBChronicleEventPublisher(true) {
+			@Override
+			public Deferred<EnumMap<UniqueIdType, Map<String, String>>> testLookup(final TSDBMetricMeta meta) {
+				final Deferred<EnumMap<UniqueIdType, Map<String, String>>> d = new Deferred<EnumMap<UniqueIdType, Map<String, String>>>();
+				lookups.add(d);
+				return d;
+			}
+		};
+		pub.cacheDb = cache(100, 10);
+		try {
+			final Map<String, String> tags = Collections.singletonMap("host", "a");
+			final byte[] tsuid = tsuid(1);
+			final CyclicBarrier start = new CyclicBarrier(threads);
+			final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+			final List<Thread> workers = new ArrayList<Thread>(threads);
+			for(int t = 0; t < threads; t++) {
+				final Thread worker = new Thread(() -> {
+					try {
+						final TSDBMetricMeta meta = TSDBMetricMeta.FACTORY.newInstance().load("sys.cpu", tags, tsuid);
+						start.await();
+						pub.testCacheLookupHandler.onEvent(meta, 0L, true);
+					} catch (Throwable ex) {
+						errors.add(ex);
+					}
+				}, "CacheLookup#" + t);
+				workers.add(worker);
+				worker.start();
+			}
+			for(Thread worker: workers) {
+				worker.join();
+			}
+			Assert.assertTrue(errors.toString(), errors.isEmpty());
+			Assert.assertEquals("Expected one lookup for concurrent misses", 1, lookups.size());
+			Assert.assertEquals(threads - 1, pub.cacheDb.getCoalesced());
+			Assert.assertEquals(1, pub.cacheDb.getInFlight());
+			// fail the lookup: the in-flight resolution ends and the next miss looks up again
+			lookups.get(0).callback(new Exception("Simulated lookup failure"));
+			Assert.assertEquals(0, pub.cacheDb.getInFlight());
+			pub.testCacheLookupHandler.onEvent(TSDBMetricMeta.FACTORY.newInstance().load("sys.cpu", tags, tsuid), 0L, true);
+			Assert.assertEquals(2, lookups.size());
+			// once published, the TSUID is cached and no longer looked up
+			pub.cacheDb.resolved(tsuid);
+			pub.testCacheLookupHandler.onEvent(TSDBMetricMeta.FACTORY.newInstance().load("sys.cpu", tags, tsuid), 0L, true);
+			Assert.assertEquals(2, lookups.size());
+			Assert.assertEquals(0, pub.cacheDb.getInFlight());
+		} finally {
+			pub.cacheDb.close();
+		}
+	}
+
+	/**
+	 * Tests that filling the current generation rotates to the other one, evicting the TSUIDs not seen for a whole generation
+	 * while keeping those promoted by a hit
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRotationEvictsUnseenGeneration() throws Exception {
+		// a hot tier of one keeps the hot tiers from answering for the older TSUIDs
+		final TSUIDCache cache = cache(4, 1);
+		try {
+			for(int i = 0; i < 4; i++) cache.resolved(tsuid(i));
+			Assert.assertEquals(0L, cache.getRotations());
+			cache.resolved(tsuid(4));
+			Assert.assertEquals(1L, cache.getRotations());
+			for(int i = 5; i < 8; i++) cache.resolved(tsuid(i));
+			cache.resolved(tsuid(8));
+			Assert.assertEquals(2L, cache.getRotations());
+			Assert.assertEquals(5, cache.size());
+			for(int i = 0; i < 4; i++) {
+				Assert.assertFalse("TSUID #" + i + " not evicted", cache.contains(tsuid(i)));
+			}
+			Assert.assertEquals(4L, cache.getMisses());
+			// a hit in the previous generation promotes the TSUID into the current one
+			Assert.assertTrue(cache.contains(tsuid(4)));
+			Assert.assertEquals(1L, cache.getOffHeapHits());
+			cache.resolved(tsuid(9));
+			cache.resolved(tsuid(10));
+			cache.resolved(tsuid(11));
+			Assert.assertEquals(3L, cache.getRotations());
+			for(int i = 5; i < 8; i++) {
+				Assert.assertFalse("TSUID #" + i + " not evicted", cache.contains(tsuid(i)));
+			}
+			Assert.assertTrue("Promoted TSUID evicted", cache.contains(tsuid(4)));
+			for(int i = 8; i < 12; i++) {
+				Assert.assertTrue("TSUID #" + i + " missing", cache.contains(tsuid(i)));
+			}
+		} finally {
+			cache.close();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.opentsdb.ringbuffer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.lmax.disruptor.EventFactory;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.Sequence;
+
+/**
+ * <p>Title: RingBufferOverflowTest</p>
+ * <p>Description: Tests the slot claiming and drop accounting of each {@link OverflowPolicy} against a full ring buffer</p> 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.opentsdb.ringbuffer.RingBufferOverflowTest</code></p>
+ */
+
+public class RingBufferOverflowTest {
+	/** The test ring buffer size */
+	static final int RB_SIZE = 4;
+	/** The test ring buffer event factory */
+	static final EventFactory<long[]> FACTORY = () -> new long[1];
+
+	/**
+	 * Creates a full ring buffer gated by the returned consumer sequence
+	 * @param consumer The consumer sequence gating the ring buffer
+	 * @return the full ring buffer
+	 */
+	static RingBuffer<long[]> fullRingBuffer(final Sequence consumer) {
+		final RingBuffer<long[]> rb = RingBuffer.createSingleProducer(FACTORY, RB_SIZE);
+		rb.addGatingSequences(consumer);
+		for(int i = 0; i < RB_SIZE; i++) {
+			rb.publish(rb.next());
+		}
+		Assert.assertEquals(0, rb.remainingCapacity());
+		return rb;
+	}
+
+	/**
+	 * Tests that DROP counts an unclaimed event only when it is offered, not when the caller discards it
+	 */
+	@Test
+	public void testDropCountsOfferedEvents() {
+		final RingBufferOverflow<long[]> overflow = new RingBufferOverflow<long[]>("testDrop", fullRingBuffer(new Sequence(-1L)), OverflowPolicy.DROP, 1, null, null);
+		try {
+			// a caller with a cached TSUID discards the unclaimed event without offering it
+			Assert.assertEquals(-1L, overflow.claim());
+			Assert.assertEquals(0L, overflow.getDropped());
+			Assert.assertEquals(-1L, overflow.claim());
+			Assert.assertFalse(overflow.spill(out -> out.writeLong(1L)));
+			Assert.assertEquals(1L, overflow.getDropped());
+			Assert.assertEquals(0L, overflow.getSpilled());
+		} finally {
+			overflow.close();
+		}
+	}
+
+	/**
+	 * Tests that SAMPLE does not block on a full ring buffer, even for the sampled events
+	 */
+	@Test(timeout=5000)
+	public void testSampleDoesNotBlock() {
+		final Sequence consumer = new Sequence(-1L);
+		final RingBuffer<long[]> rb = fullRingBuffer(consumer);
+		final RingBufferOverflow<long[]> overflow = new RingBufferOverflow<long[]>("testSample", rb, OverflowPolicy.SAMPLE, 2, null, null);
+		try {
+			final long start = System.nanoTime();
+			for(int i = 0; i < 10; i++) {
+				Assert.assertEquals(-1L, overflow.claim());
+				overflow.spill(out -> out.writeLong(1L));
+			}
+			// five sampled retries of at most SAMPLE_MAX_WAIT_NANOS each
+			Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+			Assert.assertEquals(10L, overflow.getDropped());
+			consumer.set(0L);
+			Assert.assertEquals(RB_SIZE, overflow.claim());
+		} finally {
+			overflow.close();
+		}
+	}
+
+	/**
+	 * Tests that a sampled event claims a slot freed while it retries
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=5000)
+	public void testSampleClaimsFreedSlot() throws Exception {
+		final Sequence consumer = new Sequence(-1L);
+		final RingBuffer<long[]> rb = fullRingBuffer(consumer);
+		final RingBufferOverflow<long[]> overflow = new RingBufferOverflow<long[]>("testSampleFreed", rb, OverflowPolicy.SAMPLE, 1, null, null) {
+			@Override
+			protected long trySample() {
+				// the consumer frees a slot after the first failed claim
+				consumer.set(0L);
+				return super.trySample();
+			}
+		};
+		try {
+			Assert.assertEquals(RB_SIZE, overflow.claim());
+			Assert.assertEquals(0L, overflow.getDropped());
+		} finally {
+			overflow.close();
+		}
+	}
+
+	/**
+	 * Tests that BLOCK claims free slots and never reports an overflow
+	 */
+	@Test
+	public void testBlockClaims() {
+		final RingBuffer<long[]> rb = RingBuffer.createSingleProducer(FACTORY, RB_SIZE);
+		rb.addGatingSequences(new Sequence(-1L));
+		final RingBufferOverflow<long[]> overflow = new RingBufferOverflow<long[]>("testBlock", rb, OverflowPolicy.BLOCK, 1, null, null);
+		try {
+			for(int i = 0; i < RB_SIZE; i++) {
+				Assert.assertEquals(i, overflow.claim());
+			}
+			Assert.assertEquals(0L, overflow.getDropped());
+		} finally {
+			overflow.close();
+		}
+	}
+
+	/**
+	 * Tests that SPILL writes an unclaimed event to the overflow queue and drains it back in order once the ring buffer frees up
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=30000)
+	public void testSpillAndDrain() throws Exception {
+		final File spoolDir = Files.createTempDirectory("RingBufferOverflowTest").toFile();
+		final Sequence consumer = new Sequence(-1L);
+		final RingBuffer<long[]> rb = fullRingBuffer(consumer);
+		final RingBufferOverflow<long[]> overflow = new RingBufferOverflow<long[]>("testSpill", rb, OverflowPolicy.SPILL, 1, spoolDir, (event, seq, in) -> event[0] = in.readLong());
+		try {
+			Assert.assertEquals(-1L, overflow.claim());
+			Assert.assertTrue(overflow.spill(out -> out.writeLong(42L)));
+			consumer.set(0L);
+			// the next event is spilled behind the first, whether or not the first has been drained into the freed slot
+			Assert.assertEquals(-1L, overflow.claim());
+			Assert.assertTrue(overflow.spill(out -> out.writeLong(43L)));
+			Assert.assertEquals(2L, overflow.getSpilled());
+			consumer.set(RB_SIZE - 1);
+			while(overflow.getBacklog() > 0) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(42L, rb.get(RB_SIZE)[0]);
+			Assert.assertEquals(43L, rb.get(RB_SIZE + 1)[0]);
+			Assert.assertEquals(0L, overflow.getDropped());
+		} finally {
+			overflow.close();
+		}
+	}
+}
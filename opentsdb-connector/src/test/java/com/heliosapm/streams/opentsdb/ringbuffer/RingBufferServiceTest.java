@@ -0,0 +1,121 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.opentsdb.ringbuffer;
+
+import java.lang.reflect.Proxy;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.buffers.ByteBufSerde;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * <p>Title: RingBufferServiceTest</p>
+ * <p>Description: Tests that the reference retained on a ring buffer event for the serializer is balanced however the send ends</p> 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.opentsdb.ringbuffer.RingBufferServiceTest</code></p>
+ */
+
+public class RingBufferServiceTest {
+	/** The serializer the producer releases the event buffer with */
+	static final ByteBufSerde.ByteBufSerializer SERIALIZER = new ByteBufSerde.ByteBufSerializer();
+
+	/**
+	 * The sending behaviour of a test producer
+	 */
+	interface Sender {
+		/**
+		 * Sends a record
+		 * @param record The record to send
+		 * @param callback The send completion callback
+		 */
+		void send(ProducerRecord<String, ByteBuf> record, Callback callback);
+	}
+
+	/**
+	 * Creates a producer which sends with the passed sender
+	 * @param sender The sender
+	 * @return the producer
+	 */
+	@SuppressWarnings("unchecked")
+	static Producer<String, ByteBuf> producer(final Sender sender) {
+		return (Producer<String, ByteBuf>)Proxy.newProxyInstance(RingBufferServiceTest.class.getClassLoader(), new Class[]{Producer.class}, (proxy, method, args) -> {
+			if("send".equals(method.getName()) && args.length==2) {
+				sender.send((ProducerRecord<String, ByteBuf>)args[0], (Callback)args[1]);
+				return null;
+			}
+			throw new UnsupportedOperationException(method.getName());
+		});
+	}
+
+	/**
+	 * Creates a ring buffer event holding one reference for the ring buffer
+	 * @return the event buffer
+	 */
+	static ByteBuf event() {
+		return Unpooled.directBuffer(16).writeLong(System.currentTimeMillis());
+	}
+
+	/**
+	 * Tests that a serialized send leaves only the ring buffer's reference
+	 */
+	@Test
+	public void testSerializedSend() {
+		final ByteBuf event = event();
+		RingBufferService.send(producer((record, callback) -> SERIALIZER.serialize(record.topic(), record.value())), new ProducerRecord<String, ByteBuf>("t", event), null);
+		Assert.assertEquals(1, event.refCnt());
+		event.release();
+	}
+
+	/**
+	 * Tests that a send which throws before serializing releases the retained reference
+	 */
+	@Test
+	public void testSendThrows() {
+		final ByteBuf event = event();
+		try {
+			RingBufferService.send(producer((record, callback) -> { throw new IllegalStateException("producer closed"); }), new ProducerRecord<String, ByteBuf>("t", event), null);
+			Assert.fail("The send should have thrown");
+		} catch (IllegalStateException ex) {
+			/* No Op */
+		}
+		Assert.assertEquals(1, event.refCnt());
+		event.release();
+	}
+
+	/**
+	 * Tests that a send which fails the callback before serializing releases the retained reference
+	 */
+	@Test
+	public void testSendFailsBeforeSerializing() {
+		final ByteBuf event = event();
+		final Exception[] failure = new Exception[1];
+		RingBufferService.send(producer((record, callback) -> callback.onCompletion(null, new TimeoutException("metadata"))), new ProducerRecord<String, ByteBuf>("t", event), (metadata, exception) -> failure[0] = exception);
+		Assert.assertTrue(failure[0] instanceof TimeoutException);
+		Assert.assertEquals(1, event.refCnt());
+		event.release();
+	}
+}
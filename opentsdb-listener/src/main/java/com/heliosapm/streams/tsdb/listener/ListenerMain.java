@@ -21,19 +21,19 @@ package com.heliosapm.streams.tsdb.listener;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.util.Map;
+import java.util.Date;
 import java.util.Properties;
-import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
 
+import javax.management.ObjectName;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -44,18 +44,18 @@ import com.codahale.metrics.Timer;
 import com.codahale.metrics.Timer.Context;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.heliosapm.streams.chronicle.MessageQueue;
 import com.heliosapm.streams.chronicle.TSDBMetricMeta;
+import com.heliosapm.streams.chronicle.TailerCheckpoint;
 import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
 import com.heliosapm.streams.opentsdb.ringbuffer.RBWaitStrategy;
 import com.heliosapm.streams.sqlbinder.SQLWorker;
 import com.heliosapm.streams.sqlbinder.SQLWorker.ResultSetRowDataHandler;
-import com.heliosapm.streams.tracing.TagKeySorter;
 import com.heliosapm.utils.collections.Props;
 import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.utils.io.StdInCommandHandler;
 import com.heliosapm.utils.jmx.JMXHelper;
 import com.heliosapm.utils.jmx.JMXManagedThreadFactory;
-import com.heliosapm.utils.lang.StringHelper;
 import com.heliosapm.utils.time.SystemClock;
 import com.heliosapm.utils.time.SystemClock.ElapsedTime;
 import com.heliosapm.utils.url.URLHelper;
@@ -73,6 +73,7 @@ import net.openhft.chronicle.queue.RollCycles;
 import net.openhft.chronicle.queue.impl.single.SingleChronicleQueueBuilder;
 import net.openhft.chronicle.threads.LongPauser;
 import net.openhft.chronicle.threads.Pauser;
+import net.openhft.chronicle.wire.DocumentContext;
 import net.openhft.chronicle.wire.WireType;
 
 /**
@@ -82,7 +83,7 @@ import net.openhft.chronicle.wire.WireType;
  * <p><code>com.heliosapm.streams.tsdb.listener.ListenerMain</code></p>
  */
 
-public class ListenerMain implements Closeable, Runnable {
+public class ListenerMain implements Closeable, Runnable, ListenerMainMBean {
 	/** The number of processors */
 	public static final int CORES = Runtime.getRuntime().availableProcessors();
 
@@ -121,6 +122,14 @@ public class ListenerMain implements Closeable, Runnable {
 	/** The default out queue data format setting (BINARY) */
 	public static final boolean DEFAULT_INQ_TEXT = false;
 	
+	/** The config key name for the name of the in queue tailer checkpoint */
+	public static final String CONFIG_CHECKPOINT_NAME = "listener.checkpoint.name";
+	/** The default name of the in queue tailer checkpoint */
+	public static final String DEFAULT_CHECKPOINT_NAME = "tsdb-listener";
+	
+	/** The listener's JMX ObjectName */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.streams.tsdb.listener:service=ListenerMain");
+	
 	/** The config key name for the tag key pk lookup cache spec */
 	public static final String CONFIG_TAGK_CACHE = "listener.cachespec.tagk";
 	/** The default tag key pk lookup cache spec */
@@ -157,6 +166,8 @@ public class ListenerMain implements Closeable, Runnable {
 	protected final SQLWorker sqlWorker;
 	/** The Datasource providing connections to save meta to the DB */
 	protected final DefaultDataSource ds;
+	/** The group commit writer that saves the dispatched metas to the DB */
+	protected final MetaBatchWriter metaWriter;
 	
 	
 	/** Instance logger */
@@ -215,6 +226,18 @@ public class ListenerMain implements Closeable, Runnable {
 	protected ChronicleQueue inQueue = null;
 	/** The in queue tailer */
 	protected ExcerptTailer tailer = null;
+	/** A tailer used only to find the end of the in queue and to count the lag */
+	protected ExcerptTailer endTailer = null;
+	/** The checkpoint recording the in queue index of the last meta committed to the DB */
+	protected TailerCheckpoint checkpoint = null;
+	/** The in queue index of the last meta read */
+	protected volatile long readIndex = TailerCheckpoint.NO_INDEX;
+	/** Indicates a rewind has been requested */
+	protected volatile boolean rewindRequested = false;
+	/** The requested rewind in queue index */
+	protected final AtomicLong rewindIndex = new AtomicLong(TailerCheckpoint.NO_INDEX);
+	/** The requested rewind timestamp */
+	protected final AtomicLong rewindTime = new AtomicLong(-1L);
 	
 	// ===============================================================================================
 	//		RingBuffer Config
@@ -306,59 +329,22 @@ public class ListenerMain implements Closeable, Runnable {
 			concurrency.incrementAndGet();
 			try {
 				final Context ctx = dispatchHandlerTimer.time();
-				Connection conn = null;
-				PreparedStatement ps = null;
 				try {
 					if(endOfBatch) {
 						final long batchSize = sequence - lastBatchEnd;
 						lastBatchEnd = sequence;
 						log.info("Processing TSDB Metric: {}/{}. Batch Size: {}", sequence, endOfBatch, batchSize);
-					}				
-					conn = ds.getConnection();
-					final String metricUid = tagMetricCache.get(meta.getMetricName(), uIDLoader("TSD_METRIC", meta.getMetricName(), meta.getMetricUid(), conn));
-					final Map<String, String> tagUids = new TreeMap<String, String>(TagKeySorter.INSTANCE);
-					
-					for(Map.Entry<String, String> tag: meta.getTags().entrySet()) {
-						final String tagKey = tag.getKey();
-						final String tagValue = tag.getValue();
-						final String tagKeyUid = meta.getTagKeyUids().get(tagKey);
-						final String tagValueUid = meta.getTagValueUids().get(tagValue);
-						final String tagPairUid = tagPairCache.get(tagKey + "=" + tagValue, 
-								tagPairLoader(tagKey, tagKeyUid, tagValue, tagValueUid, conn)
-							);
-						conn.commit();
-						tagUids.put(tagKey, tagPairUid);
 					}
-					final String fqn = meta.getMetricName() + ":" + meta.getTags();
-					final String tsuid = StringHelper.bytesToHex(meta.getTsuid());
-					if(sqlWorker.sqlForInt(conn, TSMETA_COUNT_SQL, 0, fqn, tsuid)==0) {
-					//if(sqlWorker.sqlForInt(conn, "SELECT COUNT(*) FROM TSD_TSMETA WHERE FQN = ?", 0, fqn)==0) {
-						final Object[][] keys = sqlWorker.execute(conn, TSMETA_INSERT_SQL, metricUid, fqn, tsuid);
-						final long tsuidKey = ((Number)keys[0][0]).longValue();
-						int porder = 1;
-						final int last = tagUids.size();
-						ps = null;
-						for(final String tagPairUid: tagUids.values()) {
-							// FQNID,XUID,PORDER,NODE
-							ps = sqlWorker.batch(conn, ps, FQN_TAGPAIR_INSERT_SQL, tsuidKey, tagPairUid, porder, porder==last ? "B" : "L");
+					// the ring buffer slot is not reclaimed until the end of the batch, so the meta is
+					// held by the writer and reset once its batch is committed
+					if(metaWriter.add(meta, endOfBatch)) {
+						// the committed index never passes a meta that failed to commit, so every event up to it is in the DB
+						final long committed = metaWriter.getCommittedIndex();
+						if(committed!=TailerCheckpoint.NO_INDEX && committed!=checkpoint.getIndex()) {
+							checkpoint.checkpoint(committed);
 						}
-						ps.executeBatch();
 					}
-					
-					// insert fqn tagpairs
-					conn.commit();
-//					final long index = meta.getIndex();
-//					final boolean moved = updater.moveToIndex(index);
-//					final Bytes<?> bytes = updater
-//						.wire()
-//						.bytes()
-//						.bytesForWrite()
-//						
-//					bytes.writeByte(TSDBMetricMeta.META_PROCESSED);
 				} finally {
-					if(ps!=null) try { ps.close(); } catch (Exception x) {/* No Op */}
-					if(conn!=null) try { conn.close(); } catch (Exception x) {/* No Op */}
-					meta.reset();
 					ctx.stop();
 				}
 			} finally {
@@ -403,6 +389,16 @@ public class ListenerMain implements Closeable, Runnable {
 				.rollCycle(inQueueRollCycle)
 				.wireType(inQueueTextFormat ? WireType.JSON : WireType.BINARY)
 				.build();
+		endTailer = inQueue.createTailer();
+		final String checkpointName = ConfigurationHelper.getSystemThenEnvProperty(CONFIG_CHECKPOINT_NAME, DEFAULT_CHECKPOINT_NAME, properties);
+		try {
+			checkpoint = new TailerCheckpoint(inQueueDir, checkpointName);
+		} catch (IOException iex) {
+			throw new RuntimeException("Failed to open the in queue checkpoint [" + checkpointName + "]", iex);
+		}
+		log.info("InQueue Checkpoint: [{}]", checkpoint);
+		SharedMetricsRegistry.getInstance().gauge("listener.lag.events", this::getLagEvents);
+		SharedMetricsRegistry.getInstance().gauge("listener.lag.seconds", this::getLagSeconds);
 		
 		dispatchRbThreads = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_DISPATCHRB_THREADS, DEFAULT_DISPATCHRB_THREADS, properties);
 		dispatchRbSize = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_DISPATCHRB_SIZE, DEFAULT_DISPATCHRB_SIZE, properties); 
@@ -415,6 +411,7 @@ public class ListenerMain implements Closeable, Runnable {
 		
 		ds = DefaultDataSource.getInstance(properties);
 		sqlWorker = SQLWorker.getInstance(ds.getDataSource());
+		metaWriter = new MetaBatchWriter(properties, ds, sqlWorker, tagKeyCache, tagValueCache, tagMetricCache, tagPairCache);
 		
 		final CountDownLatch keyLoadLatch = asynchLoadUIDCache("tagKeyCache", tagKeyCache, "SELECT XUID, NAME FROM TSD_TAGK");
 		final CountDownLatch valueLoadLatch = asynchLoadUIDCache("tagValueCache", tagValueCache, "SELECT XUID, NAME FROM TSD_TAGV");
@@ -432,6 +429,11 @@ public class ListenerMain implements Closeable, Runnable {
 		running.set(true);
 		dispatchRb = dispatchRbDisruptor.start();
 		runThread.start();
+		try {
+			JMXHelper.getHeliosMBeanServer().registerMBean(this, OBJECT_NAME);
+		} catch (Exception ex) {
+			log.warn("Failed to register the listener management interface [{}]", OBJECT_NAME, ex);
+		}
 		
 		
 		
@@ -499,49 +501,6 @@ public class ListenerMain implements Closeable, Runnable {
 	}
 	
 	
-	// ===============================================================================================
-	//		Guava Cache Loader Callables
-	// ===============================================================================================
-	/** The tag cache loader  */
-	protected Callable<String> uIDLoader(final String tableName, final String name, final String xuid, final Connection conn) {
-		final String SELECT_SQL = String.format("SELECT XUID FROM %s WHERE NAME = ?", tableName);
-		final String INSERT_SQL = String.format("INSERT INTO %s (XUID, VERSION, NAME, CREATED) VALUES(?,?,?,?)", tableName);		
-		return new Callable<String>() {
-			@Override
-			public String call() throws Exception {
-				if(sqlWorker.sqlForString(conn, null, SELECT_SQL, name)==null) {
-					sqlWorker.execute(conn, INSERT_SQL, xuid, 1, name, System.currentTimeMillis());
-				}
-				return xuid;
-			}
-		};
-	}
-
-	
-	
-	/** The tag pair loader callable */
-	protected Callable<String> tagPairLoader(final String tagKey, final String tagKeyUid, final String tagValue, final String tagValueUid, final Connection conn) {
-		final String SELECT_SQL = "SELECT XUID FROM TSD_TAGPAIR WHERE TAGK = ? AND TAGV = ?";
-		final String INSERT_SQL = "INSERT INTO TSD_TAGPAIR (XUID, TAGK, TAGV, NAME) VALUES(?,?,?,?)";		
-		return new Callable<String>() {
-			@Override
-			public String call() throws Exception {
-				final String name = StringHelper.fastConcat(tagKey, "=", tagValue);
-				final String xuid = StringHelper.fastConcat(tagKeyUid, tagValueUid);				
-				if(sqlWorker.sqlForString(conn, null, SELECT_SQL, tagKeyUid, tagValueUid)==null) {
-					tagKeyCache.get(tagKey, uIDLoader("TSD_TAGK", tagKey, tagKeyUid, conn));
-					tagValueCache.get(tagValue, uIDLoader("TSD_TAGV", tagValue, tagValueUid, conn));
-					sqlWorker.execute(conn, INSERT_SQL, xuid, tagKeyUid, tagValueUid, name);
-				}
-				return xuid;
-			}
-		};
-	}
-
-	
-	
-
-	
 	/**
 	 * @param args
 	 */
@@ -626,6 +585,9 @@ public class ListenerMain implements Closeable, Runnable {
 			log.warn("Error closing InboundQueue: {}", ex);
 		}		
 		stopDisruptor("Dispatch", dispatchRbDisruptor);		
+		try { checkpoint.close(); } catch (Exception x) {/* No Op */}
+		log.info("InQueue Checkpoint Closed: [{}]", checkpoint);
+		try { JMXHelper.getHeliosMBeanServer().unregisterMBean(OBJECT_NAME); } catch (Exception x) {/* No Op */}
 		log.info("<<<<< EventListener Stopped.");
 		
 	}
@@ -659,24 +621,23 @@ public class ListenerMain implements Closeable, Runnable {
 	public void run() {
 		final Pauser pauser = new LongPauser(5, 5, 10, 100, TimeUnit.MILLISECONDS);     		
 		tailer = inQueue.createTailer();
+		resume(tailer);
 		final TSDBMetricMeta meta = TSDBMetricMeta.FACTORY.newInstance();
 		while(running.get()) {
 			try {
-//				boolean reset = false;				
-				while(running.get() && 
-						tailer.readBytes(meta.reset())) {
+				while(running.get()) {
+					if(rewindRequested) rewind(tailer);
+					final long index;
+					try (final DocumentContext dc = tailer.readingDocument()) {
+						if(!dc.isPresent()) break;
+						index = dc.index();
+						meta.reset().readMarshallable(dc.wire().bytes());
+					}
+					readIndex = index;
 					openRequests.increment();
-//					if(meta.isProcessed()) {
-//						continue;
-//					}
-					//meta.index(tailer.index());					
-//					if(!reset) {
-//						reset = true;
-//						pauser.reset();
-//					}
 					final long sequence = dispatchRb.next();
 					final TSDBMetricMeta event = dispatchRb.get(sequence);
-					event.load(meta).resolved(meta);
+					event.load(meta.index(index)).resolved(meta);
 					dispatchRb.publish(sequence);
 				}				
 				pauser.pause();
@@ -693,6 +654,145 @@ public class ListenerMain implements Closeable, Runnable {
 	
 
 
+	/**
+	 * Positions the passed tailer immediately after the last meta committed to the DB
+	 * @param tailer The tailer to position
+	 */
+	protected void resume(final ExcerptTailer tailer) {
+		final long cpIndex = checkpoint.getIndex();
+		if(checkpoint.resume(tailer)) {
+			log.info("Resumed in queue after checkpointed index [{}]", Long.toHexString(cpIndex));
+		} else if(cpIndex==TailerCheckpoint.NO_INDEX) {
+			log.info("No in queue checkpoint, reading from start");
+		} else {
+			log.warn("Checkpointed index [{}] no longer in the in queue, reading from start", Long.toHexString(cpIndex));
+		}
+	}
+	
+	/**
+	 * Executes a rewind requested through JMX. Called on the run thread.
+	 * @param tailer The tailer to rewind
+	 */
+	protected void rewind(final ExcerptTailer tailer) {
+		rewindRequested = false;
+		final long index = rewindIndex.getAndSet(TailerCheckpoint.NO_INDEX);
+		if(index!=TailerCheckpoint.NO_INDEX) {
+			if(tailer.moveToIndex(index)) {
+				log.info("Rewound in queue to index [{}]", Long.toHexString(index));
+			} else {
+				log.warn("Index [{}] not found in the in queue. Rewind ignored.", Long.toHexString(index));
+			}
+		}
+		final long time = rewindTime.getAndSet(-1L);
+		if(time!=-1L) {
+			if(MessageQueue.moveToTime(tailer, inQueueRollCycle, inQueueDir, time)) {
+				log.info("Rewound in queue to [{}], index [{}]", new Date(time), Long.toHexString(tailer.index()));
+			} else {
+				log.warn("No in queue events found after [{}]. Rewind ignored.", new Date(time));
+			}
+		}
+	}
+	
+	/**
+	 * Returns the index of the last event in the in queue
+	 * @return the last index or {@link TailerCheckpoint#NO_INDEX} if the current roll cycle is empty
+	 */
+	protected synchronized long endIndex() {
+		// the end tailer is positioned at the index the next event will be written at
+		final long next = endTailer.toEnd().index();
+		return inQueueRollCycle.toSequenceNumber(next)==0 ? TailerCheckpoint.NO_INDEX : next - 1;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tsdb.listener.ListenerMainMBean#getInQueueDirectory()
+	 */
+	@Override
+	public String getInQueueDirectory() {
+		return inQueueDir.getAbsolutePath();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tsdb.listener.ListenerMainMBean#getCheckpointIndex()
+	 */
+	@Override
+	public long getCheckpointIndex() {
+		return checkpoint.getIndex();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tsdb.listener.ListenerMainMBean#getCheckpointTime()
+	 */
+	@Override
+	public long getCheckpointTime() {
+		return checkpoint.getTimestamp();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tsdb.listener.ListenerMainMBean#getReadIndex()
+	 */
+	@Override
+	public long getReadIndex() {
+		return readIndex;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tsdb.listener.ListenerMainMBean#getLagEvents()
+	 */
+	@Override
+	public synchronized long getLagEvents() {
+		final long end = endIndex();
+		if(end==TailerCheckpoint.NO_INDEX) return 0L;
+		return MessageQueue.lag(inQueueRollCycle, inQueueDir, endTailer, checkpoint.getIndex(), end);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tsdb.listener.ListenerMainMBean#getLagSeconds()
+	 */
+	@Override
+	public long getLagSeconds() {
+		if(getLagEvents()==0L) return 0L;
+		return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - checkpoint.getTimestamp());
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tsdb.listener.ListenerMainMBean#getPendingMetas()
+	 */
+	@Override
+	public int getPendingMetas() {
+		return metaWriter.getPendingCount();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tsdb.listener.ListenerMainMBean#rewindToIndex(long)
+	 */
+	@Override
+	public void rewindToIndex(final long index) {
+		if(index < 0) throw new IllegalArgumentException("Invalid index: " + index);
+		rewindIndex.set(index);
+		rewindRequested = true;
+		log.info("Requested in queue rewind to index [{}]", Long.toHexString(index));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tsdb.listener.ListenerMainMBean#rewindToTime(long)
+	 */
+	@Override
+	public void rewindToTime(final long timestamp) {
+		if(timestamp < 0) throw new IllegalArgumentException("Invalid timestamp: " + timestamp);
+		rewindTime.set(timestamp);
+		rewindRequested = true;
+		log.info("Requested in queue rewind to [{}]", new Date(timestamp));
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see java.io.Closeable#close()
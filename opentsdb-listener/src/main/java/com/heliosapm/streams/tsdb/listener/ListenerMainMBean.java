@@ -0,0 +1,84 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.tsdb.listener;
+
+/**
+ * <p>Title: ListenerMainMBean</p>
+ * <p>Description: JMX MBean interface for {@link ListenerMain} </p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.tsdb.listener.ListenerMainMBean</code></p>
+ */
+
+public interface ListenerMainMBean {
+	/**
+	 * Returns the in queue directory
+	 * @return the in queue directory
+	 */
+	public String getInQueueDirectory();
+
+	/**
+	 * Returns the in queue index of the last meta committed to the DB
+	 * @return the checkpointed index or -1 if nothing has been committed
+	 */
+	public long getCheckpointIndex();
+
+	/**
+	 * Returns the UTC long timestamp of the last checkpoint
+	 * @return the timestamp of the last checkpoint
+	 */
+	public long getCheckpointTime();
+
+	/**
+	 * Returns the in queue index of the last meta read from the in queue
+	 * @return the last read index or -1 if nothing has been read
+	 */
+	public long getReadIndex();
+
+	/**
+	 * Returns the number of in queue events not yet committed to the DB
+	 * @return the lag in events
+	 */
+	public long getLagEvents();
+
+	/**
+	 * Returns the number of seconds since the last checkpoint if there are uncommitted in queue events
+	 * @return the lag in seconds
+	 */
+	public long getLagSeconds();
+
+	/**
+	 * Returns the number of metas waiting for a group commit
+	 * @return the number of pending metas
+	 */
+	public int getPendingMetas();
+
+	/**
+	 * Rewinds the in queue tailer so that it replays from the passed index
+	 * @param index The in queue index to replay from
+	 */
+	public void rewindToIndex(long index);
+
+	/**
+	 * Rewinds the in queue tailer so that it replays from the start of the roll cycle containing the passed time,
+	 * or from the first later roll cycle if that one has been deleted
+	 * @param timestamp The UTC long timestamp to replay from
+	 */
+	public void rewindToTime(long timestamp);
+}
@@ -0,0 +1,564 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.tsdb.listener;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.Timer.Context;
+import com.google.common.cache.Cache;
+import com.heliosapm.streams.chronicle.TSDBMetricMeta;
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
+import com.heliosapm.streams.sqlbinder.DBType;
+import com.heliosapm.streams.sqlbinder.SQLWorker;
+import com.heliosapm.streams.sqlbinder.SQLWorker.ResultSetRowDataHandler;
+import com.heliosapm.streams.tracing.TagKeySorter;
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.lang.StringHelper;
+
+/**
+ * <p>Title: MetaBatchWriter</p>
+ * <p>Description: Group commit writer for {@link TSDBMetricMeta}s. Metas are gathered until the end of a dispatch ring buffer batch,
+ * or until the configured batch size or wait time is reached, and then written in one transaction. The metric, tag key, tag value
+ * and tag pair UIDs of the whole batch that are not cached are resolved with set based <b><code>IN</code></b> queries, the missing
+ * rows are inserted with JDBC batches, and the UID caches are only updated once the transaction commits.</p>
+ * <p>A batch that fails is rolled back and retained, and is written again ahead of the next batch, so the committed
+ * index never moves past a meta that is not in the DB. Once the configured number of metas are retained, the writer
+ * stops accepting metas and retries on the dispatch thread until the batch commits.</p>
+ * <p>Not thread safe. Called from the single dispatch handler thread.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.tsdb.listener.MetaBatchWriter</code></p>
+ */
+
+public class MetaBatchWriter {
+	/** The config key name for the maximum number of metas written in one transaction */
+	public static final String CONFIG_BATCH_SIZE = "listener.batch.size";
+	/** The default maximum number of metas written in one transaction */
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+	/** The config key name for the maximum time in ms. a meta waits for the end of its batch */
+	public static final String CONFIG_BATCH_WAIT = "listener.batch.wait";
+	/** The default maximum time in ms. a meta waits for the end of its batch */
+	public static final long DEFAULT_BATCH_WAIT = 1000L;
+	/** The config key name for the maximum number of failed metas retained before the writer blocks until they commit */
+	public static final String CONFIG_MAX_RETAINED = "listener.batch.maxretained";
+	/** The default maximum number of failed metas retained before the writer blocks until they commit */
+	public static final int DEFAULT_MAX_RETAINED = 16384;
+
+	/** The smallest IN list size. Lists are padded to a power of two so the SQLWorker compiles a bounded number of binders */
+	static final int MIN_IN_LIST = 8;
+
+	/** The UID lookup SQL template by name */
+	public static final String UID_SELECT_SQL = "SELECT XUID, NAME FROM %s WHERE NAME IN (%s)";
+	/** The UID insert SQL template */
+	public static final String UID_INSERT_SQL = "INSERT INTO %s (XUID, VERSION, NAME, CREATED) VALUES(?,?,?,?)";
+	/** The tag pair lookup SQL template by XUID */
+	public static final String TAGPAIR_SELECT_SQL = "SELECT XUID, NAME FROM TSD_TAGPAIR WHERE XUID IN (%s)";
+	/** The tag pair insert SQL */
+	public static final String TAGPAIR_INSERT_SQL = "INSERT INTO TSD_TAGPAIR (XUID, TAGK, TAGV, NAME) VALUES(?,?,?,?)";
+	/** The TSMeta lookup SQL template by TSUID */
+	public static final String TSMETA_SELECT_SQL = "SELECT FQNID, TSUID FROM TSD_TSMETA WHERE TSUID IN (%s)";
+	/** The TSMeta insert SQL */
+	public static final String TSMETA_INSERT_SQL = "INSERT INTO TSD_TSMETA (METRIC_UID,FQN,TSUID) VALUES (?,?,?)";
+
+	/** The SQLWorker providing JDBC services */
+	protected final SQLWorker sqlWorker;
+	/** The Datasource providing connections */
+	protected final DefaultDataSource ds;
+	/** The DB type */
+	protected final DBType dbType;
+	/** The maximum number of binds in one IN list */
+	protected final int maxInList;
+	/** The maximum number of metas written in one transaction */
+	protected final int batchSize;
+	/** The maximum time in ms. a meta waits for the end of its batch */
+	protected final long batchWait;
+	/** The maximum number of failed metas retained before the writer blocks until they commit */
+	protected final int maxRetained;
+
+	/** The tag key cache */
+	protected final Cache<String, String> tagKeyCache;
+	/** The tag value cache */
+	protected final Cache<String, String> tagValueCache;
+	/** The metric name cache */
+	protected final Cache<String, String> tagMetricCache;
+	/** The tag pair cache */
+	protected final Cache<String, String> tagPairCache;
+
+	/** The metas waiting to be written */
+	protected final List<TSDBMetricMeta> pending;
+	/** Copies of the metas of failed batches, written again ahead of the pending metas */
+	protected final List<TSDBMetricMeta> retained = new ArrayList<TSDBMetricMeta>();
+	/** The time the first pending meta was added */
+	protected long pendingSince = -1L;
+	/** The in queue index of the last committed meta */
+	protected volatile long committedIndex = -1L;
+
+	/** A histogram of the number of metas written per transaction */
+	protected final Histogram batchSizes = SharedMetricsRegistry.getInstance().histogram("metaBatchSize");
+	/** A histogram of the number of TSMetas inserted per transaction */
+	protected final Histogram batchInserts = SharedMetricsRegistry.getInstance().histogram("metaBatchInserts");
+	/** A timer of the elapsed time of each batch commit */
+	protected final Timer commitTimer = SharedMetricsRegistry.getInstance().timer("metaBatchCommit");
+	/** A timer of the elapsed time of each batch write, including the commit */
+	protected final Timer batchTimer = SharedMetricsRegistry.getInstance().timer("metaBatchWrite");
+	/** A counter of failed batches */
+	protected final Counter batchFailures = SharedMetricsRegistry.getInstance().counter("metaBatchFailures");
+
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+
+	/**
+	 * Creates a new MetaBatchWriter
+	 * @param properties The listener configuration
+	 * @param ds The Datasource providing connections
+	 * @param sqlWorker The SQLWorker providing JDBC services
+	 * @param tagKeyCache The tag key cache
+	 * @param tagValueCache The tag value cache
+	 * @param tagMetricCache The metric name cache
+	 * @param tagPairCache The tag pair cache
+	 */
+	public MetaBatchWriter(final Properties properties, final DefaultDataSource ds, final SQLWorker sqlWorker,
+			final Cache<String, String> tagKeyCache, final Cache<String, String> tagValueCache,
+			final Cache<String, String> tagMetricCache, final Cache<String, String> tagPairCache) {
+		this.ds = ds;
+		this.sqlWorker = sqlWorker;
+		this.tagKeyCache = tagKeyCache;
+		this.tagValueCache = tagValueCache;
+		this.tagMetricCache = tagMetricCache;
+		this.tagPairCache = tagPairCache;
+		batchSize = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_BATCH_SIZE, DEFAULT_BATCH_SIZE, properties);
+		batchWait = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_BATCH_WAIT, DEFAULT_BATCH_WAIT, properties);
+		maxRetained = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_RETAINED, DEFAULT_MAX_RETAINED, properties);
+		pending = new ArrayList<TSDBMetricMeta>(batchSize);
+		dbType = DBType.getMatchingDBType(sqlWorker.getDBURL());
+		// Oracle rejects IN lists with more than 1000 expressions
+		maxInList = dbType==DBType.ORACLE ? 1000 : 4096;
+		log.info("MetaBatchWriter: dbType: {}, batchSize: {}, batchWait: {} ms, maxRetained: {}, maxInList: {}", dbType, batchSize, batchWait, maxRetained, maxInList);
+	}
+
+	/**
+	 * Adds a meta to the pending batch, writing the batch if this is the end of the ring buffer batch
+	 * or the batch size or wait time has been reached. Each meta is reset once it is written.
+	 * The passed meta must not be reused by the caller until it is written.
+	 * @param meta The meta to add
+	 * @param endOfBatch true if this is the last available event in the ring buffer
+	 * @return true if the batch was written, false if the meta is pending
+	 * @throws Exception thrown if the batch write fails
+	 */
+	public boolean add(final TSDBMetricMeta meta, final boolean endOfBatch) throws Exception {
+		final long now = System.currentTimeMillis();
+		if(pendingSince==-1L) pendingSince = now;
+		pending.add(meta);
+		if(endOfBatch || pending.size() + retained.size() >= batchSize || now - pendingSince >= batchWait) {
+			flush();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Writes and commits the retained and pending metas. If the write fails, the transaction is rolled back
+	 * and the pending metas are retained to be written again with the next batch. If the number of retained
+	 * metas has reached the configured maximum, the write is retried every batch wait period until it commits.
+	 * @throws Exception thrown if the batch write fails
+	 * @throws InterruptedException thrown if the calling thread is interrupted while retrying
+	 */
+	public void flush() throws Exception {
+		if(pending.isEmpty() && retained.isEmpty()) return;
+		try {
+			commit();
+		} catch (Exception ex) {
+			retain();
+			if(retained.size() < maxRetained) throw ex;
+			log.warn("{} metas retained after failed batches. Retrying every {} ms until committed", retained.size(), batchWait, ex);
+			while(true) {
+				Thread.sleep(batchWait);
+				try {
+					commit();
+					log.info("Retained metas committed. Resuming");
+					return;
+				} catch (Exception rex) {
+					log.warn("Retained batch retry failed: {}", rex.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes and commits the retained and pending metas in one transaction, advancing the committed index to the
+	 * last meta written. The transaction is rolled back if the write fails, and the pending metas are left in place.
+	 * @throws Exception thrown if the batch write fails
+	 */
+	protected void commit() throws Exception {
+		final List<TSDBMetricMeta> batch;
+		if(retained.isEmpty()) {
+			batch = pending;
+		} else {
+			batch = new ArrayList<TSDBMetricMeta>(retained.size() + pending.size());
+			batch.addAll(retained);
+			batch.addAll(pending);
+		}
+		final int size = batch.size();
+		long lastIndex = -1L;
+		for(int i = size-1; i >= 0 && lastIndex==-1L; i--) {
+			lastIndex = batch.get(i).getIndex();
+		}
+		final Context ctx = batchTimer.time();
+		final Map<String, String> metrics = new HashMap<String, String>();
+		final Map<String, String> tagKeys = new HashMap<String, String>();
+		final Map<String, String> tagValues = new HashMap<String, String>();
+		final Map<String, String> tagPairs = new HashMap<String, String>();
+		Connection conn = null;
+		try {
+			conn = getConnection();
+			final int inserted = write(conn, batch, metrics, tagKeys, tagValues, tagPairs);
+			final Context commitCtx = commitTimer.time();
+			conn.commit();
+			commitCtx.stop();
+			// only cache UIDs once they are committed
+			tagMetricCache.putAll(metrics);
+			tagKeyCache.putAll(tagKeys);
+			tagValueCache.putAll(tagValues);
+			tagPairCache.putAll(tagPairs);
+			// metas arrive in queue order, so this only moves back when the in queue is rewound
+			if(lastIndex!=-1L) committedIndex = lastIndex;
+			batchSizes.update(size);
+			batchInserts.update(inserted);
+			for(TSDBMetricMeta meta: pending) {
+				meta.reset();
+			}
+			pending.clear();
+			retained.clear();
+			pendingSince = -1L;
+		} catch (Exception ex) {
+			batchFailures.inc();
+			if(conn!=null) try { conn.rollback(); } catch (Exception x) {/* No Op */}
+			throw ex;
+		} finally {
+			if(conn!=null) try { conn.close(); } catch (Exception x) {/* No Op */}
+			ctx.stop();
+		}
+	}
+
+	/**
+	 * Moves copies of the pending metas to the retained metas and resets the pending metas
+	 * so their ring buffer slots can be reused
+	 */
+	protected void retain() {
+		for(TSDBMetricMeta meta: pending) {
+			retained.add(meta.clone());
+			meta.reset();
+		}
+		pending.clear();
+		pendingSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * Acquires the connection a batch is written and committed with
+	 * @return a connection
+	 * @throws SQLException thrown if the datasource fails to provide a connection
+	 */
+	protected Connection getConnection() throws SQLException {
+		return ds.getConnection();
+	}
+
+	/**
+	 * Returns the in queue index of the last committed meta
+	 * @return the last committed index or -1 if nothing has been committed
+	 */
+	public long getCommittedIndex() {
+		return committedIndex;
+	}
+
+	/**
+	 * Returns the number of metas waiting to be written, including the retained metas of failed batches
+	 * @return the number of pending metas
+	 */
+	public int getPendingCount() {
+		return pending.size() + retained.size();
+	}
+
+	/**
+	 * Returns the number of metas of failed batches waiting to be written again
+	 * @return the number of retained metas
+	 */
+	public int getRetainedCount() {
+		return retained.size();
+	}
+
+	/**
+	 * Writes the passed metas without committing
+	 * @param conn The connection to write with
+	 * @param batch The metas to write
+	 * @param metrics A map the metric name UIDs resolved from the DB are added to
+	 * @param tagKeys A map the tag key UIDs resolved from the DB are added to
+	 * @param tagValues A map the tag value UIDs resolved from the DB are added to
+	 * @param tagPairs A map the tag pair UIDs resolved from the DB are added to
+	 * @return the number of TSMetas inserted
+	 * @throws Exception thrown on any error
+	 */
+	protected int write(final Connection conn, final List<TSDBMetricMeta> batch, final Map<String, String> metrics, final Map<String, String> tagKeys,
+			final Map<String, String> tagValues, final Map<String, String> tagPairs) throws Exception {
+		// ================  Gather the uncached UIDs and the distinct series of the batch
+		final Map<String, TSDBMetricMeta> series = new LinkedHashMap<String, TSDBMetricMeta>();
+		final Map<String, String> missingMetrics = new HashMap<String, String>();
+		final Map<String, String[]> missingPairs = new HashMap<String, String[]>();
+		for(TSDBMetricMeta meta: batch) {
+			if(meta.getMetricName()==null || series.putIfAbsent(StringHelper.bytesToHex(meta.getTsuid()), meta)!=null) continue;
+			if(tagMetricCache.getIfPresent(meta.getMetricName())==null) {
+				missingMetrics.put(meta.getMetricName(), meta.getMetricUid());
+			}
+			for(Map.Entry<String, String> tag: meta.getTags().entrySet()) {
+				final String tagPair = tag.getKey() + "=" + tag.getValue();
+				if(tagPairCache.getIfPresent(tagPair)==null && !missingPairs.containsKey(tagPair)) {
+					missingPairs.put(tagPair, new String[]{tag.getKey(), meta.getTagKeyUids().get(tag.getKey()), tag.getValue(), meta.getTagValueUids().get(tag.getValue())});
+				}
+			}
+		}
+		if(series.isEmpty()) return 0;
+
+		// ================  Resolve the metric names, then the tag pairs and their keys and values
+		resolveUIDs(conn, "TSD_METRIC", missingMetrics, metrics);
+		final Map<String, String> pairXuids = new HashMap<String, String>(missingPairs.size());
+		for(Map.Entry<String, String[]> p: missingPairs.entrySet()) {
+			final String[] kv = p.getValue();
+			pairXuids.put(StringHelper.fastConcat(kv[1], kv[3]), p.getKey());
+		}
+		final Set<String> foundPairs = new HashSet<String>();
+		selectIn(conn, TAGPAIR_SELECT_SQL, pairXuids.keySet(), new ResultSetRowDataHandler() {
+			@Override
+			public boolean onRow(final int rowId, final int columnCount, final Object... rowData) {
+				final String xuid = (String)rowData[0];
+				foundPairs.add(xuid);
+				tagPairs.put(pairXuids.get(xuid), xuid);
+				return true;
+			}
+		});
+		if(foundPairs.size() < pairXuids.size()) {
+			final Map<String, String> missingKeys = new HashMap<String, String>();
+			final Map<String, String> missingValues = new HashMap<String, String>();
+			final List<Object[]> pairRows = new ArrayList<Object[]>();
+			for(Map.Entry<String, String> p: pairXuids.entrySet()) {
+				if(foundPairs.contains(p.getKey())) continue;
+				final String[] kv = missingPairs.get(p.getValue());
+				if(tagKeyCache.getIfPresent(kv[0])==null) missingKeys.put(kv[0], kv[1]);
+				if(tagValueCache.getIfPresent(kv[2])==null) missingValues.put(kv[2], kv[3]);
+				pairRows.add(new Object[]{p.getKey(), kv[1], kv[3], p.getValue()});
+				tagPairs.put(p.getValue(), p.getKey());
+			}
+			resolveUIDs(conn, "TSD_TAGK", missingKeys, tagKeys);
+			resolveUIDs(conn, "TSD_TAGV", missingValues, tagValues);
+			insertBatch(conn, TAGPAIR_INSERT_SQL, pairRows);
+		}
+
+		// ================  Insert the TSMetas that do not exist yet
+		final Map<String, Long> fqnIds = new HashMap<String, Long>(series.size());
+		final ResultSetRowDataHandler fqnIdHandler = new ResultSetRowDataHandler() {
+			@Override
+			public boolean onRow(final int rowId, final int columnCount, final Object... rowData) {
+				fqnIds.put((String)rowData[1], ((Number)rowData[0]).longValue());
+				return true;
+			}
+		};
+		selectIn(conn, TSMETA_SELECT_SQL, series.keySet(), fqnIdHandler);
+		if(fqnIds.size()==series.size()) return 0;
+		final List<Object[]> tsMetaRows = new ArrayList<Object[]>();
+		for(Iterator<Map.Entry<String, TSDBMetricMeta>> iter = series.entrySet().iterator(); iter.hasNext();) {
+			final Map.Entry<String, TSDBMetricMeta> s = iter.next();
+			if(fqnIds.containsKey(s.getKey())) {
+				iter.remove();
+				continue;
+			}
+			final TSDBMetricMeta meta = s.getValue();
+			final String metricUid = metrics.containsKey(meta.getMetricName()) ? metrics.get(meta.getMetricName()) : tagMetricCache.getIfPresent(meta.getMetricName());
+			tsMetaRows.add(new Object[]{metricUid, meta.getMetricName() + ":" + meta.getTags(), s.getKey()});
+		}
+		insertBatch(conn, TSMETA_INSERT_SQL, tsMetaRows);
+		// fetch the generated FQNIDs in one pass rather than relying on batch generated key support
+		selectIn(conn, TSMETA_SELECT_SQL, series.keySet(), fqnIdHandler);
+
+		// ================  Associate the new TSMetas with their tag pairs
+		final List<Object[]> fqnTagPairRows = new ArrayList<Object[]>();
+		for(Map.Entry<String, TSDBMetricMeta> s: series.entrySet()) {
+			final TSDBMetricMeta meta = s.getValue();
+			final Map<String, String> tagUids = new TreeMap<String, String>(TagKeySorter.INSTANCE);
+			for(Map.Entry<String, String> tag: meta.getTags().entrySet()) {
+				tagUids.put(tag.getKey(), StringHelper.fastConcat(meta.getTagKeyUids().get(tag.getKey()), meta.getTagValueUids().get(tag.getValue())));
+			}
+			final Long fqnId = fqnIds.get(s.getKey());
+			final int last = tagUids.size();
+			int porder = 1;
+			for(final String tagPairUid: tagUids.values()) {
+				// FQNID,XUID,PORDER,NODE
+				fqnTagPairRows.add(new Object[]{fqnId, tagPairUid, porder, porder==last ? "L" : "B"});
+				porder++;
+			}
+		}
+		insertBatch(conn, ListenerMain.FQN_TAGPAIR_INSERT_SQL, fqnTagPairRows);
+		return series.size();
+	}
+
+	/**
+	 * Looks up the passed names in the passed UID table and inserts the ones not found
+	 * @param conn The connection to write with
+	 * @param tableName The UID table name
+	 * @param missing The UIDs to resolve keyed by name
+	 * @param resolved A map the resolved UIDs are added to keyed by name
+	 */
+	protected void resolveUIDs(final Connection conn, final String tableName, final Map<String, String> missing, final Map<String, String> resolved) {
+		if(missing.isEmpty()) return;
+		final Set<String> found = new HashSet<String>();
+		selectIn(conn, String.format(UID_SELECT_SQL, tableName, "%s"), missing.keySet(), new ResultSetRowDataHandler() {
+			@Override
+			public boolean onRow(final int rowId, final int columnCount, final Object... rowData) {
+				found.add((String)rowData[1]);
+				resolved.put((String)rowData[1], (String)rowData[0]);
+				return true;
+			}
+		});
+		if(found.size()==missing.size()) return;
+		final long now = System.currentTimeMillis();
+		final List<Object[]> rows = new ArrayList<Object[]>(missing.size() - found.size());
+		for(Map.Entry<String, String> m: missing.entrySet()) {
+			if(found.contains(m.getKey())) continue;
+			rows.add(new Object[]{m.getValue(), 1, m.getKey(), now});
+			resolved.put(m.getKey(), m.getValue());
+		}
+		insertBatch(conn, String.format(UID_INSERT_SQL, tableName), rows);
+	}
+
+	/**
+	 * Executes the passed IN list query template for the passed bind values in as few statements as the DB allows.
+	 * Each statement's IN list is padded to a power of two by repeating the last value.
+	 * @param conn The connection to query with
+	 * @param sqlTemplate The SQL template with a single <b><code>%s</code></b> for the IN list
+	 * @param values The values to bind
+	 * @param handler The row handler
+	 */
+	protected void selectIn(final Connection conn, final String sqlTemplate, final Collection<String> values, final ResultSetRowDataHandler handler) {
+		if(values.isEmpty()) return;
+		final Iterator<String> iter = values.iterator();
+		int remaining = values.size();
+		while(remaining > 0) {
+			final int chunk = Math.min(remaining, maxInList);
+			final int binds = inListSize(chunk);
+			final Object[] args = new Object[binds];
+			for(int i = 0; i < chunk; i++) {
+				args[i] = iter.next();
+			}
+			for(int i = chunk; i < binds; i++) {
+				args[i] = args[chunk-1];
+			}
+			sqlWorker.executeQuery(conn, String.format(sqlTemplate, inList(binds)), handler, args);
+			remaining -= chunk;
+		}
+	}
+
+	/**
+	 * Executes the passed insert for each of the passed rows as a single JDBC batch
+	 * @param conn The connection to write with
+	 * @param sqlText The insert SQL
+	 * @param rows The bind values of each row
+	 */
+	protected void insertBatch(final Connection conn, final String sqlText, final List<Object[]> rows) {
+		if(rows.isEmpty()) return;
+		PreparedStatement ps = null;
+		try {
+			for(Object[] row: rows) {
+				ps = sqlWorker.batch(conn, ps, sqlText, row);
+			}
+			ps.executeBatch();
+		} catch (Exception ex) {
+			throw new RuntimeException("SQL Batch Failure [" + sqlText + "] rows: " + rows.size(), ex);
+		} finally {
+			if(ps!=null) {
+				sqlWorker.getBinder(ps);
+				try { ps.close(); } catch (Exception x) {/* No Op */}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of binds to use for an IN list of the passed size
+	 * @param size The number of values
+	 * @return the padded number of binds
+	 */
+	int inListSize(final int size) {
+		if(size <= MIN_IN_LIST) return MIN_IN_LIST;
+		return Math.min(maxInList, Integer.highestOneBit(size - 1) << 1);
+	}
+
+	/**
+	 * Returns an IN list of bind markers
+	 * @param binds The number of binds
+	 * @return the IN list
+	 */
+	static String inList(final int binds) {
+		final StringBuilder b = new StringBuilder(binds * 2);
+		for(int i = 0; i < binds; i++) {
+			if(i > 0) b.append(',');
+			b.append('?');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Returns the maximum number of metas written in one transaction
+	 * @return the batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Returns the maximum time in ms. a meta waits for the end of its batch
+	 * @return the batch wait time in ms.
+	 */
+	public long getBatchWait() {
+		return batchWait;
+	}
+
+	/**
+	 * Returns the maximum number of failed metas retained before the writer blocks until they commit
+	 * @return the maximum number of retained metas
+	 */
+	public int getMaxRetained() {
+		return maxRetained;
+	}
+
+}
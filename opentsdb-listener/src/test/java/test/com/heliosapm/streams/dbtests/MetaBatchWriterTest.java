@@ -0,0 +1,376 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package test.com.heliosapm.streams.dbtests;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.heliosapm.streams.chronicle.TSDBMetricMeta;
+import com.heliosapm.streams.sqlbinder.SQLWorker;
+import com.heliosapm.streams.tsdb.listener.MetaBatchWriter;
+
+/**
+ * <p>Title: MetaBatchWriterTest</p>
+ * <p>Description: Verifies {@link MetaBatchWriter} batching, tag pair node assignment and failed batch retention
+ * against a minimal in-memory H2 catalog</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.streams.dbtests.MetaBatchWriterTest</code></p>
+ */
+
+public class MetaBatchWriterTest {
+	/** The catalog tables and sequences the writer touches */
+	static final String[] DDL = {
+		"CREATE SEQUENCE FQN_SEQ START WITH 1 INCREMENT BY 1",
+		"CREATE SEQUENCE FQN_TP_SEQ START WITH 1 INCREMENT BY 1",
+		"CREATE TABLE TSD_TAGK (XUID CHAR(6) NOT NULL PRIMARY KEY, VERSION INT NOT NULL, NAME VARCHAR(60) NOT NULL UNIQUE, CREATED TIMESTAMP NOT NULL)",
+		"CREATE TABLE TSD_TAGV (XUID CHAR(6) NOT NULL PRIMARY KEY, VERSION INT NOT NULL, NAME VARCHAR(60) NOT NULL UNIQUE, CREATED TIMESTAMP NOT NULL)",
+		"CREATE TABLE TSD_METRIC (XUID CHAR(6) NOT NULL PRIMARY KEY, VERSION INT NOT NULL, NAME VARCHAR(60) NOT NULL UNIQUE, CREATED TIMESTAMP NOT NULL)",
+		"CREATE TABLE TSD_TAGPAIR (XUID CHAR(12) NOT NULL PRIMARY KEY, TAGK CHAR(6) NOT NULL, TAGV CHAR(6) NOT NULL, NAME VARCHAR(120) NOT NULL)",
+		"CREATE TABLE TSD_FQN_TAGPAIR (FQN_TP_ID BIGINT NOT NULL DEFAULT FQN_TP_SEQ.NEXTVAL PRIMARY KEY, FQNID BIGINT NOT NULL, XUID CHAR(12) NOT NULL, PORDER TINYINT NOT NULL, NODE CHAR(1) NOT NULL CHECK NODE IN ('B', 'L'))",
+		"CREATE TABLE TSD_TSMETA (FQNID BIGINT NOT NULL DEFAULT FQN_SEQ.NEXTVAL PRIMARY KEY, METRIC_UID CHAR(6) NOT NULL, FQN VARCHAR(4000) NOT NULL UNIQUE, TSUID VARCHAR(120) NOT NULL UNIQUE)"
+	};
+
+	/** A serial to give each test its own in-memory DB */
+	static final AtomicInteger serial = new AtomicInteger();
+
+	/** The catalog data source */
+	JdbcDataSource dataSource;
+	/** A connection held open so the in-memory DB survives */
+	Connection conn;
+	/** The writer under test */
+	MetaBatchWriter writer;
+	/** The tag key cache */
+	final Cache<String, String> tagKeyCache = CacheBuilder.newBuilder().build();
+	/** The tag value cache */
+	final Cache<String, String> tagValueCache = CacheBuilder.newBuilder().build();
+	/** The metric name cache */
+	final Cache<String, String> tagMetricCache = CacheBuilder.newBuilder().build();
+	/** The tag pair cache */
+	final Cache<String, String> tagPairCache = CacheBuilder.newBuilder().build();
+	/** The UIDs assigned to each name */
+	final Map<String, String> uids = new HashMap<String, String>();
+	/** The next queue index */
+	long nextIndex = 0;
+
+	/**
+	 * Creates the catalog and the writer
+	 * @throws Exception thrown on any error
+	 */
+	@Before
+	public void setUp() throws Exception {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:metabatchwritertest" + serial.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+		conn = dataSource.getConnection();
+		final Statement st = conn.createStatement();
+		for(String ddl: DDL) st.execute(ddl);
+		st.close();
+		final Properties p = new Properties();
+		p.setProperty(MetaBatchWriter.CONFIG_BATCH_SIZE, "100");
+		p.setProperty(MetaBatchWriter.CONFIG_BATCH_WAIT, "600000");
+		writer = new MetaBatchWriter(p, null, SQLWorker.getInstance(dataSource), tagKeyCache, tagValueCache, tagMetricCache, tagPairCache) {
+			@Override
+			protected Connection getConnection() throws SQLException {
+				final Connection c = dataSource.getConnection();
+				c.setAutoCommit(false);
+				return c;
+			}
+		};
+	}
+
+	/**
+	 * Drops the catalog
+	 * @throws Exception thrown on any error
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if(conn!=null) {
+			final Statement st = conn.createStatement();
+			st.execute("SHUTDOWN");
+			st.close();
+			conn.close();
+		}
+	}
+
+	/**
+	 * Tests that metas are held until the end of the ring buffer batch and then written in one transaction
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFlushOnEndOfBatch() throws Exception {
+		final TSDBMetricMeta m1 = meta("sys.cpu", "host", "web-1", "dc", "east");
+		final TSDBMetricMeta m2 = meta("sys.cpu", "host", "web-2", "dc", "east");
+		final TSDBMetricMeta m3 = meta("sys.mem", "host", "web-1");
+		final long lastIndex = m3.getIndex();
+		Assert.assertFalse(writer.add(m1, false));
+		Assert.assertFalse(writer.add(m2, false));
+		Assert.assertEquals(2, writer.getPendingCount());
+		Assert.assertEquals(0, count("TSD_TSMETA"));
+		Assert.assertEquals(-1L, writer.getCommittedIndex());
+		Assert.assertTrue(writer.add(m3, true));
+		Assert.assertEquals(0, writer.getPendingCount());
+		Assert.assertEquals(lastIndex, writer.getCommittedIndex());
+		Assert.assertEquals(3, count("TSD_TSMETA"));
+		Assert.assertEquals(2, count("TSD_METRIC"));
+		Assert.assertEquals(2, count("TSD_TAGK"));
+		Assert.assertEquals(3, count("TSD_TAGV"));
+		Assert.assertEquals(3, count("TSD_TAGPAIR"));
+		Assert.assertEquals(5, count("TSD_FQN_TAGPAIR"));
+		// written metas are reset for reuse
+		Assert.assertNull(m1.getMetricName());
+		Assert.assertEquals(-1L, m3.getIndex());
+		// UIDs are cached once committed
+		Assert.assertEquals(uids.get("sys.mem"), tagMetricCache.getIfPresent("sys.mem"));
+		Assert.assertEquals(uids.get("dc"), tagKeyCache.getIfPresent("dc"));
+		Assert.assertEquals(uids.get("host") + uids.get("web-2"), tagPairCache.getIfPresent("host=web-2"));
+		// an already written series inserts nothing
+		Assert.assertTrue(writer.add(meta("sys.cpu", "host", "web-1", "dc", "east"), true));
+		Assert.assertEquals(3, count("TSD_TSMETA"));
+		Assert.assertEquals(5, count("TSD_FQN_TAGPAIR"));
+	}
+
+	/**
+	 * Tests that a TSMeta's tag pairs are ordered by tag key, the last being the leaf and the rest branches
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testNodeAssignment() throws Exception {
+		writer.add(meta("sys.cpu", "host", "web-1", "dc", "east", "cpu", "0"), false);
+		writer.add(meta("sys.mem", "host", "web-1"), true);
+		final Map<String, String> cpuNodes = nodes("sys.cpu");
+		Assert.assertEquals(3, cpuNodes.size());
+		final List<String> tagPairs = new ArrayList<String>(cpuNodes.keySet());
+		Assert.assertEquals("host=web-1", tagPairs.get(0));
+		Assert.assertEquals("cpu=0", tagPairs.get(1));
+		Assert.assertEquals("dc=east", tagPairs.get(2));
+		Assert.assertEquals("B", cpuNodes.get(tagPairs.get(0)));
+		Assert.assertEquals("B", cpuNodes.get(tagPairs.get(1)));
+		Assert.assertEquals("L", cpuNodes.get(tagPairs.get(2)));
+		final Map<String, String> memNodes = nodes("sys.mem");
+		Assert.assertEquals(1, memNodes.size());
+		Assert.assertEquals("L", memNodes.get("host=web-1"));
+	}
+
+	/**
+	 * Tests that a batch failing mid write is rolled back and retained, that later batches do not advance the
+	 * committed index past it while it keeps failing, and that it is written ahead of the next batch that commits
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFailedBatchRetained() throws Exception {
+		writer.add(meta("sys.cpu", "host", "web-1"), true);
+		final long committedIndex = writer.getCommittedIndex();
+		final TSDBMetricMeta good = meta("sys.mem", "host", "web-2");
+		final TSDBMetricMeta bad = meta("sys.disk", "host", "web-3");
+		final String badFqn = bad.getMetricName() + ":" + bad.getTags();
+		// another TSUID already owns the bad meta's FQN, so its TSMeta insert fails after its UIDs were inserted
+		final PreparedStatement ps = conn.prepareStatement("INSERT INTO TSD_TSMETA (METRIC_UID, FQN, TSUID) VALUES (?,?,?)");
+		ps.setString(1, uids.get("sys.disk"));
+		ps.setString(2, badFqn);
+		ps.setString(3, "FFFFFF");
+		ps.executeUpdate();
+		ps.close();
+		Assert.assertFalse(writer.add(good, false));
+		try {
+			writer.add(bad, true);
+			Assert.fail("Batch write did not fail");
+		} catch (Exception expected) {
+			/* Expected */
+		}
+		Assert.assertEquals(2, writer.getRetainedCount());
+		Assert.assertEquals(2, writer.getPendingCount());
+		// the ring buffer slots are released even though the metas are retained
+		Assert.assertNull(good.getMetricName());
+		Assert.assertNull(bad.getMetricName());
+		Assert.assertEquals(committedIndex, writer.getCommittedIndex());
+		Assert.assertEquals(2, count("TSD_TSMETA"));
+		Assert.assertEquals(1, count("TSD_METRIC"));
+		Assert.assertEquals(1, count("TSD_TAGV"));
+		Assert.assertNull(tagMetricCache.getIfPresent("sys.mem"));
+		Assert.assertNull(tagPairCache.getIfPresent("host=web-2"));
+		// while the retained metas still fail, a later batch must not move the committed index past them
+		try {
+			writer.add(meta("sys.net", "host", "web-4"), true);
+			Assert.fail("Batch write did not fail");
+		} catch (Exception expected) {
+			/* Expected */
+		}
+		Assert.assertEquals(3, writer.getRetainedCount());
+		Assert.assertEquals(committedIndex, writer.getCommittedIndex());
+		Assert.assertEquals(2, count("TSD_TSMETA"));
+		// once the cause is cleared, the retained metas are written with the next batch
+		final Statement st = conn.createStatement();
+		st.executeUpdate("DELETE FROM TSD_TSMETA WHERE TSUID = 'FFFFFF'");
+		st.close();
+		final TSDBMetricMeta next = meta("sys.io", "host", "web-5");
+		final long lastIndex = next.getIndex();
+		Assert.assertTrue(writer.add(next, true));
+		Assert.assertEquals(0, writer.getRetainedCount());
+		Assert.assertEquals(0, writer.getPendingCount());
+		Assert.assertEquals(lastIndex, writer.getCommittedIndex());
+		Assert.assertEquals(5, count("TSD_TSMETA"));
+		Assert.assertEquals(1, countWhere("TSD_TSMETA", "FQN", badFqn));
+		Assert.assertEquals(1, countWhere("TSD_TSMETA", "METRIC_UID", uids.get("sys.mem")));
+		Assert.assertEquals(1, countWhere("TSD_TSMETA", "METRIC_UID", uids.get("sys.net")));
+		Assert.assertEquals(uids.get("sys.mem"), tagMetricCache.getIfPresent("sys.mem"));
+		Assert.assertEquals(uids.get("host") + uids.get("web-3"), tagPairCache.getIfPresent("host=web-3"));
+	}
+
+	/**
+	 * Tests that retained metas count towards the batch size
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRetainedCountsTowardsBatchSize() throws Exception {
+		final Properties p = new Properties();
+		p.setProperty(MetaBatchWriter.CONFIG_BATCH_SIZE, "3");
+		p.setProperty(MetaBatchWriter.CONFIG_BATCH_WAIT, "600000");
+		final AtomicInteger failures = new AtomicInteger(1);
+		writer = new MetaBatchWriter(p, null, SQLWorker.getInstance(dataSource), tagKeyCache, tagValueCache, tagMetricCache, tagPairCache) {
+			@Override
+			protected Connection getConnection() throws SQLException {
+				if(failures.getAndDecrement() > 0) throw new SQLException("Connection refused");
+				final Connection c = dataSource.getConnection();
+				c.setAutoCommit(false);
+				return c;
+			}
+		};
+		writer.add(meta("sys.cpu", "host", "web-1"), false);
+		try {
+			writer.add(meta("sys.mem", "host", "web-1"), true);
+			Assert.fail("Batch write did not fail");
+		} catch (SQLException expected) {
+			/* Expected */
+		}
+		Assert.assertEquals(2, writer.getRetainedCount());
+		Assert.assertEquals(-1L, writer.getCommittedIndex());
+		final TSDBMetricMeta m3 = meta("sys.disk", "host", "web-1");
+		final long lastIndex = m3.getIndex();
+		Assert.assertTrue(writer.add(m3, false));
+		Assert.assertEquals(lastIndex, writer.getCommittedIndex());
+		Assert.assertEquals(3, count("TSD_TSMETA"));
+	}
+
+	/**
+	 * Creates a resolved meta with the next queue index
+	 * @param metric The metric name
+	 * @param pairs The tag keys and values
+	 * @return the meta
+	 */
+	private TSDBMetricMeta meta(final String metric, final String...pairs) {
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		final Map<String, String> tagKeyUids = new HashMap<String, String>();
+		final Map<String, String> tagValueUids = new HashMap<String, String>();
+		final StringBuilder tsuid = new StringBuilder(uid(metric));
+		for(int i = 0; i < pairs.length; i += 2) {
+			tags.put(pairs[i], pairs[i+1]);
+			tagKeyUids.put(pairs[i], uid(pairs[i]));
+			tagValueUids.put(pairs[i+1], uid(pairs[i+1]));
+			tsuid.append(uid(pairs[i])).append(uid(pairs[i+1]));
+		}
+		final TSDBMetricMeta meta = TSDBMetricMeta.FACTORY.newInstance();
+		return meta.load(metric, tags, hexToBytes(tsuid.toString()))
+			.resolved(uid(metric), tagKeyUids, tagValueUids)
+			.index(nextIndex++);
+	}
+
+	/**
+	 * Returns the UID of a name, assigning the next one if it is new.
+	 * Metric names, tag keys and tag values share one UID space so every name is distinct.
+	 * @param name The name
+	 * @return the UID
+	 */
+	private String uid(final String name) {
+		String uid = uids.get(name);
+		if(uid==null) {
+			final String hex = Integer.toHexString(uids.size() + 1).toUpperCase();
+			uid = "000000".substring(hex.length()) + hex;
+			uids.put(name, uid);
+		}
+		return uid;
+	}
+
+	private static byte[] hexToBytes(final String hex) {
+		final byte[] bytes = new byte[hex.length() / 2];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the tag pair nodes of the TSMeta of the passed metric in PORDER
+	 * @param metric The metric name
+	 * @return the nodes keyed by tag pair name
+	 * @throws Exception thrown on any error
+	 */
+	private Map<String, String> nodes(final String metric) throws Exception {
+		final Map<String, String> nodes = new LinkedHashMap<String, String>();
+		final PreparedStatement ps = conn.prepareStatement("SELECT P.NAME, F.NODE, F.PORDER FROM TSD_FQN_TAGPAIR F, TSD_TAGPAIR P, TSD_TSMETA T "
+				+ "WHERE F.XUID = P.XUID AND F.FQNID = T.FQNID AND T.METRIC_UID = ? ORDER BY F.PORDER");
+		ps.setString(1, uids.get(metric));
+		final ResultSet rset = ps.executeQuery();
+		int porder = 1;
+		while(rset.next()) {
+			Assert.assertEquals(porder++, rset.getInt(3));
+			nodes.put(rset.getString(1), rset.getString(2));
+		}
+		rset.close();
+		ps.close();
+		return nodes;
+	}
+
+	private int countWhere(final String table, final String column, final String value) throws Exception {
+		final PreparedStatement ps = conn.prepareStatement("SELECT COUNT(*) FROM " + table + " WHERE " + column + " = ?");
+		ps.setString(1, value);
+		final ResultSet rset = ps.executeQuery();
+		rset.next();
+		final int count = rset.getInt(1);
+		rset.close();
+		ps.close();
+		return count;
+	}
+
+	private int count(final String table) throws Exception {
+		final Statement st = conn.createStatement();
+		final ResultSet rset = st.executeQuery("SELECT COUNT(*) FROM " + table);
+		rset.next();
+		final int count = rset.getInt(1);
+		rset.close();
+		st.close();
+		return count;
+	}
+}
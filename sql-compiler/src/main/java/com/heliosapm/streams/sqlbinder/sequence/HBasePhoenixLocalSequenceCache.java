@@ -24,17 +24,9 @@
  */
 package com.heliosapm.streams.sqlbinder.sequence;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
-
 import javax.sql.DataSource;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import com.heliosapm.streams.sqlbinder.SQLWorker;
-import com.heliosapm.utils.time.SystemClock;
-import com.heliosapm.utils.time.SystemClock.ElapsedTime;
 
 /**
  * <p>Title: HBasePhoenixLocalSequenceCache</p>
@@ -44,23 +36,9 @@ import com.heliosapm.utils.time.SystemClock.ElapsedTime;
  * <p><code>com.heliosapm.streams.sqlbinder.sequence.HBasePhoenixLocalSequenceCache</code></p>
  */
 
-public class HBasePhoenixLocalSequenceCache implements ISequenceCache {
-	/** The local sequence increment */
-	protected final int increment;
-	/** The DB Sequence name, fully qualified if necessary  */
-	protected final String sequenceName;
-	/** The current local sequence value */
-	protected final AtomicLong currentValue = new AtomicLong(0);
-	/** The current ceiling on the local sequence value */
-	protected final AtomicLong ceiling = new AtomicLong(0);
-	/** Atomic switch indicating a refresh is required, i.e. if true, we're good to go, otherwise a refresh is needed */
-	protected final AtomicBoolean rangeIsFresh = new AtomicBoolean(false);
+public class HBasePhoenixLocalSequenceCache extends PrefetchingSequenceCache {
 	/** The datasource to provide connections to refresh the sequence cache */
 	protected final DataSource dataSource;
-	/** The SQL used to retrieve the next sequence value */
-	protected String seqSql;
-	/** Instance logger */
-	protected final Logger log;
 	/** The sql worker */
 	protected final SQLWorker sqlWorker;
 	/** The name of the sequence table */
@@ -81,9 +59,7 @@ public class HBasePhoenixLocalSequenceCache implements ISequenceCache {
 	 * @param dataSource The datasource to provide connections to refresh the sequence cache
 	 */
 	public HBasePhoenixLocalSequenceCache(int increment, String sequenceName, DataSource dataSource) {		
-		log = LoggerFactory.getLogger(getClass().getName() + "." + sequenceName);
-		this.increment = increment;
-		this.sequenceName = sequenceName;
+		super(increment, sequenceName);
 		seqTableName = String.format("%s_TAB_", sequenceName);
 		upsertSql = String.format("UPSERT INTO %s VALUES (1, NEXT VALUE FOR FQN_SEQ)", seqTableName);
 		selectSql = String.format("SELECT Q FROM TSD_SQ WHERE S = 1", seqTableName);
@@ -94,16 +70,6 @@ public class HBasePhoenixLocalSequenceCache implements ISequenceCache {
 		log.info("Created HBasePhoenixLocalSequenceCache [{}]", sequenceName);
 	}
 	
-	/**
-	 * Resets this sequence cache (but not the underlying DB sequence)
-	 */
-	public void reset() {
-		currentValue.set(0);
-		ceiling.set(0);
-		rangeIsFresh.set(false);
-	}
-
-	
 	/**
 	 * Initializes the SQL statement
 	 */
@@ -113,57 +79,24 @@ public class HBasePhoenixLocalSequenceCache implements ISequenceCache {
 	}
 	
 	/**
-	 * Returns the next value in the sequence, refreshing the sequence range if necessary
-	 * @return the next value in the sequence
-	 */
-	public long next() {
-		long next = -1;
-		for(;;) {
-			if(rangeIsFresh.compareAndSet(true, (next = currentValue.incrementAndGet())<ceiling.get())) {
-				return next;
-			}
-			rangeIsFresh.set(false);
-			refresh();
-		}
-	}
-	
-	/**
-	 * Refreshes the  sequence range
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCache#fetchRange(long)
 	 */
-	protected void refresh() {
-		log.info("Refreshing....Current: [{}]", currentValue.get());
-		ElapsedTime et = SystemClock.startClock();
-		final long target = ceiling.get() + increment;
+	@Override
+	protected long fetchRange(final long currentCeiling) throws Exception {
+		final long target = currentCeiling + increment;
 		long retrieved = 0;
 		int loops = 0;
-		try {
-			while(retrieved < target) {
-				sqlWorker.execute(upsertSql);
-				retrieved += sqlWorker.sqlForLong(selectSql);
-				loops++;
-				if(loops>increment) {
-					throw new RuntimeException("Refresh loops exceeded increment [" + loops + "/" + increment + "]");
-				}
+		while(retrieved < target) {
+			sqlWorker.execute(upsertSql);
+			retrieved += sqlWorker.sqlForLong(selectSql);
+			loops++;
+			if(loops>increment) {
+				throw new RuntimeException("Refresh loops exceeded increment [" + loops + "/" + increment + "]");
 			}
-			ceiling.set(retrieved);
-			currentValue.set(retrieved-increment);
-			
-			rangeIsFresh.set(true);
-			log.info("Refreshed loops:{} current:{} ceiling:{}   Elapsed: {} ms.", loops, currentValue.get(), ceiling.get(), et.elapsedMs());
-		} catch (Exception ex) {
-			throw new RuntimeException("Failed to refresh sequence [" + sequenceName + "]", ex);
 		}
-	}
-	
-	/**
-	 * {@inheritDoc}
-	 * @see java.lang.Object#toString()
-	 */
-	@Override
-	public String toString() {
-		return String.format(
-				"LocalSequenceCache [sequenceName=%s, increment=%s]",
-				sequenceName, increment);
+		log.debug("Fetched range in {} loops", loops);
+		return retrieved;
 	}
 		
 
@@ -21,14 +21,9 @@ package com.heliosapm.streams.sqlbinder.sequence;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sql.DataSource;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /**
  * <p>Title: LocalSequenceCache</p>
  * <p>Description: A local in-vm cache for DB sequence ranges</p> 
@@ -38,23 +33,11 @@ import org.slf4j.LoggerFactory;
  * TODO: Need to be able to vary cache size definitions for different situations. e.g. synch from HBase will need xtra-large chunks.
  */
 
-public class LocalSequenceCache implements ISequenceCache {
-	/** The local sequence increment */
-	protected final long increment;
-	/** The DB Sequence name, fully qualified if necessary  */
-	protected final String sequenceName;
-	/** The current local sequence value */
-	protected final AtomicLong currentValue = new AtomicLong(0);
-	/** The current ceiling on the local sequence value */
-	protected final AtomicLong ceiling = new AtomicLong(0);
-	/** Atomic switch indicating a refresh is required, i.e. if true, we're good to go, otherwise a refresh is needed */
-	protected final AtomicBoolean rangeIsFresh = new AtomicBoolean(false);
+public class LocalSequenceCache extends PrefetchingSequenceCache {
 	/** The datasource to provide connections to refresh the sequence cache */
 	protected final DataSource dataSource;
 	/** The SQL used to retrieve the next sequence value */
 	protected String seqSql;
-	/** Instance logger */
-	protected final Logger log;
 	
 	
 	
@@ -65,27 +48,13 @@ public class LocalSequenceCache implements ISequenceCache {
 	 * @param dataSource The datasource to provide connections to refresh the sequence cache
 	 */
 	public LocalSequenceCache(final long increment, String sequenceName, DataSource dataSource) {		
-		log = LoggerFactory.getLogger(getClass().getName() + "." + sequenceName);
-		this.increment = increment;
-		this.sequenceName = sequenceName;
+		super(increment, sequenceName);
 		this.dataSource = dataSource;
 		init();
 		refresh();
 		log.info("Created LocalSequenceCache [{}]", sequenceName);
 	}
 	
-
-	/**
-	 * 
-	 */
-	@Override
-	public void reset() {
-		currentValue.set(0);
-		ceiling.set(0);
-		rangeIsFresh.set(false);
-	}
-
-	
 	/**
 	 * Initializes the SQL statement
 	 */
@@ -93,33 +62,16 @@ public class LocalSequenceCache implements ISequenceCache {
 		seqSql = "SELECT " + sequenceName + ".NEXTVAL FROM DUAL";
 	}
 	
-
 	/**
 	 * {@inheritDoc}
-	 * @see com.heliosapm.streams.sqlbinder.sequence.ISequenceCache#next()
+	 * @see com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCache#fetchRange(long)
 	 */
 	@Override
-	public long next() {
-		long next = -1;
-		for(;;) {
-			if(rangeIsFresh.compareAndSet(true, (next = currentValue.incrementAndGet())<ceiling.get())) {
-				return next;
-			}
-			rangeIsFresh.set(false);
-			refresh();
-		}
-	}
-	
-	/**
-	 * Refreshes the  sequence range
-	 */
-	protected void refresh() {
-		log.info("Refreshing....Current: [{}]", currentValue.get());
-		final long startTime = System.currentTimeMillis();
+	protected long fetchRange(final long currentCeiling) throws Exception {
 		Connection conn = null;
 		PreparedStatement ps = null;
 		ResultSet rset = null;
-		final long target = ceiling.get() + increment;
+		final long target = currentCeiling + increment;
 		long retrieved = 0;
 		int loops = 0;
 		try {
@@ -135,13 +87,8 @@ public class LocalSequenceCache implements ISequenceCache {
 					throw new RuntimeException("Refresh loops exceeded increment [" + loops + "/" + increment + "]");
 				}
 			}
-			ceiling.set(retrieved);
-			currentValue.set(retrieved-increment);
-			
-			rangeIsFresh.set(true);
-			log.info("Refreshed loops:{} current:{} ceiling:{}   Elapsed: {} ms.", loops, currentValue.get(), ceiling.get(), System.currentTimeMillis()-startTime);
-		} catch (Exception ex) {
-			throw new RuntimeException("Failed to refresh sequence [" + sequenceName + "]", ex);
+			log.debug("Fetched range in {} loops", loops);
+			return retrieved;
 		} finally {
 			if(rset!=null) try { rset.close(); } catch (Exception x) {/* No Op */}
 			if(ps!=null) try { ps.close(); } catch (Exception x) {/* No Op */}
@@ -177,19 +124,7 @@ public class LocalSequenceCache implements ISequenceCache {
 //		}
 //	}
 
-	/**
-	 * {@inheritDoc}
-	 * @see java.lang.Object#toString()
-	 */
-	@Override
-	public String toString() {
-		return String.format(
-				"LocalSequenceCache [sequenceName=%s, increment=%s]",
-				sequenceName, increment);
-	}
 	
 	
-	
-
 
 }
@@ -0,0 +1,326 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.sqlbinder.sequence;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: PrefetchingSequenceCache</p>
+ * <p>Description: Base class for local in-vm caches of DB sequence ranges that fetch the next range in the background
+ * once a configurable fraction of the current range has been issued, so that callers only wait on the DB when
+ * the current range is exhausted before the prefetch completes.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCache</code></p>
+ */
+
+public abstract class PrefetchingSequenceCache implements ISequenceCache, PrefetchingSequenceCacheMBean {
+	/** The local sequence increment */
+	protected final long increment;
+	/** The DB Sequence name, fully qualified if necessary  */
+	protected final String sequenceName;
+	/** The fraction of a range issued before the next range is prefetched */
+	protected final float prefetchThreshold;
+	/** The JMX ObjectName for this cache */
+	protected final ObjectName objectName;
+	/** Instance logger */
+	protected final Logger log;
+	
+	/** The range values are currently issued from */
+	private final AtomicReference<Range> range = new AtomicReference<Range>(Range.EMPTY);
+	/** The in-flight or completed prefetch of the next range, null if none has been started */
+	private CompletableFuture<Range> prefetch = null;
+	/** The number of ranges fetched from the DB */
+	private final LongAdder refreshes = new LongAdder();
+	/** The number of exhausted ranges replaced by a prefetched range */
+	private final LongAdder prefetchHits = new LongAdder();
+	/** The number of exhausted ranges callers waited on the DB to replace */
+	private final LongAdder stalls = new LongAdder();
+	/** The cumulative stall time in ns. */
+	private final LongAdder stallTime = new LongAdder();
+	
+	/** The config property name for the fraction of a range issued before the next range is prefetched. A value of 1 or more disables prefetching */
+	public static final String CONFIG_PREFETCH_THRESHOLD = "sqlbinder.sequence.prefetch";
+	/** The default prefetch threshold */
+	public static final float DEFAULT_PREFETCH_THRESHOLD = 0.5f;
+	
+	/** Serial number factory for prefetch thread names */
+	private static final AtomicInteger prefetchSerial = new AtomicInteger(0);
+	/** The executor running range prefetches */
+	private static final ExecutorService prefetchPool = Executors.newCachedThreadPool(r -> {
+		final Thread t = new Thread(r, "SequencePrefetch#" + prefetchSerial.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	});
+	
+	/**
+	 * Creates a new PrefetchingSequenceCache. Subclasses must call {@link #refresh()} once they are initialized
+	 * @param increment The local sequence increment
+	 * @param sequenceName The DB Sequence name, fully qualified if necessary
+	 */
+	protected PrefetchingSequenceCache(final long increment, final String sequenceName) {
+		log = LoggerFactory.getLogger(getClass().getName() + "." + sequenceName);
+		this.increment = increment;
+		this.sequenceName = sequenceName;
+		prefetchThreshold = ConfigurationHelper.getFloatSystemThenEnvProperty(CONFIG_PREFETCH_THRESHOLD, DEFAULT_PREFETCH_THRESHOLD);
+		objectName = JMXHelper.objectName(getClass().getPackage().getName() + ":service=SequenceCache,name=" + sequenceName);
+		try {
+			if(!JMXHelper.isRegistered(objectName)) JMXHelper.registerMBean(objectName, this);
+		} catch (Exception ex) {
+			log.warn("Failed to register management interface for sequence cache [{}]", sequenceName, ex);
+		}
+	}
+	
+	/**
+	 * Fetches the next range from the DB
+	 * @param currentCeiling The ceiling of the range being replaced
+	 * @return the ceiling of the new range. The range issues the values between the new ceiling less the increment and the new ceiling, exclusive.
+	 * @throws Exception thrown on any error fetching the range
+	 */
+	protected abstract long fetchRange(final long currentCeiling) throws Exception;
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.sqlbinder.sequence.ISequenceCache#next()
+	 */
+	@Override
+	public long next() {
+		for(;;) {
+			final Range r = range.get();
+			final long next = r.next.incrementAndGet();
+			if(next < r.ceiling) {
+				if(next==r.prefetchAt) prefetch(r);
+				return next;
+			}
+			advance(r);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.sqlbinder.sequence.ISequenceCache#reset()
+	 */
+	@Override
+	public synchronized void reset() {
+		prefetch = null;
+		range.set(Range.EMPTY);
+	}
+	
+	/**
+	 * Synchronously replaces the current range with a freshly fetched one
+	 */
+	protected synchronized void refresh() {
+		prefetch = null;
+		range.set(load(range.get().ceiling));
+	}
+	
+	/**
+	 * Starts the background fetch of the range that will replace the passed range
+	 * @param r The range being issued from
+	 */
+	private synchronized void prefetch(final Range r) {
+		if(prefetch!=null || range.get()!=r) return;
+		prefetch = CompletableFuture.supplyAsync(() -> load(r.ceiling), prefetchPool);
+	}
+	
+	/**
+	 * Replaces the passed exhausted range with the prefetched range, waiting on or running the fetch if it is not ready
+	 * @param exhausted The exhausted range
+	 */
+	private synchronized void advance(final Range exhausted) {
+		if(range.get()!=exhausted) return;
+		final CompletableFuture<Range> f = prefetch;
+		prefetch = null;
+		if(f!=null && f.isDone() && !f.isCompletedExceptionally()) {
+			prefetchHits.increment();
+			range.set(f.join());
+			return;
+		}
+		final long start = System.nanoTime();
+		Range next = null;
+		if(f!=null) {
+			try {
+				next = f.join();
+			} catch (Exception ex) {
+				log.warn("Prefetch failed for sequence [{}]. Refreshing synchronously.", sequenceName, ex);
+			}
+		}
+		if(next==null) next = load(exhausted.ceiling);
+		stalls.increment();
+		stallTime.add(System.nanoTime() - start);
+		range.set(next);
+	}
+	
+	/**
+	 * Fetches the range that will replace the range with the passed ceiling
+	 * @param currentCeiling The ceiling of the range being replaced
+	 * @return the new range
+	 */
+	private Range load(final long currentCeiling) {
+		final long startTime = System.currentTimeMillis();
+		try {
+			final long newCeiling = fetchRange(currentCeiling);
+			refreshes.increment();
+			final Range r = new Range(newCeiling - increment, newCeiling, prefetchThreshold);
+			log.info("Refreshed range floor:{} ceiling:{}   Elapsed: {} ms.", r.floor, r.ceiling, System.currentTimeMillis()-startTime);
+			return r;
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to refresh sequence [" + sequenceName + "]", ex);
+		}
+	}
+	
+	/**
+	 * <p>Title: Range</p>
+	 * <p>Description: An immutable sequence range and the counter values are issued from</p> 
+	 * <p><code>com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCache.Range</code></p>
+	 */
+	private static class Range {
+		/** The empty range a new or reset cache starts with */
+		static final Range EMPTY = new Range(0L, 0L, 1f);
+		/** The value below the first value issued from this range */
+		final long floor;
+		/** The exclusive upper bound of the range */
+		final long ceiling;
+		/** The value that triggers the prefetch of the next range */
+		final long prefetchAt;
+		/** The most recently issued value */
+		final AtomicLong next;
+		
+		/**
+		 * Creates a new Range
+		 * @param floor The value below the first value issued from this range
+		 * @param ceiling The exclusive upper bound of the range
+		 * @param threshold The fraction of the range issued before the next range is prefetched
+		 */
+		Range(final long floor, final long ceiling, final float threshold) {
+			this.floor = floor;
+			this.ceiling = ceiling;
+			next = new AtomicLong(floor);
+			prefetchAt = threshold >= 1f ? Long.MIN_VALUE : floor + Math.max(1L, (long)((ceiling - floor) * threshold));
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCacheMBean#getSequenceName()
+	 */
+	@Override
+	public String getSequenceName() {
+		return sequenceName;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCacheMBean#getIncrement()
+	 */
+	@Override
+	public long getIncrement() {
+		return increment;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCacheMBean#getPrefetchThreshold()
+	 */
+	@Override
+	public float getPrefetchThreshold() {
+		return prefetchThreshold;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCacheMBean#getCurrentValue()
+	 */
+	@Override
+	public long getCurrentValue() {
+		final Range r = range.get();
+		return Math.min(r.next.get(), r.ceiling - 1);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCacheMBean#getCeiling()
+	 */
+	@Override
+	public long getCeiling() {
+		return range.get().ceiling;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCacheMBean#getRefreshCount()
+	 */
+	@Override
+	public long getRefreshCount() {
+		return refreshes.sum();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCacheMBean#getPrefetchHits()
+	 */
+	@Override
+	public long getPrefetchHits() {
+		return prefetchHits.sum();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCacheMBean#getStallCount()
+	 */
+	@Override
+	public long getStallCount() {
+		return stalls.sum();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCacheMBean#getStallTimeMs()
+	 */
+	@Override
+	public long getStallTimeMs() {
+		return TimeUnit.NANOSECONDS.toMillis(stallTime.sum());
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format(
+				"%s [sequenceName=%s, increment=%s]",
+				getClass().getSimpleName(), sequenceName, increment);
+	}
+}
@@ -0,0 +1,88 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.sqlbinder.sequence;
+
+/**
+ * <p>Title: PrefetchingSequenceCacheMBean</p>
+ * <p>Description: JMX MBean interface for {@link PrefetchingSequenceCache} instances</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCacheMBean</code></p>
+ */
+
+public interface PrefetchingSequenceCacheMBean {
+	/**
+	 * Returns the DB sequence name
+	 * @return the DB sequence name
+	 */
+	public String getSequenceName();
+	
+	/**
+	 * Returns the local sequence increment
+	 * @return the local sequence increment
+	 */
+	public long getIncrement();
+	
+	/**
+	 * Returns the fraction of a range that is used before the next range is prefetched
+	 * @return the prefetch threshold
+	 */
+	public float getPrefetchThreshold();
+	
+	/**
+	 * Returns the most recently issued sequence value
+	 * @return the current sequence value
+	 */
+	public long getCurrentValue();
+	
+	/**
+	 * Returns the ceiling of the current range
+	 * @return the current ceiling
+	 */
+	public long getCeiling();
+	
+	/**
+	 * Returns the number of ranges fetched from the DB
+	 * @return the number of range refreshes
+	 */
+	public long getRefreshCount();
+	
+	/**
+	 * Returns the number of exhausted ranges that were replaced by an already prefetched range
+	 * @return the number of prefetch hits
+	 */
+	public long getPrefetchHits();
+	
+	/**
+	 * Returns the number of exhausted ranges that callers had to wait on a DB fetch to replace
+	 * @return the number of stalls
+	 */
+	public long getStallCount();
+	
+	/**
+	 * Returns the cumulative time callers spent waiting on a DB fetch in ms.
+	 * @return the cumulative stall time in ms.
+	 */
+	public long getStallTimeMs();
+	
+	/**
+	 * Resets this sequence cache (but not the underlying DB sequence)
+	 */
+	public void reset();
+}
@@ -0,0 +1,160 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package test.com.heliosapm.tsdbex.sqlbinder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.sqlbinder.sequence.PrefetchingSequenceCache;
+
+/**
+ * <p>Title: PrefetchingSequenceCacheTest</p>
+ * <p>Description: Tests that a {@link PrefetchingSequenceCache} issues every value of its ranges exactly once across
+ * concurrent callers and range swaps, and falls back to a synchronous fetch when a prefetch fails</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.tsdbex.sqlbinder.PrefetchingSequenceCacheTest</code></p>
+ */
+
+public class PrefetchingSequenceCacheTest {
+	/** Serial number for unique sequence names */
+	static final AtomicLong serial = new AtomicLong();
+
+	/**
+	 * A sequence cache over an in-memory DB sequence which records the range ceilings it fetched
+	 */
+	static class TestSequenceCache extends PrefetchingSequenceCache {
+		/** The simulated DB sequence */
+		final AtomicLong dbSequence = new AtomicLong(0L);
+		/** The fetched range ceilings in fetch order */
+		final List<Long> ceilings = new CopyOnWriteArrayList<Long>();
+		/** Fails the next fetch made on a prefetch thread when set */
+		final AtomicBoolean failPrefetch = new AtomicBoolean(false);
+		/** Counted down when a prefetch has failed */
+		final CountDownLatch prefetchFailed = new CountDownLatch(1);
+
+		/**
+		 * Creates a new TestSequenceCache
+		 * @param increment The range size
+		 */
+		TestSequenceCache(final long increment) {
+			super(increment, "TestSequence" + serial.incrementAndGet());
+			refresh();
+		}
+
+		@Override
+		protected long fetchRange(final long currentCeiling) throws Exception {
+			if(Thread.currentThread().getName().startsWith("SequencePrefetch") && failPrefetch.compareAndSet(true, false)) {
+				prefetchFailed.countDown();
+				throw new Exception("Simulated prefetch failure");
+			}
+			final long ceiling = dbSequence.addAndGet(increment);
+			ceilings.add(ceiling);
+			return ceiling;
+		}
+
+		/**
+		 * Returns the first <b>count</b> values the fetched ranges issue, in order
+		 * @param count The number of values
+		 * @return the expected values
+		 */
+		long[] expected(final int count) {
+			final long[] values = new long[count];
+			int n = 0;
+			for(long ceiling: ceilings) {
+				for(long v = ceiling - increment + 1; v < ceiling && n < count; v++) {
+					values[n++] = v;
+				}
+			}
+			Assert.assertEquals("Fetched ranges do not cover the issued values", count, n);
+			return values;
+		}
+	}
+
+	/**
+	 * Tests that concurrent callers across many range swaps never get a value twice and never skip one
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=60000)
+	public void testConcurrentNextAcrossSwaps() throws Exception {
+		final int threads = 8, perThread = 20000;
+		final TestSequenceCache cache = new TestSequenceCache(17);
+		final CyclicBarrier start = new CyclicBarrier(threads);
+		final long[][] issued = new long[threads][perThread];
+		final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+		final List<Thread> workers = new ArrayList<Thread>(threads);
+		for(int t = 0; t < threads; t++) {
+			final long[] mine = issued[t];
+			final Thread worker = new Thread(() -> {
+				try {
+					start.await();
+					for(int i = 0; i < perThread; i++) {
+						mine[i] = cache.next();
+					}
+				} catch (Throwable ex) {
+					errors.add(ex);
+				}
+			}, "SequenceCaller#" + t);
+			workers.add(worker);
+			worker.start();
+		}
+		for(Thread worker: workers) {
+			worker.join();
+		}
+		Assert.assertTrue(errors.toString(), errors.isEmpty());
+		final long[] all = new long[threads * perThread];
+		for(int t = 0; t < threads; t++) {
+			System.arraycopy(issued[t], 0, all, t * perThread, perThread);
+		}
+		Arrays.sort(all);
+		Assert.assertArrayEquals(cache.expected(all.length), all);
+		Assert.assertTrue("Expected many range swaps", cache.getRefreshCount() > 1000);
+	}
+
+	/**
+	 * Tests that an exhausted range whose prefetch failed is replaced by a synchronous fetch which continues the sequence
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=30000)
+	public void testSynchronousFallbackAfterFailedPrefetch() throws Exception {
+		final TestSequenceCache cache = new TestSequenceCache(11);
+		cache.failPrefetch.set(true);
+		// drains the first range and takes two values from the second, short of its own prefetch threshold
+		final int count = 12;
+		final long[] values = new long[count];
+		for(int i = 0; i < count; i++) {
+			values[i] = cache.next();
+		}
+		Assert.assertEquals("Prefetch did not fail", 0L, cache.prefetchFailed.getCount());
+		Assert.assertEquals(Arrays.asList(11L, 22L), cache.ceilings);
+		Assert.assertArrayEquals(cache.expected(count), values);
+		Assert.assertEquals("Expected the failed prefetch to stall a caller", 1L, cache.getStallCount());
+		Assert.assertEquals(0L, cache.getPrefetchHits());
+		Assert.assertEquals(2L, cache.getRefreshCount());
+	}
+}
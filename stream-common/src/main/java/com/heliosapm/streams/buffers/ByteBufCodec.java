@@ -0,0 +1,92 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.buffers;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Title: ByteBufCodec</p>
+ * <p>Description: A block compression codec used by {@link ByteBufMarshallable} to compress the buffers it writes into a chronicle queue.
+ * Codecs operate on the bytes between the position and limit of {@link ByteBuffer}s so they can work directly against direct memory.</p> 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.buffers.ByteBufCodec</code></p>
+ */
+
+public interface ByteBufCodec {
+	/** The codec name for no compression */
+	public static final String NONE = "none";
+	/** The codec name for LZ4 block compression */
+	public static final String LZ4 = "lz4";
+	/** The codec name for Zstd compression */
+	public static final String ZSTD = "zstd";
+	
+	/**
+	 * Returns the id written into the header of each compressed entry
+	 * @return the codec id
+	 */
+	public byte id();
+	
+	/**
+	 * Returns the codec name
+	 * @return the codec name
+	 */
+	public String name();
+	
+	/**
+	 * Returns the maximum compressed length of a payload of the passed length
+	 * @param length The uncompressed length
+	 * @return the maximum compressed length
+	 */
+	public int maxCompressedLength(int length);
+	
+	/**
+	 * Compresses the remaining bytes of <code>src</code> into <code>dst</code>. Neither buffer's position is modified.
+	 * @param src The buffer to compress
+	 * @param dst The buffer to write the compressed bytes into, with at least {@link #maxCompressedLength(int)} bytes remaining
+	 * @return the number of compressed bytes written
+	 */
+	public int compress(ByteBuffer src, ByteBuffer dst);
+	
+	/**
+	 * Decompresses the remaining bytes of <code>src</code> into <code>dst</code>. Neither buffer's position is modified.
+	 * @param src The compressed bytes
+	 * @param dst The buffer to decompress into, with exactly the uncompressed length remaining
+	 */
+	public void decompress(ByteBuffer src, ByteBuffer dst);
+	
+	/**
+	 * Creates a codec by name
+	 * @param name The codec name, one of {@link #NONE}, {@link #LZ4} or {@link #ZSTD}
+	 * @param level The compression level, ignored by LZ4
+	 * @param dictionary The optional trained dictionary file, only used by Zstd. Ignored if null or empty.
+	 * @return the codec, or null for {@link #NONE}
+	 */
+	public static ByteBufCodec forName(final String name, final int level, final String dictionary) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed codec name was null or empty");
+		final String key = name.trim().toLowerCase();
+		if(NONE.equals(key)) return null;
+		if(LZ4.equals(key)) return LZ4Codec.INSTANCE;
+		if(ZSTD.equals(key)) {
+			if(dictionary==null || dictionary.trim().isEmpty()) return new ZstdCodec(level, null);
+			return new ZstdCodec(level, ZstdCodec.load(new File(dictionary.trim())));
+		}
+		throw new IllegalArgumentException("Unsupported codec [" + name + "]");
+	}
+}
@@ -21,9 +21,6 @@ package com.heliosapm.streams.buffers;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -39,6 +36,10 @@ import net.openhft.chronicle.core.io.IORuntimeException;
 /**
  * <p>Title: ByteBufMarshallable</p>
  * <p>Description: An overly complicated way to put {@link ByteBuf} instances  into a chronicle queue and get them back out again</p> 
+ * <p>Each entry starts with a codec id and the uncompressed size. Uncompressed and block compressed ({@link ByteBufCodec}) entries
+ * are copied between the chronicle bytes and direct buffers a long at a time, without intermediate heap arrays.
+ * Entries compressed with a zstd dictionary also carry the dictionary id, which is resolved through {@link ZstdCodec#forDictionary(int)}.
+ * GZIP entries are still written by the legacy <code>ByteBufMarshallable(true)</code> constructor and can always be read back.</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.streams.buffers.ByteBufMarshallable</code></p>
  */
@@ -51,6 +52,8 @@ public class ByteBufMarshallable implements WriteBytesMarshallable, ReadBytesMar
 	
 	/** Indicates if compression is enabled */
 	protected final boolean useGzip;
+	/** The block codec, null if entries are not block compressed */
+	protected final ByteBufCodec codec;
 	private static byte NOT_COMPRESSED = 0;
 	private static byte COMPRESSED = 1;
 	
@@ -61,6 +64,16 @@ public class ByteBufMarshallable implements WriteBytesMarshallable, ReadBytesMar
 	 */
 	public ByteBufMarshallable(final boolean gzip) {
 		useGzip = gzip;
+		codec = null;
+	}
+	
+	/**
+	 * Creates a new ByteBufMarshallable
+	 * @param codec The block codec to compress payloads with, or null for no compression
+	 */
+	public ByteBufMarshallable(final ByteBufCodec codec) {
+		useGzip = false;
+		this.codec = codec;
 	}
 	
 	/**
@@ -69,31 +82,112 @@ public class ByteBufMarshallable implements WriteBytesMarshallable, ReadBytesMar
 	 */
 	@Override
 	public void readMarshallable(final BytesIn bytes) throws IORuntimeException {
-		final long start = System.currentTimeMillis();
 		final byte compressed = bytes.readByte();
 		final int size = bytes.readInt();
-//		System.err.println("*** readMarshallable size:" + size);
+		if(compressed==NOT_COMPRESSED) {
+			byteBuf = bufferManager.directBuffer(size);
+			copy(bytes, byteBuf, size);
+		} else if(compressed==COMPRESSED) {
+			readGzip(bytes, size);
+		} else {
+			final ByteBufCodec entryCodec = compressed==ZstdCodec.DICTIONARY_ID ? dictionaryCodec(bytes.readInt()) : codecFor(compressed);
+			final int compressedSize = bytes.readInt();
+			final ByteBuf compressedBuf = bufferManager.directBuffer(compressedSize);
+			try {
+				copy(bytes, compressedBuf, compressedSize);
+				byteBuf = bufferManager.directBuffer(size);
+				entryCodec.decompress(compressedBuf.nioBuffer(0, compressedSize), byteBuf.nioBuffer(0, size));
+				byteBuf.writerIndex(size);
+			} catch (RuntimeException ex) {
+				if(byteBuf!=null) byteBuf.release();
+				byteBuf = null;
+				throw ex;
+			} finally {
+				compressedBuf.release();
+			}
+		}
+	}
+	
+	/**
+	 * Reads a legacy gzipped entry
+	 * @param bytes The bytes to read from
+	 * @param size The uncompressed size
+	 */
+	protected void readGzip(final BytesIn bytes, final int size) {
 		byteBuf = bufferManager.buffer(size);
 		InputStream is = null;
 		try {			
-			is = compressed==COMPRESSED ? wrap(bytes.inputStream(), 1024) : bytes.inputStream();
+			is = wrap(bytes.inputStream(), 1024);
 			final byte[] bb = new byte[1024 * 64];
 			int bytesRead = -1;			
 			while((bytesRead = is.read(bb))!=-1) {
 				byteBuf.writeBytes(bb, 0, bytesRead);
 			}
-//			int bytesRead = 0;
-//			while(bytesRead < size) {
-//				bytesRead += byteBuf.writeBytes(is, size-bytesRead);
-//			}
-			//			
-//			final long elapsed = System.currentTimeMillis() - start;
-//			System.err.println("*** readMarshallable complete size:" + byteBuf.readableBytes() + ", elapsed:" + elapsed);
-//			System.err.println("*** readMarshallable remaining:" + is.available());
 		} catch (Exception ex) {
 			throw new RuntimeException("Failed to read buffer bytes", ex);
 		} finally {
-			if(useGzip && is != null) try { is.close(); } catch (Exception x) {/* No Op */}
+			if(is != null) try { is.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+	
+	/**
+	 * Resolves the codec for an entry's codec id
+	 * @param id The codec id read from the entry
+	 * @return the codec
+	 */
+	protected ByteBufCodec codecFor(final byte id) {
+		if(codec!=null && codec.id()==id) return codec;
+		if(id==LZ4Codec.ID) return LZ4Codec.INSTANCE;
+		if(id==ZstdCodec.ID) return ZstdCodec.DEFAULT;
+		throw new IllegalStateException("Unknown codec id [" + id + "]");
+	}
+	
+	/**
+	 * Resolves the codec for an entry compressed with a zstd dictionary
+	 * @param dictionaryId The dictionary id read from the entry
+	 * @return the codec
+	 */
+	protected ByteBufCodec dictionaryCodec(final int dictionaryId) {
+		if(codec instanceof ZstdCodec && ((ZstdCodec)codec).getDictionaryId()==dictionaryId) return codec;
+		return ZstdCodec.forDictionary(dictionaryId);
+	}
+	
+	/**
+	 * Copies bytes from chronicle bytes into a ByteBuf, a long at a time
+	 * @param bytes The bytes to read from
+	 * @param buf The buffer to write to
+	 * @param length The number of bytes to copy
+	 */
+	protected static void copy(final BytesIn bytes, final ByteBuf buf, final int length) {
+		int remaining = length;
+		// chronicle bytes are little endian, so swap to keep the byte order identical
+		while(remaining >= 8) {
+			buf.writeLong(Long.reverseBytes(bytes.readLong()));
+			remaining -= 8;
+		}
+		while(remaining > 0) {
+			buf.writeByte(bytes.readByte());
+			remaining--;
+		}
+	}
+	
+	/**
+	 * Copies bytes from a ByteBuf into chronicle bytes, a long at a time. The buffer's indexes are not modified.
+	 * @param buf The buffer to read from
+	 * @param index The index of the first byte to copy
+	 * @param length The number of bytes to copy
+	 * @param bytes The bytes to write to
+	 */
+	protected static void copy(final ByteBuf buf, final int index, final int length, final BytesOut bytes) {
+		int i = index;
+		final int end = index + length;
+		while(end - i >= 8) {
+			bytes.writeLong(Long.reverseBytes(buf.getLong(i)));
+			i += 8;
+		}
+		while(i < end) {
+			bytes.writeByte(buf.getByte(i));
+			i++;
 		}
 	}
 	
@@ -121,31 +215,70 @@ public class ByteBufMarshallable implements WriteBytesMarshallable, ReadBytesMar
 	
 
 
+	/**
+	 * {@inheritDoc}
+	 * @see net.openhft.chronicle.bytes.WriteBytesMarshallable#writeMarshallable(net.openhft.chronicle.bytes.BytesOut)
+	 */
 	@Override
 	public void writeMarshallable(final BytesOut bytes) {
-		bytes.writeByte(useGzip ? COMPRESSED : NOT_COMPRESSED);		
-		bytes.writeInt(byteBuf.readableBytes());
+		try {
+			final int size = byteBuf.readableBytes();
+			if(useGzip) {
+				bytes.writeByte(COMPRESSED);		
+				bytes.writeInt(size);
+				writeGzip(bytes);
+			} else if(codec==null) {
+				bytes.writeByte(NOT_COMPRESSED);		
+				bytes.writeInt(size);
+				copy(byteBuf, byteBuf.readerIndex(), size, bytes);
+			} else {
+				final ByteBuf staging = byteBuf.isDirect() && byteBuf.nioBufferCount()==1 ? null : bufferManager.directBuffer(size);
+				final int max = codec.maxCompressedLength(size);
+				final ByteBuf compressedBuf = bufferManager.directBuffer(max);
+				try {
+					final ByteBuf src = staging==null ? byteBuf : staging.writeBytes(byteBuf, byteBuf.readerIndex(), size);
+					final int compressedSize = codec.compress(src.nioBuffer(src.readerIndex(), size), compressedBuf.nioBuffer(0, max));
+					bytes.writeByte(codec.id());
+					bytes.writeInt(size);
+					if(codec.id()==ZstdCodec.DICTIONARY_ID) bytes.writeInt(((ZstdCodec)codec).getDictionaryId());
+					bytes.writeInt(compressedSize);
+					copy(compressedBuf, 0, compressedSize, bytes);
+				} finally {
+					compressedBuf.release();
+					if(staging!=null) staging.release();
+				}
+			}
+		} finally {
+			byteBuf.release();
+			byteBuf = null;
+		}
+	}
+	
+	/**
+	 * Writes the current buffer as a legacy gzipped entry
+	 * @param bytes The bytes to write to
+	 */
+	protected void writeGzip(final BytesOut bytes) {
 		OutputStream os = null;
 		try {
-			os = useGzip ? wrap(bytes.outputStream(), 1024) : bytes.outputStream();
-			final long pre = bytes.writePosition();
+			os = wrap(bytes.outputStream(), 1024);
 			byteBuf.readBytes(os, byteBuf.readableBytes());
-//			if(useGzip) {
-//				os.flush();
-//				((GZIPOutputStream)os).finish();
-//			}
-//			bytes.outputStream().flush();
 			os.flush();
-			final long total = bytes.writePosition() - pre;
 		} catch (Exception ex) {
 			throw new RuntimeException("Failed to write buffer bytes", ex);
 		} finally {
-			if(useGzip && os != null) try { os.close(); } catch (Exception x) {/* No Op */}
-			byteBuf.release();
-			byteBuf = null;
+			if(os != null) try { os.close(); } catch (Exception x) {/* No Op */}
 		}
 	}
 	
+	/**
+	 * Returns the block codec
+	 * @return the block codec or null if entries are not block compressed
+	 */
+	public ByteBufCodec getCodec() {
+		return codec;
+	}
+	
 	/**
 	 * Returns the current ByteBuf
 	 * @return the current ByteBuf
@@ -72,11 +72,8 @@ public class ByteBufSerde implements Serde<ByteBuf> {
 		 */
 		@Override
 		public byte[] serialize(final String topic, final ByteBuf data) {
-			final int len = data.readableBytes();
 			try {
-				final byte[] b =  ByteBufUtil.getBytes(data, 0, data.readableBytes());
-				System.err.println("==== ByteBuf Ser: was:" + len + ", final:" + b.length);
-				return b;
+				return ByteBufUtil.getBytes(data, data.readerIndex(), data.readableBytes());
 			} finally {
 				data.release();
 			}
@@ -0,0 +1,105 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.buffers;
+
+import java.nio.ByteBuffer;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * <p>Title: LZ4Codec</p>
+ * <p>Description: An LZ4 block codec</p> 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.buffers.LZ4Codec</code></p>
+ */
+
+public class LZ4Codec implements ByteBufCodec {
+	/** The shared instance */
+	public static final LZ4Codec INSTANCE = new LZ4Codec();
+	/** The codec id */
+	public static final byte ID = 2;
+	
+	/** The compressor */
+	private final LZ4Compressor compressor;
+	/** The decompressor */
+	private final LZ4FastDecompressor decompressor;
+	
+	private LZ4Codec() {
+		final LZ4Factory factory = LZ4Factory.fastestInstance();
+		compressor = factory.fastCompressor();
+		decompressor = factory.fastDecompressor();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.buffers.ByteBufCodec#id()
+	 */
+	@Override
+	public byte id() {
+		return ID;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.buffers.ByteBufCodec#name()
+	 */
+	@Override
+	public String name() {
+		return LZ4;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.buffers.ByteBufCodec#maxCompressedLength(int)
+	 */
+	@Override
+	public int maxCompressedLength(final int length) {
+		return compressor.maxCompressedLength(length);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.buffers.ByteBufCodec#compress(java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	@Override
+	public int compress(final ByteBuffer src, final ByteBuffer dst) {
+		return compressor.compress(src, src.position(), src.remaining(), dst, dst.position(), dst.remaining());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.buffers.ByteBufCodec#decompress(java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void decompress(final ByteBuffer src, final ByteBuffer dst) {
+		final int read = decompressor.decompress(src, src.position(), dst, dst.position(), dst.remaining());
+		if(read!=src.remaining()) throw new IllegalStateException("LZ4 decompression consumed [" + read + "] of [" + src.remaining() + "] bytes");
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "LZ4Codec";
+	}
+}
@@ -0,0 +1,235 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.buffers;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: ZstdCodec</p>
+ * <p>Description: A Zstd codec with an optional trained dictionary. Metric batches repeat the same
+ * metric name and tag bytes over and over, which a dictionary trained on sample batches captures
+ * even for small entries. Both buffers passed to this codec must be direct.</p> 
+ * <p>Entries compressed with a dictionary are written with {@link #DICTIONARY_ID} followed by the dictionary's id, a CRC32 of
+ * the dictionary bytes. Every codec created with a dictionary registers it, so a reader resolves the dictionary of an entry with
+ * {@link #forDictionary(int)} as long as a codec with the same dictionary has been created in its process.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.buffers.ZstdCodec</code></p>
+ */
+
+public class ZstdCodec implements ByteBufCodec {
+	/** The codec id */
+	public static final byte ID = 3;
+	/** The codec id of entries compressed with a trained dictionary */
+	public static final byte DICTIONARY_ID = 4;
+	/** The default compression level */
+	public static final int DEFAULT_LEVEL = 3;
+	/** The default trained dictionary size in bytes */
+	public static final int DEFAULT_DICTIONARY_SIZE = 16 * 1024;
+	/** A shared codec with the default level and no dictionary */
+	public static final ZstdCodec DEFAULT = new ZstdCodec(DEFAULT_LEVEL, null);
+	
+	/** The codecs created with a dictionary, keyed by dictionary id */
+	private static final ConcurrentHashMap<Integer, ZstdCodec> dictionaries = new ConcurrentHashMap<Integer, ZstdCodec>();
+	
+	/** The compression level */
+	private final int level;
+	/** The dictionary, or null */
+	private final byte[] dictionary;
+	/** The dictionary id, or zero if there is no dictionary */
+	private final int dictionaryId;
+	/** The digested compression dictionary, or null */
+	private final ZstdDictCompress dictCompress;
+	/** The digested decompression dictionary, or null */
+	private final ZstdDictDecompress dictDecompress;
+
+	/**
+	 * Creates a new ZstdCodec
+	 * @param level The compression level
+	 * @param dictionary The trained dictionary, or null to compress without one
+	 */
+	public ZstdCodec(final int level, final byte[] dictionary) {
+		this.level = level;
+		this.dictionary = dictionary;
+		if(dictionary!=null) {
+			dictCompress = new ZstdDictCompress(dictionary, level);
+			dictDecompress = new ZstdDictDecompress(dictionary);
+			dictionaryId = dictionaryId(dictionary);
+			dictionaries.putIfAbsent(dictionaryId, this);
+		} else {
+			dictCompress = null;
+			dictDecompress = null;
+			dictionaryId = 0;
+		}
+	}
+	
+	/**
+	 * Computes the id of a dictionary
+	 * @param dictionary The dictionary bytes
+	 * @return the dictionary id
+	 */
+	public static int dictionaryId(final byte[] dictionary) {
+		final CRC32 crc = new CRC32();
+		crc.update(dictionary);
+		return (int)crc.getValue();
+	}
+	
+	/**
+	 * Returns a codec able to decompress entries written with the identified dictionary
+	 * @param dictionaryId The dictionary id read from an entry
+	 * @return the codec
+	 * @throws IllegalStateException thrown if no codec with the dictionary has been created in this process
+	 */
+	public static ZstdCodec forDictionary(final int dictionaryId) {
+		final ZstdCodec codec = dictionaries.get(dictionaryId);
+		if(codec==null) throw new IllegalStateException("Unknown zstd dictionary id [" + Integer.toHexString(dictionaryId) + "]. Create a ZstdCodec with the dictionary before reading its entries");
+		return codec;
+	}
+	
+	/**
+	 * Trains a dictionary from the readable bytes of the passed sample buffers. The buffers' indexes are not modified.
+	 * @param samples The sample buffers, typically serialized metric batches
+	 * @param dictionarySize The maximum dictionary size in bytes
+	 * @return the trained dictionary
+	 */
+	public static byte[] train(final Collection<ByteBuf> samples, final int dictionarySize) {
+		if(samples==null || samples.isEmpty()) throw new IllegalArgumentException("The passed samples were null or empty");
+		int total = 0;
+		for(ByteBuf b: samples) {
+			total += b.readableBytes();
+		}
+		final ZstdDictTrainer trainer = new ZstdDictTrainer(total, dictionarySize);
+		for(ByteBuf b: samples) {
+			final byte[] sample = new byte[b.readableBytes()];
+			b.getBytes(b.readerIndex(), sample);
+			trainer.addSample(sample);
+		}
+		return trainer.trainSamples();
+	}
+	
+	/**
+	 * Loads a trained dictionary from a file
+	 * @param file The dictionary file
+	 * @return the dictionary bytes
+	 */
+	public static byte[] load(final File file) {
+		try {
+			return Files.readAllBytes(file.toPath());
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Failed to read zstd dictionary [" + file + "]", ex);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.buffers.ByteBufCodec#id()
+	 */
+	@Override
+	public byte id() {
+		return dictionary==null ? ID : DICTIONARY_ID;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.buffers.ByteBufCodec#name()
+	 */
+	@Override
+	public String name() {
+		return ZSTD;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.buffers.ByteBufCodec#maxCompressedLength(int)
+	 */
+	@Override
+	public int maxCompressedLength(final int length) {
+		return (int)Zstd.compressBound(length);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.buffers.ByteBufCodec#compress(java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	@Override
+	public int compress(final ByteBuffer src, final ByteBuffer dst) {
+		final long size = dictCompress==null 
+			? Zstd.compressDirectByteBuffer(dst, dst.position(), dst.remaining(), src, src.position(), src.remaining(), level)
+			: Zstd.compressDirectByteBufferFastDict(dst, dst.position(), dst.remaining(), src, src.position(), src.remaining(), dictCompress);
+		if(Zstd.isError(size)) throw new IllegalStateException("Zstd compression failed: " + Zstd.getErrorName(size));
+		return (int)size;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.buffers.ByteBufCodec#decompress(java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void decompress(final ByteBuffer src, final ByteBuffer dst) {
+		final long size = dictDecompress==null
+			? Zstd.decompressDirectByteBuffer(dst, dst.position(), dst.remaining(), src, src.position(), src.remaining())
+			: Zstd.decompressDirectByteBufferFastDict(dst, dst.position(), dst.remaining(), src, src.position(), src.remaining(), dictDecompress);
+		if(Zstd.isError(size)) throw new IllegalStateException("Zstd decompression failed: " + Zstd.getErrorName(size));
+		if(size!=dst.remaining()) throw new IllegalStateException("Zstd decompressed [" + size + "] bytes, expected [" + dst.remaining() + "]");
+	}
+	
+	/**
+	 * Returns the compression level
+	 * @return the compression level
+	 */
+	public int getLevel() {
+		return level;
+	}
+	
+	/**
+	 * Indicates if this codec uses a trained dictionary
+	 * @return true if this codec uses a dictionary, false otherwise
+	 */
+	public boolean hasDictionary() {
+		return dictionary!=null;
+	}
+	
+	/**
+	 * Returns the id of this codec's dictionary, written into the header of each entry it compresses
+	 * @return the dictionary id, or zero if this codec has no dictionary
+	 */
+	public int getDictionaryId() {
+		return dictionaryId;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder("ZstdCodec [level:").append(level).append(", dictionary:").append(dictionary==null ? 0 : dictionary.length).append("]").toString();
+	}
+}
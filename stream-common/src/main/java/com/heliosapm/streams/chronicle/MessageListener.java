@@ -34,4 +34,15 @@ public interface MessageListener {
 	 * @return the number of messages extracted and processed from the buffer
 	 */
 	public int onMetric(ByteBuf buf);
+	
+	/**
+	 * Handles a buffer of messages read from the passed queue index.
+	 * Listeners that track what has been processed by position override this. The default ignores the index.
+	 * @param index The chronicle index the buffer was read from
+	 * @param buf the buffer
+	 * @return the number of messages extracted and processed from the buffer
+	 */
+	public default int onMetric(final long index, final ByteBuf buf) {
+		return onMetric(buf);
+	}
 }
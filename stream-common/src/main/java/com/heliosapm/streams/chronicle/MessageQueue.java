@@ -21,13 +21,19 @@ package com.heliosapm.streams.chronicle;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
@@ -46,7 +52,9 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.Timer.Context;
 import com.heliosapm.utils.buffer.BufferManager;
+import com.heliosapm.streams.buffers.ByteBufCodec;
 import com.heliosapm.streams.buffers.ByteBufMarshallable;
+import com.heliosapm.streams.buffers.ZstdCodec;
 import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
 import com.heliosapm.streams.common.naming.AgentName;
 import com.heliosapm.streams.metrics.StreamedMetric;
@@ -57,23 +65,31 @@ import com.heliosapm.utils.io.StdInCommandHandler;
 import com.heliosapm.utils.jmx.JMXManagedThreadFactory;
 
 import io.netty.buffer.ByteBuf;
-import net.openhft.chronicle.core.Jvm;
 import net.openhft.chronicle.core.io.IOTools;
 import net.openhft.chronicle.queue.ChronicleQueue;
+import net.openhft.chronicle.queue.ExcerptAppender;
 import net.openhft.chronicle.queue.ExcerptTailer;
+import net.openhft.chronicle.queue.RollCycle;
 import net.openhft.chronicle.queue.RollCycles;
 import net.openhft.chronicle.queue.impl.StoreFileListener;
+import net.openhft.chronicle.queue.impl.single.SingleChronicleQueue;
 import net.openhft.chronicle.queue.impl.single.SingleChronicleQueueBuilder;
 import net.openhft.chronicle.wire.WireType;
 
 /**
  * <p>Title: MessageQueue</p>
  * <p>Description: A disk persistent message queue to separate kafka consumers from the actual processors.</p> 
+ * <p>When <b><code>reader.persistent</code></b> is enabled, the queue directory is kept across restarts and the reader
+ * checkpoints the index of each excerpt it hands to the listener in a {@link TailerCheckpoint} side file. On restart the
+ * reader resumes after the last checkpointed excerpt.</p>
+ * <p>Any number of named {@link MessageQueueConsumer}s can be registered through {@link #addConsumer(String, MessageListener)}.
+ * Each excerpt is appended once and every consumer reads it on its own tailer thread. Released roll files are only deleted
+ * once every consumer has read past them, or once more than <b><code>chronicle.retained.cycles</code></b> of them are retained.</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.streams.chronicle.MessageQueue</code></p>
  */
 
-public class MessageQueue implements Closeable, StoreFileListener, Runnable {
+public class MessageQueue implements Closeable, StoreFileListener {
 	/** A map of MessageQueues keyed by the name */
 	private static final NonBlockingHashMap<String, MessageQueue> instances = new NonBlockingHashMap<String, MessageQueue>(16); 
 	
@@ -89,13 +105,9 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 	protected final String queueName;
 	/** The base directory */
 	protected final File baseQueueDirectory;
-	/** The message listener that will handle messages read back out of the queue */
-	protected final MessageListener listener;
-	/** The reader startup latch */
-	protected final CountDownLatch startLatch;
+	/** The registered consumers keyed by name */
+	protected final NonBlockingHashMap<String, MessageQueueConsumer> consumers = new NonBlockingHashMap<String, MessageQueueConsumer>();
 	
-	/** The number of reader threads */
-	protected final int readerThreads;
 	/** The reader thread thread pool */
 	protected final ExecutorService threadPool;
 	/** The thread pool's thread group */
@@ -112,6 +124,18 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 	protected final RollCycles rollCycle;
 	/** Indicates if compression is enabled for direct buffer writes to the chronicle queue */
 	protected final boolean compression;
+	/** The block codec for direct buffer writes to the chronicle queue, null for no compression */
+	protected final ByteBufCodec codec;
+	/** Indicates if the reader position is checkpointed and the queue retained across restarts */
+	protected final boolean persistent;
+	/** The maximum number of released roll files retained for consumers that have not read past them */
+	protected final int maxRetainedCycles;
+	/** Released roll files being retained until every consumer has moved past them, keyed by cycle */
+	protected final ConcurrentSkipListMap<Integer, File> retainedRollFiles = new ConcurrentSkipListMap<Integer, File>();
+	/** The index of the last appended excerpt */
+	protected volatile long lastAppendedIndex = TailerCheckpoint.NO_INDEX;
+	/** A tailer used only to probe cycle sizes when computing lags, created on first use */
+	protected ExcerptTailer lagTailer = null;
 	
 	/** A thread local to provide a non-compressing marshallable per thread */
 	protected final ThreadLocal<ByteBufMarshallable> uncompressedMarshallable = new ThreadLocal<ByteBufMarshallable>() {
@@ -134,14 +158,16 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 	
 	/** A counter of deleted roll files */
 	protected final Counter deletedRollFiles;
-	/** A periodic counter of chronicle reads */
+	/** A periodic counter of chronicle reads across all consumers */
 	protected final Counter chronicleReads;
 	/** A periodic counter of chronicle writes */
 	protected final Counter chronicleWrites;
 	/** A cummulative counter of read errors */
 	protected final Counter chronicleReadErrs;
-	/** A gauge of the backlog in the queue */
+	/** A gauge of the backlog in the queue for the slowest consumer */
 	protected final Gauge<Long> queueBacklog;
+	/** A gauge of the number of excerpts appended since the slowest consumer's last checkpoint */
+	protected final Gauge<Long> checkpointLag;
 	
 	/** The config key name for the number of reader threads */
 	public static final String CONFIG_READER_THREADS = "reader.threads";
@@ -178,11 +204,36 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 	/** The default buffer write compression. */
 	public static final boolean DEFAULT_COMPRESS_QWRITES = true;
 	
+	/** The config key name for the buffer write codec (none, lz4 or zstd). Defaults to lz4 if compression is enabled, none otherwise */
+	public static final String CONFIG_CODEC = "writer.codec";
+	/** The config key name for the buffer write codec compression level */
+	public static final String CONFIG_CODEC_LEVEL = "writer.codec.level";
+	/** The default buffer write codec compression level */
+	public static final int DEFAULT_CODEC_LEVEL = ZstdCodec.DEFAULT_LEVEL;
+	/** The config key name for the trained zstd dictionary file */
+	public static final String CONFIG_CODEC_DICTIONARY = "writer.codec.dictionary";
+	/** The default trained zstd dictionary file */
+	public static final String DEFAULT_CODEC_DICTIONARY = "";
+	
+	/** The config key name for the maximum number of released roll files retained for consumers that have not read past them. Zero or less for no limit */
+	public static final String CONFIG_MAX_RETAINED_CYCLES = "chronicle.retained.cycles";
+	/** The default maximum number of released roll files retained for consumers that have not read past them */
+	public static final int DEFAULT_MAX_RETAINED_CYCLES = 24;
+	
+	/** The config key name for persistent, resumable readers */
+	public static final String CONFIG_PERSISTENT = "reader.persistent";
+	/** The default persistent reader mode. */
+	public static final boolean DEFAULT_PERSISTENT = false;
+	
+	/** The name of the consumer created for the listener passed to {@link #getInstance(String, MessageListener, Properties)} */
+	public static final String DEFAULT_TAILER_NAME = "reader";
+	
 	
 	/**
 	 * Acquires the named MessageQueue
 	 * @param name the message queue's logical name
-	 * @param listener The message listener that will handle messages read back out of the queue
+	 * @param listener The message listener that will handle messages read back out of the queue. 
+	 * May be null, in which case consumers are registered with {@link #addConsumer(String, MessageListener)}
 	 * @param config The message queue's config
 	 * @return the named MessageQueue
 	 */
@@ -209,7 +260,6 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 	 * @param config The message queue's config
 	 */
 	private MessageQueue(final String name, final MessageListener listener, final Properties config) {
-		if(listener==null) throw new IllegalArgumentException("The passed listener was null");
 		queueName = name.trim();
 		deletedRollFiles = SharedMetricsRegistry.getInstance().counter("chronicle.rollfile.deleted.queue=" + queueName);
 		chronicleReads = SharedMetricsRegistry.getInstance().counter("chronicle.reads.queue=" + queueName);
@@ -218,24 +268,38 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 		queueBacklog = SharedMetricsRegistry.getInstance().gauge("chronicle.backlog.queue=" + queueName, new Callable<Long>(){
 			@Override
 			public Long call() throws Exception {				
-				return chronicleWrites.getCount() - chronicleReads.getCount();
+				long backlog = 0L;
+				for(MessageQueueConsumer consumer: consumers.values()) {
+					backlog = Math.max(backlog, consumer.getQueueBacklog());
+				}
+				return backlog;
+			}
+		});
+		checkpointLag = SharedMetricsRegistry.getInstance().gauge("chronicle.checkpoint.lag.queue=" + queueName, new Callable<Long>(){
+			@Override
+			public Long call() throws Exception {				
+				return computeCheckpointLag();
 			}
 		});
 		queueConfig = Props.extract(queueName, config, true, false);
-		this.listener = listener;
 		compression = ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_COMPRESS_QWRITES, DEFAULT_COMPRESS_QWRITES, queueConfig);
+		codec = ByteBufCodec.forName(
+			ConfigurationHelper.getSystemThenEnvProperty(CONFIG_CODEC, compression ? ByteBufCodec.LZ4 : ByteBufCodec.NONE, queueConfig),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_CODEC_LEVEL, DEFAULT_CODEC_LEVEL, queueConfig),
+			ConfigurationHelper.getSystemThenEnvProperty(CONFIG_CODEC_DICTIONARY, DEFAULT_CODEC_DICTIONARY, queueConfig)
+		);
 		blockSize = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_BLOCK_SIZE, DEFAULT_BLOCK_SIZE, queueConfig);
-		readerThreads = 1;
-		// In Chronicle 4, every tailer gets a copy of a published message !!
-		//ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_READER_THREADS, DEFAULT_READER_THREADS, queueConfig);
+		// In Chronicle 4, every tailer gets a copy of a published message, so each consumer gets one reader thread
 		idlePauseTime = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_IDLE_PAUSE, DEFAULT_IDLE_PAUSE, queueConfig);
 		stopCheckCount = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_STOPCHECK_COUNT, DEFAULT_STOPCHECK_COUNT, queueConfig);
 		rollCycle = ConfigurationHelper.getEnumSystemThenEnvProperty(RollCycles.class, CONFIG_ROLL_CYCLE, DEFAULT_ROLL_CYCLE, queueConfig);
+		persistent = ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_PERSISTENT, DEFAULT_PERSISTENT, queueConfig);
+		maxRetainedCycles = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_RETAINED_CYCLES, DEFAULT_MAX_RETAINED_CYCLES, queueConfig);
 		final String dirName = ConfigurationHelper.getSystemThenEnvProperty(CONFIG_BASE_DIR, DEFAULT_BASE_DIR, queueConfig);
 		compressedMarshallable = new ThreadLocal<ByteBufMarshallable>() {
 			@Override
 			protected ByteBufMarshallable initialValue() {
-				return new ByteBufMarshallable(true);
+				return new ByteBufMarshallable(codec);
 			}
 		};		
 		final File parentDir = new File(dirName);
@@ -277,7 +341,11 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 		} else {
 			pendingDeleteThread = null;
 		}
-		IOTools.deleteDirWithFiles(baseQueueDirectory, 2);
+		if(persistent) {
+			retainExistingRollFiles();
+		} else {
+			IOTools.deleteDirWithFiles(baseQueueDirectory, 2);
+		}
 		
 		queue = SingleChronicleQueueBuilder.binary(baseQueueDirectory)
 			.blockSize(blockSize)
@@ -292,12 +360,11 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 //		log.info("ChronicleQueue Test Result: [{}]", test);
 		
 //		queue.firstIndex();
-		startLatch = new CountDownLatch(readerThreads);
 		final JMXManagedThreadFactory threadFactory = (JMXManagedThreadFactory)JMXManagedThreadFactory.newThreadFactory(name + "ReaderThread", true);
-		threadPool = Executors.newFixedThreadPool(readerThreads, threadFactory);
+		threadPool = Executors.newCachedThreadPool(threadFactory);
 		threadGroup = threadFactory.getThreadGroup();
-		for(int i = 0; i < readerThreads; i++) {
-			threadPool.execute(this);
+		if(listener!=null) {
+			addConsumer(DEFAULT_TAILER_NAME, listener);
 		}
 //		try {
 //			if(!startLatch.await(10, TimeUnit.SECONDS)) {
@@ -322,7 +389,9 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 		b.append("\n\tMessageQueue Directory:").append(baseQueueDirectory);
 		b.append("\n\tMessageQueue BlockSize:").append(blockSize);
 		b.append("\n\tMessageQueue Compressed:").append(compression);
-		b.append("\n\tMessageQueue Reader Threads:").append(readerThreads);
+		b.append("\n\tMessageQueue Codec:").append(codec==null ? ByteBufCodec.NONE : codec);
+		b.append("\n\tMessageQueue Persistent:").append(persistent);
+		b.append("\n\tMessageQueue Max Retained Cycles:").append(maxRetainedCycles);
 		b.append("\n\tMessageQueue IdlePause Time:").append(idlePauseTime);
 		b.append("\n\tMessageQueue StopCheck Count:").append(idlePauseTime);
 		b.append("\n\tMessageQueue RollCycle:").append(rollCycle);
@@ -330,6 +399,71 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 		log.info(b.toString());
 	}
 	
+	/**
+	 * Registers a new named consumer which will read every excerpt written to this queue on its own thread.
+	 * If the queue is persistent, the consumer resumes from its last checkpoint.
+	 * @param name The consumer name, unique within this queue
+	 * @param listener The message listener that will handle messages read back out of the queue
+	 * @return the started consumer
+	 */
+	public MessageQueueConsumer addConsumer(final String name, final MessageListener listener) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed consumer name was null or empty");
+		if(listener==null) throw new IllegalArgumentException("The passed listener was null");
+		if(!keepRunning.get()) throw new IllegalStateException("MessageQueue [" + queueName + "] is closed");
+		final String key = name.trim();
+		final MessageQueueConsumer consumer;
+		synchronized(consumers) {
+			if(consumers.containsKey(key)) throw new IllegalStateException("MessageQueue [" + queueName + "] already has a consumer named [" + key + "]");
+			TailerCheckpoint checkpoint = null;
+			if(persistent) {
+				try {
+					checkpoint = new TailerCheckpoint(baseQueueDirectory, key);
+				} catch (IOException iex) {
+					throw new IllegalStateException("Failed to open checkpoint for consumer [" + key + "] in [" + baseQueueDirectory + "]", iex);
+				}
+			}
+			consumer = new MessageQueueConsumer(this, key, listener, checkpoint);
+			consumers.put(key, consumer);
+		}
+		threadPool.execute(consumer);
+		log.info("Added consumer [{}] to MessageQueue [{}]", key, queueName);
+		return consumer;
+	}
+	
+	/**
+	 * Stops and removes the named consumer. A persistent consumer's checkpoint file is kept
+	 * so the consumer resumes where it left off if it is registered again.
+	 * @param name The consumer name
+	 * @return true if the consumer was found and removed, false otherwise
+	 */
+	public boolean removeConsumer(final String name) {
+		if(name==null) return false;
+		final MessageQueueConsumer consumer = consumers.remove(name.trim());
+		if(consumer==null) return false;
+		try { consumer.close(); } catch (Exception x) {/* No Op */}
+		log.info("Removed consumer [{}] from MessageQueue [{}]", consumer.getName(), queueName);
+		purgeRetainedRollFiles();
+		return true;
+	}
+	
+	/**
+	 * Returns the named consumer
+	 * @param name The consumer name
+	 * @return the consumer or null if not found
+	 */
+	public MessageQueueConsumer getConsumer(final String name) {
+		if(name==null) return null;
+		return consumers.get(name.trim());
+	}
+	
+	/**
+	 * Returns the names of the registered consumers
+	 * @return the consumer names
+	 */
+	public Set<String> getConsumerNames() {
+		return new HashSet<String>(consumers.keySet());
+	}
+	
 	/**
 	 * Closes this message queue
 	 * @throws IOException will not be thrown
@@ -338,6 +472,9 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 	public void close() throws IOException {
 		if(instances.remove(queueName)!=null) {
 			keepRunning.set(false);
+			for(MessageQueueConsumer consumer: consumers.values()) {
+				try { consumer.close(); } catch (Exception x) {/* No Op */}
+			}
 			try { threadPool.shutdown(); } catch (Exception x) {/* No Op */}
 			try { threadPool.awaitTermination(10, TimeUnit.SECONDS); } catch (Exception x) {/* No Op */}
 			if(!threadPool.isTerminated()) {
@@ -345,9 +482,197 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 				try { threadPool.shutdownNow(); } catch (Exception x) {/* No Op */}
 			}
 			try { queue.close(); } catch (Exception x) {/* No Op */}
+			for(MessageQueueConsumer consumer: consumers.values()) {
+				if(consumer.checkpoint!=null) try { consumer.checkpoint.close(); } catch (Exception x) {/* No Op */}
+			}
+			consumers.clear();
+		}
+	}
+	
+	/**
+	 * Registers the roll files left in the queue directory by a previous run so they are
+	 * deleted once the reader checkpoint moves past them. Files from the previous run are
+	 * never acquired again if the reader resumes in a later cycle, so no release would be fired for them.
+	 */
+	protected void retainExistingRollFiles() {
+		retainedRollFiles.putAll(rollFiles(baseQueueDirectory, rollCycle));
+		if(!retainedRollFiles.isEmpty()) {
+			log.info("Retaining [{}] existing roll files until checkpointed past", retainedRollFiles.size());
 		}
 	}
 	
+	/**
+	 * Lists the roll files in the passed queue directory
+	 * @param directory The queue directory
+	 * @param rc The roll cycle the queue was written under
+	 * @return the roll files keyed by cycle
+	 */
+	public static NavigableMap<Integer, File> rollFiles(final File directory, final RollCycle rc) {
+		final NavigableMap<Integer, File> rollFiles = new TreeMap<Integer, File>();
+		final File[] files = directory.listFiles();
+		if(files==null) return rollFiles;
+		final SimpleDateFormat sdf = new SimpleDateFormat(rc.format());
+		sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+		for(File f: files) {
+			final String fileName = f.getName();
+			if(!fileName.endsWith(SingleChronicleQueue.SUFFIX)) continue;
+			try {
+				final long time = sdf.parse(fileName.substring(0, fileName.length() - SingleChronicleQueue.SUFFIX.length())).getTime();
+				rollFiles.put((int)(time / rc.length()), f);
+			} catch (Exception ex) {
+				LogManager.getLogger(MessageQueue.class).warn("Failed to determine the cycle of roll file [{}]", f);
+			}
+		}
+		return rollFiles;
+	}
+	
+	/**
+	 * Returns the lowest cycle read by any of the registered consumers
+	 * @return the lowest read cycle, or {@link Integer#MIN_VALUE} if there are no consumers or any consumer has not read anything yet
+	 */
+	protected int minCheckpointCycle() {
+		if(consumers.isEmpty()) return Integer.MIN_VALUE;
+		int min = Integer.MAX_VALUE;
+		for(MessageQueueConsumer consumer: consumers.values()) {
+			final long index = consumer.getIndex();
+			if(index==TailerCheckpoint.NO_INDEX) return Integer.MIN_VALUE;
+			min = Math.min(min, rollCycle.toCycle(index));
+		}
+		return min;
+	}
+	
+	/**
+	 * Deletes the retained roll files for cycles that every consumer has moved past. If more than the configured maximum
+	 * number of roll files are retained, the oldest are deleted anyway so an idle or abandoned consumer cannot fill the disk.
+	 */
+	protected void purgeRetainedRollFiles() {
+		if(retainedRollFiles.isEmpty()) return;
+		final int safeCycle = minCheckpointCycle();
+		Map.Entry<Integer, File> entry;
+		while((entry = retainedRollFiles.firstEntry())!=null) {
+			final boolean overLimit = maxRetainedCycles > 0 && retainedRollFiles.size() > maxRetainedCycles;
+			if(entry.getKey() >= safeCycle && !overLimit) break;
+			if(retainedRollFiles.remove(entry.getKey(), entry.getValue())) {
+				if(entry.getKey() >= safeCycle) {
+					log.warn("Retained roll file limit [{}] exceeded. Deleting roll file [{}] before consumers {} have read past it",
+						maxRetainedCycles, entry.getValue(), laggingConsumers(entry.getKey()));
+				}
+				deleteRollFile(entry.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Returns the names of the consumers that have not read past the passed cycle
+	 * @param cycle The cycle
+	 * @return the lagging consumer names
+	 */
+	protected Set<String> laggingConsumers(final int cycle) {
+		final Set<String> names = new HashSet<String>();
+		for(MessageQueueConsumer consumer: consumers.values()) {
+			final long index = consumer.getIndex();
+			if(index==TailerCheckpoint.NO_INDEX || rollCycle.toCycle(index) <= cycle) names.add(consumer.getName());
+		}
+		return names;
+	}
+	
+	/**
+	 * Computes the number of excerpts appended after the slowest consumer's last read
+	 * @return the checkpoint lag
+	 */
+	protected long computeCheckpointLag() {
+		long lag = 0L;
+		for(MessageQueueConsumer consumer: consumers.values()) {
+			lag = Math.max(lag, consumer.getCheckpointLag());
+		}
+		return lag;
+	}
+	
+	/**
+	 * Computes the number of excerpts in this queue between two indexes
+	 * @param from The earlier index, or {@link TailerCheckpoint#NO_INDEX}
+	 * @param to The later index
+	 * @return the number of excerpts after <code>from</code> up to and including <code>to</code>
+	 */
+	protected synchronized long lag(final long from, final long to) {
+		if(lagTailer==null) lagTailer = queue.createTailer();
+		return lag(rollCycle, baseQueueDirectory, lagTailer, from, to);
+	}
+	
+	/**
+	 * Computes the number of excerpts between two indexes of a queue. When the indexes are in different cycles,
+	 * the excerpts left in the earlier index's cycle and in every roll file in between are counted too.
+	 * @param rc The roll cycle the indexes were issued under
+	 * @param directory The queue directory
+	 * @param tailer A tailer on the queue used only to probe cycle sizes. It is repositioned.
+	 * @param from The earlier index, or {@link TailerCheckpoint#NO_INDEX} to count from the start of the queue
+	 * @param to The later index
+	 * @return the number of excerpts after <code>from</code> up to and including <code>to</code>
+	 */
+	public static long lag(final RollCycle rc, final File directory, final ExcerptTailer tailer, final long from, final long to) {
+		if(from!=TailerCheckpoint.NO_INDEX) {
+			if(to <= from) return 0L;
+			if(rc.toCycle(from)==rc.toCycle(to)) return rc.toSequenceNumber(to) - rc.toSequenceNumber(from);
+		}
+		final int toCycle = rc.toCycle(to);
+		long lag = rc.toSequenceNumber(to) + 1;
+		int fromCycle = Integer.MIN_VALUE;
+		if(from!=TailerCheckpoint.NO_INDEX) {
+			fromCycle = rc.toCycle(from);
+			final long fromSeq = rc.toSequenceNumber(from);
+			lag += Math.max(0L, lastSequence(tailer, rc, fromCycle, fromSeq) - fromSeq);
+		}
+		for(Integer cycle: rollFiles(directory, rc).keySet()) {
+			if(cycle > fromCycle && cycle < toCycle) {
+				lag += lastSequence(tailer, rc, cycle, 0L) + 1;
+			}
+		}
+		return lag;
+	}
+	
+	/**
+	 * Finds the sequence number of the last excerpt in a cycle with an exponential then a binary search
+	 * @param tailer A tailer on the queue. It is repositioned.
+	 * @param rc The queue's roll cycle
+	 * @param cycle The cycle to search
+	 * @param known A sequence number known to be in the cycle
+	 * @return the last sequence number in the cycle, or -1 if the known sequence number is not found
+	 */
+	static long lastSequence(final ExcerptTailer tailer, final RollCycle rc, final int cycle, final long known) {
+		if(!tailer.moveToIndex(rc.toIndex(cycle, known))) return -1L;
+		long found = known;
+		long step = 1L;
+		while(tailer.moveToIndex(rc.toIndex(cycle, found + step))) {
+			found += step;
+			step <<= 1;
+		}
+		// found is present, found + step is not
+		long missing = found + step;
+		while(missing - found > 1) {
+			final long mid = (found + missing) >>> 1;
+			if(tailer.moveToIndex(rc.toIndex(cycle, mid))) found = mid;
+			else missing = mid;
+		}
+		return found;
+	}
+	
+	/**
+	 * Positions the passed tailer at the start of the first cycle holding excerpts written at or after the passed time.
+	 * Excerpts carry no timestamps, so the tailer is positioned at cycle granularity.
+	 * @param tailer The tailer to position
+	 * @param rc The queue's roll cycle
+	 * @param directory The queue directory
+	 * @param time The UTC long timestamp
+	 * @return true if the tailer was positioned, false if no excerpts were found in or after the time's cycle, in which case the tailer is not moved
+	 */
+	public static boolean moveToTime(final ExcerptTailer tailer, final RollCycle rc, final File directory, final long time) {
+		final long current = tailer.index();
+		for(Integer cycle: rollFiles(directory, rc).tailMap((int)(time / rc.length()), true).keySet()) {
+			if(tailer.moveToIndex(rc.toIndex(cycle, 0))) return true;
+		}
+		tailer.moveToIndex(current);
+		return false;
+	}
 	
 	public static void main(String[] args) {
 		log("MessageQueue Test");
@@ -445,80 +770,37 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 	 */
 	@Override
 	public String toString() {
-		return new StringBuilder("MessageQueue [").append(queueName).append(", dir:").append(this.baseQueueDirectory).append(", readers:").append(this.readerThreads).append("]").toString();
+		return new StringBuilder("MessageQueue [").append(queueName).append(", dir:").append(this.baseQueueDirectory).append(", consumers:").append(consumers.keySet()).append("]").toString();
 	}
 	
-	/**
-	 * {@inheritDoc}
-	 * @see java.lang.Runnable#run()
-	 */
-	@Override
-	public void run() {
-		final ExcerptTailer tailer = queue.createTailer();
-		final ByteBufMarshallable smm = new ByteBufMarshallable(compression); 
-		startLatch.countDown();
-		while(keepRunning.get()) {			
-			try {
-				long processed = 0L;
-				long reads = 0L;
-				int listenerProcessed = 0;
-				final long startTime = System.currentTimeMillis();
-				while(tailer.readBytes(smm)) {
-					chronicleReads.inc();
-					reads++;
-					final ByteBuf sm = smm.getAndNullByteBuf();
-					log.debug("MessageQueue Read Buffer, size: {} bytes", sm.readableBytes());
-					if(sm!=null) {
-						listenerProcessed += listener.onMetric(sm);
-//						sm.release();
-						processed++;
-						if(processed==stopCheckCount) {
-							processed = 0;
-							if(!keepRunning.get()) break;
-						}
-					}
-				}
-				if(reads==0) {
-					Jvm.pause(idlePauseTime);
-				} else {
-					final long elapsedTime = System.currentTimeMillis() - startTime;
-					log.info("Processed [{}] in [{}] ms.", listenerProcessed, elapsedTime);
-				}			
-				reads = 0;
-			} catch (Exception ex) {
-				if(ex instanceof InterruptedException) {
-					if(keepRunning.get()) {
-						if(Thread.interrupted()) Thread.interrupted();
-					}
-					log.info("Reader Thread [{}] shutting down", Thread.currentThread());
-				} else {
-					log.warn("Unexpected exception in reader thread",  ex);
-				}
-			}
-		}
-	}
-	
-	
-	
 	/**
 	 * Writes a bytes marshallable message to the queue
 	 * @param sm the streamed metric to write
+	 * @return the index the entry was written at
 	 */
-	public void writeEntry(final StreamedMetric sm) {
-		queue.acquireAppender()
-		.writeBytes(
+	public long writeEntry(final StreamedMetric sm) {
+		final ExcerptAppender appender = queue.acquireAppender();
+		appender.writeBytes(
 			uncompressedMarshallable.get().setByteBuff(sm.toByteBuff())
 		);
+		final long index = appender.lastIndexAppended();
+		lastAppendedIndex = index;
 		chronicleWrites.inc();
+		return index;
 	}
 	
 	/**
 	 * Writes a bytes marshallable ByteBuf to the queue
 	 * @param buff the ByteBuff to write
+	 * @return the index the entry was written at, which is passed to {@link MessageListener#onMetric(long, ByteBuf)} when it is read
 	 */
-	public void writeEntry(final ByteBuf buff) {
-		queue.acquireAppender().writeBytes(compressedMarshallable.get().setByteBuff(buff));
+	public long writeEntry(final ByteBuf buff) {
+		final ExcerptAppender appender = queue.acquireAppender();
+		appender.writeBytes(compressedMarshallable.get().setByteBuff(buff));
+		final long index = appender.lastIndexAppended();
+		lastAppendedIndex = index;
 		chronicleWrites.inc();
+		return index;
 	}
 
 
@@ -531,7 +813,7 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 	}
 
 	/**
-	 * Returns the total number of chronicle queue reads
+	 * Returns the total number of chronicle queue reads across all consumers
 	 * @return the total number of chronicle queue reads
 	 */
 	public long getChronicleReads() {
@@ -555,13 +837,29 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 	}
 
 	/**
-	 * Returns the processing queue backlog
+	 * Returns the processing queue backlog of the slowest consumer
 	 * @return the processing queue backlog
 	 */
 	public long getQueueBacklog() {
 		return queueBacklog.getValue();
 	}
 	
+	/**
+	 * Returns the number of excerpts appended since the slowest consumer's last checkpoint
+	 * @return the checkpoint lag
+	 */
+	public long getCheckpointLag() {
+		return checkpointLag.getValue();
+	}
+	
+	/**
+	 * Indicates if the reader position is checkpointed and the queue retained across restarts
+	 * @return true if persistent, false otherwise
+	 */
+	public boolean isPersistent() {
+		return persistent;
+	}
+	
 	
 
 
@@ -571,6 +869,16 @@ public class MessageQueue implements Closeable, StoreFileListener, Runnable {
 	 */
 	@Override
 	public void onReleased(final int cycle, final File file) {
+		// a consumer that has not reached this cycle yet would lose the file if it was deleted on release
+		retainedRollFiles.put(cycle, file);
+		purgeRetainedRollFiles();
+	}
+	
+	/**
+	 * Deletes a released roll file, or queues it for deletion on windows
+	 * @param file The roll file to delete
+	 */
+	protected void deleteRollFile(final File file) {
 		final long size = file.length();
 		final String name = file.getAbsolutePath();
 		if(IS_WIN) {
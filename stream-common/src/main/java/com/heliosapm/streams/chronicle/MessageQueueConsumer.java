@@ -0,0 +1,301 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.chronicle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.heliosapm.streams.buffers.ByteBufMarshallable;
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
+
+import io.netty.buffer.ByteBuf;
+import net.openhft.chronicle.core.Jvm;
+import net.openhft.chronicle.queue.ExcerptTailer;
+import net.openhft.chronicle.wire.DocumentContext;
+
+/**
+ * <p>Title: MessageQueueConsumer</p>
+ * <p>Description: A named consumer of a {@link MessageQueue}. Every consumer runs its own tailer on its own thread,
+ * so each one sees every excerpt written to the queue, keeps its own position and read/lag counters,
+ * and a slow consumer does not hold up the others.</p> 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.chronicle.MessageQueueConsumer</code></p>
+ */
+
+public class MessageQueueConsumer implements Runnable, Closeable {
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+	/** The queue being consumed */
+	protected final MessageQueue messageQueue;
+	/** The consumer name */
+	protected final String name;
+	/** The message listener that handles messages read back out of the queue */
+	protected final MessageListener listener;
+	/** The consumer's checkpoint, null unless the queue is persistent */
+	protected final TailerCheckpoint checkpoint;
+	/** The keep running flag for this consumer */
+	protected final AtomicBoolean keepRunning = new AtomicBoolean(true);
+	/** The index of the last excerpt handed to the listener */
+	protected volatile long index;
+	
+	/** The metric name suffix identifying this consumer */
+	protected final String metricSuffix;
+	/** A counter of this consumer's chronicle reads */
+	protected final Counter chronicleReads;
+	/** A cummulative counter of this consumer's read errors */
+	protected final Counter chronicleReadErrs;
+	/** A gauge of this consumer's backlog */
+	protected final Gauge<Long> queueBacklog;
+	/** A gauge of the number of excerpts appended since this consumer's last checkpoint */
+	protected final Gauge<Long> checkpointLag;
+	
+	/**
+	 * Creates a new MessageQueueConsumer
+	 * @param messageQueue The queue being consumed
+	 * @param name The consumer name
+	 * @param listener The message listener that handles messages read back out of the queue
+	 * @param checkpoint The consumer's checkpoint, null if the queue is not persistent
+	 */
+	MessageQueueConsumer(final MessageQueue messageQueue, final String name, final MessageListener listener, final TailerCheckpoint checkpoint) {
+		this.messageQueue = messageQueue;
+		this.name = name;
+		this.listener = listener;
+		this.checkpoint = checkpoint;
+		index = checkpoint==null ? TailerCheckpoint.NO_INDEX : checkpoint.getIndex();
+		metricSuffix = messageQueue.queueName + ",consumer=" + name;
+		chronicleReads = SharedMetricsRegistry.getInstance().counter("chronicle.reads.queue=" + metricSuffix);
+		chronicleReadErrs = SharedMetricsRegistry.getInstance().counter("chronicle.read.errors.queue=" + metricSuffix);
+		queueBacklog = SharedMetricsRegistry.getInstance().gauge("chronicle.backlog.queue=" + metricSuffix, new Callable<Long>(){
+			@Override
+			public Long call() throws Exception {				
+				// a resumed consumer reads excerpts written before this run, which the write count does not include
+				return Math.max(0L, messageQueue.chronicleWrites.getCount() - chronicleReads.getCount());
+			}
+		});
+		checkpointLag = SharedMetricsRegistry.getInstance().gauge("chronicle.checkpoint.lag.queue=" + metricSuffix, new Callable<Long>(){
+			@Override
+			public Long call() throws Exception {
+				final long last = messageQueue.lastAppendedIndex;
+				if(last==TailerCheckpoint.NO_INDEX) return 0L;
+				return messageQueue.lag(index, last);
+			}
+		});
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			final ExcerptTailer tailer = messageQueue.queue.createTailer();
+			if(checkpoint!=null) {
+				resume(tailer);
+				messageQueue.purgeRetainedRollFiles();
+			}
+			int indexCycle = index==TailerCheckpoint.NO_INDEX ? Integer.MIN_VALUE : messageQueue.rollCycle.toCycle(index);
+			final ByteBufMarshallable smm = new ByteBufMarshallable(messageQueue.codec); 
+			while(keepRunning.get() && messageQueue.keepRunning.get()) {			
+				try {
+					long processed = 0L;
+					long reads = 0L;
+					int listenerProcessed = 0;
+					final long startTime = System.currentTimeMillis();
+					while(true) {
+						final long readIndex;
+						try (final DocumentContext dc = tailer.readingDocument()) {
+							if(!dc.isPresent()) break;
+							readIndex = dc.index();
+							smm.readMarshallable(dc.wire().bytes());
+						}
+						reads++;
+						final ByteBuf sm = smm.getAndNullByteBuf();
+						if(sm!=null) {
+							log.debug("MessageQueue [{}] Read Buffer, size: {} bytes", name, sm.readableBytes());
+							final int dispatched = dispatch(tailer, readIndex, sm);
+							if(dispatched < 0) break;
+							listenerProcessed += dispatched;
+						}
+						chronicleReads.inc();
+						messageQueue.chronicleReads.inc();
+						if(sm!=null) {
+							index = readIndex;
+							if(checkpoint!=null) checkpoint.checkpoint(readIndex);
+							final int cycle = messageQueue.rollCycle.toCycle(readIndex);
+							if(cycle!=indexCycle) {
+								indexCycle = cycle;
+								messageQueue.purgeRetainedRollFiles();
+							}
+							processed++;
+							if(processed==messageQueue.stopCheckCount) {
+								processed = 0;
+								if(!keepRunning.get() || !messageQueue.keepRunning.get()) break;
+							}
+						}
+					}
+					if(reads==0) {
+						Jvm.pause(messageQueue.idlePauseTime);
+					} else {
+						final long elapsedTime = System.currentTimeMillis() - startTime;
+						log.info("Consumer [{}] Processed [{}] in [{}] ms.", name, listenerProcessed, elapsedTime);
+					}			
+					reads = 0;
+				} catch (Exception ex) {
+					if(ex instanceof InterruptedException) {
+						if(keepRunning.get()) {
+							if(Thread.interrupted()) Thread.interrupted();
+						}
+						log.info("Consumer [{}] Reader Thread [{}] shutting down", name, Thread.currentThread());
+					} else {
+						chronicleReadErrs.inc();
+						messageQueue.chronicleReadErrs.inc();
+						log.warn("Unexpected exception in consumer [{}] reader thread", name, ex);
+					}
+				}
+			}
+		} finally {
+			if(checkpoint!=null) try { checkpoint.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+	
+	/**
+	 * Hands a buffer to the listener. If the listener throws, the tailer is moved back to the excerpt
+	 * so it is read again after the idle pause, and it is not checkpointed.
+	 * The listener owns the buffer whether or not it throws.
+	 * @param tailer The consumer's tailer
+	 * @param readIndex The index of the excerpt the buffer was read from
+	 * @param sm The buffer
+	 * @return the number of messages the listener processed, or -1 if it failed and the excerpt will be retried
+	 */
+	protected int dispatch(final ExcerptTailer tailer, final long readIndex, final ByteBuf sm) {
+		try {
+			return listener.onMetric(readIndex, sm);
+		} catch (Exception ex) {
+			chronicleReadErrs.inc();
+			messageQueue.chronicleReadErrs.inc();
+			log.warn("Listener failed on excerpt [{}] in consumer [{}], retrying in [{}] ms.", Long.toHexString(readIndex), name, messageQueue.idlePauseTime, ex);
+			tailer.moveToIndex(readIndex);
+			Jvm.pause(messageQueue.idlePauseTime);
+			return -1;
+		}
+	}
+	
+	/**
+	 * Positions the passed tailer immediately after the excerpt recorded in this consumer's checkpoint
+	 * @param tailer The tailer to position
+	 */
+	protected void resume(final ExcerptTailer tailer) {
+		final long cpIndex = checkpoint.getIndex();
+		if(checkpoint.resume(tailer)) {
+			log.info("Consumer [{}] resumed after checkpointed index [{}]", name, Long.toHexString(cpIndex));
+		} else if(cpIndex==TailerCheckpoint.NO_INDEX) {
+			log.info("No checkpoint for consumer [{}], reading from start", name);
+		} else {
+			log.warn("Checkpointed index [{}] for consumer [{}] no longer in queue, reading from start", Long.toHexString(cpIndex), name);
+		}
+	}
+	
+	/**
+	 * Stops this consumer's reader thread and unregisters its metrics
+	 * @throws IOException will not be thrown
+	 */
+	@Override
+	public void close() throws IOException {
+		if(keepRunning.compareAndSet(true, false)) {
+			final SharedMetricsRegistry registry = SharedMetricsRegistry.getInstance();
+			registry.remove("chronicle.reads.queue=" + metricSuffix);
+			registry.remove("chronicle.read.errors.queue=" + metricSuffix);
+			registry.remove("gauge.chronicle.backlog.queue=" + metricSuffix);
+			registry.remove("gauge.chronicle.checkpoint.lag.queue=" + metricSuffix);
+		}
+	}
+	
+	/**
+	 * Returns the consumer name
+	 * @return the consumer name
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Returns the index of the last excerpt handed to the listener
+	 * @return the index of the last excerpt or {@link TailerCheckpoint#NO_INDEX} if none has been read
+	 */
+	public long getIndex() {
+		return index;
+	}
+	
+	/**
+	 * Returns the total number of chronicle queue reads by this consumer
+	 * @return the total number of reads
+	 */
+	public long getChronicleReads() {
+		return chronicleReads.getCount();
+	}
+	
+	/**
+	 * Returns the total number of chronicle queue read errors in this consumer
+	 * @return the total number of read errors
+	 */
+	public long getChronicleReadErrs() {
+		return chronicleReadErrs.getCount();
+	}
+	
+	/**
+	 * Returns this consumer's backlog
+	 * @return this consumer's backlog
+	 */
+	public long getQueueBacklog() {
+		return queueBacklog.getValue();
+	}
+	
+	/**
+	 * Returns the number of excerpts appended since this consumer's last read
+	 * @return the checkpoint lag
+	 */
+	public long getCheckpointLag() {
+		return checkpointLag.getValue();
+	}
+	
+	/**
+	 * Indicates if this consumer is still running
+	 * @return true if running, false otherwise
+	 */
+	public boolean isRunning() {
+		return keepRunning.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder("MessageQueueConsumer [").append(messageQueue.queueName).append("/").append(name).append(", index:").append(Long.toHexString(index)).append("]").toString();
+	}
+}
@@ -0,0 +1,169 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.chronicle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.openhft.chronicle.queue.ExcerptTailer;
+import net.openhft.chronicle.wire.DocumentContext;
+
+/**
+ * <p>Title: TailerCheckpoint</p>
+ * <p>Description: A small memory mapped side file that records the index of the last excerpt a named
+ * {@link MessageQueue} tailer handed to its listener, so the tailer can resume from that point after a restart.</p>
+ * <p>The index is written straight into the mapped page, so a checkpoint survives a process crash without
+ * an explicit flush. The page is forced to disk when the checkpoint is closed.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.chronicle.TailerCheckpoint</code></p>
+ */
+
+public class TailerCheckpoint implements Closeable {
+	/** The checkpoint file name suffix */
+	public static final String SUFFIX = ".checkpoint";
+	/** The index value indicating no excerpt has been checkpointed */
+	public static final long NO_INDEX = -1L;
+	/** The size of the mapped region: the index followed by the timestamp of the checkpoint */
+	private static final int SIZE = 16;
+	/** The offset of the index in the mapped region */
+	private static final int INDEX_OFFSET = 0;
+	/** The offset of the checkpoint timestamp in the mapped region */
+	private static final int TIME_OFFSET = 8;
+
+	/** The tailer name */
+	protected final String name;
+	/** The checkpoint file */
+	protected final File file;
+	/** The checkpoint file's random access file */
+	protected final RandomAccessFile raf;
+	/** The mapped checkpoint region */
+	protected final MappedByteBuffer mapped;
+	/** The last checkpointed index, cached for readers on other threads */
+	protected volatile long index;
+
+	/**
+	 * Opens or creates the checkpoint for the named tailer
+	 * @param directory The directory to write the checkpoint file in
+	 * @param name The tailer name
+	 * @throws IOException thrown if the checkpoint file cannot be opened or mapped
+	 */
+	public TailerCheckpoint(final File directory, final String name) throws IOException {
+		if(directory==null) throw new IllegalArgumentException("The passed directory was null");
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed name was null or empty");
+		this.name = name.trim();
+		file = new File(directory, this.name + SUFFIX);
+		final boolean exists = file.exists() && file.length() >= SIZE;
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+		} catch (IOException iex) {
+			try { raf.close(); } catch (Exception x) {/* No Op */}
+			throw iex;
+		}
+		if(!exists) {
+			mapped.putLong(INDEX_OFFSET, NO_INDEX);
+			mapped.putLong(TIME_OFFSET, System.currentTimeMillis());
+		}
+		index = mapped.getLong(INDEX_OFFSET);
+	}
+
+	/**
+	 * Records the index of the last excerpt handed to the tailer's listener.
+	 * Only the owning tailer thread should call this.
+	 * @param index the chronicle index of the excerpt
+	 */
+	public void checkpoint(final long index) {
+		mapped.putLong(INDEX_OFFSET, index);
+		mapped.putLong(TIME_OFFSET, System.currentTimeMillis());
+		this.index = index;
+	}
+
+	/**
+	 * Positions the passed tailer immediately after the checkpointed excerpt, which was already handed to the listener.
+	 * If nothing has been checkpointed, or the checkpointed excerpt is no longer in the queue, the tailer is moved to the start.
+	 * @param tailer The tailer to position
+	 * @return true if the tailer was positioned after the checkpointed excerpt, false if it was moved to the start
+	 */
+	public boolean resume(final ExcerptTailer tailer) {
+		final long cpIndex = index;
+		if(cpIndex!=NO_INDEX && tailer.moveToIndex(cpIndex)) {
+			try (final DocumentContext dc = tailer.readingDocument()) {
+				/* No Op */
+			}
+			return true;
+		}
+		tailer.toStart();
+		return false;
+	}
+
+	/**
+	 * Returns the last checkpointed index
+	 * @return the last checkpointed index or {@link #NO_INDEX} if nothing has been checkpointed
+	 */
+	public long getIndex() {
+		return index;
+	}
+
+	/**
+	 * Returns the UTC long timestamp of the last checkpoint
+	 * @return the timestamp of the last checkpoint
+	 */
+	public long getTimestamp() {
+		return mapped.getLong(TIME_OFFSET);
+	}
+
+	/**
+	 * Returns the tailer name
+	 * @return the tailer name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the checkpoint file
+	 * @return the checkpoint file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Forces the checkpoint to disk and closes the file
+	 * @throws IOException will not be thrown
+	 */
+	@Override
+	public void close() throws IOException {
+		try { mapped.force(); } catch (Exception x) {/* No Op */}
+		try { raf.close(); } catch (Exception x) {/* No Op */}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder("TailerCheckpoint [").append(name).append(", index:").append(index).append("]").toString();
+	}
+}
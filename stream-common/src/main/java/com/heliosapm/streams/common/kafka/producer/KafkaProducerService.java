@@ -200,6 +200,8 @@ public class KafkaProducerService<K, V> implements Producer<K, V> {
 		} catch (Exception ex) {
 			droppedMessages.inc();
 			log.error("Failed to send producer record", ex);
+			// the producer threw without completing the callback
+			if(callback!=null) callback.onCompletion(null, ex);
 			return failedFuture(ex);
 		}
 	}
@@ -21,10 +21,12 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -37,6 +39,7 @@ import javax.management.ObjectName;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
 
 import com.codahale.metrics.Meter;
 import com.google.common.base.Predicate;
@@ -48,15 +51,15 @@ import com.heliosapm.streams.tracing.deltas.DeltaManager;
 import com.heliosapm.utils.buffer.BufferManager;
 import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.utils.lang.StringHelper;
-import com.heliosapm.utils.time.SystemClock;
-import com.heliosapm.utils.time.SystemClock.ElapsedTime;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 
 /**
  * <p>Title: DefaultTracerImpl</p>
- * <p>Description: The default tracer implementation</p> 
+ * <p>Description: The default tracer implementation. The metric name, tag and timestamp state is not thread safe and
+ * must only be changed by one thread at a time. Traces may come from any number of threads: the header for the current
+ * state is resolved under the tracer's monitor and the metric is then written to the calling thread's buffer.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.streams.tracing.DefaultTracerImpl</code></p>
@@ -89,12 +92,10 @@ public class DefaultTracerImpl implements ITracer {
 	Long msTime = null;
 	/** The max number of traces before an auto-flush */
 	private int maxTracesBeforeFlush;
-	/** The current number of un-flushed events in the buffer */
-	private int bufferedEvents = 0;
 	/** The inquiry event count */
-	private long inqCount = 0;
+	private final LongAdder inqCount = new LongAdder();
 	/** The total number of events generated */
-	private long totalEvents = 0;
+	private final LongAdder totalEvents = new LongAdder();
 	/** The configured metric name segment delimiter */
 	public final char metricSegDelim;
 	/** Flag indicating if tag keys, values and metric names should be forced to lower case */
@@ -144,8 +145,26 @@ public class DefaultTracerImpl implements ITracer {
 //	ConfigurationHelper.getIntSystemThenEnvProperty(CONF_INIT_SIZE, DEFAULT_INIT_SIZE),
 //	ConfigurationHelper.getFloatSystemThenEnvProperty(CONF_EXT_PCT, DEFAULT_EXT_PCT)
 	
-	/** The buffer this tracer's traces are written out to before they're flushed */
-	private final ByteBuf outBuffer;
+	/** All the per-thread buffers this tracer's traces are written out to before they're flushed */
+	private final List<TraceBuffer> buffers = new CopyOnWriteArrayList<TraceBuffer>();
+	/** Indicates if this tracer has been closed */
+	private volatile boolean closed = false;
+	/** The calling thread's trace buffer */
+	private final ThreadLocal<TraceBuffer> threadBuffer = new ThreadLocal<TraceBuffer>() {
+		@Override
+		protected TraceBuffer initialValue() {
+			if(closed) return TraceBuffer.CLOSED_BUFFER;
+			final TraceBuffer tb = new TraceBuffer(bufferFactory, maxTracesBeforeFlush * 128);
+			buffers.add(tb);
+			// lost a race with close()
+			if(closed) tb.close();
+			return tb;
+		}
+	};
+	/** The encoded metric name and tag header cache */
+	private final TraceHeaderCache headerCache;
+	/** The registered metric handles keyed by type, name and tags */
+	private final NonBlockingHashMap<String, MetricHandle> handles = new NonBlockingHashMap<String, MetricHandle>();
 	
 	/** Instance logger */
 	protected final Logger log = LogManager.getLogger(getClass());
@@ -220,10 +239,7 @@ public class DefaultTracerImpl implements ITracer {
 		maxTags = 8;  // FIXME: config
 		minTags = 1;  // FIXME: config... allow zero for graphite et.al.
 		maxTracesBeforeFlush = 200;  // FIXME: config a default
-		outBuffer = bufferFactory.buffer(this.maxTracesBeforeFlush * 128); 
-		outBuffer.setByte(COMPRESS_OFFSET, 0);
-		outBuffer.setInt(COUNT_OFFSET, 0);
-		outBuffer.writerIndex(START_DATA_OFFSET);
+		headerCache = new TraceHeaderCache(ConfigurationHelper.getIntSystemThenEnvProperty(CONF_HEADER_CACHE_SIZE, DEFAULT_HEADER_CACHE_SIZE));
 		final Map<String, String> _appHostTags = AgentName.getInstance().defaultTags();
 		if(forceLower) {
 			for(String key: _appHostTags.keySet()) {
@@ -240,7 +256,17 @@ public class DefaultTracerImpl implements ITracer {
 	 */
 	@Override
 	public void close() throws IOException {
-		outBuffer.release();
+		closed = true;
+		threadBuffer.remove();
+		for(TraceBuffer tb: buffers) {
+			tb.close();
+		}
+		buffers.clear();
+		headerCache.clear();
+		for(MetricHandle h: handles.values()) {
+			h.discard();
+		}
+		handles.clear();
 	}
 
 	/**
@@ -251,10 +277,9 @@ public class DefaultTracerImpl implements ITracer {
 	public ITracer clear() {
 		reset();
 		checkpointStack.clear();		
-		outBuffer.clear();
-		outBuffer.setByte(COMPRESS_OFFSET, 0);
-		outBuffer.setInt(COUNT_OFFSET, 0);
-		outBuffer.writerIndex(START_DATA_OFFSET);		
+		for(TraceBuffer tb: buffers) {
+			tb.clear();
+		}
 		return this;
 	}
 
@@ -693,78 +718,223 @@ public class DefaultTracerImpl implements ITracer {
 //		return _trace(value, msTime==null ? System.currentTimeMillis() : msTime, tagValues);
 //	}
 	
-	private synchronized void traceOut(final long value, final long timestamp, final String...tagValues) {
-		final int pos = outBuffer.writerIndex();
-		try {			
-			modified = false;
-			incr();
-			final SortedMap<String, String> outTags;
-			if(tagValues!=null && tagValues.length > 0) {
-				outTags = new TreeMap<String, String>(TagKeySorter.INSTANCE);
-				outTags.putAll(buildTags(tagValues));
-			} else {
-				outTags = buildTags();
+	/**
+	 * Returns the encoded header for the current tracer state, building and caching it if this name and tag combination has not been seen.
+	 * Called under the tracer's monitor.
+	 * @param tagValues The optional tag values which will be paired up with the tag key stack
+	 * @return the header cache entry
+	 */
+	protected TraceHeaderCache.Entry header(final String...tagValues) {
+		final int hash = TraceHeaderCache.hash(metricNameStack, tagStack, tagKeyStack, tagValues);
+		final TraceHeaderCache.Entry entry = headerCache.get(hash, metricNameStack, tagStack, tagKeyStack, tagValues);
+		if(entry!=null) return entry;
+		final SortedMap<String, String> outTags = buildTags(tagValues);
+		addAppHostTags(outTags);
+		return headerCache.put(hash, metricNameStack, tagStack, tagKeyStack, tagValues, buildMetricName(), outTags);
+	}
+	
+	private void traceOut(final long value, final long timestamp, final String...tagValues) {
+		final byte[] header;
+		synchronized(this) {
+			final TraceHeaderCache.Entry entry;
+			try {			
+				modified = false;
+				entry = header(tagValues);
+			} catch (Exception ex) {
+				throw new RuntimeException("Failed to trace", ex);
 			}
-			addAppHostTags(outTags);
-			final String mn = buildMetricName();
 			if(suppressPredicate!=null) {
-				state.update(value, timestamp, mn, outTags);
-				if(suppressPredicate.apply(state)) {
-					decr();
-					return;
-				}
-			}
-			StreamedMetricValue.write(outBuffer, null, mn, timestamp, value, outTags);
-			traceOutEvents.increment();
-		} catch (Exception ex) {
-			outBuffer.writerIndex(pos);
-			decr();
-			throw new RuntimeException("Failed to trace", ex);
-		} finally {
-			if(bufferedEvents==maxTracesBeforeFlush) {
-				flush();
+				state.update(value, timestamp, entry.metricName, entry.tagMap);
+				if(suppressPredicate.apply(state)) return;
 			}
+			header = entry.header;
 		}
+		write(header, timestamp, value);
 	}
 
-	private synchronized void traceOut(final double value, final long timestamp, final String...tagValues) {
-		final int pos = outBuffer.writerIndex();
-		try {			
-			modified = false;
-			incr();
-			final SortedMap<String, String> outTags;
-			if(tagValues!=null && tagValues.length > 0) {
-				outTags = new TreeMap<String, String>(TagKeySorter.INSTANCE);
-				outTags.putAll(buildTags(tagValues));
-			} else {
-				outTags = buildTags();
+	private void traceOut(final double value, final long timestamp, final String...tagValues) {
+		final byte[] header;
+		synchronized(this) {
+			final TraceHeaderCache.Entry entry;
+			try {			
+				modified = false;
+				entry = header(tagValues);
+			} catch (Exception ex) {
+				throw new RuntimeException("Failed to trace", ex);
 			}
-			addAppHostTags(outTags);
-			final String mn = buildMetricName();
 			if(suppressPredicate!=null) {
-				state.update(value, timestamp, mn, outTags);
-				if(suppressPredicate.apply(state)) {
-					decr();
-					return;
-				}
+				state.update(value, timestamp, entry.metricName, entry.tagMap);
+				if(suppressPredicate.apply(state)) return;
 			}
-			StreamedMetricValue.write(outBuffer, null, mn, timestamp, value, outTags);
-			traceOutEvents.increment();
-		} catch (Exception ex) {
-			outBuffer.writerIndex(pos);
-			decr();
-			throw new RuntimeException("Failed to trace", ex);
+			header = entry.header;
+		}
+		write(header, timestamp, value);
+	}
+	
+	/**
+	 * Writes a long valued {@link StreamedMetricValue} with a pre-encoded header into the calling thread's buffer.
+	 * The metric is dropped if this tracer has been closed.
+	 * @param header The encoded metric name and tags
+	 * @param timestamp The metric timestamp
+	 * @param value The metric value
+	 */
+	void write(final byte[] header, final long timestamp, final long value) {
+		final TraceBuffer tb = threadBuffer.get();
+		final ByteBuf buf = tb.acquire();
+		if(buf==null) return;
+		final int count;
+		try {
+			writeHeader(buf, timestamp, header);
+			buf.writeByte(1);
+			buf.writeLong(value);
+		} finally {
+			count = tb.release(1);
+		}
+		written(tb, count);
+	}
+	
+	/**
+	 * Writes a double valued {@link StreamedMetricValue} with a pre-encoded header into the calling thread's buffer.
+	 * The metric is dropped if this tracer has been closed.
+	 * @param header The encoded metric name and tags
+	 * @param timestamp The metric timestamp
+	 * @param value The metric value
+	 */
+	void write(final byte[] header, final long timestamp, final double value) {
+		final TraceBuffer tb = threadBuffer.get();
+		final ByteBuf buf = tb.acquire();
+		if(buf==null) return;
+		final int count;
+		try {
+			writeHeader(buf, timestamp, header);
+			buf.writeByte(0);
+			buf.writeDouble(value);
 		} finally {
-			if(bufferedEvents==maxTracesBeforeFlush) {
-				flush();
+			count = tb.release(1);
+		}
+		written(tb, count);
+	}
+	
+	/**
+	 * Updates the trace counts after a write and flushes the buffer if it is full
+	 * @param tb The buffer written to
+	 * @param count The number of metrics now in the buffer
+	 */
+	private void written(final TraceBuffer tb, final int count) {
+		incr();
+		traceOutEvents.increment();
+		if(count>=maxTracesBeforeFlush) {
+			flush(tb);
+		}
+	}
+	
+	/**
+	 * Writes everything but the value of a {@link StreamedMetricValue} using a pre-encoded header
+	 * @param buf The buffer to write to
+	 * @param timestamp The metric timestamp
+	 * @param header The encoded metric name and tags
+	 */
+	private static void writeHeader(final ByteBuf buf, final long timestamp, final byte[] header) {
+		buf.writeByte(StreamedMetricValue.TYPE_CODE);
+		buf.writeByte(0);
+		buf.writeLong(timestamp);
+		buf.writeBytes(header);
+	}
+	
+	/**
+	 * Builds the sorted and cleaned tags for a metric handle, adding the app and host tags if not present
+	 * @param tags The handle tags
+	 * @return the sorted tags
+	 */
+	protected SortedMap<String, String> handleTags(final Map<String, String> tags) {
+		final TreeMap<String, String> tmap = new TreeMap<String, String>(TagKeySorter.INSTANCE);
+		if(tags!=null) {
+			for(Map.Entry<String, String> entry: tags.entrySet()) {
+				tmap.put(clean(entry.getKey()), clean(entry.getValue()));
+			}
+		}
+		addAppHostTags(tmap);
+		return tmap;
+	}
+	
+	/**
+	 * Returns the registered handle of the passed type for a series, creating and registering it if necessary
+	 * @param type The handle type
+	 * @param metricName The metric name
+	 * @param tags The handle tags
+	 * @param unit The unit for timer handles, ignored otherwise
+	 * @return the handle
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T extends MetricHandle> T handle(final Class<T> type, final String metricName, final Map<String, String> tags, final TimeUnit unit) {
+		if(metricName==null || metricName.trim().isEmpty()) throw new IllegalArgumentException("The passed metric name was null or empty");
+		final String name = clean(metricName);
+		final SortedMap<String, String> sortedTags = handleTags(tags);
+		final String key = MetricHandle.key(type, name, sortedTags) + (unit==null ? "" : unit.name());
+		MetricHandle h = handles.get(key);
+		if(h==null) {
+			final MetricHandle newHandle;
+			if(type==MetricHandle.CounterHandle.class) {
+				newHandle = new MetricHandle.CounterHandle(this, name, sortedTags);
+			} else if(type==MetricHandle.GaugeHandle.class) {
+				newHandle = new MetricHandle.GaugeHandle(this, name, sortedTags);
+			} else if(type==MetricHandle.TimerHandle.class) {
+				newHandle = new MetricHandle.TimerHandle(this, name, sortedTags, unit);
+			} else {
+				throw new IllegalArgumentException("Unsupported handle type [" + type.getName() + "]");
+			}
+			h = handles.putIfAbsent(key, newHandle);
+			if(h==null) {
+				h = newHandle;
+			} else {
+				newHandle.discard();
 			}
 		}
+		return (T)h;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.ITracer#counter(java.lang.String, java.lang.String[])
+	 */
+	@Override
+	public MetricHandle.CounterHandle counter(final String metricName, final String... tags) {
+		return handle(MetricHandle.CounterHandle.class, metricName, StreamedMetric.tagsFromArray(tags), null);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.ITracer#gauge(java.lang.String, java.lang.String[])
+	 */
+	@Override
+	public MetricHandle.GaugeHandle gauge(final String metricName, final String... tags) {
+		return handle(MetricHandle.GaugeHandle.class, metricName, StreamedMetric.tagsFromArray(tags), null);
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.ITracer#timer(java.lang.String, java.util.concurrent.TimeUnit, java.lang.String[])
+	 */
+	@Override
+	public MetricHandle.TimerHandle timer(final String metricName, final TimeUnit unit, final String... tags) {
+		if(unit==null) throw new IllegalArgumentException("The passed unit was null");
+		return handle(MetricHandle.TimerHandle.class, metricName, StreamedMetric.tagsFromArray(tags), unit);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.ITracer#permaMetric(java.lang.String, java.util.Map)
+	 */
+	@Override
 	public PMetric permaMetric(final String metricName, final Map<String, String> tags) {
 		return new PMetric(metricName, tags);
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.ITracer#permaMetric(java.lang.String, java.lang.String[])
+	 */
+	@Override
 	public PMetric permaMetric(final String metricName, final String... tags) {
 		return new PMetric(metricName, tags);
 	}
@@ -773,36 +943,28 @@ public class DefaultTracerImpl implements ITracer {
 	public static final int PMETRIC_TS_OFFSET = 2;
 	public static final long JVM_START_TIME = ManagementFactory.getRuntimeMXBean().getStartTime();
 	
-	public class PMetric {
+	/**
+	 * <p>Title: PMetric</p>
+	 * <p>Description: A pre-encoded metric with a fixed name and tags, which also times a single operation at a time
+	 * through {@link #start()} and {@link #stop()}. Unlike a registered {@link MetricHandle}, a new instance is created on each call,
+	 * so PMetrics are not counted in the handle metrics.</p> 
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.streams.tracing.DefaultTracerImpl.PMetric</code></p>
+	 */
+	public class PMetric extends MetricHandle {
 		/** The measurement start time */
 		final AtomicLong startTime = new AtomicLong(0L);
-		/** The metric buffer */
-		final ByteBuf buff;
-		/** The offset for the metric value */
-		final int voffset;
+		/** The last traced timestamp */
+		private volatile long lastTimestamp = 0L;
+		/** The last traced value */
+		private volatile Number lastValue = 0L;
 		
 		PMetric(final String metricName, final String... tags) {
 			this(metricName, StreamedMetric.tagsFromArray(tags));
 		}
 		
 		PMetric(final String metricName, final Map<String, String> tags) {
-			buff = BufferManager.getInstance().getUnPooledAllocator().directBuffer(128);
-			buff.writeByte(StreamedMetricValue.TYPE_CODE);
-			buff.writeByte(0);
-			buff.writeLong(0L);
-			BufferManager.writeUTF(metricName, buff);	
-			final Map<String, String> sortedTags = new TreeMap<String, String>(TagKeySorter.INSTANCE);
-			addAppHostTags(sortedTags);
-			buff.writeByte(sortedTags.size());
-			for(Map.Entry<String, String> entry: sortedTags.entrySet()) {
-				BufferManager.writeUTF(entry.getKey(), buff);
-				BufferManager.writeUTF(entry.getValue(), buff);
-			}
-			voffset = buff.writerIndex();
-			buff.writeByte(0);
-			buff.writeLong(0L);
-			buff.resetReaderIndex();
-						
+			super(DefaultTracerImpl.this, metricName, DefaultTracerImpl.this.handleTags(tags), false);
 		}
 		
 		public PMetric start() {
@@ -814,27 +976,7 @@ public class DefaultTracerImpl implements ITracer {
 			final long nowNanos = System.nanoTime();
 			final long value = nowNanos - startTime.getAndSet(0L);
 			//update(JVM_START_TIME + TimeUnit.NANOSECONDS.toMillis(nowNanos), value);
-			update(System.currentTimeMillis(), value);
-			return this;
-		}
-		
-		private PMetric update(final long timestamp, final long value) {
-			buff.setLong(PMETRIC_TS_OFFSET, timestamp);
-			buff.setByte(voffset, 1);
-			buff.setLong(voffset+1, value);	
-			outBuffer.writeBytes(buff.asReadOnly());
-			traceOutEvents.increment();
-			incr();
-			return this;
-		}
-		
-		private PMetric update(final long timestamp, final double value) {
-			buff.setLong(PMETRIC_TS_OFFSET, timestamp);
-			buff.setByte(voffset, 1);
-			buff.setDouble(voffset+1, value);		
-			outBuffer.writeBytes(buff.asReadOnly());
-			traceOutEvents.increment();
-			incr();
+			trace(System.currentTimeMillis(), value);
 			return this;
 		}
 		
@@ -843,32 +985,64 @@ public class DefaultTracerImpl implements ITracer {
 			return this;
 		}
 		
+		/**
+		 * Returns the last traced value of this metric, serialized into a buffer from the pooled tracer allocator.
+		 * The caller owns the returned buffer and must release it.
+		 * @return a buffer containing the serialized metric
+		 */
 		public ByteBuf readMetric() {
-			return buff.asReadOnly();
+			final ByteBuf buff = bufferFactory.buffer(header.length + 19);
+			try {
+				return readMetric(buff);
+			} catch (RuntimeException ex) {
+				buff.release();
+				throw ex;
+			}
 		}
 		
+		/**
+		 * Serializes the last traced value of this metric into the passed buffer
+		 * @param buff The buffer to write to
+		 * @return the passed buffer
+		 */
+		public ByteBuf readMetric(final ByteBuf buff) {
+			writeHeader(buff, lastTimestamp, header);
+			final Number v = lastValue;
+			if(v instanceof Double) {
+				buff.writeByte(0);
+				buff.writeDouble(v.doubleValue());
+			} else {
+				buff.writeByte(1);
+				buff.writeLong(v.longValue());
+			}
+			return buff;
+		}
+		
+		@Override
 		public PMetric trace(final long timestamp, final long value) {
-			update(timestamp, value);
+			super.trace(timestamp, value);
+			lastTimestamp = timestamp;
+			lastValue = value;
 			return this;
 		}
 		
+		@Override
 		public PMetric trace(final long value) {
 			return trace(System.currentTimeMillis(), value);			
 		}
 		
-		
+		@Override
 		public PMetric trace(final long timestamp, final double value) {
-			update(timestamp, value);
+			super.trace(timestamp, value);
+			lastTimestamp = timestamp;
+			lastValue = value;
 			return this;
 		}
 		
+		@Override
 		public PMetric trace(final double value) {
 			return trace(System.currentTimeMillis(), value);			
 		}
-		
-
-		
-		
 	}
 	
 	/**
@@ -885,9 +1059,8 @@ public class DefaultTracerImpl implements ITracer {
 	 * Increments traced event counts
 	 */
 	protected void incr() {
-		bufferedEvents++;
-		totalEvents++;
-		inqCount++;
+		totalEvents.increment();
+		inqCount.increment();
 		traceMeter.mark();		
 	}
 	
@@ -895,9 +1068,8 @@ public class DefaultTracerImpl implements ITracer {
 	 * Decrements traced event counts
 	 */
 	protected void decr() {
-		bufferedEvents--;
-		totalEvents--;
-		inqCount--;
+		totalEvents.decrement();
+		inqCount.decrement();
 		traceMeter.mark(-1L);		
 	}
 	
@@ -1134,34 +1306,38 @@ public class DefaultTracerImpl implements ITracer {
 
 	/**
 	 * {@inheritDoc}
+	 * <p>Harvests the buffers of every thread that has traced through this tracer.
+	 * A buffer being written to at the time is picked up by its owner's next auto-flush or the next call to this method.</p>
 	 * @see com.heliosapm.streams.tracing.ITracer#flush()
 	 */
 	@Override
 	public ITracer flush() {
-		if(bufferedEvents > 0) {
-			final ElapsedTime et = SystemClock.startClock();
-			outBuffer.setInt(COMPRESS_OFFSET, 0);
-			outBuffer.setInt(COUNT_OFFSET, bufferedEvents);
-			final ByteBuf bufferCopy = bufferFactory.buffer(outBuffer.readableBytes());
-//			bufferCopy.writeByte(0);
-//			bufferCopy.writeInt(bufferedEvents);
-			bufferCopy.writeBytes(outBuffer);
-			outBuffer.resetReaderIndex();
-			outBuffer.writerIndex(START_DATA_OFFSET);
-			final int finalCount = bufferedEvents;
-			flushPool.execute(new Runnable(){
-				@Override
-				public void run() {
-					writer.onMetrics(bufferCopy);
-					flushOutEvents.add(finalCount);
-//					log.info(et.printAvg("Metrics flushed", finalCount));
-				}
-			});
-			bufferedEvents = 0;
+		for(TraceBuffer tb: buffers) {
+			flush(tb);
+			if(tb.isOrphaned() && tb.count()==0 && buffers.remove(tb)) {
+				tb.close();
+			}
 		}
 		return this;
 	}
 	
+	/**
+	 * Harvests the passed buffer and hands the harvested metrics to the writer on the flush pool
+	 * @param tb The trace buffer to flush
+	 */
+	protected void flush(final TraceBuffer tb) {
+		final ByteBuf harvested = tb.harvest();
+		if(harvested==null) return;
+		final int finalCount = harvested.getInt(COUNT_OFFSET);
+		flushPool.execute(new Runnable(){
+			@Override
+			public void run() {
+				writer.onMetrics(harvested);
+				flushOutEvents.add(finalCount);
+			}
+		});
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.streams.tracing.ITracer#getMaxTracesBeforeFlush()
@@ -1179,7 +1355,7 @@ public class DefaultTracerImpl implements ITracer {
 	public ITracer setMaxTracesBeforeFlush(final int maxTracesBeforeFlush) {
 		if(maxTracesBeforeFlush < 1) throw new IllegalArgumentException("Invalid max traces [" + maxTracesBeforeFlush + "]. Must be > 0");
 		this.maxTracesBeforeFlush = maxTracesBeforeFlush;
-		if(bufferedEvents >= maxTracesBeforeFlush) {
+		if(getBufferedEvents() >= maxTracesBeforeFlush) {
 			flush();
 		}		
 		return this;
@@ -1289,9 +1465,9 @@ public class DefaultTracerImpl implements ITracer {
 		.append("\n\tTimestamp:").append(msTime)
 		.append("\n\tSupressPredicate:").append(suppressPredicate)
 		.append("\n\tFlushCount:").append(maxTracesBeforeFlush)
-		.append("\n\tBufferedEvents:").append(bufferedEvents)
-		.append("\n\tBuffer:").append(outBuffer)
-		.append("\n\tTotalTraces:").append(totalEvents);
+		.append("\n\tBufferedEvents:").append(getBufferedEvents())
+		.append("\n\tBuffers:").append(buffers.size())
+		.append("\n\tTotalTraces:").append(totalEvents.longValue());
 		return b.append("\n]").toString();
 	}
 	
@@ -1319,7 +1495,11 @@ public class DefaultTracerImpl implements ITracer {
 	 */
 	@Override
 	public int getBufferedEvents() {
-		return bufferedEvents;
+		int count = 0;
+		for(TraceBuffer tb: buffers) {
+			count += tb.count();
+		}
+		return count;
 	}
 	
 	/**
@@ -1328,7 +1508,7 @@ public class DefaultTracerImpl implements ITracer {
 	 */
 	@Override
 	public long getTotalEvents() {
-		return totalEvents;
+		return totalEvents.longValue();
 	}
 	
 	
@@ -1348,9 +1528,7 @@ public class DefaultTracerImpl implements ITracer {
 	 */
 	@Override
 	public long getSentEventCount() {
-		final long x = inqCount;
-		inqCount = 0;
-		return x;
+		return inqCount.sumThenReset();
 	}
 
 	/**
@@ -17,6 +17,7 @@ package com.heliosapm.streams.tracing;
 
 import java.io.Closeable;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.ObjectName;
 
@@ -57,6 +58,11 @@ public interface ITracer extends Closeable {
 	/** The default force to lower case flag */
 	public static final boolean DEFAULT_METRIC_FORCE_LOWER = true;
 	
+	/** The conf property key for the number of slots in each tracer's encoded metric header cache */
+	public static final String CONF_HEADER_CACHE_SIZE = "tracer.headercache.size";	
+	/** The default number of slots in each tracer's encoded metric header cache */
+	public static final int DEFAULT_HEADER_CACHE_SIZE = 256;
+	
 	
 	// =====================================
 	//  State ops
@@ -521,10 +527,51 @@ public interface ITracer extends Closeable {
 	 */
 	public long getTracedCount();
 	
+	/**
+	 * Creates a new pre-encoded metric with the passed name and tags
+	 * @param metricName The metric name
+	 * @param tags The metric tags
+	 * @return the new metric
+	 */
 	public PMetric permaMetric(final String metricName, final Map<String, String> tags);
 	
+	/**
+	 * Creates a new pre-encoded metric with the passed name and tags
+	 * @param metricName The metric name
+	 * @param tags The metric tags as <b><code>key=value</code></b> pairs or alternating keys and values
+	 * @return the new metric
+	 */
 	public PMetric permaMetric(final String metricName, final String... tags);
 	
+	// =====================================
+	//  Metric handles
+	// =====================================
+	
+	/**
+	 * Returns the thread safe counter handle for the passed series, creating it on first request
+	 * @param metricName The metric name
+	 * @param tags The metric tags as <b><code>key=value</code></b> pairs or alternating keys and values
+	 * @return the counter handle
+	 */
+	public MetricHandle.CounterHandle counter(final String metricName, final String... tags);
+	
+	/**
+	 * Returns the thread safe gauge handle for the passed series, creating it on first request
+	 * @param metricName The metric name
+	 * @param tags The metric tags as <b><code>key=value</code></b> pairs or alternating keys and values
+	 * @return the gauge handle
+	 */
+	public MetricHandle.GaugeHandle gauge(final String metricName, final String... tags);
+	
+	/**
+	 * Returns the thread safe timer handle for the passed series and unit, creating it on first request
+	 * @param metricName The metric name
+	 * @param unit The unit elapsed times are traced in
+	 * @param tags The metric tags as <b><code>key=value</code></b> pairs or alternating keys and values
+	 * @return the timer handle
+	 */
+	public MetricHandle.TimerHandle timer(final String metricName, final TimeUnit unit, final String... tags);
+	
 	
 
 }
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.streams.tracing;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
+
+/**
+ * <p>Title: MetricHandle</p>
+ * <p>Description: A thread safe handle to one metric series of a tracer. The metric name and tags are encoded once
+ * when the handle is created, so each trace only writes the timestamp, the pre-encoded header and the value into the
+ * calling thread's trace buffer. Handles are acquired from {@link ITracer#counter(String, String...)},
+ * {@link ITracer#gauge(String, String...)} and {@link ITracer#timer(String, TimeUnit, String...)}, which return the
+ * same handle for the same series.</p>
+ * <p>Traces through a handle bypass the tracer's name and tag state, its suppression predicate and its active flag.</p>
+ * <p>The number of registered handles and the approximate footprint of their templates are published to the
+ * {@link SharedMetricsRegistry} as <b><code>tracer.handles.count</code></b> and <b><code>tracer.handles.bytes</code></b>.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.tracing.MetricHandle</code></p>
+ */
+
+public class MetricHandle {
+	/** The number of registered handles across all tracers */
+	private static final AtomicLong handleCount = new AtomicLong(0L);
+	/** The approximate footprint in bytes of the registered handle templates across all tracers */
+	private static final AtomicLong handleBytes = new AtomicLong(0L);
+	/** The approximate fixed footprint of a handle in bytes */
+	private static final int HANDLE_OVERHEAD = 64;
+	
+	static {
+		SharedMetricsRegistry.getInstance().gauge("tracer.handles.count", new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {				
+				return handleCount.get();
+			}
+		});
+		SharedMetricsRegistry.getInstance().gauge("tracer.handles.bytes", new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {				
+				return handleBytes.get();
+			}
+		});
+	}
+	
+	/** The tracer this handle writes through */
+	protected final DefaultTracerImpl tracer;
+	/** The metric name */
+	protected final String metricName;
+	/** The sorted tags, including the app and host tags */
+	protected final Map<String, String> tags;
+	/** The encoded metric name and tags */
+	protected final byte[] header;
+	/** Indicates if this handle is registered with its tracer and counted in the handle metrics */
+	private final boolean registered;
+	
+	/**
+	 * Creates a new registered MetricHandle
+	 * @param tracer The tracer this handle writes through
+	 * @param metricName The metric name
+	 * @param tags The sorted tags, including the app and host tags
+	 */
+	protected MetricHandle(final DefaultTracerImpl tracer, final String metricName, final SortedMap<String, String> tags) {
+		this(tracer, metricName, tags, true);
+	}
+	
+	/**
+	 * Creates a new MetricHandle
+	 * @param tracer The tracer this handle writes through
+	 * @param metricName The metric name
+	 * @param tags The sorted tags, including the app and host tags
+	 * @param registered true if the handle is registered with its tracer, which discards it on close,
+	 * false for a handle that is never discarded and so is not counted in the handle metrics
+	 */
+	protected MetricHandle(final DefaultTracerImpl tracer, final String metricName, final SortedMap<String, String> tags, final boolean registered) {
+		this.tracer = tracer;
+		this.metricName = metricName;
+		this.tags = Collections.unmodifiableMap(tags);
+		this.registered = registered;
+		header = TraceHeaderCache.encode(metricName, tags);
+		if(registered) {
+			handleCount.incrementAndGet();
+			handleBytes.addAndGet(footprint());
+		}
+	}
+	
+	/**
+	 * Returns the approximate footprint of this handle, excluding the strings
+	 * @return the footprint in bytes
+	 */
+	long footprint() {
+		return HANDLE_OVERHEAD + header.length;
+	}
+	
+	/**
+	 * Returns the number of registered handles across all tracers
+	 * @return the number of registered handles
+	 */
+	static long handleCount() {
+		return handleCount.get();
+	}
+	
+	/**
+	 * Called when the owning tracer discards this handle
+	 */
+	void discard() {
+		if(!registered) return;
+		handleCount.decrementAndGet();
+		handleBytes.addAndGet(-footprint());
+	}
+	
+	/**
+	 * Traces a value with the current time
+	 * @param value The value to trace
+	 * @return this handle
+	 */
+	public MetricHandle trace(final long value) {
+		tracer.write(header, System.currentTimeMillis(), value);
+		return this;
+	}
+	
+	/**
+	 * Traces a value
+	 * @param timestamp The timestamp in ms.
+	 * @param value The value to trace
+	 * @return this handle
+	 */
+	public MetricHandle trace(final long timestamp, final long value) {
+		tracer.write(header, timestamp, value);
+		return this;
+	}
+	
+	/**
+	 * Traces a value with the current time
+	 * @param value The value to trace
+	 * @return this handle
+	 */
+	public MetricHandle trace(final double value) {
+		tracer.write(header, System.currentTimeMillis(), value);
+		return this;
+	}
+	
+	/**
+	 * Traces a value
+	 * @param timestamp The timestamp in ms.
+	 * @param value The value to trace
+	 * @return this handle
+	 */
+	public MetricHandle trace(final long timestamp, final double value) {
+		tracer.write(header, timestamp, value);
+		return this;
+	}
+	
+	/**
+	 * Returns the metric name
+	 * @return the metric name
+	 */
+	public String getMetricName() {
+		return metricName;
+	}
+	
+	/**
+	 * Returns the sorted tags
+	 * @return the tags
+	 */
+	public Map<String, String> getTags() {
+		return tags;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[" + metricName + ":" + tags + "]";
+	}
+	
+	/**
+	 * Builds the registry key for a handle
+	 * @param type The handle type
+	 * @param metricName The metric name
+	 * @param tags The sorted tags
+	 * @return the key
+	 */
+	static String key(final Class<? extends MetricHandle> type, final String metricName, final Map<String, String> tags) {
+		return new StringBuilder(type.getSimpleName()).append(':').append(metricName).append(':').append(tags).toString();
+	}
+	
+	/**
+	 * <p>Title: CounterHandle</p>
+	 * <p>Description: A monotonic counter. Increments are accumulated and the running count is traced on {@link #trace()}.</p> 
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.streams.tracing.MetricHandle.CounterHandle</code></p>
+	 */
+	public static class CounterHandle extends MetricHandle {
+		/** The running count */
+		private final LongAdder count = new LongAdder();
+
+		CounterHandle(final DefaultTracerImpl tracer, final String metricName, final SortedMap<String, String> tags) {
+			super(tracer, metricName, tags);
+		}
+		
+		/**
+		 * Increments the count by one
+		 * @return this handle
+		 */
+		public CounterHandle inc() {
+			count.increment();
+			return this;
+		}
+		
+		/**
+		 * Increments the count
+		 * @param n The amount to increment by
+		 * @return this handle
+		 */
+		public CounterHandle inc(final long n) {
+			count.add(n);
+			return this;
+		}
+		
+		/**
+		 * Returns the running count
+		 * @return the count
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+		
+		/**
+		 * Traces the running count with the current time
+		 * @return this handle
+		 */
+		public CounterHandle trace() {
+			trace(count.sum());
+			return this;
+		}
+	}
+	
+	/**
+	 * <p>Title: GaugeHandle</p>
+	 * <p>Description: A gauge which traces each value it is set to and retains the last one</p> 
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.streams.tracing.MetricHandle.GaugeHandle</code></p>
+	 */
+	public static class GaugeHandle extends MetricHandle {
+		/** The last value */
+		private volatile Number last = null;
+
+		GaugeHandle(final DefaultTracerImpl tracer, final String metricName, final SortedMap<String, String> tags) {
+			super(tracer, metricName, tags);
+		}
+		
+		/**
+		 * Sets and traces the gauge value
+		 * @param value The value
+		 * @return this handle
+		 */
+		public GaugeHandle set(final long value) {
+			trace(value);
+			last = value;
+			return this;
+		}
+		
+		/**
+		 * Sets and traces the gauge value
+		 * @param value The value
+		 * @return this handle
+		 */
+		public GaugeHandle set(final double value) {
+			trace(value);
+			last = value;
+			return this;
+		}
+		
+		/**
+		 * Returns the last value the gauge was set to
+		 * @return the last value or null if never set
+		 */
+		public Number getLast() {
+			return last;
+		}
+	}
+	
+	/**
+	 * <p>Title: TimerHandle</p>
+	 * <p>Description: Traces elapsed times in a fixed unit. Timings are tracked with tokens returned by {@link #start()},
+	 * so a timer can be shared by concurrently timed operations.</p> 
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.streams.tracing.MetricHandle.TimerHandle</code></p>
+	 */
+	public static class TimerHandle extends MetricHandle {
+		/** The unit elapsed times are traced in */
+		private final TimeUnit unit;
+
+		TimerHandle(final DefaultTracerImpl tracer, final String metricName, final SortedMap<String, String> tags, final TimeUnit unit) {
+			super(tracer, metricName, tags);
+			this.unit = unit;
+		}
+		
+		/**
+		 * Starts a timing
+		 * @return the token to pass to {@link #stop(long)}
+		 */
+		public long start() {
+			return System.nanoTime();
+		}
+		
+		/**
+		 * Stops a timing and traces the elapsed time
+		 * @param token The token returned by {@link #start()}
+		 * @return the elapsed time in the timer's unit
+		 */
+		public long stop(final long token) {
+			final long elapsed = unit.convert(System.nanoTime() - token, TimeUnit.NANOSECONDS);
+			trace(elapsed);
+			return elapsed;
+		}
+		
+		/**
+		 * Traces an externally measured elapsed time
+		 * @param elapsed The elapsed time
+		 * @param elapsedUnit The unit of the elapsed time
+		 * @return this handle
+		 */
+		public TimerHandle update(final long elapsed, final TimeUnit elapsedUnit) {
+			trace(unit.convert(elapsed, elapsedUnit));
+			return this;
+		}
+		
+		/**
+		 * Returns the unit elapsed times are traced in
+		 * @return the unit
+		 */
+		public TimeUnit getUnit() {
+			return unit;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.streams.tracing;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * <p>Title: TraceBuffer</p>
+ * <p>Description: A single thread's trace output buffer. The owning thread appends encoded metrics without contention
+ * and a flushing thread harvests the buffered metrics by swapping in an empty buffer. A small state flag takes the place
+ * of a monitor: the owner only waits if it catches a harvest in progress, and a harvester simply skips a buffer that
+ * is being written to. Once closed the buffer stays closed: writes and harvests are refused and clears are no-ops.</p> 
+ * <p>The buffer is laid out as the writers expect it: a compression byte, the metric count, then the metrics.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.tracing.TraceBuffer</code></p>
+ */
+
+final class TraceBuffer {
+	/** State indicating the buffer is idle */
+	private static final int IDLE = 0;
+	/** State indicating the owning thread is writing */
+	private static final int WRITING = 1;
+	/** State indicating a harvest is in progress */
+	private static final int HARVESTING = 2;
+	/** State indicating the buffer has been closed */
+	private static final int CLOSED = 3;
+	
+	/** A closed buffer handed out to threads that first trace after their tracer was closed */
+	static final TraceBuffer CLOSED_BUFFER = new TraceBuffer();
+	
+	/** The buffer state */
+	private final AtomicInteger state = new AtomicInteger(IDLE);
+	/** The allocator for replacement buffers */
+	private final ByteBufAllocator allocator;
+	/** The initial capacity of replacement buffers */
+	private final int capacity;
+	/** The owning thread */
+	private final WeakReference<Thread> owner;
+	/** The current buffer, only accessed while the state is not idle */
+	private ByteBuf buf;
+	/** The number of metrics in the current buffer, only updated while the state is not idle */
+	private int count = 0;
+	
+	/**
+	 * Creates a new TraceBuffer owned by the calling thread
+	 * @param allocator The allocator for buffers
+	 * @param capacity The initial capacity of buffers
+	 */
+	TraceBuffer(final ByteBufAllocator allocator, final int capacity) {
+		this.allocator = allocator;
+		this.capacity = capacity;
+		owner = new WeakReference<Thread>(Thread.currentThread());
+		buf = newBuffer();
+	}
+	
+	/**
+	 * Creates a new closed TraceBuffer with no underlying buffer
+	 */
+	private TraceBuffer() {
+		allocator = null;
+		capacity = 0;
+		owner = new WeakReference<Thread>(null);
+		buf = null;
+		state.set(CLOSED);
+	}
+	
+	/**
+	 * Acquires the buffer for writing by the owning thread
+	 * @return the buffer to write to, or null if the buffer is closed
+	 */
+	ByteBuf acquire() {
+		if(!lock(WRITING)) return null;
+		return buf;
+	}
+	
+	/**
+	 * Releases the buffer after writing
+	 * @param written The number of metrics written since {@link #acquire()}
+	 * @return the number of metrics now in the buffer
+	 */
+	int release(final int written) {
+		final int c = count + written;
+		count = c;
+		state.set(IDLE);
+		return c;
+	}
+	
+	/**
+	 * Swaps out the buffered metrics if there are any, stamping the metric count into the swapped out buffer.
+	 * Called by the owning thread this always succeeds. Called by any other thread it skips the buffer if the owner is writing.
+	 * @return the harvested buffer which the caller must release, or null if there was nothing to harvest or the buffer is closed
+	 */
+	ByteBuf harvest() {
+		if(!state.compareAndSet(IDLE, HARVESTING)) {
+			if(Thread.currentThread()!=owner.get()) return null;
+			if(!lock(HARVESTING)) return null;
+		}
+		try {
+			if(count==0) return null;
+			final ByteBuf b = buf;
+			b.setInt(DefaultTracerImpl.COUNT_OFFSET, count);
+			buf = newBuffer();
+			count = 0;
+			return b;
+		} finally {
+			state.set(IDLE);
+		}
+	}
+	
+	/**
+	 * Returns the number of metrics buffered. The result is approximate if read by a thread other than the owner.
+	 * @return the number of buffered metrics
+	 */
+	int count() {
+		return count;
+	}
+	
+	/**
+	 * Indicates if the owning thread has been collected or has terminated
+	 * @return true if the owner is gone, false otherwise
+	 */
+	boolean isOrphaned() {
+		final Thread t = owner.get();
+		return t==null || !t.isAlive();
+	}
+	
+	/**
+	 * Discards the buffered metrics
+	 * @return the number of discarded metrics
+	 */
+	int clear() {
+		if(!lock(HARVESTING)) return 0;
+		try {
+			final int c = count;
+			buf.writerIndex(DefaultTracerImpl.START_DATA_OFFSET);
+			count = 0;
+			return c;
+		} finally {
+			state.set(IDLE);
+		}
+	}
+	
+	/**
+	 * Releases the underlying buffer and leaves the TraceBuffer closed. Subsequent calls are no-ops.
+	 */
+	void close() {
+		if(!lock(CLOSED)) return;
+		buf.release();
+		buf = null;
+		count = 0;
+	}
+	
+	/**
+	 * Waits for the buffer to be idle and moves it to the passed state
+	 * @param to The state to move to
+	 * @return true if the state was moved, false if the buffer is closed
+	 */
+	private boolean lock(final int to) {
+		while(!state.compareAndSet(IDLE, to)) {
+			if(state.get()==CLOSED) return false;
+			Thread.yield();
+		}
+		return true;
+	}
+	
+	/**
+	 * Allocates a new buffer with the header written
+	 * @return the new buffer
+	 */
+	private ByteBuf newBuffer() {
+		final ByteBuf b = allocator.buffer(capacity);
+		b.writeByte(0);
+		b.writeInt(0);
+		return b;
+	}
+}
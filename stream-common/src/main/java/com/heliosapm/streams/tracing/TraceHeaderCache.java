@@ -0,0 +1,279 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.streams.tracing;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.Stack;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.Counter;
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
+import com.heliosapm.utils.buffer.BufferManager;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * <p>Title: TraceHeaderCache</p>
+ * <p>Description: A bounded, direct mapped cache of encoded metric name and tag headers keyed by a tracer's
+ * name segment, tag and tag key stacks plus the trace's tag values. A trace with a name and tag combination that
+ * has been seen before is matched by comparing the live stacks to the cached snapshot in place, and the encoded
+ * header is copied straight into the output buffer without building the name or the tag map.</p>
+ * <p>Entries are immutable and published through a plain array. Colliding combinations replace each other.</p>
+ * <p>Hits, misses, the hit rate and the approximate footprint of all cached entries across all tracers are published
+ * to the {@link SharedMetricsRegistry} as <b><code>tracer.headercache.*</code></b>.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.tracing.TraceHeaderCache</code></p>
+ */
+
+final class TraceHeaderCache {
+	/** An empty string array */
+	private static final String[] EMPTY = {};
+	/** The approximate fixed footprint of an entry in bytes */
+	private static final int ENTRY_OVERHEAD = 128;
+	
+	/** A counter of cache hits across all tracers */
+	private static final Counter hits = SharedMetricsRegistry.getInstance().counter("tracer.headercache.hits");
+	/** A counter of cache misses across all tracers */
+	private static final Counter misses = SharedMetricsRegistry.getInstance().counter("tracer.headercache.misses");
+	/** The approximate footprint in bytes of the cached entries across all tracers */
+	private static final AtomicLong footprint = new AtomicLong(0L);
+	
+	static {
+		SharedMetricsRegistry.getInstance().gauge("tracer.headercache.bytes", new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {				
+				return footprint.get();
+			}
+		});
+		SharedMetricsRegistry.getInstance().gauge("tracer.headercache.hitrate", new Callable<Double>() {
+			@Override
+			public Double call() throws Exception {
+				final long h = hits.getCount();
+				final long total = h + misses.getCount();
+				return total==0 ? 0D : (double)h / total;
+			}
+		});
+	}
+	
+	/** The cache slots */
+	private final Entry[] slots;
+	/** The slot index mask */
+	private final int mask;
+	
+	/**
+	 * Creates a new TraceHeaderCache
+	 * @param size The requested number of slots, rounded up to the next power of 2
+	 */
+	TraceHeaderCache(final int size) {
+		if(size < 1) throw new IllegalArgumentException("Invalid header cache size [" + size + "]");
+		int cap = 1;
+		while(cap < size) cap <<= 1;
+		slots = new Entry[cap];
+		mask = cap - 1;
+	}
+	
+	/**
+	 * Computes the hash of a tracer state
+	 * @param segs The metric name segment stack
+	 * @param tags The tag pair stack
+	 * @param keys The tag key stack
+	 * @param values The trace tag values
+	 * @return the hash
+	 */
+	static int hash(final Stack<String> segs, final Stack<String[]> tags, final List<String> keys, final String[] values) {
+		int h = 1;
+		for(int i = 0, n = segs.size(); i < n; i++) {
+			h = 31 * h + segs.get(i).hashCode();
+		}
+		for(int i = 0, n = tags.size(); i < n; i++) {
+			final String[] pair = tags.get(i);
+			h = 31 * h + pair[0].hashCode();
+			h = 31 * h + pair[1].hashCode();
+		}
+		if(values!=null && values.length > 0) {
+			for(String key: keys) {
+				h = 31 * h + key.hashCode();
+			}
+			for(String value: values) {
+				h = 31 * h + (value==null ? 0 : value.hashCode());
+			}
+		}
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * Looks up the entry for a tracer state
+	 * @param hash The state hash from {@link #hash(Stack, Stack, List, String[])}
+	 * @param segs The metric name segment stack
+	 * @param tags The tag pair stack
+	 * @param keys The tag key stack
+	 * @param values The trace tag values
+	 * @return the matching entry or null if not cached
+	 */
+	Entry get(final int hash, final Stack<String> segs, final Stack<String[]> tags, final List<String> keys, final String[] values) {
+		final Entry e = slots[hash & mask];
+		if(e!=null && e.hash==hash && e.matches(segs, tags, keys, values)) {
+			hits.inc();
+			return e;
+		}
+		misses.inc();
+		return null;
+	}
+	
+	/**
+	 * Creates and caches the entry for a tracer state
+	 * @param hash The state hash from {@link #hash(Stack, Stack, List, String[])}
+	 * @param segs The metric name segment stack
+	 * @param tags The tag pair stack
+	 * @param keys The tag key stack
+	 * @param values The trace tag values
+	 * @param metricName The metric name built from the state
+	 * @param tagMap The sorted tags built from the state
+	 * @return the new entry
+	 */
+	Entry put(final int hash, final Stack<String> segs, final Stack<String[]> tags, final List<String> keys, final String[] values, final String metricName, final SortedMap<String, String> tagMap) {
+		final Entry e = new Entry(hash, segs, tags, keys, values, metricName, tagMap);
+		final Entry prior = slots[hash & mask];
+		slots[hash & mask] = e;
+		footprint.addAndGet(prior==null ? e.footprint() : e.footprint() - prior.footprint());
+		return e;
+	}
+	
+	/**
+	 * Releases the accounted footprint of this cache's entries. Called when the owning tracer is closed.
+	 */
+	void clear() {
+		for(int i = 0; i < slots.length; i++) {
+			final Entry e = slots[i];
+			if(e!=null) {
+				slots[i] = null;
+				footprint.addAndGet(-e.footprint());
+			}
+		}
+	}
+	
+	/**
+	 * Returns the approximate footprint in bytes of the cached entries across all tracers
+	 * @return the footprint in bytes
+	 */
+	static long footprint() {
+		return footprint.get();
+	}
+	
+	/**
+	 * Encodes a metric name, the tag count and the tags as they appear in a serialized {@link com.heliosapm.streams.metrics.StreamedMetricValue}
+	 * @param metricName The metric name
+	 * @param tagMap The sorted tags
+	 * @return the encoded bytes
+	 */
+	static byte[] encode(final String metricName, final SortedMap<String, String> tagMap) {
+		final ByteBuf b = Unpooled.buffer(128);
+		try {
+			BufferManager.writeUTF(metricName, b);
+			b.writeByte(tagMap.size());
+			for(Map.Entry<String, String> entry: tagMap.entrySet()) {
+				BufferManager.writeUTF(entry.getKey(), b);
+				BufferManager.writeUTF(entry.getValue(), b);
+			}
+			final byte[] header = new byte[b.readableBytes()];
+			b.readBytes(header);
+			return header;
+		} finally {
+			b.release();
+		}
+	}
+	
+	/**
+	 * <p>Title: Entry</p>
+	 * <p>Description: An immutable snapshot of a tracer state and its encoded header</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.streams.tracing.TraceHeaderCache.Entry</code></p>
+	 */
+	static final class Entry {
+		/** The state hash */
+		final int hash;
+		/** The metric name segments */
+		final String[] segs;
+		/** The tag pairs, flattened */
+		final String[] tags;
+		/** The tag keys, empty if there were no tag values */
+		final String[] keys;
+		/** The tag values */
+		final String[] values;
+		/** The metric name */
+		final String metricName;
+		/** The sorted tags */
+		final Map<String, String> tagMap;
+		/** The encoded metric name, tag count and tags */
+		final byte[] header;
+		
+		Entry(final int hash, final Stack<String> segs, final Stack<String[]> tags, final List<String> keys, final String[] values, final String metricName, final SortedMap<String, String> tagMap) {
+			this.hash = hash;
+			this.segs = segs.toArray(new String[segs.size()]);
+			this.tags = new String[tags.size() * 2];
+			for(int i = 0, n = tags.size(); i < n; i++) {
+				final String[] pair = tags.get(i);
+				this.tags[i * 2] = pair[0];
+				this.tags[i * 2 + 1] = pair[1];
+			}
+			final boolean hasValues = values!=null && values.length > 0;
+			this.keys = hasValues ? keys.toArray(new String[keys.size()]) : EMPTY;
+			this.values = hasValues ? values.clone() : EMPTY;
+			this.metricName = metricName;
+			this.tagMap = Collections.unmodifiableSortedMap(new TreeMap<String, String>(tagMap));
+			header = encode(metricName, tagMap);
+		}
+		
+		/**
+		 * Returns the approximate footprint of this entry, excluding the strings which are shared with the tracer
+		 * @return the footprint in bytes
+		 */
+		long footprint() {
+			return ENTRY_OVERHEAD + header.length + 4L * (segs.length + tags.length + keys.length + values.length);
+		}
+		
+		boolean matches(final Stack<String> segs, final Stack<String[]> tags, final List<String> keys, final String[] values) {
+			if(this.segs.length!=segs.size() || this.tags.length!=tags.size() * 2) return false;
+			for(int i = 0; i < this.segs.length; i++) {
+				if(!this.segs[i].equals(segs.get(i))) return false;
+			}
+			for(int i = 0, n = tags.size(); i < n; i++) {
+				final String[] pair = tags.get(i);
+				if(!this.tags[i * 2].equals(pair[0]) || !this.tags[i * 2 + 1].equals(pair[1])) return false;
+			}
+			if(values==null || values.length==0) return this.values.length==0;
+			if(this.values.length!=values.length || this.keys.length!=keys.size()) return false;
+			for(int i = 0; i < values.length; i++) {
+				if(!eq(this.values[i], values[i])) return false;
+			}
+			int i = 0;
+			for(String key: keys) {
+				if(!this.keys[i++].equals(key)) return false;
+			}
+			return true;
+		}
+		
+		private static boolean eq(final String a, final String b) {
+			return a==null ? b==null : a.equals(b);
+		}
+	}
+}
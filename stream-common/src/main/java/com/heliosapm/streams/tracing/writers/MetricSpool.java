@@ -0,0 +1,742 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.tracing.writers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.heliosapm.streams.buffers.ByteBufMarshallable;
+import com.heliosapm.streams.buffers.LZ4Codec;
+import com.heliosapm.streams.chronicle.MessageQueue;
+import com.heliosapm.streams.chronicle.TailerCheckpoint;
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import jsr166e.LongAdder;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+import net.openhft.chronicle.bytes.ReadBytesMarshallable;
+import net.openhft.chronicle.bytes.WriteBytesMarshallable;
+import net.openhft.chronicle.core.io.IORuntimeException;
+import net.openhft.chronicle.queue.ChronicleQueue;
+import net.openhft.chronicle.queue.ExcerptTailer;
+import net.openhft.chronicle.queue.RollCycles;
+import net.openhft.chronicle.queue.impl.StoreFileListener;
+import net.openhft.chronicle.queue.impl.single.SingleChronicleQueueBuilder;
+import net.openhft.chronicle.wire.DocumentContext;
+import net.openhft.chronicle.wire.WireType;
+
+/**
+ * <p>Title: MetricSpool</p>
+ * <p>Description: A bounded, chronicle backed store-and-forward spool for metric batches a {@link NetWriter} could not deliver.
+ * Batches are spooled in the tracer's buffer format (compression byte, metric count, metrics) and replayed at a capped
+ * rate by a single replay thread once the writer reconnects. Batches older than the age cap, or the oldest batches
+ * when the spooled bytes exceed the size cap, are evicted.</p> 
+ * <p>Each spool locks its own directory, <code>&lt;spool dir&gt;/&lt;name&gt;</code>, or <code>&lt;name&gt;-n</code> if that is
+ * held by another writer. The replay position is checkpointed, so batches left in the spool when it is closed are replayed
+ * after the next start.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.tracing.writers.MetricSpool</code></p>
+ */
+
+public class MetricSpool implements MetricSpoolMBean, ConnectionStateListener, StoreFileListener, Runnable, Closeable {
+	/** The config key for enabling the spool */
+	public static final String CONFIG_SPOOL_ENABLED = "metricwriter.net.spool.enabled";
+	/** The default spool enablement */
+	public static final boolean DEFAULT_SPOOL_ENABLED = false;
+	/** The config key for the spool parent directory */
+	public static final String CONFIG_SPOOL_DIR = "metricwriter.net.spool.dir";
+	/** The default spool parent directory */
+	public static final String DEFAULT_SPOOL_DIR = System.getProperty("user.home") + File.separator + ".metricSpool";
+	/** The config key for the spool size cap in uncompressed bytes */
+	public static final String CONFIG_SPOOL_MAX_BYTES = "metricwriter.net.spool.maxbytes";
+	/** The default spool size cap in uncompressed bytes */
+	public static final long DEFAULT_SPOOL_MAX_BYTES = 256L * 1024L * 1024L;
+	/** The config key for the spooled batch age cap in ms. */
+	public static final String CONFIG_SPOOL_MAX_AGE = "metricwriter.net.spool.maxage";
+	/** The default spooled batch age cap in ms. */
+	public static final long DEFAULT_SPOOL_MAX_AGE = 60L * 60L * 1000L;
+	/** The config key for the replay rate in batches per second */
+	public static final String CONFIG_SPOOL_REPLAY_RATE = "metricwriter.net.spool.replay.rate";
+	/** The default replay rate in batches per second */
+	public static final int DEFAULT_SPOOL_REPLAY_RATE = 50;
+	
+	/** The idle wait time in ms. when there is nothing to replay */
+	private static final long IDLE_WAIT = 1000L;
+	/** The time in ms. the replay thread waits for a replayed batch to be written */
+	private static final long REPLAY_TIMEOUT = 5000L;
+	/** The maximum number of spool directories tried for one spool name */
+	private static final int MAX_DIRECTORIES = 64;
+	/** The name of the lock file that marks a spool directory as in use */
+	private static final String LOCK_FILE = "spool.lock";
+	/** The name of the replay checkpoint */
+	private static final String REPLAY_CHECKPOINT = "replay";
+	
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+	/** The spool name */
+	protected final String name;
+	/** The spool directory */
+	protected final File directory;
+	/** The spool's chronicle queue */
+	protected final ChronicleQueue queue;
+	/** The checkpoint of the last batch replayed or evicted */
+	protected final TailerCheckpoint checkpoint;
+	/** The channel of the spool directory's lock file */
+	protected FileChannel lockChannel = null;
+	/** The lock held on the spool directory */
+	protected FileLock lock = null;
+	/** The target batches are replayed to */
+	protected final SpoolTarget target;
+	/** The size cap in uncompressed bytes */
+	protected final long maxBytes;
+	/** The batch age cap in ms. */
+	protected final long maxAge;
+	/** The replay rate limiter */
+	protected final RateLimiter rateLimiter;
+	/** The JMX ObjectName */
+	protected final ObjectName objectName;
+	/** The replay thread */
+	protected final Thread replayThread;
+	/** The keep running flag */
+	protected final AtomicBoolean keepRunning = new AtomicBoolean(true);
+	/** The replay thread's wait lock */
+	protected final Object waitLock = new Object();
+	/** The uncompressed bytes pending in the spool */
+	protected final AtomicLong pendingBytes = new AtomicLong(0L);
+	/** The batches pending in the spool */
+	protected final AtomicLong pendingBatches = new AtomicLong(0L);
+	/** Released roll files retained until the replay thread has read past them, keyed by cycle */
+	protected final ConcurrentSkipListMap<Integer, File> retainedRollFiles = new ConcurrentSkipListMap<Integer, File>();
+	/** The cycle of the last batch read by the replay thread */
+	protected volatile int readCycle = Integer.MIN_VALUE;
+	
+	/** A counter of spooled batches */
+	protected final LongAdder spooledBatches = new LongAdder();
+	/** A counter of spooled metrics */
+	protected final LongAdder spooledMetrics = new LongAdder();
+	/** A counter of replayed batches */
+	protected final LongAdder replayedBatches = new LongAdder();
+	/** A counter of replayed metrics */
+	protected final LongAdder replayedMetrics = new LongAdder();
+	/** A counter of evicted batches */
+	protected final LongAdder evictedBatches = new LongAdder();
+	/** A counter of evicted metrics */
+	protected final LongAdder evictedMetrics = new LongAdder();
+	
+	/** A spool entry per writing thread */
+	protected final ThreadLocal<SpoolEntry> writeEntry = new ThreadLocal<SpoolEntry>() {
+		@Override
+		protected SpoolEntry initialValue() {
+			return new SpoolEntry();
+		}
+	};
+	
+	/**
+	 * <p>Title: SpoolTarget</p>
+	 * <p>Description: The destination spooled batches are replayed to</p> 
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.streams.tracing.writers.MetricSpool.SpoolTarget</code></p>
+	 */
+	public static interface SpoolTarget {
+		/**
+		 * Indicates if the target is connected
+		 * @return true if connected, false otherwise
+		 */
+		public boolean isConnected();
+		
+		/**
+		 * Writes a batch to the target. The target takes ownership of the buffer.
+		 * @param batch The batch to write
+		 * @return the write future, or null if no channel was available, in which case the buffer is not consumed
+		 */
+		public ChannelFuture send(ByteBuf batch);
+	}
+	
+	/**
+	 * Creates a new MetricSpool
+	 * @param name The spool name, typically the writer's simple class name
+	 * @param config The writer configuration
+	 * @param target The target batches are replayed to
+	 * @throws IOException thrown if no spool directory can be locked or the replay checkpoint cannot be opened
+	 */
+	public MetricSpool(final String name, final Properties config, final SpoolTarget target) throws IOException {
+		this.name = name;
+		this.target = target;
+		maxBytes = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_SPOOL_MAX_BYTES, DEFAULT_SPOOL_MAX_BYTES, config);
+		maxAge = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_SPOOL_MAX_AGE, DEFAULT_SPOOL_MAX_AGE, config);
+		rateLimiter = RateLimiter.create(ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_SPOOL_REPLAY_RATE, DEFAULT_SPOOL_REPLAY_RATE, config));
+		directory = lockDirectory(new File(ConfigurationHelper.getSystemThenEnvProperty(CONFIG_SPOOL_DIR, DEFAULT_SPOOL_DIR, config)), name);
+		try {
+			retainedRollFiles.putAll(MessageQueue.rollFiles(directory, RollCycles.HOURLY));
+			queue = SingleChronicleQueueBuilder.binary(directory)
+				.rollCycle(RollCycles.HOURLY)
+				.storeFileListener(this)
+				.wireType(WireType.BINARY)
+				.build();
+			checkpoint = new TailerCheckpoint(directory, REPLAY_CHECKPOINT);
+		} catch (IOException iex) {
+			releaseLock();
+			throw iex;
+		}
+		countPending();
+		objectName = JMXHelper.objectName(String.format(OBJECT_NAME_TEMPLATE, directory.getName()));
+		try { JMXHelper.registerMBean(this, objectName); } catch (Exception ex) {
+			log.warn("Failed to register MetricSpool MBean [{}]", objectName, ex);
+		}
+		replayThread = new Thread(this, name + "SpoolReplayThread");
+		replayThread.setDaemon(true);
+		replayThread.start();
+		log.info("Created MetricSpool [{}], dir:[{}], maxBytes:[{}], maxAge:[{}] ms, pending:[{}]", name, directory, maxBytes, maxAge, pendingBatches.get());
+	}
+	
+	/**
+	 * Locks the first spool directory for the passed name not held by another writer
+	 * @param parent The spool parent directory
+	 * @param name The spool name
+	 * @return the locked directory
+	 * @throws IOException thrown if no directory could be locked
+	 */
+	protected File lockDirectory(final File parent, final String name) throws IOException {
+		for(int i = 0; i < MAX_DIRECTORIES; i++) {
+			final File dir = new File(parent, i==0 ? name : name + "-" + i);
+			if(!dir.exists()) {
+				dir.mkdirs();
+			}
+			if(!dir.isDirectory()) {
+				throw new IllegalArgumentException("Cannot create spool directory: [" + dir + "]");
+			}
+			final FileChannel fc = FileChannel.open(new File(dir, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			try {
+				final FileLock fl = fc.tryLock();
+				if(fl!=null) {
+					lockChannel = fc;
+					lock = fl;
+					return dir;
+				}
+			} catch (OverlappingFileLockException ex) {
+				/* No Op */
+			}
+			fc.close();
+			log.debug("Spool directory [{}] is in use", dir);
+		}
+		throw new IOException("All [" + MAX_DIRECTORIES + "] spool directories for [" + name + "] in [" + parent + "] are in use");
+	}
+	
+	/**
+	 * Releases the lock on the spool directory
+	 */
+	protected void releaseLock() {
+		if(lock!=null) try { lock.release(); } catch (Exception x) {/* No Op */}
+		if(lockChannel!=null) try { lockChannel.close(); } catch (Exception x) {/* No Op */}
+	}
+	
+	/**
+	 * Counts the batches left in the spool after the replay checkpoint by a previous run
+	 */
+	protected void countPending() {
+		final ExcerptTailer tailer = queue.createTailer();
+		checkpoint.resume(tailer);
+		while(true) {
+			try (final DocumentContext dc = tailer.readingDocument()) {
+				if(!dc.isPresent()) break;
+				final BytesIn bytes = dc.wire().bytes();
+				bytes.readLong();	// the timestamp
+				bytes.readInt();	// the metric count
+				pendingBytes.addAndGet(bytes.readInt());
+				pendingBatches.incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * Writes a batch to the spool. The spool takes ownership of the buffer.
+	 * @param batch The batch to spool, in the tracer's buffer format
+	 * @param count The number of metrics in the batch
+	 */
+	public void spool(final ByteBuf batch, final int count) {
+		if(!keepRunning.get()) {
+			batch.release();
+			evictedBatches.increment();
+			evictedMetrics.add(count);
+			return;
+		}
+		batch.readerIndex(0);
+		final int size = batch.readableBytes();
+		queue.acquireAppender().writeBytes(writeEntry.get().set(System.currentTimeMillis(), count, batch));
+		pendingBytes.addAndGet(size);
+		pendingBatches.incrementAndGet();
+		spooledBatches.increment();
+		spooledMetrics.add(count);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		final ExcerptTailer tailer = queue.createTailer();
+		checkpoint.resume(tailer);
+		final SpoolEntry entry = new SpoolEntry();
+		log.info("Spool replay thread started");
+		while(keepRunning.get()) {
+			try {
+				if(pendingBytes.get() > maxBytes) {
+					final long index = read(tailer, entry);
+					if(index!=-1L) {
+						evict(entry, index);
+					} else {
+						pause();
+					}
+					continue;
+				}
+				if(!target.isConnected()) {
+					evictExpired(tailer, entry);
+					pause();
+					continue;
+				}
+				final long index = read(tailer, entry);
+				if(index==-1L) {
+					pause();
+					continue;
+				}
+				if(isExpired(entry)) {
+					evict(entry, index);
+					continue;
+				}
+				rateLimiter.acquire();
+				replay(tailer, entry, index);
+			} catch (InterruptedException iex) {
+				if(Thread.interrupted()) Thread.interrupted();
+			} catch (Exception ex) {
+				if(keepRunning.get()) {
+					log.warn("Unexpected exception in spool replay thread", ex);
+				}
+			}
+		}
+		log.info("Spool replay thread ending");
+	}
+	
+	/**
+	 * Replays the batch in the passed entry and waits for the write. The replay position is checkpointed once the
+	 * write succeeds. If it fails, the tailer is rewound so the batch is retried in its original place with its original age.
+	 * @param tailer The replay tailer
+	 * @param entry The entry to replay
+	 * @param index The index of the entry
+	 * @return true if the batch was written, false if the tailer was rewound
+	 * @throws InterruptedException thrown if the replay thread is interrupted while waiting for the write
+	 */
+	protected boolean replay(final ExcerptTailer tailer, final SpoolEntry entry, final long index) throws InterruptedException {
+		final ByteBuf batch = entry.batch;
+		final int count = entry.count;
+		final int size = entry.size;
+		entry.batch = null;
+		final ChannelFuture cf = target.send(batch);
+		boolean written = false;
+		try {
+			if(cf==null) {
+				batch.release();
+			} else if(cf.await(REPLAY_TIMEOUT) && cf.isSuccess()) {
+				written = true;
+			} else {
+				log.debug("Spool replay write failed or timed out, batch will be retried", cf.cause());
+			}
+		} finally {
+			if(!written) {
+				tailer.moveToIndex(index);
+				restorePending(size);
+			}
+		}
+		if(written) {
+			checkpoint.checkpoint(index);
+			replayedBatches.increment();
+			replayedMetrics.add(count);
+			return true;
+		}
+		pause();
+		return false;
+	}
+	
+	/**
+	 * Reads the next entry from the spool
+	 * @param tailer The replay tailer
+	 * @param entry The entry to read into
+	 * @return the index of the entry read, or -1 if the spool is empty
+	 */
+	protected long read(final ExcerptTailer tailer, final SpoolEntry entry) {
+		final long index;
+		try (final DocumentContext dc = tailer.readingDocument()) {
+			if(!dc.isPresent()) return -1L;
+			index = dc.index();
+			entry.readMarshallable(dc.wire().bytes());
+		}
+		pendingBytes.addAndGet(-entry.size);
+		pendingBatches.decrementAndGet();
+		final int cycle = queue.rollCycle().toCycle(index);
+		if(cycle!=readCycle) {
+			readCycle = cycle;
+			purgeRetainedRollFiles();
+		}
+		return index;
+	}
+	
+	/**
+	 * Evicts spooled entries that have exceeded the age cap, stopping at the first that has not
+	 * @param tailer The replay tailer
+	 * @param entry The entry to read into
+	 */
+	protected void evictExpired(final ExcerptTailer tailer, final SpoolEntry entry) {
+		while(keepRunning.get()) {
+			final long index = read(tailer, entry);
+			if(index==-1L) return;
+			if(isExpired(entry)) {
+				evict(entry, index);
+			} else {
+				entry.release();
+				tailer.moveToIndex(index);
+				restorePending(entry.size);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Restores the pending counts for an entry that was read and rewound
+	 * @param size The uncompressed size of the entry
+	 */
+	protected void restorePending(final int size) {
+		pendingBytes.addAndGet(size);
+		pendingBatches.incrementAndGet();
+	}
+	
+	/**
+	 * Indicates if the passed entry has exceeded the age cap
+	 * @param entry The entry to test
+	 * @return true if expired, false otherwise
+	 */
+	protected boolean isExpired(final SpoolEntry entry) {
+		return System.currentTimeMillis() - entry.timestamp > maxAge;
+	}
+	
+	/**
+	 * Evicts the passed entry and checkpoints past it
+	 * @param entry The entry to evict
+	 * @param index The index of the entry
+	 */
+	protected void evict(final SpoolEntry entry, final long index) {
+		checkpoint.checkpoint(index);
+		evictedBatches.increment();
+		evictedMetrics.add(entry.count);
+		entry.release();
+	}
+	
+	/**
+	 * Waits for a connection, a new batch or the idle timeout
+	 */
+	protected void pause() {
+		synchronized(waitLock) {
+			try { waitLock.wait(IDLE_WAIT); } catch (InterruptedException iex) {
+				if(Thread.interrupted()) Thread.interrupted();
+			}
+		}
+	}
+	
+	/**
+	 * Deletes the retained roll files for cycles the replay thread has moved past
+	 */
+	protected void purgeRetainedRollFiles() {
+		final int safeCycle = readCycle;
+		Map.Entry<Integer, File> e;
+		while((e = retainedRollFiles.firstEntry())!=null && e.getKey() < safeCycle) {
+			if(retainedRollFiles.remove(e.getKey(), e.getValue())) {
+				if(!e.getValue().delete()) {
+					log.warn("Failed to delete spool roll file [{}]", e.getValue());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see net.openhft.chronicle.queue.impl.StoreFileListener#onReleased(int, java.io.File)
+	 */
+	@Override
+	public void onReleased(final int cycle, final File file) {
+		retainedRollFiles.put(cycle, file);
+		purgeRetainedRollFiles();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.ConnectionStateListener#onConnected()
+	 */
+	@Override
+	public void onConnected() {
+		synchronized(waitLock) {
+			waitLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.ConnectionStateListener#onDisconnected(boolean)
+	 */
+	@Override
+	public void onDisconnected(final boolean shutdown) {
+		/* No Op */
+	}
+	
+	/**
+	 * Stops the replay thread and closes the spool. Any batches still spooled are kept and replayed after the next start.
+	 * @throws IOException will not be thrown
+	 */
+	@Override
+	public void close() throws IOException {
+		if(keepRunning.compareAndSet(true, false)) {
+			replayThread.interrupt();
+			try { replayThread.join(REPLAY_TIMEOUT); } catch (Exception x) {/* No Op */}
+			try { queue.close(); } catch (Exception x) {/* No Op */}
+			try { checkpoint.close(); } catch (Exception x) {/* No Op */}
+			releaseLock();
+			try { JMXHelper.unregisterMBean(objectName); } catch (Exception x) {/* No Op */}
+			if(pendingBatches.get() > 0) {
+				log.info("MetricSpool [{}] closed with [{}] batches pending, dir:[{}]", name, pendingBatches.get(), directory);
+			}
+		}
+	}
+	
+	/**
+	 * Returns a summary of the spool state
+	 * @return a summary of the spool state
+	 */
+	public String getState() {
+		return new StringBuilder("Spooled:").append(spooledBatches.longValue())
+			.append(", Replayed:").append(replayedBatches.longValue())
+			.append(", Evicted:").append(evictedBatches.longValue())
+			.append(", Pending:").append(pendingBatches.get())
+			.toString();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#getSpooledBatches()
+	 */
+	@Override
+	public long getSpooledBatches() {
+		return spooledBatches.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#getSpooledMetrics()
+	 */
+	@Override
+	public long getSpooledMetrics() {
+		return spooledMetrics.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#getReplayedBatches()
+	 */
+	@Override
+	public long getReplayedBatches() {
+		return replayedBatches.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#getReplayedMetrics()
+	 */
+	@Override
+	public long getReplayedMetrics() {
+		return replayedMetrics.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#getEvictedBatches()
+	 */
+	@Override
+	public long getEvictedBatches() {
+		return evictedBatches.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#getEvictedMetrics()
+	 */
+	@Override
+	public long getEvictedMetrics() {
+		return evictedMetrics.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#getPendingBytes()
+	 */
+	@Override
+	public long getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#getPendingBatches()
+	 */
+	@Override
+	public long getPendingBatches() {
+		return pendingBatches.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#getMaxBytes()
+	 */
+	@Override
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#getMaxAge()
+	 */
+	@Override
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#getReplayRate()
+	 */
+	@Override
+	public double getReplayRate() {
+		return rateLimiter.getRate();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#setReplayRate(double)
+	 */
+	@Override
+	public void setReplayRate(final double rate) {
+		if(rate <= 0D) throw new IllegalArgumentException("Invalid replay rate [" + rate + "]");
+		rateLimiter.setRate(rate);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpoolMBean#getDirectory()
+	 */
+	@Override
+	public String getDirectory() {
+		return directory.getAbsolutePath();
+	}
+	
+	/**
+	 * <p>Title: SpoolEntry</p>
+	 * <p>Description: A spooled batch with its spool time and metric count. The batch is LZ4 compressed in the spool.</p> 
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.streams.tracing.writers.MetricSpool.SpoolEntry</code></p>
+	 */
+	protected static class SpoolEntry implements WriteBytesMarshallable, ReadBytesMarshallable {
+		/** The time the batch was spooled */
+		long timestamp;
+		/** The number of metrics in the batch */
+		int count;
+		/** The uncompressed size of the batch */
+		int size;
+		/** The batch */
+		ByteBuf batch;
+		/** The batch marshallable */
+		final ByteBufMarshallable marshallable = new ByteBufMarshallable(LZ4Codec.INSTANCE);
+		
+		/**
+		 * Sets the entry to write
+		 * @param timestamp The time the batch was spooled
+		 * @param count The number of metrics in the batch
+		 * @param batch The batch
+		 * @return this entry
+		 */
+		SpoolEntry set(final long timestamp, final int count, final ByteBuf batch) {
+			this.timestamp = timestamp;
+			this.count = count;
+			this.size = batch.readableBytes();
+			this.batch = batch;
+			return this;
+		}
+		
+		/**
+		 * Releases the batch read into this entry
+		 */
+		void release() {
+			if(batch!=null) {
+				batch.release();
+				batch = null;
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see net.openhft.chronicle.bytes.WriteBytesMarshallable#writeMarshallable(net.openhft.chronicle.bytes.BytesOut)
+		 */
+		@Override
+		public void writeMarshallable(final BytesOut bytes) {
+			bytes.writeLong(timestamp);
+			bytes.writeInt(count);
+			bytes.writeInt(size);
+			marshallable.setByteBuff(batch).writeMarshallable(bytes);
+			batch = null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see net.openhft.chronicle.bytes.ReadBytesMarshallable#readMarshallable(net.openhft.chronicle.bytes.BytesIn)
+		 */
+		@Override
+		public void readMarshallable(final BytesIn bytes) throws IORuntimeException {
+			timestamp = bytes.readLong();
+			count = bytes.readInt();
+			size = bytes.readInt();
+			marshallable.readMarshallable(bytes);
+			batch = marshallable.getAndNullByteBuf();
+		}
+	}
+}
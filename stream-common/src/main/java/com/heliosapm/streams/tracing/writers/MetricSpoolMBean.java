@@ -0,0 +1,109 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.tracing.writers;
+
+/**
+ * <p>Title: MetricSpoolMBean</p>
+ * <p>Description: JMX management interface for {@link MetricSpool}</p> 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.tracing.writers.MetricSpoolMBean</code></p>
+ */
+
+public interface MetricSpoolMBean {
+	/** The JMX ObjectName template for spools */
+	public static final String OBJECT_NAME_TEMPLATE = "com.heliosapm.streams.tracing:service=MetricSpool,type=%s";
+	
+	/**
+	 * Returns the number of batches written to the spool
+	 * @return the number of spooled batches
+	 */
+	public long getSpooledBatches();
+	
+	/**
+	 * Returns the number of metrics written to the spool
+	 * @return the number of spooled metrics
+	 */
+	public long getSpooledMetrics();
+	
+	/**
+	 * Returns the number of spooled batches successfully replayed
+	 * @return the number of replayed batches
+	 */
+	public long getReplayedBatches();
+	
+	/**
+	 * Returns the number of spooled metrics successfully replayed
+	 * @return the number of replayed metrics
+	 */
+	public long getReplayedMetrics();
+	
+	/**
+	 * Returns the number of spooled batches evicted by the size or age caps
+	 * @return the number of evicted batches
+	 */
+	public long getEvictedBatches();
+	
+	/**
+	 * Returns the number of spooled metrics evicted by the size or age caps
+	 * @return the number of evicted metrics
+	 */
+	public long getEvictedMetrics();
+	
+	/**
+	 * Returns the uncompressed bytes of the batches waiting in the spool
+	 * @return the pending bytes
+	 */
+	public long getPendingBytes();
+	
+	/**
+	 * Returns the number of batches waiting in the spool
+	 * @return the pending batches
+	 */
+	public long getPendingBatches();
+	
+	/**
+	 * Returns the size cap of the spool in uncompressed bytes
+	 * @return the size cap
+	 */
+	public long getMaxBytes();
+	
+	/**
+	 * Returns the age cap of spooled batches in ms.
+	 * @return the age cap
+	 */
+	public long getMaxAge();
+	
+	/**
+	 * Returns the replay rate in batches per second
+	 * @return the replay rate
+	 */
+	public double getReplayRate();
+	
+	/**
+	 * Sets the replay rate in batches per second
+	 * @param rate the replay rate
+	 */
+	public void setReplayRate(double rate);
+	
+	/**
+	 * Returns the spool directory
+	 * @return the spool directory
+	 */
+	public String getDirectory();
+}
@@ -47,6 +47,7 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
@@ -65,11 +66,10 @@ import io.netty.util.concurrent.UnorderedThreadPoolEventExecutor;
  * <p><code>com.heliosapm.streams.tracing.writers.NetWriter</code></p>
  * @param <C> The type of netty channel implemented by this writer
  * TODO:
- * 		optional storage of metrics while waiting for an open connection
  * 		implement JMX management interface
  */
 
-public abstract class NetWriter<C extends Channel> extends AbstractMetricWriter implements RejectedExecutionHandler, ConnectionStateSupplier, ConnectionStateListener {
+public abstract class NetWriter<C extends Channel> extends AbstractMetricWriter implements RejectedExecutionHandler, ConnectionStateSupplier, ConnectionStateListener, MetricSpool.SpoolTarget {
 
 	/** The config key for the remote URIs (<b><code>host:port</code></b>) to write metrics to */
 	public static final String CONFIG_REMOTE_URIS = "metricwriter.net.remotes";
@@ -126,6 +126,9 @@ public abstract class NetWriter<C extends Channel> extends AbstractMetricWriter
 	/** An array of the configured remote URIs to connect to */
 	protected String[] remotes = {};
 	
+	/** The spool for batches that could not be written, null if spooling is disabled */
+	protected volatile MetricSpool spool = null;
+	
 	/**
 	 * Creates a new NetWriter
 	 * @param channelType The type of channels created by this netwriter
@@ -263,6 +266,15 @@ public abstract class NetWriter<C extends Channel> extends AbstractMetricWriter
 		bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000);  // FIXME: config
 		bootstrap.option(ChannelOption.ALLOCATOR, BufferManager.getInstance());
 		this.config.put("connectTimeout", 5000);
+		if(ConfigurationHelper.getBooleanSystemThenEnvProperty(MetricSpool.CONFIG_SPOOL_ENABLED, MetricSpool.DEFAULT_SPOOL_ENABLED, config)) {
+			try {
+				spool = new MetricSpool(getClass().getSimpleName(), config, this);
+				registerConnectionStateListener(spool);
+			} catch (Exception ex) {
+				log.error("Failed to create MetricSpool, undeliverable metrics will be dropped", ex);
+			}
+		}
+		this.config.put("spool", spool!=null);
 		
 				
 			
@@ -464,9 +476,42 @@ public abstract class NetWriter<C extends Channel> extends AbstractMetricWriter
 		} catch (Exception ex) {
 			log.error("Failed to gracefully shutdown the event loop group", ex);
 		}
+		if(spool!=null) {
+			try { spool.close(); } catch (Exception x) {/* No Op */}
+		}
 	}
 	
 
+	/**
+	 * {@inheritDoc}
+	 * <p>Sent metrics are counted when the write completes, not here.</p>
+	 * @see com.heliosapm.streams.tracing.AbstractMetricWriter#onMetrics(com.heliosapm.streams.metrics.StreamedMetric[])
+	 */
+	@Override
+	public void onMetrics(final StreamedMetric... metrics) {
+		try {
+			doMetrics(metrics);
+		} catch (Exception ex) {
+			log.debug("Failed to send {} metrics", metrics.length, ex);
+			failedMetrics.add(metrics.length);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>Sent metrics are counted when the write completes, not here.</p>
+	 * @see com.heliosapm.streams.tracing.AbstractMetricWriter#onMetrics(java.util.Collection)
+	 */
+	@Override
+	public void onMetrics(final Collection<StreamedMetric> metrics) {
+		try {
+			doMetrics(metrics);
+		} catch (Exception ex) {
+			log.debug("Failed to send {} metrics", metrics.size(), ex);
+			failedMetrics.add(metrics.size());
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.streams.tracing.AbstractMetricWriter#doMetrics(java.util.Collection)
@@ -475,23 +520,21 @@ public abstract class NetWriter<C extends Channel> extends AbstractMetricWriter
 	protected void doMetrics(final Collection<StreamedMetric> metrics) {
 		if(metrics==null || metrics.isEmpty()) return;
 		final int size = metrics.size();
-		if(!connectionsAvailable.get()) {
-			failedMetrics.add(size);
+		final Channel ch = connectionsAvailable.get() ? nextChannel() : null;
+		if(ch==null) {
+			spool(metrics);
 			return;
 		}
-		
-		boolean complete = false;
-		for(Channel ch: channels) {
-			final ChannelFuture cf = ch.writeAndFlush(metrics).syncUninterruptibly();
-			if(cf.isSuccess()) {
-				complete = true;
-				sentMetrics.add(size);
-				break;
+		ch.writeAndFlush(metrics).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture f) throws Exception {
+				if(f.isSuccess()) {
+					sentMetrics.add(size);
+				} else {
+					spool(metrics);
+				}
 			}
-		}
-		if(!complete) {
-			failedMetrics.add(size);
-		} 
+		});
 	}
 
 	/**
@@ -501,52 +544,114 @@ public abstract class NetWriter<C extends Channel> extends AbstractMetricWriter
 	@Override
 	protected void doMetrics(final StreamedMetric... metrics) {
 		if(metrics==null || metrics.length==0) return;
-		final int size = metrics.length;
-		if(!connectionsAvailable.get()) {
-			failedMetrics.add(size);
-			return;
-		}
-		boolean complete = false;
-		for(Channel ch: channels) {
-			final ChannelFuture cf = ch.writeAndFlush(metrics).syncUninterruptibly();
-			if(cf.isSuccess()) {
-				complete = true;
-				sentMetrics.add(size);
-				break;
-			}
-		}
-		if(!complete) {
-			this.failedMetrics.add(size);
-		}
+		doMetrics(Arrays.asList(metrics));
 	}
 	
 	/**
 	 * {@inheritDoc}
+	 * <p>Batches that cannot be written are spooled if a {@link MetricSpool} is enabled.</p>
 	 * @see com.heliosapm.streams.tracing.AbstractMetricWriter#onMetrics(io.netty.buffer.ByteBuf)
 	 */
 	@Override
 	public void onMetrics(final ByteBuf metrics) {
 		if(metrics==null || metrics.readableBytes()<5) return;
 		final int size = metrics.getInt(1);
-		if(!connectionsAvailable.get()) {
-			// FIXME: drop counter
+		ChannelFuture cf = null;
+		if(connectionsAvailable.get()) {
+			cf = send(metrics.retain());
+			if(cf==null) metrics.release();
+		}
+		if(cf==null) {
+			spool(metrics, size);
 			return;
 		}
-		
-		boolean complete = false;
-		for(Channel ch: channels) {
-			final ChannelFuture cf = ch.writeAndFlush(metrics).syncUninterruptibly();
-			if(cf.isSuccess()) {
-				complete = true;
-				break;
+		cf.addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture f) throws Exception {
+				if(f.isSuccess()) {
+					sentMetrics.add(size);
+					metrics.release();
+				} else {
+					spool(metrics, size);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.tracing.writers.MetricSpool.SpoolTarget#send(io.netty.buffer.ByteBuf)
+	 */
+	@Override
+	public ChannelFuture send(final ByteBuf batch) {
+		final Channel ch = nextChannel();
+		if(ch==null) return null;
+		return ch.writeAndFlush(batch);
+	}
+	
+	/**
+	 * Returns the first connected and writable channel, or the first connected channel if none are writable
+	 * @return a channel or null if none are connected
+	 */
+	protected Channel nextChannel() {
+		Channel fallback = null;
+		for(final Channel ch: channels) {
+			if(ch.isActive()) {
+				if(ch.isWritable()) return ch;
+				if(fallback==null) fallback = ch;
+			}
+		}
+		return fallback;
+	}
+	
+	/**
+	 * Spools metrics that could not be written, or drops them if spooling is disabled.
+	 * The metrics are only encoded into a batch when there is a spool to take it.
+	 * @param metrics The metrics to spool
+	 */
+	protected void spool(final Collection<StreamedMetric> metrics) {
+		if(spool==null) {
+			failedMetrics.add(metrics.size());
+			return;
+		}
+		spool(encode(metrics), metrics.size());
+	}
+	
+	/**
+	 * Spools a batch that could not be written, or drops it if spooling is disabled
+	 * @param batch The batch to spool, in the tracer's buffer format
+	 * @param count The number of metrics in the batch
+	 */
+	protected void spool(final ByteBuf batch, final int count) {
+		final MetricSpool s = spool;
+		if(s!=null) {
+			try {
+				s.spool(batch, count);
+				return;
+			} catch (Exception ex) {
+				log.warn("Failed to spool {} metrics", count, ex);
 			}
+		} else {
+			batch.release();
 		}
-		if(!complete) {
-			this.failedMetrics.add(size);
+		failedMetrics.add(count);
+	}
+	
+	/**
+	 * Encodes the passed metrics into a batch in the tracer's buffer format
+	 * @param metrics The metrics to encode
+	 * @return the batch buffer
+	 */
+	protected static ByteBuf encode(final Collection<StreamedMetric> metrics) {
+		final ByteBuf buf = BufferManager.getInstance().directBuffer(metrics.size() * 128);
+		buf.writeByte(0);
+		buf.writeInt(metrics.size());
+		for(StreamedMetric sm: metrics) {
+			sm.intoByteBuf(buf);
 		}
+		return buf;
 	}
 
-
 	/**
 	 * {@inheritDoc}
 	 * @see java.util.concurrent.RejectedExecutionHandler#rejectedExecution(java.lang.Runnable, java.util.concurrent.ThreadPoolExecutor)
@@ -586,6 +691,9 @@ public abstract class NetWriter<C extends Channel> extends AbstractMetricWriter
 		b.append("Remotes:").append(Arrays.toString(remotes));
 		b.append("\nConnected:").append(channels.size());
 		b.append("\nDisconnected:").append(disconnected.size());
+		if(spool!=null) {
+			b.append("\nSpool:").append(spool.getState());
+		}
 		return b.toString();
 	}
 	
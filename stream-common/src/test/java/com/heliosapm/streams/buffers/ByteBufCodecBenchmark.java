@@ -0,0 +1,200 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.buffers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import io.netty.buffer.ByteBuf;
+import net.openhft.chronicle.bytes.Bytes;
+
+/**
+ * <p>Title: ByteBufCodecBenchmark</p>
+ * <p>Description: JMH benchmark of a write and read back of a {@link com.heliosapm.streams.metrics.StreamedMetricValue} batch
+ * through {@link ByteBufMarshallable} for each codec. Running {@link #main(String[])} logs the throughput in MB/s of
+ * uncompressed batch data and the compression ratio of each codec.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.buffers.ByteBufCodecBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=10, time=1)
+@Fork(1)
+public class ByteBufCodecBenchmark {
+	/** Static class logger */
+	protected static final Logger log = LogManager.getLogger(ByteBufCodecBenchmark.class);
+	/** The number of distinct batches */
+	static final int BATCHES = 64;
+	/** The number of metrics per batch */
+	static final int BATCH_SIZE = 100;
+	
+	/** The codec under test */
+	@Param({"none", "gzip", "lz4", "zstd", "zstd-dict"})
+	public String codec;
+	
+	/** The sample batches */
+	ByteBuf[] batches;
+	/** The marshallable under test */
+	ByteBufMarshallable marshallable;
+	/** The chronicle bytes written to and read from */
+	Bytes<?> bytes;
+	/** The batch index */
+	int index = 0;
+	
+	/**
+	 * Creates the sample batches and the marshallable
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		batches = new ByteBuf[BATCHES];
+		for(int i = 0; i < BATCHES; i++) {
+			batches[i] = ByteBufMarshallableTest.batch(i, BATCH_SIZE, true);
+		}
+		marshallable = marshallable(codec, batches);
+		bytes = Bytes.elasticByteBuffer();
+	}
+	
+	/**
+	 * Releases the sample batches
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for(ByteBuf b: batches) b.release();
+		bytes.release();
+	}
+	
+	/**
+	 * Creates the marshallable for the named codec
+	 * @param codec The codec name
+	 * @param samples The samples to train a dictionary from
+	 * @return the marshallable
+	 */
+	static ByteBufMarshallable marshallable(final String codec, final ByteBuf[] samples) {
+		if("gzip".equals(codec)) return new ByteBufMarshallable(true);
+		if("zstd-dict".equals(codec)) {
+			final List<ByteBuf> list = new ArrayList<ByteBuf>(samples.length);
+			for(ByteBuf b: samples) list.add(b);
+			return new ByteBufMarshallable(new ZstdCodec(ZstdCodec.DEFAULT_LEVEL, ZstdCodec.train(list, ZstdCodec.DEFAULT_DICTIONARY_SIZE)));
+		}
+		return new ByteBufMarshallable(ByteBufCodec.forName(codec, ZstdCodec.DEFAULT_LEVEL, null));
+	}
+	
+	/**
+	 * Writes a batch and reads it back
+	 * @return the number of bytes read back
+	 */
+	@Benchmark
+	public int writeAndRead() {
+		final ByteBuf batch = batches[index];
+		index = (index + 1) & (BATCHES - 1);
+		bytes.clear();
+		marshallable.setByteBuff(batch.retainedDuplicate()).writeMarshallable(bytes);
+		marshallable.readMarshallable(bytes);
+		final ByteBuf b = marshallable.getAndNullByteBuf();
+		try {
+			return b.readableBytes();
+		} finally {
+			b.release();
+		}
+	}
+	
+	/**
+	 * Computes the compression ratio (uncompressed / written) of the named codec over fresh sample batches
+	 * @param codec The codec name
+	 * @return the compression ratio
+	 */
+	static double ratio(final String codec) {
+		final ByteBuf[] samples = new ByteBuf[BATCHES];
+		for(int i = 0; i < BATCHES; i++) {
+			samples[i] = ByteBufMarshallableTest.batch(i, BATCH_SIZE, true);
+		}
+		final ByteBufMarshallable m = marshallable(codec, samples);
+		final Bytes<?> bytes = Bytes.elasticByteBuffer();
+		long raw = 0, written = 0;
+		try {
+			for(ByteBuf b: samples) {
+				raw += b.readableBytes();
+				bytes.clear();
+				m.setByteBuff(b.retainedDuplicate()).writeMarshallable(bytes);
+				written += bytes.readRemaining();
+			}
+		} finally {
+			for(ByteBuf b: samples) b.release();
+			bytes.release();
+		}
+		return (double)raw / written;
+	}
+	
+	/**
+	 * Returns the average uncompressed size of a sample batch
+	 * @return the average batch size in bytes
+	 */
+	static double averageBatchBytes() {
+		long total = 0;
+		for(int i = 0; i < BATCHES; i++) {
+			final ByteBuf b = ByteBufMarshallableTest.batch(i, BATCH_SIZE, true);
+			total += b.readableBytes();
+			b.release();
+		}
+		return (double)total / BATCHES;
+	}
+
+	/**
+	 * Runs the benchmark and prints MB/s and the compression ratio for each codec
+	 * @param args None
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(final String[] args) throws Exception {
+		final Collection<RunResult> results = new Runner(new OptionsBuilder()
+			.include(ByteBufCodecBenchmark.class.getSimpleName())
+			.build()
+		).run();
+		final double batchBytes = averageBatchBytes();
+		final StringBuilder b = new StringBuilder("\n\tCodec        MB/s      Ratio");
+		for(RunResult result: results) {
+			final String codec = result.getParams().getParam("codec");
+			final double mbs = result.getPrimaryResult().getScore() * batchBytes / (1024D * 1024D);
+			b.append(String.format("\n\t%-10s %8.1f %8.2f", codec, mbs, ratio(codec)));
+		}
+		log.info(b);
+	}
+}
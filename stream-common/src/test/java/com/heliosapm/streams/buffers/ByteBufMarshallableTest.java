@@ -0,0 +1,178 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.buffers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.metrics.StreamedMetricValue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import net.openhft.chronicle.bytes.Bytes;
+
+/**
+ * <p>Title: ByteBufMarshallableTest</p>
+ * <p>Description: Round trips metric batches through {@link ByteBufMarshallable} with each codec</p> 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.buffers.ByteBufMarshallableTest</code></p>
+ */
+
+public class ByteBufMarshallableTest {
+	
+	/**
+	 * Creates a batch of serialized metrics
+	 * @param seed The batch seed
+	 * @param count The number of metrics in the batch
+	 * @param direct true for a direct buffer, false for a heap buffer
+	 * @return the batch
+	 */
+	static ByteBuf batch(final int seed, final int count, final boolean direct) {
+		final ByteBuf buf = direct ? Unpooled.directBuffer(count * 128) : Unpooled.buffer(count * 128);
+		final long now = System.currentTimeMillis();
+		for(int i = 0; i < count; i++) {
+			final Map<String, String> tags = new LinkedHashMap<String, String>();
+			tags.put("host", "web" + ((seed + i) % 16));
+			tags.put("app", "tomcat");
+			tags.put("cpu", "" + (i % 8));
+			new StreamedMetricValue(now + i, (seed * i) * 1.5D, "sys.cpu.user", tags).intoByteBuf(buf);
+		}
+		return buf;
+	}
+	
+	/**
+	 * Writes and reads back a batch with the passed marshallables
+	 * @param writer The writing marshallable
+	 * @param reader The reading marshallable
+	 * @param direct true to write a direct buffer, false for a heap buffer
+	 */
+	static void roundTrip(final ByteBufMarshallable writer, final ByteBufMarshallable reader, final boolean direct) {
+		final Bytes<?> bytes = Bytes.elasticByteBuffer();
+		try {
+			for(int i = 0; i < 3; i++) {	// repeat to check each entry is self contained
+				final ByteBuf expected = batch(i, 50 + (i * 100), direct);
+				final ByteBuf copy = expected.copy();
+				bytes.clear();
+				writer.setByteBuff(expected).writeMarshallable(bytes);
+				Assert.assertEquals("Written buffer not released", 0, expected.refCnt());
+				reader.readMarshallable(bytes);
+				final ByteBuf actual = reader.getAndNullByteBuf();
+				try {
+					Assert.assertTrue("Round trip mismatch for " + writer.getCodec(), ByteBufUtil.equals(copy, actual));
+					Assert.assertEquals("Trailing bytes", 0, bytes.readRemaining());
+				} finally {
+					actual.release();
+					copy.release();
+				}
+			}
+		} finally {
+			bytes.release();
+		}
+	}
+	
+	/**
+	 * Tests the round trip of each codec with direct and heap payloads
+	 */
+	@Test
+	public void testCodecRoundTrips() {
+		final List<ByteBufMarshallable> writers = new ArrayList<ByteBufMarshallable>();
+		writers.add(new ByteBufMarshallable(false));
+		writers.add(new ByteBufMarshallable(true));
+		writers.add(new ByteBufMarshallable((ByteBufCodec)null));
+		writers.add(new ByteBufMarshallable(LZ4Codec.INSTANCE));
+		writers.add(new ByteBufMarshallable(ZstdCodec.DEFAULT));
+		for(ByteBufMarshallable writer: writers) {
+			roundTrip(writer, writer, true);
+			roundTrip(writer, writer, false);
+			// a reader with no codec configured still resolves the entry's codec from its header
+			roundTrip(writer, new ByteBufMarshallable(false), true);
+		}
+	}
+	
+	/**
+	 * Tests the round trip of zstd with a trained dictionary
+	 */
+	@Test
+	public void testZstdDictionaryRoundTrip() {
+		final List<ByteBuf> samples = new ArrayList<ByteBuf>();
+		for(int i = 0; i < 200; i++) {
+			samples.add(batch(i, 20, false));
+		}
+		final byte[] dictionary = ZstdCodec.train(samples, 4096);
+		for(ByteBuf b: samples) b.release();
+		Assert.assertTrue("Empty dictionary", dictionary.length > 0);
+		final ZstdCodec codec = new ZstdCodec(ZstdCodec.DEFAULT_LEVEL, dictionary);
+		Assert.assertEquals(ZstdCodec.DICTIONARY_ID, codec.id());
+		Assert.assertEquals(ZstdCodec.dictionaryId(dictionary), codec.getDictionaryId());
+		Assert.assertSame(codec, ZstdCodec.forDictionary(codec.getDictionaryId()));
+		final ByteBufMarshallable m = new ByteBufMarshallable(codec);
+		roundTrip(m, m, true);
+		roundTrip(m, m, false);
+		// a reader with no codec configured resolves the dictionary from the entry's header
+		roundTrip(m, new ByteBufMarshallable(false), true);
+		roundTrip(m, new ByteBufMarshallable(ZstdCodec.DEFAULT), true);
+	}
+	
+	/**
+	 * Tests that an entry compressed with a dictionary that was never loaded is rejected
+	 */
+	@Test(expected=IllegalStateException.class)
+	public void testUnknownDictionary() {
+		final List<ByteBuf> samples = new ArrayList<ByteBuf>();
+		for(int i = 0; i < 200; i++) {
+			samples.add(batch(i * 7, 20, false));
+		}
+		final byte[] dictionary = ZstdCodec.train(samples, 4096);
+		for(ByteBuf b: samples) b.release();
+		final ZstdCodec codec = new ZstdCodec(ZstdCodec.DEFAULT_LEVEL, dictionary);
+		final Bytes<?> bytes = Bytes.elasticByteBuffer();
+		try {
+			new ByteBufMarshallable(codec).setByteBuff(batch(1, 20, true)).writeMarshallable(bytes);
+			// the dictionary id follows the codec id and the uncompressed size
+			bytes.writeInt(5, codec.getDictionaryId() + 1);
+			new ByteBufMarshallable(false).readMarshallable(bytes);
+		} finally {
+			bytes.release();
+		}
+	}
+	
+	/**
+	 * Tests codec lookup by name
+	 */
+	@Test
+	public void testForName() {
+		Assert.assertNull(ByteBufCodec.forName("NONE", 1, null));
+		Assert.assertSame(LZ4Codec.INSTANCE, ByteBufCodec.forName(" lz4 ", 1, null));
+		Assert.assertEquals(ZstdCodec.ID, ByteBufCodec.forName("zstd", 1, "").id());
+	}
+	
+	/**
+	 * Tests that an unknown codec name is rejected
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownCodec() {
+		ByteBufCodec.forName("snappy", 1, null);
+	}
+}
@@ -0,0 +1,128 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.chronicle;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.openhft.chronicle.core.io.IOTools;
+
+/**
+ * <p>Title: MessageQueueConsumerTest</p>
+ * <p>Description: Verifies that an excerpt a {@link MessageQueueConsumer}'s listener fails on is read again
+ * instead of being skipped</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.chronicle.MessageQueueConsumerTest</code></p>
+ */
+
+public class MessageQueueConsumerTest {
+	/** The UTF8 character set */
+	static final Charset UTF8 = Charset.forName("UTF8");
+
+	/** The queue base directory */
+	File dir;
+	/** The queue */
+	MessageQueue mq;
+
+	/**
+	 * Creates the queue
+	 * @throws Exception thrown on any error
+	 */
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("MessageQueueConsumerTest").toFile();
+		final String name = "MessageQueueConsumerTest" + System.nanoTime();
+		final Properties p = new Properties();
+		p.setProperty(name + "." + MessageQueue.CONFIG_BASE_DIR, dir.getAbsolutePath());
+		p.setProperty(name + "." + MessageQueue.CONFIG_IDLE_PAUSE, "10");
+		p.setProperty(name + "." + MessageQueue.CONFIG_COMPRESS_QWRITES, "false");
+		mq = MessageQueue.getInstance(name, null, p);
+	}
+
+	/**
+	 * Closes the queue and deletes its directory
+	 * @throws Exception thrown on any error
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if(mq!=null) mq.close();
+		IOTools.deleteDirWithFiles(dir, 3);
+	}
+
+	/**
+	 * Tests that an excerpt is delivered again after the listener throws on it, and that the excerpts
+	 * after it are delivered in order
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testListenerFailureRetried() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		final List<String> delivered = new CopyOnWriteArrayList<String>();
+		final List<Long> indexes = new CopyOnWriteArrayList<Long>();
+		final CountDownLatch latch = new CountDownLatch(2);
+		final MessageQueueConsumer consumer = mq.addConsumer("failing", new MessageListener() {
+			@Override
+			public int onMetric(final ByteBuf buf) {
+				throw new UnsupportedOperationException();
+			}
+			@Override
+			public int onMetric(final long index, final ByteBuf buf) {
+				try {
+					if(calls.incrementAndGet()==1) throw new RuntimeException("Listener failure");
+					delivered.add(buf.toString(UTF8));
+					indexes.add(index);
+					latch.countDown();
+					return 1;
+				} finally {
+					buf.release();
+				}
+			}
+		});
+		final long first = mq.writeEntry(Unpooled.copiedBuffer("excerpt0", UTF8));
+		final long second = mq.writeEntry(Unpooled.copiedBuffer("excerpt1", UTF8));
+		Assert.assertTrue("Excerpts not delivered: " + delivered, latch.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals("excerpt0", delivered.get(0));
+		Assert.assertEquals("excerpt1", delivered.get(1));
+		Assert.assertEquals(first, indexes.get(0).longValue());
+		Assert.assertEquals(second, indexes.get(1).longValue());
+		Assert.assertEquals(3, calls.get());
+		// the index and read counters advance after the listener returns
+		final long deadline = System.currentTimeMillis() + 5000L;
+		while(consumer.getIndex()!=second && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1L, consumer.getChronicleReadErrs());
+		Assert.assertEquals(2L, consumer.getChronicleReads());
+		Assert.assertEquals(second, consumer.getIndex());
+	}
+}
@@ -0,0 +1,200 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.chronicle;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.openhft.chronicle.core.io.IOTools;
+import net.openhft.chronicle.queue.ChronicleQueue;
+import net.openhft.chronicle.queue.ExcerptAppender;
+import net.openhft.chronicle.queue.ExcerptTailer;
+import net.openhft.chronicle.queue.RollCycle;
+import net.openhft.chronicle.queue.RollCycles;
+import net.openhft.chronicle.queue.impl.single.SingleChronicleQueueBuilder;
+import net.openhft.chronicle.wire.DocumentContext;
+
+/**
+ * <p>Title: TailerCheckpointTest</p>
+ * <p>Description: Verifies resuming a tailer from a {@link TailerCheckpoint}, rewinding a tailer to a time
+ * and counting the lag across roll cycles against a secondly rolled queue</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.chronicle.TailerCheckpointTest</code></p>
+ */
+
+public class TailerCheckpointTest {
+	/** The roll cycle of the test queue */
+	static final RollCycle RC = RollCycles.TEST_SECONDLY;
+
+	/** The queue directory */
+	File dir;
+	/** The queue */
+	ChronicleQueue queue;
+	/** The queue's appender */
+	ExcerptAppender appender;
+
+	/**
+	 * Creates the queue
+	 * @throws Exception thrown on any error
+	 */
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("TailerCheckpointTest").toFile();
+		queue = SingleChronicleQueueBuilder.binary(dir).rollCycle(RollCycles.TEST_SECONDLY).build();
+		appender = queue.acquireAppender();
+	}
+
+	/**
+	 * Closes and deletes the queue
+	 * @throws Exception thrown on any error
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if(queue!=null) queue.close();
+		IOTools.deleteDirWithFiles(dir, 2);
+	}
+
+	/**
+	 * Tests that a tailer resumes after a checkpoint that survives a close and reopen
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testResumeAfterCheckpoint() throws Exception {
+		final long[] indexes = write(5);
+		TailerCheckpoint cp = new TailerCheckpoint(dir, "test");
+		try {
+			Assert.assertEquals(TailerCheckpoint.NO_INDEX, cp.getIndex());
+			final ExcerptTailer tailer = queue.createTailer();
+			Assert.assertFalse(cp.resume(tailer));
+			Assert.assertEquals(indexes[0], next(tailer));
+			cp.checkpoint(indexes[2]);
+		} finally {
+			cp.close();
+		}
+		cp = new TailerCheckpoint(dir, "test");
+		try {
+			Assert.assertEquals(indexes[2], cp.getIndex());
+			final ExcerptTailer tailer = queue.createTailer();
+			Assert.assertTrue(cp.resume(tailer));
+			Assert.assertEquals(indexes[3], next(tailer));
+			Assert.assertEquals(indexes[4], next(tailer));
+			Assert.assertEquals(-1L, next(tailer));
+		} finally {
+			cp.close();
+		}
+	}
+
+	/**
+	 * Tests that a tailer whose checkpointed excerpt is no longer in the queue reads from the start
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testResumeMissingIndex() throws Exception {
+		final long[] indexes = write(2);
+		final TailerCheckpoint cp = new TailerCheckpoint(dir, "test");
+		try {
+			cp.checkpoint(RC.toIndex(RC.toCycle(indexes[0]) - 10, 0));
+			final ExcerptTailer tailer = queue.createTailer();
+			Assert.assertFalse(cp.resume(tailer));
+			Assert.assertEquals(indexes[0], next(tailer));
+		} finally {
+			cp.close();
+		}
+	}
+
+	/**
+	 * Tests that a tailer is rewound to the start of the first cycle at or after a time
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testMoveToTime() throws Exception {
+		final long[] first = write(2);
+		nextCycle();
+		final long[] second = write(2);
+		final int secondCycle = RC.toCycle(second[0]);
+		Assert.assertTrue(secondCycle > RC.toCycle(first[1]));
+		final ExcerptTailer tailer = queue.createTailer();
+		Assert.assertTrue(MessageQueue.moveToTime(tailer, RC, dir, secondCycle * RC.length()));
+		Assert.assertEquals(second[0], next(tailer));
+		Assert.assertTrue(MessageQueue.moveToTime(tailer, RC, dir, 0L));
+		Assert.assertEquals(first[0], next(tailer));
+		// nothing after the last cycle, so the tailer stays where it is
+		Assert.assertFalse(MessageQueue.moveToTime(tailer, RC, dir, (secondCycle + 60) * RC.length()));
+		Assert.assertEquals(first[1], next(tailer));
+	}
+
+	/**
+	 * Tests that the lag counts the excerpts left in earlier cycles
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLagAcrossCycles() throws Exception {
+		final long[] a = write(3);
+		nextCycle();
+		final long[] b = write(4);
+		nextCycle();
+		final long[] c = write(2);
+		Assert.assertTrue(RC.toCycle(c[0]) > RC.toCycle(a[2]));
+		final ExcerptTailer tailer = queue.createTailer();
+		Assert.assertEquals(7L, MessageQueue.lag(RC, dir, tailer, a[1], c[1]));
+		Assert.assertEquals(9L, MessageQueue.lag(RC, dir, tailer, TailerCheckpoint.NO_INDEX, c[1]));
+		Assert.assertEquals(4L, MessageQueue.lag(RC, dir, tailer, a[2], b[3]));
+		Assert.assertEquals(3L, MessageQueue.lag(RC, dir, tailer, b[0], b[3]));
+		Assert.assertEquals(0L, MessageQueue.lag(RC, dir, tailer, c[1], c[1]));
+		Assert.assertEquals(0L, MessageQueue.lag(RC, dir, tailer, c[1], a[0]));
+	}
+
+	/**
+	 * Appends excerpts to the queue
+	 * @param count The number of excerpts to append
+	 * @return the indexes of the appended excerpts
+	 */
+	private long[] write(final int count) {
+		final long[] indexes = new long[count];
+		for(int i = 0; i < count; i++) {
+			appender.writeText("excerpt" + i);
+			indexes[i] = appender.lastIndexAppended();
+		}
+		return indexes;
+	}
+
+	/**
+	 * Reads the next excerpt
+	 * @param tailer The tailer to read with
+	 * @return the index of the excerpt read or -1 if there was none
+	 */
+	private static long next(final ExcerptTailer tailer) {
+		try (final DocumentContext dc = tailer.readingDocument()) {
+			return dc.isPresent() ? dc.index() : -1L;
+		}
+	}
+
+	/**
+	 * Sleeps until just after the start of the next roll cycle
+	 * @throws InterruptedException thrown if the thread is interrupted
+	 */
+	private static void nextCycle() throws InterruptedException {
+		Thread.sleep(RC.length() - (System.currentTimeMillis() % RC.length()) + 50);
+	}
+}
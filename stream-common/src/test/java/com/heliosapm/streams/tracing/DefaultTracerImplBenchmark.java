@@ -0,0 +1,204 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.tracing;
+
+import java.util.Collection;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.heliosapm.streams.metrics.StreamedMetric;
+import com.heliosapm.streams.metrics.StreamedMetricValue;
+import com.heliosapm.utils.buffer.BufferManager;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: DefaultTracerImplBenchmark</p>
+ * <p>Description: JMH benchmark of many threads tracing through one shared {@link DefaultTracerImpl}, comparing the
+ * per-thread buffers and cached header encodings with the previous design, reproduced here as {@link LegacyTracer},
+ * which builds the name and tags on every trace and appends to one buffer under the tracer's monitor.
+ * Running {@link #main(String[])} runs both with 1, 8 and 64 tracing threads. Run with <b><code>-prof gc</code></b>
+ * to compare allocation rates.</p>
+ * <p>The tracer's name and tag state is not thread safe. It is set once in {@link #setup()}, before the benchmark threads
+ * start, and is only read while tracing: both paths resolve it under the tracer's monitor.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.tracing.DefaultTracerImplBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=10, time=1)
+@Fork(1)
+public class DefaultTracerImplBenchmark {
+	/** The thread counts to benchmark */
+	static final int[] THREADS = {1, 8, 64};
+	
+	/** The tracer under test */
+	DefaultTracerImpl tracer;
+	/** The previous design */
+	LegacyTracer legacy;
+	
+	/**
+	 * Creates the tracers with a fixed name and tag state, which the benchmark methods never change
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		tracer = new DefaultTracerImpl(new NullWriter());
+		tracer.seg("sys.cpu.user").pushTag("cpu", "0").pushTag("dc", "east");
+		legacy = new LegacyTracer(tracer);
+	}
+	
+	/**
+	 * Flushes and closes the tracers
+	 * @throws Exception will not be thrown
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		tracer.flush();
+		legacy.close();
+	}
+	
+	/**
+	 * Traces through the per-thread buffers
+	 * @return the tracer
+	 */
+	@Benchmark
+	public ITracer threadBuffers() {
+		return tracer.trace(42L, 1476000000000L);
+	}
+	
+	/**
+	 * Traces through the previous design
+	 * @return the number of buffered metrics
+	 */
+	@Benchmark
+	public int synchronizedBuffer() {
+		return legacy.trace(42L, 1476000000000L);
+	}
+	
+	/**
+	 * <p>Title: LegacyTracer</p>
+	 * <p>Description: The previous synchronized trace path</p>
+	 */
+	static class LegacyTracer {
+		/** The tracer whose state is traced */
+		final DefaultTracerImpl t;
+		/** The shared out buffer */
+		final ByteBuf outBuffer = BufferManager.getInstance().buffer(200 * 128);
+		/** The number of buffered metrics */
+		int bufferedEvents = 0;
+		
+		LegacyTracer(final DefaultTracerImpl t) {
+			this.t = t;
+			outBuffer.writerIndex(DefaultTracerImpl.START_DATA_OFFSET);
+		}
+		
+		int trace(final long value, final long timestamp) {
+			synchronized(t) {
+				return _trace(value, timestamp);
+			}
+		}
+		
+		private int _trace(final long value, final long timestamp) {
+			final SortedMap<String, String> tags = t.buildTags();
+			t.addAppHostTags(tags);
+			StreamedMetricValue.write(outBuffer, null, t.buildMetricName(), timestamp, value, tags);
+			if(++bufferedEvents==200) {
+				outBuffer.setInt(DefaultTracerImpl.COUNT_OFFSET, bufferedEvents);
+				final ByteBuf copy = BufferManager.getInstance().buffer(outBuffer.readableBytes());
+				copy.writeBytes(outBuffer);
+				outBuffer.resetReaderIndex();
+				outBuffer.writerIndex(DefaultTracerImpl.START_DATA_OFFSET);
+				bufferedEvents = 0;
+				copy.release();
+			}
+			return bufferedEvents;
+		}
+		
+		synchronized void close() {
+			outBuffer.release();
+		}
+	}
+	
+	/**
+	 * <p>Title: NullWriter</p>
+	 * <p>Description: A writer that discards flushed buffers</p>
+	 */
+	static class NullWriter extends AbstractMetricWriter {
+		NullWriter() {
+			super(false, true);
+		}
+		
+		@Override
+		public void onMetrics(final ByteBuf metrics) {
+			metrics.release();
+		}
+		
+		@Override
+		protected void doMetrics(final Collection<StreamedMetric> metrics) {
+			/* No Op */
+		}
+		
+		@Override
+		protected void doMetrics(final StreamedMetric... metrics) {
+			/* No Op */
+		}
+		
+		@Override
+		protected void startUp() throws Exception {
+			/* No Op */
+		}
+		
+		@Override
+		protected void shutDown() throws Exception {
+			/* No Op */
+		}
+	}
+	
+	/**
+	 * Runs the benchmark with 1, 8 and 64 tracing threads
+	 * @param args None
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(final String[] args) throws Exception {
+		for(int threads: THREADS) {
+			new Runner(new OptionsBuilder()
+				.include(DefaultTracerImplBenchmark.class.getSimpleName())
+				.threads(threads)
+				.build()
+			).run();
+		}
+	}
+}
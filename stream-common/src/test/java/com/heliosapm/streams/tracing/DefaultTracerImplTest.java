@@ -0,0 +1,259 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.tracing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.metrics.StreamedMetric;
+import com.heliosapm.streams.metrics.StreamedMetricValue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * <p>Title: DefaultTracerImplTest</p>
+ * <p>Description: Verifies that traces written through the header cache and through metric handles
+ * serialize the same metrics as {@link StreamedMetricValue}</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.tracing.DefaultTracerImplTest</code></p>
+ */
+
+public class DefaultTracerImplTest {
+	
+	/**
+	 * Tests that a repeated series served from the header cache matches the first trace
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCachedHeader() throws Exception {
+		final CapturingWriter writer = new CapturingWriter();
+		final DefaultTracerImpl tracer = new DefaultTracerImpl(writer);
+		try {
+			tracer.seg("sys.cpu").pushKeys("cpu");
+			for(int i = 0; i < 3; i++) {
+				tracer.trace(i, 1476000000000L + i, "0");
+			}
+			tracer.trace(1.5D, 1476000000000L, "1");
+			tracer.flush();
+			final List<StreamedMetricValue> metrics = writer.take(4);
+			for(int i = 0; i < 3; i++) {
+				final StreamedMetricValue smv = metrics.get(i);
+				Assert.assertEquals("sys.cpu", smv.getMetricName());
+				Assert.assertEquals("0", smv.getTags().get("cpu"));
+				Assert.assertEquals(i, smv.getLongValue());
+				Assert.assertEquals(1476000000000L + i, smv.getTimestamp());
+			}
+			Assert.assertEquals("1", metrics.get(3).getTags().get("cpu"));
+			Assert.assertEquals(1.5D, metrics.get(3).getDoubleValue(), 0D);
+			Assert.assertEquals(metrics.get(0).getTags().keySet(), metrics.get(3).getTags().keySet());
+		} finally {
+			tracer.close();
+		}
+	}
+	
+	/**
+	 * Tests that handles are registered once per series and write the expected metrics
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testHandles() throws Exception {
+		final CapturingWriter writer = new CapturingWriter();
+		final DefaultTracerImpl tracer = new DefaultTracerImpl(writer);
+		try {
+			final MetricHandle.CounterHandle counter = tracer.counter("requests", "path", "/a");
+			Assert.assertSame(counter, tracer.counter("requests", "path=/a"));
+			Assert.assertNotSame(counter, tracer.counter("requests", "path", "/b"));
+			counter.inc().inc(4).trace();
+			tracer.gauge("queue.depth", "q", "x").set(7.25D);
+			tracer.timer("latency", TimeUnit.MILLISECONDS, "op", "get").update(2, TimeUnit.SECONDS);
+			tracer.flush();
+			final List<StreamedMetricValue> metrics = writer.take(3);
+			Assert.assertEquals("requests", metrics.get(0).getMetricName());
+			Assert.assertEquals("/a", metrics.get(0).getTags().get("path"));
+			Assert.assertEquals(5L, metrics.get(0).getLongValue());
+			Assert.assertEquals(7.25D, metrics.get(1).getDoubleValue(), 0D);
+			Assert.assertEquals(2000L, metrics.get(2).getLongValue());
+		} finally {
+			tracer.close();
+		}
+	}
+	
+	/**
+	 * Tests that PMetrics, which are created on every call, are not counted as registered handles
+	 * while registered handles are counted until their tracer is closed
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testHandleAccounting() throws Exception {
+		final DefaultTracerImpl tracer = new DefaultTracerImpl(new CapturingWriter());
+		final long initial = MetricHandle.handleCount();
+		try {
+			for(int i = 0; i < 100; i++) {
+				tracer.permaMetric("perma", "n", "" + i).trace(i);
+			}
+			Assert.assertEquals(initial, MetricHandle.handleCount());
+			tracer.counter("requests", "path", "/a");
+			tracer.counter("requests", "path", "/a");
+			Assert.assertEquals(initial + 1, MetricHandle.handleCount());
+		} finally {
+			tracer.close();
+		}
+		Assert.assertEquals(initial, MetricHandle.handleCount());
+	}
+	
+	/**
+	 * Tests that a PMetric serializes its last value into a caller supplied buffer and into a pooled buffer the caller releases
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testReadMetric() throws Exception {
+		final DefaultTracerImpl tracer = new DefaultTracerImpl(new CapturingWriter());
+		try {
+			final DefaultTracerImpl.PMetric pm = tracer.permaMetric("perma.read", "n", "1");
+			pm.trace(1476000000000L, 42L);
+			final ByteBuf pooled = pm.readMetric();
+			try {
+				final StreamedMetricValue smv = (StreamedMetricValue)StreamedMetric.read(pooled);
+				Assert.assertEquals("perma.read", smv.getMetricName());
+				Assert.assertEquals("1", smv.getTags().get("n"));
+				Assert.assertEquals(42L, smv.getLongValue());
+				Assert.assertEquals(1476000000000L, smv.getTimestamp());
+			} finally {
+				Assert.assertTrue(pooled.release());
+			}
+			pm.trace(1476000001000L, 2.5D);
+			final ByteBuf out = Unpooled.buffer();
+			out.writeByte(7);
+			Assert.assertSame(out, pm.readMetric(out));
+			Assert.assertEquals(7, out.readByte());
+			final StreamedMetricValue smv = (StreamedMetricValue)StreamedMetric.read(out);
+			Assert.assertEquals(2.5D, smv.getDoubleValue(), 0D);
+			Assert.assertEquals(1476000001000L, smv.getTimestamp());
+			Assert.assertFalse(out.isReadable());
+		} finally {
+			tracer.close();
+		}
+	}
+	
+	/**
+	 * Tests that traces on the closing thread and on a thread that traced before the close are dropped instead of blocking
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=10000)
+	public void testTraceAfterClose() throws Exception {
+		final CapturingWriter writer = new CapturingWriter();
+		final DefaultTracerImpl tracer = new DefaultTracerImpl(writer);
+		tracer.seg("sys.cpu").pushKeys("cpu");
+		tracer.trace(1, 1476000000000L, "0");
+		final CountDownLatch traced = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final Thread other = new Thread("TraceAfterClose") {
+			@Override
+			public void run() {
+				try {
+					tracer.trace(1, 1476000000000L, "1");
+					traced.countDown();
+					closed.await();
+					tracer.trace(2, 1476000000001L, "1");
+				} catch (Throwable ex) {
+					error.set(ex);
+				}
+			}
+		};
+		other.start();
+		traced.await();
+		tracer.close();
+		closed.countDown();
+		other.join();
+		Assert.assertNull("Trace on another thread failed", error.get());
+		tracer.trace(2, 1476000000001L, "0");
+		tracer.trace(2.5D, 1476000000002L, "1");
+		tracer.flush();
+		tracer.clear();
+		tracer.close();
+		Assert.assertNull(writer.captured.poll(100, TimeUnit.MILLISECONDS));
+	}
+	
+	/**
+	 * <p>Title: CapturingWriter</p>
+	 * <p>Description: A writer that captures flushed metrics</p>
+	 */
+	static class CapturingWriter extends AbstractMetricWriter {
+		/** The captured metrics */
+		final BlockingQueue<StreamedMetricValue> captured = new LinkedBlockingQueue<StreamedMetricValue>();
+		
+		CapturingWriter() {
+			super(false, true);
+		}
+		
+		List<StreamedMetricValue> take(final int count) throws InterruptedException {
+			final List<StreamedMetricValue> list = new ArrayList<StreamedMetricValue>(count);
+			for(int i = 0; i < count; i++) {
+				final StreamedMetricValue smv = captured.poll(5, TimeUnit.SECONDS);
+				Assert.assertNotNull("Timed out waiting for metric #" + i, smv);
+				list.add(smv);
+			}
+			return list;
+		}
+		
+		@Override
+		public void onMetrics(final ByteBuf metrics) {
+			try {
+				final int count = metrics.getInt(DefaultTracerImpl.COUNT_OFFSET);
+				metrics.readerIndex(DefaultTracerImpl.START_DATA_OFFSET);
+				for(int i = 0; i < count; i++) {
+					captured.add(StreamedMetric.read(metrics).forValue());
+				}
+			} finally {
+				metrics.release();
+			}
+		}
+		
+		@Override
+		protected void doMetrics(final Collection<StreamedMetric> metrics) {
+			/* No Op */
+		}
+		
+		@Override
+		protected void doMetrics(final StreamedMetric... metrics) {
+			/* No Op */
+		}
+		
+		@Override
+		protected void startUp() throws Exception {
+			/* No Op */
+		}
+		
+		@Override
+		protected void shutDown() throws Exception {
+			/* No Op */
+		}
+	}
+}
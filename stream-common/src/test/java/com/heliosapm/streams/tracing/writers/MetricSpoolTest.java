@@ -0,0 +1,306 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.streams.tracing.writers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import net.openhft.chronicle.core.io.IOTools;
+
+/**
+ * <p>Title: MetricSpoolTest</p>
+ * <p>Description: Verifies spooling, replay on connect, retry of failed replays, age expiry and
+ * replay after a restart of a {@link MetricSpool}</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.tracing.writers.MetricSpoolTest</code></p>
+ */
+
+public class MetricSpoolTest {
+	/** The spool name */
+	static final String NAME = "MetricSpoolTest";
+	/** The time in ms. to wait for the replay thread */
+	static final long WAIT = 15000L;
+
+	/** The spool parent directory */
+	File dir;
+	/** The spool configuration */
+	Properties config;
+	/** The replay target */
+	TestTarget target;
+	/** The spools created by the test */
+	final List<MetricSpool> spools = new ArrayList<MetricSpool>();
+
+	/**
+	 * <p>Title: TestTarget</p>
+	 * <p>Description: A replay target that records the sequence of each batch it writes</p>
+	 */
+	static class TestTarget implements MetricSpool.SpoolTarget {
+		/** The channel the write futures are created from */
+		final EmbeddedChannel channel = new EmbeddedChannel();
+		/** The sequences of the written batches */
+		final List<Integer> written = new ArrayList<Integer>();
+		/** The connected flag */
+		volatile boolean connected = false;
+		/** The number of sends to fail before succeeding */
+		final AtomicInteger failures = new AtomicInteger(0);
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public ChannelFuture send(final ByteBuf batch) {
+			try {
+				if(failures.getAndDecrement() > 0) {
+					return channel.newFailedFuture(new IOException("Test write failure"));
+				}
+				failures.set(0);
+				synchronized(written) {
+					written.add(batch.getInt(0));
+				}
+				return channel.newSucceededFuture();
+			} finally {
+				batch.release();
+			}
+		}
+
+		/**
+		 * Returns a copy of the written sequences
+		 * @return the written sequences
+		 */
+		List<Integer> written() {
+			synchronized(written) {
+				return new ArrayList<Integer>(written);
+			}
+		}
+	}
+
+	/**
+	 * Creates the spool directory and configuration
+	 * @throws Exception thrown on any error
+	 */
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory(NAME).toFile();
+		config = new Properties();
+		config.setProperty(MetricSpool.CONFIG_SPOOL_DIR, dir.getAbsolutePath());
+		config.setProperty(MetricSpool.CONFIG_SPOOL_REPLAY_RATE, "1000");
+		target = new TestTarget();
+	}
+
+	/**
+	 * Closes the spools and deletes the spool directory
+	 * @throws Exception thrown on any error
+	 */
+	@After
+	public void tearDown() throws Exception {
+		for(MetricSpool spool: spools) {
+			spool.close();
+		}
+		IOTools.deleteDirWithFiles(dir, 3);
+	}
+
+	/**
+	 * Creates a spool with the test configuration
+	 * @return the spool
+	 * @throws Exception thrown on any error
+	 */
+	MetricSpool spool() throws Exception {
+		final MetricSpool spool = new MetricSpool(NAME, config, target);
+		spools.add(spool);
+		return spool;
+	}
+
+	/**
+	 * Creates a batch whose first int is the passed sequence
+	 * @param seq The batch sequence
+	 * @return the batch
+	 */
+	static ByteBuf batch(final int seq) {
+		final ByteBuf buf = Unpooled.buffer(64);
+		buf.writeInt(seq);
+		for(int i = 0; i < 15; i++) {
+			buf.writeInt(seq * i);
+		}
+		return buf;
+	}
+
+	/**
+	 * Spools batches with the passed sequences
+	 * @param spool The spool
+	 * @param seqs The batch sequences
+	 */
+	static void spool(final MetricSpool spool, final int...seqs) {
+		for(int seq: seqs) {
+			spool.spool(batch(seq), 1);
+		}
+	}
+
+	/**
+	 * Waits for the passed condition
+	 * @param condition The condition to wait for
+	 * @throws Exception thrown on any error
+	 */
+	static void waitFor(final Callable<Boolean> condition) throws Exception {
+		final long timeout = System.currentTimeMillis() + WAIT;
+		while(!condition.call()) {
+			Assert.assertTrue("Timed out waiting for spool", System.currentTimeMillis() < timeout);
+			Thread.sleep(50);
+		}
+	}
+
+	/**
+	 * Waits until the passed spool has replayed the passed number of batches
+	 * @param spool The spool
+	 * @param batches The number of batches
+	 * @throws Exception thrown on any error
+	 */
+	static void waitForReplayed(final MetricSpool spool, final long batches) throws Exception {
+		waitFor(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return spool.getReplayedBatches()>=batches;
+			}
+		});
+	}
+
+	/**
+	 * Tests that spooled batches are held while disconnected and replayed in order on connect
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testReplayOnConnect() throws Exception {
+		final MetricSpool spool = spool();
+		spool(spool, 1, 2, 3);
+		Assert.assertEquals(3, spool.getSpooledBatches());
+		Assert.assertEquals(3, spool.getPendingBatches());
+		Assert.assertEquals(3 * 64, spool.getPendingBytes());
+		Thread.sleep(200);
+		Assert.assertTrue(target.written().isEmpty());
+		target.connected = true;
+		spool.onConnected();
+		waitForReplayed(spool, 3);
+		Assert.assertEquals("[1, 2, 3]", target.written().toString());
+		Assert.assertEquals(3, spool.getReplayedMetrics());
+		Assert.assertEquals(0, spool.getPendingBatches());
+		Assert.assertEquals(0, spool.getPendingBytes());
+		Assert.assertEquals(0, spool.getEvictedBatches());
+	}
+
+	/**
+	 * Tests that a batch whose replay fails is retried ahead of the batches spooled after it
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFailedReplayKeepsOrder() throws Exception {
+		final MetricSpool spool = spool();
+		spool(spool, 1, 2, 3);
+		target.failures.set(2);
+		target.connected = true;
+		spool.onConnected();
+		waitForReplayed(spool, 3);
+		Assert.assertEquals("[1, 2, 3]", target.written().toString());
+		Assert.assertEquals(3, spool.getSpooledBatches());
+		Assert.assertEquals(0, spool.getPendingBatches());
+	}
+
+	/**
+	 * Tests that batches older than the age cap are evicted and not replayed
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAgeExpiry() throws Exception {
+		config.setProperty(MetricSpool.CONFIG_SPOOL_MAX_AGE, "100");
+		final MetricSpool spool = spool();
+		spool(spool, 1, 2);
+		Thread.sleep(200);
+		waitFor(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return spool.getEvictedBatches()==2;
+			}
+		});
+		Assert.assertEquals(2, spool.getEvictedMetrics());
+		Assert.assertEquals(0, spool.getPendingBatches());
+		target.connected = true;
+		spool(spool, 3);
+		spool.onConnected();
+		waitForReplayed(spool, 1);
+		Assert.assertEquals("[3]", target.written().toString());
+	}
+
+	/**
+	 * Tests that batches left in a closed spool are counted and replayed by the next spool with the same name
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testReplayAfterRestart() throws Exception {
+		MetricSpool spool = spool();
+		final String directory = spool.getDirectory();
+		spool(spool, 1, 2, 3);
+		spool.close();
+		spool = spool();
+		Assert.assertEquals(directory, spool.getDirectory());
+		Assert.assertEquals(3, spool.getPendingBatches());
+		Assert.assertEquals(3 * 64, spool.getPendingBytes());
+		target.connected = true;
+		spool.onConnected();
+		waitForReplayed(spool, 3);
+		Assert.assertEquals("[1, 2, 3]", target.written().toString());
+		spool.close();
+		spool = spool();
+		Assert.assertEquals(0, spool.getPendingBatches());
+		Thread.sleep(200);
+		Assert.assertEquals(3, target.written().size());
+	}
+
+	/**
+	 * Tests that concurrent spools with the same name use their own directories
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSeparateDirectories() throws Exception {
+		final MetricSpool first = spool();
+		final MetricSpool second = spool();
+		Assert.assertNotEquals(first.getDirectory(), second.getDirectory());
+		spool(first, 1, 2);
+		Assert.assertEquals(2, first.getPendingBatches());
+		Assert.assertEquals(0, second.getPendingBatches());
+		first.close();
+		final MetricSpool third = spool();
+		Assert.assertEquals(first.getDirectory(), third.getDirectory());
+		Assert.assertEquals(2, third.getPendingBatches());
+	}
+}
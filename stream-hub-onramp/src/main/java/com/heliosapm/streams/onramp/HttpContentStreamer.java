@@ -0,0 +1,86 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2016, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.streams.onramp;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * <p>Title: HttpContentStreamer</p>
+ * <p>Description: Unwraps chunked http content into raw buffers so a downstream
+ * {@link io.netty.handler.codec.json.JsonObjectDecoder} can frame JSON objects as the chunks arrive.</p>
+ * <p>The downstream handler sees a content-less {@link HttpRequest} at the start of each request, the content buffers,
+ * then {@link LastHttpContent#EMPTY_LAST_CONTENT} once the request is complete. Neither is a {@link io.netty.buffer.ByteBuf},
+ * so both pass straight through the JSON decoder.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.onramp.HttpContentStreamer</code></p>
+ */
+@Sharable
+public class HttpContentStreamer extends ChannelInboundHandlerAdapter {
+	/** A sharable instance */
+	public static final HttpContentStreamer INSTANCE = new HttpContentStreamer();
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.ChannelInboundHandlerAdapter#channelRead(io.netty.channel.ChannelHandlerContext, java.lang.Object)
+	 */
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		if(!(msg instanceof HttpRequest) && !(msg instanceof HttpContent)) {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		try {
+			if(msg instanceof HttpRequest) {
+				final HttpRequest req = (HttpRequest)msg;
+				if(HttpUtil.is100ContinueExpected(req)) {
+					ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+				}
+				ctx.fireChannelRead(new DefaultHttpRequest(req.protocolVersion(), req.method(), req.uri(), req.headers()));
+			}
+			if(msg instanceof HttpContent) {
+				final HttpContent content = (HttpContent)msg;
+				if(content.content().isReadable()) {
+					ctx.fireChannelRead(content.content().retain());
+				}
+				if(msg instanceof LastHttpContent) {
+					ctx.fireChannelRead(LastHttpContent.EMPTY_LAST_CONTENT);
+				}
+			}
+		} finally {
+			ReferenceCountUtil.release(msg);
+		}
+	}
+}
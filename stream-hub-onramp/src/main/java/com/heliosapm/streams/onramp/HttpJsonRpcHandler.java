@@ -18,20 +18,26 @@ under the License.
  */
 package com.heliosapm.streams.onramp;
 
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.codahale.metrics.Counter;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
 import com.heliosapm.streams.json.JSONOps;
 import com.heliosapm.streams.metrics.StreamedMetric;
 import com.heliosapm.streams.metrics.StreamedMetricValue;
@@ -39,22 +45,40 @@ import com.heliosapm.utils.time.SystemClock;
 import com.heliosapm.utils.time.SystemClock.ElapsedTime;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.TooLongFrameException;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
 
 /**
  * <p>Title: HttpJsonRpcHandler</p>
- * <p>Description: Decodes the JSON in the incoming http request and forwards the events upstream</p> 
+ * <p>Description: Decodes the JSON in the incoming http request and forwards the events upstream.</p>
+ * <p>The handler never sees the whole request body. It sits behind an {@link HttpContentStreamer} and a
+ * {@link io.netty.handler.codec.json.JsonObjectDecoder} streaming array elements, so it receives one buffer per JSON metric object
+ * as the chunks arrive, token-parses each one and forwards {@link StreamedMetricValue}s in batches of <b><code>batchSize</code></b>.</p>
+ * <p>Sends are asynchronous. Each batch is handed to the {@link MessageForwarder}'s send executor, so a producer send
+ * blocked on a full producer buffer never blocks the event loop. When the number of un-acknowledged records for the
+ * channel reaches the high water mark, channel reads are paused (autoRead off) until the producer has drained them to
+ * the low water mark.</p>
+ * <p>A body the JSON decoder cannot frame is answered with a 400 and the channel is closed, since the decoder
+ * discards all further input once corrupted. Batches of the request forwarded before the error are not recalled.</p>
+ * <p>Instances hold per-channel state and are not sharable.</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.streams.onramp.HttpJsonRpcHandler</code></p>
  */
-@Sharable
-public class HttpJsonRpcHandler extends MessageToMessageDecoder<FullHttpRequest> {
+public class HttpJsonRpcHandler extends ChannelInboundHandlerAdapter {
 	/** The instance logger */
 	protected final Logger log = LogManager.getLogger(getClass());
 	/** The topic name to send metrics to */
@@ -63,15 +87,57 @@ public class HttpJsonRpcHandler extends MessageToMessageDecoder<FullHttpRequest>
 	protected final String metaTopicName;
 	/** The max size of batches to forward to the endpoint */
 	protected final int batchSize;
+	/** The number of in-flight records at which channel reads are paused */
+	protected final int highWater;
+	/** The number of in-flight records at which paused channel reads are resumed */
+	protected final int lowWater;
 	
 	/** The UTF8 character set */
 	public static final Charset UTF8 = Charset.forName("UTF8");
 	
 	/** The message forwarder */
-	protected MessageForwarder mf = MessageForwarder.getInstance();
+	protected final MessageForwarder mf;
+	/** The executor batches are sent on, off the event loop */
+	protected final Executor sendExecutor;
 	
-	/** Type reference for common string/string maps */
-	public static TypeReference<HashMap<String, String>> TR_HASH_MAP = new TypeReference<HashMap<String, String>>() {};
+	/** A counter of the number of times channel reads were paused */
+	protected static final Counter pauseCounter = SharedMetricsRegistry.getInstance().counter("onramp.http.backpressure.pauses");
+	/** A counter of failed metric sends */
+	protected static final Counter sendFailures = SharedMetricsRegistry.getInstance().counter("onramp.http.send.failures");
+	/** A counter of requests rejected for a malformed body */
+	protected static final Counter badRequests = SharedMetricsRegistry.getInstance().counter("onramp.http.bad.requests");
+	
+	/** The current batch of parsed metrics */
+	protected final ArrayList<StreamedMetric> batch;
+	/** A reusable tag map, copied by each new metric */
+	protected final Map<String, String> tagBuffer = new HashMap<String, String>(16);
+	/** The number of records sent but not yet acknowledged */
+	protected final AtomicInteger inFlight = new AtomicInteger(0);
+	/** Indicates if channel reads are paused */
+	protected final AtomicBoolean paused = new AtomicBoolean(false);
+	/** The handler context */
+	protected volatile ChannelHandlerContext context = null;
+	/** The number of metrics forwarded for the current request */
+	protected int forwarded = 0;
+	/** The elapsed time of the current request */
+	protected ElapsedTime et = null;
+	/** Indicates if the current request was rejected, after which input is discarded until the channel closes */
+	protected boolean rejected = false;
+	
+	/** The producer callback that releases back pressure */
+	protected final Callback sendCallback = new Callback() {
+		@Override
+		public void onCompletion(final RecordMetadata metadata, final Exception exception) {
+			if(exception!=null) sendFailures.inc();
+			if(inFlight.decrementAndGet() <= lowWater && paused.compareAndSet(true, false)) {
+				final ChannelHandlerContext ctx = context;
+				if(ctx!=null) {
+					ctx.channel().config().setAutoRead(true);
+					log.debug("Resumed reads on [{}]", ctx.channel());
+				}
+			}
+		}
+	};
 
 	
 	/**
@@ -79,59 +145,212 @@ public class HttpJsonRpcHandler extends MessageToMessageDecoder<FullHttpRequest>
 	 * @param metricTopicName The topic name to send metrics to
 	 * @param metaTopicName The topic name to send meta-data to
 	 * @param batchSize The max size of batches to forward to the endpoint
+	 * @param highWater The number of in-flight records at which channel reads are paused
+	 * @param lowWater The number of in-flight records at which paused channel reads are resumed
+	 */
+	public HttpJsonRpcHandler(final String metricTopicName, final String metaTopicName, final int batchSize, final int highWater, final int lowWater) {
+		this(metricTopicName, metaTopicName, batchSize, highWater, lowWater, MessageForwarder.getInstance());
+	}
+	
+	/**
+	 * Creates a new HttpJsonRpcHandler
+	 * @param metricTopicName The topic name to send metrics to
+	 * @param metaTopicName The topic name to send meta-data to
+	 * @param batchSize The max size of batches to forward to the endpoint
+	 * @param highWater The number of in-flight records at which channel reads are paused
+	 * @param lowWater The number of in-flight records at which paused channel reads are resumed
+	 * @param mf The message forwarder
+	 */
+	protected HttpJsonRpcHandler(final String metricTopicName, final String metaTopicName, final int batchSize, final int highWater, final int lowWater, final MessageForwarder mf) {
+		this(metricTopicName, metaTopicName, batchSize, highWater, lowWater, mf, mf==null ? null : mf.getSendExecutor());
+	}
+	
+	/**
+	 * Creates a new HttpJsonRpcHandler
+	 * @param metricTopicName The topic name to send metrics to
+	 * @param metaTopicName The topic name to send meta-data to
+	 * @param batchSize The max size of batches to forward to the endpoint
+	 * @param highWater The number of in-flight records at which channel reads are paused
+	 * @param lowWater The number of in-flight records at which paused channel reads are resumed
+	 * @param mf The message forwarder
+	 * @param sendExecutor The executor batches are sent on, off the event loop
 	 */
-	public HttpJsonRpcHandler(final String metricTopicName, final String metaTopicName, final int batchSize) {
+	protected HttpJsonRpcHandler(final String metricTopicName, final String metaTopicName, final int batchSize, final int highWater, final int lowWater, final MessageForwarder mf, final Executor sendExecutor) {
+		if(lowWater >= highWater) throw new IllegalArgumentException("Low water mark [" + lowWater + "] must be less than the high water mark [" + highWater + "]");
 		this.metricTopicName = metricTopicName;
 		this.metaTopicName = metaTopicName;
 		this.batchSize = batchSize;
+		this.highWater = highWater;
+		this.lowWater = lowWater;
+		this.mf = mf;
+		this.sendExecutor = sendExecutor;
+		batch = new ArrayList<StreamedMetric>(batchSize);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.ChannelHandlerAdapter#handlerAdded(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+		context = ctx;
 	}
 
 	/**
 	 * {@inheritDoc}
-	 * @see io.netty.handler.codec.MessageToMessageDecoder#decode(io.netty.channel.ChannelHandlerContext, java.lang.Object, java.util.List)
+	 * @see io.netty.channel.ChannelInboundHandlerAdapter#channelRead(io.netty.channel.ChannelHandlerContext, java.lang.Object)
 	 */
 	@Override
-	protected void decode(final ChannelHandlerContext ctx, final FullHttpRequest msg, final List<Object> out) throws Exception {
-		int forwarded = 0;
-		int nodes = 0;
-		final ElapsedTime et = SystemClock.startClock();
-		final ByteBuf buff = msg.content();
-		if(buff.readableBytes()<2) {
-			log.info("Request from [{}] had no content: {}", ctx.channel().remoteAddress(), buff);
-			// send response
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		if(rejected) {
+			ReferenceCountUtil.release(msg);
 			return;
 		}
-		
-		final ArrayList<ObjectNode> metricNodes = new ArrayList<ObjectNode>(256); 
-		final JsonNode rootNode = JSONOps.parseToNode(buff);
-		if(rootNode.isArray()) {
-			for(JsonNode node: rootNode) {
-				if(node.has("metric")) {
-					metricNodes.add((ObjectNode)node);
-					nodes++;
-					if(nodes==batchSize) {
-						try {			
-							nodes = 0;
-							forwarded += forwardMetrics(metricNodes);							
-						} finally {
-							metricNodes.clear();
-						}
+		if(msg instanceof ByteBuf) {
+			final ByteBuf element = (ByteBuf)msg;
+			try {
+				onElement(element);
+			} finally {
+				element.release();
+			}
+		} else if(msg instanceof HttpRequest) {
+			forwarded = 0;
+			et = SystemClock.startClock();
+			ReferenceCountUtil.release(msg);
+		} else if(msg instanceof LastHttpContent) {
+			ReferenceCountUtil.release(msg);
+			flushBatch();
+			ctx.channel().pipeline().writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NO_CONTENT));
+			if(et!=null) log.info("Wrote [{}] metrics: {}", forwarded, et.printAvg("Metrics", forwarded));
+			et = null;
+		} else {
+			ctx.fireChannelRead(msg);
+		}
+	}
+	
+	/**
+	 * Parses one JSON array element and adds it to the current batch, forwarding the batch when full
+	 * @param element The buffer containing one JSON object
+	 */
+	protected void onElement(final ByteBuf element) {
+		try {
+			final StreamedMetricValue smv = parseMetric(element);
+			if(smv==null) return;
+			if(log.isDebugEnabled()) log.debug("Ingested JSON Metric: [{}]", smv);
+			batch.add(smv);
+			if(batch.size()>=batchSize) flushBatch();
+		} catch (Exception ex) {
+			log.error("Failed to unmarshal metric node [{}]", element.toString(UTF8), ex);
+		}
+	}
+	
+	/**
+	 * Token-parses a single OpenTSDB JSON datapoint (<b><code>{"metric":..., "timestamp":..., "value":..., "tags":{...}}</code></b>)
+	 * @param element The buffer containing the JSON object
+	 * @return the parsed metric or null if the element is not a datapoint
+	 * @throws IOException thrown on a JSON parsing error
+	 */
+	protected StreamedMetricValue parseMetric(final ByteBuf element) throws IOException {
+		final JsonParser p = JSONOps.parseToStream(new ByteBufInputStream(element));
+		try {
+			if(p.nextToken()!=JsonToken.START_OBJECT) return null;
+			String metric = null;
+			long timestamp = -1L;
+			boolean hasValue = false, isDouble = false;
+			long longValue = -1L;
+			double doubleValue = -1D;
+			tagBuffer.clear();
+			while(p.nextToken()==JsonToken.FIELD_NAME) {
+				final String field = p.getCurrentName();
+				final JsonToken t = p.nextToken();
+				if("metric".equals(field)) {
+					metric = p.getText();
+				} else if("timestamp".equals(field)) {
+					timestamp = t==JsonToken.VALUE_STRING ? Long.parseLong(p.getText().trim()) : p.getLongValue();
+				} else if("value".equals(field)) {
+					hasValue = true;
+					if(t==JsonToken.VALUE_NUMBER_INT) {
+						longValue = p.getLongValue();
+					} else if(t==JsonToken.VALUE_NUMBER_FLOAT) {
+						isDouble = true;
+						doubleValue = p.getDoubleValue();
+					} else {
+						final String s = p.getText().trim();
+						isDouble = s.indexOf('.')!=-1;
+						if(isDouble) doubleValue = Double.parseDouble(s);
+						else longValue = Long.parseLong(s);
 					}
+				} else if("tags".equals(field) && t==JsonToken.START_OBJECT) {
+					while(p.nextToken()==JsonToken.FIELD_NAME) {
+						final String key = p.getCurrentName();
+						p.nextToken();
+						tagBuffer.put(key, p.getText());
+					}
+				} else {
+					p.skipChildren();
 				}
 			}
-			if(!metricNodes.isEmpty()) try {
-				nodes += metricNodes.size();
-				forwarded += forwardMetrics(metricNodes);							
-			} finally {
-				metricNodes.clear();
-			}			
-		} else {
-			if(rootNode.has("metric")) {				
-				forwarded += forwardMetrics(Collections.singletonList((ObjectNode)rootNode));
+			if(metric==null) return null;
+			if(!hasValue || timestamp==-1L) throw new IllegalArgumentException("Datapoint for metric [" + metric + "] is missing a value or timestamp");
+			return isDouble ? 
+				new StreamedMetricValue(timestamp, doubleValue, metric, tagBuffer) : 
+				new StreamedMetricValue(timestamp, longValue, metric, tagBuffer);
+		} finally {
+			try { p.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+	
+	/**
+	 * Hands the current batch to the send executor, pausing channel reads if the in-flight count reaches the high water mark
+	 */
+	protected void flushBatch() {
+		if(batch.isEmpty()) return;
+		final int size = batch.size();
+		final List<StreamedMetric> metrics = new ArrayList<StreamedMetric>(batch);
+		batch.clear();
+		inFlight.addAndGet(size);
+		forwarded += size;
+		try {
+			sendExecutor.execute(() -> send(metrics));
+		} catch (Exception ex) {
+			for(int i = 0; i < size; i++) {
+				sendCallback.onCompletion(null, ex);
+			}
+		}
+		final ChannelHandlerContext ctx = context;
+		if(ctx!=null && inFlight.get() >= highWater && paused.compareAndSet(false, true)) {
+			ctx.channel().config().setAutoRead(false);
+			pauseCounter.inc();
+			log.debug("Paused reads on [{}] with [{}] in-flight metrics", ctx.channel(), inFlight.get());
+			// the producer may have drained between the send and the pause
+			if(inFlight.get() <= lowWater && paused.compareAndSet(true, false)) {
+				ctx.channel().config().setAutoRead(true);
+			}
+		}
+	}
+	
+	/**
+	 * Sends a batch to the producer. Runs on the send executor.
+	 * @param metrics The metrics to send
+	 */
+	protected void send(final List<StreamedMetric> metrics) {
+		for(final StreamedMetric sm: metrics) {
+			try {
+				mf.send(new ProducerRecord<String, StreamedMetric>(metricTopicName, sm.getMetricName(), sm), sendCallback);
+			} catch (Exception ex) {
+				sendCallback.onCompletion(null, ex);
 			}
-		}		
-		ctx.channel().pipeline().writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NO_CONTENT));
-		log.info("Wrote [{}] metrics: {}", forwarded, et.printAvg("Metrics", forwarded));
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.ChannelInboundHandlerAdapter#channelInactive(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		batch.clear();
+		super.channelInactive(ctx);
 	}
 	
 	/**
@@ -140,34 +359,33 @@ public class HttpJsonRpcHandler extends MessageToMessageDecoder<FullHttpRequest>
 	 */
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {		
-		log.error("Pipeline Error", cause);
+		if(cause instanceof DecoderException) {
+			reject(ctx, cause);
+		} else {
+			log.error("Pipeline Error", cause);
+		}
 	}
 	
-	protected int forwardMetrics(final List<ObjectNode> metricNodes) {
-		final HashSet<StreamedMetric> smetrics = new HashSet<StreamedMetric>(metricNodes.size()); 
-		int count = 0;
-		for(ObjectNode metricNode: metricNodes) {
-			try {
-				final String metric = metricNode.get("metric").textValue();
-				final String strValue = metricNode.get("value").toString();
-				final long timestamp = metricNode.get("timestamp").longValue();
-				final Map<String, String> tags = JSONOps.parseToObject(metricNode.get("tags"), TR_HASH_MAP);
-				StreamedMetricValue smv = new StreamedMetricValue(
-						strValue.indexOf('.')==-1 ? Long.parseLong(strValue.trim()) : Double.parseDouble(strValue.trim()),
-								metric,
-								tags
-							).updateTimestamp(timestamp); 
-				smetrics.add(smv);
-				if(log.isDebugEnabled()) log.debug("Ingested JSON Metric: [{}]", smv);
-				count++;
-			} catch (Exception ex) {
-				log.error("Failed to unmarshal metric node [{}]", metricNode, ex);
-			}
-		}
-		mf.sendnr(metricTopicName, smetrics);
-		return count;
+	/**
+	 * Answers the current request with a 400 and closes the channel
+	 * @param ctx The handler context
+	 * @param cause The decoding failure
+	 */
+	protected void reject(final ChannelHandlerContext ctx, final Throwable cause) {
+		if(rejected) return;
+		rejected = true;
+		batch.clear();
+		et = null;
+		badRequests.inc();
+		log.warn("Rejecting request on [{}]: {}", ctx.channel(), cause.getClass().getSimpleName());
+		final String message = cause instanceof TooLongFrameException ? "JSON object exceeds the maximum size\n" : "Malformed JSON request body\n";
+		final FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_REQUEST, Unpooled.copiedBuffer(message, UTF8));
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+		response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+		response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+		ctx.channel().pipeline().writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
 	}
-
+	
 }
 
 
@@ -30,6 +30,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -48,11 +50,14 @@ import org.apache.logging.log4j.Logger;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.Timer.Context;
+import com.heliosapm.streams.buffers.ByteBufSerde.ByteBufSerializer;
 import com.heliosapm.streams.metrics.StreamedMetric;
 import com.heliosapm.streams.metrics.ValueType;
 import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
 import com.heliosapm.utils.lang.StringHelper;
 
+import io.netty.buffer.ByteBuf;
+
 /**
  * <p>Title: MessageForwarder</p>
  * <p>Description: Wraps a Kafka message producer and factory</p> 
@@ -73,8 +78,17 @@ public class MessageForwarder implements Producer<String, StreamedMetric> {
 	private final Properties kafkaConfig = new Properties();
 	/** The wrapped Kafka producer */
 	private final Producer<String, StreamedMetric> producer;
+	/** The wrapped Kafka producer for pre-serialized metric buffers */
+	private final Producer<String, ByteBuf> bufferProducer;
 	/** Indicates if the producer is open */
 	private final AtomicBoolean open = new AtomicBoolean(false);
+	/** Runs sends handed off by netty event loops, since a producer send blocks while the producer's buffer is full.
+	 * A single thread keeps the records of each channel in order. */
+	private final ExecutorService sendExecutor = Executors.newSingleThreadExecutor(r -> {
+		final Thread t = new Thread(r, "MessageForwarderSendThread");
+		t.setDaemon(true);
+		return t;
+	});
 	
 	/** A counter of sent messages */
 	private final Timer sendMessage = SharedMetricsRegistry.getInstance().timer("forwarder.message.send");
@@ -123,8 +137,12 @@ public class MessageForwarder implements Producer<String, StreamedMetric> {
 	static void stop() {
 		instance.log.info(">>>>> Closing MessageForwarder...");
 		instance.open.set(false);
+		instance.sendExecutor.shutdown();
+		try { instance.sendExecutor.awaitTermination(5, TimeUnit.SECONDS); } catch (Exception x) {/* No Op */}
 		try { instance.producer.flush(); } catch (Exception x) {/* No Op */}
 		try { instance.producer.close(); } catch (Exception x) {/* No Op */}
+		try { instance.bufferProducer.flush(); } catch (Exception x) {/* No Op */}
+		try { instance.bufferProducer.close(); } catch (Exception x) {/* No Op */}
 		instance.log.info("<<<<< MessageForwarder Closed.");
 	}
 	
@@ -148,6 +166,10 @@ public class MessageForwarder implements Producer<String, StreamedMetric> {
 		}
 		b.append("\n\t==================================");
 		producer = new KafkaProducer<String, StreamedMetric>(kafkaConfig);
+		final Properties bufferConfig = new Properties();
+		bufferConfig.putAll(kafkaConfig);
+		bufferConfig.put("value.serializer", ByteBufSerializer.class.getName());
+		bufferProducer = new KafkaProducer<String, ByteBuf>(bufferConfig);
 		open.set(true);
 		log.info("<<<<< Started MessageForwarder.");
 	}
@@ -188,6 +210,26 @@ public class MessageForwarder implements Producer<String, StreamedMetric> {
 		send(new ProducerRecord<String, StreamedMetric>(topic, sm.getMetricName(), sm), callback);
 	}
 	
+	/**
+	 * Sends a metric already serialized in the binary {@link StreamedMetric} format.
+	 * The buffer is released once it has been serialized by the producer.
+	 * @param topic The topic to send to
+	 * @param key The message key, typically the metric name
+	 * @param metric The buffer containing the serialized metric
+	 */
+	public void send(final String topic, final String key, final ByteBuf metric) {
+		final Context ctx = sendMessage.time();
+		try {
+			bufferProducer.send(new ProducerRecord<String, ByteBuf>(topic, key, metric));
+			sendCounter.inc();
+		} catch (Exception ex) {
+			droppedMessages.inc();
+			if(metric.refCnt() > 0) try { metric.release(); } catch (Exception x) {/* No Op */}
+		} finally {
+			ctx.stop();
+		}
+	}
+	
 	/**
 	 * Sends a metric passed in string form to the specified topic
 	 * @param metric The metric to send
@@ -278,6 +320,14 @@ public class MessageForwarder implements Producer<String, StreamedMetric> {
 	}
 
 
+	/**
+	 * Returns the executor that sends handed off by netty event loops run on
+	 * @return the send executor
+	 */
+	public ExecutorService getSendExecutor() {
+		return sendExecutor;
+	}
+
 	/**
 	 * Flush any accumulated records from the producer.
 	 * @see org.apache.kafka.clients.producer.Producer#flush()
@@ -0,0 +1,383 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2016, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.streams.onramp;
+
+import com.heliosapm.streams.metrics.StreamedMetricValue;
+import com.heliosapm.utils.buffer.BufferManager;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: OpenTSDBLineParser</p>
+ * <p>Description: Parses OpenTSDB telnet style put lines (<b><code>put &lt;metric&gt; &lt;timestamp&gt; &lt;value&gt; &lt;tagk1=tagv1[ tagk2=tagv2 ...tagkN=tagvN]&gt;</code></b>)
+ * by walking the framed {@link ByteBuf} in place and writes the parsed metric directly in the binary {@link StreamedMetricValue} format.</p>
+ * <p>The result is identical to serializing the {@link StreamedMetricValue} returned by {@link StreamedMetricValue#fromOpenTSDBString(String)} for the
+ * same line: tokens are lower cased, a <b><code>host</code></b> tag is required, <b><code>app</code></b> defaults to <b><code>unknown</code></b>
+ * and tags are ordered as {@link com.heliosapm.streams.tracing.TagKeySorter} orders them. Metric names, tag keys and tag values are
+ * resolved through the {@link TokenCache} so a repeated series does not allocate.</p>
+ * <p>Instances hold per-line parse state and are not thread safe. Use one per channel handler.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.onramp.OpenTSDBLineParser</code></p>
+ */
+
+public class OpenTSDBLineParser {
+	/** The maximum number of tags supported in one line */
+	public static final int MAX_TAGS = 64;
+	/** The default app tag value */
+	public static final String UNKNOWN_APP = "unknown";
+	/** The app tag key */
+	public static final String APP = "app";
+	/** The host tag key */
+	public static final String HOST = "host";
+	/** Timestamps less than this are considered to be in seconds */
+	private static final long MS_THRESHOLD = 1000000000000L;
+	/** The maximum number of significant digits that can be parsed into an exact double on the fast path */
+	private static final int MAX_FAST_DIGITS = 15;
+	/** Powers of 10 for the fast double parse */
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+	};
+
+	/** The token cache */
+	private final TokenCache cache;
+
+	/** The parsed metric name */
+	private String metricName = null;
+	/** The parsed timestamp in ms */
+	private long timestamp = -1L;
+	/** Indicates if the parsed value is a double */
+	private boolean isDoubleValue = false;
+	/** The parsed long value */
+	private long longValue = -1L;
+	/** The parsed double value */
+	private double doubleValue = -1D;
+	/** The parsed tag keys in sorted order */
+	private final String[] tagKeys = new String[MAX_TAGS];
+	/** The parsed tag values in tag key order */
+	private final String[] tagValues = new String[MAX_TAGS];
+	/** The number of parsed tags */
+	private int tagCount = 0;
+
+	/**
+	 * Creates a new OpenTSDBLineParser using the shared {@link TokenCache}
+	 */
+	public OpenTSDBLineParser() {
+		this(TokenCache.getInstance());
+	}
+
+	/**
+	 * Creates a new OpenTSDBLineParser
+	 * @param cache The token cache to intern tokens with
+	 */
+	public OpenTSDBLineParser(final TokenCache cache) {
+		if(cache==null) throw new IllegalArgumentException("The passed token cache was null");
+		this.cache = cache;
+	}
+
+	/**
+	 * Determines if the passed buffer starts with a <b><code>put </code></b> command (case insensitive, leading whitespace ignored)
+	 * @param buf The buffer to test
+	 * @return true if the buffer is a put line, false otherwise
+	 */
+	public static boolean isPut(final ByteBuf buf) {
+		final int start = skipSpaces(buf, buf.readerIndex(), buf.writerIndex());
+		if(buf.writerIndex() - start < 4) return false;
+		return TokenCache.lower(buf.getByte(start))=='p'
+			&& TokenCache.lower(buf.getByte(start+1))=='u'
+			&& TokenCache.lower(buf.getByte(start+2))=='t'
+			&& isSpace(buf.getByte(start+3));
+	}
+
+	/**
+	 * Parses the put line in the readable bytes of the passed buffer. The buffer's indexes are not modified.
+	 * @param buf The buffer to parse
+	 * @return this parser
+	 * @throws IllegalArgumentException thrown if the line is not a valid put line
+	 */
+	public OpenTSDBLineParser parse(final ByteBuf buf) {
+		final int end = buf.writerIndex();
+		tagCount = 0;
+		metricName = null;
+		// put
+		int start = skipSpaces(buf, buf.readerIndex(), end);
+		int tend = tokenEnd(buf, start, end);
+		if(tend - start != 3) throw invalid(buf, "Expected put command");
+		// metric
+		start = skipSpaces(buf, tend, end);
+		tend = tokenEnd(buf, start, end);
+		if(tend==start) throw invalid(buf, "Requires at least 5 entries");
+		metricName = cache.get(buf, start, tend - start);
+		// timestamp
+		start = skipSpaces(buf, tend, end);
+		tend = tokenEnd(buf, start, end);
+		if(tend==start) throw invalid(buf, "Requires at least 5 entries");
+		timestamp = parseTimestamp(buf, start, tend);
+		// value
+		start = skipSpaces(buf, tend, end);
+		tend = tokenEnd(buf, start, end);
+		if(tend==start) throw invalid(buf, "Requires at least 5 entries");
+		parseValue(buf, start, tend);
+		// tags
+		start = skipSpaces(buf, tend, end);
+		while(start < end) {
+			tend = tokenEnd(buf, start, end);
+			final int eq = buf.indexOf(start, tend, (byte)'=');
+			if(eq < 0 || eq==start || eq==tend-1) throw invalid(buf, "Invalid tag");
+			putTag(cache.get(buf, start, eq - start), cache.get(buf, eq + 1, tend - eq - 1), buf);
+			start = skipSpaces(buf, tend, end);
+		}
+		if(tagCount==0 || indexOf(HOST)==-1) throw invalid(buf, "Requires a host tag");
+		if(indexOf(APP)==-1) putTag(APP, UNKNOWN_APP, buf);
+		return this;
+	}
+
+	/**
+	 * Writes the last parsed metric into the passed buffer in the binary {@link StreamedMetricValue} format
+	 * @param out The buffer to write to
+	 * @return the number of bytes written
+	 */
+	public int write(final ByteBuf out) {
+		if(metricName==null) throw new IllegalStateException("No metric has been parsed");
+		final int offset = out.writerIndex();
+		out.writeByte(StreamedMetricValue.TYPE_CODE);
+		out.writeByte(0);		// no value type
+		out.writeLong(timestamp);
+		BufferManager.writeUTF(metricName, out);
+		out.writeByte(tagCount);
+		for(int i = 0; i < tagCount; i++) {
+			BufferManager.writeUTF(tagKeys[i], out);
+			BufferManager.writeUTF(tagValues[i], out);
+		}
+		if(isDoubleValue) {
+			out.writeByte(0);
+			out.writeDouble(doubleValue);
+		} else {
+			out.writeByte(1);
+			out.writeLong(longValue);
+		}
+		return out.writerIndex() - offset;
+	}
+
+	/**
+	 * Returns the last parsed metric name
+	 * @return the metric name
+	 */
+	public String getMetricName() {
+		return metricName;
+	}
+
+	/**
+	 * Returns the last parsed timestamp in ms.
+	 * @return the timestamp
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Indicates if the last parsed value was a double
+	 * @return true if a double, false if a long
+	 */
+	public boolean isDoubleValue() {
+		return isDoubleValue;
+	}
+
+	/**
+	 * Returns the last parsed long value
+	 * @return the long value
+	 */
+	public long getLongValue() {
+		return longValue;
+	}
+
+	/**
+	 * Returns the last parsed double value
+	 * @return the double value
+	 */
+	public double getDoubleValue() {
+		return doubleValue;
+	}
+
+	/**
+	 * Returns the number of tags in the last parsed line, including the defaulted app tag
+	 * @return the tag count
+	 */
+	public int getTagCount() {
+		return tagCount;
+	}
+
+	/**
+	 * Inserts a tag in {@link com.heliosapm.streams.tracing.TagKeySorter} order, replacing the value of a duplicate key
+	 * @param key The tag key
+	 * @param value The tag value
+	 * @param buf The buffer being parsed, for error reporting
+	 */
+	private void putTag(final String key, final String value, final ByteBuf buf) {
+		int i = 0;
+		for(; i < tagCount; i++) {
+			final int c = compare(key, tagKeys[i]);
+			if(c==0) {
+				tagValues[i] = value;
+				return;
+			}
+			if(c < 0) break;
+		}
+		if(tagCount==MAX_TAGS) throw invalid(buf, "Too many tags");
+		final int move = tagCount - i;
+		if(move > 0) {
+			System.arraycopy(tagKeys, i, tagKeys, i + 1, move);
+			System.arraycopy(tagValues, i, tagValues, i + 1, move);
+		}
+		tagKeys[i] = key;
+		tagValues[i] = value;
+		tagCount++;
+	}
+
+	/**
+	 * Finds the index of the passed tag key
+	 * @param key The tag key
+	 * @return the index or -1 if not found
+	 */
+	private int indexOf(final String key) {
+		for(int i = 0; i < tagCount; i++) {
+			if(key.equals(tagKeys[i])) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares lower cased tag keys, sorting <b><code>app</code></b> and <b><code>host</code></b> first
+	 * @param k1 The first key
+	 * @param k2 The second key
+	 * @return the comparison result
+	 */
+	private static int compare(final String k1, final String k2) {
+		if(k1.equals(k2)) return 0;
+		final int r = rank(k1) - rank(k2);
+		if(r!=0) return r;
+		return k1.compareTo(k2);
+	}
+
+	private static int rank(final String key) {
+		if(APP.equals(key)) return 0;
+		if(HOST.equals(key)) return 1;
+		return 2;
+	}
+
+	/**
+	 * Parses a timestamp, converting seconds to ms.
+	 * @param buf The buffer
+	 * @param start The first byte of the token
+	 * @param end The end of the token (exclusive)
+	 * @return the timestamp in ms.
+	 */
+	private long parseTimestamp(final ByteBuf buf, final int start, final int end) {
+		long v = 0L;
+		for(int i = start; i < end; i++) {
+			final byte b = buf.getByte(i);
+			if(b=='.') break;
+			if(b < '0' || b > '9') throw invalid(buf, "Invalid timestamp");
+			v = v * 10 + (b - '0');
+		}
+		return v < MS_THRESHOLD ? v * 1000L : v;
+	}
+
+	/**
+	 * Parses the value. Plain decimals are parsed in place. Anything else falls back to {@link Double#parseDouble(String)}.
+	 * @param buf The buffer
+	 * @param start The first byte of the token
+	 * @param end The end of the token (exclusive)
+	 */
+	private void parseValue(final ByteBuf buf, final int start, final int end) {
+		int i = start;
+		boolean negative = false;
+		final byte first = buf.getByte(i);
+		if(first=='-' || first=='+') {
+			negative = first=='-';
+			i++;
+		}
+		long mantissa = 0L;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean dot = false;
+		boolean fast = i < end;
+		for(; i < end; i++) {
+			final byte b = buf.getByte(i);
+			if(b=='.' && !dot) {
+				dot = true;
+				continue;
+			}
+			if(b < '0' || b > '9' || digits==MAX_FAST_DIGITS) {
+				fast = false;
+				break;
+			}
+			mantissa = mantissa * 10 + (b - '0');
+			if(mantissa!=0) digits++;
+			if(dot) fractionDigits++;
+		}
+		if(fast && fractionDigits < POW10.length) {
+			isDoubleValue = dot;
+			if(dot) {
+				final double d = mantissa / POW10[fractionDigits];
+				doubleValue = negative ? -d : d;
+			} else {
+				longValue = negative ? -mantissa : mantissa;
+			}
+			return;
+		}
+		final String s = buf.toString(start, end - start, TokenCache.UTF8);
+		try {
+			final double d = Double.parseDouble(s);
+			isDoubleValue = s.indexOf('.')!=-1;
+			if(isDoubleValue) {
+				doubleValue = d;
+			} else {
+				longValue = (long)d;
+			}
+		} catch (NumberFormatException nex) {
+			throw invalid(buf, "Invalid value [" + s + "]");
+		}
+	}
+
+	private static boolean isSpace(final byte b) {
+		return b==' ' || b=='\t' || b=='\r' || b=='\n';
+	}
+
+	private static int skipSpaces(final ByteBuf buf, final int from, final int end) {
+		int i = from;
+		while(i < end && isSpace(buf.getByte(i))) i++;
+		return i;
+	}
+
+	private static int tokenEnd(final ByteBuf buf, final int from, final int end) {
+		int i = from;
+		while(i < end && !isSpace(buf.getByte(i))) i++;
+		return i;
+	}
+
+	private static IllegalArgumentException invalid(final ByteBuf buf, final String message) {
+		return new IllegalArgumentException("Invalid text line. " + message + ": [" + buf.toString(TokenCache.UTF8) + "]");
+	}
+}
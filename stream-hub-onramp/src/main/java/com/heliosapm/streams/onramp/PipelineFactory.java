@@ -36,7 +36,6 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.LineBasedFrameDecoder;
 import io.netty.handler.codec.http.HttpContentDecompressor;
-import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.json.JsonObjectDecoder;
 import io.netty.handler.codec.string.StringEncoder;
@@ -73,15 +72,22 @@ public final class PipelineFactory extends ChannelInitializer<SocketChannel> imp
 	/** Thread serial factory */
 	private static final AtomicInteger threadSerial = new AtomicInteger(0);
 
-	/** Stateless handler for RPCs. */
-	private final TextLineRpcHandler rpchandler;
-	
 	/** The idle channel reaper */
 	private final IdleSessionKillerHandler idleReaper;
 	/** The instance logger */
 	protected final Logger log = LogManager.getLogger(getClass());
-	/** The http-json rpc handler */
-	protected final HttpJsonRpcHandler jsonRpcHandler;
+	/** The topic name to send metrics to */
+	protected final String metricTopic;
+	/** The topic name to send meta-data to */
+	protected final String metaTopic;
+	/** The max size of metric batches forwarded by the http-json rpc handler */
+	protected final int batchSize;
+	/** The number of in-flight metrics per http channel at which reads are paused */
+	protected final int highWater;
+	/** The number of in-flight metrics per http channel at which paused reads are resumed */
+	protected final int lowWater;
+	/** The maximum size of a single JSON object in an http request */
+	protected final int maxJsonObjectSize;
 
 
 	/** The server side socket timeout. **/
@@ -93,12 +99,13 @@ public final class PipelineFactory extends ChannelInitializer<SocketChannel> imp
 	 */
 	public PipelineFactory(final Properties appConfig) {
 		socketTimeout = ConfigurationHelper.getIntSystemThenEnvProperty("onramp.socket.timeout", 60, appConfig); 
-		rpchandler = new TextLineRpcHandler();
 		idleReaper = new IdleSessionKillerHandler();
-		final String metricTopic = ConfigurationHelper.getSystemThenEnvProperty("onramp.metric.topic", "tsdb.metrics.binary", appConfig);
-		final String metaTopic = ConfigurationHelper.getSystemThenEnvProperty("onramp.meta.topic", "tsdb.meta.binary", appConfig);
-		final int batchSize = ConfigurationHelper.getIntSystemThenEnvProperty("onramp.metric.batchsize", 1024, appConfig);
-		jsonRpcHandler = new HttpJsonRpcHandler(metricTopic, metaTopic, batchSize);
+		metricTopic = ConfigurationHelper.getSystemThenEnvProperty("onramp.metric.topic", "tsdb.metrics.binary", appConfig);
+		metaTopic = ConfigurationHelper.getSystemThenEnvProperty("onramp.meta.topic", "tsdb.meta.binary", appConfig);
+		batchSize = ConfigurationHelper.getIntSystemThenEnvProperty("onramp.metric.batchsize", 1024, appConfig);
+		highWater = ConfigurationHelper.getIntSystemThenEnvProperty("onramp.http.inflight.high", batchSize * 8, appConfig);
+		lowWater = ConfigurationHelper.getIntSystemThenEnvProperty("onramp.http.inflight.low", batchSize * 2, appConfig);
+		maxJsonObjectSize = ConfigurationHelper.getIntSystemThenEnvProperty("onramp.http.maxobjectsize", 64 * 1024, appConfig);
 	}
 
 	/**
@@ -163,7 +170,7 @@ public final class PipelineFactory extends ChannelInitializer<SocketChannel> imp
 				final int magic2 = in.getUnsignedByte(in.readerIndex() + 1);
 				if(isHttp(magic1, magic2)) {
 					log.debug("Switching to Http [{}]", ctx.channel());
-					switchToHttp(ctx, 512 * 1024); //tsdb.getConfig().max_chunked_requests());
+					switchToHttp(ctx, maxJsonObjectSize);
 				} else {
 					log.debug("Switching to Telnet [{}]", ctx.channel());
 					switchToTelnet(ctx);
@@ -185,17 +192,18 @@ public final class PipelineFactory extends ChannelInitializer<SocketChannel> imp
 		}
 
 		/**
-		 * Modifies the pipeline to handle HTTP requests
+		 * Modifies the pipeline to handle HTTP requests. The request content is not aggregated:
+		 * JSON array elements are framed and forwarded as the chunks arrive.
 		 * @param ctx The calling channel handler context
-		 * @param maxRequestSize The maximum request size in bytes
+		 * @param maxObjectSize The maximum size of a single JSON object in bytes
 		 */
-		private void switchToHttp(final ChannelHandlerContext ctx, final int maxRequestSize) {
+		private void switchToHttp(final ChannelHandlerContext ctx, final int maxObjectSize) {
 			ChannelPipeline p = ctx.pipeline();			
 			p.addLast("httpHandler", new HttpServerCodec());  // TODO: config ?
 			p.addLast("decompressor", new HttpContentDecompressor());
-			p.addLast("aggregator", new HttpObjectAggregator(maxRequestSize)); 
-			p.addLast("jsonDecoder", new JsonObjectDecoder(maxRequestSize, false));
-			p.addLast("handler", jsonRpcHandler);
+			p.addLast("streamer", HttpContentStreamer.INSTANCE); 
+			p.addLast("jsonDecoder", new JsonObjectDecoder(maxObjectSize, true));
+			p.addLast("handler", new HttpJsonRpcHandler(metricTopic, metaTopic, batchSize, highWater, lowWater));
 			p.remove(this);
 		}  
 	}  
@@ -24,6 +24,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.heliosapm.streams.metrics.StreamedMetricValue;
+import com.heliosapm.streams.metrics.ValueType;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
@@ -31,7 +32,7 @@ import io.netty.channel.SimpleChannelInboundHandler;
 
 /**
  * <p>Title: StringMetricHandler</p>
- * <p>Description: Decodes the passed (post-CR split) buffer, converts to a string amd submits the metric.</p> 
+ * <p>Description: Decodes the passed (post-CR split) buffer, parses put lines in place through an {@link OpenTSDBLineParser}, falling back to string parsing for other formats, and submits the metric.</p> 
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.streams.onramp.StringMetricHandler</code></p>
  */
@@ -43,6 +44,10 @@ public class StringMetricHandler extends SimpleChannelInboundHandler<ByteBuf> {
 	public static final Charset UTF8 = Charset.forName("UTF8");
 	/** The message forwarder */
 	protected final MessageForwarder mf = MessageForwarder.getInstance();
+	/** The put line parser for this channel */
+	protected final OpenTSDBLineParser parser = new OpenTSDBLineParser();
+	/** The number of bytes added to the line length to size the outbound buffer */
+	public static final int OUT_BUFFER_OVERHEAD = 64;
 	
 	
 
@@ -53,16 +58,24 @@ public class StringMetricHandler extends SimpleChannelInboundHandler<ByteBuf> {
 	 */
 	@Override
 	protected void channelRead0(final ChannelHandlerContext ctx, final ByteBuf msg) throws Exception {
+		if(OpenTSDBLineParser.isPut(msg)) {
+			// it's a put command, telnet style:  put <metric-name> <timestamp> <value> <tag1=value1>...<tagn=valuen>
+			final ByteBuf out = ctx.alloc().buffer(msg.readableBytes() + OUT_BUFFER_OVERHEAD);
+			try {
+				parser.parse(msg).write(out);
+			} catch (Exception ex) {
+				out.release();
+				log.error("Failed to handle metric text line: [{}]", msg.toString(UTF8), ex);
+				return;
+			}
+			log.debug("Ingested UDP Metric: [{}]", parser.getMetricName());
+			mf.send(ValueType.STRAIGHTTHROUGH.topicName, parser.getMetricName(), out);
+			return;
+		}
 		final String v = msg.toString(UTF8).toLowerCase();
 		try {			
-			final StreamedMetricValue smv;
-			if(v.indexOf("put ")==0) {
-				// it's a put command, telnet style:  put <metric-name> <timestamp> <value> <tag1=value1>...<tagn=valuen>
-				smv = StreamedMetricValue.fromOpenTSDBString(v);
-			} else {
-				// It's a stringed StreamedMetricValue: [<value-type>,]<timestamp>, [<value>,] <metric-name>, <host>, <app> [,<tagkey1>=<tagvalue1>,<tagkeyn>=<tagvaluen>]
-				smv = StreamedMetricValue.fromString(v).forValue();
-			}
+			// It's a stringed StreamedMetricValue: [<value-type>,]<timestamp>, [<value>,] <metric-name>, <host>, <app> [,<tagkey1>=<tagvalue1>,<tagkeyn>=<tagvaluen>]
+			final StreamedMetricValue smv = StreamedMetricValue.fromString(v).forValue();
 			log.debug("Ingested UDP Metric: [{}]", smv);
 			mf.send(smv);
 		} catch (Exception ex) {
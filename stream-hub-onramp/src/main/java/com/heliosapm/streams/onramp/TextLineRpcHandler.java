@@ -21,6 +21,8 @@ import java.util.List;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.heliosapm.streams.metrics.ValueType;
+
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
@@ -43,6 +45,9 @@ public class TextLineRpcHandler extends MessageToMessageDecoder<ByteBuf> {
 	
 	/** The message forwarder */
 	protected MessageForwarder mf = MessageForwarder.getInstance();
+	
+	/** The put line parser for this channel */
+	protected final OpenTSDBLineParser parser = new OpenTSDBLineParser();
 
 
 	/**
@@ -51,9 +56,20 @@ public class TextLineRpcHandler extends MessageToMessageDecoder<ByteBuf> {
 	 */
 	@Override
 	protected void decode(final ChannelHandlerContext ctx, final ByteBuf buff, final  List<Object> out) throws Exception {
-		final String v = buff.toString(UTF8);
-		log.debug("Received Message: [{}]", v);
-		mf.send(v);
+		if(OpenTSDBLineParser.isPut(buff)) {
+			final ByteBuf metric = ctx.alloc().buffer(buff.readableBytes() + StringMetricHandler.OUT_BUFFER_OVERHEAD);
+			try {
+				parser.parse(buff).write(metric);
+				mf.send(ValueType.STRAIGHTTHROUGH.topicName, parser.getMetricName(), metric);
+			} catch (Exception ex) {
+				metric.release();
+				log.error("Failed to handle metric text line: [{}]", buff.toString(UTF8), ex);
+			}
+		} else {
+			final String v = buff.toString(UTF8);
+			log.debug("Received Message: [{}]", v);
+			mf.send(v);
+		}
 		out.add(buff.retain());
 	}
 	
@@ -0,0 +1,202 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2016, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.streams.onramp;
+
+import java.nio.charset.Charset;
+
+import com.codahale.metrics.Counter;
+import com.heliosapm.streams.common.metrics.SharedMetricsRegistry;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: TokenCache</p>
+ * <p>Description: A bounded, direct mapped intern cache of lower cased string tokens keyed by the raw bytes of the token
+ * as they appear in a {@link ByteBuf}. A lookup for a token that has been seen before hashes and compares the bytes
+ * in place and returns the cached string without allocating.</p>
+ * <p>Entries are immutable and published through a plain array, so the cache can be shared across event loop threads.
+ * Colliding tokens simply replace each other, which keeps the footprint fixed at the configured number of slots.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.onramp.TokenCache</code></p>
+ */
+
+public class TokenCache {
+	/** The singleton instance */
+	private static volatile TokenCache instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** The UTF8 character set */
+	public static final Charset UTF8 = Charset.forName("UTF8");
+	/** The default number of slots in the cache */
+	public static final int DEFAULT_SIZE = 8192;
+	/** The config key for the number of slots in the cache */
+	public static final String CONFIG_SIZE = "onramp.tokencache.size";
+	/** The maximum length of a token that will be cached */
+	public static final int MAX_TOKEN_LENGTH = 128;
+
+	/** The cache slots */
+	private final Entry[] slots;
+	/** The slot index mask */
+	private final int mask;
+	/** A counter of cache hits */
+	private final Counter hits = SharedMetricsRegistry.getInstance().counter("onramp.tokencache.hits");
+	/** A counter of cache misses */
+	private final Counter misses = SharedMetricsRegistry.getInstance().counter("onramp.tokencache.misses");
+
+	/**
+	 * Acquires the TokenCache singleton instance
+	 * @return the TokenCache singleton instance
+	 */
+	public static TokenCache getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new TokenCache(Integer.getInteger(CONFIG_SIZE, DEFAULT_SIZE));
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new TokenCache
+	 * @param size The requested number of slots, rounded up to the next power of 2
+	 */
+	TokenCache(final int size) {
+		if(size < 1) throw new IllegalArgumentException("Invalid token cache size [" + size + "]");
+		int cap = 1;
+		while(cap < size) cap <<= 1;
+		slots = new Entry[cap];
+		mask = cap - 1;
+	}
+
+	/**
+	 * Returns the lower cased string for the token in the passed buffer. The buffer's indexes are not modified.
+	 * @param buf The buffer containing the token
+	 * @param offset The absolute offset of the first byte of the token
+	 * @param length The length of the token in bytes
+	 * @return the lower cased token
+	 */
+	public String get(final ByteBuf buf, final int offset, final int length) {
+		if(length > MAX_TOKEN_LENGTH) {
+			misses.inc();
+			return buf.toString(offset, length, UTF8).toLowerCase();
+		}
+		final int hash = hash(buf, offset, length);
+		final int index = hash & mask;
+		final Entry e = slots[index];
+		if(e!=null && e.hash==hash && e.matches(buf, offset, length)) {
+			hits.inc();
+			return e.value;
+		}
+		misses.inc();
+		final Entry ne = new Entry(buf, offset, length, hash);
+		slots[index] = ne;
+		return ne.value;
+	}
+
+	/**
+	 * Returns the number of slots in the cache
+	 * @return the number of slots
+	 */
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Returns the cumulative number of cache hits
+	 * @return the number of cache hits
+	 */
+	public long getHits() {
+		return hits.getCount();
+	}
+
+	/**
+	 * Returns the cumulative number of cache misses
+	 * @return the number of cache misses
+	 */
+	public long getMisses() {
+		return misses.getCount();
+	}
+
+	/**
+	 * Lower cases an ASCII byte
+	 * @param b The byte to lower case
+	 * @return the lower cased byte
+	 */
+	static byte lower(final byte b) {
+		return (b >= 'A' && b <= 'Z') ? (byte)(b + 32) : b;
+	}
+
+	/**
+	 * Computes the hash of the lower cased bytes of a token
+	 * @param buf The buffer containing the token
+	 * @param offset The absolute offset of the first byte of the token
+	 * @param length The length of the token in bytes
+	 * @return the hash
+	 */
+	static int hash(final ByteBuf buf, final int offset, final int length) {
+		int h = 1;
+		final int end = offset + length;
+		for(int i = offset; i < end; i++) {
+			h = 31 * h + lower(buf.getByte(i));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * <p>Title: Entry</p>
+	 * <p>Description: An immutable cache entry</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.streams.onramp.TokenCache.Entry</code></p>
+	 */
+	private static final class Entry {
+		/** The lower cased token bytes */
+		final byte[] bytes;
+		/** The token hash */
+		final int hash;
+		/** The lower cased token */
+		final String value;
+
+		Entry(final ByteBuf buf, final int offset, final int length, final int hash) {
+			this.hash = hash;
+			bytes = new byte[length];
+			buf.getBytes(offset, bytes);
+			for(int i = 0; i < length; i++) {
+				bytes[i] = lower(bytes[i]);
+			}
+			value = new String(bytes, UTF8).toLowerCase();
+		}
+
+		boolean matches(final ByteBuf buf, final int offset, final int length) {
+			if(bytes.length!=length) return false;
+			for(int i = 0; i < length; i++) {
+				if(bytes[i]!=lower(buf.getByte(offset + i))) return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,328 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2016, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.streams.onramp;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.metrics.StreamedMetric;
+import com.heliosapm.streams.metrics.StreamedMetricValue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.json.JsonObjectDecoder;
+
+/**
+ * <p>Title: HttpJsonRpcHandlerTest</p>
+ * <p>Description: Drives chunked, multi-object and malformed request bodies through the streaming http pipeline,
+ * and checks that blocked sends do not block the channel</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.onramp.HttpJsonRpcHandlerTest</code></p>
+ */
+
+public class HttpJsonRpcHandlerTest {
+	/** The UTF8 character set */
+	public static final Charset UTF8 = Charset.forName("UTF8");
+
+	/** Sample datapoints */
+	static final String[] DATAPOINTS = {
+		"{\"metric\":\"sys.cpu.user\",\"timestamp\":1476000000,\"value\":42,\"tags\":{\"host\":\"web01\",\"cpu\":\"0\"}}",
+		"{\"metric\":\"sys.cpu.user\",\"timestamp\":1476000001,\"value\":42.5,\"tags\":{\"host\":\"web02\",\"cpu\":\"1\"}}",
+		"{\"metric\":\"sys.mem.free\",\"timestamp\":\"1476000002\",\"value\":\"17\",\"tags\":{\"host\":\"db01\"}}",
+		"{\"metric\":\"jvm.gc.time\",\"timestamp\":1476000003,\"value\":1.5,\"tags\":{\"host\":\"app01\",\"gc\":\"g1\"}}",
+		"{\"metric\":\"jvm.gc.count\",\"timestamp\":1476000004,\"value\":12,\"tags\":{\"host\":\"app01\",\"gc\":\"g1\"}}",
+	};
+
+	/**
+	 * <p>Title: CapturingHandler</p>
+	 * <p>Description: A handler that captures the batches it would forward</p>
+	 */
+	static class CapturingHandler extends HttpJsonRpcHandler {
+		/** The captured batches */
+		final List<List<StreamedMetric>> batches = new ArrayList<List<StreamedMetric>>();
+
+		/**
+		 * Creates a new CapturingHandler
+		 * @param batchSize The max size of batches to forward
+		 */
+		CapturingHandler(final int batchSize) {
+			super("metrics", "meta", batchSize, 100, 10, null);
+		}
+
+		@Override
+		protected void flushBatch() {
+			if(batch.isEmpty()) return;
+			batches.add(new ArrayList<StreamedMetric>(batch));
+			forwarded += batch.size();
+			batch.clear();
+		}
+
+		/**
+		 * Returns all the captured metrics
+		 * @return the captured metrics
+		 */
+		List<StreamedMetric> metrics() {
+			final List<StreamedMetric> metrics = new ArrayList<StreamedMetric>();
+			for(List<StreamedMetric> b: batches) {
+				metrics.addAll(b);
+			}
+			return metrics;
+		}
+	}
+
+	/**
+	 * <p>Title: BlockedSendHandler</p>
+	 * <p>Description: A handler whose sends block until released, as a producer send does while the producer's buffer is full,
+	 * then acknowledge each record</p>
+	 */
+	static class BlockedSendHandler extends HttpJsonRpcHandler {
+		/** Released to let the sends proceed */
+		final CountDownLatch blocked = new CountDownLatch(1);
+		/** The names of the threads batches were sent on */
+		final List<String> sendThreads = new CopyOnWriteArrayList<String>();
+		/** The sent metrics */
+		final List<StreamedMetric> sent = new CopyOnWriteArrayList<StreamedMetric>();
+
+		/**
+		 * Creates a new BlockedSendHandler
+		 * @param sendExecutor The executor batches are sent on
+		 */
+		BlockedSendHandler(final ExecutorService sendExecutor) {
+			super("metrics", "meta", 2, 4, 1, null, sendExecutor);
+		}
+
+		@Override
+		protected void send(final List<StreamedMetric> metrics) {
+			sendThreads.add(Thread.currentThread().getName());
+			try {
+				blocked.await();
+			} catch (InterruptedException iex) {
+				throw new RuntimeException(iex);
+			}
+			for(StreamedMetric sm: metrics) {
+				sent.add(sm);
+				sendCallback.onCompletion(null, null);
+			}
+		}
+	}
+
+	/**
+	 * Creates a channel with the http json pipeline
+	 * @param handler The json handler
+	 * @param maxObjectSize The maximum size of a single JSON object
+	 * @return the channel
+	 */
+	static EmbeddedChannel channel(final HttpJsonRpcHandler handler, final int maxObjectSize) {
+		return new EmbeddedChannel(new HttpServerCodec(), new HttpContentDecompressor(), HttpContentStreamer.INSTANCE,
+			new JsonObjectDecoder(maxObjectSize, true), handler);
+	}
+
+	/**
+	 * Builds a JSON array of the passed datapoints
+	 * @param datapoints The datapoints
+	 * @return the JSON array
+	 */
+	static String array(final String...datapoints) {
+		final StringBuilder b = new StringBuilder("[");
+		for(String dp: datapoints) {
+			if(b.length()>1) b.append(",\n ");
+			b.append(dp);
+		}
+		return b.append("]").toString();
+	}
+
+	/**
+	 * Writes a string to the channel as inbound bytes
+	 * @param ch The channel
+	 * @param s The string to write
+	 */
+	static void write(final EmbeddedChannel ch, final String s) {
+		ch.writeInbound(Unpooled.copiedBuffer(s, UTF8));
+	}
+
+	/**
+	 * Returns a request head with a content length for the passed body
+	 * @param body The request body
+	 * @return the request head and body
+	 */
+	static String request(final String body) {
+		return "POST /api/put HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\nContent-Length: "
+			+ body.getBytes(UTF8).length + "\r\n\r\n" + body;
+	}
+
+	/**
+	 * Reads everything written to the channel
+	 * @param ch The channel
+	 * @return the written bytes as a string
+	 */
+	static String response(final EmbeddedChannel ch) {
+		final StringBuilder b = new StringBuilder();
+		Object o = null;
+		while((o = ch.readOutbound())!=null) {
+			final ByteBuf buf = (ByteBuf)o;
+			b.append(buf.toString(UTF8));
+			buf.release();
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Asserts the captured metric at the passed index matches the sample datapoint
+	 * @param metrics The captured metrics
+	 * @param index The index
+	 * @param name The expected metric name
+	 * @param value The expected value
+	 * @param host The expected host tag
+	 */
+	static void assertMetric(final List<StreamedMetric> metrics, final int index, final String name, final double value, final String host) {
+		final StreamedMetricValue smv = (StreamedMetricValue)metrics.get(index);
+		Assert.assertEquals(name, smv.getMetricName());
+		Assert.assertEquals(value, smv.getValueAsDouble(), 0D);
+		Assert.assertEquals(host, smv.getTags().get("host"));
+	}
+
+	/**
+	 * Tests that a chunked body split inside objects and strings is framed into its datapoints
+	 */
+	@Test
+	public void testChunkedBody() {
+		final CapturingHandler handler = new CapturingHandler(100);
+		final EmbeddedChannel ch = channel(handler, 1024);
+		write(ch, "POST /api/put HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\nTransfer-Encoding: chunked\r\n\r\n");
+		final String body = array(DATAPOINTS[0], DATAPOINTS[1], DATAPOINTS[2]);
+		for(int i = 0; i < body.length(); i += 7) {
+			final String chunk = body.substring(i, Math.min(body.length(), i + 7));
+			write(ch, Integer.toHexString(chunk.getBytes(UTF8).length) + "\r\n" + chunk + "\r\n");
+			Assert.assertEquals("Responded before the last chunk", "", response(ch));
+		}
+		write(ch, "0\r\n\r\n");
+		Assert.assertTrue(response(ch).startsWith("HTTP/1.1 204"));
+		final List<StreamedMetric> metrics = handler.metrics();
+		Assert.assertEquals(3, metrics.size());
+		assertMetric(metrics, 0, "sys.cpu.user", 42D, "web01");
+		assertMetric(metrics, 1, "sys.cpu.user", 42.5D, "web02");
+		assertMetric(metrics, 2, "sys.mem.free", 17D, "db01");
+		Assert.assertTrue(ch.isOpen());
+		ch.finishAndReleaseAll();
+	}
+
+	/**
+	 * Tests that the objects of a body are forwarded in batches of the batch size,
+	 * and that a second request on the same channel is handled independently
+	 */
+	@Test
+	public void testMultiObjectBody() {
+		final CapturingHandler handler = new CapturingHandler(2);
+		final EmbeddedChannel ch = channel(handler, 1024);
+		write(ch, request(array(DATAPOINTS)));
+		Assert.assertTrue(response(ch).startsWith("HTTP/1.1 204"));
+		Assert.assertEquals(3, handler.batches.size());
+		Assert.assertEquals(2, handler.batches.get(0).size());
+		Assert.assertEquals(2, handler.batches.get(1).size());
+		Assert.assertEquals(1, handler.batches.get(2).size());
+		assertMetric(handler.metrics(), 3, "jvm.gc.time", 1.5D, "app01");
+		assertMetric(handler.metrics(), 4, "jvm.gc.count", 12D, "app01");
+		write(ch, request(array(DATAPOINTS[4])));
+		Assert.assertTrue(response(ch).startsWith("HTTP/1.1 204"));
+		Assert.assertEquals(6, handler.metrics().size());
+		ch.finishAndReleaseAll();
+	}
+
+	/**
+	 * Tests that a body that is not JSON is answered with a 400 and the channel is closed
+	 */
+	@Test
+	public void testMalformedBody() {
+		final CapturingHandler handler = new CapturingHandler(100);
+		final EmbeddedChannel ch = channel(handler, 1024);
+		write(ch, request("this is not json"));
+		final String response = response(ch);
+		Assert.assertTrue(response, response.startsWith("HTTP/1.1 400"));
+		Assert.assertEquals("Responded more than once", response.indexOf("HTTP/1.1"), response.lastIndexOf("HTTP/1.1"));
+		Assert.assertFalse("Channel not closed", ch.isOpen());
+		Assert.assertTrue(handler.batches.isEmpty());
+		ch.finishAndReleaseAll();
+	}
+
+	/**
+	 * Tests that an object over the maximum size is answered with a 400 and the channel is closed
+	 */
+	@Test
+	public void testOversizedObject() {
+		final CapturingHandler handler = new CapturingHandler(100);
+		final EmbeddedChannel ch = channel(handler, 64);
+		write(ch, request(array(DATAPOINTS[0])));
+		final String response = response(ch);
+		Assert.assertTrue(response, response.startsWith("HTTP/1.1 400"));
+		Assert.assertFalse("Channel not closed", ch.isOpen());
+		Assert.assertTrue(handler.batches.isEmpty());
+		ch.finishAndReleaseAll();
+	}
+
+	/**
+	 * Tests that blocked sends do not block the channel: the request is answered while its batches wait on the send executor,
+	 * reads pause at the high water mark and resume once the sends drain
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=10000)
+	public void testSendsOffEventLoop() throws Exception {
+		final ExecutorService sendExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "TestSendThread"));
+		final BlockedSendHandler handler = new BlockedSendHandler(sendExecutor);
+		final EmbeddedChannel ch = channel(handler, 1024);
+		try {
+			write(ch, request(array(DATAPOINTS)));
+			Assert.assertTrue(response(ch).startsWith("HTTP/1.1 204"));
+			Assert.assertTrue("Sent before the sends were released", handler.sent.isEmpty());
+			Assert.assertEquals(5, handler.inFlight.get());
+			Assert.assertFalse("Reads not paused at the high water mark", ch.config().isAutoRead());
+			handler.blocked.countDown();
+			while(handler.inFlight.get() > 0) {
+				Thread.sleep(10);
+			}
+			Assert.assertTrue("Reads not resumed at the low water mark", ch.config().isAutoRead());
+			Assert.assertEquals(5, handler.sent.size());
+			assertMetric(handler.sent, 0, "sys.cpu.user", 42D, "web01");
+			assertMetric(handler.sent, 4, "jvm.gc.count", 12D, "app01");
+			Assert.assertEquals(3, handler.sendThreads.size());
+			for(String name: handler.sendThreads) {
+				Assert.assertEquals("TestSendThread", name);
+			}
+		} finally {
+			sendExecutor.shutdownNow();
+			ch.finishAndReleaseAll();
+		}
+	}
+}
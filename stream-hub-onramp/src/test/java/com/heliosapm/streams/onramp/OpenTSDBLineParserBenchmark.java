@@ -0,0 +1,176 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2016, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.streams.onramp;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.heliosapm.streams.metrics.StreamedMetricValue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * <p>Title: OpenTSDBLineParserBenchmark</p>
+ * <p>Description: JMH benchmark comparing the in place {@link OpenTSDBLineParser} with the string based
+ * {@link StreamedMetricValue#fromOpenTSDBString(String)} and {@link StreamedMetricValue#fromString(String)} paths.
+ * Each operation takes a framed line buffer and produces the serialized metric, as the onramp handlers do.
+ * Run with <b><code>-prof gc</code></b> to compare allocation rates.</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.onramp.OpenTSDBLineParserBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=10, time=1)
+@Fork(1)
+public class OpenTSDBLineParserBenchmark {
+	/** The UTF8 character set */
+	public static final Charset UTF8 = Charset.forName("UTF8");
+	/** The number of distinct series in the sample */
+	static final int SERIES = 256;
+
+	/** The pooled allocator */
+	final PooledByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+	/** The framed put lines */
+	ByteBuf[] putLines;
+	/** The framed stringed StreamedMetricValue lines */
+	ByteBuf[] smvLines;
+	/** The parser under test */
+	OpenTSDBLineParser parser;
+	/** The line index */
+	int index = 0;
+
+	/**
+	 * Builds the sample lines
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		parser = new OpenTSDBLineParser();
+		putLines = new ByteBuf[SERIES];
+		smvLines = new ByteBuf[SERIES];
+		final long now = System.currentTimeMillis();
+		for(int i = 0; i < SERIES; i++) {
+			final String put = "put sys.cpu.user " + now + " " + (i * 1.5D) + " host=web" + (i % 16) + " app=tomcat cpu=" + (i % 8) + " dc=east";
+			final String smv = now + "," + (i * 1.5D) + ",sys.cpu.user,web" + (i % 16) + ",tomcat,cpu=" + (i % 8) + ",dc=east";
+			putLines[i] = alloc.directBuffer().writeBytes(put.getBytes(UTF8));
+			smvLines[i] = alloc.directBuffer().writeBytes(smv.getBytes(UTF8));
+		}
+	}
+
+	/**
+	 * Releases the sample lines
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for(int i = 0; i < SERIES; i++) {
+			putLines[i].release();
+			smvLines[i].release();
+		}
+	}
+
+	private int next() {
+		final int i = index;
+		index = (i + 1) & (SERIES - 1);
+		return i;
+	}
+
+	/**
+	 * The in place parse path
+	 * @return the number of bytes written
+	 */
+	@Benchmark
+	public int byteBufParser() {
+		final ByteBuf line = putLines[next()];
+		final ByteBuf out = alloc.buffer(line.readableBytes() + StringMetricHandler.OUT_BUFFER_OVERHEAD);
+		try {
+			return parser.parse(line).write(out);
+		} finally {
+			out.release();
+		}
+	}
+
+	/**
+	 * The existing put line path
+	 * @return the number of bytes written
+	 */
+	@Benchmark
+	public int fromOpenTSDBString() {
+		final ByteBuf line = putLines[next()];
+		final ByteBuf out = alloc.buffer(line.readableBytes() + StringMetricHandler.OUT_BUFFER_OVERHEAD);
+		try {
+			final StreamedMetricValue smv = StreamedMetricValue.fromOpenTSDBString(line.toString(UTF8).toLowerCase());
+			smv.intoByteBuf(out);
+			return out.readableBytes();
+		} finally {
+			out.release();
+		}
+	}
+
+	/**
+	 * The existing stringed StreamedMetricValue path
+	 * @return the number of bytes written
+	 */
+	@Benchmark
+	public int fromString() {
+		final ByteBuf line = smvLines[next()];
+		final ByteBuf out = alloc.buffer(line.readableBytes() + StringMetricHandler.OUT_BUFFER_OVERHEAD);
+		try {
+			final StreamedMetricValue smv = StreamedMetricValue.fromString(line.toString(UTF8).toLowerCase()).forValue();
+			smv.intoByteBuf(out);
+			return out.readableBytes();
+		} finally {
+			out.release();
+		}
+	}
+
+	/**
+	 * Runs the benchmark
+	 * @param args None
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(OpenTSDBLineParserBenchmark.class.getSimpleName())
+			.build()
+		).run();
+	}
+}
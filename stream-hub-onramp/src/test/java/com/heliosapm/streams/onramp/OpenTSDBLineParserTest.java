@@ -0,0 +1,112 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2016, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.streams.onramp;
+
+import java.nio.charset.Charset;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.metrics.StreamedMetric;
+import com.heliosapm.streams.metrics.StreamedMetricValue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * <p>Title: OpenTSDBLineParserTest</p>
+ * <p>Description: Verifies that {@link OpenTSDBLineParser} produces the same metrics as {@link StreamedMetricValue#fromOpenTSDBString(String)}</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.onramp.OpenTSDBLineParserTest</code></p>
+ */
+
+public class OpenTSDBLineParserTest {
+	/** The UTF8 character set */
+	public static final Charset UTF8 = Charset.forName("UTF8");
+
+	/** Sample put lines */
+	static final String[] LINES = {
+		"put sys.cpu.user 1476000000 42 host=web01 cpu=0",
+		"PUT Sys.Cpu.User 1476000000123 42.5 Host=WEB01 app=Tomcat cpu=1 dc=east",
+		"put   sys.mem.free  1476000000  -17.25   zone=b   host=db02  ",
+		"put jvm.gc.time 1476000000 1.5e3 host=app03 gc=ps-scavenge",
+		"put jvm.gc.count 1476000000 12 host=app03 gc=ps-scavenge gc=g1 app=svc",
+	};
+
+	/**
+	 * Tests that the parsed binary output deserializes to the same metric as the string path
+	 */
+	@Test
+	public void testParserMatchesStringPath() {
+		final OpenTSDBLineParser parser = new OpenTSDBLineParser(new TokenCache(64));
+		for(int i = 0; i < 2; i++) {	// second pass is served from the cache
+			for(String line: LINES) {
+				final StreamedMetricValue expected = StreamedMetricValue.fromOpenTSDBString(line.toLowerCase());
+				final ByteBuf in = Unpooled.copiedBuffer(line, UTF8);
+				final ByteBuf out = Unpooled.buffer(128);
+				try {
+					final int size = parser.parse(in).write(out);
+					Assert.assertEquals("Reader index moved", 0, in.readerIndex());
+					Assert.assertEquals("Size mismatch", out.readableBytes(), size);
+					final StreamedMetricValue actual = StreamedMetric.read(out).forValue();
+					Assert.assertEquals("Metric mismatch for [" + line + "]", expected, actual);
+					Assert.assertEquals("Tag order mismatch for [" + line + "]", expected.toString(), actual.toString());
+					Assert.assertEquals("Value type mismatch for [" + line + "]", expected.isDoubleValue(), actual.isDoubleValue());
+					Assert.assertEquals("Value mismatch for [" + line + "]", expected.getValueAsDouble(), actual.getValueAsDouble(), 0D);
+					Assert.assertEquals("Trailing bytes for [" + line + "]", 0, out.readableBytes());
+				} finally {
+					in.release();
+					out.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests put line detection
+	 */
+	@Test
+	public void testIsPut() {
+		Assert.assertTrue(OpenTSDBLineParser.isPut(Unpooled.copiedBuffer(" PuT x 1 1 host=a", UTF8)));
+		Assert.assertFalse(OpenTSDBLineParser.isPut(Unpooled.copiedBuffer("1476000000,42,sys.cpu,web01,app", UTF8)));
+		Assert.assertFalse(OpenTSDBLineParser.isPut(Unpooled.copiedBuffer("put", UTF8)));
+	}
+
+	/**
+	 * Tests that a line without a host tag is rejected
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testMissingHost() {
+		new OpenTSDBLineParser(new TokenCache(64)).parse(Unpooled.copiedBuffer("put sys.cpu 1476000000 42 cpu=0", UTF8));
+	}
+
+	/**
+	 * Tests that a non numeric value is rejected
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidValue() {
+		new OpenTSDBLineParser(new TokenCache(64)).parse(Unpooled.copiedBuffer("put sys.cpu 1476000000 abc host=a", UTF8));
+	}
+}
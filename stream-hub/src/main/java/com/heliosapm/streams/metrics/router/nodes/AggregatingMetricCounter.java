@@ -29,7 +29,7 @@ import java.util.concurrent.atomic.AtomicLong;
  * <p><code>com.heliosapm.streams.metrics.router.nodes.AggregatingMetricCounter</code></p>
  */
 
-public class AggregatingMetricCounter implements Aggregator<AggregatingMetricCounter> {
+public class AggregatingMetricCounter implements CellAggregator<AggregatingMetricCounter> {
 	final String key;
 	final AtomicLong count = new AtomicLong(0L);
 	final long timestamp;
@@ -61,7 +61,7 @@ public class AggregatingMetricCounter implements Aggregator<AggregatingMetricCou
 	 */
 	@Override
 	public long timestamp(final TimeUnit unit, final AggregatingMetricCounter t) {
-		return unit.convert(timestamp, TimeUnit.MILLISECONDS);
+		return unit.convert(t.timestamp, TimeUnit.MILLISECONDS);
 	}
 	
 	
@@ -75,6 +75,24 @@ public class AggregatingMetricCounter implements Aggregator<AggregatingMetricCou
 		
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.metrics.router.nodes.CellAggregator#accumulate(com.heliosapm.streams.metrics.router.nodes.AggregationCell, java.lang.Object)
+	 */
+	@Override
+	public void accumulate(final AggregationCell<AggregatingMetricCounter> cell, final AggregatingMetricCounter value) {
+		cell.add(value.timestamp, value.count.get());
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.streams.metrics.router.nodes.CellAggregator#materialize(com.heliosapm.streams.metrics.router.nodes.AggregationCell)
+	 */
+	@Override
+	public AggregatingMetricCounter materialize(final AggregationCell<AggregatingMetricCounter> cell) {
+		return new AggregatingMetricCounter(cell.getPrototype().key, cell.getTimestamp(), cell.getLongSum());
+	}
+	
 	/**
 	 * Returns the key
 	 * @return the key
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.streams.metrics.router.nodes;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Title: AggregationCell</p>
+ * <p>Description: A mutable per-key accumulator for a {@link CellAggregator}. Updates are striped
+ * so concurrent writers to the same key neither lose updates nor contend on a single word,
+ * and accumulating into a known key does not allocate.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrics.router.nodes.AggregationCell</code></p>
+ * @param <T> The type being aggregated
+ */
+
+public class AggregationCell<T> {
+	/** The first value accumulated, which supplies the non-aggregated attributes of the aggregate */
+	private final T prototype;
+	/** The number of accumulated values */
+	private final LongAdder count = new LongAdder();
+	/** The sum of accumulated long values */
+	private final LongAdder longSum = new LongAdder();
+	/** The sum of accumulated double values */
+	private final DoubleAdder doubleSum = new DoubleAdder();
+	/** The latest accumulated timestamp */
+	private final LongAccumulator timestamp = new LongAccumulator(Math::max, Long.MIN_VALUE);
+	/** Indicates if any double value was accumulated */
+	private volatile boolean doubleValued = false;
+	
+	/**
+	 * Creates a new AggregationCell
+	 * @param prototype The first value for the cell's key
+	 */
+	public AggregationCell(final T prototype) {
+		if(prototype==null) throw new IllegalArgumentException("The passed prototype was null");
+		this.prototype = prototype;
+	}
+	
+	/**
+	 * Accumulates a long value
+	 * @param ts The timestamp of the value
+	 * @param value The value
+	 */
+	public void add(final long ts, final long value) {
+		longSum.add(value);
+		timestamp.accumulate(ts);
+		count.increment();
+	}
+	
+	/**
+	 * Accumulates a double value
+	 * @param ts The timestamp of the value
+	 * @param value The value
+	 */
+	public void add(final long ts, final double value) {
+		doubleSum.add(value);
+		if(!doubleValued) doubleValued = true;
+		timestamp.accumulate(ts);
+		count.increment();
+	}
+
+	/**
+	 * Returns the first value accumulated
+	 * @return the prototype value
+	 */
+	public T getPrototype() {
+		return prototype;
+	}
+
+	/**
+	 * Returns the number of accumulated values
+	 * @return the number of accumulated values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the sum of the accumulated long values
+	 * @return the long sum
+	 */
+	public long getLongSum() {
+		return longSum.sum();
+	}
+
+	/**
+	 * Returns the sum of the accumulated double values
+	 * @return the double sum
+	 */
+	public double getDoubleSum() {
+		return doubleSum.sum();
+	}
+
+	/**
+	 * Indicates if any double value was accumulated, in which case the aggregate value is
+	 * the sum of the long and double sums as a double
+	 * @return true if a double value was accumulated, false if all values were longs
+	 */
+	public boolean isDoubleValued() {
+		return doubleValued;
+	}
+
+	/**
+	 * Returns the latest accumulated timestamp
+	 * @return the latest timestamp, or {@link Long#MIN_VALUE} if nothing was accumulated
+	 */
+	public long getTimestamp() {
+		return timestamp.get();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder("AggregationCell [count:").append(getCount()).append(", long:").append(getLongSum()).append(", double:").append(getDoubleSum()).append("]").toString();
+	}
+}
@@ -32,22 +32,25 @@ import com.heliosapm.utils.jmx.JMXHelper;
 public class AggregatorWindowKey<V extends Aggregator<T>, T> {
 	private final long windowDuration;
 	private final long retention;
+	private final long lateness;
 	private final Class<V> aggregatorType;
 	private final boolean resetting;
 	
 	/** The format template for JMX ObjectNames */
-	public static final String OBJECT_NAME_TEMPLATE = "com.heliosapm.streams.metrics.router:service=AggWindow,duration=%s,retention=%s,resetting=%s,aggregator=%s";
+	public static final String OBJECT_NAME_TEMPLATE = "com.heliosapm.streams.metrics.router:service=AggWindow,duration=%s,retention=%s,lateness=%s,resetting=%s,aggregator=%s";
 	
 	/**
 	 * Creates a new AggregatorWindowKey
 	 * @param windowDuration The window duration in seconds
 	 * @param resetting true if the window will reset the accumulator after each period
 	 * @param retention The idle key retention time
+	 * @param lateness The allowed event time lateness in seconds
 	 * @param aggregatorType The aggregator type
 	 */
-	AggregatorWindowKey(final long windowDuration, final long retention, final boolean resetting, final Class<V> aggregatorType) {		
+	AggregatorWindowKey(final long windowDuration, final long retention, final long lateness, final boolean resetting, final Class<V> aggregatorType) {		
 		this.windowDuration = windowDuration;
 		this.retention = retention;
+		this.lateness = lateness;
 		this.aggregatorType = aggregatorType;
 		this.resetting = resetting;
 	}
@@ -57,7 +60,7 @@ public class AggregatorWindowKey<V extends Aggregator<T>, T> {
 	 * @return a JMX ObjectName for this key
 	 */
 	public ObjectName toObjectName() {
-		return JMXHelper.objectName(String.format(OBJECT_NAME_TEMPLATE, windowDuration, retention, resetting, aggregatorType.getSimpleName()));
+		return JMXHelper.objectName(String.format(OBJECT_NAME_TEMPLATE, windowDuration, retention, lateness, resetting, aggregatorType.getSimpleName()));
 	}
 
 
@@ -67,7 +70,7 @@ public class AggregatorWindowKey<V extends Aggregator<T>, T> {
 	 */
 	@Override
 	public String toString() {
-		return new StringBuilder("AggregatorWindowKey [d:").append(windowDuration).append(", res:").append(resetting).append(", r:").append(retention).append(", a:" + aggregatorType.getSimpleName() + "]").toString();
+		return new StringBuilder("AggregatorWindowKey [d:").append(windowDuration).append(", res:").append(resetting).append(", r:").append(retention).append(", l:").append(lateness).append(", a:" + aggregatorType.getSimpleName() + "]").toString();
 	}
 
 
@@ -82,6 +85,7 @@ public class AggregatorWindowKey<V extends Aggregator<T>, T> {
 		result = prime * result + ((aggregatorType == null) ? 0 : aggregatorType.hashCode());
 		result = prime * result + (resetting ? 1231 : 1237);
 		result = prime * result + (int) (retention ^ (retention >>> 32));
+		result = prime * result + (int) (lateness ^ (lateness >>> 32));
 		result = prime * result + (int) (windowDuration ^ (windowDuration >>> 32));
 		return result;
 	}
@@ -109,6 +113,8 @@ public class AggregatorWindowKey<V extends Aggregator<T>, T> {
 			return false;
 		if (retention != other.retention)
 			return false;
+		if (lateness != other.lateness)
+			return false;
 		if (windowDuration != other.windowDuration)
 			return false;
 		return true;
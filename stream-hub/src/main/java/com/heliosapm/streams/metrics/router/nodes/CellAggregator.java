@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.streams.metrics.router.nodes;
+
+/**
+ * <p>Title: CellAggregator</p>
+ * <p>Description: An {@link Aggregator} that accumulates into a primitive {@link AggregationCell} per key
+ * instead of merging instances of <b><code>T</code></b>. A {@link WindowAggregation} uses the cells for its windows
+ * and only creates <b><code>T</code></b> instances when a window is emitted.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrics.router.nodes.CellAggregator</code></p>
+ * @param <T> The type being aggregated
+ */
+
+public interface CellAggregator<T> extends Aggregator<T> {
+	/**
+	 * Accumulates the passed value into the cell. Called concurrently for the same cell.
+	 * @param cell The cell to accumulate into
+	 * @param value The value to accumulate, which is not retained
+	 */
+	public void accumulate(final AggregationCell<T> cell, final T value);
+	
+	/**
+	 * Creates the aggregate for the current state of the passed cell
+	 * @param cell The cell
+	 * @return a new aggregate instance
+	 */
+	public T materialize(final AggregationCell<T> cell);
+}
@@ -18,6 +18,7 @@ package com.heliosapm.streams.metrics.router.nodes;
 import java.util.concurrent.TimeUnit;
 
 import com.heliosapm.streams.metrics.StreamedMetric;
+import com.heliosapm.streams.metrics.StreamedMetricValue;
 
 /**
  * <p>Title: StreamedMetricMeterAggregator</p>
@@ -27,7 +28,7 @@ import com.heliosapm.streams.metrics.StreamedMetric;
  * <p><code>com.heliosapm.streams.metrics.router.nodes.StreamedMetricMeterAggregator</code></p>
  */
 
-public class StreamedMetricMeterAggregator implements Aggregator<StreamedMetric> {
+public class StreamedMetricMeterAggregator implements CellAggregator<StreamedMetric> {
 	/** A sharable StreamedMetricMeterAggregator instance */
 	public static final StreamedMetricMeterAggregator AGGREGATOR = new StreamedMetricMeterAggregator();
 	
@@ -52,6 +53,39 @@ public class StreamedMetricMeterAggregator implements Aggregator<StreamedMetric>
 			x.printStackTrace(System.err);
 		}
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>Valued metrics contribute their value as a long or a double, unvalued metrics count as one.</p>
+	 * @see com.heliosapm.streams.metrics.router.nodes.CellAggregator#accumulate(com.heliosapm.streams.metrics.router.nodes.AggregationCell, java.lang.Object)
+	 */
+	@Override
+	public void accumulate(final AggregationCell<StreamedMetric> cell, final StreamedMetric value) {
+		if(!value.isValued()) {
+			cell.add(value.getTimestamp(), 1L);
+			return;
+		}
+		final StreamedMetricValue smv = (StreamedMetricValue)value;
+		if(smv.isDoubleValue()) {
+			cell.add(smv.getTimestamp(), smv.getDoubleValue());
+		} else {
+			cell.add(smv.getTimestamp(), smv.getLongValue());
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>The aggregate is double valued if any accumulated value was a double, otherwise it is long valued.</p>
+	 * @see com.heliosapm.streams.metrics.router.nodes.CellAggregator#materialize(com.heliosapm.streams.metrics.router.nodes.AggregationCell)
+	 */
+	@Override
+	public StreamedMetric materialize(final AggregationCell<StreamedMetric> cell) {
+		final StreamedMetric prototype = cell.getPrototype();
+		if(cell.isDoubleValued()) {
+			return new StreamedMetricValue(cell.getTimestamp(), cell.getDoubleSum() + cell.getLongSum(), prototype.getMetricName(), prototype.getTags());
+		}
+		return new StreamedMetricValue(cell.getTimestamp(), cell.getLongSum(), prototype.getMetricName(), prototype.getTags());
+	}
 
 
 }
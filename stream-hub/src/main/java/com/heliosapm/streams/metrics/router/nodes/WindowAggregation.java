@@ -18,21 +18,24 @@ under the License.
  */
 package com.heliosapm.streams.metrics.router.nodes;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
@@ -65,7 +68,19 @@ import com.heliosapm.utils.time.SystemClock;
 
 /**
  * <p>Title: WindowAggregation</p>
- * <p>Description: Aggregation construct to accumulate stream events ("off-line") for a specified window of time.</p> 
+ * <p>Description: Aggregation construct to accumulate stream events ("off-line") for a specified window of time.</p>
+ * <p>Windows are closed on event time. The watermark trails the highest observed event timestamp by the allowed lateness
+ * and a window expires once the watermark passes its end. An expired window is retained for a further allowed lateness so that late arrivals
+ * are still aggregated and re-emitted as corrections through {@link WindowAggregationAction#onCorrection(Stream)}. Anything later
+ * than that is handed to {@link WindowAggregationAction#onLate(Object, Object)} and discarded. When no events arrive for a window duration,
+ * the watermark advances on the wall clock, but no further than the end of the latest window, so the trailing windows still expire
+ * while backfilled events for them are still accepted as corrections. Events timestamped further ahead of the wall clock than the
+ * maximum skew are handed to the late path and do not move the watermark.</p>
+ * <p>A non-resetting (sticky) window carries each key's aggregate forward into the following windows and emits the running
+ * aggregate of every carried key on each expiration. Carried keys idle for longer than the idle retention are dropped and reported as expired keys.</p>
+ * <p>An aggregator implementing {@link CellAggregator} accumulates into a striped {@link AggregationCell} per key, so concurrent updates
+ * to a key are neither lost nor serialized and a known key aggregates without allocating. Other aggregators merge into the first instance
+ * received for a key, synchronized on that instance.</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.streams.metrics.router.nodes.WindowAggregation</code></p>
  * @param <K> The aggregation type's key
@@ -74,7 +89,7 @@ import com.heliosapm.utils.time.SystemClock;
  */
 @ManagedResource
 public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnable, Supplier<Set<KeyValue<K,T>>>, SelfNaming, DisposableBean {
-	
+
 	private static final int CORES = Runtime.getRuntime().availableProcessors();
 	/** Unique WindowAggregation instances keyed by idle retention within window duration */
 	private static final NonBlockingHashMap<AggregatorWindowKey, WindowAggregation> instances = new NonBlockingHashMap<AggregatorWindowKey, WindowAggregation>();
@@ -88,30 +103,49 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 			.prestart(CORES)
 			.queueSize(ConfigurationHelper.getIntSystemThenEnvProperty("streams.windowaggregation.threadpool.queuesize", 128))
 			.build();
-	 
-	
+
+	/** The config key for the default allowed event time lateness in seconds. A negative value defaults to the window duration */
+	public static final String CONF_LATENESS = "streams.windowaggregation.lateness";
+	/** The default allowed event time lateness, which defaults to the window duration */
+	public static final long DEFAULT_LATENESS = -1L;
+	/** The config key for the maximum seconds an event timestamp may be ahead of the wall clock. A negative value disables the cap */
+	public static final String CONF_MAX_SKEW = "streams.windowaggregation.maxskew";
+	/** The default maximum seconds an event timestamp may be ahead of the wall clock */
+	public static final long DEFAULT_MAX_SKEW = 3600L;
+
+	/** Window state: accepting values */
+	private static final int OPEN = 0;
+	/** Window state: expired but accepting corrections */
+	private static final int CLOSED = 1;
+	/** Window state: past the allowed lateness */
+	private static final int PURGED = 2;
+
 	/** The length of the window in seconds */
 	private final long windowDuration;
+	/** The allowed event time lateness in seconds */
+	private final long allowedLateness;
+	/** The maximum seconds an event timestamp may be ahead of the wall clock */
+	private final long maxSkew;
 	/** The JMX ObjectName for this window */
 	private final ObjectName objectName;
-	/** The earliest timestamp accepted by this window, which is initialized to the first submission and 
-	 * updated to the end of expiring windows (plus one) as they expire 
-	 */
-	private final AtomicLong earliestTimestamp = new AtomicLong(0L);
-	/** A map of aggregation maps keyed by the start time of the time window being aggregated */
-	private final NonBlockingHashMapLong<NonBlockingHashMap<K, T>> delayIndex = new NonBlockingHashMapLong<NonBlockingHashMap<K, T>>();
-	/** The delay queue which supplies expiring aggregation maps as their time window expires */
-	private final DelayQueue<TimestampDelay> delayQueue = new DelayQueue<TimestampDelay>();
+	/** The highest event timestamp observed in seconds */
+	private final AtomicLong maxEventTime = new AtomicLong(Long.MIN_VALUE);
+	/** The event time watermark in seconds. Windows ending at or before the watermark are expired. */
+	private final AtomicLong watermark = new AtomicLong(Long.MIN_VALUE);
+	/** The wall clock time of the last arrival in ms. */
+	private volatile long lastArrival = 0L;
+	/** The open and retained windows keyed by the start time of the time window being aggregated */
+	private final NonBlockingHashMapLong<Window> windows = new NonBlockingHashMapLong<Window>();
+	/** Serializes the creation of windows */
+	private final Object windowLock = new Object();
 	/** The keep running flag */
 	private final AtomicBoolean running = new AtomicBoolean(true);
 	/** The caller supplied expiration callback handler */
 	private final NonBlockingHashSet<WindowAggregationAction<K, T>> actions = new NonBlockingHashSet<WindowAggregationAction<K, T>>();
-//	/** The outbound stream of expired aggregations */
-//	private final Stream<KeyValue<K,V>> outbound = Stream.generate(this);
-//	/** The internal stream of expired aggregations */
-//	private final AtomicReference<Stream<Iterator<Map.Entry<K,V>>>> internalOutbound = new AtomicReference<Stream<Iterator<Map.Entry<K,V>>>>(Stream.empty());
 	/** The aggregator */
 	private final Aggregator<T> aggregator;
+	/** The aggregator as a cell aggregator, or null if it aggregates instances */
+	private final CellAggregator<T> cellAggregator;
 	/** The idle key retention time */
 	private final long idleRetention;
 	/** Indicates if idle key retention is enabled */
@@ -124,89 +158,122 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 	private final AggregatorWindowKey<V,T> key;
 	/** Flag indicating if this window resets on each period expiration */
 	private final boolean resetting;
+	/** The running aggregates carried across windows when not resetting */
+	private final ConcurrentHashMap<K, T> carry = new ConcurrentHashMap<K, T>();
+	/** The start of the latest window each carried key was updated in */
+	private final ConcurrentHashMap<K, Long> carryUpdated = new ConcurrentHashMap<K, Long>();
+	/** The carried keys corrected by late arrivals since the last emission */
+	private final NonBlockingHashSet<K> carryCorrected = new NonBlockingHashSet<K>();
 	/** The output stream */
 	Stream<Set<KeyValue<K,T>>> outStream = Stream.generate(this);
 	/** Flag indicating if the outStream has been requested */
-	private final AtomicBoolean outStreamRequested = new AtomicBoolean(false); 
+	private final AtomicBoolean outStreamRequested = new AtomicBoolean(false);
 	/** A queue for outbound expirations */
-	private final ArrayBlockingQueue<Set<KeyValue<K,T>>> expirationQueue = new ArrayBlockingQueue<Set<KeyValue<K,T>>>(1024, false); 
-	
+	private final ArrayBlockingQueue<Set<KeyValue<K,T>>> expirationQueue = new ArrayBlockingQueue<Set<KeyValue<K,T>>>(1024, false);
+
 	/** An empty set of idle keys for callbacks when retention is disabled */
 	private final Set<K> emptyIdleKeys = Collections.unmodifiableSet(Collections.emptySet());
 	/** The run thread for this window */
 	private final Thread runThread;
-	/** A placeholder for inserting new periods into the delay index */
-	private final NonBlockingHashMap<K, T> PLACEHOLDER = new NonBlockingHashMap<K, T>();
 	/** A count of created periods */
 	private final LongAdder newPeriodCount = new LongAdder();
 	/** A count of low level aggregation executions */
 	private final LongAdder aggregationCount = new LongAdder();
 	/** A count of late arrival discards */
 	private final LongAdder discardCount = new LongAdder();
-	
-//	private final SpinLock lock = UnsafeAdapter.allocateSpinLock();
-	
-	
+	/** A count of late arrivals aggregated within the allowed lateness */
+	private final LongAdder lateCount = new LongAdder();
+	/** A count of events discarded for being too far ahead of the wall clock */
+	private final LongAdder skewCount = new LongAdder();
+	/** A count of re-emitted corrected aggregates */
+	private final LongAdder correctionCount = new LongAdder();
+
+
 	/**
-	 * Acquires a WindowAggregation for the specified duration and idle key retention
+	 * Acquires a WindowAggregation for the specified duration and idle key retention, with the allowed lateness
+	 * read from {@link #CONF_LATENESS}
 	 * @param windowDuration The length (time) of the aggregaton window in seconds
 	 * @param idleRetention An optional period of time in seconds for which idle keys are retained and made available.
-	 * @param aggregator The aggregator instance 
+	 * @param resetting indicates if the window resets on each period expiration
+	 * @param aggregator The aggregator instance
 	 * @return the WindowAggregation
 	 * @param <K> The aggregation type's key
 	 * @param <V> The aggregation aggregator type
 	 * @param <T> The aggregation type's value
 	 */
-	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public static <K,V extends Aggregator<T>, T> WindowAggregation<K,V,T> getInstance(final long windowDuration, final long idleRetention, final boolean resetting, final V aggregator) {
+		return getInstance(windowDuration, idleRetention, ConfigurationHelper.getLongSystemThenEnvProperty(CONF_LATENESS, DEFAULT_LATENESS), resetting, aggregator);
+	}
+
+	/**
+	 * Acquires a WindowAggregation for the specified duration, idle key retention and allowed lateness
+	 * @param windowDuration The length (time) of the aggregaton window in seconds
+	 * @param idleRetention An optional period of time in seconds for which idle keys are retained and made available.
+	 * @param allowedLateness The allowed event time lateness in seconds. A negative value defaults to the window duration.
+	 * @param resetting indicates if the window resets on each period expiration
+	 * @param aggregator The aggregator instance
+	 * @return the WindowAggregation
+	 * @param <K> The aggregation type's key
+	 * @param <V> The aggregation aggregator type
+	 * @param <T> The aggregation type's value
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static <K,V extends Aggregator<T>, T> WindowAggregation<K,V,T> getInstance(final long windowDuration, final long idleRetention, final long allowedLateness, final boolean resetting, final V aggregator) {
+		if(windowDuration<1L) throw new IllegalArgumentException("Invalid window duration [" + windowDuration + "]");
 		final long _idleRetention = idleRetention<1L ? 0L : idleRetention;
+		final long _allowedLateness = allowedLateness<0L ? windowDuration : allowedLateness;
 		if(aggregator==null) throw new IllegalArgumentException("The passed aggregator was null");
-		final AggregatorWindowKey key = new AggregatorWindowKey<V,T>(windowDuration, _idleRetention, resetting, (Class<V>) aggregator.getClass());
+		final AggregatorWindowKey key = new AggregatorWindowKey<V,T>(windowDuration, _idleRetention, _allowedLateness, resetting, (Class<V>) aggregator.getClass());
 		return instances.get(key, new Callable<WindowAggregation>() {
 			@Override
-			public WindowAggregation<K,V,T> call() throws Exception {				
-				return new WindowAggregation<K,V,T>(windowDuration, _idleRetention, resetting, aggregator, key);
+			public WindowAggregation<K,V,T> call() throws Exception {
+				return new WindowAggregation<K,V,T>(windowDuration, _idleRetention, _allowedLateness, resetting, aggregator, key);
 			}
 		});
 	}
-	
+
 	/**
 	 * Creates a new WindowAggregation
 	 * @param windowDuration The length (time) of the aggregaton window in seconds
 	 * @param idleRetention An optional period of time in seconds for which idle keys are retained and made available.
 	 * If the retention is less than 1, no keys are retained.
+	 * @param allowedLateness The allowed event time lateness in seconds
 	 * @param resetting indicates if this window resets on each period expiration
 	 * @param aggregator The aggregator
 	 * @param key this window's key
 	 */
-	private WindowAggregation(final long windowDuration, final long idleRetention, final boolean resetting, final Aggregator<T> aggregator, final AggregatorWindowKey<V,T> key) {
+	private WindowAggregation(final long windowDuration, final long idleRetention, final long allowedLateness, final boolean resetting, final Aggregator<T> aggregator, final AggregatorWindowKey<V,T> key) {
 		this.windowDuration = windowDuration;
 		this.idleRetention = idleRetention;
+		this.allowedLateness = allowedLateness;
+		final long skew = ConfigurationHelper.getLongSystemThenEnvProperty(CONF_MAX_SKEW, DEFAULT_MAX_SKEW);
+		maxSkew = skew<0L ? Long.MAX_VALUE : skew;
 		this.key = key;
 		objectName = key.toObjectName();
 		this.resetting = resetting;
-		idleRetentionEnabled = idleRetention<1L;
+		idleRetentionEnabled = idleRetention>0L;
 		idleKeys = idleRetentionEnabled ? CacheBuilder.newBuilder()
 			.expireAfterWrite(idleRetention, TimeUnit.SECONDS)
 			.initialCapacity(1024)
 			.build() : null;
 		log = LogManager.getLogger(getClass().getName() + "-" + windowDuration + aggregator.getClass().getSimpleName());
 		this.aggregator = aggregator;
-		runThread = new Thread(this, "WindowAggregationThread[" + aggregator.getClass().getSimpleName() + ", " + windowDuration + "," + idleRetention + "]");
+		cellAggregator = aggregator instanceof CellAggregator ? (CellAggregator<T>)aggregator : null;
+		runThread = new Thread(this, "WindowAggregationThread[" + aggregator.getClass().getSimpleName() + ", " + windowDuration + "," + idleRetention + "," + allowedLateness + "]");
 		runThread.setDaemon(true);
-		runThread.start();		
+		runThread.start();
 	}
-	
-	
+
+
 	/**
 	 * {@inheritDoc}
 	 * @see org.springframework.beans.factory.DisposableBean#destroy()
 	 */
 	@Override
 	public void destroy() throws Exception {
-		close();		
+		close();
 	}
-	
+
 	/**
 	 * {@inheritDoc}
 	 * @see org.springframework.jmx.export.naming.SelfNaming#getObjectName()
@@ -215,7 +282,7 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 	public ObjectName getObjectName() throws MalformedObjectNameException {
 		return objectName;
 	}
-	
+
 	/**
 	 * Adds an action to handle expired window callbacks
 	 * @param action The action to register
@@ -227,7 +294,7 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 		}
 		return this;
 	}
-	
+
 	/**
 	 * Removes a registered action
 	 * @param action the action to remove
@@ -238,8 +305,8 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 			actions.remove(action);
 		}
 		return this;
-	}		
-	
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see java.util.function.Supplier#get()
@@ -252,7 +319,7 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 			throw new RuntimeException(ex);
 		}
 	}
-	
+
 	/**
 	 * Returns the idle keys
 	 * @return the idle keys
@@ -261,106 +328,187 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 		if(!idleRetentionEnabled) throw new IllegalStateException("Idle Key Retention not enabled for this window");
 		return new HashSet<K>(idleKeys.asMap().keySet());
 	}
-	
-//	final Collector<KeyValue<K,T>, ?, Collection<ProducerRecord<K,T>>> kvToPr(final String topic) {
-//		return 
-//		Collector.of(ArrayList::new, ArrayList::add, (kv) -> {
-//			return new ProducerRecord(topic, kv.key, kv.value);
-//		});
-//		
-//	}
-//	
 
 	public void aggregateAndPublish(final KStream<K,T> in, final Producer<K,T> kafkaProducer, final String topic) {
-		in.foreach((k,t) -> aggregate(k,t));		
+		in.foreach((k,t) -> aggregate(k,t));
 		addAction(new WindowAggregationAction<K, T>() {
 			@Override
 			public void onExpire(final Stream<KeyValue<K, T>> aggregatedStream, final Set<K> expiredKeys) {
 				aggregatedStream.map(kv -> new ProducerRecord<K,T>(topic, kv.key, kv.value))
 					.map(pr -> kafkaProducer.send(pr));
-						
+
 			}
 		});
 	}
-	
+
 	public Stream<KeyValue<K,T>> stream(final KStreamBuilder builder, final Serde<K> keySerde, final Serde<T> valueSerde, final String...fromTopics) {
 		builder.stream(keySerde, valueSerde, fromTopics)
 			.foreach((k,t) -> aggregate(k,t));
 		return outStream().flatMap(setOfKt -> setOfKt.stream());
 	}
-	
-	
+
+
 	public Stream<Set<KeyValue<K,T>>> outStream() {
 		outStreamRequested.set(true);
 		return outStream;
 	}
-	
-	
-	
+
+
+
 	/**
-	 * Aggregates the passed key/value pair 
+	 * Aggregates the passed key/value pair into the window for its event time.
+	 * Values for an expired window within the allowed lateness are aggregated and re-emitted as corrections.
+	 * Values later than that, or further ahead of the wall clock than the maximum skew, are passed to the registered actions' 
+	 * {@link WindowAggregationAction#onLate(Object, Object)} on the calling thread.
 	 * @param key The key
 	 * @param value The value to aggregate
-	 * @return true if the pair was aggregated, false the timestamp of the passed value was too late to be aggregated
+	 * @return true if the pair was aggregated, false the timestamp of the passed value was too late or too far ahead to be aggregated
 	 */
 	public boolean aggregate(final K key, final T value) {
 		if(!running.get()) throw new IllegalStateException("This WindowAggregation was stopped");
 		if(idleRetentionEnabled) idleKeys.invalidate(key);
-		final long ts = windowStartTime(aggregator.timestamp(TimeUnit.SECONDS, value));
-		if(!earliestTimestamp.compareAndSet(0L, ts)) {
-			if(ts < earliestTimestamp.get()) {
-				discardCount.increment();
-				return false;
-			}
-		}
-		NonBlockingHashMap<K, T> aggrMap = delayIndex.putIfAbsent(ts, PLACEHOLDER);
-		if(aggrMap==null || aggrMap==PLACEHOLDER) {
-			delayQueue.put(new TimestampDelay(ts));
-			aggrMap = new NonBlockingHashMap<K, T>();
-			delayIndex.replace(ts, aggrMap);
-			newPeriodCount.increment();
+		final long ts = aggregator.timestamp(TimeUnit.SECONDS, value);
+		final long now = System.currentTimeMillis();
+		if(ts - TimeUnit.MILLISECONDS.toSeconds(now) > maxSkew) {
+			skewCount.increment();
+			return late(key, value);
 		}
-//		try {
-//			lock.xlock(true);
-//			aggrMap = delayIndex.get(ts, new Callable<NonBlockingHashMap<K, T>>() {
-//				@Override
-//				public NonBlockingHashMap<K, T> call() throws Exception {
-//					delayQueue.put(new TimestampDelay(ts));
-//					return new NonBlockingHashMap<K, T>();
-//				}
-//			});
-//		} finally {
-//			lock.xunlock();
-//		}
-		final T prior = aggrMap.put(key, value);
-		if(prior!=null) {
-			aggregator.aggregateInto(value, prior);
-			aggregationCount.increment();
+		final long start = windowStartTime(ts);
+		final long end = start + windowDuration;
+		final long wm = observe(ts, now);
+		if(end + allowedLateness <= wm) return late(key, value);
+		Window window = windows.get(start);
+		if(window==null) {
+			synchronized(windowLock) {
+				// the watermark may have passed the window, and the window been purged, since it was read
+				final long current = watermark.get();
+				if(end + allowedLateness > current) {
+					window = windows.get(start);
+					if(window==null) {
+						window = new Window(start, end > current ? OPEN : CLOSED);
+						windows.put(start, window);
+						newPeriodCount.increment();
+					}
+				}
+			}
+			if(window==null) return late(key, value);
 		}
+		final int state = window.add(key, value);
+		if(state==OPEN) return true;
+		if(state==PURGED) return late(key, value);
+		lateCount.increment();
+		if(!resetting) carry(key, value, start, true);
 		return true;
 	}
-	
+
 	/**
 	 * Computes the start time of the window for the passed second based timestamp
 	 * @param timestampSecs The timestamp in seconds
 	 * @return the start of the time window
 	 */
 	public long windowStartTime(final long timestampSecs) {
-		return timestampSecs - (timestampSecs%windowDuration); 
+		return timestampSecs - (timestampSecs%windowDuration);
 	}
-	
+
+	/**
+	 * Records the arrival of an event and advances the watermark if the event is the latest seen
+	 * @param ts The event timestamp in seconds
+	 * @param now The wall clock time of the arrival in ms.
+	 * @return the current watermark
+	 */
+	private long observe(final long ts, final long now) {
+		if(now!=lastArrival) lastArrival = now;
+		long max;
+		while((max = maxEventTime.get()) < ts) {
+			if(maxEventTime.compareAndSet(max, ts)) {
+				advanceWatermark(ts - allowedLateness);
+				break;
+			}
+		}
+		return watermark.get();
+	}
+
+	/**
+	 * Moves the watermark forward to the passed time, waking the expiration thread when a window boundary is crossed
+	 * @param wm The candidate watermark in seconds
+	 */
+	private void advanceWatermark(final long wm) {
+		long current;
+		while((current = watermark.get()) < wm) {
+			if(watermark.compareAndSet(current, wm)) {
+				if(current==Long.MIN_VALUE || windowStartTime(current)!=windowStartTime(wm)) {
+					LockSupport.unpark(runThread);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Advances the watermark on the wall clock when nothing has arrived for a window duration, so the trailing windows expire.
+	 * The watermark is not moved past the end of the window holding the highest observed event, which closes every window
+	 * but only purges those the idle advance alone could not make late, so a backfill after the idle period is still accepted.
+	 */
+	private void advanceIdleWatermark() {
+		final long last = lastArrival;
+		if(last==0L) return;
+		final long idleSecs = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - last);
+		if(idleSecs >= windowDuration) {
+			final long max = maxEventTime.get();
+			advanceWatermark(Math.min(max + idleSecs - allowedLateness, windowStartTime(max) + windowDuration));
+		}
+	}
+
+	/**
+	 * Hands a value that arrived after its window's allowed lateness to the registered actions and discards it
+	 * @param key The key
+	 * @param value The late value
+	 * @return false
+	 */
+	private boolean late(final K key, final T value) {
+		discardCount.increment();
+		for(WindowAggregationAction<K, T> action: actions) {
+			try {
+				action.onLate(key, value);
+			} catch (Exception ex) {
+				log.warn("Late arrival action failed", ex);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Folds the passed value into the running aggregate carried for its key.
+	 * The carried value is replaced rather than updated so emitted values are never modified.
+	 * @param key The key
+	 * @param value The value to fold in
+	 * @param start The start of the window the value belongs to
+	 * @param corrected true if the value is a late arrival to be re-emitted as a correction
+	 */
+	private void carry(final K key, final T value, final long start, final boolean corrected) {
+		carry.compute(key, (k, prior) -> {
+			if(prior!=null) {
+				aggregator.aggregateInto(value, prior);
+				aggregationCount.increment();
+			}
+			return value;
+		});
+		carryUpdated.merge(key, start, Math::max);
+		if(corrected) carryCorrected.add(key);
+	}
+
 	public static void log(Object msg) {
 		System.out.println("[" + Thread.currentThread() + "]" + msg);
 	}
-	
+
 	public static void main(String[] args) {
-		
+
 		final Random R = new Random(System.currentTimeMillis());
 		final AtomicBoolean run = new AtomicBoolean(true);
 		final WindowAggregationAction<String, AggregatingMetricCounter> action = new WindowAggregationAction<String, AggregatingMetricCounter>() {
 			@Override
 			public void onExpire(final Stream<KeyValue<String, AggregatingMetricCounter>> aggregatedStream, final Set<String> expiredKeys) {
-				aggregatedStream					
+				aggregatedStream
 					.forEach((m) -> log(m));
 				if(!expiredKeys.isEmpty()) {
 					log("Expired Keys:" + expiredKeys);
@@ -368,7 +516,7 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 				log("================================================");
 			}
 		};
-		final WindowAggregation<String, AggregatingMetricCounter, AggregatingMetricCounter> wa 
+		final WindowAggregation<String, AggregatingMetricCounter, AggregatingMetricCounter> wa
 			= WindowAggregation.getInstance(10L, 0L, true, AggregatingMetricCounter.AGGREGATOR);
 		wa.addAction(action);
 		while(run.get()) {
@@ -385,34 +533,32 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 				SystemClock.sleep(1000);
 			}
 			break;
-			
+
 		}
-		
-		
+
+
 		StdInCommandHandler.getInstance().registerCommand("stop", new Runnable(){
 			@Override
 			public void run() {
 				run.set(false);
 				log("Loop Stopped");
-				
+
 			}
 		}).run();
-//		WindowAggregation wa = new WindowAggregation(10, -1L, null);
-//		wa.test();
 	}
-	
-	
+
+
 	/**
 	 * Closes this aggregation
 	 */
 	public void close() {
 		actions.clear();
 		running.set(false);
-		runThread.interrupt();		
+		LockSupport.unpark(runThread);
 		instances.remove(key);
 	}
-	
-	
+
+
 	/**
 	 * <p>Runs the expiration</p>
 	 * {@inheritDoc}
@@ -421,57 +567,13 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 	@Override
 	public void run() {
 		log.info("Expiration thread started");
+		final long tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(1000L, TimeUnit.SECONDS.toMillis(windowDuration)));
 		while(running.get()) {
 			try {
-				final TimestampDelay td;
-				final NonBlockingHashMap<K, T> period;
-				try {
-//					lock.xlock();
-					td = delayQueue.take();
-					// ========================================================================
-					// TODO: implement non-resetting
-					// tricky since we will need to block incoming 
-					// while we make defensive copies of Ts in NonBlockingHashMap<K, T> period 
-					// ========================================================================
-					period = delayIndex.remove(td.key);
-				} finally {
-//					lock.xunlock();
-				}
-//				if(actions.isEmpty()) {
-//					log.warn("No actions registered !");
-//					continue;
-//				}
-				if(period!=null) {
-					//log.info("Processing Aggregation Period: [{}]", new Date(td.timestampMs));
-					log.debug("Processing Aggregation Period: [{}]", td.key);
-					executor.execute(new Runnable(){
-						@Override
-						public void run() {
-							final Set<KeyValue<K,T>> set = new HashSet<KeyValue<K,T>>(period.size());
-							for(Map.Entry<K, T> entry: period.entrySet()) {
-								set.add(new KeyValue<K,T>(entry.getKey(), entry.getValue()));
-							}
-							final Set<K> idle = idleRetentionEnabled ? getIdleKeys() : emptyIdleKeys;
-							if(outStreamRequested.get()) {
-								if(!expirationQueue.offer(new HashSet<KeyValue<K,T>>(set))) {
-									log.warn("ExpirationQueue Full !!!");
-								}
-							}
-							for(WindowAggregationAction<K, T> action: actions) {
-								action.onExpire(new HashSet<KeyValue<K,T>>(set).stream(), new HashSet<K>(idle));
-							}
-							set.clear();
-						}
-					});
-				} else {
-					log.warn("Missing delay index for window [{}]",  td.key);
-				}
-			} catch (InterruptedException iex) {
-				if(running.get()) {
-					if(Thread.interrupted()) Thread.interrupted();
-				} else {
-					break;
-				}
+				LockSupport.parkNanos(this, tickNanos);
+				if(!running.get()) break;
+				advanceIdleWatermark();
+				expire(watermark.get());
 			} catch (Exception ex) {
 				log.error("Expiration thread error",ex);
 			}
@@ -479,101 +581,284 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 		log.info("Expiration thread ended");
 	}
 
-	class TimestampDelay implements Delayed {
-		/** The timestamp representing the start of a time window in seconds */
-		private final long key;
-		/** The timestamp in ms. */
-		private final long timestampMs;
-		/** The time this delay expired */
-		private final long expireTime;
-		
-		
-		
-		
-		private TimestampDelay() {
-			this.key = -1L;
-			this.timestampMs = -1L;
-			this.expireTime = -1L;
-			
+	/**
+	 * Expires the open windows ending at or before the passed watermark, purges the windows past their allowed lateness
+	 * and re-emits any corrections made by late arrivals
+	 * @param wm The watermark in seconds
+	 */
+	private void expire(final long wm) {
+		final List<Window> due = new ArrayList<Window>(windows.size());
+		for(Window window: windows.values()) {
+			if(window.end <= wm) due.add(window);
+		}
+		due.sort((w1, w2) -> Long.compare(w1.start, w2.start));
+		for(Window window: due) {
+			if(window.state==OPEN) {
+				window.transition(CLOSED);
+				log.debug("Processing Aggregation Period: [{}]", window.start);
+				if(resetting) {
+					dispatch(snapshot(window, window.keys()), idleRetentionEnabled ? getIdleKeys() : emptyIdleKeys, false);
+				} else {
+					for(K k: window.keys()) {
+						final T value = window.value(k);
+						if(value!=null) carry(k, value, window.start, false);
+					}
+					final Set<K> expired = idleRetentionEnabled ? evictIdle(window.end) : emptyIdleKeys;
+					carryCorrected.clear();
+					dispatch(snapshot(carry, carry.keySet()), expired, false);
+				}
+			}
+			if(window.end + allowedLateness <= wm) {
+				window.transition(PURGED);
+				windows.remove(window.start);
+			}
+			if(!window.corrected.isEmpty()) {
+				dispatch(snapshot(window, drain(window.corrected)), emptyIdleKeys, true);
+			}
+		}
+		if(!carryCorrected.isEmpty()) {
+			dispatch(snapshot(carry, drain(carryCorrected)), emptyIdleKeys, true);
+		}
+	}
+
+	/**
+	 * Drops carried keys that have not been updated within the idle retention
+	 * @param end The end of the expiring window in seconds
+	 * @return the dropped keys
+	 */
+	private Set<K> evictIdle(final long end) {
+		final Set<K> expired = new HashSet<K>();
+		for(Map.Entry<K, Long> entry: carryUpdated.entrySet()) {
+			if(entry.getValue() + windowDuration + idleRetention <= end && carryUpdated.remove(entry.getKey(), entry.getValue())) {
+				carry.remove(entry.getKey());
+				expired.add(entry.getKey());
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Removes and returns the keys in the passed set
+	 * @param keys The set to drain
+	 * @return the drained keys
+	 */
+	private Set<K> drain(final Set<K> keys) {
+		final Set<K> drained = new HashSet<K>();
+		for(K k: keys) {
+			if(keys.remove(k)) drained.add(k);
+		}
+		return drained;
+	}
+
+	/**
+	 * Builds a set of key/value pairs for the passed keys of a window
+	 * @param window The window to read the values from
+	 * @param keys The keys to include
+	 * @return the key/value pairs
+	 */
+	private Set<KeyValue<K,T>> snapshot(final Window window, final Set<K> keys) {
+		final Set<KeyValue<K,T>> set = new HashSet<KeyValue<K,T>>(keys.size());
+		for(K k: keys) {
+			final T value = window.value(k);
+			if(value!=null) set.add(new KeyValue<K,T>(k, value));
+		}
+		return set;
+	}
+
+	/**
+	 * Builds a set of key/value pairs for the passed keys
+	 * @param map The map to read the values from
+	 * @param keys The keys to include
+	 * @return the key/value pairs
+	 */
+	private Set<KeyValue<K,T>> snapshot(final Map<K, T> map, final Set<K> keys) {
+		final Set<KeyValue<K,T>> set = new HashSet<KeyValue<K,T>>(keys.size());
+		for(K k: keys) {
+			final T value = map.get(k);
+			if(value!=null) set.add(new KeyValue<K,T>(k, value));
+		}
+		return set;
+	}
+
+	/**
+	 * Delivers expired or corrected aggregates to the out stream and the registered actions
+	 * @param set The aggregated key/value pairs
+	 * @param expiredKeys The expired keys
+	 * @param correction true if the pairs are corrections of an already expired window
+	 */
+	private void dispatch(final Set<KeyValue<K,T>> set, final Set<K> expiredKeys, final boolean correction) {
+		if(set.isEmpty() && expiredKeys.isEmpty()) return;
+		if(correction) correctionCount.add(set.size());
+		executor.execute(new Runnable(){
+			@Override
+			public void run() {
+				if(outStreamRequested.get()) {
+					if(!expirationQueue.offer(new HashSet<KeyValue<K,T>>(set))) {
+						log.warn("ExpirationQueue Full !!!");
+					}
+				}
+				for(WindowAggregationAction<K, T> action: actions) {
+					if(correction) {
+						action.onCorrection(new HashSet<KeyValue<K,T>>(set).stream());
+					} else {
+						action.onExpire(new HashSet<KeyValue<K,T>>(set).stream(), new HashSet<K>(expiredKeys));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * <p>Title: Window</p>
+	 * <p>Description: The aggregation state of one event time window</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.streams.metrics.router.nodes.WindowAggregation.Window</code></p>
+	 */
+	class Window {
+		/** The start of the window in seconds */
+		final long start;
+		/** The end of the window in seconds (exclusive) */
+		final long end;
+		/** The aggregates keyed by the aggregation key when aggregating instances */
+		final NonBlockingHashMap<K, T> values;
+		/** The accumulator cells keyed by the aggregation key when the aggregator is a {@link CellAggregator} */
+		final NonBlockingHashMap<K, AggregationCell<T>> cells;
+		/** The keys corrected by late arrivals since the last emission */
+		final NonBlockingHashSet<K> corrected = new NonBlockingHashSet<K>();
+		/** Excludes aggregation while the window changes state */
+		final StampedLock lock = new StampedLock();
+		/** The window state */
+		volatile int state;
+
+		/**
+		 * Creates a new Window
+		 * @param start The start of the window in seconds
+		 * @param state The initial state
+		 */
+		Window(final long start, final int state) {
+			this.start = start;
+			this.end = start + windowDuration;
+			this.state = state;
+			values = cellAggregator==null ? new NonBlockingHashMap<K, T>() : null;
+			cells = cellAggregator==null ? null : new NonBlockingHashMap<K, AggregationCell<T>>();
+		}
+
+		/**
+		 * Aggregates the passed value if this window is open, or is closed and resetting
+		 * @param key The key
+		 * @param value The value
+		 * @return the state of the window when the value was offered
+		 */
+		int add(final K key, final T value) {
+			final long stamp = lock.readLock();
+			try {
+				final int s = state;
+				if(s==OPEN || (s==CLOSED && resetting)) {
+					if(cellAggregator!=null) {
+						accumulate(key, value);
+					} else if(s==OPEN) {
+						merge(key, value);
+					} else {
+						correct(key, value);
+					}
+					if(s==CLOSED) corrected.add(key);
+				}
+				return s;
+			} finally {
+				lock.unlockRead(stamp);
+			}
 		}
-		
+
 		/**
-		 * Creates a new TimestampDelay
-		 * @param windowKey The timestamp representing the start of a time window in seconds
+		 * Accumulates the passed value into the key's cell, creating the cell for a new key
+		 * @param key The key
+		 * @param value The value
 		 */
-		public TimestampDelay(final long windowKey) {
-			this.key = windowKey;
-			this.timestampMs = System.currentTimeMillis();
-			this.expireTime = TimeUnit.SECONDS.toMillis(windowDuration) + this.timestampMs;
-//			System.out.println("Expires at:" + new Date(expireTime));
+		private void accumulate(final K key, final T value) {
+			AggregationCell<T> cell = cells.get(key);
+			if(cell==null) {
+				final AggregationCell<T> newCell = new AggregationCell<T>(value);
+				cell = cells.putIfAbsent(key, newCell);
+				if(cell==null) {
+					cell = newCell;
+				} else {
+					aggregationCount.increment();
+				}
+			} else {
+				aggregationCount.increment();
+			}
+			cellAggregator.accumulate(cell, value);
 		}
 
 		/**
-		 * {@inheritDoc}
-		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 * Merges the passed value into the key's current aggregate in place.
+		 * The first value for a key becomes the aggregate and concurrent merges into it are serialized on it.
+		 * @param key The key
+		 * @param value The value
 		 */
-		@Override
-		public int compareTo(final Delayed o) {			
-			return expireTime < o.getDelay(TimeUnit.MILLISECONDS) ? -1 : 1;
+		private void merge(final K key, final T value) {
+			final T prior = values.putIfAbsent(key, value);
+			if(prior!=null) {
+				synchronized(prior) {
+					aggregator.aggregateInto(prior, value);
+				}
+				aggregationCount.increment();
+			}
 		}
 
 		/**
-		 * {@inheritDoc}
-		 * @see java.util.concurrent.Delayed#getDelay(java.util.concurrent.TimeUnit)
+		 * Merges a late value into an expired window's aggregate. The aggregate is replaced rather than
+		 * updated so the instance already emitted is not modified.
+		 * @param key The key
+		 * @param value The value
 		 */
-		@Override
-		public long getDelay(final TimeUnit unit) {
-			return expireTime - System.currentTimeMillis();
+		private synchronized void correct(final K key, final T value) {
+			final T prior = values.put(key, value);
+			if(prior!=null) {
+				aggregator.aggregateInto(value, prior);
+				aggregationCount.increment();
+			}
 		}
-		
+
 		/**
-		 * {@inheritDoc}
-		 * @see java.lang.Object#toString()
+		 * Returns the current aggregate for the passed key
+		 * @param key The key
+		 * @return the aggregate or null if the key is not in this window
 		 */
-		@Override
-		public String toString() {
-			return "TimestampDeay[window:" + windowDuration + ", now:" + new Date() + ", expires:" + new Date(expireTime) + "]";
+		T value(final K key) {
+			if(cellAggregator==null) return values.get(key);
+			final AggregationCell<T> cell = cells.get(key);
+			return cell==null ? null : cellAggregator.materialize(cell);
 		}
 
 		/**
-		 * {@inheritDoc}
-		 * @see java.lang.Object#hashCode()
+		 * Returns the keys in this window
+		 * @return the keys
 		 */
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + getOuterType().hashCode();
-			result = prime * result + (int) (key ^ (key >>> 32));
-			return result;
+		Set<K> keys() {
+			return cellAggregator==null ? values.keySet() : cells.keySet();
 		}
 
 		/**
-		 * {@inheritDoc}
-		 * @see java.lang.Object#equals(java.lang.Object)
+		 * Returns the number of keys in this window
+		 * @return the number of keys
 		 */
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			TimestampDelay other = (TimestampDelay) obj;
-			if (!getOuterType().equals(other.getOuterType()))
-				return false;
-			if (key != other.key)
-				return false;
-			return true;
+		int size() {
+			return cellAggregator==null ? values.size() : cells.size();
 		}
 
-		private WindowAggregation getOuterType() {
-			return WindowAggregation.this;
+		/**
+		 * Moves this window to the passed state once in-flight aggregations have completed
+		 * @param newState The new state
+		 */
+		void transition(final int newState) {
+			final long stamp = lock.writeLock();
+			try {
+				state = newState;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
 		}
-		
-		
-		
 	}
 
 	/**
@@ -613,12 +898,51 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 	}
 
 	/**
-	 * Returns the earliest timestamp
+	 * Returns the allowed event time lateness in seconds
+	 * @return the allowed lateness
+	 */
+	@ManagedAttribute(description="The allowed event time lateness in seconds")
+	public long getAllowedLateness() {
+		return allowedLateness;
+	}
+
+	/**
+	 * Returns the maximum seconds an event timestamp may be ahead of the wall clock
+	 * @return the maximum skew
+	 */
+	@ManagedAttribute(description="The maximum seconds an event timestamp may be ahead of the wall clock")
+	public long getMaxSkew() {
+		return maxSkew;
+	}
+
+	/**
+	 * Returns the event time watermark in seconds, or -1 if no events have been observed
+	 * @return the watermark
+	 */
+	@ManagedAttribute(description="The event time watermark in seconds")
+	public long getWatermark() {
+		final long wm = watermark.get();
+		return wm==Long.MIN_VALUE ? -1L : wm;
+	}
+
+	/**
+	 * Returns the highest observed event timestamp in seconds, or -1 if no events have been observed
+	 * @return the highest observed event timestamp
+	 */
+	@ManagedAttribute(description="The highest observed event timestamp in seconds")
+	public long getMaxEventTime() {
+		final long max = maxEventTime.get();
+		return max==Long.MIN_VALUE ? -1L : max;
+	}
+
+	/**
+	 * Returns the earliest event timestamp in seconds still accepted by this window, or -1 if no events have been observed
 	 * @return the earliest timestamp
 	 */
-	@ManagedAttribute(description="The earliest timestamp")
+	@ManagedAttribute(description="The earliest accepted event timestamp in seconds")
 	public long getEarliestTimestamp() {
-		return earliestTimestamp.get();
+		final long wm = watermark.get();
+		return wm==Long.MIN_VALUE ? -1L : windowStartTime(wm - allowedLateness);
 	}
 	
 	/**
@@ -627,7 +951,8 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 	 */
 	@ManagedAttribute(description="The earliest timestamp as a date")
 	public Date getEarliestDate() {
-		return new Date(earliestTimestamp.get());
+		final long earliest = getEarliestTimestamp();
+		return earliest==-1L ? null : new Date(TimeUnit.SECONDS.toMillis(earliest));
 	}
 	
 
@@ -637,7 +962,20 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 	 */
 	@ManagedAttribute(description="The total number of periods being aggregated")
 	public int getDelayIndex() {
-		return delayIndex.size();
+		int open = 0;
+		for(Window window: windows.values()) {
+			if(window.state==OPEN) open++;
+		}
+		return open;
+	}
+
+	/**
+	 * Returns the number of expired periods retained for late arrivals
+	 * @return the number of retained periods
+	 */
+	@ManagedAttribute(description="The number of expired periods retained for late arrivals")
+	public int getRetainedPeriods() {
+		return windows.size() - getDelayIndex();
 	}
 	
 	
@@ -649,6 +987,33 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 	public long getDiscardCount() {
 		return discardCount.longValue();
 	}
+
+	/**
+	 * Returns the number of late arrivals aggregated within the allowed lateness
+	 * @return the number of late arrivals
+	 */
+	@ManagedAttribute(description="The number of late arrivals aggregated within the allowed lateness")
+	public long getLateCount() {
+		return lateCount.longValue();
+	}
+
+	/**
+	 * Returns the number of events discarded for being too far ahead of the wall clock
+	 * @return the number of skewed events
+	 */
+	@ManagedAttribute(description="The number of events discarded for being too far ahead of the wall clock")
+	public long getSkewCount() {
+		return skewCount.longValue();
+	}
+
+	/**
+	 * Returns the number of re-emitted corrected aggregates
+	 * @return the number of corrections
+	 */
+	@ManagedAttribute(description="The number of re-emitted corrected aggregates")
+	public long getCorrectionCount() {
+		return correctionCount.longValue();
+	}
 	
 	/**
 	 * Returns the total number of keys being aggregated
@@ -656,7 +1021,16 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 	 */
 	@ManagedAttribute(description="The total number of keys being aggregated")
 	public int getTotalKeyCount() {
-		return delayIndex.values().stream().mapToInt(p -> p.size()).sum();
+		return windows.values().stream().filter(w -> w.state==OPEN).mapToInt(w -> w.size()).sum();
+	}
+
+	/**
+	 * Returns the number of keys carried across windows
+	 * @return the number of carried keys
+	 */
+	@ManagedAttribute(description="The number of keys carried across windows")
+	public int getCarriedKeyCount() {
+		return carry.size();
 	}
 
 	/**
@@ -724,39 +1098,3 @@ public class WindowAggregation<K, V extends Aggregator<T>, T> implements Runnabl
 
 }
 
-
-//private void test() {
-//	executor.execute(new Runnable(){
-//		public void run() {
-//			final StringBuilder b = new StringBuilder("Queue:").append(delayQueue.size());
-//			final List<TimestampDelay> delays = new ArrayList<TimestampDelay>(delayQueue);
-//			if(!delays.isEmpty()) {
-//				b.append("[");
-//				for(TimestampDelay td: delays) {
-//					b.append(td).append(",");
-//				}
-//				b.deleteCharAt(b.length()-1).append("]");
-//			}
-//			System.out.println("--------- " + b);
-//			SystemClock.sleep(1000);
-//			executor.execute(this);
-//		}
-//	});
-//	
-//	try {
-//		for(int i = 0; i < 5; i++) {
-//			SystemClock.sleep(500);
-//			TimestampDelay td = new TimestampDelay(System.currentTimeMillis()/1000);
-//			delayQueue.put(td);
-//		}
-//		for(int i = 0; i < 5; i++) {
-//			TimestampDelay td = delayQueue.take();
-//			System.out.println(td);
-//		}
-//		
-//	} catch (Exception ex) {
-//		ex.printStackTrace(System.err);
-//		System.exit(-1);
-//	}
-//}
-
@@ -18,6 +18,7 @@ under the License.
  */
 package com.heliosapm.streams.metrics.router.nodes;
 
+import java.util.Collections;
 import java.util.Set;
 import java.util.stream.Stream;
 
@@ -39,4 +40,23 @@ public interface WindowAggregationAction<K, V> {
 	 * @param expiredKeys A [possibly empty] set of expired keys which will [definitely] be empty if retention is not enabled.
 	 */
 	public void onExpire(final Stream<KeyValue<K,V>> aggregatedStream, final Set<K> expiredKeys);
+	
+	/**
+	 * Callback from a WindowAggregation when late arrivals within the allowed lateness have changed the aggregates of an already expired window.
+	 * The default re-delivers the corrected aggregates through {@link #onExpire(Stream, Set)}.
+	 * @param correctedStream A stream of the corrected key/value pairs
+	 */
+	public default void onCorrection(final Stream<KeyValue<K,V>> correctedStream) {
+		onExpire(correctedStream, Collections.emptySet());
+	}
+	
+	/**
+	 * Callback from a WindowAggregation when a value arrives after its window's allowed lateness has passed and is not aggregated.
+	 * The default ignores it.
+	 * @param key The late value's key
+	 * @param value The late value
+	 */
+	public default void onLate(final K key, final V value) {
+		/* No Op */
+	}
 }
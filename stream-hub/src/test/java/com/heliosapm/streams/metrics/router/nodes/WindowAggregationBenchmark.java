@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.streams.metrics.router.nodes;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>Title: WindowAggregationBenchmark</p>
+ * <p>Description: JMH benchmark comparing concurrent {@link WindowAggregation#aggregate(Object, Object)} throughput
+ * through the striped {@link CellAggregator} path and the synchronized instance merging {@link Aggregator} path.
+ * All threads write to a small set of keys in the current window, so the keys are contended.
+ * Run with <b><code>-prof gc</code></b> to compare allocation rates.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrics.router.nodes.WindowAggregationBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=10, time=1)
+@Fork(1)
+@Threads(8)
+public class WindowAggregationBenchmark {
+	/** The window duration in seconds */
+	static final long WINDOW = 3600L;
+	/** The keys written to */
+	static final String[] KEYS = {"a", "b", "c", "d", "e", "f", "g", "h"};
+
+	/** The aggregation path to benchmark */
+	@Param({"cell", "instance"})
+	String path;
+
+	/** The window aggregation under test */
+	WindowAggregation<String, ?, AggregatingMetricCounter> wa;
+	/** The timestamp in ms. of the written values, inside the current window */
+	long timestamp;
+
+	/**
+	 * <p>Title: Writer</p>
+	 * <p>Description: Per thread key rotation</p>
+	 */
+	@State(Scope.Thread)
+	public static class Writer {
+		/** The key index */
+		int index = 0;
+
+		/**
+		 * Returns the next key
+		 * @return the next key
+		 */
+		String next() {
+			final int i = index;
+			index = (i + 1) & (KEYS.length - 1);
+			return KEYS[i];
+		}
+	}
+
+	/**
+	 * Creates the window aggregation
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		final long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+		timestamp = TimeUnit.SECONDS.toMillis(now - (now % WINDOW) + 1);
+		wa = "cell".equals(path)
+			? WindowAggregation.getInstance(WINDOW, 0L, 0L, true, AggregatingMetricCounter.AGGREGATOR)
+			: WindowAggregation.getInstance(WINDOW, 0L, 0L, true, new InstanceAggregator());
+	}
+
+	/**
+	 * Closes the window aggregation
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		wa.close();
+	}
+
+	/**
+	 * Aggregates one counter into a contended key
+	 * @param writer The calling thread's key rotation
+	 * @return true if the value was aggregated
+	 */
+	@Benchmark
+	public boolean aggregate(final Writer writer) {
+		final String key = writer.next();
+		return wa.aggregate(key, new AggregatingMetricCounter(key, timestamp, 1L));
+	}
+
+	/**
+	 * <p>Title: InstanceAggregator</p>
+	 * <p>Description: Aggregates {@link AggregatingMetricCounter} instances without accumulator cells</p>
+	 */
+	static class InstanceAggregator implements Aggregator<AggregatingMetricCounter> {
+		@Override
+		public long timestamp(final TimeUnit unit, final AggregatingMetricCounter t) {
+			return AggregatingMetricCounter.AGGREGATOR.timestamp(unit, t);
+		}
+
+		@Override
+		public void aggregateInto(final AggregatingMetricCounter to, final AggregatingMetricCounter from) {
+			to.count.set(to.count.get() + from.count.get());
+		}
+	}
+
+	/**
+	 * Runs the benchmark
+	 * @param args None
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(final String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(WindowAggregationBenchmark.class.getSimpleName())
+			.build()
+		).run();
+	}
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.streams.metrics.router.nodes;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.kafka.streams.KeyValue;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.streams.metrics.StreamedMetric;
+import com.heliosapm.streams.metrics.StreamedMetricValue;
+
+/**
+ * <p>Title: WindowAggregationTest</p>
+ * <p>Description: Tests event time expiration, late arrival handling and sticky windows in {@link WindowAggregation}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.streams.metrics.router.nodes.WindowAggregationTest</code></p>
+ */
+
+public class WindowAggregationTest {
+	/** The maximum time to wait for a callback in ms. */
+	static final long TIMEOUT = 5000L;
+	/** The number of concurrent writers */
+	static final int WRITERS = 16;
+	/** The number of updates per writer */
+	static final int UPDATES = 200000;
+	/** The keys written by the concurrent writers */
+	static final String[] KEYS = {"a", "b", "c", "d"};
+
+	/**
+	 * Tests that windows expire on the watermark, that late arrivals within the lateness are re-emitted as corrections
+	 * and that later arrivals are handed to the late action
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testWatermarkAndLateArrivals() throws Exception {
+		final WindowAggregation<String, AggregatingMetricCounter, AggregatingMetricCounter> wa
+			= WindowAggregation.getInstance(10L, 0L, 2L, true, AggregatingMetricCounter.AGGREGATOR);
+		final CapturingAction action = new CapturingAction();
+		wa.addAction(action);
+		try {
+			final long t = windowStart(10L);
+			Assert.assertTrue(wa.aggregate("a", counter("a", t + 1, 1)));
+			Assert.assertTrue(wa.aggregate("a", counter("a", t + 5, 2)));
+			// Within the lateness of the window end, so nothing expires yet
+			Assert.assertTrue(wa.aggregate("b", counter("b", t + 11, 1)));
+			Assert.assertNull(action.expired.poll(200, TimeUnit.MILLISECONDS));
+			Assert.assertTrue(wa.aggregate("b", counter("b", t + 12, 1)));
+			Assert.assertEquals(3L, action.expired.poll(TIMEOUT, TimeUnit.MILLISECONDS).get("a").longValue());
+			Assert.assertTrue(wa.aggregate("a", counter("a", t + 3, 4)));
+			Assert.assertEquals(7L, action.corrected.poll(TIMEOUT, TimeUnit.MILLISECONDS).get("a").longValue());
+			Assert.assertEquals(1L, wa.getLateCount());
+			// Purges the first window
+			Assert.assertTrue(wa.aggregate("b", counter("b", t + 25, 1)));
+			Assert.assertEquals(2L, action.expired.poll(TIMEOUT, TimeUnit.MILLISECONDS).get("b").longValue());
+			Assert.assertFalse(wa.aggregate("a", counter("a", t + 4, 8)));
+			Assert.assertEquals(8L, action.late.poll(TIMEOUT, TimeUnit.MILLISECONDS).getValue().getCount());
+			Assert.assertEquals(1L, wa.getDiscardCount());
+		} finally {
+			wa.close();
+		}
+	}
+
+	/**
+	 * Tests that an event too far ahead of the wall clock is handed to the late action without moving the watermark
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFutureSkew() throws Exception {
+		System.setProperty(WindowAggregation.CONF_MAX_SKEW, "30");
+		final WindowAggregation<String, AggregatingMetricCounter, AggregatingMetricCounter> wa;
+		try {
+			wa = WindowAggregation.getInstance(13L, 0L, 2L, true, AggregatingMetricCounter.AGGREGATOR);
+		} finally {
+			System.clearProperty(WindowAggregation.CONF_MAX_SKEW);
+		}
+		final CapturingAction action = new CapturingAction();
+		wa.addAction(action);
+		try {
+			Assert.assertEquals(30L, wa.getMaxSkew());
+			final long t = windowStart(13L);
+			Assert.assertTrue(wa.aggregate("a", counter("a", t + 1, 1)));
+			final long wm = wa.getWatermark();
+			Assert.assertFalse(wa.aggregate("a", counter("a", t + 3600, 2)));
+			Assert.assertEquals(2L, action.late.poll(TIMEOUT, TimeUnit.MILLISECONDS).getValue().getCount());
+			Assert.assertEquals(1L, wa.getSkewCount());
+			Assert.assertEquals(wm, wa.getWatermark());
+			Assert.assertEquals(t + 1, wa.getMaxEventTime());
+			Assert.assertTrue(wa.aggregate("a", counter("a", t + 2, 4)));
+		} finally {
+			wa.close();
+		}
+	}
+
+	/**
+	 * Tests that the idle watermark advance closes the latest window but still accepts a backfill for it
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testIdleAdvanceAcceptsBackfill() throws Exception {
+		final WindowAggregation<String, AggregatingMetricCounter, AggregatingMetricCounter> wa
+			= WindowAggregation.getInstance(2L, 0L, 2L, true, AggregatingMetricCounter.AGGREGATOR);
+		final CapturingAction action = new CapturingAction();
+		wa.addAction(action);
+		try {
+			final long t = windowStart(2L);
+			Assert.assertTrue(wa.aggregate("a", counter("a", t + 1, 1)));
+			Assert.assertEquals(1L, action.expired.poll(TIMEOUT, TimeUnit.MILLISECONDS).get("a").longValue());
+			Thread.sleep(3000L);
+			Assert.assertEquals(t + 2, wa.getWatermark());
+			Assert.assertTrue("Backfill dropped as late", wa.aggregate("a", counter("a", t + 1, 2)));
+			Assert.assertEquals(3L, action.corrected.poll(TIMEOUT, TimeUnit.MILLISECONDS).get("a").longValue());
+			Assert.assertEquals(0L, wa.getDiscardCount());
+		} finally {
+			wa.close();
+		}
+	}
+
+	/**
+	 * Tests that a non-resetting window carries aggregates forward
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testStickyWindow() throws Exception {
+		final WindowAggregation<String, AggregatingMetricCounter, AggregatingMetricCounter> wa
+			= WindowAggregation.getInstance(7L, 0L, 0L, false, AggregatingMetricCounter.AGGREGATOR);
+		final CapturingAction action = new CapturingAction();
+		wa.addAction(action);
+		try {
+			final long t = windowStart(7L);
+			wa.aggregate("a", counter("a", t + 1, 1));
+			wa.aggregate("b", counter("b", t + 2, 2));
+			wa.aggregate("a", counter("a", t + 8, 4));
+			Map<String, Long> expired = action.expired.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			Assert.assertEquals(1L, expired.get("a").longValue());
+			Assert.assertEquals(2L, expired.get("b").longValue());
+			wa.aggregate("a", counter("a", t + 15, 1));
+			expired = action.expired.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			Assert.assertEquals(5L, expired.get("a").longValue());
+			Assert.assertEquals(2L, expired.get("b").longValue());
+			Assert.assertEquals(2, wa.getCarriedKeyCount());
+		} finally {
+			wa.close();
+		}
+	}
+
+	/**
+	 * Tests that concurrent writers to the same keys through a {@link CellAggregator} lose no updates
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConcurrentCellWriters() throws Exception {
+		concurrentWriters(WindowAggregation.getInstance(3600L, 0L, 0L, true, AggregatingMetricCounter.AGGREGATOR));
+	}
+
+	/**
+	 * Tests that concurrent writers to the same keys through an instance merging {@link Aggregator} lose no updates
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConcurrentInstanceWriters() throws Exception {
+		concurrentWriters(WindowAggregation.getInstance(3600L, 0L, 0L, true, new InstanceAggregator()));
+	}
+
+	/**
+	 * Tests that a cell of long values materializes a long valued metric and that a cell with a double value
+	 * materializes a double valued metric of the combined sum
+	 */
+	@Test
+	public void testCellKeepsValueType() {
+		final StreamedMetricMeterAggregator agg = StreamedMetricMeterAggregator.AGGREGATOR;
+		final Map<String, String> tags = Collections.singletonMap("host", "web01");
+		final StreamedMetricValue first = new StreamedMetricValue(1000L, 3L, "sys.cpu.user", tags);
+		final AggregationCell<StreamedMetric> cell = new AggregationCell<StreamedMetric>(first);
+		agg.accumulate(cell, first);
+		agg.accumulate(cell, new StreamedMetricValue(2000L, 4L, "sys.cpu.user", tags));
+		StreamedMetricValue smv = (StreamedMetricValue)agg.materialize(cell);
+		Assert.assertFalse(smv.isDoubleValue());
+		Assert.assertEquals(7L, smv.getLongValue());
+		Assert.assertEquals(2000L, smv.getTimestamp());
+		agg.accumulate(cell, new StreamedMetricValue(3000L, 0.5D, "sys.cpu.user", tags));
+		smv = (StreamedMetricValue)agg.materialize(cell);
+		Assert.assertTrue(smv.isDoubleValue());
+		Assert.assertEquals(7.5D, smv.getDoubleValue(), 0D);
+		Assert.assertEquals(3000L, smv.getTimestamp());
+		Assert.assertEquals("sys.cpu.user", smv.getMetricName());
+		Assert.assertEquals("web01", smv.getTags().get("host"));
+	}
+
+	/**
+	 * Runs {@link #WRITERS} threads aggregating into a handful of keys of one window, then expires the window and
+	 * verifies that no writer failed and the totals
+	 * @param wa The window aggregation to test
+	 * @throws Exception thrown on any error
+	 */
+	private static void concurrentWriters(final WindowAggregation<String, ?, AggregatingMetricCounter> wa) throws Exception {
+		final CapturingAction action = new CapturingAction();
+		wa.addAction(action);
+		try {
+			final long t = windowStart(3600L);
+			final CountDownLatch startLatch = new CountDownLatch(1);
+			final CountDownLatch endLatch = new CountDownLatch(WRITERS);
+			final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+			for(int i = 0; i < WRITERS; i++) {
+				final Thread writer = new Thread("WindowAggregationWriter#" + i) {
+					@Override
+					public void run() {
+						try {
+							startLatch.await();
+							for(int x = 0; x < UPDATES; x++) {
+								final String key = KEYS[x % KEYS.length];
+								wa.aggregate(key, counter(key, t + 1, 1));
+							}
+						} catch (Throwable ex) {
+							failures.add(ex);
+						} finally {
+							endLatch.countDown();
+						}
+					}
+				};
+				writer.setDaemon(true);
+				writer.start();
+			}
+			startLatch.countDown();
+			Assert.assertTrue("Writers timed out", endLatch.await(60, TimeUnit.SECONDS));
+			Assert.assertTrue("Writers failed: " + failures, failures.isEmpty());
+			wa.aggregate(KEYS[0], counter(KEYS[0], t + 3600, 1));
+			final Map<String, Long> expired = action.expired.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			Assert.assertNotNull("Window did not expire", expired);
+			final long perKey = (WRITERS * (long)UPDATES) / KEYS.length;
+			for(String key: KEYS) {
+				Assert.assertEquals("Lost updates for [" + key + "]", perKey, expired.get(key).longValue());
+			}
+		} finally {
+			wa.close();
+		}
+	}
+
+	/**
+	 * Returns the start of a recent window of the passed duration in seconds
+	 * @param duration The window duration in seconds
+	 * @return the window start in seconds
+	 */
+	static long windowStart(final long duration) {
+		final long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+		return now - (now % duration);
+	}
+
+	/**
+	 * Creates a counter
+	 * @param key The key
+	 * @param secs The timestamp in seconds
+	 * @param count The count
+	 * @return the counter
+	 */
+	static AggregatingMetricCounter counter(final String key, final long secs, final long count) {
+		return new AggregatingMetricCounter(key, TimeUnit.SECONDS.toMillis(secs), count);
+	}
+
+	/**
+	 * <p>Title: InstanceAggregator</p>
+	 * <p>Description: Aggregates {@link AggregatingMetricCounter} instances without accumulator cells</p>
+	 * <p><code>com.heliosapm.streams.metrics.router.nodes.WindowAggregationTest.InstanceAggregator</code></p>
+	 */
+	static class InstanceAggregator implements Aggregator<AggregatingMetricCounter> {
+		@Override
+		public long timestamp(final TimeUnit unit, final AggregatingMetricCounter t) {
+			return AggregatingMetricCounter.AGGREGATOR.timestamp(unit, t);
+		}
+
+		@Override
+		public void aggregateInto(final AggregatingMetricCounter to, final AggregatingMetricCounter from) {
+			to.count.set(to.count.get() + from.count.get());		// deliberately not atomic
+		}
+	}
+
+	/**
+	 * <p>Title: CapturingAction</p>
+	 * <p>Description: An action that captures the counts delivered in each callback</p>
+	 * <p><code>com.heliosapm.streams.metrics.router.nodes.WindowAggregationTest.CapturingAction</code></p>
+	 */
+	static class CapturingAction implements WindowAggregationAction<String, AggregatingMetricCounter> {
+		/** The expired counts */
+		final BlockingQueue<Map<String, Long>> expired = new LinkedBlockingQueue<Map<String, Long>>();
+		/** The corrected counts */
+		final BlockingQueue<Map<String, Long>> corrected = new LinkedBlockingQueue<Map<String, Long>>();
+		/** The late arrivals */
+		final BlockingQueue<KeyValue<String, AggregatingMetricCounter>> late = new LinkedBlockingQueue<KeyValue<String, AggregatingMetricCounter>>();
+
+		@Override
+		public void onExpire(final Stream<KeyValue<String, AggregatingMetricCounter>> aggregatedStream, final Set<String> expiredKeys) {
+			expired.add(counts(aggregatedStream));
+		}
+
+		@Override
+		public void onCorrection(final Stream<KeyValue<String, AggregatingMetricCounter>> correctedStream) {
+			corrected.add(counts(correctedStream));
+		}
+
+		@Override
+		public void onLate(final String key, final AggregatingMetricCounter value) {
+			late.add(new KeyValue<String, AggregatingMetricCounter>(key, value));
+		}
+
+		private static Map<String, Long> counts(final Stream<KeyValue<String, AggregatingMetricCounter>> stream) {
+			final Map<String, Long> map = new HashMap<String, Long>();
+			stream.forEach(kv -> map.put(kv.key, kv.value.getCount()));
+			return map;
+		}
+	}
+}